@@ -0,0 +1,111 @@
+package eu.isas.peptideshaker.benchmark;
+
+import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
+import com.compomics.util.experiment.identification.spectrum_assumptions.PeptideAssumption;
+import com.compomics.util.preferences.SequenceMatchingPreferences;
+import eu.isas.peptideshaker.scoring.psm_scoring.BestMatchSelection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the selection of the best hit among equally scoring peptide
+ * assumptions. The protein counts are distinct for every hit of a spectrum so
+ * that the selection is resolved without loading spectra.
+ *
+ * @author Marc Vaudel
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BestMatchSelectionBenchmark {
+
+    /**
+     * The number of equally scoring hits per spectrum.
+     */
+    @Param({"2", "10", "50"})
+    public int nHits;
+    /**
+     * The number of synthetic spectra.
+     */
+    private static final int N_SPECTRA = 1000;
+    /**
+     * The keys of the synthetic spectra.
+     */
+    private String[] spectrumKeys;
+    /**
+     * The first hits of every spectrum.
+     */
+    private ArrayList<ArrayList<PeptideAssumption>> firstHits;
+    /**
+     * The number of hits per protein.
+     */
+    private HashMap<String, Integer> proteinCount;
+    /**
+     * The sequence matching preferences.
+     */
+    private SequenceMatchingPreferences sequenceMatchingPreferences;
+    /**
+     * The spectrum annotator.
+     */
+    private PeptideSpectrumAnnotator spectrumAnnotator;
+    /**
+     * The index of the next spectrum to process.
+     */
+    private int spectrumIndex = 0;
+
+    /**
+     * Creates the synthetic hits.
+     */
+    @Setup
+    public void setUp() {
+        Random random = new Random(SyntheticData.SEED);
+        spectrumKeys = new String[N_SPECTRA];
+        firstHits = new ArrayList<ArrayList<PeptideAssumption>>(N_SPECTRA);
+        proteinCount = new HashMap<String, Integer>(N_SPECTRA * nHits);
+        for (int i = 0; i < N_SPECTRA; i++) {
+            spectrumKeys[i] = "benchmark.mgf_cus_" + i;
+            double score = random.nextDouble();
+            ArrayList<PeptideAssumption> spectrumHits = new ArrayList<PeptideAssumption>(nHits);
+            for (int j = 0; j < nHits; j++) {
+                String accession = "P" + i + "_" + j;
+                proteinCount.put(accession, random.nextInt(1000) * nHits + j);
+                ArrayList<String> accessions = new ArrayList<String>(1);
+                accessions.add(accession);
+                spectrumHits.add(SyntheticData.getPeptideAssumption(accessions, score, random));
+            }
+            firstHits.add(spectrumHits);
+        }
+        sequenceMatchingPreferences = SequenceMatchingPreferences.getDefaultSequenceMatching();
+        spectrumAnnotator = new PeptideSpectrumAnnotator();
+    }
+
+    /**
+     * Benchmarks the selection of the best hit of a spectrum.
+     *
+     * @return the best hit
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * selecting the best hit
+     */
+    @Benchmark
+    public PeptideAssumption getBestHit() throws Exception {
+        spectrumIndex = (spectrumIndex + 1) % N_SPECTRA;
+        return BestMatchSelection.getBestHit(spectrumKeys[spectrumIndex], firstHits.get(spectrumIndex), proteinCount, sequenceMatchingPreferences, null, spectrumAnnotator);
+    }
+}
@@ -0,0 +1,251 @@
+package eu.isas.peptideshaker.benchmark;
+
+import com.compomics.util.Util;
+import com.compomics.util.db.ObjectsCache;
+import com.compomics.util.exceptions.exception_handlers.CommandLineExceptionHandler;
+import com.compomics.util.experiment.identification.Identification;
+import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
+import com.compomics.util.experiment.identification.identifications.Ms2Identification;
+import com.compomics.util.experiment.identification.matches.ProteinMatch;
+import com.compomics.util.experiment.identification.matches.SpectrumMatch;
+import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
+import com.compomics.util.gui.waiting.waitinghandlers.WaitingHandlerCLIImpl;
+import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.preferences.ProcessingPreferences;
+import com.compomics.util.preferences.ProteinInferencePreferences;
+import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.peptideshaker.parameters.PSParameter;
+import eu.isas.peptideshaker.protein_inference.ProteinInference;
+import eu.isas.peptideshaker.scoring.maps.ProteinMap;
+import eu.isas.peptideshaker.utils.IdentificationFeaturesGenerator;
+import eu.isas.peptideshaker.utils.Metrics;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks ProteinInference.retainBestScoringGroups on a project stored in a
+ * temporary identification database with the proteins loaded from a FASTA
+ * file. Every protein has a unique peptide, other peptides are shared between
+ * neighboring proteins so that the groups overlap in chains. The groups are
+ * simplified in place, every iteration therefore runs once on a new copy of
+ * the project.
+ *
+ * @author Marc Vaudel
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BestScoringGroupsBenchmark {
+
+    /**
+     * The number of threads used to simplify the groups.
+     */
+    @Param({"1", "4"})
+    public int nThreads;
+    /**
+     * The number of proteins.
+     */
+    private static final int N_PROTEINS = 2000;
+    /**
+     * The length of the proteins.
+     */
+    private static final int PROTEIN_LENGTH = 300;
+    /**
+     * The number of peptides shared between proteins.
+     */
+    private static final int N_SHARED_PEPTIDES = 3000;
+    /**
+     * A waiting handler, not displaying anything.
+     */
+    private WaitingHandler waitingHandler;
+    /**
+     * The FASTA file of the proteins.
+     */
+    private File fastaFile;
+    /**
+     * The identification parameters.
+     */
+    private IdentificationParameters identificationParameters;
+    /**
+     * The processing preferences.
+     */
+    private ProcessingPreferences processingPreferences;
+    /**
+     * The folder of the identification database of the iteration.
+     */
+    private File dbFolder;
+    /**
+     * The identification of the iteration.
+     */
+    private Identification identification;
+    /**
+     * The protein map of the iteration.
+     */
+    private ProteinMap proteinMap;
+    /**
+     * The identification features generator of the iteration.
+     */
+    private IdentificationFeaturesGenerator identificationFeaturesGenerator;
+
+    /**
+     * Writes the FASTA file and loads it in the sequence factory.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * writing or loading the FASTA file
+     */
+    @Setup(Level.Trial)
+    public void setUpTrial() throws Exception {
+        waitingHandler = new WaitingHandlerCLIImpl();
+        waitingHandler.setDisplayProgress(false);
+        fastaFile = File.createTempFile("ps_benchmark", ".fasta");
+        SyntheticData.writeFasta(fastaFile, N_PROTEINS, PROTEIN_LENGTH, new Random(SyntheticData.SEED));
+        SequenceFactory.getInstance().loadFastaFile(fastaFile, waitingHandler);
+
+        // the synthetic peptides are not in the protein sequences, the enzymaticity cannot be used
+        identificationParameters = new IdentificationParameters(new SearchParameters());
+        ProteinInferencePreferences proteinInferencePreferences = identificationParameters.getProteinInferencePreferences();
+        proteinInferencePreferences.setSimplifyGroups(true);
+        proteinInferencePreferences.setSimplifyGroupsScore(true);
+        proteinInferencePreferences.setSimplifyGroupsEnzymaticity(false);
+        proteinInferencePreferences.setSimplifyGroupsEvidence(true);
+        proteinInferencePreferences.setSimplifyGroupsUncharacterized(true);
+
+        processingPreferences = new ProcessingPreferences();
+        processingPreferences.setnThreads(nThreads);
+    }
+
+    /**
+     * Clears the sequence factory and deletes the FASTA file.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * clearing the sequence factory
+     */
+    @TearDown(Level.Trial)
+    public void tearDownTrial() throws Exception {
+        SequenceFactory.getInstance().clearFactory();
+        fastaFile.delete();
+    }
+
+    /**
+     * Creates the identification database of the iteration and builds the
+     * peptide and protein matches. The matches only depend on the seed, all
+     * iterations process the same project.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * creating the database
+     */
+    @Setup(Level.Iteration)
+    public void setUpIteration() throws Exception {
+
+        dbFolder = File.createTempFile("ps_benchmark", "");
+        dbFolder.delete();
+        dbFolder.mkdir();
+        identification = new Ms2Identification("benchmark");
+        identification.establishConnection(dbFolder.getAbsolutePath(), true, new ObjectsCache());
+
+        Random random = new Random(SyntheticData.SEED + 1);
+        int spectrumIndex = 0;
+        for (int i = 0; i < N_PROTEINS; i++) {
+            ArrayList<String> accessions = new ArrayList<String>(1);
+            accessions.add(SyntheticData.getAccession(i));
+            addPeptide("benchmark.mgf_cus_" + spectrumIndex++, accessions, random);
+        }
+        for (int i = 0; i < N_SHARED_PEPTIDES; i++) {
+            int first = random.nextInt(N_PROTEINS);
+            int nProteins = 2 + random.nextInt(2);
+            HashSet<String> accessionsSet = new HashSet<String>(nProteins);
+            accessionsSet.add(SyntheticData.getAccession(first));
+            while (accessionsSet.size() < nProteins) {
+                accessionsSet.add(SyntheticData.getAccession((first + 1 + random.nextInt(3)) % N_PROTEINS));
+            }
+            ArrayList<String> accessions = new ArrayList<String>(accessionsSet);
+            Collections.sort(accessions);
+            addPeptide("benchmark.mgf_cus_" + spectrumIndex++, accessions, random);
+        }
+
+        PSParameter psParameter;
+        for (String peptideKey : identification.getPeptideIdentification()) {
+            psParameter = new PSParameter();
+            psParameter.setPeptideProbabilityScore(random.nextDouble());
+            identification.addPeptideMatchParameter(peptideKey, psParameter);
+        }
+        proteinMap = new ProteinMap();
+        ArrayList<String> proteinKeys = new ArrayList<String>(identification.getProteinIdentification());
+        Collections.sort(proteinKeys);
+        for (String proteinKey : proteinKeys) {
+            psParameter = new PSParameter();
+            double score = random.nextDouble();
+            psParameter.setProteinProbabilityScore(score);
+            identification.addProteinMatchParameter(proteinKey, psParameter);
+            proteinMap.addPoint(score, ProteinMatch.isDecoy(proteinKey));
+        }
+
+        identificationFeaturesGenerator = new IdentificationFeaturesGenerator(identification, identificationParameters, new Metrics(), null);
+    }
+
+    /**
+     * Adds a spectrum match of a peptide mapping to the given proteins and
+     * builds the corresponding peptide and protein matches.
+     *
+     * @param spectrumKey the key of the spectrum
+     * @param accessions the accessions of the parent proteins
+     * @param random the random number generator
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * storing the matches
+     */
+    private void addPeptide(String spectrumKey, ArrayList<String> accessions, Random random) throws Exception {
+        SpectrumMatch spectrumMatch = new SpectrumMatch(spectrumKey);
+        spectrumMatch.setBestPeptideAssumption(SyntheticData.getPeptideAssumption(accessions, random.nextDouble(), random));
+        identification.addSpectrumMatch(spectrumMatch);
+        identification.buildPeptidesAndProteins(spectrumKey, identificationParameters.getSequenceMatchingPreferences());
+    }
+
+    /**
+     * Closes and deletes the identification database of the iteration.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * closing the database
+     */
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() throws Exception {
+        identification.close();
+        Util.deleteDir(dbFolder);
+    }
+
+    /**
+     * Benchmarks the retention of the best scoring groups.
+     *
+     * @return the number of groups retained
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * simplifying the groups
+     */
+    @Benchmark
+    public int retainBestScoringGroups() throws Exception {
+        ProteinInference proteinInference = new ProteinInference();
+        proteinInference.retainBestScoringGroups(identification, new Metrics(), proteinMap, identificationParameters, identificationFeaturesGenerator,
+                processingPreferences, waitingHandler, new CommandLineExceptionHandler());
+        return identification.getProteinIdentification().size();
+    }
+}
@@ -0,0 +1,118 @@
+package eu.isas.peptideshaker.benchmark;
+
+import com.compomics.util.experiment.identification.matches.ProteinMatch;
+import eu.isas.peptideshaker.protein_inference.ProteinInference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the partitioning of the protein groups in connected components
+ * done before the groups are simplified concurrently by
+ * ProteinInference.removeRedundantGroups and
+ * ProteinInference.retainBestScoringGroups. The partitioning is the part of
+ * the group simplification run on a single thread, the complete
+ * simplification is benchmarked by BestScoringGroupsBenchmark.
+ *
+ * @author Marc Vaudel
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ProteinInferenceBenchmark {
+
+    /**
+     * The number of protein groups.
+     */
+    @Param({"10000", "100000"})
+    public int nGroups;
+    /**
+     * The share of groups containing more than one protein.
+     */
+    private static final double SHARED_SHARE = 0.3;
+    /**
+     * The maximal number of proteins in a shared group.
+     */
+    private static final int MAX_GROUP_SIZE = 5;
+    /**
+     * The keys of the protein groups.
+     */
+    private ArrayList<String> proteinKeys;
+    /**
+     * The map of the groups indexed by protein accession.
+     */
+    private HashMap<String, HashSet<String>> proteinMap;
+
+    /**
+     * Creates the synthetic protein groups. Shared groups are made of
+     * proteins drawn among the single protein groups.
+     */
+    @Setup
+    public void setUp() {
+        Random random = new Random(SyntheticData.SEED);
+        int nProteins = (int) (nGroups * (1 - SHARED_SHARE));
+        proteinKeys = new ArrayList<String>(nGroups);
+        proteinMap = new HashMap<String, HashSet<String>>(nProteins);
+        for (int i = 0; i < nProteins; i++) {
+            addGroup("P" + i);
+        }
+        for (int i = nProteins; i < nGroups; i++) {
+            int groupSize = 2 + random.nextInt(MAX_GROUP_SIZE - 1);
+            HashSet<String> accessions = new HashSet<String>(groupSize);
+            while (accessions.size() < groupSize) {
+                accessions.add("P" + random.nextInt(nProteins));
+            }
+            StringBuilder key = new StringBuilder();
+            for (String accession : accessions) {
+                if (key.length() > 0) {
+                    key.append(ProteinMatch.PROTEIN_KEY_SPLITTER);
+                }
+                key.append(accession);
+            }
+            addGroup(key.toString());
+        }
+    }
+
+    /**
+     * Adds a group to the list of groups and to the protein map.
+     *
+     * @param proteinKey the key of the group
+     */
+    private void addGroup(String proteinKey) {
+        proteinKeys.add(proteinKey);
+        for (String accession : ProteinMatch.getAccessions(proteinKey)) {
+            HashSet<String> groups = proteinMap.get(accession);
+            if (groups == null) {
+                groups = new HashSet<String>(1);
+                proteinMap.put(accession, groups);
+            }
+            groups.add(proteinKey);
+        }
+    }
+
+    /**
+     * Benchmarks the partitioning of the protein groups.
+     *
+     * @return the connected components
+     */
+    @Benchmark
+    public ArrayList<ArrayList<String>> getConnectedComponents() {
+        return ProteinInference.getConnectedComponents(proteinKeys, proteinMap);
+    }
+}
@@ -0,0 +1,273 @@
+package eu.isas.peptideshaker.benchmark;
+
+import com.compomics.util.Util;
+import com.compomics.util.db.ObjectsCache;
+import com.compomics.util.exceptions.ExceptionHandler;
+import com.compomics.util.exceptions.exception_handlers.CommandLineExceptionHandler;
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.biology.ions.ElementaryIon;
+import com.compomics.util.experiment.identification.Advocate;
+import com.compomics.util.experiment.identification.Identification;
+import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
+import com.compomics.util.experiment.identification.identifications.Ms2Identification;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import com.compomics.util.experiment.identification.matches.SpectrumMatch;
+import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
+import com.compomics.util.experiment.identification.spectrum_assumptions.PeptideAssumption;
+import com.compomics.util.experiment.io.identifications.idfilereaders.MzIdentMLIdfileReader;
+import com.compomics.util.experiment.massspectrometry.Charge;
+import com.compomics.util.experiment.massspectrometry.Spectrum;
+import com.compomics.util.experiment.massspectrometry.SpectrumFactory;
+import com.compomics.util.gui.waiting.waitinghandlers.WaitingHandlerCLIImpl;
+import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.preferences.ProcessingPreferences;
+import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.peptideshaker.fileimport.PsmImporter;
+import eu.isas.peptideshaker.scoring.maps.InputMap;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the import of the PSMs of an identification file by
+ * PsmImporter.importPsms. The spectra are written to an mgf file loaded in the
+ * spectrum factory and the proteins to a FASTA file indexed by the default
+ * peptide mapper, so that the import runs the precursor validation, the
+ * protein mapping, the best hit selection and the storage of the matches in a
+ * temporary identification database. Every spectrum has one to three
+ * unmodified hits, the first one matching the precursor. The matches are
+ * consumed by the import, every iteration therefore imports a new list in a
+ * new database.
+ *
+ * @author Marc Vaudel
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PsmImporterBenchmark {
+
+    /**
+     * The number of threads used to import the PSMs.
+     */
+    @Param({"1", "4"})
+    public int nThreads;
+    /**
+     * The number of proteins.
+     */
+    private static final int N_PROTEINS = 500;
+    /**
+     * The length of the proteins.
+     */
+    private static final int PROTEIN_LENGTH = 400;
+    /**
+     * The number of spectra.
+     */
+    private static final int N_SPECTRA = 5000;
+    /**
+     * The maximal number of hits per spectrum.
+     */
+    private static final int MAX_HITS = 3;
+    /**
+     * The name of the mgf file.
+     */
+    private static final String MGF_FILE_NAME = "ps_benchmark.mgf";
+    /**
+     * The temporary folder containing the files.
+     */
+    private File tempFolder;
+    /**
+     * A waiting handler, not displaying anything.
+     */
+    private WaitingHandler waitingHandler;
+    /**
+     * The exception handler.
+     */
+    private ExceptionHandler exceptionHandler;
+    /**
+     * The identification parameters.
+     */
+    private IdentificationParameters identificationParameters;
+    /**
+     * The processing preferences.
+     */
+    private ProcessingPreferences processingPreferences;
+    /**
+     * The sequences of the hits of every spectrum.
+     */
+    private String[][] hitSequences;
+    /**
+     * The scores of the hits of every spectrum.
+     */
+    private double[][] hitScores;
+    /**
+     * The folder of the identification database of the iteration.
+     */
+    private File dbFolder;
+    /**
+     * The identification of the iteration.
+     */
+    private Identification identification;
+    /**
+     * The PSMs to import in the iteration.
+     */
+    private LinkedList<SpectrumMatch> spectrumMatches;
+
+    /**
+     * Writes the FASTA and mgf files, loads them in the sequence and spectrum
+     * factories and indexes the proteins.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * writing or loading the files
+     */
+    @Setup(Level.Trial)
+    public void setUpTrial() throws Exception {
+
+        waitingHandler = new WaitingHandlerCLIImpl();
+        waitingHandler.setDisplayProgress(false);
+        exceptionHandler = new CommandLineExceptionHandler();
+        tempFolder = File.createTempFile("ps_benchmark", "");
+        tempFolder.delete();
+        tempFolder.mkdir();
+
+        Random random = new Random(SyntheticData.SEED);
+        File fastaFile = new File(tempFolder, "ps_benchmark.fasta");
+        String[] proteinSequences = SyntheticData.writeFasta(fastaFile, N_PROTEINS, PROTEIN_LENGTH, random);
+        identificationParameters = new IdentificationParameters(new SearchParameters());
+        SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+        sequenceFactory.loadFastaFile(fastaFile, waitingHandler);
+        sequenceFactory.getDefaultPeptideMapper(identificationParameters.getSequenceMatchingPreferences(), identificationParameters.getSearchParameters().getPtmSettings(),
+                identificationParameters.getPeptideVariantsPreferences(), waitingHandler, exceptionHandler);
+
+        processingPreferences = new ProcessingPreferences();
+        processingPreferences.setnThreads(nThreads);
+
+        hitSequences = new String[N_SPECTRA][];
+        hitScores = new double[N_SPECTRA][];
+        File mgfFile = new File(tempFolder, MGF_FILE_NAME);
+        BufferedWriter bw = new BufferedWriter(new FileWriter(mgfFile));
+        try {
+            for (int i = 0; i < N_SPECTRA; i++) {
+                int nHits = 1 + random.nextInt(MAX_HITS);
+                hitSequences[i] = new String[nHits];
+                hitScores[i] = new double[nHits];
+                for (int j = 0; j < nHits; j++) {
+                    String proteinSequence = proteinSequences[random.nextInt(N_PROTEINS)];
+                    int length = 8 + random.nextInt(13);
+                    int start = random.nextInt(proteinSequence.length() - length);
+                    hitSequences[i][j] = proteinSequence.substring(start, start + length);
+                    hitScores[i][j] = j == 0 ? SyntheticData.getScore(false, random) : random.nextDouble();
+                }
+                Peptide peptide = new Peptide(hitSequences[i][0], new ArrayList<ModificationMatch>());
+                double precursorMz = (peptide.getMass() + 2 * ElementaryIon.proton.getTheoreticMass()) / 2;
+                bw.write("BEGIN IONS");
+                bw.newLine();
+                bw.write("TITLE=spectrum_" + i);
+                bw.newLine();
+                bw.write("PEPMASS=" + precursorMz);
+                bw.newLine();
+                bw.write("CHARGE=2+");
+                bw.newLine();
+                bw.write("RTINSECONDS=" + i);
+                bw.newLine();
+                double mz = 100;
+                for (int k = 0; k < 50; k++) {
+                    mz += 1 + 30 * random.nextDouble();
+                    bw.write(mz + " " + (1000 * random.nextDouble()));
+                    bw.newLine();
+                }
+                bw.write("END IONS");
+                bw.newLine();
+            }
+        } finally {
+            bw.close();
+        }
+        SpectrumFactory.getInstance().addSpectra(mgfFile, waitingHandler);
+    }
+
+    /**
+     * Clears the factories and deletes the files.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * clearing the factories
+     */
+    @TearDown(Level.Trial)
+    public void tearDownTrial() throws Exception {
+        SpectrumFactory.getInstance().clearFactory();
+        SequenceFactory.getInstance().clearFactory();
+        Util.deleteDir(tempFolder);
+    }
+
+    /**
+     * Creates the identification database and the PSMs of the iteration.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * creating the database
+     */
+    @Setup(Level.Iteration)
+    public void setUpIteration() throws Exception {
+        dbFolder = new File(tempFolder, "db");
+        dbFolder.mkdir();
+        identification = new Ms2Identification("benchmark");
+        identification.establishConnection(dbFolder.getAbsolutePath(), true, new ObjectsCache());
+        spectrumMatches = new LinkedList<SpectrumMatch>();
+        for (int i = 0; i < N_SPECTRA; i++) {
+            SpectrumMatch spectrumMatch = new SpectrumMatch(Spectrum.getSpectrumKey(MGF_FILE_NAME, "spectrum_" + i));
+            for (int j = 0; j < hitSequences[i].length; j++) {
+                Peptide peptide = new Peptide(hitSequences[i][j], new ArrayList<ModificationMatch>());
+                PeptideAssumption peptideAssumption = new PeptideAssumption(peptide, j + 1, Advocate.msgf.getIndex(), new Charge(Charge.PLUS, 2), hitScores[i][j]);
+                spectrumMatch.addHit(Advocate.msgf.getIndex(), peptideAssumption, false);
+            }
+            spectrumMatches.add(spectrumMatch);
+        }
+    }
+
+    /**
+     * Closes and deletes the identification database of the iteration.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * closing the database
+     */
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() throws Exception {
+        identification.close();
+        Util.deleteDir(dbFolder);
+    }
+
+    /**
+     * Benchmarks the import of the PSMs.
+     *
+     * @return the number of PSMs retained
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * importing the PSMs
+     */
+    @Benchmark
+    public int importPsms() throws Exception {
+        PsmImporter psmImporter = new PsmImporter(new ObjectsCache(), identificationParameters, processingPreferences, new MzIdentMLIdfileReader(),
+                new File(tempFolder, "ps_benchmark.mzid"), identification, new InputMap(), new HashMap<String, Integer>(), new HashSet<String>(), exceptionHandler);
+        psmImporter.importPsms(spectrumMatches, nThreads, waitingHandler);
+        return psmImporter.getnRetained();
+    }
+}
@@ -0,0 +1,172 @@
+package eu.isas.peptideshaker.benchmark;
+
+import com.compomics.util.Util;
+import com.compomics.util.db.ObjectsCache;
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.identification.Advocate;
+import com.compomics.util.experiment.identification.Identification;
+import com.compomics.util.experiment.identification.SpectrumIdentificationAssumption;
+import com.compomics.util.experiment.identification.identifications.Ms2Identification;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import com.compomics.util.experiment.identification.matches.SpectrumMatch;
+import com.compomics.util.experiment.identification.spectrum_assumptions.PeptideAssumption;
+import com.compomics.util.experiment.massspectrometry.Charge;
+import com.compomics.util.preferences.SequenceMatchingPreferences;
+import eu.isas.peptideshaker.parameters.PSParameter;
+import eu.isas.peptideshaker.ptm.PtmScorer;
+import eu.isas.peptideshaker.scoring.maps.PsmPTMMap;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the scoring of the PTM localization using the delta score. The
+ * hits of every spectrum carry a phosphorylation on different serines of the
+ * same sequence. The assumptions are stored in a temporary identification
+ * database so that the benchmark includes the retrieval of the assumptions
+ * and the update of the spectrum match.
+ *
+ * @author Marc Vaudel
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PtmScorerBenchmark {
+
+    /**
+     * The number of localization hits per spectrum.
+     */
+    @Param({"2", "5", "10"})
+    public int nHits;
+    /**
+     * The number of synthetic spectra.
+     */
+    private static final int N_SPECTRA = 1000;
+    /**
+     * The name of the PTM localized.
+     */
+    private static final String PTM_NAME = "Phosphorylation of S";
+    /**
+     * The folder of the identification database.
+     */
+    private File dbFolder;
+    /**
+     * The identification containing the assumptions.
+     */
+    private Identification identification;
+    /**
+     * The spectrum matches.
+     */
+    private SpectrumMatch[] spectrumMatches;
+    /**
+     * The PTM scorer.
+     */
+    private PtmScorer ptmScorer;
+    /**
+     * The sequence matching preferences.
+     */
+    private SequenceMatchingPreferences sequenceMatchingPreferences;
+    /**
+     * The index of the next spectrum to process.
+     */
+    private int spectrumIndex = 0;
+
+    /**
+     * Creates the identification database and stores the synthetic hits.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * creating the database
+     */
+    @Setup
+    public void setUp() throws Exception {
+        Random random = new Random(SyntheticData.SEED);
+        dbFolder = File.createTempFile("ps_benchmark", "");
+        dbFolder.delete();
+        dbFolder.mkdir();
+        identification = new Ms2Identification("benchmark");
+        identification.establishConnection(dbFolder.getAbsolutePath(), true, new ObjectsCache());
+        spectrumMatches = new SpectrumMatch[N_SPECTRA];
+        for (int i = 0; i < N_SPECTRA; i++) {
+            String spectrumKey = "benchmark.mgf_cus_" + i;
+            char[] sequence = SyntheticData.getSequence(2 * nHits + 8, random).toCharArray();
+            for (int j = 0; j < nHits; j++) {
+                sequence[2 * j] = 'S';
+            }
+            HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> algorithmAssumptions = new HashMap<Double, ArrayList<SpectrumIdentificationAssumption>>(nHits);
+            PeptideAssumption bestAssumption = null;
+            for (int j = 0; j < nHits; j++) {
+                ArrayList<ModificationMatch> modificationMatches = new ArrayList<ModificationMatch>(1);
+                modificationMatches.add(new ModificationMatch(PTM_NAME, true, 2 * j + 1));
+                Peptide peptide = new Peptide(new String(sequence), modificationMatches);
+                double score = SyntheticData.getScore(false, random);
+                PeptideAssumption peptideAssumption = new PeptideAssumption(peptide, j + 1, Advocate.peptideShaker.getIndex(), new Charge(Charge.PLUS, 2), score);
+                PSParameter psParameter = new PSParameter();
+                psParameter.setSearchEngineProbability(score);
+                peptideAssumption.addUrParam(psParameter);
+                ArrayList<SpectrumIdentificationAssumption> assumptionsAtScore = algorithmAssumptions.get(score);
+                if (assumptionsAtScore == null) {
+                    assumptionsAtScore = new ArrayList<SpectrumIdentificationAssumption>(1);
+                    algorithmAssumptions.put(score, assumptionsAtScore);
+                }
+                assumptionsAtScore.add(peptideAssumption);
+                if (bestAssumption == null || score < bestAssumption.getScore()) {
+                    bestAssumption = peptideAssumption;
+                }
+            }
+            HashMap<Integer, HashMap<Double, ArrayList<SpectrumIdentificationAssumption>>> assumptions = new HashMap<Integer, HashMap<Double, ArrayList<SpectrumIdentificationAssumption>>>(1);
+            assumptions.put(Advocate.peptideShaker.getIndex(), algorithmAssumptions);
+            SpectrumMatch spectrumMatch = new SpectrumMatch(spectrumKey);
+            spectrumMatch.setBestPeptideAssumption(bestAssumption);
+            identification.addAssumptions(spectrumKey, assumptions, true);
+            identification.addSpectrumMatch(spectrumMatch);
+            spectrumMatches[i] = spectrumMatch;
+        }
+        ptmScorer = new PtmScorer(new PsmPTMMap());
+        sequenceMatchingPreferences = SequenceMatchingPreferences.getDefaultSequenceMatching();
+    }
+
+    /**
+     * Closes and deletes the identification database.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * closing the database
+     */
+    @TearDown
+    public void tearDown() throws Exception {
+        identification.close();
+        Util.deleteDir(dbFolder);
+    }
+
+    /**
+     * Benchmarks the delta score of a spectrum match.
+     *
+     * @return the spectrum match, to avoid dead code elimination
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * scoring the spectrum match
+     */
+    @Benchmark
+    public SpectrumMatch attachDeltaScore() throws Exception {
+        spectrumIndex = (spectrumIndex + 1) % N_SPECTRA;
+        SpectrumMatch spectrumMatch = spectrumMatches[spectrumIndex];
+        ptmScorer.attachDeltaScore(identification, spectrumMatch, sequenceMatchingPreferences);
+        return spectrumMatch;
+    }
+}
@@ -0,0 +1,195 @@
+package eu.isas.peptideshaker.benchmark;
+
+import com.compomics.util.Util;
+import com.compomics.util.db.ObjectsCache;
+import com.compomics.util.exceptions.exception_handlers.CommandLineExceptionHandler;
+import com.compomics.util.experiment.identification.Identification;
+import com.compomics.util.experiment.identification.identifications.Ms2Identification;
+import com.compomics.util.experiment.identification.matches.SpectrumMatch;
+import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
+import com.compomics.util.gui.waiting.waitinghandlers.WaitingHandlerCLIImpl;
+import com.compomics.util.preferences.ProcessingPreferences;
+import com.compomics.util.preferences.SequenceMatchingPreferences;
+import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.peptideshaker.PeptideShaker;
+import eu.isas.peptideshaker.parameters.PSParameter;
+import eu.isas.peptideshaker.scoring.maps.PsmSpecificMap;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the scaling of
+ * PeptideShaker.attachSpectrumProbabilitiesAndBuildPeptidesAndProteins with
+ * the number of threads. The spectrum matches and their parameters are stored
+ * in a temporary identification database, the benchmark thus includes the
+ * reading and update of the PSM parameters by the worker threads and the
+ * building of the peptide and protein matches by the calling thread. The
+ * FASTA file loaded has no decoy sequences, the probabilities are therefore
+ * set to one without looking them up in the PSM map. The peptide and protein
+ * matches are built in place, every iteration therefore runs once on a new
+ * copy of the project.
+ *
+ * @author Marc Vaudel
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SpectrumProbabilitiesScalingBenchmark {
+
+    /**
+     * The number of threads used to attach the probabilities.
+     */
+    @Param({"1", "2", "4", "8"})
+    public int nThreads;
+    /**
+     * The number of spectrum matches.
+     */
+    private static final int N_SPECTRA = 20000;
+    /**
+     * The number of proteins.
+     */
+    private static final int N_PROTEINS = 2000;
+    /**
+     * The length of the proteins.
+     */
+    private static final int PROTEIN_LENGTH = 300;
+    /**
+     * The maximal number of proteins a peptide maps to.
+     */
+    private static final int MAX_PROTEINS = 3;
+    /**
+     * A waiting handler, not displaying anything.
+     */
+    private WaitingHandler waitingHandler;
+    /**
+     * The FASTA file of the proteins.
+     */
+    private File fastaFile;
+    /**
+     * The processing preferences.
+     */
+    private ProcessingPreferences processingPreferences;
+    /**
+     * The sequence matching preferences.
+     */
+    private SequenceMatchingPreferences sequenceMatchingPreferences;
+    /**
+     * The folder of the identification database of the iteration.
+     */
+    private File dbFolder;
+    /**
+     * The identification of the iteration.
+     */
+    private Identification identification;
+
+    /**
+     * Writes the FASTA file and loads it in the sequence factory.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * writing or loading the FASTA file
+     */
+    @Setup(Level.Trial)
+    public void setUpTrial() throws Exception {
+        waitingHandler = new WaitingHandlerCLIImpl();
+        waitingHandler.setDisplayProgress(false);
+        fastaFile = File.createTempFile("ps_benchmark", ".fasta");
+        SyntheticData.writeFasta(fastaFile, N_PROTEINS, PROTEIN_LENGTH, new Random(SyntheticData.SEED));
+        SequenceFactory.getInstance().loadFastaFile(fastaFile, waitingHandler);
+        processingPreferences = new ProcessingPreferences();
+        processingPreferences.setnThreads(nThreads);
+        sequenceMatchingPreferences = SequenceMatchingPreferences.getDefaultSequenceMatching();
+    }
+
+    /**
+     * Clears the sequence factory and deletes the FASTA file.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * clearing the sequence factory
+     */
+    @TearDown(Level.Trial)
+    public void tearDownTrial() throws Exception {
+        SequenceFactory.getInstance().clearFactory();
+        fastaFile.delete();
+    }
+
+    /**
+     * Creates the identification database of the iteration and stores the
+     * spectrum matches and their parameters. The matches only depend on the
+     * seed, all iterations process the same project.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * creating the database
+     */
+    @Setup(Level.Iteration)
+    public void setUpIteration() throws Exception {
+        dbFolder = File.createTempFile("ps_benchmark", "");
+        dbFolder.delete();
+        dbFolder.mkdir();
+        identification = new Ms2Identification("benchmark");
+        identification.establishConnection(dbFolder.getAbsolutePath(), true, new ObjectsCache());
+
+        Random random = new Random(SyntheticData.SEED + 1);
+        for (int i = 0; i < N_SPECTRA; i++) {
+            String spectrumKey = "benchmark.mgf_cus_" + i;
+            int nProteins = 1 + random.nextInt(MAX_PROTEINS);
+            ArrayList<String> accessions = new ArrayList<String>(nProteins);
+            int first = random.nextInt(N_PROTEINS - MAX_PROTEINS);
+            for (int j = 0; j < nProteins; j++) {
+                accessions.add(SyntheticData.getAccession(first + j));
+            }
+            double score = SyntheticData.getScore(false, random);
+            SpectrumMatch spectrumMatch = new SpectrumMatch(spectrumKey);
+            spectrumMatch.setBestPeptideAssumption(SyntheticData.getPeptideAssumption(accessions, score, random));
+            identification.addSpectrumMatch(spectrumMatch);
+            PSParameter psParameter = new PSParameter();
+            psParameter.setPsmProbabilityScore(score);
+            identification.addSpectrumMatchParameter(spectrumKey, psParameter);
+        }
+    }
+
+    /**
+     * Closes and deletes the identification database of the iteration.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * closing the database
+     */
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() throws Exception {
+        identification.close();
+        Util.deleteDir(dbFolder);
+    }
+
+    /**
+     * Attaches the probabilities to all spectrum matches and builds the
+     * peptide and protein matches.
+     *
+     * @return the number of protein matches built
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * processing the matches
+     */
+    @Benchmark
+    public int attachSpectrumProbabilitiesAndBuildPeptidesAndProteins() throws Exception {
+        PeptideShaker.attachSpectrumProbabilitiesAndBuildPeptidesAndProteins(identification, new PsmSpecificMap(), sequenceMatchingPreferences,
+                processingPreferences, waitingHandler, new CommandLineExceptionHandler());
+        return identification.getProteinIdentification().size();
+    }
+}
@@ -0,0 +1,160 @@
+package eu.isas.peptideshaker.benchmark;
+
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.identification.Advocate;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import com.compomics.util.experiment.identification.spectrum_assumptions.PeptideAssumption;
+import com.compomics.util.experiment.massspectrometry.Charge;
+import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyMap;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Generates synthetic identification data for the benchmarks. All generators
+ * take a random number generator so that the data can be reproduced from a
+ * seed.
+ *
+ * @author Marc Vaudel
+ */
+public class SyntheticData {
+
+    /**
+     * The seed used by the benchmarks.
+     */
+    public static final long SEED = 20170301;
+    /**
+     * The share of decoy hits.
+     */
+    public static final double DECOY_SHARE = 0.3;
+    /**
+     * The share of target hits which are correct.
+     */
+    public static final double CORRECT_SHARE = 0.5;
+    /**
+     * The amino acids used to build sequences.
+     */
+    private static final String AMINO_ACIDS = "ACDEFGHIKLMNPQRSTVWY";
+
+    /**
+     * Empty default constructor.
+     */
+    private SyntheticData() {
+    }
+
+    /**
+     * Returns a target/decoy map filled with the given number of hits. Decoy
+     * and incorrect target scores are uniformly distributed between 0 and 1,
+     * correct target scores are log-uniformly distributed between 1e-10 and
+     * 1e-2, mimicking e-values.
+     *
+     * @param nHits the number of hits
+     * @param random the random number generator
+     *
+     * @return a target/decoy map
+     */
+    public static TargetDecoyMap getTargetDecoyMap(int nHits, Random random) {
+        TargetDecoyMap targetDecoyMap = new TargetDecoyMap();
+        for (int i = 0; i < nHits; i++) {
+            boolean decoy = random.nextDouble() < DECOY_SHARE;
+            targetDecoyMap.put(getScore(decoy, random), decoy);
+        }
+        return targetDecoyMap;
+    }
+
+    /**
+     * Returns a random score following the distributions of
+     * getTargetDecoyMap.
+     *
+     * @param decoy indicates whether the score is for a decoy hit
+     * @param random the random number generator
+     *
+     * @return a random score
+     */
+    public static double getScore(boolean decoy, Random random) {
+        if (!decoy && random.nextDouble() < CORRECT_SHARE) {
+            return Math.pow(10, -2 - 8 * random.nextDouble());
+        }
+        return random.nextDouble();
+    }
+
+    /**
+     * Returns a random amino acid sequence.
+     *
+     * @param length the length of the sequence
+     * @param random the random number generator
+     *
+     * @return a random amino acid sequence
+     */
+    public static String getSequence(int length, Random random) {
+        StringBuilder sequence = new StringBuilder(length);
+        for (int i = 0; i < length - 1; i++) {
+            sequence.append(AMINO_ACIDS.charAt(random.nextInt(AMINO_ACIDS.length())));
+        }
+        sequence.append(random.nextBoolean() ? 'K' : 'R');
+        return sequence.toString();
+    }
+
+    /**
+     * Returns a doubly charged peptide assumption on a random unmodified
+     * sequence mapping to the given proteins.
+     *
+     * @param accessions the accessions of the parent proteins
+     * @param score the score of the assumption
+     * @param random the random number generator
+     *
+     * @return a peptide assumption
+     */
+    public static PeptideAssumption getPeptideAssumption(ArrayList<String> accessions, double score, Random random) {
+        Peptide peptide = new Peptide(getSequence(8 + random.nextInt(17), random), new ArrayList<ModificationMatch>());
+        peptide.setParentProteins(accessions);
+        return new PeptideAssumption(peptide, 1, Advocate.peptideShaker.getIndex(), new Charge(Charge.PLUS, 2), score);
+    }
+
+    /**
+     * Returns the accession of a synthetic protein.
+     *
+     * @param index the index of the protein
+     *
+     * @return the accession of the protein
+     */
+    public static String getAccession(int index) {
+        return String.format("P%05d", index);
+    }
+
+    /**
+     * Writes a FASTA file of random proteins. The accession of the protein at
+     * index i is getAccession(i).
+     *
+     * @param fastaFile the file where to write
+     * @param nProteins the number of proteins
+     * @param length the length of the proteins
+     * @param random the random number generator
+     *
+     * @return the sequences of the proteins
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public static String[] writeFasta(File fastaFile, int nProteins, int length, Random random) throws IOException {
+        String[] sequences = new String[nProteins];
+        BufferedWriter bw = new BufferedWriter(new FileWriter(fastaFile));
+        try {
+            for (int i = 0; i < nProteins; i++) {
+                String description = random.nextInt(5) == 0 ? "Uncharacterized protein " + i : "Protein " + i;
+                int evidence = 1 + random.nextInt(4);
+                bw.write(">sp|" + getAccession(i) + "|PROT" + i + "_HUMAN " + description + " OS=Homo sapiens GN=GENE" + i + " PE=" + evidence + " SV=1");
+                bw.newLine();
+                sequences[i] = getSequence(length, random);
+                bw.write(sequences[i]);
+                bw.newLine();
+            }
+        } finally {
+            bw.close();
+        }
+        return sequences;
+    }
+}
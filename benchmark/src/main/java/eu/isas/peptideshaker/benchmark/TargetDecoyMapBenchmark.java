@@ -0,0 +1,167 @@
+package eu.isas.peptideshaker.benchmark;
+
+import com.compomics.util.gui.waiting.waitinghandlers.WaitingHandlerCLIImpl;
+import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the estimation of probabilities in a target/decoy map, the
+ * lookup of probabilities during validation and the filling of a map by
+ * concurrent threads.
+ *
+ * @author Marc Vaudel
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class TargetDecoyMapBenchmark {
+
+    /**
+     * The number of hits in the map.
+     */
+    @Param({"10000", "100000", "1000000"})
+    public int nHits;
+    /**
+     * The number of scores queried in the lookup benchmark.
+     */
+    private static final int N_QUERIES = 4096;
+    /**
+     * The map to benchmark.
+     */
+    private TargetDecoyMap targetDecoyMap;
+    /**
+     * The scores to query.
+     */
+    private double[] queries;
+    /**
+     * Indicates whether the hits at the queried scores are decoy.
+     */
+    private boolean[] decoys;
+    /**
+     * The map filled by the concurrent threads.
+     */
+    private TargetDecoyMap filledMap;
+    /**
+     * The index of the next score to query.
+     */
+    private int queryIndex = 0;
+    /**
+     * A waiting handler, not displaying anything.
+     */
+    private WaitingHandler waitingHandler;
+
+    /**
+     * Fills the map and estimates the probabilities once so that lookups can
+     * be benchmarked.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(SyntheticData.SEED);
+        targetDecoyMap = SyntheticData.getTargetDecoyMap(nHits, random);
+        waitingHandler = new WaitingHandlerCLIImpl();
+        waitingHandler.setDisplayProgress(false);
+        targetDecoyMap.estimateProbabilities(waitingHandler);
+        queries = new double[N_QUERIES];
+        decoys = new boolean[N_QUERIES];
+        for (int i = 0; i < N_QUERIES; i++) {
+            decoys[i] = random.nextDouble() < SyntheticData.DECOY_SHARE;
+            queries[i] = SyntheticData.getScore(decoys[i], random);
+        }
+        filledMap = new TargetDecoyMap();
+    }
+
+    /**
+     * Benchmarks the estimation of the posterior error probabilities.
+     *
+     * @return the map, to avoid dead code elimination
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public TargetDecoyMap estimateProbabilities() {
+        targetDecoyMap.estimateProbabilities(waitingHandler);
+        return targetDecoyMap;
+    }
+
+    /**
+     * Benchmarks the lookup of a probability from a single thread.
+     *
+     * @return the probability
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public double getProbability() {
+        queryIndex = (queryIndex + 1) % N_QUERIES;
+        return targetDecoyMap.getProbability(queries[queryIndex]);
+    }
+
+    /**
+     * Benchmarks the lookup of probabilities from concurrent validation
+     * threads.
+     *
+     * @param queryState the query state of the thread
+     *
+     * @return the probability
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Threads(4)
+    public double getProbabilityConcurrent(QueryState queryState) {
+        return targetDecoyMap.getProbability(queries[queryState.next()]);
+    }
+
+    /**
+     * Benchmarks the filling of a map from concurrent threads. The hits
+     * accumulate in the same map over the iterations.
+     *
+     * @param queryState the query state of the thread
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Threads(4)
+    public void putConcurrent(QueryState queryState) {
+        int index = queryState.next();
+        filledMap.put(queries[index], decoys[index]);
+    }
+
+    /**
+     * The index of the queried score, per thread.
+     */
+    @State(Scope.Thread)
+    public static class QueryState {
+
+        /**
+         * The index of the next score to query.
+         */
+        private int index = 0;
+
+        /**
+         * Returns the index of the next score to query.
+         *
+         * @return the index of the next score to query
+         */
+        public int next() {
+            index = (index + 1) % N_QUERIES;
+            return index;
+        }
+    }
+}
@@ -25,7 +25,6 @@ import com.compomics.util.experiment.massspectrometry.Spectrum;
 import com.compomics.util.experiment.massspectrometry.SpectrumFactory;
 import com.compomics.util.experiment.personalization.UrParameter;
 import com.compomics.util.io.ConfigurationFile;
-import com.compomics.util.memory.MemoryConsumptionStatus;
 import eu.isas.peptideshaker.fileimport.FileImporter;
 import com.compomics.util.waiting.WaitingHandler;
 import com.compomics.util.messages.FeedBack;
@@ -48,7 +47,11 @@ import eu.isas.peptideshaker.scoring.maps.InputMap;
 import eu.isas.peptideshaker.scoring.psm_scoring.BestMatchSelection;
 import eu.isas.peptideshaker.scoring.psm_scoring.PsmScorer;
 import eu.isas.peptideshaker.utils.IdentificationFeaturesGenerator;
+import eu.isas.peptideshaker.utils.MemoryGovernor;
 import eu.isas.peptideshaker.utils.Metrics;
+import eu.isas.peptideshaker.utils.ProcessingMetrics;
+import eu.isas.peptideshaker.utils.ProcessingScheduler;
+import eu.isas.peptideshaker.utils.ProcessingStage;
 import eu.isas.peptideshaker.validation.MatchesValidator;
 
 import java.io.File;
@@ -58,6 +61,10 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class will be responsible for the identification import and the
@@ -151,6 +158,19 @@ public class PeptideShaker {
      * Object used to monitor the duration of the project creation.
      */
     private Duration projectCreationDuration;
+    /**
+     * The metrics of the different processing phases.
+     */
+    private ProcessingMetrics processingMetrics = new ProcessingMetrics();
+    /**
+     * The maximal number of spectrum keys waiting for the peptides and
+     * proteins to be built.
+     */
+    private static final int BUILDING_QUEUE_SIZE = 10000;
+    /**
+     * The scheduler running the processing tasks, shared by all stages.
+     */
+    private static ProcessingScheduler processingScheduler = null;
 
     /**
      * Empty constructor for instantiation purposes.
@@ -215,12 +235,15 @@ public class PeptideShaker {
 
         projectCreationDuration = new Duration();
         projectCreationDuration.start();
+        processingMetrics.clear();
+        processingMetrics.startPhase("Import");
 
         waitingHandler.appendReport("Import process for " + experiment.getReference() + " (Sample: " + sample.getReference() + ", Replicate: " + replicateNumber + ")", true, true);
         waitingHandler.appendReportEndLine();
 
         objectsCache = new ObjectsCache();
         objectsCache.setAutomatedMemoryManagement(true);
+        MemoryGovernor.getInstance().registerObjectsCache(objectsCache);
 
         ProteomicAnalysis analysis = experiment.getAnalysisSet(sample).getProteomicAnalysis(replicateNumber);
         analysis.addIdentificationResults(IdentificationMethod.MS2_IDENTIFICATION, new Ms2Identification(getIdentificationReference()));
@@ -229,6 +252,46 @@ public class PeptideShaker {
         fileImporter.importFiles(idFiles, spectrumFiles, processingPreferences, spectrumCountingPreferences, projectDetails, backgroundThread);
     }
 
+    /**
+     * Returns the metrics of the different processing phases.
+     *
+     * @return the metrics of the different processing phases
+     */
+    public ProcessingMetrics getProcessingMetrics() {
+        return processingMetrics;
+    }
+
+    /**
+     * Returns the scheduler running the processing tasks. The scheduler is
+     * shared by all processing stages and resized when the number of threads
+     * changes. It is never replaced so that stages in progress keep running.
+     *
+     * @param processingPreferences the processing preferences
+     *
+     * @return the scheduler running the processing tasks
+     */
+    public static ProcessingScheduler getProcessingScheduler(ProcessingPreferences processingPreferences) {
+        return getProcessingScheduler(processingPreferences.getnThreads());
+    }
+
+    /**
+     * Returns the scheduler running the processing tasks. The scheduler is
+     * shared by all processing stages and resized when the number of threads
+     * changes. It is never replaced so that stages in progress keep running.
+     *
+     * @param nThreads the number of threads to use
+     *
+     * @return the scheduler running the processing tasks
+     */
+    public static synchronized ProcessingScheduler getProcessingScheduler(int nThreads) {
+        if (processingScheduler == null) {
+            processingScheduler = new ProcessingScheduler(nThreads);
+        } else if (processingScheduler.getnThreads() != nThreads) {
+            processingScheduler.setnThreads(nThreads);
+        }
+        return processingScheduler;
+    }
+
     /**
      * Returns the object cache.
      *
@@ -270,6 +333,7 @@ public class PeptideShaker {
             throws Exception {
 
         Identification identification = experiment.getAnalysisSet(sample).getProteomicAnalysis(replicateNumber).getIdentification(IdentificationMethod.MS2_IDENTIFICATION);
+        processingMetrics.endPhase(identification.getSpectrumIdentificationSize());
         identificationFeaturesGenerator = new IdentificationFeaturesGenerator(identification, identificationParameters, metrics, spectrumCountingPreferences);
 
         if (!objectsCache.memoryCheck() && memoryWarning) {
@@ -290,19 +354,25 @@ public class PeptideShaker {
             PsmScorer psmScorer = new PsmScorer();
 
             waitingHandler.appendReport("Estimating PSM scores.", true, true);
+            processingMetrics.startPhase("Intermediate scores");
             psmScorer.estimateIntermediateScores(identification, inputMap, processingPreferences, identificationParameters, waitingHandler, exceptionHandler);
+            processingMetrics.endPhase(identification.getSpectrumIdentificationSize());
 
             if (psmScoringPreferences.isTargetDecoyNeededForPsmScoring(usedAlgorithms)) {
                 if (sequenceFactory.concatenatedTargetDecoy()) {
                     waitingHandler.appendReport("Estimating intermediate scores probabilities.", true, true);
+                    processingMetrics.startPhase("Intermediate score probabilities");
                     psmScorer.estimateIntermediateScoreProbabilities(identification, inputMap, processingPreferences, waitingHandler);
+                    processingMetrics.endPhase(identification.getSpectrumIdentificationSize());
                 } else {
                     waitingHandler.appendReport("No decoy sequences found. Impossible to estimate intermediate scores probabilities.", true, true);
                 }
             }
 
             waitingHandler.appendReport("Scoring PSMs.", true, true);
+            processingMetrics.startPhase("PSM scoring");
             psmScorer.scorePsms(identification, inputMap, processingPreferences, identificationParameters, waitingHandler);
+            processingMetrics.endPhase(identification.getSpectrumIdentificationSize());
         }
 
         if (sequenceFactory.concatenatedTargetDecoy()) {
@@ -310,7 +380,9 @@ public class PeptideShaker {
         } else {
             waitingHandler.appendReport("Importing assumptions scores.", true, true);
         }
+        processingMetrics.startPhase("Assumption probabilities estimation");
         inputMap.estimateProbabilities(waitingHandler);
+        processingMetrics.endPhase(identification.getSpectrumIdentificationSize());
         waitingHandler.increasePrimaryProgressCounter();
         if (waitingHandler.isRunCanceled()) {
             return;
@@ -321,15 +393,19 @@ public class PeptideShaker {
         } else {
             waitingHandler.appendReport("No decoy sequences found. Impossible to estimate assumptions probabilities.", true, true);
         }
-        attachAssumptionsProbabilities(inputMap, identificationParameters.getSequenceMatchingPreferences(), waitingHandler);
+        processingMetrics.startPhase("Assumption probabilities attachment");
+        attachAssumptionsProbabilities(inputMap, identificationParameters.getSequenceMatchingPreferences(), processingPreferences, waitingHandler, exceptionHandler);
+        processingMetrics.endPhase(identification.getSpectrumIdentificationSize());
         waitingHandler.increasePrimaryProgressCounter();
         if (waitingHandler.isRunCanceled()) {
             return;
         }
 
         waitingHandler.appendReport("Selecting best peptide per spectrum.", true, true);
+        processingMetrics.startPhase("Best match selection");
         BestMatchSelection bestMatchSelection = new BestMatchSelection(identification, proteinCount, matchesValidator, metrics);
-        bestMatchSelection.selectBestHitAndFillPsmMap(inputMap, waitingHandler, identificationParameters);
+        bestMatchSelection.selectBestHitAndFillPsmMap(inputMap, processingPreferences, waitingHandler, exceptionHandler, identificationParameters);
+        processingMetrics.endPhase(identification.getSpectrumIdentificationSize());
         IdMatchValidationPreferences idMatchValidationPreferences = identificationParameters.getIdValidationPreferences();
         if (idMatchValidationPreferences.getMergeSmallSubgroups()) {
             matchesValidator.getPsmMap().clean(idMatchValidationPreferences.getDefaultPsmFDR() / 100);
@@ -338,7 +414,7 @@ public class PeptideShaker {
         if (waitingHandler.isRunCanceled()) {
             return;
         }
-        if (MemoryConsumptionStatus.memoryUsed() > 0.9) {
+        if (MemoryGovernor.getInstance().getPressureLevel() == MemoryGovernor.PressureLevel.critical) {
             metrics.clearSpectrumKeys();
         }
 
@@ -347,7 +423,9 @@ public class PeptideShaker {
         } else {
             waitingHandler.appendReport("No decoy sequences found. Impossible to estimate PSM probabilities.", true, true);
         }
+        processingMetrics.startPhase("PSM probabilities estimation");
         matchesValidator.getPsmMap().estimateProbabilities(waitingHandler);
+        processingMetrics.endPhase(identification.getSpectrumIdentificationSize());
         if (waitingHandler.isRunCanceled()) {
             return;
         }
@@ -359,12 +437,14 @@ public class PeptideShaker {
         }
         report += ")";
         waitingHandler.appendReport(report, true, true);
+        processingMetrics.startPhase("PSM PTM scoring");
         ptmScorer.scorePsmPtms(identification, waitingHandler, exceptionHandler, identificationParameters, metrics, processingPreferences);
+        processingMetrics.endPhase(identification.getSpectrumIdentificationSize());
         waitingHandler.increasePrimaryProgressCounter();
         if (waitingHandler.isRunCanceled()) {
             return;
         }
-        if (MemoryConsumptionStatus.memoryUsed() > 0.9) {
+        if (MemoryGovernor.getInstance().getPressureLevel() == MemoryGovernor.PressureLevel.critical) {
             metrics.clearSpectrumKeys();
         }
 
@@ -374,8 +454,10 @@ public class PeptideShaker {
             if (idMatchValidationPreferences.getMergeSmallSubgroups()) {
                 psmPTMMap.clean(ptmScoringPreferences.getFlrThreshold() / 100);
             }
+            processingMetrics.startPhase("PTM localization thresholding");
             psmPTMMap.estimateProbabilities(waitingHandler);
             ptmScorer.computeLocalizationStatistics(waitingHandler, ptmScoringPreferences.getFlrThreshold());
+            processingMetrics.endPhase(identification.getSpectrumIdentificationSize());
         }
         waitingHandler.increasePrimaryProgressCounter();
         if (waitingHandler.isRunCanceled()) {
@@ -384,18 +466,22 @@ public class PeptideShaker {
 
         if (ptmScoringPreferences.getAlignNonConfidentPTMs()) {
             waitingHandler.appendReport("Resolving peptide inference issues.", true, true);
-            ptmScorer.peptideInference(identification, identificationParameters, waitingHandler);
+            processingMetrics.startPhase("Peptide inference");
+            ptmScorer.peptideInference(identification, identificationParameters, waitingHandler, exceptionHandler, processingPreferences);
+            processingMetrics.endPhase(identification.getSpectrumIdentificationSize());
             waitingHandler.increasePrimaryProgressCounter();
             if (waitingHandler.isRunCanceled()) {
                 return;
             }
         }
 
-        if (MemoryConsumptionStatus.memoryUsed() > 0.9) {
+        if (MemoryGovernor.getInstance().getPressureLevel() == MemoryGovernor.PressureLevel.critical) {
             metrics.clearSpectrumKeys();
         }
         waitingHandler.appendReport("Saving probabilities, building peptides and proteins.", true, true);
-        attachSpectrumProbabilitiesAndBuildPeptidesAndProteins(identificationParameters.getSequenceMatchingPreferences(), waitingHandler); // @TODO: this is very slow if memory is full!!
+        processingMetrics.startPhase("Spectrum probabilities attachment and peptide and protein building");
+        attachSpectrumProbabilitiesAndBuildPeptidesAndProteins(identification, matchesValidator.getPsmMap(), identificationParameters.getSequenceMatchingPreferences(), processingPreferences, waitingHandler, exceptionHandler);
+        processingMetrics.endPhase(identification.getSpectrumIdentificationSize());
         waitingHandler.increasePrimaryProgressCounter();
         if (waitingHandler.isRunCanceled()) {
             return;
@@ -404,7 +490,9 @@ public class PeptideShaker {
         ProteinInference proteinInference = new ProteinInference();
         if (identificationParameters.getProteinInferencePreferences().getSimplifyGroups()) {
             waitingHandler.appendReport("Simplifying protein groups.", true, true);
-            proteinInference.removeRedundantGroups(identification, identificationParameters, identificationFeaturesGenerator, waitingHandler);
+            processingMetrics.startPhase("Protein group simplification");
+            proteinInference.removeRedundantGroups(identification, identificationParameters, identificationFeaturesGenerator, processingPreferences, waitingHandler, exceptionHandler);
+            processingMetrics.endPhase(identification.getProteinIdentification().size());
             waitingHandler.increasePrimaryProgressCounter();
             if (waitingHandler.isRunCanceled()) {
                 return;
@@ -412,10 +500,12 @@ public class PeptideShaker {
         }
 
         waitingHandler.appendReport("Generating peptide map.", true, true);
+        processingMetrics.startPhase("Peptide map");
         matchesValidator.fillPeptideMaps(identification, metrics, waitingHandler, identificationParameters);
         if (idMatchValidationPreferences.getMergeSmallSubgroups()) {
             matchesValidator.getPeptideMap().clean(identificationParameters.getIdValidationPreferences().getDefaultPeptideFDR() / 100);
         }
+        processingMetrics.endPhase(identification.getPeptideIdentification().size());
         if (waitingHandler.isRunCanceled()) {
             return;
         }
@@ -425,27 +515,35 @@ public class PeptideShaker {
         } else {
             waitingHandler.appendReport("No decoy sequences found. Impossible to estimate peptide probabilities.", true, true);
         }
+        processingMetrics.startPhase("Peptide probabilities estimation");
         matchesValidator.getPeptideMap().estimateProbabilities(waitingHandler);
+        processingMetrics.endPhase(identification.getPeptideIdentification().size());
         if (waitingHandler.isRunCanceled()) {
             return;
         }
 
         waitingHandler.appendReport("Saving peptide probabilities.", true, true);
+        processingMetrics.startPhase("Peptide probabilities attachment");
         matchesValidator.attachPeptideProbabilities(identification, waitingHandler);
+        processingMetrics.endPhase(identification.getPeptideIdentification().size());
         waitingHandler.increasePrimaryProgressCounter();
         if (waitingHandler.isRunCanceled()) {
             return;
         }
 
         waitingHandler.appendReport("Generating protein map.", true, true);
+        processingMetrics.startPhase("Protein map");
         matchesValidator.fillProteinMap(identification, waitingHandler);
+        processingMetrics.endPhase(identification.getProteinIdentification().size());
         waitingHandler.increasePrimaryProgressCounter();
         if (waitingHandler.isRunCanceled()) {
             return;
         }
 
         waitingHandler.appendReport("Resolving protein inference issues, inferring peptide and protein PI status.", true, true); // could be slow
-        proteinInference.retainBestScoringGroups(identification, metrics, matchesValidator.getProteinMap(), identificationParameters, identificationFeaturesGenerator, waitingHandler);
+        processingMetrics.startPhase("Protein inference");
+        proteinInference.retainBestScoringGroups(identification, metrics, matchesValidator.getProteinMap(), identificationParameters, identificationFeaturesGenerator, processingPreferences, waitingHandler, exceptionHandler);
+        processingMetrics.endPhase(identification.getProteinIdentification().size());
         waitingHandler.increasePrimaryProgressCounter();
         if (waitingHandler.isRunCanceled()) {
             return;
@@ -456,13 +554,17 @@ public class PeptideShaker {
         } else {
             waitingHandler.appendReport("No decoy sequences found. Impossible to estimate protein probabilities.", true, true);
         }
+        processingMetrics.startPhase("Protein probabilities estimation");
         matchesValidator.getProteinMap().estimateProbabilities(waitingHandler);
+        processingMetrics.endPhase(identification.getProteinIdentification().size());
         if (waitingHandler.isRunCanceled()) {
             return;
         }
 
         waitingHandler.appendReport("Saving protein probabilities.", true, true);
+        processingMetrics.startPhase("Protein probabilities attachment");
         matchesValidator.attachProteinProbabilities(identification, metrics, waitingHandler, identificationParameters.getFractionSettings());
+        processingMetrics.endPhase(identification.getProteinIdentification().size());
         waitingHandler.increasePrimaryProgressCounter();
         if (waitingHandler.isRunCanceled()) {
             return;
@@ -479,7 +581,9 @@ public class PeptideShaker {
         } else {
             waitingHandler.appendReport("No decoy sequences found. Impossible to estimate FDRs.", true, true);
         }
+        processingMetrics.startPhase("Validation");
         matchesValidator.validateIdentifications(identification, metrics, geneMaps, waitingHandler, exceptionHandler, identificationParameters, identificationFeaturesGenerator, inputMap, spectrumCountingPreferences, processingPreferences);
+        processingMetrics.endPhase(identification.getSpectrumIdentificationSize());
         waitingHandler.increasePrimaryProgressCounter();
         metrics.clearSpectrumKeys();
         if (waitingHandler.isRunCanceled()) {
@@ -487,14 +591,29 @@ public class PeptideShaker {
         }
 
         waitingHandler.appendReport("Scoring PTMs in peptides.", true, true);
-        ptmScorer.scorePeptidePtms(identification, waitingHandler, identificationParameters);
+        processingMetrics.startPhase("Peptide PTM scoring");
+        ptmScorer.scorePeptidePtms(identification, waitingHandler, exceptionHandler, identificationParameters, processingPreferences);
+        processingMetrics.endPhase(identification.getPeptideIdentification().size());
         waitingHandler.increasePrimaryProgressCounter();
         if (waitingHandler.isRunCanceled()) {
             return;
         }
 
         waitingHandler.appendReport("Scoring PTMs in proteins.", true, true);
-        ptmScorer.scoreProteinPtms(identification, metrics, waitingHandler, identificationParameters, identificationFeaturesGenerator);
+        processingMetrics.startPhase("Protein PTM scoring");
+        ptmScorer.scoreProteinPtms(identification, metrics, waitingHandler, exceptionHandler, identificationParameters, identificationFeaturesGenerator, processingPreferences);
+        processingMetrics.endPhase(identification.getProteinIdentification().size());
+        waitingHandler.increasePrimaryProgressCounter();
+        if (waitingHandler.isRunCanceled()) {
+            return;
+        }
+
+        waitingHandler.appendReport("Computing protein features.", true, true);
+        processingMetrics.startPhase("Protein features");
+        ProteinFeaturesTable proteinFeaturesTable = ProteinFeaturesTable.compute(new ArrayList<String>(identification.getProteinIdentification()),
+                identificationFeaturesGenerator, processingPreferences, waitingHandler, exceptionHandler);
+        identificationFeaturesGenerator.setProteinFeaturesTable(proteinFeaturesTable);
+        processingMetrics.endPhase(identification.getProteinIdentification().size());
         waitingHandler.increasePrimaryProgressCounter();
         if (waitingHandler.isRunCanceled()) {
             return;
@@ -585,7 +704,10 @@ public class PeptideShaker {
     }
 
     /**
-     * Processes the identifications if a change occurred in the PSM map.
+     * Processes the identifications if a change occurred in the PSM map. Only
+     * the matches depending on PSMs whose probability changed are updated. If
+     * the peptide and protein maps were not filled or if the grouping of the
+     * peptide maps changes, the peptide and protein maps are rebuilt.
      *
      * @param identification the identification object containing the
      * identification matches
@@ -593,17 +715,65 @@ public class PeptideShaker {
      * @param processingPreferences the processing preferences
      * @param shotgunProtocol information on the protocol
      * @param identificationParameters the identification parameters
+     * @param exceptionHandler handler for exceptions
      *
      * @throws Exception exception thrown whenever it is attempted to attach
      * more than one identification per search engine per spectrum
      */
     public void spectrumMapChanged(Identification identification, WaitingHandler waitingHandler, ProcessingPreferences processingPreferences,
-            ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters) throws Exception {
+            ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, ExceptionHandler exceptionHandler) throws Exception {
+
+        PeptideSpecificMap peptideMap = matchesValidator.getPeptideMap();
+        if (peptideMap.getNEntries() == 0 || matchesValidator.getProteinMap().getTargetDecoyMap().getMapSize() == 0) {
+            rebuildPeptidesAndProteins(identification, waitingHandler, processingPreferences, identificationParameters, exceptionHandler);
+            return;
+        }
+
+        Set<String> peptideKeys = updatePsmProbabilities(identification, identificationParameters.getSequenceMatchingPreferences(), processingPreferences, waitingHandler, exceptionHandler);
+        if (waitingHandler.isRunCanceled() || peptideKeys.isEmpty()) {
+            return;
+        }
+
+        HashSet<String> rescoredPeptides = matchesValidator.updatePeptideScores(identification, peptideKeys, identificationParameters, waitingHandler);
+        if (waitingHandler.isRunCanceled() || rescoredPeptides.isEmpty()) {
+            return;
+        }
+        peptideMap.cleanUp();
+        peptideMap.resetMetrics();
+        if (peptideMap.isGroupingChanged(identificationParameters.getIdValidationPreferences().getDefaultPeptideFDR() / 100)) {
+            rebuildPeptidesAndProteins(identification, waitingHandler, processingPreferences, identificationParameters, exceptionHandler);
+            return;
+        }
+        peptideMap.estimateProbabilities(waitingHandler);
+
+        HashSet<String> changedPeptides = matchesValidator.updatePeptideProbabilities(identification, rescoredPeptides, waitingHandler);
+        if (waitingHandler.isRunCanceled()) {
+            return;
+        }
+        updateProteins(identification, changedPeptides, waitingHandler, processingPreferences, identificationParameters, exceptionHandler);
+    }
+
+    /**
+     * Rebuilds the peptide and protein matches and maps after a change in the
+     * PSM map.
+     *
+     * @param identification the identification object containing the
+     * identification matches
+     * @param waitingHandler the waiting handler
+     * @param processingPreferences the processing preferences
+     * @param identificationParameters the identification parameters
+     * @param exceptionHandler handler for exceptions
+     *
+     * @throws Exception exception thrown whenever it is attempted to attach
+     * more than one identification per search engine per spectrum
+     */
+    private void rebuildPeptidesAndProteins(Identification identification, WaitingHandler waitingHandler, ProcessingPreferences processingPreferences,
+            IdentificationParameters identificationParameters, ExceptionHandler exceptionHandler) throws Exception {
         PeptideSpecificMap peptideMap = new PeptideSpecificMap();
         ProteinMap proteinMap = new ProteinMap();
         matchesValidator.setPeptideMap(peptideMap);
         matchesValidator.setProteinMap(proteinMap);
-        attachSpectrumProbabilitiesAndBuildPeptidesAndProteins(identificationParameters.getSequenceMatchingPreferences(), waitingHandler);
+        attachSpectrumProbabilitiesAndBuildPeptidesAndProteins(identification, matchesValidator.getPsmMap(), identificationParameters.getSequenceMatchingPreferences(), processingPreferences, waitingHandler, exceptionHandler);
         matchesValidator.fillPeptideMaps(identification, metrics, waitingHandler, identificationParameters);
         peptideMap.clean(identificationParameters.getIdValidationPreferences().getDefaultPeptideFDR() / 100);
         peptideMap.estimateProbabilities(waitingHandler);
@@ -612,7 +782,7 @@ public class PeptideShaker {
         proteinMap.estimateProbabilities(waitingHandler);
         matchesValidator.attachProteinProbabilities(identification, metrics, waitingHandler, identificationParameters.getFractionSettings());
         ProteinInference proteinInference = new ProteinInference();
-        proteinInference.retainBestScoringGroups(identification, metrics, proteinMap, identificationParameters, identificationFeaturesGenerator, waitingHandler);
+        proteinInference.retainBestScoringGroups(identification, metrics, proteinMap, identificationParameters, identificationFeaturesGenerator, processingPreferences, waitingHandler, exceptionHandler);
     }
 
     /**
@@ -621,13 +791,25 @@ public class PeptideShaker {
      * @param identification the identification object containing the
      * identification matches
      * @param waitingHandler the waiting handler
+     * @param processingPreferences the processing preferences
      * @param identificationParameters the identification parameters
+     * @param exceptionHandler handler for exceptions
      *
      * @throws Exception exception thrown whenever it is attempted to attach
      * more than one identification per search engine per spectrum
      */
-    public void peptideMapChanged(Identification identification, WaitingHandler waitingHandler,
-            IdentificationParameters identificationParameters) throws Exception {
+    public void peptideMapChanged(Identification identification, WaitingHandler waitingHandler, ProcessingPreferences processingPreferences,
+            IdentificationParameters identificationParameters, ExceptionHandler exceptionHandler) throws Exception {
+
+        if (matchesValidator.getProteinMap().getTargetDecoyMap().getMapSize() > 0) {
+            HashSet<String> changedPeptides = matchesValidator.updatePeptideProbabilities(identification, new HashSet<String>(0), waitingHandler);
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
+            updateProteins(identification, changedPeptides, waitingHandler, processingPreferences, identificationParameters, exceptionHandler);
+            return;
+        }
+
         ProteinMap proteinMap = new ProteinMap();
         matchesValidator.setProteinMap(proteinMap);
         matchesValidator.attachPeptideProbabilities(identification, waitingHandler);
@@ -635,7 +817,38 @@ public class PeptideShaker {
         proteinMap.estimateProbabilities(waitingHandler);
         matchesValidator.attachProteinProbabilities(identification, metrics, waitingHandler, identificationParameters.getFractionSettings());
         ProteinInference proteinInference = new ProteinInference();
-        proteinInference.retainBestScoringGroups(identification, metrics, proteinMap, identificationParameters, identificationFeaturesGenerator, waitingHandler);
+        proteinInference.retainBestScoringGroups(identification, metrics, proteinMap, identificationParameters, identificationFeaturesGenerator, processingPreferences, waitingHandler, exceptionHandler);
+    }
+
+    /**
+     * Updates the protein groups containing peptides whose probabilities
+     * changed. The protein probabilities are attached and the protein groups
+     * simplified only if a protein group score changed.
+     *
+     * @param identification the identification object containing the
+     * identification matches
+     * @param peptideKeys the keys of the peptides whose probabilities changed
+     * @param waitingHandler the waiting handler
+     * @param processingPreferences the processing preferences
+     * @param identificationParameters the identification parameters
+     * @param exceptionHandler handler for exceptions
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * updating the proteins
+     */
+    private void updateProteins(Identification identification, Set<String> peptideKeys, WaitingHandler waitingHandler,
+            ProcessingPreferences processingPreferences, IdentificationParameters identificationParameters, ExceptionHandler exceptionHandler) throws Exception {
+        if (peptideKeys.isEmpty()
+                || !matchesValidator.updateProteinScores(identification, peptideKeys, identificationParameters, waitingHandler)
+                || waitingHandler.isRunCanceled()) {
+            return;
+        }
+        ProteinMap proteinMap = matchesValidator.getProteinMap();
+        proteinMap.resetMetrics();
+        proteinMap.estimateProbabilities(waitingHandler);
+        matchesValidator.attachProteinProbabilities(identification, metrics, waitingHandler, identificationParameters.getFractionSettings());
+        ProteinInference proteinInference = new ProteinInference();
+        proteinInference.retainBestScoringGroups(identification, metrics, proteinMap, identificationParameters, identificationFeaturesGenerator, processingPreferences, waitingHandler, exceptionHandler);
     }
 
     /**
@@ -660,9 +873,12 @@ public class PeptideShaker {
      *
      * @param inputMap map of the input scores
      * @param sequenceMatchingPreferences the sequence matching preferences
+     * @param processingPreferences the processing preferences
      * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler handler for exceptions
      */
-    private void attachAssumptionsProbabilities(InputMap inputMap, SequenceMatchingPreferences sequenceMatchingPreferences, WaitingHandler waitingHandler) throws Exception {
+    private void attachAssumptionsProbabilities(InputMap inputMap, SequenceMatchingPreferences sequenceMatchingPreferences, ProcessingPreferences processingPreferences,
+            WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws Exception {
 
         Identification identification = experiment.getAnalysisSet(sample).getProteomicAnalysis(replicateNumber).getIdentification(IdentificationMethod.MS2_IDENTIFICATION);
 
@@ -673,144 +889,181 @@ public class PeptideShaker {
 
         for (String spectrumFileName : identification.getSpectrumFiles()) {
 
+            ProcessingStage stage = getProcessingScheduler(processingPreferences).newStage("Assumptions probabilities attachment", waitingHandler);
+
             PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, null, true, waitingHandler);
 
-            while (psmIterator.hasNext()) {
+            for (int i = 1; i <= processingPreferences.getnThreads(); i++) {
+                AssumptionsProbabilitiesRunnable runnable = new AssumptionsProbabilitiesRunnable(psmIterator, identification, inputMap, sequenceMatchingPreferences, waitingHandler, exceptionHandler);
+                if (!stage.submit(runnable)) {
+                    break;
+                }
+            }
+            if (!stage.awaitCompletion()) {
+                return;
+            }
+        }
+
+        if (waitingHandler != null) {
+            waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+        }
+    }
 
-                SpectrumMatch spectrumMatch = psmIterator.next();
-                String spectrumKey = spectrumMatch.getKey();
-                HashMap<Integer, HashMap<Double, ArrayList<SpectrumIdentificationAssumption>>> assumptionsMap = identification.getAssumptions(spectrumKey);
+    /**
+     * Attaches the spectrum posterior error probabilities to the peptide
+     * assumptions of a given spectrum.
+     *
+     * @param spectrumKey the key of the spectrum
+     * @param identification the identification containing the matches
+     * @param inputMap map of the input scores
+     * @param sequenceMatchingPreferences the sequence matching preferences
+     *
+     * @throws SQLException exception thrown whenever an error occurred while
+     * interacting with the database
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing a file
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing an object
+     * @throws InterruptedException exception thrown whenever a threading error
+     * occurred
+     */
+    private void attachAssumptionsProbabilities(String spectrumKey, Identification identification, InputMap inputMap, SequenceMatchingPreferences sequenceMatchingPreferences)
+            throws SQLException, IOException, ClassNotFoundException, InterruptedException {
 
-                HashMap<Double, ArrayList<PSParameter>> pepToParameterMap = new HashMap<Double, ArrayList<PSParameter>>();
+        HashMap<Integer, HashMap<Double, ArrayList<SpectrumIdentificationAssumption>>> assumptionsMap = identification.getAssumptions(spectrumKey);
 
-                for (int searchEngine : assumptionsMap.keySet()) {
+        HashMap<Double, ArrayList<PSParameter>> pepToParameterMap = new HashMap<Double, ArrayList<PSParameter>>();
 
-                    HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> seMapping = assumptionsMap.get(searchEngine);
-                    ArrayList<Double> eValues = new ArrayList<Double>(seMapping.keySet());
-                    Collections.sort(eValues);
-                    double previousP = 0;
-                    ArrayList<PSParameter> previousAssumptionsParameters = new ArrayList<PSParameter>();
-                    SpectrumIdentificationAssumption previousAssumption = null;
+        for (int searchEngine : assumptionsMap.keySet()) {
 
-                    for (double eValue : eValues) {
+            HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> seMapping = assumptionsMap.get(searchEngine);
+            ArrayList<Double> eValues = new ArrayList<Double>(seMapping.keySet());
+            Collections.sort(eValues);
+            double previousP = 0;
+            ArrayList<PSParameter> previousAssumptionsParameters = new ArrayList<PSParameter>();
+            SpectrumIdentificationAssumption previousAssumption = null;
 
-                        for (SpectrumIdentificationAssumption assumption : seMapping.get(eValue)) {
-                            PSParameter psParameter = new PSParameter();
-                            psParameter = (PSParameter) assumption.getUrParam(psParameter);
-                            if (psParameter == null) {
-                                psParameter = new PSParameter();
-                            }
+            for (double eValue : eValues) {
 
-                            if (sequenceFactory.concatenatedTargetDecoy()) {
+                for (SpectrumIdentificationAssumption assumption : seMapping.get(eValue)) {
+                    PSParameter psParameter = new PSParameter();
+                    psParameter = (PSParameter) assumption.getUrParam(psParameter);
+                    if (psParameter == null) {
+                        psParameter = new PSParameter();
+                    }
 
-                                double newP = inputMap.getProbability(searchEngine, eValue);
-                                double pep = previousP;
+                    if (sequenceFactory.concatenatedTargetDecoy()) {
 
-                                if (newP > previousP) {
-                                    pep = newP;
-                                    previousP = newP;
-                                }
+                        double newP = inputMap.getProbability(searchEngine, eValue);
+                        double pep = previousP;
+
+                        if (newP > previousP) {
+                            pep = newP;
+                            previousP = newP;
+                        }
 
-                                psParameter.setSearchEngineProbability(pep);
+                        psParameter.setSearchEngineProbability(pep);
 
-                                ArrayList<PSParameter> pSParameters = pepToParameterMap.get(pep);
-                                if (pSParameters == null) {
-                                    pSParameters = new ArrayList<PSParameter>(1);
-                                    pepToParameterMap.put(pep, pSParameters);
+                        ArrayList<PSParameter> pSParameters = pepToParameterMap.get(pep);
+                        if (pSParameters == null) {
+                            pSParameters = new ArrayList<PSParameter>(1);
+                            pepToParameterMap.put(pep, pSParameters);
+                        }
+                        pSParameters.add(psParameter);
+
+                        if (previousAssumption != null) {
+                            boolean same = false;
+                            if ((assumption instanceof PeptideAssumption) && (previousAssumption instanceof PeptideAssumption)) {
+                                Peptide newPeptide = ((PeptideAssumption) assumption).getPeptide();
+                                Peptide previousPeptide = ((PeptideAssumption) previousAssumption).getPeptide();
+                                if (newPeptide.isSameSequenceAndModificationStatus(previousPeptide, sequenceMatchingPreferences)) {
+                                    same = true;
                                 }
-                                pSParameters.add(psParameter);
-
-                                if (previousAssumption != null) {
-                                    boolean same = false;
-                                    if ((assumption instanceof PeptideAssumption) && (previousAssumption instanceof PeptideAssumption)) {
-                                        Peptide newPeptide = ((PeptideAssumption) assumption).getPeptide();
-                                        Peptide previousPeptide = ((PeptideAssumption) previousAssumption).getPeptide();
-                                        if (newPeptide.isSameSequenceAndModificationStatus(previousPeptide, sequenceMatchingPreferences)) {
-                                            same = true;
-                                        }
-                                    } else if ((assumption instanceof TagAssumption) && (previousAssumption instanceof TagAssumption)) {
-                                        Tag newTag = ((TagAssumption) assumption).getTag();
-                                        Tag previousTag = ((TagAssumption) previousAssumption).getTag();
-                                        if (newTag.isSameSequenceAndModificationStatusAs(previousTag, sequenceMatchingPreferences)) {
-                                            same = true;
-                                        }
-                                    }
-
-                                    if (!same) {
-                                        for (PSParameter previousParameter : previousAssumptionsParameters) {
-                                            double deltaPEP = pep - previousParameter.getSearchEngineProbability();
-                                            previousParameter.setAlgorithmDeltaPEP(deltaPEP);
-                                        }
-                                        previousAssumptionsParameters.clear();
-                                    }
+                            } else if ((assumption instanceof TagAssumption) && (previousAssumption instanceof TagAssumption)) {
+                                Tag newTag = ((TagAssumption) assumption).getTag();
+                                Tag previousTag = ((TagAssumption) previousAssumption).getTag();
+                                if (newTag.isSameSequenceAndModificationStatusAs(previousTag, sequenceMatchingPreferences)) {
+                                    same = true;
                                 }
-                                previousAssumption = assumption;
-                                previousAssumptionsParameters.add(psParameter);
-
-                            } else {
-                                psParameter.setSearchEngineProbability(1.0);
                             }
 
-                            assumption.addUrParam(psParameter);
+                            if (!same) {
+                                for (PSParameter previousParameter : previousAssumptionsParameters) {
+                                    double deltaPEP = pep - previousParameter.getSearchEngineProbability();
+                                    previousParameter.setAlgorithmDeltaPEP(deltaPEP);
+                                }
+                                previousAssumptionsParameters.clear();
+                            }
                         }
-                    }
+                        previousAssumption = assumption;
+                        previousAssumptionsParameters.add(psParameter);
 
-                    for (PSParameter previousParameter : previousAssumptionsParameters) {
-                        double deltaPEP = 1 - previousParameter.getSearchEngineProbability();
-                        previousParameter.setAlgorithmDeltaPEP(deltaPEP);
+                    } else {
+                        psParameter.setSearchEngineProbability(1.0);
                     }
-                }
 
-                // Compute the delta pep score accross all search engines
-                Double previousPEP = null;
-                ArrayList<PSParameter> previousParameters = new ArrayList<PSParameter>();
-                ArrayList<Double> peps = new ArrayList<Double>(pepToParameterMap.keySet());
-                Collections.sort(peps);
-                for (double pep : peps) {
-                    if (previousPEP != null) {
-                        for (PSParameter previousParameter : previousParameters) {
-                            double delta = pep - previousPEP;
-                            previousParameter.setDeltaPEP(delta);
-                        }
-                    }
-                    previousParameters = pepToParameterMap.get(pep);
-                    previousPEP = pep;
-                }
-                for (PSParameter previousParameter : previousParameters) {
-                    double delta = 1 - previousParameter.getSearchEngineProbability();
-                    previousParameter.setDeltaPEP(delta);
+                    assumption.addUrParam(psParameter);
                 }
+            }
 
-                identification.updateAssumptions(spectrumKey, assumptionsMap);
+            for (PSParameter previousParameter : previousAssumptionsParameters) {
+                double deltaPEP = 1 - previousParameter.getSearchEngineProbability();
+                previousParameter.setAlgorithmDeltaPEP(deltaPEP);
+            }
+        }
 
-                if (waitingHandler != null) {
-                    waitingHandler.increaseSecondaryProgressCounter();
-                    if (waitingHandler.isRunCanceled()) {
-                        return;
-                    }
+        // Compute the delta pep score accross all search engines
+        Double previousPEP = null;
+        ArrayList<PSParameter> previousParameters = new ArrayList<PSParameter>();
+        ArrayList<Double> peps = new ArrayList<Double>(pepToParameterMap.keySet());
+        Collections.sort(peps);
+        for (double pep : peps) {
+            if (previousPEP != null) {
+                for (PSParameter previousParameter : previousParameters) {
+                    double delta = pep - previousPEP;
+                    previousParameter.setDeltaPEP(delta);
                 }
             }
+            previousParameters = pepToParameterMap.get(pep);
+            previousPEP = pep;
         }
-
-        if (waitingHandler != null) {
-            waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+        for (PSParameter previousParameter : previousParameters) {
+            double delta = 1 - previousParameter.getSearchEngineProbability();
+            previousParameter.setDeltaPEP(delta);
         }
+
+        identification.updateAssumptions(spectrumKey, assumptionsMap);
     }
 
     /**
      * Attaches the spectrum posterior error probabilities to the spectrum
-     * matches.
+     * matches and builds the peptide and protein matches. The probabilities
+     * are attached using multiple threads. The spectrum keys are then handed
+     * over through a bounded queue to the current thread which builds the
+     * peptides and proteins. The building stays on a single thread:
+     * Identification.buildPeptidesAndProteins adds the new keys to the
+     * collections of peptide and protein keys of the identification, which
+     * are not thread safe, and peptides of different spectra update the same
+     * peptide and protein matches. The attachment of the probabilities thus
+     * overlaps with the building but the building itself is not accelerated
+     * by the threads.
      *
+     * @param identification the identification containing the matches
+     * @param psmMap the PSM map where to look up the probabilities
      * @param sequenceMatchingPreferences the sequence matching preferences
+     * @param processingPreferences the processing preferences
      * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler handler for exceptions
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * reading or writing the matches
      */
-    private void attachSpectrumProbabilitiesAndBuildPeptidesAndProteins(SequenceMatchingPreferences sequenceMatchingPreferences, WaitingHandler waitingHandler)
-            throws SQLException, IOException, ClassNotFoundException, IllegalArgumentException, Exception {
+    public static void attachSpectrumProbabilitiesAndBuildPeptidesAndProteins(Identification identification, PsmSpecificMap psmMap,
+            SequenceMatchingPreferences sequenceMatchingPreferences, ProcessingPreferences processingPreferences,
+            WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws Exception {
 
         waitingHandler.setWaitingText("Attaching Spectrum Probabilities - Building Peptides and Proteins. Please Wait...");
 
-        Identification identification = experiment.getAnalysisSet(sample).getProteomicAnalysis(replicateNumber).getIdentification(IdentificationMethod.MS2_IDENTIFICATION);
-
         waitingHandler.setSecondaryProgressCounterIndeterminate(false);
         waitingHandler.setMaxSecondaryProgressCounter(identification.getSpectrumIdentificationSize());
 
@@ -818,35 +1071,141 @@ public class PeptideShaker {
         ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
         parameters.add(psParameter);
 
+        int nThreads = processingPreferences.getnThreads();
+
         for (String spectrumFileName : identification.getSpectrumFiles()) {
 
+            ProcessingStage stage = getProcessingScheduler(processingPreferences).newStage("Spectrum probabilities attachment", waitingHandler);
+            ArrayBlockingQueue<String> spectrumKeysQueue = new ArrayBlockingQueue<String>(BUILDING_QUEUE_SIZE);
+
             PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, parameters, false, waitingHandler);
 
-            while (psmIterator.hasNext()) {
+            int nThreadsSubmitted = 0;
+            for (int i = 1; i <= nThreads; i++) {
+                SpectrumProbabilitiesRunnable runnable = new SpectrumProbabilitiesRunnable(psmIterator, identification, psmMap, spectrumKeysQueue, waitingHandler, exceptionHandler);
+                if (!stage.submit(runnable)) {
+                    return;
+                }
+                nThreadsSubmitted++;
+            }
+
+            int nThreadsCompleted = 0;
+            try {
+                while (nThreadsCompleted < nThreadsSubmitted) {
+                    String spectrumKey = spectrumKeysQueue.poll(1, TimeUnit.SECONDS);
+                    if (waitingHandler.isRunCanceled()) {
+                        stage.cancel();
+                        return;
+                    }
+                    if (spectrumKey == null) {
+                        continue;
+                    }
+                    if (spectrumKey.length() == 0) {
+                        nThreadsCompleted++;
+                    } else {
+                        identification.buildPeptidesAndProteins(spectrumKey, sequenceMatchingPreferences);
+                        stage.increaseProcessedCount(1);
+                        waitingHandler.increaseSecondaryProgressCounter();
+                    }
+                }
+            } catch (Exception e) {
+                stage.cancel();
+                throw e;
+            }
+
+            if (!stage.awaitCompletion()) {
+                return;
+            }
+        }
+
+        psmMap.setProbabilitiesApplied();
 
-                SpectrumMatch spectrumMatch = psmIterator.next();
-                String spectrumKey = spectrumMatch.getKey();
-                psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, psParameter);
+        waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+    }
 
-                if (sequenceFactory.concatenatedTargetDecoy()) {
+    /**
+     * Updates the spectrum posterior error probabilities which changed since
+     * they were last attached to the spectrum matches. The PSM parameters are
+     * screened first and only the PSMs whose score is in the range of scores
+     * affected by the changes in the PSM maps are loaded. Files without
+     * changes in their maps are skipped.
+     *
+     * @param identification the identification object containing the
+     * identification matches
+     * @param sequenceMatchingPreferences the sequence matching preferences
+     * @param processingPreferences the processing preferences
+     * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler handler for exceptions
+     *
+     * @return the keys of the peptides of the PSMs whose probability changed
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * updating the matches
+     */
+    private Set<String> updatePsmProbabilities(Identification identification, SequenceMatchingPreferences sequenceMatchingPreferences, ProcessingPreferences processingPreferences,
+            WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws Exception {
+
+        waitingHandler.setWaitingText("Updating Spectrum Probabilities. Please Wait...");
+
+        waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+        waitingHandler.setMaxSecondaryProgressCounter(identification.getSpectrumIdentificationSize());
+
+        Set<String> peptideKeys = Collections.synchronizedSet(new HashSet<String>());
+
+        if (sequenceFactory.concatenatedTargetDecoy()) {
+
+            PsmSpecificMap psmMap = matchesValidator.getPsmMap();
+            PSParameter psParameter = new PSParameter();
+            ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
+            parameters.add(psParameter);
+
+            for (String spectrumFileName : identification.getSpectrumFiles()) {
+
+                HashSet<String> fileKeys = identification.getSpectrumIdentification(spectrumFileName);
+                if (!psmMap.hasChangedProbabilities(spectrumFileName)) {
+                    waitingHandler.increaseSecondaryProgressCounter(fileKeys.size());
+                    continue;
+                }
+
+                // screen the PSM parameters before loading the matches
+                identification.loadSpectrumMatchParameters(spectrumFileName, psParameter, waitingHandler, false);
+                ArrayList<String> changedKeys = new ArrayList<String>();
+                for (String spectrumKey : fileKeys) {
+                    psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, psParameter);
                     Integer charge = new Integer(psParameter.getSpecificMapKey());
-                    String fileName = Spectrum.getSpectrumFile(spectrumKey);
-                    psParameter.setPsmProbability(matchesValidator.getPsmMap().getProbability(fileName, charge, psParameter.getPsmProbabilityScore()));
-                } else {
-                    psParameter.setPsmProbability(1.0);
+                    if (psmMap.isProbabilityChanged(spectrumFileName, charge, psParameter.getPsmProbabilityScore())) {
+                        changedKeys.add(spectrumKey);
+                    } else {
+                        waitingHandler.increaseSecondaryProgressCounter();
+                    }
+                    if (waitingHandler.isRunCanceled()) {
+                        return peptideKeys;
+                    }
+                }
+                if (changedKeys.isEmpty()) {
+                    continue;
                 }
 
-                identification.updateSpectrumMatchParameter(spectrumKey, psParameter);
-                identification.buildPeptidesAndProteins(spectrumKey, sequenceMatchingPreferences);
+                ProcessingStage stage = getProcessingScheduler(processingPreferences).newStage("Spectrum probabilities update", waitingHandler);
+                PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, changedKeys, parameters, false, waitingHandler);
 
-                waitingHandler.increaseSecondaryProgressCounter();
-                if (waitingHandler.isRunCanceled()) {
-                    return;
+                for (int i = 1; i <= processingPreferences.getnThreads(); i++) {
+                    PsmProbabilitiesUpdateRunnable runnable = new PsmProbabilitiesUpdateRunnable(psmIterator, identification, sequenceMatchingPreferences, peptideKeys, waitingHandler, exceptionHandler);
+                    if (!stage.submit(runnable)) {
+                        return peptideKeys;
+                    }
+                }
+                if (!stage.awaitCompletion()) {
+                    return peptideKeys;
                 }
             }
         }
 
+        matchesValidator.getPsmMap().setProbabilitiesApplied();
+
         waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+
+        return peptideKeys;
     }
 
     /**
@@ -1091,4 +1450,270 @@ public class PeptideShaker {
         File file = new File(folder, PEPTIDESHAKER_CONFIGURATION_FILE);
         return new ConfigurationFile(file);
     }
+
+    /**
+     * Runnable attaching the spectrum posterior error probabilities to the
+     * peptide assumptions.
+     *
+     * @author Marc Vaudel
+     */
+    private class AssumptionsProbabilitiesRunnable implements Runnable {
+
+        /**
+         * An iterator for the PSMs.
+         */
+        private PsmIterator psmIterator;
+        /**
+         * The identification.
+         */
+        private Identification identification;
+        /**
+         * The input map.
+         */
+        private InputMap inputMap;
+        /**
+         * The sequence matching preferences.
+         */
+        private SequenceMatchingPreferences sequenceMatchingPreferences;
+        /**
+         * The waiting handler.
+         */
+        private WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private ExceptionHandler exceptionHandler;
+
+        /**
+         * Constructor.
+         *
+         * @param psmIterator a PSM iterator
+         * @param identification the identification containing the matches
+         * @param inputMap map of the input scores
+         * @param sequenceMatchingPreferences the sequence matching preferences
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public AssumptionsProbabilitiesRunnable(PsmIterator psmIterator, Identification identification, InputMap inputMap,
+                SequenceMatchingPreferences sequenceMatchingPreferences, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.psmIterator = psmIterator;
+            this.identification = identification;
+            this.inputMap = inputMap;
+            this.sequenceMatchingPreferences = sequenceMatchingPreferences;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (psmIterator.hasNext() && (waitingHandler == null || !waitingHandler.isRunCanceled())) {
+                    SpectrumMatch spectrumMatch = psmIterator.next();
+                    if (spectrumMatch != null) {
+                        attachAssumptionsProbabilities(spectrumMatch.getKey(), identification, inputMap, sequenceMatchingPreferences);
+                    }
+                    if (waitingHandler != null) {
+                        waitingHandler.increaseSecondaryProgressCounter();
+                    }
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                if (waitingHandler != null) {
+                    waitingHandler.setRunCanceled();
+                }
+            }
+        }
+    }
+
+    /**
+     * Runnable attaching the spectrum posterior error probabilities to the
+     * spectrum matches. The keys of the processed spectra are put in a queue
+     * for the building of peptides and proteins, an empty key is put when the
+     * runnable is done.
+     *
+     * @author Marc Vaudel
+     */
+    private static class SpectrumProbabilitiesRunnable implements Runnable {
+
+        /**
+         * An iterator for the PSMs.
+         */
+        private PsmIterator psmIterator;
+        /**
+         * The identification.
+         */
+        private Identification identification;
+        /**
+         * The PSM map where to look up the probabilities.
+         */
+        private PsmSpecificMap psmMap;
+        /**
+         * The queue of keys of the spectra processed.
+         */
+        private ArrayBlockingQueue<String> spectrumKeysQueue;
+        /**
+         * The waiting handler.
+         */
+        private WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private ExceptionHandler exceptionHandler;
+
+        /**
+         * Constructor.
+         *
+         * @param psmIterator a PSM iterator
+         * @param identification the identification containing the matches
+         * @param psmMap the PSM map where to look up the probabilities
+         * @param spectrumKeysQueue the queue where to put the keys of the
+         * processed spectra
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public SpectrumProbabilitiesRunnable(PsmIterator psmIterator, Identification identification, PsmSpecificMap psmMap, ArrayBlockingQueue<String> spectrumKeysQueue,
+                WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.psmIterator = psmIterator;
+            this.identification = identification;
+            this.psmMap = psmMap;
+            this.spectrumKeysQueue = spectrumKeysQueue;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                PSParameter psParameter = new PSParameter();
+                boolean concatenatedTargetDecoy = SequenceFactory.getInstance().concatenatedTargetDecoy();
+                while (psmIterator.hasNext() && !waitingHandler.isRunCanceled()) {
+                    SpectrumMatch spectrumMatch = psmIterator.next();
+                    if (spectrumMatch != null) {
+
+                        String spectrumKey = spectrumMatch.getKey();
+                        psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, psParameter);
+
+                        if (concatenatedTargetDecoy) {
+                            Integer charge = new Integer(psParameter.getSpecificMapKey());
+                            String fileName = Spectrum.getSpectrumFile(spectrumKey);
+                            psParameter.setPsmProbability(psmMap.getProbability(fileName, charge, psParameter.getPsmProbabilityScore()));
+                        } else {
+                            psParameter.setPsmProbability(1.0);
+                        }
+
+                        identification.updateSpectrumMatchParameter(spectrumKey, psParameter);
+                        spectrumKeysQueue.put(spectrumKey);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // the run was canceled
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                waitingHandler.setRunCanceled();
+            } finally {
+                try {
+                    while (!spectrumKeysQueue.offer("", 1, TimeUnit.SECONDS)) {
+                        if (waitingHandler.isRunCanceled()) {
+                            break;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // the run was canceled
+                }
+            }
+        }
+    }
+
+    /**
+     * Runnable updating the spectrum posterior error probabilities of the
+     * spectrum matches. The keys of the peptides of the PSMs whose probability
+     * changed are collected.
+     *
+     * @author Marc Vaudel
+     */
+    private class PsmProbabilitiesUpdateRunnable implements Runnable {
+
+        /**
+         * An iterator for the PSMs.
+         */
+        private PsmIterator psmIterator;
+        /**
+         * The identification.
+         */
+        private Identification identification;
+        /**
+         * The sequence matching preferences.
+         */
+        private SequenceMatchingPreferences sequenceMatchingPreferences;
+        /**
+         * The keys of the peptides of the PSMs whose probability changed.
+         */
+        private Set<String> peptideKeys;
+        /**
+         * The waiting handler.
+         */
+        private WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private ExceptionHandler exceptionHandler;
+
+        /**
+         * Constructor.
+         *
+         * @param psmIterator a PSM iterator
+         * @param identification the identification containing the matches
+         * @param sequenceMatchingPreferences the sequence matching preferences
+         * @param peptideKeys the set where to put the keys of the peptides of
+         * the PSMs whose probability changed
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public PsmProbabilitiesUpdateRunnable(PsmIterator psmIterator, Identification identification, SequenceMatchingPreferences sequenceMatchingPreferences,
+                Set<String> peptideKeys, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.psmIterator = psmIterator;
+            this.identification = identification;
+            this.sequenceMatchingPreferences = sequenceMatchingPreferences;
+            this.peptideKeys = peptideKeys;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                PsmSpecificMap psmMap = matchesValidator.getPsmMap();
+                PSParameter psParameter = new PSParameter();
+                while (psmIterator.hasNext() && !waitingHandler.isRunCanceled()) {
+                    SpectrumMatch spectrumMatch = psmIterator.next();
+                    if (spectrumMatch != null) {
+
+                        String spectrumKey = spectrumMatch.getKey();
+                        psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, psParameter);
+                        Integer charge = new Integer(psParameter.getSpecificMapKey());
+                        String fileName = Spectrum.getSpectrumFile(spectrumKey);
+                        double score = psParameter.getPsmProbabilityScore();
+
+                        if (psmMap.isProbabilityChanged(fileName, charge, score)) {
+                            double probability = psmMap.getProbability(fileName, charge, score);
+                            if (probability != psParameter.getPsmProbability()) {
+                                psParameter.setPsmProbability(probability);
+                                identification.updateSpectrumMatchParameter(spectrumKey, psParameter);
+                                if (spectrumMatch.getBestPeptideAssumption() != null) {
+                                    peptideKeys.add(spectrumMatch.getBestPeptideAssumption().getPeptide().getMatchingKey(sequenceMatchingPreferences));
+                                }
+                            }
+                        }
+                    }
+                    waitingHandler.increaseSecondaryProgressCounter();
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                waitingHandler.setRunCanceled();
+            }
+        }
+    }
 }
@@ -1,5 +1,6 @@
 package eu.isas.peptideshaker.cmd;
 
+import com.compomics.util.exceptions.exception_handlers.CommandLineExceptionHandler;
 import com.compomics.util.experiment.ShotgunProtocol;
 import com.compomics.util.experiment.biology.genes.GeneMaps;
 import com.compomics.util.experiment.identification.Identification;
@@ -9,9 +10,12 @@ import com.compomics.util.waiting.WaitingHandler;
 import eu.isas.peptideshaker.export.PSExportFactory;
 import com.compomics.util.io.export.ExportScheme;
 import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.preferences.ProcessingPreferences;
 import com.compomics.util.preferences.SequenceMatchingPreferences;
 import eu.isas.peptideshaker.PeptideShaker;
 import eu.isas.peptideshaker.export.MzIdentMLExport;
+import eu.isas.peptideshaker.export.ReportFormat;
+import eu.isas.peptideshaker.export.columnar.ColumnarWriter;
 import eu.isas.peptideshaker.followup.FastaExport;
 import eu.isas.peptideshaker.followup.InclusionListExport;
 import eu.isas.peptideshaker.followup.TrainingExport;
@@ -45,6 +49,7 @@ public class CLIExportMethods {
      * @param followUpCLIInputBean the follow up input bean
      * @param identification the identification
      * @param identificationParameters the identification parameters
+     * @param processingPreferences the processing preferences
      * @param waitingHandler a waiting handler to display progress
      *
      * @throws IOException exception thrown whenever an IO exception occurred
@@ -59,7 +64,7 @@ public class CLIExportMethods {
      * occurred while reading an mzML file
      */
     public static void recalibrateSpectra(FollowUpCLIInputBean followUpCLIInputBean, Identification identification,
-            IdentificationParameters identificationParameters, WaitingHandler waitingHandler) throws IOException, MzMLUnmarshallerException, SQLException, ClassNotFoundException, InterruptedException {
+            IdentificationParameters identificationParameters, ProcessingPreferences processingPreferences, WaitingHandler waitingHandler) throws IOException, MzMLUnmarshallerException, SQLException, ClassNotFoundException, InterruptedException {
         File recalibrationFolder = followUpCLIInputBean.getRecalibrationFolder();
         if (!recalibrationFolder.exists()) {
             recalibrationFolder.mkdir();
@@ -71,7 +76,7 @@ public class CLIExportMethods {
         } else if (followUpCLIInputBean.getRecalibrationMode() == 2) {
             ms1 = false;
         }
-        RecalibrationExporter.writeRecalibratedSpectra(ms1, ms2, recalibrationFolder, identification, identificationParameters, waitingHandler);
+        RecalibrationExporter.writeRecalibratedSpectra(ms1, ms2, recalibrationFolder, identification, identificationParameters, processingPreferences, waitingHandler, new CommandLineExceptionHandler());
     }
 
     /**
@@ -191,6 +196,7 @@ public class CLIExportMethods {
      * @param followUpCLIInputBean the follow up input bean
      * @param identification the identification
      * @param identificationParameters the identification parameters
+     * @param processingPreferences the processing preferences
      * @param waitingHandler a waiting handler to display progress
      *
      * @throws IOException exception thrown whenever an IO exception occurred
@@ -204,12 +210,13 @@ public class CLIExportMethods {
      * @throws MzMLUnmarshallerException exception thrown whenever an exception
      * occurred while reading an mzML file
      */
-    public static void exportPepnovoTrainingFiles(FollowUpCLIInputBean followUpCLIInputBean, Identification identification, IdentificationParameters identificationParameters, WaitingHandler waitingHandler) throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
+    public static void exportPepnovoTrainingFiles(FollowUpCLIInputBean followUpCLIInputBean, Identification identification, IdentificationParameters identificationParameters,
+            ProcessingPreferences processingPreferences, WaitingHandler waitingHandler) throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
         File destinationFolder = followUpCLIInputBean.getPepnovoTrainingFolder();
         if (!destinationFolder.exists()) {
             destinationFolder.mkdir();
         }
-        TrainingExport.exportPepnovoTrainingFiles(destinationFolder, identification, identificationParameters, followUpCLIInputBean.getPepnovoTrainingFDR(), followUpCLIInputBean.getPepnovoTrainingFNR(), followUpCLIInputBean.isPepnovoTrainingRecalibrate(), waitingHandler);
+        TrainingExport.exportPepnovoTrainingFiles(destinationFolder, identification, identificationParameters, followUpCLIInputBean.getPepnovoTrainingFDR(), followUpCLIInputBean.getPepnovoTrainingFNR(), followUpCLIInputBean.isPepnovoTrainingRecalibrate(), processingPreferences, waitingHandler, new CommandLineExceptionHandler());
     }
 
     /**
@@ -265,6 +272,7 @@ public class CLIExportMethods {
      * @param nSurroundingAA the number of amino acids to export on the side of
      * peptide sequences
      * @param spectrumCountingPreferences the spectrum counting preferences
+     * @param processingPreferences the processing preferences
      * @param waitingHandler waiting handler displaying feedback to the user
      *
      * @throws IOException exception thrown whenever an IO exception occurred
@@ -283,18 +291,31 @@ public class CLIExportMethods {
      */
     public static void exportReport(ReportCLIInputBean reportCLIInputBean, String reportType, String experiment, String sample, int replicateNumber,
             ProjectDetails projectDetails, Identification identification, GeneMaps geneMaps, IdentificationFeaturesGenerator identificationFeaturesGenerator,
-            IdentificationParameters identificationParameters, int nSurroundingAA, SpectrumCountingPreferences spectrumCountingPreferences, WaitingHandler waitingHandler)
+            IdentificationParameters identificationParameters, int nSurroundingAA, SpectrumCountingPreferences spectrumCountingPreferences,
+            ProcessingPreferences processingPreferences, WaitingHandler waitingHandler)
             throws IOException, SQLException, ClassNotFoundException,
             InterruptedException, MzMLUnmarshallerException, MathException {
 
         PSExportFactory exportFactory = PSExportFactory.getInstance();
         ExportScheme exportScheme = exportFactory.getExportScheme(reportType);
         String reportName = reportType.replaceAll(" ", "_");
-        File reportFile = new File(reportCLIInputBean.getReportOutputFolder(), PSExportFactory.getDefaultReportName(experiment, sample, replicateNumber, reportName));
+        ReportFormat reportFormat = reportCLIInputBean.getReportFormat();
+        File reportFile = new File(reportCLIInputBean.getReportOutputFolder(), PSExportFactory.getDefaultReportName(experiment, sample, replicateNumber, reportName, reportFormat));
 
-        //@TODO: allow format selection
-        PSExportFactory.writeExport(exportScheme, reportFile, ExportFormat.text, experiment, sample, replicateNumber, projectDetails, identification, identificationFeaturesGenerator, geneMaps,
-                null, null, null, null, nSurroundingAA, identificationParameters, spectrumCountingPreferences, waitingHandler);
+        switch (reportFormat) {
+            case text:
+                PSExportFactory.writeExport(exportScheme, reportFile, ExportFormat.text, experiment, sample, replicateNumber, projectDetails, identification, identificationFeaturesGenerator, geneMaps,
+                        null, null, null, null, nSurroundingAA, identificationParameters, spectrumCountingPreferences, processingPreferences, waitingHandler,
+                        new CommandLineExceptionHandler());
+                break;
+            case columnar:
+                PSExportFactory.writeExport(exportScheme, new ColumnarWriter(reportFile), experiment, sample, replicateNumber, projectDetails, identification, identificationFeaturesGenerator, geneMaps,
+                        null, null, null, null, nSurroundingAA, identificationParameters, spectrumCountingPreferences, processingPreferences, waitingHandler,
+                        new CommandLineExceptionHandler());
+                break;
+            default:
+                throw new UnsupportedOperationException("Report format " + reportFormat + " not implemented.");
+        }
     }
 
     /**
@@ -355,7 +376,7 @@ public class CLIExportMethods {
         MzIdentMLExport mzIdentMLExport = new MzIdentMLExport(PeptideShaker.getVersion(), cpsParent.getIdentification(), cpsParent.getProjectDetails(),
                 cpsParent.getShotgunProtocol(), cpsParent.getIdentificationParameters(),
                 cpsParent.getSpectrumCountingPreferences(), cpsParent.getIdentificationFeaturesGenerator(),
-                mzidCLIInputBean.getOutputFile(), mzidCLIInputBean.getIncludeProteinSequences(), waitingHandler);
+                mzidCLIInputBean.getOutputFile(), mzidCLIInputBean.getIncludeProteinSequences(), cpsParent.getProcessingPreferences(), waitingHandler, new CommandLineExceptionHandler());
         mzIdentMLExport.createMzIdentMLFile(false);
     }
 }
@@ -120,11 +120,11 @@ public class FollowUpCLI extends CpsParent {
         try {
             if (followUpCLIInputBean.getZipFile() != null) {
                 inputFilePath = followUpCLIInputBean.getZipFile().getAbsolutePath();
-                loadCpsFromZipFile(followUpCLIInputBean.getZipFile(), PeptideShaker.getMatchesFolder(), waitingHandler);
+                loadCpsFromZipFile(followUpCLIInputBean.getZipFile(), PeptideShaker.getMatchesFolder(), waitingHandler, true);
             } else if (followUpCLIInputBean.getCpsFile() != null) {
                 inputFilePath = followUpCLIInputBean.getCpsFile().getAbsolutePath();
                 cpsFile = followUpCLIInputBean.getCpsFile();
-                loadCpsFile(PeptideShaker.getMatchesFolder(), waitingHandler);
+                loadCpsFile(PeptideShaker.getMatchesFolder(), waitingHandler, true);
             } else {
                 waitingHandler.appendReport("PeptideShaker project input missing.", true, true);
                 return 1;
@@ -134,10 +134,16 @@ public class FollowUpCLI extends CpsParent {
                     + "It looks like another instance of PeptideShaker is still connected to the file. "
                     + "Please close all instances of PeptideShaker and try again.", true, true);
             e.printStackTrace();
+            try {
+                cancelProjectLoading();
+            } catch (InterruptedException e2) {
+                // Ignore
+            }
         } catch (Exception e) {
             waitingHandler.appendReport("An error occurred while reading: " + inputFilePath + ".", true, true);
             e.printStackTrace();
             try {
+                cancelProjectLoading();
                 PeptideShakerCLI.closePeptideShaker(identification);
             } catch (Exception e2) {
                 waitingHandler.appendReport("An error occurred while closing PeptideShaker.", true, true);
@@ -151,6 +157,7 @@ public class FollowUpCLI extends CpsParent {
             if (!loadFastaFile(waitingHandler)) {
                 waitingHandler.appendReport("The FASTA file was not found. Please provide its location in the command line parameters.", true, true);
                 try {
+                    cancelProjectLoading();
                     PeptideShakerCLI.closePeptideShaker(identification);
                 } catch (Exception e2) {
                     waitingHandler.appendReport("An error occurred while closing PeptideShaker.", true, true);
@@ -163,6 +170,7 @@ public class FollowUpCLI extends CpsParent {
             waitingHandler.appendReport("An error occurred while loading the fasta file.", true, true);
             e.printStackTrace();
             try {
+                cancelProjectLoading();
                 PeptideShakerCLI.closePeptideShaker(identification);
             } catch (Exception e2) {
                 waitingHandler.appendReport("An error occurred while closing PeptideShaker.", true, true);
@@ -180,6 +188,7 @@ public class FollowUpCLI extends CpsParent {
                     waitingHandler.appendReport("The spectrum file was not found. Please provide its location in the command line parameters", true, true);
                 }
                 try {
+                    cancelProjectLoading();
                     PeptideShakerCLI.closePeptideShaker(identification);
                 } catch (Exception e2) {
                     waitingHandler.appendReport("An error occurred while closing PeptideShaker.", true, true);
@@ -190,6 +199,22 @@ public class FollowUpCLI extends CpsParent {
         } catch (Exception e) {
             waitingHandler.appendReport("An error occurred while loading the spectrum file(s).", true, true);
             e.printStackTrace();
+            try {
+                cancelProjectLoading();
+                PeptideShakerCLI.closePeptideShaker(identification);
+            } catch (Exception e2) {
+                waitingHandler.appendReport("An error occurred while closing PeptideShaker.", true, true);
+                e2.printStackTrace();
+            }
+            return 1;
+        }
+
+        // wait for the project database to be loaded
+        try {
+            awaitProjectLoading();
+        } catch (Exception e) {
+            waitingHandler.appendReport("An error occurred while reading: " + inputFilePath + ".", true, true);
+            e.printStackTrace();
             try {
                 PeptideShakerCLI.closePeptideShaker(identification);
             } catch (Exception e2) {
@@ -208,7 +233,7 @@ public class FollowUpCLI extends CpsParent {
         // recalibrate spectra
         if (followUpCLIInputBean.recalibrationNeeded()) {
             try {
-                CLIExportMethods.recalibrateSpectra(followUpCLIInputBean, identification, identificationParameters, waitingHandler);
+                CLIExportMethods.recalibrateSpectra(followUpCLIInputBean, identification, identificationParameters, processingPreferences, waitingHandler);
                 waitingHandler.appendReport("Recalibration process completed.", true, true);
             } catch (Exception e) {
                 waitingHandler.appendReport("An error occurred while recalibrating the spectra.", true, true);
@@ -268,7 +293,7 @@ public class FollowUpCLI extends CpsParent {
         // PepNovo training export
         if (followUpCLIInputBean.pepnovoTrainingExportNeeded()) {
             try {
-                CLIExportMethods.exportPepnovoTrainingFiles(followUpCLIInputBean, identification, identificationParameters, waitingHandler);
+                CLIExportMethods.exportPepnovoTrainingFiles(followUpCLIInputBean, identification, identificationParameters, processingPreferences, waitingHandler);
                 waitingHandler.appendReport("PepNovo training export completed.", true, true);
             } catch (Exception e) {
                 waitingHandler.appendReport("An error occurred while exporting the PepNovo training file.", true, true);
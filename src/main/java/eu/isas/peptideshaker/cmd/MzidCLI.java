@@ -120,11 +120,11 @@ public class MzidCLI extends CpsParent {
         try {
             if (mzidCLIInputBean.getZipFile() != null) {
                 inputFilePath = mzidCLIInputBean.getZipFile().getAbsolutePath();
-                loadCpsFromZipFile(mzidCLIInputBean.getZipFile(), PeptideShaker.getMatchesFolder(), waitingHandler);
+                loadCpsFromZipFile(mzidCLIInputBean.getZipFile(), PeptideShaker.getMatchesFolder(), waitingHandler, true);
             } else if (mzidCLIInputBean.getCpsFile() != null) {
                 inputFilePath = mzidCLIInputBean.getCpsFile().getAbsolutePath();
                 cpsFile = mzidCLIInputBean.getCpsFile();
-                loadCpsFile(PeptideShaker.getMatchesFolder(), waitingHandler);
+                loadCpsFile(PeptideShaker.getMatchesFolder(), waitingHandler, true);
             } else {
                 waitingHandler.appendReport("PeptideShaker project input missing.", true, true);
                 return 1;
@@ -134,10 +134,16 @@ public class MzidCLI extends CpsParent {
                     + "It looks like another instance of PeptideShaker is still connected to the file. "
                     + "Please close all instances of PeptideShaker and try again.", true, true);
             e.printStackTrace();
+            try {
+                cancelProjectLoading();
+            } catch (InterruptedException e2) {
+                // Ignore
+            }
         } catch (Exception e) {
             waitingHandler.appendReport("An error occurred while reading: " + inputFilePath + ".", true, true);
             e.printStackTrace();
             try {
+                cancelProjectLoading();
                 PeptideShakerCLI.closePeptideShaker(identification);
             } catch (Exception e2) {
                 waitingHandler.appendReport("An error occurred while closing PeptideShaker.", true, true);
@@ -151,6 +157,7 @@ public class MzidCLI extends CpsParent {
             if (!loadFastaFile(waitingHandler)) {
                 waitingHandler.appendReport("The FASTA file was not found. Please move the FASTA file to the same folder as the cpsx file and make sure to provide the complete path to the cpsx file.", true, true);
                 try {
+                    cancelProjectLoading();
                     PeptideShakerCLI.closePeptideShaker(identification);
                 } catch (Exception e2) {
                     waitingHandler.appendReport("An error occurred while closing PeptideShaker.", true, true);
@@ -163,6 +170,7 @@ public class MzidCLI extends CpsParent {
             waitingHandler.appendReport("An error occurred while loading the FASTA file.", true, true);
             e.printStackTrace();
             try {
+                cancelProjectLoading();
                 PeptideShakerCLI.closePeptideShaker(identification);
             } catch (Exception e2) {
                 waitingHandler.appendReport("An error occurred while closing PeptideShaker.", true, true);
@@ -180,6 +188,7 @@ public class MzidCLI extends CpsParent {
                     waitingHandler.appendReport("The spectrum file was not found. Please provide its location in the command line parameters.", true, true);
                 }
                 try {
+                    cancelProjectLoading();
                     PeptideShakerCLI.closePeptideShaker(identification);
                 } catch (Exception e2) {
                     waitingHandler.appendReport("An error occurred while closing PeptideShaker.", true, true);
@@ -190,6 +199,22 @@ public class MzidCLI extends CpsParent {
         } catch (Exception e) {
             waitingHandler.appendReport("An error occurred while loading the spectrum file(s).", true, true);
             e.printStackTrace();
+            try {
+                cancelProjectLoading();
+                PeptideShakerCLI.closePeptideShaker(identification);
+            } catch (Exception e2) {
+                waitingHandler.appendReport("An error occurred while closing PeptideShaker.", true, true);
+                e2.printStackTrace();
+            }
+            return 1;
+        }
+
+        // wait for the project database to be loaded
+        try {
+            awaitProjectLoading();
+        } catch (Exception e) {
+            waitingHandler.appendReport("An error occurred while reading: " + inputFilePath + ".", true, true);
+            e.printStackTrace();
             try {
                 PeptideShakerCLI.closePeptideShaker(identification);
             } catch (Exception e2) {
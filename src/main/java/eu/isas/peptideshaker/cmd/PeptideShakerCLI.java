@@ -38,6 +38,7 @@ import eu.isas.peptideshaker.preferences.PeptideShakerPathPreferences;
 import eu.isas.peptideshaker.utils.CpsParent;
 import eu.isas.peptideshaker.preferences.ProjectDetails;
 import eu.isas.peptideshaker.preferences.SpectrumCountingPreferences;
+import eu.isas.peptideshaker.utils.ProcessingMetrics;
 import eu.isas.peptideshaker.utils.Properties;
 import eu.isas.peptideshaker.utils.PsZipUtils;
 import eu.isas.peptideshaker.utils.Tips;
@@ -84,6 +85,10 @@ public class PeptideShakerCLI extends CpsParent implements Callable {
      * The utilities user preferences.
      */
     private UtilitiesUserPreferences utilitiesUserPreferences;
+    /**
+     * The metrics of the different processing phases.
+     */
+    private ProcessingMetrics processingMetrics = null;
 
     /**
      * Construct a new PeptideShakerCLI runnable. When initialization is
@@ -235,6 +240,9 @@ public class PeptideShakerCLI extends CpsParent implements Callable {
                 return 1;
             } else {
                 waitingHandler.appendReport("Project successfully created.", true, true);
+                if (processingMetrics != null) {
+                    waitingHandler.appendReport("Processing metrics:" + System.getProperty("line.separator") + processingMetrics.getSummary(), true, true);
+                }
             }
 
             // save project
@@ -262,7 +270,7 @@ public class PeptideShakerCLI extends CpsParent implements Callable {
                 // recalibrate spectra
                 if (followUpCLIInputBean.recalibrationNeeded()) {
                     try {
-                        CLIExportMethods.recalibrateSpectra(followUpCLIInputBean, identification, identificationParameters, waitingHandler);
+                        CLIExportMethods.recalibrateSpectra(followUpCLIInputBean, identification, identificationParameters, processingPreferences, waitingHandler);
                     } catch (Exception e) {
                         waitingHandler.appendReport("An error occurred while recalibrating the spectra.", true, true);
                         e.printStackTrace();
@@ -318,7 +326,7 @@ public class PeptideShakerCLI extends CpsParent implements Callable {
                 // de novo training export
                 if (followUpCLIInputBean.pepnovoTrainingExportNeeded()) {
                     try {
-                        CLIExportMethods.exportPepnovoTrainingFiles(followUpCLIInputBean, identification, identificationParameters, waitingHandler);
+                        CLIExportMethods.exportPepnovoTrainingFiles(followUpCLIInputBean, identification, identificationParameters, processingPreferences, waitingHandler);
                         waitingHandler.appendReport("PepNovo training export completed.", true, true);
                     } catch (Exception e) {
                         waitingHandler.appendReport("An error occurred while exporting the Pepnovo training file.", true, true);
@@ -345,7 +353,7 @@ public class PeptideShakerCLI extends CpsParent implements Callable {
                     int nSurroundingAAs = 2; //@TODO: this shall not be hard coded //peptideShakerGUI.getDisplayPreferences().getnAASurroundingPeptides()
                     for (String reportType : reportCLIInputBean.getReportTypes()) {
                         try {
-                            CLIExportMethods.exportReport(reportCLIInputBean, reportType, experiment.getReference(), sample.getReference(), replicateNumber, projectDetails, identification, geneMaps, identificationFeaturesGenerator, identificationParameters, nSurroundingAAs, spectrumCountingPreferences, waitingHandler);
+                            CLIExportMethods.exportReport(reportCLIInputBean, reportType, experiment.getReference(), sample.getReference(), replicateNumber, projectDetails, identification, geneMaps, identificationFeaturesGenerator, identificationParameters, nSurroundingAAs, spectrumCountingPreferences, processingPreferences, waitingHandler);
                         } catch (Exception e) {
                             waitingHandler.appendReport("An error occurred while exporting the " + reportType + ".", true, true);
                             e.printStackTrace();
@@ -440,7 +448,18 @@ public class PeptideShakerCLI extends CpsParent implements Callable {
     }
 
     /**
-     * Save the peptide shaker report next to the cps file.
+     * Returns the metrics of the different processing phases. Null if the
+     * project was not created.
+     *
+     * @return the metrics of the different processing phases
+     */
+    public ProcessingMetrics getProcessingMetrics() {
+        return processingMetrics;
+    }
+
+    /**
+     * Save the peptide shaker report and the processing metrics next to the
+     * cps file.
      */
     private void saveReport() {
 
@@ -499,6 +518,16 @@ public class PeptideShakerCLI extends CpsParent implements Callable {
                     }
                 }
 
+                if (processingMetrics != null) {
+                    File metricsFile = cliInputBean.getMetricsExport();
+                    if (metricsFile == null) {
+                        String psReportName = psReportFile.getName();
+                        String metricsFileName = "PeptideShaker Metrics" + psReportName.substring("PeptideShaker Report".length(), psReportName.lastIndexOf(".")) + ".json";
+                        metricsFile = new File(psReportFile.getParentFile(), metricsFileName);
+                    }
+                    processingMetrics.writeJson(metricsFile);
+                }
+
             } catch (IOException ex) {
                 waitingHandler.appendReport("An error occurred while saving the PeptideShaker report.", true, true);
                 ex.printStackTrace();
@@ -712,7 +741,7 @@ public class PeptideShakerCLI extends CpsParent implements Callable {
         }
 
         // set the processing settings
-        ProcessingPreferences processingPreferences = new ProcessingPreferences();
+        processingPreferences = new ProcessingPreferences();
         Integer nThreads = cliInputBean.getnThreads();
         if (nThreads != null) {
             processingPreferences.setnThreads(nThreads);
@@ -726,6 +755,7 @@ public class PeptideShakerCLI extends CpsParent implements Callable {
 
         // create a shaker which will perform the analysis
         PeptideShaker peptideShaker = new PeptideShaker(experiment, sample, replicateNumber);
+        processingMetrics = peptideShaker.getProcessingMetrics();
 
         // import the files
         peptideShaker.importFiles(waitingHandler, identificationFiles, spectrumFiles,
@@ -73,6 +73,10 @@ public class PeptideShakerCLIInputBean {
      * File where to export the zipped folder.
      */
     private File zipExport = null;
+    /**
+     * File where to export the processing metrics.
+     */
+    private File metricsExport = null;
     /**
      * The number of threads to use.
      */
@@ -117,6 +121,11 @@ public class PeptideShakerCLIInputBean {
             zipExport = new File(aLine.getOptionValue(PeptideShakerCLIParams.ZIP.id));
         }
 
+        // processing metrics export
+        if (aLine.hasOption(PeptideShakerCLIParams.METRICS.id)) {
+            metricsExport = new File(aLine.getOptionValue(PeptideShakerCLIParams.METRICS.id));
+        }
+
         // n threads
         if (aLine.hasOption(PeptideShakerCLIParams.THREADS.id)) {
             nThreads = new Integer(aLine.getOptionValue(PeptideShakerCLIParams.THREADS.id));
@@ -144,6 +153,25 @@ public class PeptideShakerCLIInputBean {
         return zipExport;
     }
 
+    /**
+     * Returns the file where to export the processing metrics. Null if not
+     * set.
+     *
+     * @return the file where to export the processing metrics
+     */
+    public File getMetricsExport() {
+        return metricsExport;
+    }
+
+    /**
+     * Sets the file where to export the processing metrics.
+     *
+     * @param metricsExport the file where to export the processing metrics
+     */
+    public void setMetricsExport(File metricsExport) {
+        this.metricsExport = metricsExport;
+    }
+
     /**
      * Returns the experiment name.
      *
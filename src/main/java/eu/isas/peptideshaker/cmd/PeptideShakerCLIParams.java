@@ -24,6 +24,7 @@ public enum PeptideShakerCLIParams {
     PEPTIDESHAKER_OUTPUT("out", "PeptideShaker output file. Note: if file exists it will be overwritten.", true),
     GUI("gui", "Use a dialog to display the progress (1: true, 0: false, default is '0').", false),
     ZIP("zip", "Exports the entire project as a zip file in the file specified.", false),
+    METRICS("metrics", "Exports the processing metrics of every phase (wall time, CPU time, memory, items processed and throughput) as JSON in the file specified. Default: next to the PeptideShaker report.", false),
     THREADS("threads", "The number of threads to use. Defaults to the number of available CPUs.", false);
 
     /**
@@ -108,6 +109,7 @@ public enum PeptideShakerCLIParams {
 
         output += "\n\nOptional Export Parameters:\n\n";
         output += "-" + String.format(formatter, ZIP.id) + " " + ZIP.description + "\n";
+        output += "-" + String.format(formatter, METRICS.id) + " " + METRICS.description + "\n";
 
         output += "\n\nOptional Log Folder:\n\n";
         output += "-" + String.format(formatter, LOG.id) + " " + LOG.description + "\n";
@@ -119,16 +119,22 @@ public class ReportCLI extends CpsParent {
 
         waitingHandler = new WaitingHandlerCLIImpl();
 
+        // set the number of threads used to load the project and export the reports
+        Integer nThreads = reportCLIInputBean.getnThreads();
+        if (nThreads != null) {
+            processingPreferences.setnThreads(nThreads);
+        }
+
         String inputFilePath = null;
 
         try {
             if (reportCLIInputBean.getZipFile() != null) {
                 inputFilePath = reportCLIInputBean.getZipFile().getAbsolutePath();
-                loadCpsFromZipFile(reportCLIInputBean.getZipFile(), PeptideShaker.getMatchesFolder(), waitingHandler);
+                loadCpsFromZipFile(reportCLIInputBean.getZipFile(), PeptideShaker.getMatchesFolder(), waitingHandler, true);
             } else if (reportCLIInputBean.getCpsFile() != null) {
                 inputFilePath = reportCLIInputBean.getCpsFile().getAbsolutePath();
                 cpsFile = reportCLIInputBean.getCpsFile();
-                loadCpsFile(PeptideShaker.getMatchesFolder(), waitingHandler);
+                loadCpsFile(PeptideShaker.getMatchesFolder(), waitingHandler, true);
             } else {
                 waitingHandler.appendReport("PeptideShaker project input missing.", true, true);
                 return 1;
@@ -138,11 +144,17 @@ public class ReportCLI extends CpsParent {
                     + "It looks like another instance of PeptideShaker is still connected to the file. "
                     + "Please close all instances of PeptideShaker and try again.", true, true);
             e.printStackTrace();
+            try {
+                cancelProjectLoading();
+            } catch (InterruptedException e2) {
+                // Ignore
+            }
             return 1;
         } catch (Exception e) {
             waitingHandler.appendReport("An error occurred while reading: " + inputFilePath + ".", true, true);
             e.printStackTrace();
             try {
+                cancelProjectLoading();
                 PeptideShakerCLI.closePeptideShaker(identification);
             } catch (Exception e2) {
                 // Ignore
@@ -155,6 +167,7 @@ public class ReportCLI extends CpsParent {
             if (!loadFastaFile(waitingHandler)) {
                 waitingHandler.appendReport("The FASTA file was not found. Please provide it in the command line parameters", true, true);
                 try {
+                    cancelProjectLoading();
                     PeptideShakerCLI.closePeptideShaker(identification);
                 } catch (Exception e2) {
                     waitingHandler.appendReport("An error occurred while closing PeptideShaker.", true, true);
@@ -166,6 +179,7 @@ public class ReportCLI extends CpsParent {
             waitingHandler.appendReport("An error occurred while loading the fasta file.", true, true);
             e.printStackTrace();
             try {
+                cancelProjectLoading();
                 PeptideShakerCLI.closePeptideShaker(identification);
             } catch (Exception e2) {
                 waitingHandler.appendReport("An error occurred while closing PeptideShaker.", true, true);
@@ -183,6 +197,7 @@ public class ReportCLI extends CpsParent {
                     waitingHandler.appendReport("The spectrum file was not found. Please provide its location in the command line parameters.", true, true);
                 }
                 try {
+                    cancelProjectLoading();
                     PeptideShakerCLI.closePeptideShaker(identification);
                 } catch (Exception e2) {
                     waitingHandler.appendReport("An error occurred while closing PeptideShaker.", true, true);
@@ -193,6 +208,22 @@ public class ReportCLI extends CpsParent {
         } catch (Exception e) {
             waitingHandler.appendReport("An error occurred while loading the spectrum file(s).", true, true);
             e.printStackTrace();
+            try {
+                cancelProjectLoading();
+                PeptideShakerCLI.closePeptideShaker(identification);
+            } catch (Exception e2) {
+                waitingHandler.appendReport("An error occurred while closing PeptideShaker.", true, true);
+                e2.printStackTrace();
+            }
+            return 1;
+        }
+
+        // wait for the project database to be loaded
+        try {
+            awaitProjectLoading();
+        } catch (Exception e) {
+            waitingHandler.appendReport("An error occurred while reading: " + inputFilePath + ".", true, true);
+            e.printStackTrace();
             try {
                 PeptideShakerCLI.closePeptideShaker(identification);
             } catch (Exception e2) {
@@ -213,7 +244,7 @@ public class ReportCLI extends CpsParent {
             int nSurroundingAAs = 2; //@TODO: this shall not be hard coded
             for (String reportType : reportCLIInputBean.getReportTypes()) {
                 try {
-                    CLIExportMethods.exportReport(reportCLIInputBean, reportType, experiment.getReference(), sample.getReference(), replicateNumber, projectDetails, identification, geneMaps, identificationFeaturesGenerator, identificationParameters, nSurroundingAAs, spectrumCountingPreferences, waitingHandler);
+                    CLIExportMethods.exportReport(reportCLIInputBean, reportType, experiment.getReference(), sample.getReference(), replicateNumber, projectDetails, identification, geneMaps, identificationFeaturesGenerator, identificationParameters, nSurroundingAAs, spectrumCountingPreferences, processingPreferences, waitingHandler);
                 } catch (Exception e) {
                     waitingHandler.appendReport("An error occurred while exporting the " + reportType + ".", true, true);
                     e.printStackTrace();
@@ -2,6 +2,7 @@ package eu.isas.peptideshaker.cmd;
 
 import com.compomics.software.cli.CommandLineUtils;
 import eu.isas.peptideshaker.export.PSExportFactory;
+import eu.isas.peptideshaker.export.ReportFormat;
 import java.io.File;
 import java.util.ArrayList;
 import org.apache.commons.cli.CommandLine;
@@ -30,10 +31,18 @@ public class ReportCLIInputBean {
      * The report types required by the user.
      */
     private ArrayList<String> reportTypes = new ArrayList<String>();
+    /**
+     * The format of the reports.
+     */
+    private ReportFormat reportFormat = ReportFormat.text;
     /**
      * The documentation types required by the user.
      */
     private ArrayList<String> documentationTypes = new ArrayList<String>();
+    /**
+     * The number of threads to use.
+     */
+    private Integer nThreads = null;
     /**
      * The path settings.
      */
@@ -66,6 +75,9 @@ public class ReportCLIInputBean {
                 reportTypes.add(exportFactory.getExportTypeFromCommandLineOption(option));
             }
         }
+        if (aLine.hasOption(ReportCLIParams.REPORT_FORMAT.id)) {
+            reportFormat = ReportFormat.getTypeFromIndex(new Integer(aLine.getOptionValue(ReportCLIParams.REPORT_FORMAT.id)));
+        }
         if (aLine.hasOption(ReportCLIParams.DOCUMENTATION_TYPE.id)) {
             ArrayList<Integer> options = CommandLineUtils.getIntegerListFromString(aLine.getOptionValue(ReportCLIParams.DOCUMENTATION_TYPE.id), ",");
             PSExportFactory exportFactory = PSExportFactory.getInstance();
@@ -73,6 +85,9 @@ public class ReportCLIInputBean {
                 documentationTypes.add(exportFactory.getExportTypeFromCommandLineOption(option));
             }
         }
+        if (aLine.hasOption(ReportCLIParams.THREADS.id)) {
+            nThreads = new Integer(aLine.getOptionValue(ReportCLIParams.THREADS.id));
+        }
         pathSettingsCLIInputBean = new PathSettingsCLIInputBean(aLine);
     }
 
@@ -121,6 +136,15 @@ public class ReportCLIInputBean {
         return reportTypes;
     }
 
+    /**
+     * Returns the format of the reports.
+     *
+     * @return the format of the reports
+     */
+    public ReportFormat getReportFormat() {
+        return reportFormat;
+    }
+
     /**
      * Returns the type of documentation required by the user.
      *
@@ -157,6 +181,15 @@ public class ReportCLIInputBean {
         return reportOutputFolder != null && !documentationTypes.isEmpty();
     }
     
+    /**
+     * Returns the number of threads to use, null if not set.
+     *
+     * @return the number of threads to use
+     */
+    public Integer getnThreads() {
+        return nThreads;
+    }
+
     /**
      * Returns the path settings provided by the user.
      * 
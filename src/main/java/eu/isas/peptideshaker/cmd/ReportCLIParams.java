@@ -1,6 +1,7 @@
 package eu.isas.peptideshaker.cmd;
 
 import eu.isas.peptideshaker.export.PSExportFactory;
+import eu.isas.peptideshaker.export.ReportFormat;
 import org.apache.commons.cli.Options;
 
 /**
@@ -13,7 +14,9 @@ public enum ReportCLIParams {
     CPS_FILE("in", "PeptideShaker project (.cpsx or .zip file)", true, true),
     EXPORT_FOLDER("out_reports", "Output folder for report files. (Existing files will be overwritten.)", true, true),
     REPORT_TYPE("reports", "Comma separated list of types of report to export. " + PSExportFactory.getInstance().getCommandLineOptions(), false, true),
-    DOCUMENTATION_TYPE("documentation", "Comma separated list of types of report documentation to export. " + PSExportFactory.getInstance().getCommandLineOptions(), false, true);
+    REPORT_FORMAT("report_format", "The format of the reports. " + ReportFormat.getCommandLineOptions(), false, true),
+    DOCUMENTATION_TYPE("documentation", "Comma separated list of types of report documentation to export. " + PSExportFactory.getInstance().getCommandLineOptions(), false, true),
+    THREADS("threads", "The number of threads to use. Defaults to the number of available CPUs.", false, true);
 
     /**
      * Short Id for the CLI parameter.
@@ -83,6 +86,9 @@ public enum ReportCLIParams {
         output += "\n\nOptional output parameters:\n";
         output += getOutputOptionsAsString();
 
+        output += "\n\nOptional processing parameters:\n\n";
+        output += "-" + String.format(formatter, THREADS.id) + " " + THREADS.description + "\n";
+
         output += "\n\nOptional temporary folder:\n\n";
         output += "-" + String.format(formatter, PathSettingsCLIParams.ALL.id) + PathSettingsCLIParams.ALL.description + "\n";
 
@@ -101,6 +107,7 @@ public enum ReportCLIParams {
 
         output += "\nReport export:\n\n";
         output += "-" + String.format(formatter, REPORT_TYPE.id) + REPORT_TYPE.description + "\n";
+        output += "-" + String.format(formatter, REPORT_FORMAT.id) + REPORT_FORMAT.description + "\n";
 
         output += "\nReport Documentation export:\n\n";
         output += "-" + String.format(formatter, DOCUMENTATION_TYPE.id) + DOCUMENTATION_TYPE.description + "\n";
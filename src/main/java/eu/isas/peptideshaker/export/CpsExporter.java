@@ -9,8 +9,8 @@ import com.compomics.util.experiment.identification.Advocate;
 import com.compomics.util.experiment.identification.Identification;
 import com.compomics.util.experiment.io.ExperimentIO;
 import com.compomics.util.waiting.WaitingHandler;
-import com.compomics.util.io.compression.TarUtils;
 import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.preferences.ProcessingPreferences;
 import eu.isas.peptideshaker.preferences.DisplayPreferences;
 import eu.isas.peptideshaker.preferences.FilterPreferences;
 import eu.isas.peptideshaker.parameters.PeptideShakerSettings;
@@ -19,8 +19,11 @@ import eu.isas.peptideshaker.preferences.SpectrumCountingPreferences;
 import eu.isas.peptideshaker.utils.CpsParent;
 import eu.isas.peptideshaker.utils.IdentificationFeaturesCache;
 import eu.isas.peptideshaker.utils.Metrics;
+import eu.isas.peptideshaker.utils.ProjectArchive;
+import eu.isas.peptideshaker.utils.ProteinFeaturesTable;
 import java.io.*;
 import java.sql.SQLException;
+import java.util.HashMap;
 import java.util.HashSet;
 import org.apache.commons.compress.archivers.ArchiveException;
 
@@ -32,7 +35,9 @@ import org.apache.commons.compress.archivers.ArchiveException;
 public class CpsExporter {
 
     /**
-     * Saves the given data in a cps file.
+     * Saves the given data in a cps file. The project is saved as a
+     * ProjectArchive where only the parts of the database which changed since
+     * the last save are compressed.
      *
      * @param destinationFile the destination cps file
      * @param waitingHandler a waiting handler used to cancel the saving
@@ -44,9 +49,12 @@ public class CpsExporter {
      * @param projectDetails the project details
      * @param filterPreferences the filtering preferences
      * @param displayPreferences the display preferences
+     * @param processingPreferences the processing preferences
      * @param metrics the dataset
      * @param geneMaps the gene maps
      * @param identificationFeaturesCache the identification features cache
+     * @param proteinFeaturesTable the protein features computed after
+     * processing, can be null
      * @param objectsCache the object cache
      * @param emptyCache a boolean indicating whether the object cache should be
      * emptied
@@ -57,7 +65,7 @@ public class CpsExporter {
      * @throws SQLException thrown of SQLException occurs exception thrown
      * whenever an error occurred while interacting with the database
      * @throws ArchiveException thrown of ArchiveException occurs exception
-     * thrown whenever an error occurred while taring the project
+     * thrown whenever an error occurred while archiving the project
      * @throws java.lang.ClassNotFoundException exception thrown whenever an
      * error occurred while deserializing an object
      * @throws java.lang.InterruptedException exception thrown whenever a
@@ -65,8 +73,9 @@ public class CpsExporter {
      */
     public static void saveAs(File destinationFile, WaitingHandler waitingHandler, MsExperiment experiment, Identification identification, ShotgunProtocol shotgunProtocol,
             IdentificationParameters identificationParameters, SpectrumCountingPreferences spectrumCountingPreferences, ProjectDetails projectDetails, FilterPreferences filterPreferences,
-            Metrics metrics, GeneMaps geneMaps, IdentificationFeaturesCache identificationFeaturesCache, ObjectsCache objectsCache, boolean emptyCache,
-            DisplayPreferences displayPreferences, File dbFolder) throws IOException, SQLException, ArchiveException, ClassNotFoundException, InterruptedException {
+            Metrics metrics, GeneMaps geneMaps, IdentificationFeaturesCache identificationFeaturesCache, ProteinFeaturesTable proteinFeaturesTable,
+            ObjectsCache objectsCache, boolean emptyCache,
+            DisplayPreferences displayPreferences, ProcessingPreferences processingPreferences, File dbFolder) throws IOException, SQLException, ArchiveException, ClassNotFoundException, InterruptedException {
 
         identificationFeaturesCache.setReadOnly(true);
 
@@ -88,6 +97,17 @@ public class CpsExporter {
                 objectsDB.insertObject(CpsParent.settingsTableName, PeptideShakerSettings.nameInCpsSettingsTable, peptideShakerSettings, false);
             }
 
+            // keep a copy of the settings readable without extracting the project
+            ByteArrayOutputStream settingsBytes = new ByteArrayOutputStream();
+            ObjectOutputStream settingsStream = new ObjectOutputStream(settingsBytes);
+            settingsStream.writeObject(peptideShakerSettings);
+            settingsStream.close();
+            HashMap<String, byte[]> metadata = new HashMap<String, byte[]>(2);
+            metadata.put(CpsParent.settingsArchiveEntry, settingsBytes.toByteArray());
+            if (proteinFeaturesTable != null) {
+                metadata.put(ProteinFeaturesTable.ARCHIVE_ENTRY, proteinFeaturesTable.toBytes());
+            }
+
             // save the objects in cache
             objectsCache.saveCache(waitingHandler, emptyCache);
             objectsCache.setReadOnly(true);
@@ -106,7 +126,7 @@ public class CpsExporter {
                 ExperimentIO.save(experimentFile, experiment);
             }
 
-            // tar everything in the current cps file
+            // archive everything in the current cps file
             if (waitingHandler == null || !waitingHandler.isRunCanceled()) {
                 File logFolder = new File(objectsDB.getPath(), "log");
                 HashSet<String> exceptions = new HashSet<String>(1);
@@ -116,7 +136,7 @@ public class CpsExporter {
                         exceptions.add(file.getAbsolutePath());
                     }
                 }
-                TarUtils.tarFolderContent(dbFolder, destinationFile, exceptions, waitingHandler);
+                ProjectArchive.save(dbFolder, exceptions, metadata, destinationFile, processingPreferences, waitingHandler);
             }
 
         } finally {
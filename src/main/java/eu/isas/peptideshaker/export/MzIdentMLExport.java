@@ -4,6 +4,7 @@ import com.compomics.util.experiment.identification.identification_parameters.Se
 import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
 import com.compomics.util.experiment.identification.spectrum_assumptions.PeptideAssumption;
 import com.compomics.util.Util;
+import com.compomics.util.exceptions.ExceptionHandler;
 import com.compomics.util.experiment.ShotgunProtocol;
 import com.compomics.util.experiment.biology.Enzyme;
 import com.compomics.util.experiment.biology.Ion;
@@ -35,11 +36,13 @@ import com.compomics.util.experiment.identification.spectrum_annotation.Annotati
 import com.compomics.util.preferences.IdMatchValidationPreferences;
 import com.compomics.util.preferences.IdentificationParameters;
 import com.compomics.util.preferences.PTMScoringPreferences;
+import com.compomics.util.preferences.ProcessingPreferences;
 import com.compomics.util.preferences.SequenceMatchingPreferences;
 import com.compomics.util.experiment.identification.spectrum_annotation.SpecificAnnotationSettings;
 import com.compomics.util.preferences.DigestionPreferences;
 import com.compomics.util.pride.CvTerm;
 import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.peptideshaker.PeptideShaker;
 import eu.isas.peptideshaker.scoring.PSMaps;
 import eu.isas.peptideshaker.parameters.PSParameter;
 import eu.isas.peptideshaker.parameters.PSPtmScores;
@@ -50,7 +53,11 @@ import eu.isas.peptideshaker.scoring.maps.ProteinMap;
 import eu.isas.peptideshaker.scoring.PtmScoring;
 import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyMap;
 import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyResults;
+import eu.isas.peptideshaker.utils.BackgroundGzipOutputStream;
 import eu.isas.peptideshaker.utils.IdentificationFeaturesGenerator;
+import eu.isas.peptideshaker.utils.OrderedResults;
+import eu.isas.peptideshaker.utils.ProcessingScheduler;
+import eu.isas.peptideshaker.utils.ProcessingStage;
 import java.io.*;
 import java.sql.SQLException;
 import java.text.DateFormat;
@@ -72,9 +79,10 @@ import org.apache.commons.lang3.StringEscapeUtils;
 public class MzIdentMLExport {
 
     /**
-     * The fileWriter.
+     * The number of matches rendered per task when writing the spectrum
+     * identification results and the protein groups.
      */
-    private FileWriter r;
+    public static final int BATCH_SIZE = 100;
     /**
      * The buffered writer which will write the results in the desired file.
      */
@@ -134,25 +142,21 @@ public class MzIdentMLExport {
      */
     private IdentificationFeaturesGenerator identificationFeaturesGenerator;
     /**
-     * The peptide spectrum annotator.
+     * The processing preferences.
      */
-    private PeptideSpectrumAnnotator peptideSpectrumAnnotator;
+    private ProcessingPreferences processingPreferences;
     /**
      * The waiting handler.
      */
     private WaitingHandler waitingHandler;
     /**
-     * The peptide evidence IDs.
+     * The handler for exceptions.
      */
-    private HashMap<String, String> pepEvidenceIds = new HashMap<String, String>();
+    private ExceptionHandler exceptionHandler;
     /**
-     * The spectrum IDs.
+     * The index of the peptide evidence and spectrum identification IDs.
      */
-    private HashMap<String, String> spectrumIds = new HashMap<String, String>();
-    /**
-     * The spectrum key to parent peptide key map.
-     */
-    private HashMap<String, String> spectrumKeyToPeptideKeyMap = new HashMap<String, String>();
+    private MzIdentMLIndex idIndex = new MzIdentMLIndex();
     /**
      * Information on the protocol.
      */
@@ -207,8 +211,10 @@ public class MzIdentMLExport {
      * @param outputFile the output file
      * @param includeProteinSequences if true, the protein sequences are
      * included in the output
+     * @param processingPreferences the processing preferences
      * @param waitingHandler waiting handler used to display progress to the
      * user and interrupt the process
+     * @param exceptionHandler handler for exceptions
      *
      * @throws IOException exception thrown whenever an error occurred while
      * reading/writing a file
@@ -217,8 +223,10 @@ public class MzIdentMLExport {
      */
     public MzIdentMLExport(String peptideShakerVersion, Identification identification, ProjectDetails projectDetails,
             ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, SpectrumCountingPreferences spectrumCountingPreferences,
-            IdentificationFeaturesGenerator identificationFeaturesGenerator, File outputFile, boolean includeProteinSequences, WaitingHandler waitingHandler) throws IOException, ClassNotFoundException {
-        this(peptideShakerVersion, identification, projectDetails, shotgunProtocol, identificationParameters, spectrumCountingPreferences, identificationFeaturesGenerator, outputFile, includeProteinSequences, waitingHandler, MatchValidationLevel.none, MatchValidationLevel.none, MatchValidationLevel.none);
+            IdentificationFeaturesGenerator identificationFeaturesGenerator, File outputFile, boolean includeProteinSequences, ProcessingPreferences processingPreferences,
+            WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws IOException, ClassNotFoundException {
+        this(peptideShakerVersion, identification, projectDetails, shotgunProtocol, identificationParameters, spectrumCountingPreferences, identificationFeaturesGenerator, outputFile, includeProteinSequences,
+                processingPreferences, waitingHandler, exceptionHandler, MatchValidationLevel.none, MatchValidationLevel.none, MatchValidationLevel.none);
     }
 
     /**
@@ -236,8 +244,10 @@ public class MzIdentMLExport {
      * @param outputFile the output file
      * @param includeProteinSequences if true, the protein sequences are
      * included in the output
+     * @param processingPreferences the processing preferences
      * @param waitingHandler waiting handler used to display progress to the
      * user and interrupt the process
+     * @param exceptionHandler handler for exceptions
      * @param proteinMatchValidationLevel the match validation level a protein
      * must have to be included in the export
      * @param peptideMatchValidationLevel the match validation level a peptide
@@ -252,8 +262,8 @@ public class MzIdentMLExport {
      */
     public MzIdentMLExport(String peptideShakerVersion, Identification identification, ProjectDetails projectDetails,
             ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters, SpectrumCountingPreferences spectrumCountingPreferences,
-            IdentificationFeaturesGenerator identificationFeaturesGenerator, File outputFile, boolean includeProteinSequences, WaitingHandler waitingHandler,
-            MatchValidationLevel proteinMatchValidationLevel, MatchValidationLevel peptideMatchValidationLevel, MatchValidationLevel psmMatchValidationLevel) throws IOException, ClassNotFoundException {
+            IdentificationFeaturesGenerator identificationFeaturesGenerator, File outputFile, boolean includeProteinSequences, ProcessingPreferences processingPreferences,
+            WaitingHandler waitingHandler, ExceptionHandler exceptionHandler, MatchValidationLevel proteinMatchValidationLevel, MatchValidationLevel peptideMatchValidationLevel, MatchValidationLevel psmMatchValidationLevel) throws IOException, ClassNotFoundException {
         
         if (outputFile.getParent() == null) {
             throw new FileNotFoundException("The file " + outputFile + " does not have a valid parent folder. Please make sure that the parent folder exists.");
@@ -267,13 +277,21 @@ public class MzIdentMLExport {
         this.spectrumCountingPreferences = spectrumCountingPreferences;
         this.identificationFeaturesGenerator = identificationFeaturesGenerator;
         this.includeProteinSequences = includeProteinSequences;
+        this.processingPreferences = processingPreferences;
         this.waitingHandler = waitingHandler;
+        this.exceptionHandler = exceptionHandler;
         this.proteinMatchValidationLevel = proteinMatchValidationLevel;
         this.peptideMatchValidationLevel = peptideMatchValidationLevel;
         this.psmMatchValidationLevel = psmMatchValidationLevel;
-        this.peptideSpectrumAnnotator = new PeptideSpectrumAnnotator();
-        r = new FileWriter(outputFile);
-        br = new BufferedWriter(r);
+
+        // files ending with .gz are compressed on a separate thread
+        OutputStream outputStream;
+        if (outputFile.getName().toLowerCase().endsWith(".gz")) {
+            outputStream = new BackgroundGzipOutputStream(outputFile);
+        } else {
+            outputStream = new FileOutputStream(outputFile);
+        }
+        br = new BufferedWriter(new OutputStreamWriter(outputStream, "UTF-8"));
     }
 
     /**
@@ -338,7 +356,6 @@ public class MzIdentMLExport {
 
         if (waitingHandler.isRunCanceled()) {
             br.close();
-            r.close();
             return;
         }
 
@@ -346,7 +363,6 @@ public class MzIdentMLExport {
         writeMzIdentMLEndTag();
 
         br.close();
-        r.close();
     }
 
     /**
@@ -559,8 +575,8 @@ public class MzIdentMLExport {
         ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
         parameters.add(psParameter);
 
-        // set up the spectrum key to peptide key map
-        spectrumKeyToPeptideKeyMap = new HashMap<String, String>();
+        // index the peptides and the spectra they were identified from
+        idIndex = new MzIdentMLIndex();
 
         PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(parameters, false, parameters, waitingHandler);
 
@@ -572,9 +588,7 @@ public class MzIdentMLExport {
             String peptideSequence = peptide.getSequence();
 
             // store the spectrum to peptide mapping for later
-            for (String spectrumMatchKey : peptideMatch.getSpectrumMatchesKeys()) {
-                spectrumKeyToPeptideKeyMap.put(spectrumMatchKey, peptideKey);
-            }
+            idIndex.addPeptide(peptideKey, peptideMatch.getSpectrumMatchesKeys());
 
             br.write(getCurrentTabSpace() + "<Peptide id=\"" + peptideKey + "\">" + lineBreak);
             tabCounter++;
@@ -618,7 +632,6 @@ public class MzIdentMLExport {
         }
 
         SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
-        int peptideEvidenceCounter = 0;
 
         // re-iterate the peptides to get peptide to protein mapping
         peptideMatchesIterator = identification.getPeptideMatchesIterator(parameters, false, parameters, waitingHandler);
@@ -631,6 +644,9 @@ public class MzIdentMLExport {
 
             // get the possible parent proteins
             ArrayList<String> possibleProteins = peptide.getParentProteins(sequenceMatchingPreferences);
+            ArrayList<String> evidenceAccessions = new ArrayList<String>();
+            ArrayList<Integer> evidenceStarts = new ArrayList<Integer>();
+            ArrayList<String> evidenceLines = new ArrayList<String>();
 
             // iterate the possible protein parents
             for (String tempProtein : possibleProteins) {
@@ -673,21 +689,30 @@ public class MzIdentMLExport {
                     int peptideStart = indexes.get(i);
                     int peptideEnd = (indexes.get(i) + peptide.getSequence().length() - 1);
 
-                    String pepEvidenceKey = tempProtein + "_" + peptideStart + "_" + peptideKey;
-                    pepEvidenceIds.put(pepEvidenceKey, "PepEv_" + ++peptideEvidenceCounter);
+                    evidenceAccessions.add(tempProtein);
+                    evidenceStarts.add(peptideStart);
 
-                    br.write(getCurrentTabSpace() + "<PeptideEvidence isDecoy=\"" + peptide.isDecoy(sequenceMatchingPreferences) + "\" "
+                    // the line is completed with the evidence id once all evidences are indexed
+                    evidenceLines.add(getCurrentTabSpace() + "<PeptideEvidence isDecoy=\"" + peptide.isDecoy(sequenceMatchingPreferences) + "\" "
                             + "pre=\"" + aaBefore + "\" "
                             + "post=\"" + aaAfter + "\" "
                             + "start=\"" + peptideStart + "\" "
                             + "end=\"" + peptideEnd + "\" "
                             + "peptide_ref=\"" + peptideKey + "\" "
-                            + "dBSequence_ref=\"" + sequenceFactory.getProtein(tempProtein).getAccession() + "\" "
-                            + "id=\"" + pepEvidenceIds.get(pepEvidenceKey) + "\" "
-                            + "/>" + lineBreak);
+                            + "dBSequence_ref=\"" + sequenceFactory.getProtein(tempProtein).getAccession() + "\" ");
                 }
             }
 
+            int[] starts = new int[evidenceStarts.size()];
+            for (int i = 0; i < starts.length; i++) {
+                starts[i] = evidenceStarts.get(i);
+            }
+            int firstEvidenceId = idIndex.setPeptideEvidences(peptideKey, evidenceAccessions.toArray(new String[evidenceAccessions.size()]), starts);
+
+            for (int i = 0; i < evidenceLines.size(); i++) {
+                br.write(evidenceLines.get(i) + "id=\"" + MzIdentMLIndex.getPeptideEvidenceId(firstEvidenceId + i) + "\" " + "/>" + lineBreak);
+            }
+
             waitingHandler.increasePrimaryProgressCounter();
 
             if (waitingHandler.isRunCanceled()) {
@@ -1234,6 +1259,12 @@ public class MzIdentMLExport {
         parameters.add(new PSParameter());
         int psmCount = 0;
 
+        // the results are rendered by batches in parallel and written in the order of the PSMs
+        ProcessingStage stage = PeptideShaker.getProcessingScheduler(processingPreferences).newStage("mzIdentML spectrum identification results", waitingHandler);
+        OrderedResults<XmlFragment> fragments = new OrderedResults<XmlFragment>();
+        long nBatches = 0;
+        ArrayList<SpectrumMatch> batch = new ArrayList<SpectrumMatch>(BATCH_SIZE);
+
         // iterate the spectrum files
         for (String spectrumFileName : identification.getSpectrumFiles()) {
 
@@ -1242,22 +1273,36 @@ public class MzIdentMLExport {
             while (psmIterator.hasNext()) {
 
                 SpectrumMatch spectrumMatch = psmIterator.next();
-                String spectrumKey = spectrumMatch.getKey();
+                psmCount++;
 
-                writeSpectrumIdentificationResult(spectrumKey, ++psmCount);
-                waitingHandler.increasePrimaryProgressCounter();
+                if (spectrumMatch.getBestPeptideAssumption() != null) {
+                    idIndex.setSpectrumIdentificationResultIndex(spectrumMatch.getKey(), psmCount);
+                }
+
+                batch.add(spectrumMatch);
+
+                if (batch.size() == BATCH_SIZE) {
+                    int firstPsmIndex = psmCount - batch.size() + 1;
+                    if (!submitBatch(stage, fragments, new SpectrumIdentificationResultsRunnable(nBatches, batch, firstPsmIndex, fragments, tabCounter), nBatches++)) {
+                        return;
+                    }
+                    batch = new ArrayList<SpectrumMatch>(BATCH_SIZE);
+                }
 
                 if (waitingHandler.isRunCanceled()) {
-                    break;
+                    return;
                 }
             }
+        }
 
-            if (waitingHandler.isRunCanceled()) {
-                break;
+        if (!batch.isEmpty()) {
+            int firstPsmIndex = psmCount - batch.size() + 1;
+            if (!submitBatch(stage, fragments, new SpectrumIdentificationResultsRunnable(nBatches, batch, firstPsmIndex, fragments, tabCounter), nBatches++)) {
+                return;
             }
         }
 
-        if (waitingHandler.isRunCanceled()) {
+        if (!writeRemainingBatches(stage, fragments, nBatches)) {
             return;
         }
 
@@ -1295,107 +1340,158 @@ public class MzIdentMLExport {
         parameters.add(psParameter);
         ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(parameters, true, parameters, true, parameters, waitingHandler);
 
+        // the groups are rendered by batches in parallel and written in the order of the iterator
+        ProcessingStage stage = PeptideShaker.getProcessingScheduler(processingPreferences).newStage("mzIdentML protein ambiguity groups", waitingHandler);
+        OrderedResults<XmlFragment> fragments = new OrderedResults<XmlFragment>();
+        long nBatches = 0;
+        ArrayList<ProteinMatch> batch = new ArrayList<ProteinMatch>(BATCH_SIZE);
+
         while (proteinMatchesIterator.hasNext()) {
 
-            ProteinMatch proteinMatch = proteinMatchesIterator.next();
-            String proteinGroupKey = proteinMatch.getKey();
+            batch.add(proteinMatchesIterator.next());
 
-            String proteinGroupId = "PAG_" + groupCpt++;
+            if (batch.size() == BATCH_SIZE) {
+                if (!submitBatch(stage, fragments, new ProteinAmbiguityGroupsRunnable(nBatches, batch, groupCpt, fragments, tabCounter), nBatches++)) {
+                    return;
+                }
+                groupCpt += batch.size();
+                batch = new ArrayList<ProteinMatch>(BATCH_SIZE);
+            }
 
-            br.write(getCurrentTabSpace() + "<ProteinAmbiguityGroup id=\"" + proteinGroupId + "\">" + lineBreak);
-            tabCounter++;
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
+        }
 
-            psParameter = (PSParameter) identification.getProteinMatchParameter(proteinGroupKey, psParameter);
+        if (!batch.isEmpty()) {
+            if (!submitBatch(stage, fragments, new ProteinAmbiguityGroupsRunnable(nBatches, batch, groupCpt, fragments, tabCounter), nBatches++)) {
+                return;
+            }
+        }
 
-            String mainAccession = proteinMatch.getMainMatch();
+        if (!writeRemainingBatches(stage, fragments, nBatches)) {
+            return;
+        }
 
-            for (int j = 0; j < proteinMatch.getTheoreticProteinsAccessions().size(); j++) {
+        writeCvTerm(new CvTerm("PSI-MS", "MS:1002404", "count of identified proteins", "" + identificationFeaturesGenerator.getNValidatedProteins()));
+        // @TODO: add children of MS:1001184 - search statistics? (date / time search performed, number of molecular hypothesis considered, search time taken)
 
-                String accession = proteinMatch.getTheoreticProteinsAccessions().get(j);
+        tabCounter--;
+        br.write(getCurrentTabSpace() + "</ProteinDetectionList>" + lineBreak);
+    }
 
-                br.write(getCurrentTabSpace() + "<ProteinDetectionHypothesis id=\"" + proteinGroupId + "_" + (j + 1) + "\" dBSequence_ref=\"" + accession
-                        + "\" passThreshold=\"" + psParameter.getMatchValidationLevel().isValidated() + "\">" + lineBreak);
-                tabCounter++;
+    /**
+     * Writes a protein ambiguity group.
+     *
+     * @param proteinMatch the protein match of the group
+     * @param groupIndex the index of the group
+     * @param fragment the fragment where to write the group
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading/writing a file
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing an object
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while writing the export
+     * @throws SQLException exception thrown whenever an error occurred while
+     * interacting with the database
+     */
+    private void writeProteinAmbiguityGroup(ProteinMatch proteinMatch, int groupIndex, XmlFragment fragment)
+            throws IOException, SQLException, ClassNotFoundException, InterruptedException {
 
-                ArrayList<String> peptideMatches = identification.getProteinMatch(proteinGroupKey).getPeptideMatchesKeys();
-                PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(peptideMatches, null, false, null, waitingHandler);
+        String proteinGroupKey = proteinMatch.getKey();
 
-                while (peptideMatchesIterator.hasNext()) {
+        String proteinGroupId = "PAG_" + groupIndex;
 
-                    PeptideMatch peptideMatch = peptideMatchesIterator.next();
-                    String peptideKey = peptideMatch.getKey();
-                    String peptideSequence = peptideMatch.getTheoreticPeptide().getSequence();
+        fragment.write(fragment.getCurrentTabSpace() + "<ProteinAmbiguityGroup id=\"" + proteinGroupId + "\">" + lineBreak);
+        fragment.tabCounter++;
 
-                    ArrayList<Integer> peptideStarts = sequenceFactory.getProtein(accession).getPeptideStart(
-                            peptideSequence, identificationParameters.getSequenceMatchingPreferences());
+        PSParameter psParameter = (PSParameter) identification.getProteinMatchParameter(proteinGroupKey, new PSParameter());
 
-                    for (int start : peptideStarts) {
-                        String pepEvidenceKey = accession + "_" + start + "_" + peptideKey;
-                        String peptideEvidenceId = pepEvidenceIds.get(pepEvidenceKey);
+        String mainAccession = proteinMatch.getMainMatch();
 
-                        if (peptideEvidenceId != null) {
+        // load the peptides once for all the proteins of the group
+        ArrayList<String> peptideKeys = proteinMatch.getPeptideMatchesKeys();
+        ArrayList<PeptideMatch> peptideMatches = new ArrayList<PeptideMatch>(peptideKeys.size());
+        PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(peptideKeys, null, false, null, waitingHandler);
 
-                            br.write(getCurrentTabSpace() + "<PeptideHypothesis peptideEvidence_ref=\"" + peptideEvidenceId + "\">" + lineBreak);
-                            tabCounter++;
+        while (peptideMatchesIterator.hasNext()) {
+            peptideMatches.add(peptideMatchesIterator.next());
+        }
 
-                            for (String spectrumKey : peptideMatch.getSpectrumMatchesKeys()) {
-                                br.write(getCurrentTabSpace() + "<SpectrumIdentificationItemRef spectrumIdentificationItem_ref=\""
-                                        + spectrumIds.get(spectrumKey) + "\"/>" + lineBreak);
-                            }
+        for (int j = 0; j < proteinMatch.getTheoreticProteinsAccessions().size(); j++) {
 
-                            tabCounter--;
-                            br.write(getCurrentTabSpace() + "</PeptideHypothesis>" + lineBreak);
-                        } else {
-                            throw new IllegalArgumentException("No peptide evidence id found for key '" + pepEvidenceKey + "'.");
-                        }
-                    }
-                }
+            String accession = proteinMatch.getTheoreticProteinsAccessions().get(j);
 
-                // add main protein cv terms
-                if (accession.equalsIgnoreCase(mainAccession)) {
-                    writeCvTerm(new CvTerm("PSI-MS", "MS:1002403", "group representative", null));
-                }
+            fragment.write(fragment.getCurrentTabSpace() + "<ProteinDetectionHypothesis id=\"" + proteinGroupId + "_" + (j + 1) + "\" dBSequence_ref=\"" + accession
+                    + "\" passThreshold=\"" + psParameter.getMatchValidationLevel().isValidated() + "\">" + lineBreak);
+            fragment.tabCounter++;
 
-                writeCvTerm(new CvTerm("PSI-MS", "MS:1002401", "leading protein", null));
+            for (PeptideMatch peptideMatch : peptideMatches) {
 
-                // add protein coverage cv term - main protein only
-                if (accession.equalsIgnoreCase(mainAccession)) {
-                    Double validatedCoverage = identificationFeaturesGenerator.getValidatedSequenceCoverage(proteinGroupKey);
-                    writeCvTerm(new CvTerm("PSI-MS", "MS:1001093", "sequence coverage", Double.toString(Util.roundDouble(validatedCoverage, CONFIDENCE_DECIMALS))));
-                }
+                String peptideKey = peptideMatch.getKey();
+                String peptideSequence = peptideMatch.getTheoreticPeptide().getSequence();
 
-                tabCounter--;
-                br.write(getCurrentTabSpace() + "</ProteinDetectionHypothesis>" + lineBreak);
-            }
+                ArrayList<Integer> peptideStarts = sequenceFactory.getProtein(accession).getPeptideStart(
+                        peptideSequence, identificationParameters.getSequenceMatchingPreferences());
 
-            // add protein group cv terms
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1002470", "PeptideShaker protein group score", Double.toString(Util.roundDouble(psParameter.getProteinScore(), CONFIDENCE_DECIMALS))));
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1002471", "PeptideShaker protein group confidence", Double.toString(Util.roundDouble(psParameter.getProteinConfidence(), CONFIDENCE_DECIMALS))));
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1002542", "PeptideShaker protein confidence type", psParameter.getMatchValidationLevel().getName()));
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1002415", "protein group passes threshold", "" + psParameter.getMatchValidationLevel().isValidated()));
+                for (int start : peptideStarts) {
+                    String peptideEvidenceId = idIndex.getPeptideEvidenceId(peptideKey, accession, start);
 
-            tabCounter--;
-            br.write(getCurrentTabSpace() + "</ProteinAmbiguityGroup>" + lineBreak);
+                    if (peptideEvidenceId != null) {
 
-            waitingHandler.increasePrimaryProgressCounter();
+                        fragment.write(fragment.getCurrentTabSpace() + "<PeptideHypothesis peptideEvidence_ref=\"" + peptideEvidenceId + "\">" + lineBreak);
+                        fragment.tabCounter++;
 
-            if (waitingHandler.isRunCanceled()) {
-                break;
+                        for (String spectrumKey : peptideMatch.getSpectrumMatchesKeys()) {
+                            int resultIndex = idIndex.getSpectrumIdentificationResultIndex(spectrumKey);
+                            String spectrumIdentificationItemId = resultIndex > 0 ? getSpectrumIdentificationItemId(resultIndex, 1) : null;
+                            fragment.write(fragment.getCurrentTabSpace() + "<SpectrumIdentificationItemRef spectrumIdentificationItem_ref=\""
+                                    + spectrumIdentificationItemId + "\"/>" + lineBreak);
+                        }
+
+                        fragment.tabCounter--;
+                        fragment.write(fragment.getCurrentTabSpace() + "</PeptideHypothesis>" + lineBreak);
+                    } else {
+                        throw new IllegalArgumentException("No peptide evidence id found for peptide '" + peptideKey + "' at position " + start + " on protein '" + accession + "'.");
+                    }
+                }
             }
+
+            // add main protein cv terms
+            if (accession.equalsIgnoreCase(mainAccession)) {
+                fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:1002403", "group representative", null));
+            }
+
+            fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:1002401", "leading protein", null));
+
+            // add protein coverage cv term - main protein only
+            if (accession.equalsIgnoreCase(mainAccession)) {
+                Double validatedCoverage = identificationFeaturesGenerator.getValidatedSequenceCoverage(proteinGroupKey);
+                fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:1001093", "sequence coverage", Double.toString(Util.roundDouble(validatedCoverage, CONFIDENCE_DECIMALS))));
+            }
+
+            fragment.tabCounter--;
+            fragment.write(fragment.getCurrentTabSpace() + "</ProteinDetectionHypothesis>" + lineBreak);
         }
 
-        writeCvTerm(new CvTerm("PSI-MS", "MS:1002404", "count of identified proteins", "" + identificationFeaturesGenerator.getNValidatedProteins()));
-        // @TODO: add children of MS:1001184 - search statistics? (date / time search performed, number of molecular hypothesis considered, search time taken)
+        // add protein group cv terms
+        fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:1002470", "PeptideShaker protein group score", Double.toString(Util.roundDouble(psParameter.getProteinScore(), CONFIDENCE_DECIMALS))));
+        fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:1002471", "PeptideShaker protein group confidence", Double.toString(Util.roundDouble(psParameter.getProteinConfidence(), CONFIDENCE_DECIMALS))));
+        fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:1002542", "PeptideShaker protein confidence type", psParameter.getMatchValidationLevel().getName()));
+        fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:1002415", "protein group passes threshold", "" + psParameter.getMatchValidationLevel().isValidated()));
 
-        tabCounter--;
-        br.write(getCurrentTabSpace() + "</ProteinDetectionList>" + lineBreak);
+        fragment.tabCounter--;
+        fragment.write(fragment.getCurrentTabSpace() + "</ProteinAmbiguityGroup>" + lineBreak);
     }
 
     /**
      * Write a spectrum identification result.
      *
-     * @param psmKey the key of the PSM to write
+     * @param spectrumMatch the PSM to write
      * @param psmIndex the index of the PSM
+     * @param fragment the fragment where to write the result
+     * @param peptideSpectrumAnnotator the spectrum annotator to use
      *
      * @throws IOException exception thrown whenever an error occurred while
      * reading/writing a file
@@ -1408,34 +1504,33 @@ public class MzIdentMLExport {
      * @throws MzMLUnmarshallerException exception thrown whenever an error
      * occurred while reading an mzML file
      */
-    private void writeSpectrumIdentificationResult(String psmKey, int psmIndex)
+    private void writeSpectrumIdentificationResult(SpectrumMatch spectrumMatch, int psmIndex, XmlFragment fragment, PeptideSpectrumAnnotator peptideSpectrumAnnotator)
             throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
 
-        SpectrumMatch spectrumMatch = identification.getSpectrumMatch(psmKey);
+        String psmKey = spectrumMatch.getKey();
         String spectrumTitle = Spectrum.getSpectrumTitle(psmKey);
         String spectrumFileName = Spectrum.getSpectrumFile(psmKey);
         String spectrumIdentificationResultItemKey = "SIR_" + psmIndex;
 
-        br.write(getCurrentTabSpace() + "<SpectrumIdentificationResult "
-                + "spectraData_ref=\"" + spectrumFileName
-                + "\" spectrumID=\"" + "index=" + spectrumFactory.getSpectrumIndex(spectrumTitle, spectrumFileName)
-                + "\" id=\"" + spectrumIdentificationResultItemKey + "\">" + lineBreak);
-        tabCounter++;
-
         // @TODO: iterate all assumptions and not just the best one?
         PeptideAssumption bestPeptideAssumption = spectrumMatch.getBestPeptideAssumption();
 
         if (bestPeptideAssumption != null) {
 
+            fragment.write(fragment.getCurrentTabSpace() + "<SpectrumIdentificationResult "
+                    + "spectraData_ref=\"" + spectrumFileName
+                    + "\" spectrumID=\"" + "index=" + spectrumFactory.getSpectrumIndex(spectrumTitle, spectrumFileName)
+                    + "\" id=\"" + spectrumIdentificationResultItemKey + "\">" + lineBreak);
+            fragment.tabCounter++;
+
             PSParameter psmParameter = (PSParameter) identification.getSpectrumMatchParameter(psmKey, new PSParameter());
             int rank = 1; // @TODO: should not be hardcoded?
-            String spectrumIdentificationItemKey = "SII_" + psmIndex + "_" + rank;
-            spectrumIds.put(psmKey, spectrumIdentificationItemKey);
+            String spectrumIdentificationItemKey = getSpectrumIdentificationItemId(psmIndex, rank);
 
             //String bestPeptideKey = bestPeptideAssumption.getPeptide().getMatchingKey(identificationParameters.getSequenceMatchingPreferences());
-            String peptideKey = spectrumKeyToPeptideKeyMap.get(psmKey);
+            String peptideKey = idIndex.getPeptideKey(psmKey);
 
-            br.write(getCurrentTabSpace() + "<SpectrumIdentificationItem "
+            fragment.write(fragment.getCurrentTabSpace() + "<SpectrumIdentificationItem "
                     + "passThreshold=\"" + psmParameter.getMatchValidationLevel().isValidated() + "\" "
                     + "rank=\"" + rank + "\" "
                     + "peptide_ref=\"" + peptideKey + "\" "
@@ -1443,7 +1538,7 @@ public class MzIdentMLExport {
                     + "experimentalMassToCharge=\"" + spectrumFactory.getPrecursorMz(psmKey) + "\" "
                     + "chargeState=\"" + bestPeptideAssumption.getIdentificationCharge().value + "\" "
                     + "id=\"" + spectrumIdentificationItemKey + "\">" + lineBreak);
-            tabCounter++;
+            fragment.tabCounter++;
 
             // add the peptide evidence references
             // get all the possible parent proteins
@@ -1458,9 +1553,8 @@ public class MzIdentMLExport {
                         peptideSequence, identificationParameters.getSequenceMatchingPreferences());
 
                 for (int start : peptideStarts) {
-                    String pepEvidenceKey = tempProtein + "_" + start + "_" + peptideKey;
-                    String peptideEvidenceId = pepEvidenceIds.get(pepEvidenceKey);
-                    br.write(getCurrentTabSpace() + "<PeptideEvidenceRef peptideEvidence_ref=\"" + peptideEvidenceId + "\"/>" + lineBreak);
+                    String peptideEvidenceId = idIndex.getPeptideEvidenceId(peptideKey, tempProtein, start);
+                    fragment.write(fragment.getCurrentTabSpace() + "<PeptideEvidenceRef peptideEvidence_ref=\"" + peptideEvidenceId + "\"/>" + lineBreak);
                 }
             }
 
@@ -1507,8 +1601,8 @@ public class MzIdentMLExport {
 
                 if (!allFragmentIons.isEmpty()) {
 
-                    br.write(getCurrentTabSpace() + "<Fragmentation>" + lineBreak);
-                    tabCounter++;
+                    fragment.write(fragment.getCurrentTabSpace() + "<Fragmentation>" + lineBreak);
+                    fragment.tabCounter++;
 
                     // add the fragment ions
                     Iterator<String> fragmentTypeIterator = allFragmentIons.keySet().iterator();
@@ -1558,15 +1652,15 @@ public class MzIdentMLExport {
 
                             // add the supported fragment ions
                             if (fragmentIonCvTerm != null) {
-                                br.write(getCurrentTabSpace() + "<IonType charge=\"" + fragmentCharge + "\" index=\"" + indexes.trim() + "\">" + lineBreak);
-                                tabCounter++;
+                                fragment.write(fragment.getCurrentTabSpace() + "<IonType charge=\"" + fragmentCharge + "\" index=\"" + indexes.trim() + "\">" + lineBreak);
+                                fragment.tabCounter++;
 
-                                br.write(getCurrentTabSpace() + "<FragmentArray measure_ref=\"Measure_MZ\" values=\"" + mzValues.trim() + "\"/>" + lineBreak);
-                                br.write(getCurrentTabSpace() + "<FragmentArray measure_ref=\"Measure_Int\" values=\"" + intensityValues.trim() + "\"/>" + lineBreak);
-                                br.write(getCurrentTabSpace() + "<FragmentArray measure_ref=\"Measure_Error\" values=\"" + errorValues.trim() + "\"/>" + lineBreak);
+                                fragment.write(fragment.getCurrentTabSpace() + "<FragmentArray measure_ref=\"Measure_MZ\" values=\"" + mzValues.trim() + "\"/>" + lineBreak);
+                                fragment.write(fragment.getCurrentTabSpace() + "<FragmentArray measure_ref=\"Measure_Int\" values=\"" + intensityValues.trim() + "\"/>" + lineBreak);
+                                fragment.write(fragment.getCurrentTabSpace() + "<FragmentArray measure_ref=\"Measure_Error\" values=\"" + errorValues.trim() + "\"/>" + lineBreak);
 
                                 // add the cv term for the fragment ion type
-                                writeCvTerm(fragmentIonCvTerm);
+                                fragment.writeCvTerm(fragmentIonCvTerm);
 
                                 // add the cv term for the neutral losses
                                 int neutralLossesCount = currentIon.getNeutralLosses().size();
@@ -1574,24 +1668,24 @@ public class MzIdentMLExport {
                                     throw new IllegalArgumentException("A maximum of " + maxNeutralLosses + " neutral losses is allowed!");
                                 } else {
                                     for (NeutralLoss tempNeutralLoss : currentIon.getNeutralLosses()) {
-                                        writeCvTerm(tempNeutralLoss.getPsiMsCvTerm());
+                                        fragment.writeCvTerm(tempNeutralLoss.getPsiMsCvTerm());
                                     }
                                 }
 
-                                tabCounter--;
-                                br.write(getCurrentTabSpace() + "</IonType>" + lineBreak);
+                                fragment.tabCounter--;
+                                fragment.write(fragment.getCurrentTabSpace() + "</IonType>" + lineBreak);
                             }
                         }
                     }
 
-                    tabCounter--;
-                    br.write(getCurrentTabSpace() + "</Fragmentation>" + lineBreak);
+                    fragment.tabCounter--;
+                    fragment.write(fragment.getCurrentTabSpace() + "</Fragmentation>" + lineBreak);
                 }
             }
 
             // add peptide shaker score and confidence
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1002466", "PeptideShaker PSM score", Double.toString(Util.roundDouble(psmParameter.getPsmScore(), CONFIDENCE_DECIMALS))));
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1002467", "PeptideShaker PSM confidence", Double.toString(Util.roundDouble(psmParameter.getPsmConfidence(), CONFIDENCE_DECIMALS))));
+            fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:1002466", "PeptideShaker PSM score", Double.toString(Util.roundDouble(psmParameter.getPsmScore(), CONFIDENCE_DECIMALS))));
+            fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:1002467", "PeptideShaker PSM confidence", Double.toString(Util.roundDouble(psmParameter.getPsmConfidence(), CONFIDENCE_DECIMALS))));
 
             if (mzidVersion_1_2) {
 
@@ -1631,9 +1725,9 @@ public class MzIdentMLExport {
                                                 }
 
                                                 if (ptmScoringPreferences.getSelectedProbabilisticScore() == PtmScore.AScore) {
-                                                    writeCvTerm(new CvTerm("PSI-MS", "MS:1001985", "Ascore", ptmIndex + ":" + score + ":" + site + ":" + valid));
+                                                    fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:1001985", "Ascore", ptmIndex + ":" + score + ":" + site + ":" + valid));
                                                 } else if (ptmScoringPreferences.getSelectedProbabilisticScore() == PtmScore.PhosphoRS) {
-                                                    writeCvTerm(new CvTerm("PSI-MS", "MS:1001969", "phosphoRS score", ptmIndex + ":" + score + ":" + site + ":" + valid));
+                                                    fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:1001969", "phosphoRS score", ptmIndex + ":" + score + ":" + site + ":" + valid));
                                                 }
                                             }
                                         }
@@ -1644,7 +1738,7 @@ public class MzIdentMLExport {
                                             if (score < dScoreThreshold) {
                                                 valid = "false";
                                             }
-                                            writeCvTerm(new CvTerm("PSI-MS", "MS:1002536", "D-Score", ptmIndex + ":" + score + ":" + site + ":" + valid));
+                                            fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:1002536", "D-Score", ptmIndex + ":" + score + ":" + site + ":" + valid));
                                         }
                                     }
                                 }
@@ -1654,10 +1748,10 @@ public class MzIdentMLExport {
                 }
 
                 PSParameter peptideParameter = (PSParameter) identification.getPeptideMatchParameter(peptideKey, psmParameter);
-                writeCvTerm(new CvTerm("PSI-MS", "MS:1002469", "PeptideShaker peptide confidence", peptideParameter.getPeptideConfidence() + ""));
-                writeCvTerm(new CvTerm("PSI-MS", "MS:1002468", "PeptideShaker peptide score", peptideParameter.getPeptideScore() + ""));
-                writeCvTerm(new CvTerm("PSI-MS", "MS:1002500", "peptide passes threshold", peptideParameter.getMatchValidationLevel().isValidated() + ""));
-                writeCvTerm(new CvTerm("PSI-MS", "MS:1002520", "peptide group ID", peptideKey));
+                fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:1002469", "PeptideShaker peptide confidence", peptideParameter.getPeptideConfidence() + ""));
+                fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:1002468", "PeptideShaker peptide score", peptideParameter.getPeptideScore() + ""));
+                fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:1002500", "peptide passes threshold", peptideParameter.getMatchValidationLevel().isValidated() + ""));
+                fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:1002520", "peptide group ID", peptideKey));
 
                 psPtmScores = (PSPtmScores) peptideMatch.getUrParam(new PSPtmScores());
 
@@ -1693,9 +1787,9 @@ public class MzIdentMLExport {
                                                 }
 
                                                 if (ptmScoringPreferences.getSelectedProbabilisticScore() == PtmScore.AScore) {
-                                                    writeCvTerm(new CvTerm("PSI-MS", "MS:1002551", "peptide:Ascore", ptmIndex + ":" + score + ":" + site + ":" + valid));
+                                                    fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:1002551", "peptide:Ascore", ptmIndex + ":" + score + ":" + site + ":" + valid));
                                                 } else if (ptmScoringPreferences.getSelectedProbabilisticScore() == PtmScore.PhosphoRS) {
-                                                    writeCvTerm(new CvTerm("PSI-MS", "MS:1002550", "peptide:phosphoRS score", ptmIndex + ":" + score + ":" + site + ":" + valid));
+                                                    fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:1002550", "peptide:phosphoRS score", ptmIndex + ":" + score + ":" + site + ":" + valid));
                                                 }
                                             }
                                         }
@@ -1705,8 +1799,8 @@ public class MzIdentMLExport {
                                             if (score < dScoreThreshold) {
                                                 valid = "false";
                                             }
-                                            writeCvTerm(new CvTerm("PSI-MS", "MS:1002553", "peptide:D-Score", ptmIndex + ":" + score + ":" + site + ":" + valid));
-                                            //writeCvTerm(new CvTerm("PSI-MS", "MS:???", "PeptideShaker PTM confidence type", "???")); // @TODO: can be at both the psm and peptide level...
+                                            fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:1002553", "peptide:D-Score", ptmIndex + ":" + score + ":" + site + ":" + valid));
+                                            //fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:???", "PeptideShaker PTM confidence type", "???")); // @TODO: can be at both the psm and peptide level...
                                         }
                                     }
                                 }
@@ -1749,51 +1843,51 @@ public class MzIdentMLExport {
             for (int tempAdvocate : algorithms) {
                 double eValue = scores.get(tempAdvocate);
                 if (tempAdvocate == Advocate.msgf.getIndex()) {
-                    writeCvTerm(new CvTerm("PSI-MS", "MS:1002052", "MS-GF:SpecEValue", Double.toString(eValue)));
+                    fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:1002052", "MS-GF:SpecEValue", Double.toString(eValue)));
                 } else if (tempAdvocate == Advocate.mascot.getIndex()) {
-                    writeCvTerm(new CvTerm("PSI-MS", "MS:1001172", "Mascot:expectation value", Double.toString(eValue)));
+                    fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:1001172", "Mascot:expectation value", Double.toString(eValue)));
                 } else if (tempAdvocate == Advocate.omssa.getIndex()) {
-                    writeCvTerm(new CvTerm("PSI-MS", "MS:1001328", "OMSSA:evalue", Double.toString(eValue)));
+                    fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:1001328", "OMSSA:evalue", Double.toString(eValue)));
                 } else if (tempAdvocate == Advocate.xtandem.getIndex()) {
-                    writeCvTerm(new CvTerm("PSI-MS", "MS:1001330", "X!Tandem:expect", Double.toString(eValue)));
+                    fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:1001330", "X!Tandem:expect", Double.toString(eValue)));
                 } else if (tempAdvocate == Advocate.comet.getIndex()) {
-                    writeCvTerm(new CvTerm("PSI-MS", "MS:1002257", "Comet:expectation value", Double.toString(eValue)));
+                    fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:1002257", "Comet:expectation value", Double.toString(eValue)));
                 } else if (tempAdvocate == Advocate.myriMatch.getIndex()) {
-                    writeCvTerm(new CvTerm("PSI-MS", "MS:1001589", "MyriMatch:MVH", Double.toString(eValue)));
+                    fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:1001589", "MyriMatch:MVH", Double.toString(eValue)));
                 } else {
-                    writeUserParam(Advocate.getAdvocate(tempAdvocate).getName() + " e-value", "" + eValue); // @TODO: add Tide if Tide CV term is added
+                    fragment.writeUserParam(Advocate.getAdvocate(tempAdvocate).getName() + " e-value", "" + eValue); // @TODO: add Tide if Tide CV term is added
                 }
             }
 
             // add the additional search engine scores
             if (mascotScore != null) {
-                writeCvTerm(new CvTerm("PSI-MS", "MS:1001171", "Mascot:score", "" + mascotScore));
+                fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:1001171", "Mascot:score", "" + mascotScore));
             }
             if (msAmandaScore != null) {
-                writeCvTerm(new CvTerm("PSI-MS", "MS:1002319", "Amanda:AmandaScore", "" + msAmandaScore));
+                fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:1002319", "Amanda:AmandaScore", "" + msAmandaScore));
             }
 
             // add other cv and user params
-            br.write(getCurrentTabSpace() + "<cvParam cvRef=\"PSI-MS\" accession=\"MS:1001117\" name=\"theoretical mass\" value=\"" + String.valueOf(bestPeptideAssumption.getTheoreticMass()) + "\" "
+            fragment.write(fragment.getCurrentTabSpace() + "<cvParam cvRef=\"PSI-MS\" accession=\"MS:1001117\" name=\"theoretical mass\" value=\"" + String.valueOf(bestPeptideAssumption.getTheoreticMass()) + "\" "
                     + "unitCvRef=\"UO\" unitAccession=\"UO:0000221\" unitName=\"dalton\"/>" + lineBreak);
 
             // add validation level information
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1002540", "PeptideShaker PSM confidence type", psmParameter.getMatchValidationLevel().getName()));
-            tabCounter--;
-            br.write(getCurrentTabSpace() + "</SpectrumIdentificationItem>" + lineBreak);
+            fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:1002540", "PeptideShaker PSM confidence type", psmParameter.getMatchValidationLevel().getName()));
+            fragment.tabCounter--;
+            fragment.write(fragment.getCurrentTabSpace() + "</SpectrumIdentificationItem>" + lineBreak);
 
             // add the spectrum title
-            writeCvTerm(new CvTerm("PSI-MS", "MS:1000796", "spectrum title", spectrumTitle));
+            fragment.writeCvTerm(new CvTerm("PSI-MS", "MS:1000796", "spectrum title", spectrumTitle));
 
             // add the precursor retention time
             Precursor precursor = spectrumFactory.getPrecursor(psmKey);
             if (precursor != null) {
-                br.write(getCurrentTabSpace() + "<cvParam cvRef=\"PSI-MS\" accession=\"MS:1000894\" name=\"retention time\" value=\"" + String.valueOf(precursor.getRt()) + "\" "
+                fragment.write(fragment.getCurrentTabSpace() + "<cvParam cvRef=\"PSI-MS\" accession=\"MS:1000894\" name=\"retention time\" value=\"" + String.valueOf(precursor.getRt()) + "\" "
                         + "unitCvRef=\"UO\" unitAccession=\"UO:0000010\" unitName=\"second\"/>" + lineBreak);
             }
 
-            tabCounter--;
-            br.write(getCurrentTabSpace() + "</SpectrumIdentificationResult>" + lineBreak);
+            fragment.tabCounter--;
+            fragment.write(fragment.getCurrentTabSpace() + "</SpectrumIdentificationResult>" + lineBreak);
         }
     }
 
@@ -1989,6 +2083,17 @@ public class MzIdentMLExport {
      * @return the tabs in the beginning of each line as a string
      */
     private String getCurrentTabSpace() {
+        return getTabSpace(tabCounter);
+    }
+
+    /**
+     * Convenience method returning the tabs in the beginning of a line.
+     *
+     * @param tabCounter the number of tabs
+     *
+     * @return the tabs in the beginning of the line as a string
+     */
+    private static String getTabSpace(int tabCounter) {
 
         switch (tabCounter) {
             case 0:
@@ -2043,28 +2148,30 @@ public class MzIdentMLExport {
      * reading/writing a file
      */
     private void writeCvTerm(CvTerm cvTerm, boolean showValue) throws IOException {
-
-        br.write(getCurrentTabSpace() + "<cvParam "
-                + "cvRef=\"" + StringEscapeUtils.escapeHtml4(cvTerm.getOntology()) + "\" "
-                + "accession=\"" + cvTerm.getAccession() + "\" "
-                + "name=\"" + StringEscapeUtils.escapeHtml4(cvTerm.getName()) + "\"");
-
-        writeCvTermValue(cvTerm, showValue);
+        br.write(getCvTermLine(getCurrentTabSpace(), cvTerm, showValue));
     }
 
     /**
-     * Convenience method writing the value element of a CV term.
+     * Convenience method returning the line of a CV term.
      *
+     * @param tabSpace the tabs in the beginning of the line
      * @param cvTerm the CV term
      * @param showValue decides if the CV terms value (if existing) is printed
      * or not
-     * @throws IOException
+     *
+     * @return the line of the CV term
      */
-    private void writeCvTermValue(CvTerm cvTerm, boolean showValue) throws IOException {
+    private String getCvTermLine(String tabSpace, CvTerm cvTerm, boolean showValue) {
+
+        String line = tabSpace + "<cvParam "
+                + "cvRef=\"" + StringEscapeUtils.escapeHtml4(cvTerm.getOntology()) + "\" "
+                + "accession=\"" + cvTerm.getAccession() + "\" "
+                + "name=\"" + StringEscapeUtils.escapeHtml4(cvTerm.getName()) + "\"";
+
         if (showValue && cvTerm.getValue() != null) {
-            br.write(" value=\"" + StringEscapeUtils.escapeHtml4(cvTerm.getValue()) + "\"/>" + lineBreak);
+            return line + " value=\"" + StringEscapeUtils.escapeHtml4(cvTerm.getValue()) + "\"/>" + lineBreak;
         } else {
-            br.write("/>" + lineBreak);
+            return line + "/>" + lineBreak;
         }
     }
 
@@ -2084,6 +2191,301 @@ public class MzIdentMLExport {
      * @param value the value of the user parameter
      */
     private void writeUserParam(String name, String value) throws IOException {
-        br.write(getCurrentTabSpace() + "<userParam name=\"" + StringEscapeUtils.escapeHtml4(name) + "\" value=\"" + StringEscapeUtils.escapeHtml4(value) + "\" />" + lineBreak);
+        br.write(getUserParamLine(getCurrentTabSpace(), name, value));
+    }
+
+    /**
+     * Convenience method returning the line of a user parameter.
+     *
+     * @param tabSpace the tabs in the beginning of the line
+     * @param name the name of the user parameter
+     * @param value the value of the user parameter
+     *
+     * @return the line of the user parameter
+     */
+    private String getUserParamLine(String tabSpace, String name, String value) {
+        return tabSpace + "<userParam name=\"" + StringEscapeUtils.escapeHtml4(name) + "\" value=\"" + StringEscapeUtils.escapeHtml4(value) + "\" />" + lineBreak;
+    }
+
+    /**
+     * Returns the ID of a spectrum identification item.
+     *
+     * @param psmIndex the index of the PSM
+     * @param rank the rank of the peptide assumption
+     *
+     * @return the ID of the spectrum identification item
+     */
+    private static String getSpectrumIdentificationItemId(int psmIndex, int rank) {
+        return "SII_" + psmIndex + "_" + rank;
+    }
+
+    /**
+     * Submits a batch rendering task. If the number of rendered batches
+     * waiting to be written is too large, the rendered batches are written
+     * until a slot is available.
+     *
+     * @param stage the stage running the rendering tasks
+     * @param fragments the rendered batches
+     * @param runnable the rendering task
+     * @param batchIndex the index of the batch
+     *
+     * @return a boolean indicating whether the task was submitted, false if
+     * the process was canceled
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while writing the export
+     */
+    private boolean submitBatch(ProcessingStage stage, OrderedResults<XmlFragment> fragments, Runnable runnable, long batchIndex)
+            throws IOException, InterruptedException {
+
+        long maxPendingBatches = 2 * ProcessingScheduler.TASKS_PER_THREAD * processingPreferences.getnThreads();
+
+        while (batchIndex - fragments.getNextIndex() >= maxPendingBatches) {
+            XmlFragment fragment = fragments.take(stage);
+            if (fragment == null) {
+                return false;
+            }
+            br.write(fragment.toString());
+        }
+
+        XmlFragment fragment = fragments.poll();
+        while (fragment != null) {
+            br.write(fragment.toString());
+            fragment = fragments.poll();
+        }
+
+        return stage.submit(runnable);
+    }
+
+    /**
+     * Writes the remaining batches as they get rendered and waits for the
+     * completion of the stage.
+     *
+     * @param stage the stage running the rendering tasks
+     * @param fragments the rendered batches
+     * @param nBatches the total number of batches
+     *
+     * @return a boolean indicating whether all batches were written, false if
+     * the process was canceled
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while writing the export
+     */
+    private boolean writeRemainingBatches(ProcessingStage stage, OrderedResults<XmlFragment> fragments, long nBatches)
+            throws IOException, InterruptedException {
+
+        while (fragments.getNextIndex() < nBatches) {
+            XmlFragment fragment = fragments.take(stage);
+            if (fragment == null) {
+                break;
+            }
+            br.write(fragment.toString());
+        }
+
+        return stage.awaitCompletion() && !waitingHandler.isRunCanceled();
+    }
+
+    /**
+     * A fragment of the mzIdentML file rendered in memory, keeping track of
+     * its own indentation.
+     *
+     * @author Marc Vaudel
+     */
+    private class XmlFragment {
+
+        /**
+         * The content of the fragment.
+         */
+        private final StringBuilder content = new StringBuilder();
+        /**
+         * Integer keeping track of the number of tabs to include at the
+         * beginning of each line.
+         */
+        private int tabCounter;
+
+        /**
+         * Constructor.
+         *
+         * @param tabCounter the number of tabs at the beginning of the
+         * fragment
+         */
+        public XmlFragment(int tabCounter) {
+            this.tabCounter = tabCounter;
+        }
+
+        /**
+         * Appends text to the fragment.
+         *
+         * @param text the text to append
+         */
+        public void write(String text) {
+            content.append(text);
+        }
+
+        /**
+         * Returns the tabs in the beginning of each line depending on the
+         * tabCounter.
+         *
+         * @return the tabs in the beginning of each line as a string
+         */
+        public String getCurrentTabSpace() {
+            return getTabSpace(tabCounter);
+        }
+
+        /**
+         * Writes a CV term.
+         *
+         * @param cvTerm the CV term
+         */
+        public void writeCvTerm(CvTerm cvTerm) {
+            content.append(getCvTermLine(getCurrentTabSpace(), cvTerm, true));
+        }
+
+        /**
+         * Writes a user parameter.
+         *
+         * @param name the name of the user parameter
+         * @param value the value of the user parameter
+         */
+        public void writeUserParam(String name, String value) {
+            content.append(getUserParamLine(getCurrentTabSpace(), name, value));
+        }
+
+        @Override
+        public String toString() {
+            return content.toString();
+        }
+    }
+
+    /**
+     * Runnable rendering a batch of spectrum identification results.
+     *
+     * @author Marc Vaudel
+     */
+    private class SpectrumIdentificationResultsRunnable implements Runnable {
+
+        /**
+         * The index of the batch.
+         */
+        private final long batchIndex;
+        /**
+         * The PSMs to render.
+         */
+        private final ArrayList<SpectrumMatch> spectrumMatches;
+        /**
+         * The index of the first PSM of the batch.
+         */
+        private final int firstPsmIndex;
+        /**
+         * The rendered batches.
+         */
+        private final OrderedResults<XmlFragment> fragments;
+        /**
+         * The number of tabs at the beginning of the batch.
+         */
+        private final int tabCounter;
+        /**
+         * The spectrum annotator of this batch.
+         */
+        private final PeptideSpectrumAnnotator peptideSpectrumAnnotator = new PeptideSpectrumAnnotator();
+
+        /**
+         * Constructor.
+         *
+         * @param batchIndex the index of the batch
+         * @param spectrumMatches the PSMs to render
+         * @param firstPsmIndex the index of the first PSM of the batch
+         * @param fragments the rendered batches
+         * @param tabCounter the number of tabs at the beginning of the batch
+         */
+        public SpectrumIdentificationResultsRunnable(long batchIndex, ArrayList<SpectrumMatch> spectrumMatches, int firstPsmIndex,
+                OrderedResults<XmlFragment> fragments, int tabCounter) {
+            this.batchIndex = batchIndex;
+            this.spectrumMatches = spectrumMatches;
+            this.firstPsmIndex = firstPsmIndex;
+            this.fragments = fragments;
+            this.tabCounter = tabCounter;
+        }
+
+        @Override
+        public void run() {
+            try {
+                XmlFragment fragment = new XmlFragment(tabCounter);
+                for (int i = 0; i < spectrumMatches.size() && !waitingHandler.isRunCanceled(); i++) {
+                    writeSpectrumIdentificationResult(spectrumMatches.get(i), firstPsmIndex + i, fragment, peptideSpectrumAnnotator);
+                    waitingHandler.increasePrimaryProgressCounter();
+                }
+                fragments.add(batchIndex, fragment);
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                waitingHandler.setRunCanceled();
+            }
+        }
+    }
+
+    /**
+     * Runnable rendering a batch of protein ambiguity groups.
+     *
+     * @author Marc Vaudel
+     */
+    private class ProteinAmbiguityGroupsRunnable implements Runnable {
+
+        /**
+         * The index of the batch.
+         */
+        private final long batchIndex;
+        /**
+         * The protein matches to render.
+         */
+        private final ArrayList<ProteinMatch> proteinMatches;
+        /**
+         * The index of the first group of the batch.
+         */
+        private final int firstGroupIndex;
+        /**
+         * The rendered batches.
+         */
+        private final OrderedResults<XmlFragment> fragments;
+        /**
+         * The number of tabs at the beginning of the batch.
+         */
+        private final int tabCounter;
+
+        /**
+         * Constructor.
+         *
+         * @param batchIndex the index of the batch
+         * @param proteinMatches the protein matches to render
+         * @param firstGroupIndex the index of the first group of the batch
+         * @param fragments the rendered batches
+         * @param tabCounter the number of tabs at the beginning of the batch
+         */
+        public ProteinAmbiguityGroupsRunnable(long batchIndex, ArrayList<ProteinMatch> proteinMatches, int firstGroupIndex,
+                OrderedResults<XmlFragment> fragments, int tabCounter) {
+            this.batchIndex = batchIndex;
+            this.proteinMatches = proteinMatches;
+            this.firstGroupIndex = firstGroupIndex;
+            this.fragments = fragments;
+            this.tabCounter = tabCounter;
+        }
+
+        @Override
+        public void run() {
+            try {
+                XmlFragment fragment = new XmlFragment(tabCounter);
+                for (int i = 0; i < proteinMatches.size() && !waitingHandler.isRunCanceled(); i++) {
+                    writeProteinAmbiguityGroup(proteinMatches.get(i), firstGroupIndex + i, fragment);
+                    waitingHandler.increasePrimaryProgressCounter();
+                }
+                fragments.add(batchIndex, fragment);
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                waitingHandler.setRunCanceled();
+            }
+        }
     }
 }
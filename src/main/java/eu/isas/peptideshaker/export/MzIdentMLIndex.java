@@ -0,0 +1,207 @@
+package eu.isas.peptideshaker.export;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Index of the identifiers used to cross reference the elements of an
+ * mzIdentML file. Peptides and spectra are given an integer index and the
+ * identifiers are stored in primitive arrays instead of one string per
+ * element. The index is filled by a single thread and can then be read by
+ * multiple threads.
+ *
+ * @author Marc Vaudel
+ */
+public class MzIdentMLIndex {
+
+    /**
+     * Peptide key to peptide index.
+     */
+    private final HashMap<String, Integer> peptideIndexes = new HashMap<String, Integer>();
+    /**
+     * The number of peptides indexed.
+     */
+    private int nPeptides = 0;
+    /**
+     * The key of every peptide.
+     */
+    private String[] peptideKeys = new String[1024];
+    /**
+     * The id of the first peptide evidence of every peptide.
+     */
+    private int[] firstEvidenceIds = new int[1024];
+    /**
+     * The accessions of the peptide evidences of every peptide.
+     */
+    private String[][] evidenceAccessions = new String[1024][];
+    /**
+     * The start indexes of the peptide evidences of every peptide.
+     */
+    private int[][] evidenceStarts = new int[1024][];
+    /**
+     * The number of peptide evidences indexed.
+     */
+    private int nEvidences = 0;
+    /**
+     * Spectrum key to spectrum index.
+     */
+    private final HashMap<String, Integer> spectrumIndexes = new HashMap<String, Integer>();
+    /**
+     * The index of the peptide of every spectrum.
+     */
+    private int[] spectrumPeptides = new int[1024];
+    /**
+     * The index of the spectrum identification result of every spectrum, 0 if
+     * not set.
+     */
+    private int[] spectrumResultIndexes = null;
+
+    /**
+     * Constructor.
+     */
+    public MzIdentMLIndex() {
+    }
+
+    /**
+     * Adds a peptide and the spectra it was identified from.
+     *
+     * @param peptideKey the key of the peptide
+     * @param spectrumKeys the keys of the spectra
+     */
+    public void addPeptide(String peptideKey, ArrayList<String> spectrumKeys) {
+        if (nPeptides == firstEvidenceIds.length) {
+            int newLength = 2 * nPeptides;
+            peptideKeys = Arrays.copyOf(peptideKeys, newLength);
+            firstEvidenceIds = Arrays.copyOf(firstEvidenceIds, newLength);
+            evidenceAccessions = Arrays.copyOf(evidenceAccessions, newLength);
+            evidenceStarts = Arrays.copyOf(evidenceStarts, newLength);
+        }
+        int peptideIndex = nPeptides++;
+        peptideKeys[peptideIndex] = peptideKey;
+        peptideIndexes.put(peptideKey, peptideIndex);
+        for (String spectrumKey : spectrumKeys) {
+            Integer spectrumIndex = spectrumIndexes.get(spectrumKey);
+            if (spectrumIndex == null) {
+                spectrumIndex = spectrumIndexes.size();
+                if (spectrumIndex == spectrumPeptides.length) {
+                    spectrumPeptides = Arrays.copyOf(spectrumPeptides, 2 * spectrumIndex);
+                }
+                spectrumIndexes.put(spectrumKey, spectrumIndex);
+            }
+            spectrumPeptides[spectrumIndex] = peptideIndex;
+        }
+    }
+
+    /**
+     * Sets the peptide evidences of a peptide and returns the id of the first
+     * one. The ids are attributed consecutively in the order of the given
+     * evidences.
+     *
+     * @param peptideKey the key of the peptide
+     * @param accessions the accessions of the proteins of the evidences
+     * @param starts the start indexes of the evidences on the proteins
+     *
+     * @return the id of the first peptide evidence
+     */
+    public int setPeptideEvidences(String peptideKey, String[] accessions, int[] starts) {
+        Integer peptideIndex = peptideIndexes.get(peptideKey);
+        if (peptideIndex == null) {
+            throw new IllegalArgumentException("Peptide " + peptideKey + " not indexed.");
+        }
+        int firstId = nEvidences + 1;
+        firstEvidenceIds[peptideIndex] = firstId;
+        evidenceAccessions[peptideIndex] = accessions;
+        evidenceStarts[peptideIndex] = starts;
+        nEvidences += accessions.length;
+        return firstId;
+    }
+
+    /**
+     * Returns the id of the peptide evidence of the given peptide on the given
+     * protein at the given position, null if not found.
+     *
+     * @param peptideKey the key of the peptide
+     * @param accession the accession of the protein
+     * @param start the start index of the peptide on the protein
+     *
+     * @return the id of the peptide evidence
+     */
+    public String getPeptideEvidenceId(String peptideKey, String accession, int start) {
+        Integer peptideIndex = peptideIndexes.get(peptideKey);
+        if (peptideIndex == null) {
+            return null;
+        }
+        String[] accessions = evidenceAccessions[peptideIndex];
+        if (accessions == null) {
+            return null;
+        }
+        int[] starts = evidenceStarts[peptideIndex];
+        for (int i = 0; i < accessions.length; i++) {
+            if (starts[i] == start && accessions[i].equals(accession)) {
+                return getPeptideEvidenceId(firstEvidenceIds[peptideIndex] + i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the peptide evidence id corresponding to the given number.
+     *
+     * @param evidenceNumber the number of the peptide evidence
+     *
+     * @return the peptide evidence id
+     */
+    public static String getPeptideEvidenceId(int evidenceNumber) {
+        return "PepEv_" + evidenceNumber;
+    }
+
+    /**
+     * Returns the key of the peptide identified from the given spectrum, null
+     * if not found.
+     *
+     * @param spectrumKey the key of the spectrum
+     *
+     * @return the key of the peptide
+     */
+    public String getPeptideKey(String spectrumKey) {
+        Integer spectrumIndex = spectrumIndexes.get(spectrumKey);
+        if (spectrumIndex == null) {
+            return null;
+        }
+        return peptideKeys[spectrumPeptides[spectrumIndex]];
+    }
+
+    /**
+     * Sets the index of the spectrum identification result of a spectrum.
+     *
+     * @param spectrumKey the key of the spectrum
+     * @param resultIndex the index of the spectrum identification result,
+     * strictly positive
+     */
+    public void setSpectrumIdentificationResultIndex(String spectrumKey, int resultIndex) {
+        Integer spectrumIndex = spectrumIndexes.get(spectrumKey);
+        if (spectrumIndex != null) {
+            if (spectrumResultIndexes == null) {
+                spectrumResultIndexes = new int[spectrumIndexes.size()];
+            }
+            spectrumResultIndexes[spectrumIndex] = resultIndex;
+        }
+    }
+
+    /**
+     * Returns the index of the spectrum identification result of a spectrum,
+     * 0 if not set.
+     *
+     * @param spectrumKey the key of the spectrum
+     *
+     * @return the index of the spectrum identification result
+     */
+    public int getSpectrumIdentificationResultIndex(String spectrumKey) {
+        Integer spectrumIndex = spectrumIndexes.get(spectrumKey);
+        if (spectrumIndex == null || spectrumResultIndexes == null) {
+            return 0;
+        }
+        return spectrumResultIndexes[spectrumIndex];
+    }
+}
@@ -1,5 +1,6 @@
 package eu.isas.peptideshaker.export;
 
+import com.compomics.util.exceptions.ExceptionHandler;
 import com.compomics.util.experiment.biology.genes.GeneMaps;
 import com.compomics.util.io.export.ExportScheme;
 import com.compomics.util.io.export.ExportFeature;
@@ -11,6 +12,8 @@ import com.compomics.util.io.export.ExportFormat;
 import com.compomics.util.io.export.ExportWriter;
 import com.compomics.util.io.export.writers.ExcelWriter;
 import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.preferences.ProcessingPreferences;
+import eu.isas.peptideshaker.export.columnar.ColumnarWriter;
 import eu.isas.peptideshaker.export.exportfeatures.PsAnnotationFeature;
 import eu.isas.peptideshaker.export.exportfeatures.PsFragmentFeature;
 import eu.isas.peptideshaker.export.exportfeatures.PsIdentificationAlgorithmMatchesFeature;
@@ -248,7 +251,9 @@ public class PSExportFactory implements ExportFactory {
      * @param identificationParameters the identification parameters
      * @param spectrumCountingPreferences the spectrum counting preferences
      * (mandatory for the spectrum counting section)
+     * @param processingPreferences the processing preferences
      * @param waitingHandler the waiting handler
+     * @param exceptionHandler handler for the exceptions
      *
      * @throws IOException exception thrown whenever an IO exception occurred
      * while reading or writing to a file
@@ -268,7 +273,8 @@ public class PSExportFactory implements ExportFactory {
             ProjectDetails projectDetails, Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps,
             ArrayList<String> proteinKeys, ArrayList<String> peptideKeys, ArrayList<String> psmKeys,
             String proteinMatchKey, int nSurroundingAA, IdentificationParameters identificationParameters,
-            SpectrumCountingPreferences spectrumCountingPreferences, WaitingHandler waitingHandler)
+            SpectrumCountingPreferences spectrumCountingPreferences, ProcessingPreferences processingPreferences, WaitingHandler waitingHandler,
+            ExceptionHandler exceptionHandler)
             throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
 
         ExportWriter exportWriter = ExportWriter.getExportWriter(exportFormat, destinationFile, exportScheme.getSeparator(), exportScheme.getSeparationLines());
@@ -278,10 +284,75 @@ public class PSExportFactory implements ExportFactory {
             excelWriter.setWorkbookStyle(exportStyle);
         }
 
+        writeExport(exportScheme, exportWriter, experiment, sample, replicateNumber, projectDetails, identification, identificationFeaturesGenerator, geneMaps,
+                proteinKeys, peptideKeys, psmKeys, proteinMatchKey, nSurroundingAA, identificationParameters, spectrumCountingPreferences, processingPreferences,
+                waitingHandler, exceptionHandler);
+    }
+
+    /**
+     * Writes the desired export using the given writer, e.g., a
+     * ColumnarWriter. The writer is closed when done. If an argument is not
+     * needed, provide null (at your own risks).
+     *
+     * @param exportScheme the scheme of the export
+     * @param exportWriter the writer to use
+     * @param experiment the experiment corresponding to this project (mandatory
+     * for the Project section)
+     * @param sample the sample of the project (mandatory for the Project
+     * section)
+     * @param replicateNumber the replicate number of the project (mandatory for
+     * the Project section)
+     * @param projectDetails the project details (mandatory for the Project
+     * section)
+     * @param identification the identification (mandatory for the Protein,
+     * Peptide and PSM sections)
+     * @param identificationFeaturesGenerator the identification features
+     * generator (mandatory for the Protein, Peptide and PSM sections)
+     * @param geneMaps the gene maps
+     * @param proteinKeys the protein keys to export (mandatory for the Protein
+     * section)
+     * @param peptideKeys the peptide keys to export (mandatory for the Peptide
+     * section)
+     * @param psmKeys the keys of the PSMs to export (mandatory for the PSM
+     * section)
+     * @param proteinMatchKey the protein match key when exporting peptides from
+     * a single protein match (optional for the Peptide sections)
+     * @param nSurroundingAA the number of surrounding amino acids to export
+     * (mandatory for the Peptide section)
+     * @param identificationParameters the identification parameters
+     * @param spectrumCountingPreferences the spectrum counting preferences
+     * (mandatory for the spectrum counting section)
+     * @param processingPreferences the processing preferences
+     * @param waitingHandler the waiting handler
+     * @param exceptionHandler handler for the exceptions
+     *
+     * @throws IOException exception thrown whenever an IO exception occurred
+     * while reading or writing to a file
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while interacting with the database
+     * @throws SQLException exception thrown whenever an SQL exception occurred
+     * while interacting with the database
+     * @throws ClassNotFoundException exception thrown whenever an exception
+     * occurred while deserializing an object
+     * @throws MzMLUnmarshallerException exception thrown whenever an exception
+     * occurred while reading an mzML file
+     * @throws org.apache.commons.math.MathException exception thrown whenever
+     * an exception occurred while estimating the theoretical coverage of a
+     * protein
+     */
+    public static void writeExport(ExportScheme exportScheme, ExportWriter exportWriter, String experiment, String sample, int replicateNumber,
+            ProjectDetails projectDetails, Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps,
+            ArrayList<String> proteinKeys, ArrayList<String> peptideKeys, ArrayList<String> psmKeys,
+            String proteinMatchKey, int nSurroundingAA, IdentificationParameters identificationParameters,
+            SpectrumCountingPreferences spectrumCountingPreferences, ProcessingPreferences processingPreferences, WaitingHandler waitingHandler,
+            ExceptionHandler exceptionHandler)
+            throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
+
         exportWriter.writeMainTitle(exportScheme.getMainTitle());
 
         for (String sectionName : exportScheme.getSections()) {
-            if (exportScheme.isIncludeSectionTitles()) {
+            // columnar reports store the section titles as table names
+            if (exportScheme.isIncludeSectionTitles() || exportWriter instanceof ColumnarWriter) {
                 exportWriter.startNewSection(sectionName);
             } else {
                 exportWriter.startNewSection();
@@ -294,16 +365,16 @@ public class PSExportFactory implements ExportFactory {
                 section.writeSection(identificationParameters.getPeptideAssumptionFilter(), waitingHandler);
             } else if (sectionName.equals(PsPeptideFeature.type)) {
                 PsPeptideSection section = new PsPeptideSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
-                section.writeSection(identification, identificationFeaturesGenerator, identificationParameters, peptideKeys, nSurroundingAA, "", exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy(), waitingHandler);
+                section.writeSection(identification, identificationFeaturesGenerator, identificationParameters, peptideKeys, nSurroundingAA, "", exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy(), processingPreferences, waitingHandler, exceptionHandler);
             } else if (sectionName.equals(PsProjectFeature.type)) {
                 PsProjectSection section = new PsProjectSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
                 section.writeSection(experiment, sample, replicateNumber, projectDetails, waitingHandler);
             } else if (sectionName.equals(PsProteinFeature.type)) {
                 PsProteinSection section = new PsProteinSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
-                section.writeSection(identification, identificationFeaturesGenerator, geneMaps, identificationParameters, psmKeys, nSurroundingAA, exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy(), waitingHandler);
+                section.writeSection(identification, identificationFeaturesGenerator, geneMaps, identificationParameters, psmKeys, nSurroundingAA, exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy(), processingPreferences, waitingHandler, exceptionHandler);
             } else if (sectionName.equals(PsPsmFeature.type)) {
                 PsPsmSection section = new PsPsmSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
-                section.writeSection(identification, identificationFeaturesGenerator, identificationParameters, psmKeys, "", nSurroundingAA, exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy(), waitingHandler);
+                section.writeSection(identification, identificationFeaturesGenerator, identificationParameters, psmKeys, "", nSurroundingAA, exportScheme.isValidatedOnly(), exportScheme.isIncludeDecoy(), processingPreferences, waitingHandler, exceptionHandler);
             } else if (sectionName.equals(PsIdentificationAlgorithmMatchesFeature.type)) {
                 PsIdentificationAlgorithmMatchesSection section = new PsIdentificationAlgorithmMatchesSection(exportScheme.getExportFeatures(sectionName), exportScheme.isIndexes(), exportScheme.isHeader(), exportWriter);
                 section.writeSection(identification, identificationFeaturesGenerator, identificationParameters, psmKeys, "", nSurroundingAA, waitingHandler);
@@ -396,7 +467,22 @@ public class PSExportFactory implements ExportFactory {
      * @return the default file name for the export
      */
     public static String getDefaultReportName(String experiment, String sample, int replicate, String exportName) {
-        return experiment + "_" + sample + "_" + replicate + "_" + exportName + ".txt";
+        return getDefaultReportName(experiment, sample, replicate, exportName, ReportFormat.text);
+    }
+
+    /**
+     * Returns the default file name for the export of a report in the given
+     * format based on the project details
+     *
+     * @param experiment the experiment of the project
+     * @param sample the sample of the project
+     * @param replicate the replicate number
+     * @param exportName the name of the report type
+     * @param reportFormat the format of the report
+     * @return the default file name for the export
+     */
+    public static String getDefaultReportName(String experiment, String sample, int replicate, String exportName, ReportFormat reportFormat) {
+        return experiment + "_" + sample + "_" + replicate + "_" + exportName + reportFormat.extension;
     }
 
     /**
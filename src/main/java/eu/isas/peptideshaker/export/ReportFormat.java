@@ -0,0 +1,68 @@
+package eu.isas.peptideshaker.export;
+
+/**
+ * The file formats available for the reports.
+ *
+ * @author Marc Vaudel
+ */
+public enum ReportFormat {
+
+    /**
+     * Tab separated text file.
+     */
+    text(0, "Text", ".txt"),
+    /**
+     * Columnar binary file, see the ColumnarReader.
+     */
+    columnar(1, "Columnar binary", ".psc");
+    /**
+     * Index for the report format.
+     */
+    public final int index;
+    /**
+     * Description of the report format.
+     */
+    public final String description;
+    /**
+     * The extension of the file.
+     */
+    public final String extension;
+
+    /**
+     * Constructor.
+     *
+     * @param index the index number of the format
+     * @param description the description of the format
+     * @param extension the extension of the file
+     */
+    private ReportFormat(int index, String description, String extension) {
+        this.index = index;
+        this.description = description;
+        this.extension = extension;
+    }
+
+    /**
+     * Returns the report format corresponding to a given index.
+     *
+     * @param index the index of interest
+     * @return the report format corresponding to a given index
+     */
+    public static ReportFormat getTypeFromIndex(int index) {
+        for (ReportFormat reportFormat : values()) {
+            if (reportFormat.index == index) {
+                return reportFormat;
+            }
+        }
+        throw new IllegalArgumentException("Report format index " + index + " not implemented.");
+    }
+
+    /**
+     * Returns a description of the command line arguments.
+     *
+     * @return a description of the command line arguments
+     */
+    public static String getCommandLineOptions() {
+        return text.index + ": " + text.description + " (default), "
+                + columnar.index + ": " + columnar.description + ".";
+    }
+}
@@ -0,0 +1,192 @@
+package eu.isas.peptideshaker.export.columnar;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Description of a compressed chunk of a column in a columnar report: its type,
+ * its position in the file and statistics on its values.
+ *
+ * @author Marc Vaudel
+ */
+public class ColumnChunk {
+
+    /**
+     * The maximal length of text values used as statistics.
+     */
+    public static final int MAX_STATISTICS_LENGTH = 256;
+    /**
+     * The type of the values.
+     */
+    private final ColumnType type;
+    /**
+     * The number of values.
+     */
+    private final int nValues;
+    /**
+     * The number of missing values.
+     */
+    private final int nMissing;
+    /**
+     * The position of the compressed data in the file.
+     */
+    private final long offset;
+    /**
+     * The length of the compressed data.
+     */
+    private final int compressedLength;
+    /**
+     * The length of the data once decompressed.
+     */
+    private final int length;
+    /**
+     * The smallest and largest values, null if not available.
+     */
+    private final ColumnStatistics statistics;
+
+    /**
+     * Constructor.
+     *
+     * @param type the type of the values
+     * @param nValues the number of values
+     * @param nMissing the number of missing values
+     * @param offset the position of the compressed data in the file
+     * @param compressedLength the length of the compressed data
+     * @param length the length of the data once decompressed
+     * @param statistics the smallest and largest values, null if not
+     * available
+     */
+    public ColumnChunk(ColumnType type, int nValues, int nMissing, long offset, int compressedLength, int length, ColumnStatistics statistics) {
+        this.type = type;
+        this.nValues = nValues;
+        this.nMissing = nMissing;
+        this.offset = offset;
+        this.compressedLength = compressedLength;
+        this.length = length;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Returns the type of the values.
+     *
+     * @return the type of the values
+     */
+    public ColumnType getType() {
+        return type;
+    }
+
+    /**
+     * Returns the number of values.
+     *
+     * @return the number of values
+     */
+    public int getnValues() {
+        return nValues;
+    }
+
+    /**
+     * Returns the number of missing values.
+     *
+     * @return the number of missing values
+     */
+    public int getnMissing() {
+        return nMissing;
+    }
+
+    /**
+     * Returns the position of the compressed data in the file.
+     *
+     * @return the position of the compressed data in the file
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns the length of the compressed data.
+     *
+     * @return the length of the compressed data
+     */
+    public int getCompressedLength() {
+        return compressedLength;
+    }
+
+    /**
+     * Returns the length of the data once decompressed.
+     *
+     * @return the length of the data once decompressed
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the smallest and largest values of the chunk, of the type of the
+     * chunk, null if not available.
+     *
+     * @return the smallest and largest values of the chunk
+     */
+    public ColumnStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Indicates whether the chunk may contain numbers in the given range
+     * according to its statistics. Returns true for text chunks.
+     *
+     * @param lowerBound the lower bound of the range
+     * @param upperBound the upper bound of the range
+     *
+     * @return a boolean indicating whether the chunk may contain numbers in the
+     * given range
+     */
+    public boolean mayContain(double lowerBound, double upperBound) {
+        return statistics == null || statistics.mayContain(lowerBound, upperBound);
+    }
+
+    /**
+     * Writes the description of the chunk.
+     *
+     * @param outputStream the stream where to write
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing
+     */
+    public void write(DataOutputStream outputStream) throws IOException {
+        outputStream.writeByte(type.index);
+        outputStream.writeInt(nValues);
+        outputStream.writeInt(nMissing);
+        outputStream.writeLong(offset);
+        outputStream.writeInt(compressedLength);
+        outputStream.writeInt(length);
+        outputStream.writeBoolean(statistics != null);
+        if (statistics != null) {
+            statistics.write(outputStream);
+        }
+    }
+
+    /**
+     * Reads the description of a chunk.
+     *
+     * @param inputStream the stream where to read
+     *
+     * @return the description of the chunk
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading
+     */
+    public static ColumnChunk read(DataInputStream inputStream) throws IOException {
+        ColumnType type = ColumnType.getType(inputStream.readByte());
+        int nValues = inputStream.readInt();
+        int nMissing = inputStream.readInt();
+        long offset = inputStream.readLong();
+        int compressedLength = inputStream.readInt();
+        int length = inputStream.readInt();
+        ColumnStatistics statistics = null;
+        if (inputStream.readBoolean()) {
+            statistics = ColumnStatistics.read(type, inputStream);
+        }
+        return new ColumnChunk(type, nValues, nMissing, offset, compressedLength, length, statistics);
+    }
+}
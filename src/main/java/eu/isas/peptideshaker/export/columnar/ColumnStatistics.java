@@ -0,0 +1,247 @@
+package eu.isas.peptideshaker.export.columnar;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The smallest and largest values of a column chunk. The values are stored
+ * with the type of the chunk.
+ *
+ * @author Marc Vaudel
+ */
+public abstract class ColumnStatistics {
+
+    /**
+     * Returns the type of the values.
+     *
+     * @return the type of the values
+     */
+    public abstract ColumnType getType();
+
+    /**
+     * Indicates whether the chunk may contain numbers in the given range.
+     * Returns true for text values.
+     *
+     * @param lowerBound the lower bound of the range
+     * @param upperBound the upper bound of the range
+     *
+     * @return a boolean indicating whether the chunk may contain numbers in the
+     * given range
+     */
+    public abstract boolean mayContain(double lowerBound, double upperBound);
+
+    /**
+     * Writes the smallest and largest values.
+     *
+     * @param outputStream the stream where to write
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing
+     */
+    public abstract void write(DataOutputStream outputStream) throws IOException;
+
+    /**
+     * Reads statistics of the given type.
+     *
+     * @param type the type of the values
+     * @param inputStream the stream where to read
+     *
+     * @return the statistics
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading
+     */
+    public static ColumnStatistics read(ColumnType type, DataInputStream inputStream) throws IOException {
+        switch (type) {
+            case LONG:
+                return new LongStatistics(inputStream.readLong(), inputStream.readLong());
+            case DOUBLE:
+                return new DoubleStatistics(inputStream.readDouble(), inputStream.readDouble());
+            case STRING:
+                return new TextStatistics(inputStream.readUTF(), inputStream.readUTF());
+            default:
+                throw new UnsupportedOperationException("Column type " + type + " not implemented.");
+        }
+    }
+
+    /**
+     * Statistics of integer values.
+     */
+    public static class LongStatistics extends ColumnStatistics {
+
+        /**
+         * The smallest value.
+         */
+        private final long min;
+        /**
+         * The largest value.
+         */
+        private final long max;
+
+        /**
+         * Constructor.
+         *
+         * @param min the smallest value
+         * @param max the largest value
+         */
+        public LongStatistics(long min, long max) {
+            this.min = min;
+            this.max = max;
+        }
+
+        /**
+         * Returns the smallest value.
+         *
+         * @return the smallest value
+         */
+        public long getMin() {
+            return min;
+        }
+
+        /**
+         * Returns the largest value.
+         *
+         * @return the largest value
+         */
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public ColumnType getType() {
+            return ColumnType.LONG;
+        }
+
+        @Override
+        public boolean mayContain(double lowerBound, double upperBound) {
+            return max >= lowerBound && min <= upperBound;
+        }
+
+        @Override
+        public void write(DataOutputStream outputStream) throws IOException {
+            outputStream.writeLong(min);
+            outputStream.writeLong(max);
+        }
+    }
+
+    /**
+     * Statistics of floating point values.
+     */
+    public static class DoubleStatistics extends ColumnStatistics {
+
+        /**
+         * The smallest value.
+         */
+        private final double min;
+        /**
+         * The largest value.
+         */
+        private final double max;
+
+        /**
+         * Constructor.
+         *
+         * @param min the smallest value
+         * @param max the largest value
+         */
+        public DoubleStatistics(double min, double max) {
+            this.min = min;
+            this.max = max;
+        }
+
+        /**
+         * Returns the smallest value.
+         *
+         * @return the smallest value
+         */
+        public double getMin() {
+            return min;
+        }
+
+        /**
+         * Returns the largest value.
+         *
+         * @return the largest value
+         */
+        public double getMax() {
+            return max;
+        }
+
+        @Override
+        public ColumnType getType() {
+            return ColumnType.DOUBLE;
+        }
+
+        @Override
+        public boolean mayContain(double lowerBound, double upperBound) {
+            return max >= lowerBound && min <= upperBound;
+        }
+
+        @Override
+        public void write(DataOutputStream outputStream) throws IOException {
+            outputStream.writeDouble(min);
+            outputStream.writeDouble(max);
+        }
+    }
+
+    /**
+     * Statistics of text values.
+     */
+    public static class TextStatistics extends ColumnStatistics {
+
+        /**
+         * The smallest value.
+         */
+        private final String min;
+        /**
+         * The largest value.
+         */
+        private final String max;
+
+        /**
+         * Constructor.
+         *
+         * @param min the smallest value
+         * @param max the largest value
+         */
+        public TextStatistics(String min, String max) {
+            this.min = min;
+            this.max = max;
+        }
+
+        /**
+         * Returns the smallest value.
+         *
+         * @return the smallest value
+         */
+        public String getMin() {
+            return min;
+        }
+
+        /**
+         * Returns the largest value.
+         *
+         * @return the largest value
+         */
+        public String getMax() {
+            return max;
+        }
+
+        @Override
+        public ColumnType getType() {
+            return ColumnType.STRING;
+        }
+
+        @Override
+        public boolean mayContain(double lowerBound, double upperBound) {
+            return true;
+        }
+
+        @Override
+        public void write(DataOutputStream outputStream) throws IOException {
+            outputStream.writeUTF(min);
+            outputStream.writeUTF(max);
+        }
+    }
+}
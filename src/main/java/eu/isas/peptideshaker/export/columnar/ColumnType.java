@@ -0,0 +1,135 @@
+package eu.isas.peptideshaker.export.columnar;
+
+/**
+ * The types of the column chunks of a columnar report. The type is inferred
+ * for every chunk from the values it contains.
+ *
+ * @author Marc Vaudel
+ */
+public enum ColumnType {
+
+    /**
+     * Integer values.
+     */
+    LONG(0),
+    /**
+     * Floating point values.
+     */
+    DOUBLE(1),
+    /**
+     * Text values.
+     */
+    STRING(2);
+    /**
+     * The index of the type in the file.
+     */
+    public final int index;
+
+    /**
+     * Constructor.
+     *
+     * @param index the index of the type in the file
+     */
+    private ColumnType(int index) {
+        this.index = index;
+    }
+
+    /**
+     * Returns the type corresponding to the given index.
+     *
+     * @param index the index of the type in the file
+     *
+     * @return the type corresponding to the given index
+     */
+    public static ColumnType getType(int index) {
+        for (ColumnType columnType : values()) {
+            if (columnType.index == index) {
+                return columnType;
+            }
+        }
+        throw new IllegalArgumentException("Column type " + index + " not implemented.");
+    }
+
+    /**
+     * Returns the type allowing to store the given values without loss. Empty
+     * values are considered missing. Numbers are only used when their text
+     * representation can be recovered exactly.
+     *
+     * @param values the values
+     * @param length the number of values to inspect
+     *
+     * @return the type of the values
+     */
+    public static ColumnType inferType(String[] values, int length) {
+        boolean isLong = true;
+        boolean isDouble = true;
+        boolean empty = true;
+        for (int i = 0; i < length && (isLong || isDouble); i++) {
+            String value = values[i];
+            if (value == null || value.length() == 0) {
+                continue;
+            }
+            empty = false;
+            if (isLong) {
+                isLong = isLong(value);
+            }
+            if (!isLong && isDouble) {
+                isDouble = isDouble(value);
+            }
+        }
+        if (empty) {
+            return STRING;
+        } else if (isLong) {
+            return LONG;
+        } else if (isDouble) {
+            return DOUBLE;
+        }
+        return STRING;
+    }
+
+    /**
+     * Indicates whether the given value is an integer written as by
+     * Long.toString.
+     *
+     * @param value the value
+     *
+     * @return a boolean indicating whether the given value is an integer
+     */
+    private static boolean isLong(String value) {
+        int length = value.length();
+        int start = value.charAt(0) == '-' ? 1 : 0;
+        if (length == start || length - start > 18) {
+            return false;
+        }
+        if (value.charAt(start) == '0' && length - start > 1) {
+            return false;
+        }
+        for (int i = start; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return !value.equals("-0");
+    }
+
+    /**
+     * Indicates whether the given value is a number written as by
+     * Double.toString.
+     *
+     * @param value the value
+     *
+     * @return a boolean indicating whether the given value is a number
+     */
+    private static boolean isDouble(String value) {
+        char first = value.charAt(0);
+        if ((first < '0' || first > '9') && first != '-' && first != 'N' && first != 'I') {
+            return false;
+        }
+        try {
+            return Double.toString(Double.parseDouble(value)).equals(value);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package eu.isas.peptideshaker.export.columnar;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * The values of a column of a columnar report. Numbers are stored in
+ * primitive arrays.
+ *
+ * @author Marc Vaudel
+ */
+public class ColumnValues {
+
+    /**
+     * The encoding of the text values.
+     */
+    public static final Charset ENCODING = Charset.forName("UTF-8");
+    /**
+     * The type of the values.
+     */
+    private final ColumnType type;
+    /**
+     * The number of values.
+     */
+    private final int size;
+    /**
+     * Indicates for every value whether it is missing.
+     */
+    private final boolean[] missing;
+    /**
+     * The values if of type LONG.
+     */
+    private final long[] longValues;
+    /**
+     * The values if of type DOUBLE.
+     */
+    private final double[] doubleValues;
+    /**
+     * The values if of type STRING.
+     */
+    private final String[] stringValues;
+
+    /**
+     * Constructor.
+     *
+     * @param type the type of the values
+     * @param size the number of values
+     * @param missing indicates for every value whether it is missing
+     * @param longValues the values if of type LONG
+     * @param doubleValues the values if of type DOUBLE
+     * @param stringValues the values if of type STRING
+     */
+    private ColumnValues(ColumnType type, int size, boolean[] missing, long[] longValues, double[] doubleValues, String[] stringValues) {
+        this.type = type;
+        this.size = size;
+        this.missing = missing;
+        this.longValues = longValues;
+        this.doubleValues = doubleValues;
+        this.stringValues = stringValues;
+    }
+
+    /**
+     * Returns the type of the values.
+     *
+     * @return the type of the values
+     */
+    public ColumnType getType() {
+        return type;
+    }
+
+    /**
+     * Returns the number of values.
+     *
+     * @return the number of values
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Indicates whether the value at the given index is missing.
+     *
+     * @param index the index of the value
+     *
+     * @return a boolean indicating whether the value is missing
+     */
+    public boolean isMissing(int index) {
+        return missing[index];
+    }
+
+    /**
+     * Returns the value at the given index as a long, 0 if missing.
+     *
+     * @param index the index of the value
+     *
+     * @return the value at the given index
+     */
+    public long getLong(int index) {
+        switch (type) {
+            case LONG:
+                return longValues[index];
+            case DOUBLE:
+                return (long) doubleValues[index];
+            default:
+                if (missing[index]) {
+                    return 0;
+                }
+                throw new UnsupportedOperationException("Text values cannot be returned as number.");
+        }
+    }
+
+    /**
+     * Returns the value at the given index as a double, NaN if missing.
+     *
+     * @param index the index of the value
+     *
+     * @return the value at the given index
+     */
+    public double getDouble(int index) {
+        if (missing[index]) {
+            return Double.NaN;
+        }
+        switch (type) {
+            case LONG:
+                return longValues[index];
+            case DOUBLE:
+                return doubleValues[index];
+            default:
+                throw new UnsupportedOperationException("Text values cannot be returned as number.");
+        }
+    }
+
+    /**
+     * Returns the value at the given index as written in the report, an empty
+     * string if missing.
+     *
+     * @param index the index of the value
+     *
+     * @return the value at the given index
+     */
+    public String getString(int index) {
+        if (missing[index]) {
+            return "";
+        }
+        switch (type) {
+            case LONG:
+                return Long.toString(longValues[index]);
+            case DOUBLE:
+                return Double.toString(doubleValues[index]);
+            default:
+                return stringValues[index];
+        }
+    }
+
+    /**
+     * Returns the values of type LONG. Missing values are set to 0.
+     *
+     * @return the values of type LONG
+     */
+    public long[] getLongValues() {
+        if (type != ColumnType.LONG) {
+            throw new UnsupportedOperationException("Values of type " + type + " cannot be returned as long.");
+        }
+        return longValues;
+    }
+
+    /**
+     * Returns the values of type DOUBLE. Missing values are set to NaN.
+     *
+     * @return the values of type DOUBLE
+     */
+    public double[] getDoubleValues() {
+        if (type != ColumnType.DOUBLE) {
+            throw new UnsupportedOperationException("Values of type " + type + " cannot be returned as double.");
+        }
+        return doubleValues;
+    }
+
+    /**
+     * Returns the number of missing values.
+     *
+     * @return the number of missing values
+     */
+    public int getnMissing() {
+        int nMissing = 0;
+        for (int i = 0; i < size; i++) {
+            if (missing[i]) {
+                nMissing++;
+            }
+        }
+        return nMissing;
+    }
+
+    /**
+     * Returns values which are all missing.
+     *
+     * @param size the number of values
+     *
+     * @return values which are all missing
+     */
+    public static ColumnValues getMissingValues(int size) {
+        boolean[] missing = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            missing[i] = true;
+        }
+        String[] stringValues = new String[size];
+        return new ColumnValues(ColumnType.STRING, size, missing, null, null, stringValues);
+    }
+
+    /**
+     * Encodes the given values. The encoded values start with a bitmap of the
+     * missing values, followed by eight bytes per number, or the length of
+     * every text followed by the UTF-8 encoded texts.
+     *
+     * @param type the type of the values as inferred by
+     * ColumnType.inferType
+     * @param values the values
+     * @param size the number of values
+     *
+     * @return the encoded values
+     */
+    public static byte[] encode(ColumnType type, String[] values, int size) {
+
+        int bitmapLength = (size + 7) / 8;
+        byte[][] bytes = null;
+        int length = bitmapLength;
+
+        switch (type) {
+            case LONG:
+            case DOUBLE:
+                length += 8 * size;
+                break;
+            case STRING:
+                bytes = new byte[size][];
+                length += 4 * size;
+                for (int i = 0; i < size; i++) {
+                    String value = values[i];
+                    bytes[i] = value == null ? new byte[0] : value.getBytes(ENCODING);
+                    length += bytes[i].length;
+                }
+                break;
+            default:
+                throw new UnsupportedOperationException("Column type " + type + " not implemented.");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        byte[] bitmap = new byte[bitmapLength];
+        for (int i = 0; i < size; i++) {
+            String value = values[i];
+            if (value == null || value.length() == 0) {
+                bitmap[i / 8] |= 1 << (i % 8);
+            }
+        }
+        buffer.put(bitmap);
+
+        for (int i = 0; i < size; i++) {
+            String value = values[i];
+            boolean isMissing = value == null || value.length() == 0;
+            switch (type) {
+                case LONG:
+                    buffer.putLong(isMissing ? 0 : Long.parseLong(value));
+                    break;
+                case DOUBLE:
+                    buffer.putDouble(isMissing ? Double.NaN : Double.parseDouble(value));
+                    break;
+                default:
+                    buffer.putInt(bytes[i].length);
+            }
+        }
+        if (type == ColumnType.STRING) {
+            for (int i = 0; i < size; i++) {
+                buffer.put(bytes[i]);
+            }
+        }
+
+        return buffer.array();
+    }
+
+    /**
+     * Decodes values encoded using the encode method.
+     *
+     * @param type the type of the values
+     * @param size the number of values
+     * @param buffer the buffer containing the encoded values
+     *
+     * @return the decoded values
+     */
+    public static ColumnValues decode(ColumnType type, int size, ByteBuffer buffer) {
+
+        boolean[] missing = new boolean[size];
+        byte[] bitmap = new byte[(size + 7) / 8];
+        buffer.get(bitmap);
+        for (int i = 0; i < size; i++) {
+            missing[i] = (bitmap[i / 8] & (1 << (i % 8))) != 0;
+        }
+
+        switch (type) {
+            case LONG:
+                long[] longValues = new long[size];
+                buffer.asLongBuffer().get(longValues);
+                return new ColumnValues(type, size, missing, longValues, null, null);
+            case DOUBLE:
+                double[] doubleValues = new double[size];
+                buffer.asDoubleBuffer().get(doubleValues);
+                return new ColumnValues(type, size, missing, null, doubleValues, null);
+            case STRING:
+                int[] lengths = new int[size];
+                buffer.asIntBuffer().get(lengths);
+                buffer.position(buffer.position() + 4 * size);
+                String[] stringValues = new String[size];
+                byte[] bytes = buffer.array();
+                int offset = buffer.arrayOffset() + buffer.position();
+                for (int i = 0; i < size; i++) {
+                    stringValues[i] = new String(bytes, offset, lengths[i], ENCODING);
+                    offset += lengths[i];
+                }
+                return new ColumnValues(type, size, missing, null, null, stringValues);
+            default:
+                throw new UnsupportedOperationException("Column type " + type + " not implemented.");
+        }
+    }
+
+    /**
+     * Concatenates the given values. Numbers are kept as numbers if all values
+     * are numbers, the values are converted to text otherwise.
+     *
+     * @param parts the values to concatenate
+     *
+     * @return the concatenated values
+     */
+    public static ColumnValues concatenate(ArrayList<ColumnValues> parts) {
+
+        if (parts.size() == 1) {
+            return parts.get(0);
+        }
+
+        int size = 0;
+        boolean allLong = true;
+        boolean allNumbers = true;
+        for (ColumnValues part : parts) {
+            size += part.size;
+            if (part.type == ColumnType.STRING && part.getnMissing() < part.size) {
+                allLong = false;
+                allNumbers = false;
+            } else if (part.type == ColumnType.DOUBLE) {
+                allLong = false;
+            }
+        }
+
+        boolean[] missing = new boolean[size];
+        long[] longValues = allLong ? new long[size] : null;
+        double[] doubleValues = !allLong && allNumbers ? new double[size] : null;
+        String[] stringValues = allNumbers ? null : new String[size];
+
+        int offset = 0;
+        for (ColumnValues part : parts) {
+            for (int i = 0; i < part.size; i++) {
+                int index = offset + i;
+                missing[index] = part.missing[i];
+                if (longValues != null) {
+                    longValues[index] = part.getLong(i);
+                } else if (doubleValues != null) {
+                    doubleValues[index] = part.getDouble(i);
+                } else {
+                    stringValues[index] = part.getString(i);
+                }
+            }
+            offset += part.size;
+        }
+
+        ColumnType type = allLong ? ColumnType.LONG : allNumbers ? ColumnType.DOUBLE : ColumnType.STRING;
+        return new ColumnValues(type, size, missing, longValues, doubleValues, stringValues);
+    }
+}
@@ -0,0 +1,259 @@
+package eu.isas.peptideshaker.export.columnar;
+
+import com.compomics.util.io.export.ExportFeature;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reader for the columnar binary reports written by the ColumnarWriter. The
+ * description of the tables is read upon opening and the chunks of the
+ * columns requested are memory mapped and decompressed on demand.
+ *
+ * @author Marc Vaudel
+ */
+public class ColumnarReader {
+
+    /**
+     * The file.
+     */
+    private final File file;
+    /**
+     * The random access file.
+     */
+    private final RandomAccessFile randomAccessFile;
+    /**
+     * The channel to the file.
+     */
+    private final FileChannel fileChannel;
+    /**
+     * The main title of the report.
+     */
+    private final String mainTitle;
+    /**
+     * The tables of the report.
+     */
+    private final ArrayList<ColumnarTable> tables;
+
+    /**
+     * Constructor.
+     *
+     * @param file the columnar report
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    public ColumnarReader(File file) throws IOException {
+
+        this.file = file;
+        randomAccessFile = new RandomAccessFile(file, "r");
+        fileChannel = randomAccessFile.getChannel();
+
+        try {
+            int magicLength = ColumnarWriter.MAGIC.length;
+            long fileLength = fileChannel.size();
+            if (fileLength < 2 * magicLength + 12) {
+                throw new IOException(file.getName() + " is not a columnar report.");
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(magicLength + 4);
+            readFully(header, 0);
+            byte[] magic = new byte[magicLength];
+            header.get(magic);
+            if (!Arrays.equals(magic, ColumnarWriter.MAGIC)) {
+                throw new IOException(file.getName() + " is not a columnar report.");
+            }
+            int version = header.getInt();
+            if (version != ColumnarWriter.VERSION) {
+                throw new IOException("Version " + version + " of columnar reports not supported.");
+            }
+
+            ByteBuffer trailer = ByteBuffer.allocate(8 + magicLength);
+            readFully(trailer, fileLength - trailer.capacity());
+            long footerOffset = trailer.getLong();
+            trailer.get(magic);
+            if (!Arrays.equals(magic, ColumnarWriter.MAGIC) || footerOffset < magicLength + 4 || footerOffset > fileLength - trailer.capacity()) {
+                throw new IOException(file.getName() + " is incomplete or corrupted.");
+            }
+
+            ByteBuffer footer = ByteBuffer.allocate((int) (fileLength - trailer.capacity() - footerOffset));
+            readFully(footer, footerOffset);
+            DataInputStream footerStream = new DataInputStream(new ByteArrayInputStream(footer.array()));
+            mainTitle = footerStream.readUTF();
+            int nTables = footerStream.readInt();
+            tables = new ArrayList<ColumnarTable>(nTables);
+            for (int i = 0; i < nTables; i++) {
+                tables.add(ColumnarTable.read(footerStream));
+            }
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Fills the given buffer with the content of the file at the given
+     * position and rewinds it.
+     *
+     * @param buffer the buffer to fill
+     * @param position the position in the file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = fileChannel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new IOException("Unexpected end of file " + file.getName() + ".");
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Returns the main title of the report.
+     *
+     * @return the main title of the report
+     */
+    public String getMainTitle() {
+        return mainTitle;
+    }
+
+    /**
+     * Returns the tables of the report.
+     *
+     * @return the tables of the report
+     */
+    public ArrayList<ColumnarTable> getTables() {
+        return tables;
+    }
+
+    /**
+     * Returns the table of the given section at the given depth, null if not
+     * found.
+     *
+     * @param section the title of the section
+     * @param depth the depth of the table in the section, 0 for the main table
+     *
+     * @return the table
+     */
+    public ColumnarTable getTable(String section, int depth) {
+        for (ColumnarTable table : tables) {
+            if (table.getSection().equals(section) && table.getDepth() == depth) {
+                return table;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the values of a column in a row group.
+     *
+     * @param table the table
+     * @param rowGroup the index of the row group
+     * @param columnIndex the index of the column
+     *
+     * @return the values of the column in the row group
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    public ColumnValues readChunk(ColumnarTable table, int rowGroup, int columnIndex) throws IOException {
+
+        ColumnChunk chunk = table.getChunk(rowGroup, columnIndex);
+        if (chunk == null) {
+            return ColumnValues.getMissingValues(table.getnRows(rowGroup));
+        }
+
+        MappedByteBuffer mappedBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, chunk.getOffset(), chunk.getCompressedLength());
+        byte[] compressed = new byte[chunk.getCompressedLength()];
+        mappedBuffer.get(compressed);
+
+        byte[] bytes = new byte[chunk.getLength()];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int length = 0;
+            while (length < bytes.length && !inflater.finished()) {
+                int n = inflater.inflate(bytes, length, bytes.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += n;
+            }
+            if (length != bytes.length) {
+                throw new IOException("Chunk at " + chunk.getOffset() + " of " + file.getName() + " is corrupted.");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Chunk at " + chunk.getOffset() + " of " + file.getName() + " is corrupted: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+
+        return ColumnValues.decode(chunk.getType(), chunk.getnValues(), ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Reads all values of a column.
+     *
+     * @param table the table
+     * @param columnIndex the index of the column
+     *
+     * @return the values of the column
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    public ColumnValues readColumn(ColumnarTable table, int columnIndex) throws IOException {
+        if (table.getnRows() > Integer.MAX_VALUE) {
+            throw new IOException("Too many rows to load the column, read the row groups one by one instead.");
+        }
+        ArrayList<ColumnValues> parts = new ArrayList<ColumnValues>(table.getnRowGroups());
+        for (int i = 0; i < table.getnRowGroups(); i++) {
+            parts.add(readChunk(table, i, columnIndex));
+        }
+        if (parts.isEmpty()) {
+            return ColumnValues.getMissingValues(0);
+        }
+        return ColumnValues.concatenate(parts);
+    }
+
+    /**
+     * Reads all values of the column of the given feature.
+     *
+     * @param table the table
+     * @param exportFeature the export feature
+     *
+     * @return the values of the column, null if the feature was not exported
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    public ColumnValues readColumn(ColumnarTable table, ExportFeature exportFeature) throws IOException {
+        int columnIndex = table.getColumnIndex(exportFeature);
+        if (columnIndex == -1) {
+            return null;
+        }
+        return readColumn(table, columnIndex);
+    }
+
+    /**
+     * Closes the file.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * closing the file
+     */
+    public void close() throws IOException {
+        randomAccessFile.close();
+    }
+}
@@ -0,0 +1,221 @@
+package eu.isas.peptideshaker.export.columnar;
+
+import com.compomics.util.io.export.ExportFeature;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * A table of a columnar report. A table corresponds to a section of the
+ * report at a given depth, sub-sections being stored in separate tables. The
+ * rows of a table are stored in row groups, every row group containing a chunk
+ * per column.
+ *
+ * @author Marc Vaudel
+ */
+public class ColumnarTable {
+
+    /**
+     * The title of the section.
+     */
+    private final String section;
+    /**
+     * The depth of the table in the section, 0 for the main table.
+     */
+    private final int depth;
+    /**
+     * The names of the columns.
+     */
+    private final ArrayList<String> columnNames;
+    /**
+     * The number of rows of every row group.
+     */
+    private final ArrayList<Integer> rowGroupSizes = new ArrayList<Integer>();
+    /**
+     * The chunks of every row group, row groups written before the addition
+     * of a column have no chunk for this column.
+     */
+    private final ArrayList<ColumnChunk[]> rowGroups = new ArrayList<ColumnChunk[]>();
+    /**
+     * The number of rows.
+     */
+    private long nRows = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param section the title of the section
+     * @param depth the depth of the table in the section
+     * @param columnNames the names of the columns
+     */
+    public ColumnarTable(String section, int depth, ArrayList<String> columnNames) {
+        this.section = section;
+        this.depth = depth;
+        this.columnNames = columnNames;
+    }
+
+    /**
+     * Returns the title of the section.
+     *
+     * @return the title of the section
+     */
+    public String getSection() {
+        return section;
+    }
+
+    /**
+     * Returns the depth of the table in the section, 0 for the main table.
+     *
+     * @return the depth of the table in the section
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Returns the names of the columns.
+     *
+     * @return the names of the columns
+     */
+    public ArrayList<String> getColumnNames() {
+        return columnNames;
+    }
+
+    /**
+     * Returns the index of the column with the given name, -1 if not found.
+     *
+     * @param columnName the name of the column
+     *
+     * @return the index of the column
+     */
+    public int getColumnIndex(String columnName) {
+        return columnNames.indexOf(columnName);
+    }
+
+    /**
+     * Returns the index of the column of the given feature, -1 if not found.
+     *
+     * @param exportFeature the export feature
+     *
+     * @return the index of the column
+     */
+    public int getColumnIndex(ExportFeature exportFeature) {
+        return getColumnIndex(exportFeature.getTitle());
+    }
+
+    /**
+     * Returns the number of rows.
+     *
+     * @return the number of rows
+     */
+    public long getnRows() {
+        return nRows;
+    }
+
+    /**
+     * Returns the number of row groups.
+     *
+     * @return the number of row groups
+     */
+    public int getnRowGroups() {
+        return rowGroups.size();
+    }
+
+    /**
+     * Returns the number of rows of the given row group.
+     *
+     * @param rowGroup the index of the row group
+     *
+     * @return the number of rows of the given row group
+     */
+    public int getnRows(int rowGroup) {
+        return rowGroupSizes.get(rowGroup);
+    }
+
+    /**
+     * Returns the chunk of the given column in the given row group, null if
+     * the column was not present when the row group was written.
+     *
+     * @param rowGroup the index of the row group
+     * @param columnIndex the index of the column
+     *
+     * @return the chunk of the given column in the given row group
+     */
+    public ColumnChunk getChunk(int rowGroup, int columnIndex) {
+        ColumnChunk[] chunks = rowGroups.get(rowGroup);
+        if (columnIndex < chunks.length) {
+            return chunks[columnIndex];
+        }
+        return null;
+    }
+
+    /**
+     * Adds a row group.
+     *
+     * @param nRowGroupRows the number of rows of the row group
+     * @param chunks the chunks of the row group
+     */
+    void addRowGroup(int nRowGroupRows, ColumnChunk[] chunks) {
+        rowGroupSizes.add(nRowGroupRows);
+        rowGroups.add(chunks);
+        nRows += nRowGroupRows;
+    }
+
+    /**
+     * Writes the description of the table.
+     *
+     * @param outputStream the stream where to write
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing
+     */
+    public void write(DataOutputStream outputStream) throws IOException {
+        outputStream.writeUTF(section);
+        outputStream.writeInt(depth);
+        outputStream.writeInt(columnNames.size());
+        for (String columnName : columnNames) {
+            outputStream.writeUTF(columnName);
+        }
+        outputStream.writeInt(rowGroups.size());
+        for (int i = 0; i < rowGroups.size(); i++) {
+            outputStream.writeInt(rowGroupSizes.get(i));
+            ColumnChunk[] chunks = rowGroups.get(i);
+            outputStream.writeInt(chunks.length);
+            for (ColumnChunk chunk : chunks) {
+                chunk.write(outputStream);
+            }
+        }
+    }
+
+    /**
+     * Reads the description of a table.
+     *
+     * @param inputStream the stream where to read
+     *
+     * @return the table
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading
+     */
+    public static ColumnarTable read(DataInputStream inputStream) throws IOException {
+        String section = inputStream.readUTF();
+        int depth = inputStream.readInt();
+        int nColumns = inputStream.readInt();
+        ArrayList<String> columnNames = new ArrayList<String>(nColumns);
+        for (int i = 0; i < nColumns; i++) {
+            columnNames.add(inputStream.readUTF());
+        }
+        ColumnarTable table = new ColumnarTable(section, depth, columnNames);
+        int nRowGroups = inputStream.readInt();
+        for (int i = 0; i < nRowGroups; i++) {
+            int nRowGroupRows = inputStream.readInt();
+            ColumnChunk[] chunks = new ColumnChunk[inputStream.readInt()];
+            for (int j = 0; j < chunks.length; j++) {
+                chunks[j] = ColumnChunk.read(inputStream);
+            }
+            table.addRowGroup(nRowGroupRows, chunks);
+        }
+        return table;
+    }
+}
@@ -0,0 +1,452 @@
+package eu.isas.peptideshaker.export.columnar;
+
+import com.compomics.util.io.export.ExportWriter;
+import com.compomics.util.io.export.WorkbookStyle;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.Deflater;
+
+/**
+ * Export writer producing a columnar binary report. Every section is stored as
+ * a table, the sub-sections being stored in separate tables per depth. The
+ * rows are gathered in row groups and every column of a row group is written
+ * as a compressed chunk of typed values with statistics on its values. The
+ * description of the tables is written at the end of the file.
+ *
+ * @author Marc Vaudel
+ */
+public class ColumnarWriter extends ExportWriter {
+
+    /**
+     * The magic number at the beginning and end of the file.
+     */
+    public static final byte[] MAGIC = "PSCOLUMN".getBytes(Charset.forName("US-ASCII"));
+    /**
+     * The version of the format.
+     */
+    public static final int VERSION = 1;
+    /**
+     * The maximal number of rows of a row group.
+     */
+    public static final int ROW_GROUP_SIZE = 65536;
+    /**
+     * The prefix of the names of the columns without header.
+     */
+    public static final String DEFAULT_COLUMN_NAME = "column_";
+    /**
+     * The stream where to write.
+     */
+    private final DataOutputStream outputStream;
+    /**
+     * The number of bytes written.
+     */
+    private long position = 0;
+    /**
+     * The compressor used for the chunks.
+     */
+    private final Deflater deflater = new Deflater();
+    /**
+     * The main title of the report.
+     */
+    private String mainTitle = "";
+    /**
+     * The tables of the report in the order of creation.
+     */
+    private final ArrayList<ColumnarTable> tables = new ArrayList<ColumnarTable>();
+    /**
+     * The buffers of the tables of the current section indexed by depth.
+     */
+    private final HashMap<Integer, TableBuffer> sectionBuffers = new HashMap<Integer, TableBuffer>();
+    /**
+     * The title of the current section.
+     */
+    private String sectionTitle = null;
+    /**
+     * The number of sections started.
+     */
+    private int nSections = 0;
+    /**
+     * The current depth.
+     */
+    private int depth = 0;
+    /**
+     * The cells of the current line.
+     */
+    private ArrayList<String> line = new ArrayList<String>();
+    /**
+     * The content of the current cell.
+     */
+    private StringBuilder cell = new StringBuilder();
+    /**
+     * Boolean indicating whether something was written on the current line.
+     */
+    private boolean lineStarted = false;
+    /**
+     * Boolean indicating whether the current line is a header.
+     */
+    private boolean headerLine = false;
+
+    /**
+     * Constructor.
+     *
+     * @param destinationFile the file where to write the report
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public ColumnarWriter(File destinationFile) throws IOException {
+        outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(destinationFile)));
+        outputStream.write(MAGIC);
+        outputStream.writeInt(VERSION);
+        position = MAGIC.length + 4;
+    }
+
+    @Override
+    public void writeMainTitle(String text) throws IOException {
+        mainTitle = text == null ? "" : text;
+    }
+
+    @Override
+    public void writeMainTitle(String text, WorkbookStyle textStyle) throws IOException {
+        writeMainTitle(text);
+    }
+
+    @Override
+    public void startNewSection() throws IOException {
+        startNewSection(null);
+    }
+
+    @Override
+    public void startNewSection(String sectionTitle) throws IOException {
+        endLine();
+        for (TableBuffer tableBuffer : sectionBuffers.values()) {
+            tableBuffer.flush();
+        }
+        sectionBuffers.clear();
+        nSections++;
+        this.sectionTitle = sectionTitle != null ? sectionTitle : "Section " + nSections;
+        depth = 0;
+    }
+
+    @Override
+    public void startNewSection(String sectionTitle, WorkbookStyle textStyle) throws IOException {
+        startNewSection(sectionTitle);
+    }
+
+    @Override
+    public void write(String text) throws IOException {
+        if (text != null) {
+            cell.append(text);
+        }
+        lineStarted = true;
+    }
+
+    @Override
+    public void write(String text, WorkbookStyle textStyle) throws IOException {
+        write(text);
+    }
+
+    @Override
+    public void writeHeaderText(String text) throws IOException {
+        write(text);
+        headerLine = true;
+    }
+
+    @Override
+    public void writeHeaderText(String text, WorkbookStyle textStyle) throws IOException {
+        writeHeaderText(text);
+    }
+
+    @Override
+    public void addSeparator() throws IOException {
+        line.add(cell.toString());
+        cell = new StringBuilder();
+        lineStarted = true;
+    }
+
+    @Override
+    public void addSeparator(WorkbookStyle textStyle) throws IOException {
+        addSeparator();
+    }
+
+    @Override
+    public void newLine() throws IOException {
+        endLine();
+    }
+
+    @Override
+    public void increaseDepth() {
+        depth++;
+    }
+
+    @Override
+    public void decreseDepth() {
+        if (depth > 0) {
+            depth--;
+        }
+    }
+
+    /**
+     * Adds the current line to the table of the current depth. Empty lines
+     * are ignored.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    private void endLine() throws IOException {
+        if (lineStarted) {
+            line.add(cell.toString());
+            if (sectionTitle == null) {
+                nSections++;
+                sectionTitle = "Section " + nSections;
+            }
+            TableBuffer tableBuffer = sectionBuffers.get(depth);
+            if (tableBuffer == null) {
+                tableBuffer = new TableBuffer(new ColumnarTable(sectionTitle, depth, new ArrayList<String>()));
+                tables.add(tableBuffer.table);
+                sectionBuffers.put(depth, tableBuffer);
+            }
+            if (headerLine) {
+                tableBuffer.setHeader(line);
+            } else {
+                tableBuffer.addRow(line);
+            }
+        }
+        line = new ArrayList<String>();
+        cell = new StringBuilder();
+        lineStarted = false;
+        headerLine = false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            endLine();
+            for (TableBuffer tableBuffer : sectionBuffers.values()) {
+                tableBuffer.flush();
+            }
+            sectionBuffers.clear();
+            long footerOffset = position;
+            outputStream.writeUTF(mainTitle);
+            outputStream.writeInt(tables.size());
+            for (ColumnarTable table : tables) {
+                table.write(outputStream);
+            }
+            outputStream.writeLong(footerOffset);
+            outputStream.write(MAGIC);
+        } finally {
+            deflater.end();
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Writes a chunk of values and returns its description.
+     *
+     * @param values the values
+     * @param nValues the number of values
+     *
+     * @return the description of the chunk
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    private ColumnChunk writeChunk(String[] values, int nValues) throws IOException {
+
+        ColumnType type = ColumnType.inferType(values, nValues);
+        byte[] bytes = ColumnValues.encode(type, values, nValues);
+
+        deflater.reset();
+        deflater.setInput(bytes);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            int length = deflater.deflate(buffer);
+            compressed.write(buffer, 0, length);
+        }
+
+        long offset = position;
+        compressed.writeTo(outputStream);
+        position += compressed.size();
+
+        int nMissing = 0;
+        for (int i = 0; i < nValues; i++) {
+            String value = values[i];
+            if (value == null || value.length() == 0) {
+                nMissing++;
+            }
+        }
+        ColumnStatistics statistics = getStatistics(type, values, nValues);
+
+        return new ColumnChunk(type, nValues, nMissing, offset, compressed.size(), bytes.length, statistics);
+    }
+
+    /**
+     * Returns the smallest and largest values of a chunk, null if the chunk
+     * has no value or if the text values are too long to be used as
+     * statistics.
+     *
+     * @param type the type of the values
+     * @param values the values
+     * @param nValues the number of values
+     *
+     * @return the smallest and largest values
+     */
+    private static ColumnStatistics getStatistics(ColumnType type, String[] values, int nValues) {
+        switch (type) {
+            case LONG:
+                long minLong = Long.MAX_VALUE;
+                long maxLong = Long.MIN_VALUE;
+                boolean hasLong = false;
+                for (int i = 0; i < nValues; i++) {
+                    String value = values[i];
+                    if (value != null && value.length() > 0) {
+                        long longValue = Long.parseLong(value);
+                        minLong = Math.min(minLong, longValue);
+                        maxLong = Math.max(maxLong, longValue);
+                        hasLong = true;
+                    }
+                }
+                return hasLong ? new ColumnStatistics.LongStatistics(minLong, maxLong) : null;
+            case DOUBLE:
+                double minDouble = Double.POSITIVE_INFINITY;
+                double maxDouble = Double.NEGATIVE_INFINITY;
+                boolean hasDouble = false;
+                for (int i = 0; i < nValues; i++) {
+                    String value = values[i];
+                    if (value != null && value.length() > 0) {
+                        double doubleValue = Double.parseDouble(value);
+                        if (!Double.isNaN(doubleValue)) {
+                            minDouble = Math.min(minDouble, doubleValue);
+                            maxDouble = Math.max(maxDouble, doubleValue);
+                            hasDouble = true;
+                        }
+                    }
+                }
+                return hasDouble ? new ColumnStatistics.DoubleStatistics(minDouble, maxDouble) : null;
+            case STRING:
+                String minText = null;
+                String maxText = null;
+                for (int i = 0; i < nValues; i++) {
+                    String value = values[i];
+                    if (value != null && value.length() > 0) {
+                        if (minText == null || value.compareTo(minText) < 0) {
+                            minText = value;
+                        }
+                        if (maxText == null || value.compareTo(maxText) > 0) {
+                            maxText = value;
+                        }
+                    }
+                }
+                if (minText == null || minText.length() > ColumnChunk.MAX_STATISTICS_LENGTH || maxText.length() > ColumnChunk.MAX_STATISTICS_LENGTH) {
+                    return null;
+                }
+                return new ColumnStatistics.TextStatistics(minText, maxText);
+            default:
+                throw new UnsupportedOperationException("Column type " + type + " not implemented.");
+        }
+    }
+
+    /**
+     * Buffer gathering the rows of a table until a row group is complete.
+     *
+     * @author Marc Vaudel
+     */
+    private class TableBuffer {
+
+        /**
+         * The table.
+         */
+        private final ColumnarTable table;
+        /**
+         * The rows not written yet.
+         */
+        private final ArrayList<ArrayList<String>> rows = new ArrayList<ArrayList<String>>();
+        /**
+         * Boolean indicating whether the column names were set from a header.
+         */
+        private boolean hasHeader = false;
+
+        /**
+         * Constructor.
+         *
+         * @param table the table
+         */
+        public TableBuffer(ColumnarTable table) {
+            this.table = table;
+        }
+
+        /**
+         * Sets the column names from a header line. Only the first header
+         * line written before any row is used.
+         *
+         * @param header the header line
+         */
+        public void setHeader(ArrayList<String> header) {
+            if (!hasHeader && table.getnRows() == 0 && rows.isEmpty()) {
+                hasHeader = true;
+                ArrayList<String> columnNames = table.getColumnNames();
+                columnNames.clear();
+                for (int i = 0; i < header.size(); i++) {
+                    String columnName = header.get(i);
+                    if (columnName.length() == 0) {
+                        columnName = DEFAULT_COLUMN_NAME + i;
+                    }
+                    columnNames.add(columnName);
+                }
+            }
+        }
+
+        /**
+         * Adds a row and writes a row group if complete.
+         *
+         * @param row the row
+         *
+         * @throws IOException exception thrown whenever an error occurred
+         * while writing the file
+         */
+        public void addRow(ArrayList<String> row) throws IOException {
+            ArrayList<String> columnNames = table.getColumnNames();
+            for (int i = columnNames.size(); i < row.size(); i++) {
+                columnNames.add(DEFAULT_COLUMN_NAME + i);
+            }
+            rows.add(row);
+            if (rows.size() == ROW_GROUP_SIZE) {
+                flush();
+            }
+        }
+
+        /**
+         * Writes the rows not written yet as a row group.
+         *
+         * @throws IOException exception thrown whenever an error occurred
+         * while writing the file
+         */
+        public void flush() throws IOException {
+            int nRows = rows.size();
+            if (nRows == 0) {
+                return;
+            }
+            int nColumns = table.getColumnNames().size();
+            ColumnChunk[] chunks = new ColumnChunk[nColumns];
+            String[] values = new String[nRows];
+            for (int j = 0; j < nColumns; j++) {
+                for (int i = 0; i < nRows; i++) {
+                    ArrayList<String> row = rows.get(i);
+                    values[i] = j < row.size() ? row.get(j) : null;
+                }
+                chunks[j] = writeChunk(values, nRows);
+            }
+            table.addRowGroup(nRows, chunks);
+            rows.clear();
+        }
+    }
+}
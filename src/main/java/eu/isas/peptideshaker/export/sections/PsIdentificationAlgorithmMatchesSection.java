@@ -71,10 +71,6 @@ public class PsIdentificationAlgorithmMatchesSection {
      * The writer used to send the output to file.
      */
     private ExportWriter writer;
-    /**
-     * A peptide spectrum annotator.
-     */
-    private static final PeptideSpectrumAnnotator peptideSpectrumAnnotator = new PeptideSpectrumAnnotator();
 
     /**
      * Constructor.
@@ -157,6 +153,7 @@ public class PsIdentificationAlgorithmMatchesSection {
         }
 
         PSParameter psParameter = new PSParameter();
+        PeptideSpectrumAnnotator peptideSpectrumAnnotator = new PeptideSpectrumAnnotator();
         int line = 1;
 
         int totalSize = 0;
@@ -238,7 +235,7 @@ public class PsIdentificationAlgorithmMatchesSection {
                                     PeptideAssumption peptideAssumption = (PeptideAssumption) assumption;
                                     feature = getPeptideAssumptionFeature(identification, identificationFeaturesGenerator,
                                             identificationParameters, keys, linePrefix, nSurroundingAA,
-                                            peptideAssumption, spectrumKey, psParameter, identificationAlgorithmMatchesFeature, waitingHandler);
+                                            peptideAssumption, spectrumKey, psParameter, identificationAlgorithmMatchesFeature, peptideSpectrumAnnotator, waitingHandler);
                                 } else if (assumption instanceof TagAssumption) {
                                     TagAssumption tagAssumption = (TagAssumption) assumption;
                                     feature = getTagAssumptionFeature(identification, identificationFeaturesGenerator,
@@ -332,6 +329,7 @@ public class PsIdentificationAlgorithmMatchesSection {
      * @param spectrumKey the key of the spectrum
      * @param psParameter the PeptideShaker parameter of the match
      * @param exportFeature the feature to export
+     * @param peptideSpectrumAnnotator the spectrum annotator to use
      * @param waitingHandler the waiting handler
      *
      * @return the content corresponding to the given feature of the current
@@ -351,7 +349,7 @@ public class PsIdentificationAlgorithmMatchesSection {
     public static String getPeptideAssumptionFeature(Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator,
             IdentificationParameters identificationParameters, ArrayList<String> keys, String linePrefix, int nSurroundingAA,
             PeptideAssumption peptideAssumption, String spectrumKey, PSParameter psParameter, PsIdentificationAlgorithmMatchesFeature exportFeature,
-            WaitingHandler waitingHandler) throws IOException, SQLException,
+            PeptideSpectrumAnnotator peptideSpectrumAnnotator, WaitingHandler waitingHandler) throws IOException, SQLException,
             ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
 
         switch (exportFeature) {
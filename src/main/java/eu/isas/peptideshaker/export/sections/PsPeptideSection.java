@@ -1,5 +1,6 @@
 package eu.isas.peptideshaker.export.sections;
 
+import com.compomics.util.exceptions.ExceptionHandler;
 import com.compomics.util.experiment.ShotgunProtocol;
 import com.compomics.util.experiment.biology.Peptide;
 import com.compomics.util.experiment.biology.Protein;
@@ -7,6 +8,7 @@ import com.compomics.util.experiment.identification.Identification;
 import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
 import com.compomics.util.experiment.identification.matches.PeptideMatch;
 import com.compomics.util.experiment.identification.matches_iterators.PeptideMatchesIterator;
+import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
 import com.compomics.util.experiment.personalization.UrParameter;
 import com.compomics.util.waiting.WaitingHandler;
 import com.compomics.util.experiment.identification.identification_parameters.PtmSettings;
@@ -14,6 +16,7 @@ import com.compomics.util.experiment.identification.matches.ProteinMatch;
 import com.compomics.util.io.export.ExportFeature;
 import com.compomics.util.io.export.ExportWriter;
 import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.preferences.ProcessingPreferences;
 import eu.isas.peptideshaker.export.exportfeatures.PsFragmentFeature;
 import eu.isas.peptideshaker.export.exportfeatures.PsIdentificationAlgorithmMatchesFeature;
 import eu.isas.peptideshaker.export.exportfeatures.PsPeptideFeature;
@@ -101,7 +104,9 @@ public class PsPeptideSection {
      * @param linePrefix the line prefix to use.
      * @param validatedOnly whether only validated matches should be exported
      * @param decoys whether decoy matches should be exported as well
+     * @param processingPreferences the processing preferences
      * @param waitingHandler the waiting handler
+     * @param exceptionHandler handler for the exceptions
      *
      * @throws IOException exception thrown whenever an error occurred while
      * interacting with a file
@@ -114,9 +119,10 @@ public class PsPeptideSection {
      * @throws MzMLUnmarshallerException thrown whenever an error occurred while
      * reading an mzML file
      */
-    public void writeSection(Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator,
-            IdentificationParameters identificationParameters, ArrayList<String> keys, int nSurroundingAA,
-            String linePrefix, boolean validatedOnly, boolean decoys, WaitingHandler waitingHandler)
+    public void writeSection(final Identification identification, final IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            final IdentificationParameters identificationParameters, ArrayList<String> keys, final int nSurroundingAA, final String linePrefix,
+            final boolean validatedOnly, final boolean decoys, final ProcessingPreferences processingPreferences, final WaitingHandler waitingHandler,
+            final ExceptionHandler exceptionHandler)
             throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
 
         if (waitingHandler != null) {
@@ -131,8 +137,6 @@ public class PsPeptideSection {
             keys = new ArrayList<String>(identification.getPeptideIdentification());
         }
 
-        int line = 1;
-
         if (waitingHandler != null) {
             waitingHandler.setWaitingText("Exporting. Please Wait...");
             waitingHandler.resetSecondaryProgressCounter();
@@ -145,6 +149,47 @@ public class PsPeptideSection {
 
         PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(keys, parameters, psmSection != null, parameters, waitingHandler);
 
+        final ArrayList<String> peptideKeys = keys;
+        SectionRowsWriter<PeptideMatch> rowsWriter = new SectionRowsWriter<PeptideMatch>(writer, indexes, linePrefix, "Peptide section",
+                processingPreferences, waitingHandler, exceptionHandler) {
+
+            @Override
+            protected ArrayList<String> getRow(PeptideMatch peptideMatch, PeptideSpectrumAnnotator peptideSpectrumAnnotator) throws Exception {
+
+                PSParameter psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideMatch.getKey(), new PSParameter());
+
+                if (validatedOnly && !psParameter.getMatchValidationLevel().isValidated()) {
+                    return null;
+                }
+                if (!decoys && peptideMatch.getTheoreticPeptide().isDecoy(identificationParameters.getSequenceMatchingPreferences())) {
+                    return null;
+                }
+
+                ArrayList<String> row = new ArrayList<String>(peptideFeatures.size());
+                for (PsPeptideFeature peptideFeature : peptideFeatures) {
+                    row.add(getfeature(identification, identificationFeaturesGenerator, identificationParameters, peptideKeys, nSurroundingAA, linePrefix, peptideMatch, psParameter, peptideFeature, validatedOnly, decoys, waitingHandler));
+                }
+                return row;
+            }
+
+            @Override
+            protected void writeSubSection(PeptideMatch peptideMatch, String subSectionPrefix)
+                    throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
+                if (psmSection != null) {
+                    writer.increaseDepth();
+                    if (waitingHandler != null) {
+                        waitingHandler.setDisplayProgress(false);
+                    }
+                    psmSection.writeSection(identification, identificationFeaturesGenerator, identificationParameters, peptideMatch.getSpectrumMatchesKeys(), subSectionPrefix,
+                            nSurroundingAA, validatedOnly, decoys, processingPreferences, waitingHandler, exceptionHandler);
+                    if (waitingHandler != null) {
+                        waitingHandler.setDisplayProgress(true);
+                    }
+                    writer.decreseDepth();
+                }
+            }
+        };
+
         while (peptideMatchesIterator.hasNext()) {
 
             if (waitingHandler != null) {
@@ -154,54 +199,12 @@ public class PsPeptideSection {
                 waitingHandler.increaseSecondaryProgressCounter();
             }
 
-            PeptideMatch peptideMatch = peptideMatchesIterator.next();
-            String peptideKey = peptideMatch.getKey();
-            psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideKey, psParameter);
-
-            if (!validatedOnly || psParameter.getMatchValidationLevel().isValidated()) {
-
-                if (decoys || !peptideMatch.getTheoreticPeptide().isDecoy(identificationParameters.getSequenceMatchingPreferences())) {
-
-                    boolean first = true;
-
-                    if (indexes) {
-                        if (linePrefix != null) {
-                            writer.write(linePrefix);
-                        }
-                        writer.write(line + "");
-                        first = false;
-                    }
-
-                    for (ExportFeature exportFeature : peptideFeatures) {
-                        if (!first) {
-                            writer.addSeparator();
-                        } else {
-                            first = false;
-                        }
-                        PsPeptideFeature peptideFeature = (PsPeptideFeature) exportFeature;
-                        writer.write(getfeature(identification, identificationFeaturesGenerator, identificationParameters, keys, nSurroundingAA, linePrefix, peptideMatch, psParameter, peptideFeature, validatedOnly, decoys, waitingHandler));
-                    }
-                    writer.newLine();
-                    if (psmSection != null) {
-                        String psmSectionPrefix = "";
-                        if (linePrefix != null) {
-                            psmSectionPrefix += linePrefix;
-                        }
-                        psmSectionPrefix += line + ".";
-                        writer.increaseDepth();
-                        if (waitingHandler != null) {
-                            waitingHandler.setDisplayProgress(false);
-                        }
-                        psmSection.writeSection(identification, identificationFeaturesGenerator, identificationParameters, peptideMatch.getSpectrumMatchesKeys(), psmSectionPrefix, nSurroundingAA, validatedOnly, decoys, waitingHandler);
-                        if (waitingHandler != null) {
-                            waitingHandler.setDisplayProgress(true);
-                        }
-                        writer.decreseDepth();
-                    }
-                    line++;
-                }
+            if (!rowsWriter.add(peptideMatchesIterator.next())) {
+                return;
             }
         }
+
+        rowsWriter.finish();
     }
 
     /**
@@ -1,6 +1,7 @@
 package eu.isas.peptideshaker.export.sections;
 
 import com.compomics.util.Util;
+import com.compomics.util.exceptions.ExceptionHandler;
 import com.compomics.util.experiment.biology.genes.GeneFactory;
 import com.compomics.util.experiment.biology.genes.go.GoMapping;
 import com.compomics.util.experiment.biology.Protein;
@@ -9,6 +10,7 @@ import com.compomics.util.experiment.identification.Identification;
 import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
 import com.compomics.util.experiment.identification.matches.ProteinMatch;
 import com.compomics.util.experiment.identification.matches_iterators.ProteinMatchesIterator;
+import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
 import com.compomics.util.experiment.personalization.UrParameter;
 import com.compomics.util.experiment.units.MetricsPrefix;
 import com.compomics.util.experiment.units.StandardUnit;
@@ -17,6 +19,7 @@ import com.compomics.util.waiting.WaitingHandler;
 import com.compomics.util.io.export.ExportFeature;
 import com.compomics.util.io.export.ExportWriter;
 import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.preferences.ProcessingPreferences;
 import eu.isas.peptideshaker.export.exportfeatures.PsFragmentFeature;
 import eu.isas.peptideshaker.export.exportfeatures.PsIdentificationAlgorithmMatchesFeature;
 import eu.isas.peptideshaker.export.exportfeatures.PsPeptideFeature;
@@ -111,7 +114,9 @@ public class PsProteinSection {
      * surrounding amino-acids, the number of surrounding amino acids to use
      * @param validatedOnly whether only validated matches should be exported
      * @param decoys whether decoy matches should be exported as well
+     * @param processingPreferences the processing preferences
      * @param waitingHandler the waiting handler
+     * @param exceptionHandler handler for the exceptions
      *
      * @throws IOException exception thrown whenever an error occurred while
      * interacting with a file
@@ -126,9 +131,9 @@ public class PsProteinSection {
      * @throws org.apache.commons.math.MathException exception thrown whenever
      * an error is encountered while calculating the observable coverage
      */
-    public void writeSection(Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps,
-            IdentificationParameters identificationParameters, ArrayList<String> keys,
-            int nSurroundingAas, boolean validatedOnly, boolean decoys, WaitingHandler waitingHandler)
+    public void writeSection(final Identification identification, final IdentificationFeaturesGenerator identificationFeaturesGenerator, final GeneMaps geneMaps,
+            final IdentificationParameters identificationParameters, ArrayList<String> keys, final int nSurroundingAas, final boolean validatedOnly,
+            final boolean decoys, final ProcessingPreferences processingPreferences, final WaitingHandler waitingHandler, final ExceptionHandler exceptionHandler)
             throws IOException, IllegalArgumentException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
 
         if (waitingHandler != null) {
@@ -142,7 +147,6 @@ public class PsProteinSection {
         if (keys == null) {
             keys = new ArrayList<String>(identification.getProteinIdentification());
         }
-        int line = 1;
 
         if (waitingHandler != null) {
             waitingHandler.setWaitingText("Exporting. Please Wait...");
@@ -156,56 +160,65 @@ public class PsProteinSection {
         ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(
                 keys, parameters, peptideSection != null, parameters, peptideSection != null, parameters, waitingHandler); // @TODO: find a better way to know if we need psms
 
-        while (proteinMatchesIterator.hasNext()) {
-
-            if (waitingHandler != null) {
-                if (waitingHandler.isRunCanceled()) {
-                    return;
-                }
-                waitingHandler.increaseSecondaryProgressCounter();
-            }
+        final ArrayList<String> proteinKeys = keys;
+        SectionRowsWriter<ProteinMatch> rowsWriter = new SectionRowsWriter<ProteinMatch>(writer, indexes, null, "Protein section",
+                processingPreferences, waitingHandler, exceptionHandler) {
 
-            ProteinMatch proteinMatch = proteinMatchesIterator.next();
-            String proteinKey = proteinMatch.getKey();
+            @Override
+            protected ArrayList<String> getRow(ProteinMatch proteinMatch, PeptideSpectrumAnnotator peptideSpectrumAnnotator) throws Exception {
 
-            if (decoys || !ProteinMatch.isDecoy(proteinKey)) {
+                String proteinKey = proteinMatch.getKey();
 
-                psParameter = (PSParameter) identification.getProteinMatchParameter(proteinKey, psParameter);
+                if (!decoys && ProteinMatch.isDecoy(proteinKey)) {
+                    return null;
+                }
 
-                if (!validatedOnly || psParameter.getMatchValidationLevel().isValidated()) {
+                PSParameter psParameter = (PSParameter) identification.getProteinMatchParameter(proteinKey, new PSParameter());
 
-                    boolean first = true;
+                if (validatedOnly && !psParameter.getMatchValidationLevel().isValidated()) {
+                    return null;
+                }
 
-                    if (indexes) {
-                        writer.write(line + "");
-                        first = false;
-                    }
+                ArrayList<String> row = new ArrayList<String>(proteinFeatures.size());
+                for (PsProteinFeature proteinFeature : proteinFeatures) {
+                    row.add(getFeature(identificationFeaturesGenerator, geneMaps, identificationParameters, proteinKeys, nSurroundingAas, proteinKey, proteinMatch, psParameter, proteinFeature, waitingHandler));
+                }
+                return row;
+            }
 
-                    for (ExportFeature exportFeature : proteinFeatures) {
-                        if (!first) {
-                            writer.addSeparator();
-                        } else {
-                            first = false;
-                        }
-                        PsProteinFeature tempProteinFeatures = (PsProteinFeature) exportFeature;
-                        writer.write(getFeature(identificationFeaturesGenerator, geneMaps, identificationParameters, keys, nSurroundingAas, proteinKey, proteinMatch, psParameter, tempProteinFeatures, waitingHandler));
+            @Override
+            protected void writeSubSection(ProteinMatch proteinMatch, String subSectionPrefix)
+                    throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
+                if (peptideSection != null) {
+                    writer.increaseDepth();
+                    if (waitingHandler != null) {
+                        waitingHandler.setDisplayProgress(false);
                     }
-                    writer.newLine();
-                    if (peptideSection != null) {
-                        writer.increaseDepth();
-                        if (waitingHandler != null) {
-                            waitingHandler.setDisplayProgress(false);
-                        }
-                        peptideSection.writeSection(identification, identificationFeaturesGenerator, identificationParameters, proteinMatch.getPeptideMatchesKeys(), nSurroundingAas, line + ".", validatedOnly, decoys, waitingHandler);
-                        if (waitingHandler != null) {
-                            waitingHandler.setDisplayProgress(true);
-                        }
-                        writer.decreseDepth();
+                    peptideSection.writeSection(identification, identificationFeaturesGenerator, identificationParameters, proteinMatch.getPeptideMatchesKeys(),
+                            nSurroundingAas, subSectionPrefix, validatedOnly, decoys, processingPreferences, waitingHandler, exceptionHandler);
+                    if (waitingHandler != null) {
+                        waitingHandler.setDisplayProgress(true);
                     }
-                    line++;
+                    writer.decreseDepth();
+                }
+            }
+        };
+
+        while (proteinMatchesIterator.hasNext()) {
+
+            if (waitingHandler != null) {
+                if (waitingHandler.isRunCanceled()) {
+                    return;
                 }
+                waitingHandler.increaseSecondaryProgressCounter();
+            }
+
+            if (!rowsWriter.add(proteinMatchesIterator.next())) {
+                return;
             }
         }
+
+        rowsWriter.finish();
     }
 
     /**
@@ -1,5 +1,6 @@
 package eu.isas.peptideshaker.export.sections;
 
+import com.compomics.util.exceptions.ExceptionHandler;
 import com.compomics.util.experiment.biology.PTM;
 import com.compomics.util.experiment.biology.PTMFactory;
 import com.compomics.util.experiment.identification.Advocate;
@@ -11,11 +12,13 @@ import com.compomics.util.experiment.identification.spectrum_assumptions.TagAssu
 import com.compomics.util.experiment.identification.matches.SpectrumMatch;
 import com.compomics.util.experiment.identification.matches_iterators.PsmIterator;
 import com.compomics.util.experiment.massspectrometry.Spectrum;
+import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
 import com.compomics.util.experiment.personalization.UrParameter;
 import com.compomics.util.waiting.WaitingHandler;
 import com.compomics.util.io.export.ExportFeature;
 import com.compomics.util.io.export.ExportWriter;
 import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.preferences.ProcessingPreferences;
 import eu.isas.peptideshaker.export.exportfeatures.PsFragmentFeature;
 import eu.isas.peptideshaker.export.exportfeatures.PsIdentificationAlgorithmMatchesFeature;
 import eu.isas.peptideshaker.export.exportfeatures.PsPsmFeature;
@@ -109,7 +112,9 @@ public class PsPsmSection {
      * @param nSurroundingAA the number of surrounding amino acids to export
      * @param validatedOnly whether only validated matches should be exported
      * @param decoys whether decoy matches should be exported as well
+     * @param processingPreferences the processing preferences
      * @param waitingHandler the waiting handler
+     * @param exceptionHandler handler for the exceptions
      *
      * @throws IOException exception thrown whenever an error occurred while
      * interacting with a file
@@ -122,9 +127,10 @@ public class PsPsmSection {
      * @throws MzMLUnmarshallerException thrown whenever an error occurred while
      * reading an mzML file
      */
-    public void writeSection(Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator,
-            IdentificationParameters identificationParameters, ArrayList<String> keys,
-            String linePrefix, int nSurroundingAA, boolean validatedOnly, boolean decoys, WaitingHandler waitingHandler)
+    public void writeSection(final Identification identification, final IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            final IdentificationParameters identificationParameters, final ArrayList<String> keys, final String linePrefix, final int nSurroundingAA,
+            final boolean validatedOnly, final boolean decoys, final ProcessingPreferences processingPreferences, final WaitingHandler waitingHandler,
+            final ExceptionHandler exceptionHandler)
             throws IOException, IllegalArgumentException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
 
         if (waitingHandler != null) {
@@ -149,7 +155,6 @@ public class PsPsmSection {
             }
         }
 
-        int line = 1;
         int totalSize = 0;
 
         for (String spectrumFile : psmMap.keySet()) {
@@ -166,6 +171,63 @@ public class PsPsmSection {
         ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
         parameters.add(psParameter);
 
+        SectionRowsWriter<SpectrumMatch> rowsWriter = new SectionRowsWriter<SpectrumMatch>(writer, indexes, linePrefix, "PSM section",
+                processingPreferences, waitingHandler, exceptionHandler) {
+
+            @Override
+            protected ArrayList<String> getRow(SpectrumMatch spectrumMatch, PeptideSpectrumAnnotator peptideSpectrumAnnotator) throws Exception {
+
+                PSParameter psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumMatch.getKey(), new PSParameter());
+
+                if (validatedOnly && !psParameter.getMatchValidationLevel().isValidated()) {
+                    return null;
+                }
+
+                PeptideAssumption peptideAssumption = spectrumMatch.getBestPeptideAssumption();
+
+                if (!decoys && peptideAssumption != null && peptideAssumption.getPeptide().isDecoy(identificationParameters.getSequenceMatchingPreferences())) {
+                    return null;
+                }
+
+                ArrayList<String> row = new ArrayList<String>(identificationAlgorithmMatchesFeatures.size() + psmFeatures.size());
+                for (PsIdentificationAlgorithmMatchesFeature identificationAlgorithmMatchesFeature : identificationAlgorithmMatchesFeatures) {
+                    String feature;
+                    if (peptideAssumption != null) {
+                        feature = PsIdentificationAlgorithmMatchesSection.getPeptideAssumptionFeature(identification, identificationFeaturesGenerator,
+                                identificationParameters, keys, linePrefix, nSurroundingAA, peptideAssumption, spectrumMatch.getKey(),
+                                psParameter, identificationAlgorithmMatchesFeature, peptideSpectrumAnnotator, waitingHandler);
+                    } else if (spectrumMatch.getBestTagAssumption() != null) {
+                        TagAssumption tagAssumption = spectrumMatch.getBestTagAssumption();
+                        feature = PsIdentificationAlgorithmMatchesSection.getTagAssumptionFeature(identification, identificationFeaturesGenerator,
+                                identificationParameters, keys, linePrefix, tagAssumption, spectrumMatch.getKey(), psParameter,
+                                identificationAlgorithmMatchesFeature, waitingHandler);
+                    } else {
+                        throw new IllegalArgumentException("No best match found for spectrum " + spectrumMatch.getKey() + ".");
+                    }
+                    row.add(feature);
+                }
+                for (PsPsmFeature psmFeature : psmFeatures) {
+                    row.add(getFeature(identification, identificationFeaturesGenerator, identificationParameters,
+                            keys, linePrefix, spectrumMatch, psParameter, psmFeature, validatedOnly, decoys, waitingHandler));
+                }
+                return row;
+            }
+
+            @Override
+            protected void writeSubSection(SpectrumMatch spectrumMatch, String subSectionPrefix)
+                    throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
+                if (fragmentSection != null) {
+                    writer.increaseDepth();
+                    if (spectrumMatch.getBestPeptideAssumption() != null) {
+                        fragmentSection.writeSection(spectrumMatch.getKey(), spectrumMatch.getBestPeptideAssumption(), identificationParameters, subSectionPrefix, null);
+                    } else if (spectrumMatch.getBestTagAssumption() != null) {
+                        fragmentSection.writeSection(spectrumMatch.getKey(), spectrumMatch.getBestTagAssumption(), identificationParameters, subSectionPrefix, null);
+                    }
+                    writer.decreseDepth();
+                }
+            }
+        };
+
         for (String spectrumFile : psmMap.keySet()) {
 
             PsmIterator psmIterator = identification.getPsmIterator(spectrumFile, new ArrayList<String>(
@@ -180,77 +242,13 @@ public class PsPsmSection {
                     waitingHandler.increaseSecondaryProgressCounter();
                 }
 
-                SpectrumMatch spectrumMatch = psmIterator.next();
-                String spectrumKey = spectrumMatch.getKey();
-
-                psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, psParameter);
-
-                if (!validatedOnly || psParameter.getMatchValidationLevel().isValidated()) {
-
-                    PeptideAssumption peptideAssumption = spectrumMatch.getBestPeptideAssumption();
-
-                    if (decoys || peptideAssumption == null || !peptideAssumption.getPeptide().isDecoy(identificationParameters.getSequenceMatchingPreferences())) {
-
-                        boolean first = true;
-
-                        if (indexes) {
-                            if (linePrefix != null) {
-                                writer.write(linePrefix);
-                            }
-                            writer.write(line + "");
-                            first = false;
-                        }
-                        for (PsIdentificationAlgorithmMatchesFeature identificationAlgorithmMatchesFeature : identificationAlgorithmMatchesFeatures) {
-                            if (!first) {
-                                writer.addSeparator();
-                            } else {
-                                first = false;
-                            }
-                            String feature;
-                            if (peptideAssumption != null) {
-                                peptideAssumption = spectrumMatch.getBestPeptideAssumption();
-                                feature = PsIdentificationAlgorithmMatchesSection.getPeptideAssumptionFeature(identification, identificationFeaturesGenerator,
-                                        identificationParameters, keys, linePrefix, nSurroundingAA, peptideAssumption, spectrumMatch.getKey(),
-                                        psParameter, identificationAlgorithmMatchesFeature, waitingHandler);
-                            } else if (spectrumMatch.getBestTagAssumption() != null) {
-                                TagAssumption tagAssumption = spectrumMatch.getBestTagAssumption();
-                                feature = PsIdentificationAlgorithmMatchesSection.getTagAssumptionFeature(identification, identificationFeaturesGenerator,
-                                        identificationParameters, keys, linePrefix, tagAssumption, spectrumMatch.getKey(), psParameter,
-                                        identificationAlgorithmMatchesFeature, waitingHandler);
-                            } else {
-                                throw new IllegalArgumentException("No best match found for spectrum " + spectrumMatch.getKey() + ".");
-                            }
-                            writer.write(feature);
-                        }
-                        for (PsPsmFeature psmFeature : psmFeatures) {
-                            if (!first) {
-                                writer.addSeparator();
-                            } else {
-                                first = false;
-                            }
-                            writer.write(getFeature(identification, identificationFeaturesGenerator, identificationParameters,
-                                    keys, linePrefix, spectrumMatch, psParameter, psmFeature, validatedOnly, decoys, waitingHandler));
-                        }
-                        writer.newLine();
-                        if (fragmentSection != null) {
-                            String fractionPrefix = "";
-                            if (linePrefix != null) {
-                                fractionPrefix += linePrefix;
-                            }
-                            fractionPrefix += line + ".";
-                            writer.increaseDepth();
-                            if (spectrumMatch.getBestPeptideAssumption() != null) {
-                                fragmentSection.writeSection(spectrumKey, spectrumMatch.getBestPeptideAssumption(), identificationParameters, fractionPrefix, null);
-                            } else if (spectrumMatch.getBestTagAssumption() != null) {
-                                fragmentSection.writeSection(spectrumKey, spectrumMatch.getBestTagAssumption(), identificationParameters, fractionPrefix, null);
-                            }
-                            writer.decreseDepth();
-                        }
-                        line++;
-                    }
+                if (!rowsWriter.add(psmIterator.next())) {
+                    return;
                 }
             }
         }
+
+        rowsWriter.finish();
     }
 
     /**
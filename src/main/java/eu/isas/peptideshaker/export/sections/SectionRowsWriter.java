@@ -0,0 +1,357 @@
+package eu.isas.peptideshaker.export.sections;
+
+import com.compomics.util.exceptions.ExceptionHandler;
+import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
+import com.compomics.util.io.export.ExportWriter;
+import com.compomics.util.preferences.ProcessingPreferences;
+import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.peptideshaker.PeptideShaker;
+import eu.isas.peptideshaker.utils.OrderedResults;
+import eu.isas.peptideshaker.utils.ProcessingScheduler;
+import eu.isas.peptideshaker.utils.ProcessingStage;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
+
+/**
+ * Writes the rows of a report section while computing their content in
+ * parallel. The matches are grouped in batches and the rows of every batch are
+ * computed by the processing threads. The rows are written by the thread
+ * adding the matches, in the order the matches were added.
+ *
+ * @param <M> the type of match exported in the section
+ *
+ * @author Marc Vaudel
+ */
+public abstract class SectionRowsWriter<M> {
+
+    /**
+     * The number of matches processed by a task.
+     */
+    public static final int BATCH_SIZE = 100;
+    /**
+     * The writer used to send the output to file.
+     */
+    private final ExportWriter writer;
+    /**
+     * Boolean indicating whether the line shall be indexed.
+     */
+    private final boolean indexes;
+    /**
+     * The prefix of the line indexes, can be null.
+     */
+    private final String linePrefix;
+    /**
+     * The stage computing the rows.
+     */
+    private final ProcessingStage stage;
+    /**
+     * The batches computed and not written yet.
+     */
+    private final OrderedResults<RowsRunnable> batches = new OrderedResults<RowsRunnable>();
+    /**
+     * The maximal number of batches submitted and not written yet.
+     */
+    private final long maxPendingBatches;
+    /**
+     * The waiting handler, can be null.
+     */
+    private final WaitingHandler waitingHandler;
+    /**
+     * Handler for the exceptions.
+     */
+    private final ExceptionHandler exceptionHandler;
+    /**
+     * The matches of the batch being filled.
+     */
+    private ArrayList<M> matches = new ArrayList<M>(BATCH_SIZE);
+    /**
+     * The number of batches created.
+     */
+    private long nBatches = 0;
+    /**
+     * The index of the next line to write.
+     */
+    private int line = 1;
+
+    /**
+     * Constructor.
+     *
+     * @param writer the writer used to send the output to file
+     * @param indexes indicates whether the line index should be written
+     * @param linePrefix the prefix of the line indexes, can be null
+     * @param stageName the name of the processing stage
+     * @param processingPreferences the processing preferences
+     * @param waitingHandler the waiting handler, can be null
+     * @param exceptionHandler handler for the exceptions
+     */
+    public SectionRowsWriter(ExportWriter writer, boolean indexes, String linePrefix, String stageName,
+            ProcessingPreferences processingPreferences, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+        this.writer = writer;
+        this.indexes = indexes;
+        this.linePrefix = linePrefix;
+        this.waitingHandler = waitingHandler;
+        this.exceptionHandler = exceptionHandler;
+        stage = PeptideShaker.getProcessingScheduler(processingPreferences).newStage(stageName, waitingHandler);
+        maxPendingBatches = 2 * ProcessingScheduler.TASKS_PER_THREAD * processingPreferences.getnThreads();
+    }
+
+    /**
+     * Returns the content of the row of the given match without line index,
+     * null if the match should not be exported. This method is called by the
+     * processing threads.
+     *
+     * @param match the match
+     * @param peptideSpectrumAnnotator a spectrum annotator used only by the
+     * calling thread
+     *
+     * @return the content of the row
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * computing the row
+     */
+    protected abstract ArrayList<String> getRow(M match, PeptideSpectrumAnnotator peptideSpectrumAnnotator) throws Exception;
+
+    /**
+     * Writes the sub-section following the row of the given match. Does
+     * nothing by default. This method is called by the thread writing the
+     * section.
+     *
+     * @param match the match
+     * @param subSectionPrefix the line prefix to use for the sub-section
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * interacting with a file
+     * @throws SQLException thrown whenever an error occurred while interacting
+     * with the database
+     * @throws ClassNotFoundException thrown whenever an error occurred while
+     * deserializing a match from the database
+     * @throws InterruptedException thrown whenever a threading error occurred
+     * while interacting with the database
+     * @throws MzMLUnmarshallerException thrown whenever an error occurred while
+     * reading an mzML file
+     */
+    protected void writeSubSection(M match, String subSectionPrefix)
+            throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
+    }
+
+    /**
+     * Adds a match to export. The rows computed in the meantime are written.
+     *
+     * @param match the match to export
+     *
+     * @return a boolean indicating whether the match could be added, false if
+     * the process was canceled
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * interacting with a file
+     * @throws SQLException thrown whenever an error occurred while interacting
+     * with the database
+     * @throws ClassNotFoundException thrown whenever an error occurred while
+     * deserializing a match from the database
+     * @throws InterruptedException thrown whenever a threading error occurred
+     * while interacting with the database
+     * @throws MzMLUnmarshallerException thrown whenever an error occurred while
+     * reading an mzML file
+     */
+    public boolean add(M match) throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
+        matches.add(match);
+        if (matches.size() == BATCH_SIZE) {
+            return submitBatch();
+        }
+        return true;
+    }
+
+    /**
+     * Submits the current batch for computation.
+     *
+     * @return a boolean indicating whether the batch could be submitted, false
+     * if the process was canceled
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * interacting with a file
+     * @throws SQLException thrown whenever an error occurred while interacting
+     * with the database
+     * @throws ClassNotFoundException thrown whenever an error occurred while
+     * deserializing a match from the database
+     * @throws InterruptedException thrown whenever a threading error occurred
+     * while interacting with the database
+     * @throws MzMLUnmarshallerException thrown whenever an error occurred while
+     * reading an mzML file
+     */
+    private boolean submitBatch() throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
+
+        RowsRunnable batch = new RowsRunnable(nBatches++, matches);
+        matches = new ArrayList<M>(BATCH_SIZE);
+
+        while (batch.batchIndex - batches.getNextIndex() >= maxPendingBatches) {
+            RowsRunnable computedBatch = batches.take(stage);
+            if (computedBatch == null) {
+                return false;
+            }
+            write(computedBatch);
+        }
+
+        RowsRunnable computedBatch = batches.poll();
+        while (computedBatch != null) {
+            write(computedBatch);
+            computedBatch = batches.poll();
+        }
+
+        return stage.submit(batch);
+    }
+
+    /**
+     * Writes the remaining rows as they get computed and waits for the
+     * completion of the computation. If all matches fit in a single batch,
+     * the rows are computed by the calling thread.
+     *
+     * @return a boolean indicating whether all rows were written, false if the
+     * process was canceled
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * interacting with a file
+     * @throws SQLException thrown whenever an error occurred while interacting
+     * with the database
+     * @throws ClassNotFoundException thrown whenever an error occurred while
+     * deserializing a match from the database
+     * @throws InterruptedException thrown whenever a threading error occurred
+     * while interacting with the database
+     * @throws MzMLUnmarshallerException thrown whenever an error occurred while
+     * reading an mzML file
+     */
+    public boolean finish() throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
+
+        if (!matches.isEmpty()) {
+            if (nBatches == 0) {
+                RowsRunnable batch = new RowsRunnable(nBatches++, matches);
+                matches = new ArrayList<M>(0);
+                batch.run();
+            } else if (!submitBatch()) {
+                return false;
+            }
+        }
+
+        while (batches.getNextIndex() < nBatches) {
+            RowsRunnable computedBatch = batches.take(stage);
+            if (computedBatch == null) {
+                break;
+            }
+            write(computedBatch);
+        }
+
+        return stage.awaitCompletion();
+    }
+
+    /**
+     * Writes the rows of a batch.
+     *
+     * @param batch the batch
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * interacting with a file
+     * @throws SQLException thrown whenever an error occurred while interacting
+     * with the database
+     * @throws ClassNotFoundException thrown whenever an error occurred while
+     * deserializing a match from the database
+     * @throws InterruptedException thrown whenever a threading error occurred
+     * while interacting with the database
+     * @throws MzMLUnmarshallerException thrown whenever an error occurred while
+     * reading an mzML file
+     */
+    private void write(RowsRunnable batch) throws IOException, SQLException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
+
+        for (int i = 0; i < batch.matches.size(); i++) {
+
+            ArrayList<String> row = batch.rows.get(i);
+
+            if (row != null) {
+
+                boolean first = true;
+
+                if (indexes) {
+                    if (linePrefix != null) {
+                        writer.write(linePrefix);
+                    }
+                    writer.write(line + "");
+                    first = false;
+                }
+                for (String feature : row) {
+                    if (!first) {
+                        writer.addSeparator();
+                    } else {
+                        first = false;
+                    }
+                    writer.write(feature);
+                }
+                writer.newLine();
+
+                String subSectionPrefix = "";
+                if (linePrefix != null) {
+                    subSectionPrefix += linePrefix;
+                }
+                subSectionPrefix += line + ".";
+                writeSubSection(batch.matches.get(i), subSectionPrefix);
+
+                line++;
+            }
+        }
+    }
+
+    /**
+     * Runnable computing the rows of a batch of matches.
+     *
+     * @author Marc Vaudel
+     */
+    private class RowsRunnable implements Runnable {
+
+        /**
+         * The index of the batch.
+         */
+        private final long batchIndex;
+        /**
+         * The matches of the batch.
+         */
+        private final ArrayList<M> matches;
+        /**
+         * The rows of the matches, null for matches not exported.
+         */
+        private final ArrayList<ArrayList<String>> rows;
+        /**
+         * The spectrum annotator of this batch.
+         */
+        private final PeptideSpectrumAnnotator peptideSpectrumAnnotator = new PeptideSpectrumAnnotator();
+
+        /**
+         * Constructor.
+         *
+         * @param batchIndex the index of the batch
+         * @param matches the matches of the batch
+         */
+        public RowsRunnable(long batchIndex, ArrayList<M> matches) {
+            this.batchIndex = batchIndex;
+            this.matches = matches;
+            this.rows = new ArrayList<ArrayList<String>>(matches.size());
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (M match : matches) {
+                    if (stage.isCanceled()) {
+                        return;
+                    }
+                    rows.add(getRow(match, peptideSpectrumAnnotator));
+                }
+                batches.add(batchIndex, this);
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                stage.cancel();
+                if (waitingHandler != null) {
+                    waitingHandler.setRunCanceled();
+                }
+            }
+        }
+    }
+}
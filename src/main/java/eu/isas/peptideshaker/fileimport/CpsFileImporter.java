@@ -7,11 +7,15 @@ import com.compomics.util.experiment.biology.Sample;
 import com.compomics.util.experiment.io.ExperimentIO;
 import com.compomics.util.waiting.WaitingHandler;
 import com.compomics.util.io.compression.TarUtils;
+import com.compomics.util.preferences.ProcessingPreferences;
 import eu.isas.peptideshaker.parameters.PeptideShakerSettings;
 import eu.isas.peptideshaker.utils.CpsParent;
+import eu.isas.peptideshaker.utils.ProjectArchive;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import org.apache.commons.compress.archivers.ArchiveException;
@@ -29,10 +33,12 @@ public class CpsFileImporter {
     private MsExperiment experiment;
 
     /**
-     * Constructor.
+     * Constructor. Projects saved as ProjectArchive are extracted in parallel,
+     * projects saved as tar files by previous versions are untarred.
      *
      * @param cpsFile the cps file
      * @param dbFolder the path where to store the database
+     * @param processingPreferences the processing preferences
      * @param waitingHandler the waiting handler
      *
      * @throws FileNotFoundException thrown if the file to import cannot be
@@ -43,15 +49,22 @@ public class CpsFileImporter {
      * experiment data
      * @throws org.apache.commons.compress.archivers.ArchiveException exception
      * thrown whenever an error occurred while untaring the file
+     * @throws InterruptedException exception thrown whenever a threading error
+     * occurred while extracting the file
      */
-    public CpsFileImporter(File cpsFile, File dbFolder, WaitingHandler waitingHandler) throws FileNotFoundException, IOException, ClassNotFoundException, ArchiveException {
+    public CpsFileImporter(File cpsFile, File dbFolder, ProcessingPreferences processingPreferences, WaitingHandler waitingHandler) throws FileNotFoundException, IOException, ClassNotFoundException, ArchiveException, InterruptedException {
 
         if (waitingHandler != null) {
             waitingHandler.resetSecondaryProgressCounter();
             waitingHandler.setMaxSecondaryProgressCounter(100);
         }
 
-        TarUtils.extractFile(cpsFile, dbFolder, waitingHandler);
+        if (ProjectArchive.isProjectArchive(cpsFile)) {
+            ProjectArchive projectArchive = new ProjectArchive(cpsFile);
+            projectArchive.extract(dbFolder, processingPreferences, waitingHandler);
+        } else {
+            TarUtils.extractFile(cpsFile, dbFolder, waitingHandler);
+        }
 
         File experimentFile = new File(dbFolder, MsExperiment.experimentObjectName);
         experiment = ExperimentIO.loadExperiment(experimentFile);
@@ -79,6 +92,52 @@ public class CpsFileImporter {
         return peptideShakerSettings;
     }
 
+    /**
+     * Returns the PeptideShaker settings of a cps file without extracting it.
+     * Returns null if the project was saved by a previous version.
+     *
+     * @param cpsFile the cps file
+     *
+     * @return the PeptideShaker settings
+     *
+     * @throws IOException exception thrown whenever an error occurs while
+     * reading the file
+     * @throws ClassNotFoundException exception thrown whenever an error occurs
+     * while deserializing the settings object
+     */
+    public static PeptideShakerSettings getPeptideShakerSettings(File cpsFile) throws IOException, ClassNotFoundException {
+        if (!ProjectArchive.isProjectArchive(cpsFile)) {
+            return null;
+        }
+        return getPeptideShakerSettings(new ProjectArchive(cpsFile));
+    }
+
+    /**
+     * Returns the PeptideShaker settings stored in a project archive. Returns
+     * null if not found.
+     *
+     * @param projectArchive the project archive
+     *
+     * @return the PeptideShaker settings
+     *
+     * @throws IOException exception thrown whenever an error occurs while
+     * reading the file
+     * @throws ClassNotFoundException exception thrown whenever an error occurs
+     * while deserializing the settings object
+     */
+    public static PeptideShakerSettings getPeptideShakerSettings(ProjectArchive projectArchive) throws IOException, ClassNotFoundException {
+        byte[] settingsBytes = projectArchive.readEntry(CpsParent.settingsArchiveEntry);
+        if (settingsBytes == null) {
+            return null;
+        }
+        ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(settingsBytes));
+        try {
+            return (PeptideShakerSettings) objectInputStream.readObject();
+        } finally {
+            objectInputStream.close();
+        }
+    }
+
     /**
      * Returns the samples.
      *
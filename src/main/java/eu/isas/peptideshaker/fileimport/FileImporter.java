@@ -12,7 +12,6 @@ import com.compomics.software.CompomicsWrapper;
 import com.compomics.util.Util;
 import com.compomics.util.exceptions.ExceptionHandler;
 import com.compomics.util.exceptions.exception_handlers.CommandLineExceptionHandler;
-import com.compomics.util.experiment.identification.protein_inference.proteintree.ProteinTree;
 import com.compomics.util.experiment.identification.protein_inference.proteintree.ProteinTreeComponentsFactory;
 import com.compomics.util.experiment.massspectrometry.Spectrum;
 import com.compomics.util.experiment.massspectrometry.SpectrumFactory;
@@ -27,7 +26,6 @@ import com.compomics.util.gui.JOptionEditorPane;
 import eu.isas.peptideshaker.PeptideShaker;
 import com.compomics.util.waiting.WaitingHandler;
 import com.compomics.util.gui.waiting.waitinghandlers.WaitingDialog;
-import com.compomics.util.memory.MemoryConsumptionStatus;
 import com.compomics.util.preferences.GenePreferences;
 import com.compomics.util.preferences.IdentificationParameters;
 import com.compomics.util.preferences.PeptideVariantsPreferences;
@@ -39,7 +37,9 @@ import eu.isas.peptideshaker.preferences.SpectrumCountingPreferences;
 import eu.isas.peptideshaker.protein_inference.PeptideMapper;
 import eu.isas.peptideshaker.protein_inference.TagMapper;
 import eu.isas.peptideshaker.scoring.maps.InputMap;
+import eu.isas.peptideshaker.utils.MemoryGovernor;
 import eu.isas.peptideshaker.utils.Metrics;
+import eu.isas.peptideshaker.utils.ProteinSequenceStore;
 import org.xml.sax.SAXException;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 
@@ -98,6 +98,11 @@ public class FileImporter {
      * resolution in X!Tandem result files.
      */
     public static final double PTM_MASS_TOLERANCE = 0.01;
+    /**
+     * The size in bytes taken in memory by a protein, without its sequence
+     * when the length of the sequences is known.
+     */
+    public static final int PROTEIN_SIZE = 112;
     /**
      * The identification parameters.
      */
@@ -176,13 +181,33 @@ public class FileImporter {
                 return;
             }
 
+            waitingHandler.resetSecondaryProgressCounter();
+
+            ProteinSequenceStore proteinSequenceStore = ProteinSequenceStore.getInstance();
+            boolean sequenceStoreLoaded;
+            try {
+                sequenceStoreLoaded = proteinSequenceStore.load(waitingHandler);
+            } catch (IOException e) {
+                waitingHandler.appendReport("Could not map the sequences of " + fastaFile.getName() + ": " + e.getMessage(), true, true);
+                e.printStackTrace();
+                sequenceStoreLoaded = false;
+            }
+
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
+
             waitingHandler.resetSecondaryProgressCounter();
             waitingHandler.setSecondaryProgressCounterIndeterminate(true);
 
             UtilitiesUserPreferences userPreferences = UtilitiesUserPreferences.loadUserPreferences();
             int memoryPreference = userPreferences.getMemoryPreference();
             int nSequences = sequenceFactory.getNSequences();
-            int cacheSizeInMb = nSequences * 112 / 1048576; // 112 is the size taken by one protein
+            long proteinSize = PROTEIN_SIZE;
+            if (sequenceStoreLoaded && proteinSequenceStore.getNProteins() > 0) {
+                proteinSize += 2 * proteinSequenceStore.getSequencesLength() / proteinSequenceStore.getNProteins();
+            }
+            int cacheSizeInMb = (int) (nSequences * proteinSize / 1048576);
             if (!sequenceFactory.isDefaultReversed() || cacheSizeInMb < memoryPreference / 4) {
                 nSequences = sequenceFactory.getNSequences();
                 sequenceFactory.setDecoyInMemory(true);
@@ -190,10 +215,13 @@ public class FileImporter {
                 nSequences = sequenceFactory.getNTargetSequences();
                 sequenceFactory.setDecoyInMemory(false);
             }
-            long availableCachSize = 1048576l * memoryPreference / 112; // 112 is the size taken by one protein
+            long availableCachSize = 1048576l * memoryPreference / proteinSize;
             availableCachSize *= 0.75;
             if (availableCachSize > nSequences) {
                 availableCachSize = nSequences;
+            } else if (sequenceStoreLoaded) {
+                waitingHandler.appendReport("The FASTA file does not fit in memory, protein sequences will be read from "
+                        + ProteinSequenceStore.getStoreFile(fastaFile).getName() + ".", true, true);
             } else {
                 waitingHandler.appendReport("Warning: PeptideShaker cannot load your FASTA file into memory. This will slow down the processing. "
                         + "Note that using large large databases also reduces the search engine efficiency. "
@@ -219,6 +247,7 @@ public class FileImporter {
                 waitingHandler.increasePrimaryProgressCounter();
             } else {
                 sequenceFactory.clearFactory();
+                proteinSequenceStore.close();
             }
 
         } catch (FileNotFoundException e) {
@@ -447,6 +476,12 @@ public class FileImporter {
                     return 1;
                 }
 
+                if (identificationParameters.getSequenceMatchingPreferences().getPeptideMapperType() == PeptideMapperType.tree) {
+                    MemoryGovernor.getInstance().registerProteinTree(sequenceFactory.getDefaultPeptideMapper());
+                } else {
+                    MemoryGovernor.getInstance().registerProteinTree(null);
+                }
+
                 GenePreferences genePreferences = identificationParameters.getGenePreferences();
                 if (genePreferences.getUseGeneMapping()) {
                     waitingHandler.setSecondaryProgressCounterIndeterminate(true);
@@ -769,14 +804,9 @@ public class FileImporter {
                                 peptideMapper.setCanceled(true);
                             }
                         }
-                        // empty protein caches
-                        if (MemoryConsumptionStatus.memoryUsed() > 0.8) {
-                            SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
-                            if (sequenceMatchingPreferences.getPeptideMapperType() == PeptideMapperType.tree) {
-                                ProteinTreeComponentsFactory.getInstance().getCache().reduceMemoryConsumption(1, null);
-                                sequenceFactory.emptyCache();
-                            }
-                        }
+                        // reduce the caches before importing the PSMs if memory is short
+                        MemoryGovernor memoryGovernor = MemoryGovernor.getInstance();
+                        memoryGovernor.reclaim(memoryGovernor.getPressureLevel());
 
                         waitingHandler.setMaxSecondaryProgressCounter(numberOfMatches);
                         waitingHandler.appendReport("Importing PSMs from " + idFile.getName(), true, true);
@@ -807,23 +837,12 @@ public class FileImporter {
                             metrics.setMaxTagPrecursorErrorPpm(psmImporter.getMaxTagErrorPpm());
                         }
 
-                        // Free at least 0.5GB for the next parser if not anymore available
-                        if (!MemoryConsumptionStatus.halfGbFree() && !peptideShaker.getCache().isEmpty()) {
+                        // Free memory for the next parser if not anymore available
+                        if (memoryGovernor.getPressureLevel() != MemoryGovernor.PressureLevel.normal) {
                             waitingHandler.appendReport("PeptideShaker is encountering memory issues! "
                                     + "See http://compomics.github.io/projects/peptide-shaker.html for help.", true, true);
                             waitingHandler.appendReport("Reducing Memory Consumption.", true, true);
-                            waitingHandler.setSecondaryProgressCounterIndeterminate(false);
-                            double share = ((double) 1073741824) / (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
-                            share = Math.min(share, 1);
-                            peptideShaker.getCache().reduceMemoryConsumption(share, waitingHandler);
-                            waitingHandler.setSecondaryProgressCounterIndeterminate(true);
-                        }
-                        SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
-                        if (sequenceMatchingPreferences.getPeptideMapperType() == PeptideMapperType.tree) {
-                            ProteinTree proteinTree = (ProteinTree) sequenceFactory.getDefaultPeptideMapper();
-                            if (!MemoryConsumptionStatus.halfGbFree() && proteinTree.getNodesInCache() > 0) {
-                                proteinTree.reduceNodeCacheSize(0.5);
-                            }
+                            memoryGovernor.reclaim(MemoryGovernor.PressureLevel.critical);
                         }
                         projectDetails.addIdentificationFiles(idFile);
 
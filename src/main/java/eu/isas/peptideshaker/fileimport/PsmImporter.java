@@ -19,7 +19,6 @@ import com.compomics.util.experiment.identification.identification_parameters.to
 import com.compomics.util.experiment.identification.identification_parameters.tool_specific.XtandemParameters;
 import com.compomics.util.experiment.identification.matches.ModificationMatch;
 import com.compomics.util.experiment.identification.matches.SpectrumMatch;
-import com.compomics.util.experiment.identification.protein_inference.proteintree.ProteinTreeComponentsFactory;
 import com.compomics.util.experiment.identification.ptm.PtmSiteMapping;
 import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
 import com.compomics.util.experiment.io.identifications.IdfileReader;
@@ -31,20 +30,20 @@ import com.compomics.util.experiment.io.identifications.idfilereaders.PepxmlIdfi
 import com.compomics.util.experiment.io.identifications.idfilereaders.TideIdfileReader;
 import com.compomics.util.experiment.massspectrometry.Spectrum;
 import com.compomics.util.experiment.massspectrometry.SpectrumFactory;
-import com.compomics.util.memory.MemoryConsumptionStatus;
 import com.compomics.util.experiment.identification.filtering.PeptideAssumptionFilter;
 import com.compomics.util.preferences.IdentificationParameters;
 import com.compomics.util.experiment.identification.identification_parameters.PtmSettings;
-import com.compomics.util.experiment.identification.protein_inference.PeptideMapperType;
-import com.compomics.util.experiment.identification.protein_inference.proteintree.ProteinTree;
 import com.compomics.util.experiment.io.identifications.idfilereaders.NovorIdfileReader;
 import com.compomics.util.preferences.ProcessingPreferences;
 import com.compomics.util.preferences.SequenceMatchingPreferences;
 import com.compomics.util.waiting.WaitingHandler;
 import de.proteinms.omxparser.util.OMSSAIdfileReader;
 import de.proteinms.xtandemparser.parser.XTandemIdfileReader;
+import eu.isas.peptideshaker.PeptideShaker;
 import eu.isas.peptideshaker.scoring.maps.InputMap;
 import eu.isas.peptideshaker.scoring.psm_scoring.BestMatchSelection;
+import eu.isas.peptideshaker.utils.MemoryGovernor;
+import eu.isas.peptideshaker.utils.ProcessingStage;
 import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
@@ -53,8 +52,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 import static eu.isas.peptideshaker.fileimport.FileImporter.PTM_MASS_TOLERANCE;
@@ -66,10 +64,24 @@ import static eu.isas.peptideshaker.fileimport.FileImporter.PTM_MASS_TOLERANCE;
  */
 public class PsmImporter {
 
+    /**
+     * The number of spectrum matches handed over to the import threads at
+     * once.
+     */
+    public static final int BATCH_SIZE = 1000;
+    /**
+     * The maximal number of batches waiting in the import queue per thread.
+     */
+    public static final int QUEUE_BATCHES_PER_THREAD = 2;
+
     /**
      * The protein sequence factory.
      */
     private SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+    /**
+     * The memory governor.
+     */
+    private MemoryGovernor memoryGovernor = MemoryGovernor.getInstance();
     /**
      * The PTM factory.
      */
@@ -254,7 +266,11 @@ public class PsmImporter {
     }
 
     /**
-     * Imports PSMs using multiple threads.
+     * Imports PSMs using multiple threads. The matches are handed over to the
+     * import threads in batches of BATCH_SIZE through a queue holding at most
+     * QUEUE_BATCHES_PER_THREAD batches per thread. The matches are removed
+     * from the given list as they are queued, the memory used by the import
+     * is hence proportional to the batch size and not to the file size.
      *
      * @param idFileSpectrumMatches the PSMs to import
      * @param nThreads the number of threads to use
@@ -275,20 +291,67 @@ public class PsmImporter {
     public void importPsmsMultipleThreads(LinkedList<SpectrumMatch> idFileSpectrumMatches, int nThreads, WaitingHandler waitingHandler)
             throws IOException, SQLException, InterruptedException, ClassNotFoundException, MzMLUnmarshallerException {
 
-        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        ArrayBlockingQueue<ArrayList<SpectrumMatch>> batchQueue = new ArrayBlockingQueue<ArrayList<SpectrumMatch>>(QUEUE_BATCHES_PER_THREAD * nThreads);
+        ProcessingStage stage = PeptideShaker.getProcessingScheduler(nThreads).newStage("PSM import", waitingHandler);
+        int nThreadsSubmitted = 0;
+        for (int i = 0; i < nThreads; i++) {
+            PsmImporterRunnable psmImporterRunnable = new PsmImporterRunnable(batchQueue, waitingHandler);
+            if (!stage.submit(psmImporterRunnable)) {
+                return;
+            }
+            nThreadsSubmitted++;
+        }
+
+        ArrayList<SpectrumMatch> batch = new ArrayList<SpectrumMatch>(BATCH_SIZE);
         while (!idFileSpectrumMatches.isEmpty()) {
             SpectrumMatch match = idFileSpectrumMatches.pollLast();
-            PsmImporterRunnable psmImporterRunnable = new PsmImporterRunnable(match, waitingHandler);
-            pool.submit(psmImporterRunnable);
-            if (waitingHandler.isRunCanceled()) {
-                pool.shutdownNow();
+            batch.add(match);
+            if (batch.size() == BATCH_SIZE || idFileSpectrumMatches.isEmpty()) {
+                if (!queueBatch(batchQueue, batch, stage, waitingHandler)) {
+                    stage.cancel();
+                    stage.awaitCompletion();
+                    return;
+                }
+                stage.increaseProcessedCount(batch.size());
+                batch = new ArrayList<SpectrumMatch>(BATCH_SIZE);
+            }
+        }
+
+        // an empty batch tells the threads that the import is complete
+        for (int i = 0; i < nThreadsSubmitted; i++) {
+            if (!queueBatch(batchQueue, new ArrayList<SpectrumMatch>(0), stage, waitingHandler)) {
+                stage.cancel();
+                stage.awaitCompletion();
                 return;
             }
         }
-        pool.shutdown();
-        if (!pool.awaitTermination(1, TimeUnit.DAYS)) {
-            throw new InterruptedException("PSM import timed out. Please contact the developers.");
+
+        stage.awaitCompletion();
+    }
+
+    /**
+     * Puts a batch of matches in the import queue, waiting for space to
+     * become available if the queue is full.
+     *
+     * @param batchQueue the queue of batches to import
+     * @param batch the batch to add
+     * @param stage the stage running the import threads
+     * @param waitingHandler waiting handler to display progress and allow
+     * canceling the import
+     *
+     * @return true if the batch was queued, false if the import was canceled
+     * or an import thread failed in the meantime
+     *
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while waiting for the queue
+     */
+    private boolean queueBatch(ArrayBlockingQueue<ArrayList<SpectrumMatch>> batchQueue, ArrayList<SpectrumMatch> batch, ProcessingStage stage, WaitingHandler waitingHandler) throws InterruptedException {
+        while (!batchQueue.offer(batch, 1, TimeUnit.SECONDS)) {
+            if (waitingHandler.isRunCanceled() || stage.isCanceled() || stage.hasFailed()) {
+                return false;
+            }
         }
+        return !waitingHandler.isRunCanceled() && !stage.hasFailed();
     }
 
     /**
@@ -342,21 +405,8 @@ public class PsmImporter {
     private void importPsm(SpectrumMatch spectrumMatch, PeptideSpectrumAnnotator peptideSpectrumAnnotator, WaitingHandler waitingHandler)
             throws IOException, SQLException, InterruptedException, ClassNotFoundException, MzMLUnmarshallerException {
 
-        // free memory if needed
-        if (MemoryConsumptionStatus.memoryUsed() > 0.9 && !peptideShakerCache.isEmpty()) {
-            peptideShakerCache.reduceMemoryConsumption(0.5, null);
-        }
-        // free memory from the tree if used
-        SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
-        if (sequenceMatchingPreferences.getPeptideMapperType() == PeptideMapperType.tree) {
-            if (MemoryConsumptionStatus.memoryUsed() > 0.9 && !ProteinTreeComponentsFactory.getInstance().getCache().isEmpty()) {
-                ProteinTreeComponentsFactory.getInstance().getCache().reduceMemoryConsumption(0.5, null);
-            }
-            ProteinTree proteinTree = (ProteinTree) sequenceFactory.getDefaultPeptideMapper();
-            if (!MemoryConsumptionStatus.halfGbFree() && proteinTree.getNodesInCache() > 0) {
-                proteinTree.reduceNodeCacheSize(0.5);
-            }
-        }
+        // wait for the caches to be reduced if memory is short
+        memoryGovernor.awaitMemory(waitingHandler);
 
         nPSMs++;
 
@@ -1428,14 +1478,15 @@ public class PsmImporter {
     }
 
     /**
-     * Private runnable to import PSMs.
+     * Private runnable to import PSMs. The runnable imports batches of
+     * matches from the queue until an empty batch is encountered.
      */
     private class PsmImporterRunnable implements Runnable {
 
         /**
-         * The spectrum match to import.
+         * The queue of batches of spectrum matches to import.
          */
-        private SpectrumMatch spectrumMatch;
+        private ArrayBlockingQueue<ArrayList<SpectrumMatch>> batchQueue;
 
         /**
          * The waiting handler.
@@ -1451,12 +1502,12 @@ public class PsmImporter {
         /**
          * Constructor.
          *
-         * @param spectrumMatch the match to import
+         * @param batchQueue the queue of batches of matches to import
          * @param waitingHandler a waiting handler to display progress and allow
          * canceling the process
          */
-        public PsmImporterRunnable(SpectrumMatch spectrumMatch, WaitingHandler waitingHandler) {
-            this.spectrumMatch = spectrumMatch;
+        public PsmImporterRunnable(ArrayBlockingQueue<ArrayList<SpectrumMatch>> batchQueue, WaitingHandler waitingHandler) {
+            this.batchQueue = batchQueue;
             this.waitingHandler = waitingHandler;
         }
 
@@ -1464,14 +1515,27 @@ public class PsmImporter {
         public void run() {
 
             try {
-                if (!waitingHandler.isRunCanceled()) {
-                    importPsm(spectrumMatch, peptideSpectrumAnnotator, waitingHandler);
+                while (!waitingHandler.isRunCanceled()) {
+                    ArrayList<SpectrumMatch> batch = batchQueue.take();
+                    if (batch.isEmpty()) {
+                        return;
+                    }
+                    for (SpectrumMatch spectrumMatch : batch) {
+                        if (waitingHandler.isRunCanceled()) {
+                            return;
+                        }
+                        importPsm(spectrumMatch, peptideSpectrumAnnotator, waitingHandler);
+                    }
                 }
             } catch (Exception e) {
                 if (!waitingHandler.isRunCanceled()) {
                     exceptionHandler.catchException(e);
                     waitingHandler.setRunCanceled();
                 }
+            } catch (Error e) {
+                // stop the producer, the error is thrown by the stage
+                waitingHandler.setRunCanceled();
+                throw e;
             }
         }
     }
@@ -135,11 +135,11 @@ public class AssumptionFilter extends MatchFilter {
     public boolean isValidated(String matchKey, PeptideAssumption peptideAssumption, Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator,
             IdentificationParameters identificationParameters, PeptideSpectrumAnnotator peptideSpectrumAnnotator) throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, MathException {
 
-        if (exceptions.contains(matchKey)) {
+        if (isException(matchKey)) {
             return false;
         }
 
-        if (manualValidation.contains(matchKey)) {
+        if (isManuallyValidated(matchKey)) {
             return true;
         }
         for (String itemName : valuesMap.keySet()) {
@@ -279,6 +279,113 @@ public class AssumptionFilter extends MatchFilter {
         }
     }
 
+    @Override
+    public boolean isNumeric(String itemName) {
+        AssumptionFilterItem filterItem = AssumptionFilterItem.getItem(itemName);
+        if (filterItem == null) {
+            return false;
+        }
+        switch (filterItem) {
+            case precrusorMz:
+            case precrusorRT:
+            case precrusorCharge:
+            case precrusorMzErrorDa:
+            case precrusorMzErrorPpm:
+            case precrusorMzErrorStat:
+            case algorithmScore:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public double getNumericValue(String itemName, String spectrumKey, Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            IdentificationParameters identificationParameters) throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, MathException {
+        PeptideAssumption peptideAssumption = identification.getSpectrumMatch(spectrumKey).getBestPeptideAssumption();
+        return getNumericValue(itemName, spectrumKey, peptideAssumption, identificationFeaturesGenerator, identificationParameters);
+    }
+
+    @Override
+    public void fillNumericValues(String[] itemNames, String spectrumKey, Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            IdentificationParameters identificationParameters, double[][] columns, int row) throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, MathException {
+        PeptideAssumption peptideAssumption = identification.getSpectrumMatch(spectrumKey).getBestPeptideAssumption();
+        for (int i = 0; i < itemNames.length; i++) {
+            columns[i][row] = getNumericValue(itemNames[i], spectrumKey, peptideAssumption, identificationFeaturesGenerator, identificationParameters);
+        }
+    }
+
+    /**
+     * Returns the value of a numeric item for the given assumption. The value
+     * is the one compared to the filter threshold by isValidated.
+     *
+     * @param itemName the name of the item
+     * @param spectrumKey the key of the spectrum
+     * @param peptideAssumption the assumption
+     * @param identificationFeaturesGenerator the identification features
+     * generator where to get identification features
+     * @param identificationParameters the identification parameters used
+     *
+     * @return the value of the item for the given assumption
+     *
+     * @throws java.io.IOException exception thrown whenever an exception
+     * occurred while reading or writing a file
+     * @throws java.lang.InterruptedException exception thrown whenever a
+     * threading issue occurred while reading the spectrum
+     * @throws uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException exception thrown
+     * whenever an error occurred while reading an mzML file
+     * @throws org.apache.commons.math.MathException exception thrown whenever
+     * an error occurred while doing statistics on a distribution
+     */
+    public double getNumericValue(String itemName, String spectrumKey, PeptideAssumption peptideAssumption, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            IdentificationParameters identificationParameters) throws IOException, InterruptedException, MzMLUnmarshallerException, MathException {
+
+        AssumptionFilterItem filterItem = AssumptionFilterItem.getItem(itemName);
+        if (filterItem == null) {
+            throw new IllegalArgumentException("Filter item " + itemName + "not recognized as spectrum assumption filter item.");
+        }
+        switch (filterItem) {
+            case precrusorMz:
+                return SpectrumFactory.getInstance().getPrecursor(spectrumKey).getMz();
+            case precrusorRT:
+                return SpectrumFactory.getInstance().getPrecursor(spectrumKey).getRt();
+            case precrusorCharge:
+                return peptideAssumption.getIdentificationCharge().value;
+            case precrusorMzErrorDa:
+                Precursor precursor = SpectrumFactory.getInstance().getPrecursor(spectrumKey);
+                SearchParameters searchParameters = identificationParameters.getSearchParameters();
+                return Math.abs(peptideAssumption.getDeltaMass(precursor.getMz(), false, searchParameters.getMinIsotopicCorrection(), searchParameters.getMaxIsotopicCorrection()));
+            case precrusorMzErrorPpm:
+                precursor = SpectrumFactory.getInstance().getPrecursor(spectrumKey);
+                searchParameters = identificationParameters.getSearchParameters();
+                return Math.abs(peptideAssumption.getDeltaMass(precursor.getMz(), true, searchParameters.getMinIsotopicCorrection(), searchParameters.getMaxIsotopicCorrection()));
+            case precrusorMzErrorStat:
+                precursor = SpectrumFactory.getInstance().getPrecursor(spectrumKey);
+                searchParameters = identificationParameters.getSearchParameters();
+                double mzError = peptideAssumption.getDeltaMass(precursor.getMz(), searchParameters.isPrecursorAccuracyTypePpm(), searchParameters.getMinIsotopicCorrection(), searchParameters.getMaxIsotopicCorrection());
+                NonSymmetricalNormalDistribution precDeviationDistribution = identificationFeaturesGenerator.getMassErrorDistribution(Spectrum.getSpectrumFile(spectrumKey));
+                if (mzError > precDeviationDistribution.getMean()) {
+                    return precDeviationDistribution.getDescendingCumulativeProbabilityAt(mzError);
+                } else {
+                    return precDeviationDistribution.getCumulativeProbabilityAt(mzError);
+                }
+            case algorithmScore:
+                Double score = peptideAssumption.getRawScore();
+                if (score == null) {
+                    score = peptideAssumption.getScore();
+                }
+                return score;
+            default:
+                throw new UnsupportedOperationException("Item " + filterItem.name + " is not numeric.");
+        }
+    }
+
+    @Override
+    public void loadMatches(ArrayList<String> matchKeys, Identification identification)
+            throws IOException, InterruptedException, ClassNotFoundException, SQLException, MathException {
+        identification.loadSpectrumMatches(matchKeys, null, false);
+    }
+
     @Override
     public FilterItem[] getPossibleFilterItems() {
         return AssumptionFilterItem.values();
@@ -61,6 +61,15 @@ public abstract class MatchFilter implements Serializable, Filter {
      * The exceptions to the rule.
      */
     protected ArrayList<String> exceptions = new ArrayList<String>();
+    /**
+     * Set of the keys of the manually validated matches used for the lookups,
+     * null if not built.
+     */
+    private transient volatile HashSet<String> manualValidationIndex = null;
+    /**
+     * Set of the exceptions used for the lookups, null if not built.
+     */
+    private transient volatile HashSet<String> exceptionsIndex = null;
     /**
      * Name of the manual selection filter.
      */
@@ -231,6 +240,7 @@ public abstract class MatchFilter implements Serializable, Filter {
      */
     public void addManualValidation(String matchKey) {
         manualValidation.add(matchKey);
+        manualValidationIndex = null;
     }
 
     /**
@@ -240,6 +250,7 @@ public abstract class MatchFilter implements Serializable, Filter {
      */
     public void setManualValidation(ArrayList<String> manualValidation) {
         this.manualValidation = manualValidation;
+        manualValidationIndex = null;
     }
 
     /**
@@ -249,6 +260,7 @@ public abstract class MatchFilter implements Serializable, Filter {
      */
     public void addException(String matchKey) {
         exceptions.add(matchKey);
+        exceptionsIndex = null;
     }
 
     /**
@@ -258,6 +270,7 @@ public abstract class MatchFilter implements Serializable, Filter {
      */
     public void setExceptions(ArrayList<String> exceptions) {
         this.exceptions = exceptions;
+        exceptionsIndex = null;
     }
 
     /**
@@ -267,6 +280,7 @@ public abstract class MatchFilter implements Serializable, Filter {
      */
     public void removeManualValidation(String matchKey) {
         manualValidation.remove(matchKey);
+        manualValidationIndex = null;
     }
 
     /**
@@ -276,6 +290,41 @@ public abstract class MatchFilter implements Serializable, Filter {
      */
     public void removeException(String matchKey) {
         exceptions.remove(matchKey);
+        exceptionsIndex = null;
+    }
+
+    /**
+     * Indicates whether the given match was manually validated.
+     *
+     * @param matchKey the key of the match
+     *
+     * @return a boolean indicating whether the given match was manually
+     * validated
+     */
+    public boolean isManuallyValidated(String matchKey) {
+        HashSet<String> index = manualValidationIndex;
+        if (index == null) {
+            index = new HashSet<String>(manualValidation);
+            manualValidationIndex = index;
+        }
+        return index.contains(matchKey);
+    }
+
+    /**
+     * Indicates whether the given match is an exception to the rule.
+     *
+     * @param matchKey the key of the match
+     *
+     * @return a boolean indicating whether the given match is an exception to
+     * the rule
+     */
+    public boolean isException(String matchKey) {
+        HashSet<String> index = exceptionsIndex;
+        if (index == null) {
+            index = new HashSet<String>(exceptions);
+            exceptionsIndex = index;
+        }
+        return index.contains(matchKey);
     }
 
     /**
@@ -417,11 +466,11 @@ public abstract class MatchFilter implements Serializable, Filter {
     public boolean isValidated(String matchKey, Identification identification, GeneMaps geneMaps, IdentificationFeaturesGenerator identificationFeaturesGenerator,
             IdentificationParameters identificationParameters, PeptideSpectrumAnnotator peptideSpectrumAnnotator) throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, MathException {
 
-        if (exceptions.contains(matchKey)) {
+        if (isException(matchKey)) {
             return false;
         }
 
-        if (manualValidation.contains(matchKey)) {
+        if (isManuallyValidated(matchKey)) {
             return true;
         }
         for (String itemName : valuesMap.keySet()) {
@@ -471,6 +520,109 @@ public abstract class MatchFilter implements Serializable, Filter {
     public abstract boolean isValidated(String itemName, FilterItemComparator filterItemComparator, Object value, String matchKey, Identification identification, GeneMaps geneMaps, IdentificationFeaturesGenerator identificationFeaturesGenerator,
             IdentificationParameters identificationParameters, PeptideSpectrumAnnotator peptideSpectrumAnnotator) throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, MathException;
 
+    /**
+     * Indicates whether the given item is numeric, i.e., whether its value
+     * can be obtained using getNumericValue. False by default.
+     *
+     * @param itemName the name of the item
+     *
+     * @return a boolean indicating whether the given item is numeric
+     */
+    public boolean isNumeric(String itemName) {
+        return false;
+    }
+
+    /**
+     * Returns the value of a numeric item for the given match. The value is
+     * the one compared to the filter threshold by isValidated.
+     *
+     * @param itemName the name of the item
+     * @param matchKey the key of the match
+     * @param identification the identification where to get the information
+     * from
+     * @param identificationFeaturesGenerator the identification features
+     * generator where to get identification features
+     * @param identificationParameters the identification parameters used
+     *
+     * @return the value of the item for the given match
+     *
+     * @throws java.io.IOException exception thrown whenever an exception
+     * occurred while reading or writing a file
+     * @throws java.lang.InterruptedException exception thrown whenever a
+     * threading issue occurred while interacting with the database
+     * @throws java.lang.ClassNotFoundException exception thrown whenever an
+     * error occurred while deserilalizing a match
+     * @throws java.sql.SQLException exception thrown whenever an error occurred
+     * while interacting with a database
+     * @throws uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException exception thrown
+     * whenever an error occurred while reading an mzML file
+     * @throws org.apache.commons.math.MathException exception thrown whenever
+     * an error occurred while doing statistics on a distribution
+     */
+    public double getNumericValue(String itemName, String matchKey, Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            IdentificationParameters identificationParameters) throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, MathException {
+        throw new UnsupportedOperationException("Item " + itemName + " is not numeric.");
+    }
+
+    /**
+     * Sets the values of the given numeric items for a match in a row of
+     * columns, one column per item. By default every value is obtained
+     * separately using getNumericValue, implementations retrieve the match
+     * and its parameters only once for all items.
+     *
+     * @param itemNames the names of the numeric items
+     * @param matchKey the key of the match
+     * @param identification the identification where to get the information
+     * from
+     * @param identificationFeaturesGenerator the identification features
+     * generator where to get identification features
+     * @param identificationParameters the identification parameters used
+     * @param columns the columns of values, one per item
+     * @param row the index of the match in the columns
+     *
+     * @throws java.io.IOException exception thrown whenever an exception
+     * occurred while reading or writing a file
+     * @throws java.lang.InterruptedException exception thrown whenever a
+     * threading issue occurred while interacting with the database
+     * @throws java.lang.ClassNotFoundException exception thrown whenever an
+     * error occurred while deserilalizing a match
+     * @throws java.sql.SQLException exception thrown whenever an error occurred
+     * while interacting with a database
+     * @throws uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException exception thrown
+     * whenever an error occurred while reading an mzML file
+     * @throws org.apache.commons.math.MathException exception thrown whenever
+     * an error occurred while doing statistics on a distribution
+     */
+    public void fillNumericValues(String[] itemNames, String matchKey, Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            IdentificationParameters identificationParameters, double[][] columns, int row) throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, MathException {
+        for (int i = 0; i < itemNames.length; i++) {
+            columns[i][row] = getNumericValue(itemNames[i], matchKey, identification, identificationFeaturesGenerator, identificationParameters);
+        }
+    }
+
+    /**
+     * Loads the matches of a batch and their parameters before evaluating the
+     * filter on them. Does nothing by default.
+     *
+     * @param matchKeys the keys of the matches
+     * @param identification the identification where to get the information
+     * from
+     *
+     * @throws java.io.IOException exception thrown whenever an exception
+     * occurred while reading or writing a file
+     * @throws java.lang.InterruptedException exception thrown whenever a
+     * threading issue occurred while interacting with the database
+     * @throws java.lang.ClassNotFoundException exception thrown whenever an
+     * error occurred while deserilalizing a match
+     * @throws java.sql.SQLException exception thrown whenever an error occurred
+     * while interacting with a database
+     * @throws org.apache.commons.math.MathException exception thrown whenever
+     * an error occurred while doing statistics on a distribution
+     */
+    public void loadMatches(ArrayList<String> matchKeys, Identification identification)
+            throws IOException, InterruptedException, ClassNotFoundException, SQLException, MathException {
+    }
+
     @Override
     public boolean isSameAs(Filter anotherFilter) {
         if (anotherFilter instanceof MatchFilter) {
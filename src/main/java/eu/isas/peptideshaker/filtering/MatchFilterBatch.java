@@ -0,0 +1,483 @@
+package eu.isas.peptideshaker.filtering;
+
+import com.compomics.util.exceptions.ExceptionHandler;
+import com.compomics.util.experiment.biology.genes.GeneMaps;
+import com.compomics.util.experiment.filtering.Filter;
+import com.compomics.util.experiment.filtering.FilterItemComparator;
+import com.compomics.util.experiment.identification.Identification;
+import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
+import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.preferences.ProcessingPreferences;
+import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.peptideshaker.PeptideShaker;
+import eu.isas.peptideshaker.utils.IdentificationFeaturesGenerator;
+import eu.isas.peptideshaker.utils.ProcessingStage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Evaluates a match filter on many matches at once. The filter is compiled
+ * into a list of numeric comparisons and a list of items evaluated by the
+ * filter. The matches are split in blocks evaluated in parallel. In every
+ * block, the matches and their parameters are loaded at once, and the values
+ * of all numeric items are read into one column per item, reading every match
+ * only once. Every column is then compared to the threshold of its item. The
+ * other items are evaluated last, only on the matches passing all numeric
+ * items.
+ *
+ * @author Marc Vaudel
+ */
+public class MatchFilterBatch {
+
+    /**
+     * The number of matches evaluated by a task.
+     */
+    public static final int BLOCK_SIZE = 1000;
+
+    /**
+     * The numeric comparisons supported.
+     */
+    private enum Comparison {
+
+        /**
+         * The value must be higher or equal to the threshold.
+         */
+        higherOrEqual,
+        /**
+         * The value must be lower or equal to the threshold.
+         */
+        lowerOrEqual,
+        /**
+         * The value must be equal to the threshold.
+         */
+        equal;
+    }
+    /**
+     * The filter to evaluate.
+     */
+    private final MatchFilter matchFilter;
+    /**
+     * The keys of the matches failing the filter in any case.
+     */
+    private final HashSet<String> exceptions;
+    /**
+     * The keys of the matches passing the filter in any case.
+     */
+    private final HashSet<String> manualValidation;
+    /**
+     * The names of the numeric items.
+     */
+    private final String[] numericItems;
+    /**
+     * The comparisons of the numeric items.
+     */
+    private final Comparison[] comparisons;
+    /**
+     * The thresholds of the numeric items.
+     */
+    private final double[] thresholds;
+    /**
+     * The names of the items evaluated by the filter.
+     */
+    private final String[] otherItems;
+
+    /**
+     * Constructor. Compiles the given filter. Subsequent changes to the filter
+     * are not taken into account.
+     *
+     * @param matchFilter the filter to evaluate
+     */
+    public MatchFilterBatch(MatchFilter matchFilter) {
+
+        this.matchFilter = matchFilter;
+        exceptions = new HashSet<String>(matchFilter.getExceptions());
+        manualValidation = new HashSet<String>(matchFilter.getManualValidation());
+
+        ArrayList<String> numericItemsList = new ArrayList<String>();
+        ArrayList<Comparison> comparisonsList = new ArrayList<Comparison>();
+        ArrayList<Double> thresholdsList = new ArrayList<Double>();
+        ArrayList<String> otherItemsList = new ArrayList<String>();
+
+        for (String itemName : matchFilter.getItemsNames()) {
+            Comparison comparison = null;
+            Double threshold = null;
+            if (matchFilter.isNumeric(itemName)) {
+                comparison = getComparison(matchFilter.getComparatorForItem(itemName));
+                threshold = getThreshold(matchFilter.getValue(itemName));
+            }
+            if (comparison != null && threshold != null) {
+                numericItemsList.add(itemName);
+                comparisonsList.add(comparison);
+                thresholdsList.add(threshold);
+            } else {
+                otherItemsList.add(itemName);
+            }
+        }
+
+        numericItems = numericItemsList.toArray(new String[numericItemsList.size()]);
+        comparisons = comparisonsList.toArray(new Comparison[comparisonsList.size()]);
+        thresholds = new double[thresholdsList.size()];
+        for (int i = 0; i < thresholds.length; i++) {
+            thresholds[i] = thresholdsList.get(i);
+        }
+        otherItems = otherItemsList.toArray(new String[otherItemsList.size()]);
+    }
+
+    /**
+     * Returns the numeric comparison corresponding to the given comparator,
+     * null if not supported.
+     *
+     * @param filterItemComparator the comparator
+     *
+     * @return the numeric comparison
+     */
+    private static Comparison getComparison(FilterItemComparator filterItemComparator) {
+        if (filterItemComparator == FilterItemComparator.higherOrEqual) {
+            return Comparison.higherOrEqual;
+        } else if (filterItemComparator == FilterItemComparator.lowerOrEqual) {
+            return Comparison.lowerOrEqual;
+        } else if (filterItemComparator == FilterItemComparator.equal) {
+            return Comparison.equal;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the given filter value as number, null if not a number.
+     *
+     * @param value the filter value
+     *
+     * @return the filter value as number
+     */
+    private static Double getThreshold(Object value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Double.valueOf(value.toString());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the filter evaluated.
+     *
+     * @return the filter evaluated
+     */
+    public MatchFilter getMatchFilter() {
+        return matchFilter;
+    }
+
+    /**
+     * Evaluates the filter on the given matches in parallel.
+     *
+     * @param matchKeys the keys of the matches
+     * @param identification the identification where to get the information
+     * from
+     * @param geneMaps the gene maps
+     * @param identificationFeaturesGenerator the identification features
+     * generator where to get identification features
+     * @param identificationParameters the identification parameters used
+     * @param processingPreferences the processing preferences
+     * @param waitingHandler the waiting handler, can be null
+     * @param exceptionHandler handler for the exceptions
+     *
+     * @return an array indicating for every match whether it passes the
+     * filter, null if the process was canceled
+     *
+     * @throws InterruptedException exception thrown whenever a threading
+     * error occurred while evaluating the filter
+     */
+    public boolean[] isValidated(ArrayList<String> matchKeys, Identification identification, GeneMaps geneMaps,
+            IdentificationFeaturesGenerator identificationFeaturesGenerator, IdentificationParameters identificationParameters,
+            ProcessingPreferences processingPreferences, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws InterruptedException {
+
+        boolean[] validated = new boolean[matchKeys.size()];
+
+        ProcessingStage stage = PeptideShaker.getProcessingScheduler(processingPreferences).newStage("Filter " + matchFilter.getName(), waitingHandler);
+        for (int start = 0; start < matchKeys.size(); start += BLOCK_SIZE) {
+            int end = Math.min(start + BLOCK_SIZE, matchKeys.size());
+            BlockRunnable blockRunnable = new BlockRunnable(matchKeys, start, end, validated, identification, geneMaps,
+                    identificationFeaturesGenerator, identificationParameters, stage, waitingHandler, exceptionHandler);
+            if (!stage.submit(blockRunnable)) {
+                return null;
+            }
+        }
+        if (!stage.awaitCompletion()) {
+            return null;
+        }
+
+        return validated;
+    }
+
+    /**
+     * Returns the keys of the matches passing at least one of the given
+     * active filters.
+     *
+     * @param matchFilters the filters
+     * @param matchKeys the keys of the matches
+     * @param identification the identification where to get the information
+     * from
+     * @param geneMaps the gene maps
+     * @param identificationFeaturesGenerator the identification features
+     * generator where to get identification features
+     * @param identificationParameters the identification parameters used
+     * @param processingPreferences the processing preferences
+     * @param waitingHandler the waiting handler, can be null
+     * @param exceptionHandler handler for the exceptions
+     *
+     * @return the keys of the matches passing at least one filter, null if
+     * the process was canceled
+     *
+     * @throws InterruptedException exception thrown whenever a threading
+     * error occurred while evaluating the filters
+     */
+    public static HashSet<String> getValidatedMatches(Iterable<? extends MatchFilter> matchFilters, ArrayList<String> matchKeys,
+            Identification identification, GeneMaps geneMaps, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            IdentificationParameters identificationParameters, ProcessingPreferences processingPreferences,
+            WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws InterruptedException {
+
+        HashSet<String> result = new HashSet<String>();
+        for (MatchFilter matchFilter : matchFilters) {
+            if (matchFilter.isActive()) {
+                MatchFilterBatch matchFilterBatch = new MatchFilterBatch(matchFilter);
+                boolean[] validated = matchFilterBatch.isValidated(matchKeys, identification, geneMaps, identificationFeaturesGenerator,
+                        identificationParameters, processingPreferences, waitingHandler, exceptionHandler);
+                if (validated == null) {
+                    return null;
+                }
+                for (int i = 0; i < validated.length; i++) {
+                    if (validated[i]) {
+                        result.add(matchKeys.get(i));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Evaluates every given filter, active or not, and returns the keys of
+     * the matches passing each of them, indexed by filter name. Used to
+     * evaluate the quality control filters of the validation.
+     *
+     * @param filters the filters, must be match filters
+     * @param matchKeys the keys of the matches
+     * @param identification the identification where to get the information
+     * from
+     * @param geneMaps the gene maps
+     * @param identificationFeaturesGenerator the identification features
+     * generator where to get identification features
+     * @param identificationParameters the identification parameters used
+     * @param processingPreferences the processing preferences
+     * @param waitingHandler the waiting handler, can be null
+     * @param exceptionHandler handler for the exceptions
+     *
+     * @return the keys of the matches passing every filter indexed by filter
+     * name, null if the process was canceled
+     *
+     * @throws InterruptedException exception thrown whenever a threading
+     * error occurred while evaluating the filters
+     */
+    public static HashMap<String, HashSet<String>> getValidatedMatchesPerFilter(Iterable<? extends Filter> filters, ArrayList<String> matchKeys,
+            Identification identification, GeneMaps geneMaps, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            IdentificationParameters identificationParameters, ProcessingPreferences processingPreferences,
+            WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws InterruptedException {
+
+        HashMap<String, HashSet<String>> result = new HashMap<String, HashSet<String>>();
+        for (Filter filter : filters) {
+            MatchFilterBatch matchFilterBatch = new MatchFilterBatch((MatchFilter) filter);
+            boolean[] validated = matchFilterBatch.isValidated(matchKeys, identification, geneMaps, identificationFeaturesGenerator,
+                    identificationParameters, processingPreferences, waitingHandler, exceptionHandler);
+            if (validated == null) {
+                return null;
+            }
+            HashSet<String> validatedKeys = new HashSet<String>();
+            for (int i = 0; i < validated.length; i++) {
+                if (validated[i]) {
+                    validatedKeys.add(matchKeys.get(i));
+                }
+            }
+            result.put(filter.getName(), validatedKeys);
+        }
+        return result;
+    }
+
+    /**
+     * Runnable evaluating the filter on a block of matches.
+     *
+     * @author Marc Vaudel
+     */
+    private class BlockRunnable implements Runnable {
+
+        /**
+         * The keys of all matches.
+         */
+        private final ArrayList<String> matchKeys;
+        /**
+         * The index of the first match of the block.
+         */
+        private final int start;
+        /**
+         * The index after the last match of the block.
+         */
+        private final int end;
+        /**
+         * The results for all matches.
+         */
+        private final boolean[] validated;
+        /**
+         * The identification.
+         */
+        private final Identification identification;
+        /**
+         * The gene maps.
+         */
+        private final GeneMaps geneMaps;
+        /**
+         * The identification features generator.
+         */
+        private final IdentificationFeaturesGenerator identificationFeaturesGenerator;
+        /**
+         * The identification parameters.
+         */
+        private final IdentificationParameters identificationParameters;
+        /**
+         * The stage running the task.
+         */
+        private final ProcessingStage stage;
+        /**
+         * The waiting handler, can be null.
+         */
+        private final WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private final ExceptionHandler exceptionHandler;
+
+        /**
+         * Constructor.
+         *
+         * @param matchKeys the keys of all matches
+         * @param start the index of the first match of the block
+         * @param end the index after the last match of the block
+         * @param validated the results for all matches
+         * @param identification the identification
+         * @param geneMaps the gene maps
+         * @param identificationFeaturesGenerator the identification features
+         * generator
+         * @param identificationParameters the identification parameters
+         * @param stage the stage running the task
+         * @param waitingHandler the waiting handler, can be null
+         * @param exceptionHandler handler for the exceptions
+         */
+        public BlockRunnable(ArrayList<String> matchKeys, int start, int end, boolean[] validated, Identification identification,
+                GeneMaps geneMaps, IdentificationFeaturesGenerator identificationFeaturesGenerator, IdentificationParameters identificationParameters,
+                ProcessingStage stage, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.matchKeys = matchKeys;
+            this.start = start;
+            this.end = end;
+            this.validated = validated;
+            this.identification = identification;
+            this.geneMaps = geneMaps;
+            this.identificationFeaturesGenerator = identificationFeaturesGenerator;
+            this.identificationParameters = identificationParameters;
+            this.stage = stage;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+
+                int blockSize = end - start;
+                String[] keys = new String[blockSize];
+                boolean[] passing = new boolean[blockSize];
+                boolean[] decided = new boolean[blockSize];
+                ArrayList<String> keysToLoad = new ArrayList<String>(blockSize);
+
+                for (int i = 0; i < blockSize; i++) {
+                    String matchKey = matchKeys.get(start + i);
+                    keys[i] = matchKey;
+                    if (exceptions.contains(matchKey)) {
+                        decided[i] = true;
+                    } else if (manualValidation.contains(matchKey)) {
+                        passing[i] = true;
+                        decided[i] = true;
+                    } else {
+                        passing[i] = true;
+                        keysToLoad.add(matchKey);
+                    }
+                }
+
+                if (!keysToLoad.isEmpty() && (numericItems.length > 0 || otherItems.length > 0)) {
+                    matchFilter.loadMatches(keysToLoad, identification);
+                }
+
+                if (numericItems.length > 0) {
+
+                    double[][] columns = new double[numericItems.length][blockSize];
+                    for (int i = 0; i < blockSize; i++) {
+                        if (!decided[i]) {
+                            matchFilter.fillNumericValues(numericItems, keys[i], identification, identificationFeaturesGenerator, identificationParameters, columns, i);
+                        }
+                    }
+
+                    for (int j = 0; j < numericItems.length; j++) {
+                        if (stage.isCanceled()) {
+                            return;
+                        }
+                        double[] column = columns[j];
+                        double threshold = thresholds[j];
+                        switch (comparisons[j]) {
+                            case higherOrEqual:
+                                for (int i = 0; i < blockSize; i++) {
+                                    passing[i] = passing[i] && (decided[i] || column[i] >= threshold);
+                                }
+                                break;
+                            case lowerOrEqual:
+                                for (int i = 0; i < blockSize; i++) {
+                                    passing[i] = passing[i] && (decided[i] || column[i] <= threshold);
+                                }
+                                break;
+                            case equal:
+                                for (int i = 0; i < blockSize; i++) {
+                                    passing[i] = passing[i] && (decided[i] || column[i] == threshold);
+                                }
+                                break;
+                        }
+                    }
+                }
+
+                if (otherItems.length > 0) {
+                    PeptideSpectrumAnnotator peptideSpectrumAnnotator = new PeptideSpectrumAnnotator();
+                    for (String itemName : otherItems) {
+                        if (stage.isCanceled()) {
+                            return;
+                        }
+                        FilterItemComparator filterItemComparator = matchFilter.getComparatorForItem(itemName);
+                        Object value = matchFilter.getValue(itemName);
+                        for (int i = 0; i < blockSize; i++) {
+                            if (passing[i] && !decided[i]) {
+                                passing[i] = matchFilter.isValidated(itemName, filterItemComparator, value, keys[i], identification, geneMaps,
+                                        identificationFeaturesGenerator, identificationParameters, peptideSpectrumAnnotator);
+                            }
+                        }
+                    }
+                }
+
+                System.arraycopy(passing, 0, validated, start, blockSize);
+
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                stage.cancel();
+                if (waitingHandler != null) {
+                    waitingHandler.setRunCanceled();
+                }
+            }
+        }
+    }
+}
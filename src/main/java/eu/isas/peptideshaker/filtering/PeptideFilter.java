@@ -161,6 +161,114 @@ public class PeptideFilter extends MatchFilter {
         }
     }
 
+    @Override
+    public boolean isNumeric(String itemName) {
+        PeptideFilterItem filterItem = PeptideFilterItem.getItem(itemName);
+        if (filterItem == null) {
+            return false;
+        }
+        switch (filterItem) {
+            case nPSMs:
+            case nValidatedPSMs:
+            case nConfidentPSMs:
+            case confidence:
+            case proteinInference:
+            case validationStatus:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public double getNumericValue(String itemName, String matchKey, Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            IdentificationParameters identificationParameters) throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, MathException {
+        PeptideFilterItem filterItem = PeptideFilterItem.getItem(itemName);
+        PSParameter psParameter = null;
+        if (isParameterItem(filterItem)) {
+            psParameter = (PSParameter) identification.getPeptideMatchParameter(matchKey, new PSParameter());
+        }
+        return getNumericValue(filterItem, matchKey, psParameter, identification, identificationFeaturesGenerator);
+    }
+
+    @Override
+    public void fillNumericValues(String[] itemNames, String matchKey, Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            IdentificationParameters identificationParameters, double[][] columns, int row) throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, MathException {
+        PSParameter psParameter = null;
+        for (int i = 0; i < itemNames.length; i++) {
+            PeptideFilterItem filterItem = PeptideFilterItem.getItem(itemNames[i]);
+            if (psParameter == null && isParameterItem(filterItem)) {
+                psParameter = (PSParameter) identification.getPeptideMatchParameter(matchKey, new PSParameter());
+            }
+            columns[i][row] = getNumericValue(filterItem, matchKey, psParameter, identification, identificationFeaturesGenerator);
+        }
+    }
+
+    /**
+     * Indicates whether the value of the given item is read from the
+     * parameters of the match.
+     *
+     * @param filterItem the filter item
+     *
+     * @return a boolean indicating whether the value of the given item is read
+     * from the parameters of the match
+     */
+    private static boolean isParameterItem(PeptideFilterItem filterItem) {
+        return filterItem == PeptideFilterItem.confidence || filterItem == PeptideFilterItem.proteinInference || filterItem == PeptideFilterItem.validationStatus;
+    }
+
+    /**
+     * Returns the value of a numeric item for the given match.
+     *
+     * @param filterItem the filter item
+     * @param matchKey the key of the match
+     * @param psParameter the parameters of the match, can be null if the item
+     * is not read from the parameters
+     * @param identification the identification where to get the information
+     * from
+     * @param identificationFeaturesGenerator the identification features
+     * generator where to get identification features
+     *
+     * @return the value of the item for the given match
+     *
+     * @throws java.io.IOException exception thrown whenever an exception
+     * occurred while reading or writing a file
+     * @throws java.lang.InterruptedException exception thrown whenever a
+     * threading issue occurred while interacting with the database
+     * @throws java.lang.ClassNotFoundException exception thrown whenever an
+     * error occurred while deserilalizing a match
+     * @throws java.sql.SQLException exception thrown whenever an error occurred
+     * while interacting with a database
+     * @throws org.apache.commons.math.MathException exception thrown whenever
+     * an error occurred while doing statistics on a distribution
+     */
+    private static double getNumericValue(PeptideFilterItem filterItem, String matchKey, PSParameter psParameter, Identification identification,
+            IdentificationFeaturesGenerator identificationFeaturesGenerator) throws IOException, InterruptedException, ClassNotFoundException, SQLException, MathException {
+        switch (filterItem) {
+            case nPSMs:
+                return identification.getPeptideMatch(matchKey).getSpectrumCount();
+            case nValidatedPSMs:
+                return identificationFeaturesGenerator.getNValidatedSpectraForPeptide(matchKey);
+            case nConfidentPSMs:
+                return identificationFeaturesGenerator.getNConfidentSpectraForPeptide(matchKey);
+            case confidence:
+                return psParameter.getProteinConfidence();
+            case proteinInference:
+                return psParameter.getProteinInferenceClass();
+            case validationStatus:
+                return psParameter.getMatchValidationLevel().getIndex();
+            default:
+                throw new UnsupportedOperationException("Item " + filterItem.name + " is not numeric.");
+        }
+    }
+
+    @Override
+    public void loadMatches(ArrayList<String> matchKeys, Identification identification)
+            throws IOException, InterruptedException, ClassNotFoundException, SQLException, MathException {
+        identification.loadPeptideMatches(matchKeys, null, false);
+        identification.loadPeptideMatchParameters(matchKeys, new PSParameter(), null, false);
+    }
+
     @Override
     public FilterItem[] getPossibleFilterItems() {
         return PeptideFilterItem.values();
@@ -211,6 +211,135 @@ public class ProteinFilter extends MatchFilter {
         }
     }
 
+    @Override
+    public boolean isNumeric(String itemName) {
+        ProteinFilterItem filterItem = ProteinFilterItem.getItem(itemName);
+        if (filterItem == null) {
+            return false;
+        }
+        switch (filterItem) {
+            case expectedCoverage:
+            case validatedCoverage:
+            case confidentCoverage:
+            case spectrumCounting:
+            case nPeptides:
+            case nValidatedPeptides:
+            case nConfidentPeptides:
+            case nPSMs:
+            case nValidatedPSMs:
+            case nConfidentPSMs:
+            case confidence:
+            case proteinInference:
+            case validationStatus:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public double getNumericValue(String itemName, String matchKey, Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            IdentificationParameters identificationParameters) throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, MathException {
+        ProteinFilterItem filterItem = ProteinFilterItem.getItem(itemName);
+        PSParameter psParameter = null;
+        if (isParameterItem(filterItem)) {
+            psParameter = (PSParameter) identification.getProteinMatchParameter(matchKey, new PSParameter());
+        }
+        return getNumericValue(filterItem, matchKey, psParameter, identification, identificationFeaturesGenerator);
+    }
+
+    @Override
+    public void fillNumericValues(String[] itemNames, String matchKey, Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            IdentificationParameters identificationParameters, double[][] columns, int row) throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, MathException {
+        PSParameter psParameter = null;
+        for (int i = 0; i < itemNames.length; i++) {
+            ProteinFilterItem filterItem = ProteinFilterItem.getItem(itemNames[i]);
+            if (psParameter == null && isParameterItem(filterItem)) {
+                psParameter = (PSParameter) identification.getProteinMatchParameter(matchKey, new PSParameter());
+            }
+            columns[i][row] = getNumericValue(filterItem, matchKey, psParameter, identification, identificationFeaturesGenerator);
+        }
+    }
+
+    /**
+     * Indicates whether the value of the given item is read from the
+     * parameters of the match.
+     *
+     * @param filterItem the filter item
+     *
+     * @return a boolean indicating whether the value of the given item is read
+     * from the parameters of the match
+     */
+    private static boolean isParameterItem(ProteinFilterItem filterItem) {
+        return filterItem == ProteinFilterItem.confidence || filterItem == ProteinFilterItem.proteinInference || filterItem == ProteinFilterItem.validationStatus;
+    }
+
+    /**
+     * Returns the value of a numeric item for the given match.
+     *
+     * @param filterItem the filter item
+     * @param matchKey the key of the match
+     * @param psParameter the parameters of the match, can be null if the item
+     * is not read from the parameters
+     * @param identification the identification where to get the information
+     * from
+     * @param identificationFeaturesGenerator the identification features
+     * generator where to get identification features
+     *
+     * @return the value of the item for the given match
+     *
+     * @throws java.io.IOException exception thrown whenever an exception
+     * occurred while reading or writing a file
+     * @throws java.lang.InterruptedException exception thrown whenever a
+     * threading issue occurred while interacting with the database
+     * @throws java.lang.ClassNotFoundException exception thrown whenever an
+     * error occurred while deserilalizing a match
+     * @throws java.sql.SQLException exception thrown whenever an error occurred
+     * while interacting with a database
+     * @throws org.apache.commons.math.MathException exception thrown whenever
+     * an error occurred while doing statistics on a distribution
+     */
+    private static double getNumericValue(ProteinFilterItem filterItem, String matchKey, PSParameter psParameter, Identification identification,
+            IdentificationFeaturesGenerator identificationFeaturesGenerator) throws IOException, InterruptedException, ClassNotFoundException, SQLException, MathException {
+        switch (filterItem) {
+            case expectedCoverage:
+                return 100 * identificationFeaturesGenerator.getObservableCoverage(matchKey);
+            case validatedCoverage:
+                return 100 * identificationFeaturesGenerator.getValidatedSequenceCoverage(matchKey);
+            case confidentCoverage:
+            case spectrumCounting:
+                HashMap<Integer, Double> sequenceCoverage = identificationFeaturesGenerator.getSequenceCoverage(matchKey);
+                return 100 * sequenceCoverage.get(MatchValidationLevel.confident.getIndex());
+            case nPeptides:
+                return identification.getProteinMatch(matchKey).getPeptideCount();
+            case nValidatedPeptides:
+                return identificationFeaturesGenerator.getNValidatedPeptides(matchKey);
+            case nConfidentPeptides:
+                return identificationFeaturesGenerator.getNConfidentPeptides(matchKey);
+            case nPSMs:
+                return identificationFeaturesGenerator.getNSpectra(matchKey);
+            case nValidatedPSMs:
+                return identificationFeaturesGenerator.getNValidatedSpectra(matchKey);
+            case nConfidentPSMs:
+                return identificationFeaturesGenerator.getNConfidentSpectra(matchKey);
+            case confidence:
+                return psParameter.getProteinConfidence();
+            case proteinInference:
+                return psParameter.getProteinInferenceClass();
+            case validationStatus:
+                return psParameter.getMatchValidationLevel().getIndex();
+            default:
+                throw new UnsupportedOperationException("Item " + filterItem.name + " is not numeric.");
+        }
+    }
+
+    @Override
+    public void loadMatches(ArrayList<String> matchKeys, Identification identification)
+            throws IOException, InterruptedException, ClassNotFoundException, SQLException, MathException {
+        identification.loadProteinMatches(matchKeys, null, false);
+        identification.loadProteinMatchParameters(matchKeys, new PSParameter(), null, false);
+    }
+
     @Override
     public FilterItem[] getPossibleFilterItems() {
         return ProteinFilterItem.values();
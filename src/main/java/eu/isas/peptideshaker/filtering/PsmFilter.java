@@ -5,6 +5,7 @@ import com.compomics.util.experiment.biology.genes.GeneMaps;
 import com.compomics.util.experiment.filtering.FilterItem;
 import com.compomics.util.experiment.identification.Identification;
 import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
+import com.compomics.util.experiment.identification.spectrum_assumptions.PeptideAssumption;
 import com.compomics.util.preferences.IdentificationParameters;
 import eu.isas.peptideshaker.filtering.items.AssumptionFilterItem;
 import eu.isas.peptideshaker.filtering.items.PsmFilterItem;
@@ -12,6 +13,7 @@ import eu.isas.peptideshaker.parameters.PSParameter;
 import eu.isas.peptideshaker.utils.IdentificationFeaturesGenerator;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import org.apache.commons.math.MathException;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 
@@ -96,17 +98,17 @@ public class PsmFilter extends MatchFilter {
         switch (filterItem) {
             case confidence:
                 PSParameter psParameter = new PSParameter();
-                psParameter = (PSParameter) identification.getPeptideMatchParameter(matchKey, psParameter);
-                Double confidence = psParameter.getProteinConfidence();
+                psParameter = (PSParameter) identification.getSpectrumMatchParameter(matchKey, psParameter);
+                Double confidence = psParameter.getPsmConfidence();
                 return filterItemComparator.passes(input, confidence.toString());
             case validationStatus:
                 psParameter = new PSParameter();
-                psParameter = (PSParameter) identification.getPeptideMatchParameter(matchKey, psParameter);
+                psParameter = (PSParameter) identification.getSpectrumMatchParameter(matchKey, psParameter);
                 Integer validation = psParameter.getMatchValidationLevel().getIndex();
                 return filterItemComparator.passes(input, validation.toString());
             case stared:
                 psParameter = new PSParameter();
-                psParameter = (PSParameter) identification.getPeptideMatchParameter(matchKey, psParameter);
+                psParameter = (PSParameter) identification.getSpectrumMatchParameter(matchKey, psParameter);
                 String starred;
                 if (psParameter.isStarred()) {
                     starred = FilterItemComparator.trueFalse[0];
@@ -119,6 +121,74 @@ public class PsmFilter extends MatchFilter {
         }
     }
 
+    @Override
+    public boolean isNumeric(String itemName) {
+        PsmFilterItem filterItem = PsmFilterItem.getItem(itemName);
+        if (filterItem == null) {
+            return assumptionFilter.isNumeric(itemName);
+        }
+        return filterItem == PsmFilterItem.confidence || filterItem == PsmFilterItem.validationStatus;
+    }
+
+    @Override
+    public double getNumericValue(String itemName, String matchKey, Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            IdentificationParameters identificationParameters) throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, MathException {
+        PsmFilterItem filterItem = PsmFilterItem.getItem(itemName);
+        if (filterItem == null) {
+            return assumptionFilter.getNumericValue(itemName, matchKey, identification, identificationFeaturesGenerator, identificationParameters);
+        }
+        PSParameter psParameter = (PSParameter) identification.getSpectrumMatchParameter(matchKey, new PSParameter());
+        return getNumericValue(filterItem, psParameter);
+    }
+
+    @Override
+    public void fillNumericValues(String[] itemNames, String matchKey, Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            IdentificationParameters identificationParameters, double[][] columns, int row) throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, MathException {
+        PSParameter psParameter = null;
+        PeptideAssumption peptideAssumption = null;
+        for (int i = 0; i < itemNames.length; i++) {
+            String itemName = itemNames[i];
+            PsmFilterItem filterItem = PsmFilterItem.getItem(itemName);
+            if (filterItem != null) {
+                if (psParameter == null) {
+                    psParameter = (PSParameter) identification.getSpectrumMatchParameter(matchKey, new PSParameter());
+                }
+                columns[i][row] = getNumericValue(filterItem, psParameter);
+            } else {
+                if (peptideAssumption == null) {
+                    peptideAssumption = identification.getSpectrumMatch(matchKey).getBestPeptideAssumption();
+                }
+                columns[i][row] = assumptionFilter.getNumericValue(itemName, matchKey, peptideAssumption, identificationFeaturesGenerator, identificationParameters);
+            }
+        }
+    }
+
+    /**
+     * Returns the value of a numeric PSM item.
+     *
+     * @param filterItem the filter item
+     * @param psParameter the parameters of the match
+     *
+     * @return the value of the item for the given match
+     */
+    private static double getNumericValue(PsmFilterItem filterItem, PSParameter psParameter) {
+        switch (filterItem) {
+            case confidence:
+                return psParameter.getPsmConfidence();
+            case validationStatus:
+                return psParameter.getMatchValidationLevel().getIndex();
+            default:
+                throw new UnsupportedOperationException("Item " + filterItem.name + " is not numeric.");
+        }
+    }
+
+    @Override
+    public void loadMatches(ArrayList<String> matchKeys, Identification identification)
+            throws IOException, InterruptedException, ClassNotFoundException, SQLException, MathException {
+        identification.loadSpectrumMatches(matchKeys, null, false);
+        identification.loadSpectrumMatchParameters(matchKeys, new PSParameter(), null, false);
+    }
+
     @Override
     public FilterItem[] getPossibleFilterItems() {
         return PsmFilterItem.values();
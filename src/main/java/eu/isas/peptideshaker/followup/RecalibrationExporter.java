@@ -1,14 +1,18 @@
 package eu.isas.peptideshaker.followup;
 
 import com.compomics.util.Util;
+import com.compomics.util.exceptions.ExceptionHandler;
 import com.compomics.util.experiment.identification.Identification;
 import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
 import com.compomics.util.experiment.massspectrometry.SpectrumFactory;
 import com.compomics.util.waiting.WaitingHandler;
 import com.compomics.util.experiment.identification.spectrum_annotation.AnnotationSettings;
 import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.preferences.ProcessingPreferences;
+import eu.isas.peptideshaker.PeptideShaker;
 import eu.isas.peptideshaker.recalibration.RunMzDeviation;
 import eu.isas.peptideshaker.recalibration.SpectrumRecalibrator;
+import eu.isas.peptideshaker.utils.ProcessingStage;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
@@ -37,7 +41,9 @@ public class RecalibrationExporter {
 
     /**
      * Writes the recalibrated spectra in files named according to
-     * getRecalibratedFileName in the given folder.
+     * getRecalibratedFileName in the given folder. The errors of every file
+     * are estimated using all threads, the recalibrated files are then
+     * written concurrently.
      *
      * @param recalibratePrecursors boolean indicating whether precursor ions
      * shall be recalibrated
@@ -46,8 +52,10 @@ public class RecalibrationExporter {
      * @param folder folder where recalibrated files shall be written
      * @param identification identification of the project
      * @param identificationParameters the identification parameters
+     * @param processingPreferences the processing preferences
      * @param waitingHandler waiting handler displaying progress and used to
      * cancel the process. Can be null. The method does not call RunFinished.
+     * @param exceptionHandler handler for exceptions
      *
      * @throws IOException exception thrown whenever an IO exception occurred
      * while reading or writing to a file
@@ -61,13 +69,15 @@ public class RecalibrationExporter {
      * occurred while reading an mzML file
      */
     public static void writeRecalibratedSpectra(boolean recalibratePrecursors, boolean recalibrateFragmentIons, File folder,
-            Identification identification, IdentificationParameters identificationParameters, WaitingHandler waitingHandler)
+            Identification identification, IdentificationParameters identificationParameters, ProcessingPreferences processingPreferences,
+            WaitingHandler waitingHandler, ExceptionHandler exceptionHandler)
             throws IOException, MzMLUnmarshallerException, SQLException, ClassNotFoundException, InterruptedException {
 
         SpectrumFactory spectrumFactory = SpectrumFactory.getInstance();
         SpectrumRecalibrator spectrumRecalibrator = new SpectrumRecalibrator();
 
         int progress = 1;
+        int nSpectra = 0;
 
         for (String fileName : spectrumFactory.getMgfFileNames()) {
 
@@ -82,7 +92,7 @@ public class RecalibrationExporter {
                 waitingHandler.setMaxSecondaryProgressCounter(2 * spectrumFactory.getNSpectra(fileName));
             }
 
-            spectrumRecalibrator.estimateErrors(fileName, identification, identificationParameters, waitingHandler);
+            spectrumRecalibrator.estimateErrors(fileName, identification, identificationParameters, processingPreferences, waitingHandler, exceptionHandler);
 
             // Debug part
             if (debug) {
@@ -141,35 +151,26 @@ public class RecalibrationExporter {
                 return;
             }
 
-            File file = new File(folder, getRecalibratedFileName(fileName));
-            BufferedWriter writer = new BufferedWriter(new FileWriter(file));
-            if (waitingHandler != null) {
-                waitingHandler.setWaitingText("Recalibrating Spectra. Writing Spectra. Please Wait... (" + progress + "/" + spectrumFactory.getMgfFileNames().size() + ")");
-                waitingHandler.resetSecondaryProgressCounter();
-                waitingHandler.setMaxSecondaryProgressCounter(spectrumFactory.getNSpectra(fileName));
-            }
-
-            for (String spectrumTitle : spectrumFactory.getSpectrumTitles(fileName)) {
-
-                if (debug) {
-                    //System.out.println(new Date() + " recalibrating " + spectrumTitle + "\n");
-                }
+            nSpectra += spectrumFactory.getNSpectra(fileName);
+            progress++;
+        }
 
-                MSnSpectrum recalibratedSpectrum = spectrumRecalibrator.recalibrateSpectrum(fileName, spectrumTitle, recalibratePrecursors, recalibrateFragmentIons);
-                recalibratedSpectrum.writeMgf(writer);
-                writer.flush();
+        if (waitingHandler != null) {
+            waitingHandler.setWaitingText("Recalibrating Spectra. Writing Spectra. Please Wait...");
+            waitingHandler.resetSecondaryProgressCounter();
+            waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+            waitingHandler.setMaxSecondaryProgressCounter(nSpectra);
+        }
 
-                if (waitingHandler != null) {
-                    if (waitingHandler.isRunCanceled()) {
-                        break;
-                    }
-                    waitingHandler.increasePrimaryProgressCounter();
-                }
+        ProcessingStage stage = PeptideShaker.getProcessingScheduler(processingPreferences).newStage("Recalibrated spectra writing", waitingHandler);
+        for (String fileName : spectrumFactory.getMgfFileNames()) {
+            File file = new File(folder, getRecalibratedFileName(fileName));
+            RecalibratedFileWriter runnable = new RecalibratedFileWriter(spectrumRecalibrator, fileName, file, recalibratePrecursors, recalibrateFragmentIons, waitingHandler, exceptionHandler);
+            if (!stage.submit(runnable)) {
+                return;
             }
-
-            spectrumRecalibrator.clearErrors(fileName);
-            writer.close();
         }
+        stage.awaitCompletion();
     }
 
     /**
@@ -182,4 +183,98 @@ public class RecalibrationExporter {
     public static String getRecalibratedFileName(String fileName) {
         return Util.appendSuffix(fileName, recalibrated);
     }
+
+    /**
+     * Runnable writing the recalibrated spectra of a file.
+     *
+     * @author Marc Vaudel
+     */
+    private static class RecalibratedFileWriter implements Runnable {
+
+        /**
+         * The spectrum recalibrator containing the errors of the file.
+         */
+        private SpectrumRecalibrator spectrumRecalibrator;
+        /**
+         * The name of the spectrum file.
+         */
+        private String fileName;
+        /**
+         * The file where to write the recalibrated spectra.
+         */
+        private File destinationFile;
+        /**
+         * Boolean indicating whether precursor ions shall be recalibrated.
+         */
+        private boolean recalibratePrecursors;
+        /**
+         * Boolean indicating whether fragment ions shall be recalibrated.
+         */
+        private boolean recalibrateFragmentIons;
+        /**
+         * The waiting handler, can be null.
+         */
+        private WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private ExceptionHandler exceptionHandler;
+
+        /**
+         * Constructor.
+         *
+         * @param spectrumRecalibrator the spectrum recalibrator containing the
+         * errors of the file
+         * @param fileName the name of the spectrum file
+         * @param destinationFile the file where to write the recalibrated
+         * spectra
+         * @param recalibratePrecursors boolean indicating whether precursor
+         * ions shall be recalibrated
+         * @param recalibrateFragmentIons boolean indicating whether fragment
+         * ions shall be recalibrated
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process, can be null
+         * @param exceptionHandler handler for exceptions
+         */
+        public RecalibratedFileWriter(SpectrumRecalibrator spectrumRecalibrator, String fileName, File destinationFile, boolean recalibratePrecursors,
+                boolean recalibrateFragmentIons, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.spectrumRecalibrator = spectrumRecalibrator;
+            this.fileName = fileName;
+            this.destinationFile = destinationFile;
+            this.recalibratePrecursors = recalibratePrecursors;
+            this.recalibrateFragmentIons = recalibrateFragmentIons;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                SpectrumFactory spectrumFactory = SpectrumFactory.getInstance();
+                BufferedWriter writer = new BufferedWriter(new FileWriter(destinationFile));
+                try {
+                    for (String spectrumTitle : spectrumFactory.getSpectrumTitles(fileName)) {
+
+                        MSnSpectrum recalibratedSpectrum = spectrumRecalibrator.recalibrateSpectrum(fileName, spectrumTitle, recalibratePrecursors, recalibrateFragmentIons);
+                        recalibratedSpectrum.writeMgf(writer);
+
+                        if (waitingHandler != null) {
+                            if (waitingHandler.isRunCanceled()) {
+                                break;
+                            }
+                            waitingHandler.increaseSecondaryProgressCounter();
+                        }
+                    }
+                } finally {
+                    writer.close();
+                }
+                spectrumRecalibrator.clearErrors(fileName);
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                if (waitingHandler != null) {
+                    waitingHandler.setRunCanceled();
+                }
+            }
+        }
+    }
 }
@@ -1,6 +1,7 @@
 package eu.isas.peptideshaker.followup;
 
 import com.compomics.util.Util;
+import com.compomics.util.exceptions.ExceptionHandler;
 import com.compomics.util.experiment.identification.Identification;
 import com.compomics.util.experiment.identification.matches.SpectrumMatch;
 import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
@@ -8,6 +9,7 @@ import com.compomics.util.experiment.massspectrometry.Spectrum;
 import com.compomics.util.experiment.massspectrometry.SpectrumFactory;
 import com.compomics.util.waiting.WaitingHandler;
 import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.preferences.ProcessingPreferences;
 import eu.isas.peptideshaker.scoring.PSMaps;
 import eu.isas.peptideshaker.parameters.PSParameter;
 import eu.isas.peptideshaker.recalibration.SpectrumRecalibrator;
@@ -49,8 +51,10 @@ public class TrainingExport {
      * @param identificationParameters the identification parameters
      * @param recalibrate boolean indicating whether the files shall be
      * recalibrated
+     * @param processingPreferences the processing preferences
      * @param waitingHandler waiting handler displaying progress to the user and
      * allowing canceling the process
+     * @param exceptionHandler handler for exceptions
      *
      * @throws IOException exception thrown whenever an IO exception occurred
      * while reading or writing to a file
@@ -64,8 +68,9 @@ public class TrainingExport {
      * occurred while reading an mzML file
      */
     public static void exportPepnovoTrainingFiles(File destinationFolder, Identification identification, IdentificationParameters identificationParameters,
-            boolean recalibrate, WaitingHandler waitingHandler) throws IOException, MzMLUnmarshallerException, SQLException, ClassNotFoundException, InterruptedException {
-        exportPepnovoTrainingFiles(destinationFolder, identification, identificationParameters, null, null, recalibrate, waitingHandler);
+            boolean recalibrate, ProcessingPreferences processingPreferences, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler)
+            throws IOException, MzMLUnmarshallerException, SQLException, ClassNotFoundException, InterruptedException {
+        exportPepnovoTrainingFiles(destinationFolder, identification, identificationParameters, null, null, recalibrate, processingPreferences, waitingHandler, exceptionHandler);
     }
 
     /**
@@ -82,8 +87,10 @@ public class TrainingExport {
      * used.
      * @param recalibrate boolean indicating whether the files shall be
      * recalibrated
+     * @param processingPreferences the processing preferences
      * @param waitingHandler waiting handler displaying progress to the user and
      * allowing canceling the process
+     * @param exceptionHandler handler for exceptions
      *
      * @throws IOException exception thrown whenever an IO exception occurred
      * while reading or writing to a file
@@ -97,7 +104,8 @@ public class TrainingExport {
      * occurred while reading an mzML file
      */
     public static void exportPepnovoTrainingFiles(File destinationFolder, Identification identification, IdentificationParameters identificationParameters, Double fdr, Double fnr,
-            boolean recalibrate, WaitingHandler waitingHandler) throws IOException, MzMLUnmarshallerException, SQLException, ClassNotFoundException, InterruptedException {
+            boolean recalibrate, ProcessingPreferences processingPreferences, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler)
+            throws IOException, MzMLUnmarshallerException, SQLException, ClassNotFoundException, InterruptedException {
 
         SpectrumFactory spectrumFactory = SpectrumFactory.getInstance();
         SpectrumRecalibrator spectrumRecalibrator = new SpectrumRecalibrator();
@@ -122,7 +130,7 @@ public class TrainingExport {
                     waitingHandler.setMaxSecondaryProgressCounter(2 * spectrumFactory.getNSpectra(fileName));
                 }
 
-                spectrumRecalibrator.estimateErrors(fileName, identification, identificationParameters, waitingHandler);
+                spectrumRecalibrator.estimateErrors(fileName, identification, identificationParameters, processingPreferences, waitingHandler, exceptionHandler);
             }
 
             PSParameter psParameter = new PSParameter();
@@ -741,6 +741,7 @@ public class NewDialog extends javax.swing.JDialog {
             progressCounter++; // resolving protein inference
             progressCounter += 4; // Correcting protein probabilities, Validating identifications at 1% FDR, Scoring PTMs in peptides, Scoring PTMs in proteins.
             progressCounter += 2; // Scoring PTMs in PSMs. Estimating PTM FLR.
+            progressCounter++; // Computing protein features
             if (identificationParameters.getPtmScoringPreferences().getAlignNonConfidentPTMs()) {
                 progressCounter++; // Peptide inference
             }
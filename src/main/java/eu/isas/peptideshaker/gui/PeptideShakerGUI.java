@@ -3320,7 +3320,7 @@ public class PeptideShakerGUI extends JFrame implements ClipboardOwner, JavaHome
     private void processingMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_processingMenuItemActionPerformed
         ProcessingPreferencesDialog processingPreferencesDialog = new ProcessingPreferencesDialog(this, processingPreferences, true);
         if (!processingPreferencesDialog.isCanceled()) {
-            processingPreferences = processingPreferencesDialog.getProcessingPreferences();
+            setProcessingPreferences(processingPreferencesDialog.getProcessingPreferences());
         }
     }//GEN-LAST:event_processingMenuItemActionPerformed
 
@@ -3975,6 +3975,7 @@ public class PeptideShakerGUI extends JFrame implements ClipboardOwner, JavaHome
      */
     public void setProcessingPreferences(ProcessingPreferences processingPreferences) {
         this.processingPreferences = processingPreferences;
+        cpsParent.setProcessingPreferences(processingPreferences);
     }
 
     /**
@@ -791,7 +791,8 @@ public class FeaturesPreferencesDialog extends javax.swing.JDialog {
                                 peptideShakerGUI.getProjectDetails(), peptideShakerGUI.getIdentification(),
                                 peptideShakerGUI.getIdentificationFeaturesGenerator(), peptideShakerGUI.getGeneMaps(), null, null, null, null,
                                 peptideShakerGUI.getDisplayPreferences().getnAASurroundingPeptides(), peptideShakerGUI.getIdentificationParameters(),
-                                peptideShakerGUI.getSpectrumCountingPreferences(), progressDialog);
+                                peptideShakerGUI.getSpectrumCountingPreferences(), peptideShakerGUI.getProcessingPreferences(), progressDialog,
+                                peptideShakerGUI.getExceptionHandler());
 
                         boolean processCancelled = progressDialog.isRunCanceled();
                         progressDialog.setRunFinished();
@@ -664,7 +664,8 @@ public class MzIdentMLExportDialog extends javax.swing.JDialog {
                 try {
                     MzIdentMLExport mzIdentMLExport = new MzIdentMLExport(PeptideShaker.getVersion(), peptideShakerGUI.getIdentification(), peptideShakerGUI.getProjectDetails(),
                             peptideShakerGUI.getShotgunProtocol(), peptideShakerGUI.getIdentificationParameters(), peptideShakerGUI.getSpectrumCountingPreferences(), peptideShakerGUI.getIdentificationFeaturesGenerator(),
-                            finalOutputFile, includeSequencesCheckBox.isSelected(), progressDialog, MatchValidationLevel.none, MatchValidationLevel.none, MatchValidationLevel.none);
+                            finalOutputFile, includeSequencesCheckBox.isSelected(), peptideShakerGUI.getProcessingPreferences(), progressDialog, peptideShakerGUI.getExceptionHandler(),
+                            MatchValidationLevel.none, MatchValidationLevel.none, MatchValidationLevel.none);
                     mzIdentMLExport.createMzIdentMLFile(mzIdentML_v1_2);
 
                     // validate the mzidentml file
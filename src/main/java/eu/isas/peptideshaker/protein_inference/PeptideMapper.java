@@ -14,26 +14,25 @@ import com.compomics.util.experiment.identification.matches.SpectrumMatch;
 import com.compomics.util.experiment.identification.protein_inference.PeptideMapperType;
 import com.compomics.util.experiment.identification.protein_inference.proteintree.ProteinTree;
 import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
-import com.compomics.util.experiment.identification.protein_inference.proteintree.ProteinTreeComponentsFactory;
 import com.compomics.util.experiment.identification.spectrum_assumptions.PeptideAssumption;
 import com.compomics.util.experiment.io.identifications.IdfileReader;
-import com.compomics.util.memory.MemoryConsumptionStatus;
 import com.compomics.util.preferences.IdentificationParameters;
 import com.compomics.util.preferences.SequenceMatchingPreferences;
 import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.peptideshaker.PeptideShaker;
 import eu.isas.peptideshaker.fileimport.PsmImporter;
+import eu.isas.peptideshaker.utils.MemoryGovernor;
+import eu.isas.peptideshaker.utils.ProcessingStage;
+import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class can be used to map peptides to proteins.
@@ -42,6 +41,14 @@ import java.util.concurrent.TimeUnit;
  */
 public class PeptideMapper {
 
+    /**
+     * The maximal number of sequences a thread takes at once.
+     */
+    public static final int CHUNK_SIZE = 100;
+    /**
+     * The minimal number of chunks per thread.
+     */
+    public static final int CHUNKS_PER_THREAD = 4;
     /**
      * The identification parameters.
      */
@@ -58,10 +65,24 @@ public class PeptideMapper {
      * The sequence factory.
      */
     private SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+    /**
+     * The memory governor.
+     */
+    private MemoryGovernor memoryGovernor = MemoryGovernor.getInstance();
     /**
      * Exception handler used to catch exceptions.
      */
     private ExceptionHandler exceptionHandler;
+    /**
+     * The persistent cache of the peptide to protein mapping, null if not
+     * available.
+     */
+    private PeptideMappingCache mappingCache = null;
+    /**
+     * Boolean indicating whether the opening of the mapping cache was
+     * attempted.
+     */
+    private boolean mappingCacheOpened = false;
 
     /**
      * Constructor.
@@ -77,7 +98,9 @@ public class PeptideMapper {
     }
 
     /**
-     * Maps the peptides found to the proteins.
+     * Maps the peptides found to the proteins. The peptides are grouped by
+     * sequence so that every sequence is mapped only once, and the sequences
+     * are sorted to map neighboring sequences in a row.
      *
      * @param peptideMap a map of the peptides to map: start of the sequence
      * &gt; list of peptides
@@ -95,59 +118,87 @@ public class PeptideMapper {
      */
     public void mapPeptides(HashMap<String, LinkedList<Peptide>> peptideMap, int nThreads, WaitingHandler waitingHandler) throws IOException, InterruptedException, SQLException,
             ClassNotFoundException {
+        if (peptideMap == null || peptideMap.isEmpty()) {
+            return;
+        }
+        openMappingCache(waitingHandler);
+        ArrayList<ArrayList<Peptide>> sequenceGroups = getSequenceGroups(peptideMap);
+        waitingHandler.resetSecondaryProgressCounter();
+        waitingHandler.setMaxSecondaryProgressCounter(sequenceGroups.size());
+        waitingHandler.appendReport("Mapping peptides to proteins.", true, true);
         if (nThreads == 1) {
-            mapPeptidesSingleThreaded(peptideMap, waitingHandler);
+            mapSequencesSingleThreaded(sequenceGroups, waitingHandler);
         } else {
-            mapPeptidesThreadingPerKey(peptideMap, nThreads, waitingHandler);
+            mapSequencesThreaded(sequenceGroups, nThreads, waitingHandler);
+        }
+        if (mappingCache != null) {
+            try {
+                mappingCache.save();
+            } catch (IOException e) {
+                waitingHandler.appendReport("An error occurred while saving the peptide to protein mapping cache: " + e.getLocalizedMessage(), true, true);
+            }
         }
     }
 
     /**
-     * Maps the peptides found to the proteins.
+     * Opens the persistent cache of the peptide to protein mapping
+     * corresponding to the current FASTA file and sequence matching settings.
+     * If the cache cannot be opened, the peptides are mapped without cache.
+     *
+     * @param waitingHandler a waiting handler
+     */
+    private void openMappingCache(WaitingHandler waitingHandler) {
+        if (!mappingCacheOpened) {
+            mappingCacheOpened = true;
+            File fastaFile = sequenceFactory.getCurrentFastaFile();
+            if (fastaFile != null && fastaFile.exists()) {
+                try {
+                    mappingCache = PeptideMappingCache.open(fastaFile, identificationParameters);
+                    if (mappingCache.size() > 0) {
+                        waitingHandler.appendReport(mappingCache.size() + " peptide to protein mappings loaded from cache.", true, true);
+                    }
+                } catch (IOException e) {
+                    waitingHandler.appendReport("The peptide to protein mapping cache could not be loaded: " + e.getLocalizedMessage(), true, true);
+                    mappingCache = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Groups the peptides of the given map by sequence. The groups are sorted
+     * by key of the map and by sequence. The peptides are removed from the map
+     * as they are grouped.
      *
      * @param peptideMap a map of the peptides to map: start of the sequence
      * &gt; list of peptides
-     * @param sequenceMatchingPreferences The sequence matching preferences
-     * @param idFilter The import filter
-     * @param waitingHandler A waiting handler
      *
-     * @throws IOException exception thrown whenever an error occurred while
-     * reading or writing a file
-     * @throws InterruptedException exception thrown whenever a threading issue
-     * occurred while mapping the peptides to the proteins
-     * @throws SQLException exception thrown whenever an error occurred while
-     * interacting with the database
-     * @throws ClassNotFoundException exception thrown whenever an error
-     * occurred while deserializing an object from the database
+     * @return the peptides grouped by sequence
      */
-    private void mapPeptidesSingleThreaded(HashMap<String, LinkedList<Peptide>> peptideMap, WaitingHandler waitingHandler)
-            throws IOException, InterruptedException, SQLException, ClassNotFoundException {
-
-        if (peptideMap != null && !peptideMap.isEmpty()) {
-            waitingHandler.resetSecondaryProgressCounter();
-            waitingHandler.setMaxSecondaryProgressCounter(peptideMap.size());
-            waitingHandler.appendReport("Mapping peptides to proteins.", true, true);
-            HashSet<String> keys = new HashSet<String>(peptideMap.keySet());
-            for (String key : keys) {
-                LinkedList<Peptide> peptides = peptideMap.get(key);
-                Iterator<Peptide> peptideIterator = peptides.iterator();
-                while (peptideIterator.hasNext()) {
-                    Peptide peptide = peptideIterator.next();
-                    mapPeptide(peptide, !peptideIterator.hasNext());
+    private ArrayList<ArrayList<Peptide>> getSequenceGroups(HashMap<String, LinkedList<Peptide>> peptideMap) {
+        ArrayList<String> keys = new ArrayList<String>(peptideMap.keySet());
+        Collections.sort(keys);
+        ArrayList<ArrayList<Peptide>> sequenceGroups = new ArrayList<ArrayList<Peptide>>(peptideMap.size());
+        for (String key : keys) {
+            TreeMap<String, ArrayList<Peptide>> peptidesForKey = new TreeMap<String, ArrayList<Peptide>>();
+            for (Peptide peptide : peptideMap.remove(key)) {
+                String sequence = peptide.getSequence();
+                ArrayList<Peptide> peptides = peptidesForKey.get(sequence);
+                if (peptides == null) {
+                    peptides = new ArrayList<Peptide>(1);
+                    peptidesForKey.put(sequence, peptides);
                 }
-                peptideMap.remove(key);
+                peptides.add(peptide);
             }
+            sequenceGroups.addAll(peptidesForKey.values());
         }
+        return sequenceGroups;
     }
 
     /**
-     * Maps the peptides found to the proteins.
+     * Maps the peptides grouped by sequence to the proteins.
      *
-     * @param peptideMap a map of the peptides to map: start of the sequence
-     * &gt; list of peptides
-     * @param sequenceMatchingPreferences The sequence matching preferences
-     * @param idFilter the import filter
-     * @param nThreads the number of threads to use
+     * @param sequenceGroups the peptides grouped by sequence
      * @param waitingHandler a waiting handler
      *
      * @throws IOException exception thrown whenever an error occurred while
@@ -159,86 +210,42 @@ public class PeptideMapper {
      * @throws ClassNotFoundException exception thrown whenever an error
      * occurred while deserializing an object from the database
      */
-    private void mapPeptidesThreadingPerKey(HashMap<String, LinkedList<Peptide>> peptideMap, int nThreads,
-            WaitingHandler waitingHandler) throws IOException, InterruptedException, SQLException, ClassNotFoundException {
-
-        if (peptideMap != null && !peptideMap.isEmpty()) {
-            waitingHandler.resetSecondaryProgressCounter();
-            waitingHandler.setMaxSecondaryProgressCounter(peptideMap.size());
-            waitingHandler.appendReport("Mapping peptides to proteins.", true, true);
-            HashSet<String> keys = new HashSet<String>(peptideMap.keySet());
-            ExecutorService pool = Executors.newFixedThreadPool(nThreads);
-            for (String key : keys) {
-                LinkedList<Peptide> peptides = peptideMap.get(key);
-                PeptideListMapperRunnable peptideMapperRunnable = new PeptideListMapperRunnable(peptides);
-                pool.submit(peptideMapperRunnable);
-                if (canceled || waitingHandler.isRunCanceled()) {
-                    pool.shutdownNow();
-                    return;
-                }
-                peptideMap.remove(key);
-                if (canceled || waitingHandler.isRunCanceled()) {
-                    pool.shutdownNow();
-                    return;
-                }
-            }
-            pool.shutdown();
-            if (!pool.awaitTermination(1, TimeUnit.DAYS)) {
-                waitingHandler.appendReport("Mapping peptides timed out. Please contact the developers.", true, true);
+    private void mapSequencesSingleThreaded(ArrayList<ArrayList<Peptide>> sequenceGroups, WaitingHandler waitingHandler)
+            throws IOException, InterruptedException, SQLException, ClassNotFoundException {
+        for (ArrayList<Peptide> peptides : sequenceGroups) {
+            if (canceled || waitingHandler.isRunCanceled()) {
+                return;
             }
+            mapSequence(peptides);
+            waitingHandler.increaseSecondaryProgressCounter();
         }
     }
 
     /**
-     * Maps the peptides found to the proteins.
+     * Maps the peptides grouped by sequence to the proteins. Every thread
+     * takes the next chunk of sequences when done with the previous one so
+     * that the sequences sharing the same start and gathering most peptides
+     * are distributed among the threads.
      *
-     * @param peptideMap a map of the peptides to map: start of the sequence
-     * &gt; list of peptides
-     * @param sequenceMatchingPreferences The sequence matching preferences
-     * @param idFilter the import filter
+     * @param sequenceGroups the peptides grouped by sequence
      * @param nThreads the number of threads to use
      * @param waitingHandler a waiting handler
      *
-     * @throws IOException exception thrown whenever an error occurred while
-     * reading or writing a file
      * @throws InterruptedException exception thrown whenever a threading issue
      * occurred while mapping the peptides to the proteins
-     * @throws SQLException exception thrown whenever an error occurred while
-     * interacting with the database
-     * @throws ClassNotFoundException exception thrown whenever an error
-     * occurred while deserializing an object from the database
      */
-    private void mapPeptidesThreadingPerPeptide(HashMap<String, LinkedList<Peptide>> peptideMap, int nThreads,
-            WaitingHandler waitingHandler) throws IOException, InterruptedException, SQLException, ClassNotFoundException, ExecutionException {
-
-        if (peptideMap != null && !peptideMap.isEmpty()) {
-            waitingHandler.setMaxSecondaryProgressCounter(peptideMap.size());
-            waitingHandler.appendReport("Mapping peptides to proteins.", true, true);
-            HashSet<String> keys = new HashSet<String>(peptideMap.keySet());
-            ExecutorService pool = Executors.newFixedThreadPool(nThreads);
-            for (String key : keys) {
-                LinkedList<Peptide> peptides = peptideMap.get(key);
-                Iterator<Peptide> peptideIterator = peptides.iterator();
-                while (peptideIterator.hasNext()) {
-                    Peptide peptide = peptideIterator.next();
-                    PeptideMapperRunnable peptideMapperRunnable = new PeptideMapperRunnable(peptide, !peptideIterator.hasNext());
-                    pool.submit(peptideMapperRunnable);
-                    if (canceled || waitingHandler.isRunCanceled()) {
-                        pool.shutdownNow();
-                        return;
-                    }
-                }
-                peptideMap.remove(key);
-                if (canceled || waitingHandler.isRunCanceled()) {
-                    pool.shutdownNow();
-                    return;
-                }
-            }
-            pool.shutdown();
-            if (!pool.awaitTermination(1, TimeUnit.DAYS)) {
-                waitingHandler.appendReport("Mapping peptides timed out. Please contact the developers.", true, true);
+    private void mapSequencesThreaded(ArrayList<ArrayList<Peptide>> sequenceGroups, int nThreads, WaitingHandler waitingHandler) throws InterruptedException {
+        int chunkSize = Math.max(1, Math.min(CHUNK_SIZE, sequenceGroups.size() / (CHUNKS_PER_THREAD * nThreads)));
+        AtomicInteger nextIndex = new AtomicInteger(0);
+        ProcessingStage stage = PeptideShaker.getProcessingScheduler(nThreads).newStage("Peptide to protein mapping", waitingHandler);
+        for (int i = 0; i < nThreads; i++) {
+            SequencesMapperRunnable sequencesMapperRunnable = new SequencesMapperRunnable(sequenceGroups, nextIndex, chunkSize);
+            if (canceled || !stage.submit(sequencesMapperRunnable)) {
+                stage.cancel();
+                return;
             }
         }
+        stage.awaitCompletion();
     }
 
     /**
@@ -261,11 +268,11 @@ public class PeptideMapper {
     }
 
     /**
-     * Maps a list of peptides.
+     * Maps peptides sharing the same sequence. The sequence is mapped once
+     * for the first valid peptide and the other valid peptides get a copy of
+     * the parent proteins.
      *
-     * @param peptide the peptide to map
-     * @param increaseProgressBar boolean indicating whether the progress bar
-     * should be increased after mapping the peptide
+     * @param peptides the peptides sharing the same sequence
      *
      * @throws IOException exception thrown whenever an error occurred while
      * reading or writing a file
@@ -276,38 +283,63 @@ public class PeptideMapper {
      * @throws ClassNotFoundException exception thrown whenever an error
      * occurred while deserializing an object from the database
      */
-    private void mapPeptide(Peptide peptide, boolean increaseProgressBar) throws IOException, InterruptedException, SQLException, ClassNotFoundException {
+    private void mapSequence(ArrayList<Peptide> peptides) throws IOException, InterruptedException, SQLException, ClassNotFoundException {
         SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
-        if (identificationParameters.getPeptideAssumptionFilter().validatePeptide(peptide, sequenceMatchingPreferences, identificationParameters.getSearchParameters().getDigestionPreferences())) {
-            try {
-                peptide.getParentProteins(sequenceMatchingPreferences);
-            } catch (java.sql.SQLNonTransientConnectionException derbyException) {
-                derbyException.printStackTrace();
-                throw new IllegalArgumentException("PeptideShaker could not access the FASTA index database. "
-                        + "Please make sure that no other instance of PeptideShaker is running. "
-                        + "If the problem persists, restart your computer." 
-                        + System.getProperty("line.separator"));
+        ArrayList<String> accessions = null;
+        for (Peptide peptide : peptides) {
+            if (identificationParameters.getPeptideAssumptionFilter().validatePeptide(peptide, sequenceMatchingPreferences, identificationParameters.getSearchParameters().getDigestionPreferences())) {
+                if (accessions == null) {
+                    accessions = getParentProteins(peptide, sequenceMatchingPreferences);
+                } else {
+                    peptide.setParentProteins(new ArrayList<String>(accessions));
+                }
             }
         }
-        if (increaseProgressBar) {
-            waitingHandler.increaseSecondaryProgressCounter();
-        }
-        // free memory if needed
-        if (MemoryConsumptionStatus.memoryUsed() > 0.8 && !ProteinTreeComponentsFactory.getInstance().getCache().isEmpty()) {
-            ProteinTreeComponentsFactory.getInstance().getCache().reduceMemoryConsumption(0.5, null);
+        // wait for the caches to be reduced if memory is short
+        if (!memoryGovernor.awaitMemory(waitingHandler)) {
+            // all peptides/protein mappings cannot be kept in memory at the same time, abort
+            canceled = true;
         }
-        if (sequenceMatchingPreferences.getPeptideMapperType() == PeptideMapperType.tree) {
-            ProteinTree proteinTree = (ProteinTree) sequenceFactory.getDefaultPeptideMapper();
-            if (MemoryConsumptionStatus.memoryUsed() > 0.9 && proteinTree.getNodesInCache() > 0) {
-                proteinTree.reduceNodeCacheSize(0.5);
+    }
+
+    /**
+     * Maps a peptide to the proteins using the mapping cache when available.
+     *
+     * @param peptide the peptide to map
+     * @param sequenceMatchingPreferences the sequence matching preferences
+     *
+     * @return the accessions of the parent proteins
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing a file
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while mapping the peptides to the proteins
+     * @throws SQLException exception thrown whenever an error occurred while
+     * interacting with the database
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing an object from the database
+     */
+    private ArrayList<String> getParentProteins(Peptide peptide, SequenceMatchingPreferences sequenceMatchingPreferences) throws IOException, InterruptedException, SQLException, ClassNotFoundException {
+        try {
+            ArrayList<String> accessions = null;
+            if (mappingCache != null) {
+                accessions = mappingCache.getParentProteins(peptide.getSequence());
             }
-        }
-        if (MemoryConsumptionStatus.memoryUsed() > 0.8) {
-            Runtime.getRuntime().gc();
-            if (MemoryConsumptionStatus.memoryUsed() > 0.8) {
-                // all peptides/protein mappings cannot be kept in memory at the same time, abort
-                canceled = true;
+            if (accessions != null) {
+                peptide.setParentProteins(accessions);
+            } else {
+                accessions = peptide.getParentProteins(sequenceMatchingPreferences);
+                if (mappingCache != null && accessions != null) {
+                    mappingCache.addParentProteins(peptide.getSequence(), accessions);
+                }
             }
+            return accessions;
+        } catch (java.sql.SQLNonTransientConnectionException derbyException) {
+            derbyException.printStackTrace();
+            throw new IllegalArgumentException("PeptideShaker could not access the FASTA index database. "
+                    + "Please make sure that no other instance of PeptideShaker is running. "
+                    + "If the problem persists, restart your computer." 
+                    + System.getProperty("line.separator"));
         }
     }
 
@@ -523,84 +555,52 @@ public class PeptideMapper {
     }
 
     /**
-     * Private runnable to map peptides from a list.
-     */
-    private class PeptideListMapperRunnable implements Runnable {
-
-        /**
-         * The peptides to map.
-         */
-        private LinkedList<Peptide> peptideList;
-
-        /**
-         * Constructor.
-         *
-         * @param peptideList the peptides to map
-         */
-        public PeptideListMapperRunnable(LinkedList<Peptide> peptideList) {
-            this.peptideList = peptideList;
-        }
-
-        @Override
-        public void run() {
-
-            try {
-                Iterator<Peptide> peptideIterator = peptideList.iterator();
-                while (peptideIterator.hasNext()) {
-                    Peptide peptide = peptideIterator.next();
-                    if (!canceled && !waitingHandler.isRunCanceled()) {
-                        mapPeptide(peptide, !peptideIterator.hasNext());
-                    }
-                }
-            } catch (Exception e) {
-                if (!canceled && !waitingHandler.isRunCanceled()) {
-                    exceptionHandler.catchException(e);
-                    canceled = true;
-                }
-            }
-        }
-    }
-
-    /**
-     * Private runnable to map a peptide.
+     * Private runnable mapping chunks of sequences until all sequences are
+     * mapped.
      */
-    private class PeptideMapperRunnable implements Runnable {
+    private class SequencesMapperRunnable implements Runnable {
 
         /**
-         * The peptide to map.
+         * The peptides grouped by sequence.
          */
-        private Peptide peptide;
-
+        private final ArrayList<ArrayList<Peptide>> sequenceGroups;
         /**
-         * Boolean indicating whether the progress bar should be increased.
+         * The index of the next sequence to map, shared by all runnables.
          */
-        private boolean increaseProgressBar;
-
+        private final AtomicInteger nextIndex;
         /**
-         * Constructor.
+         * The number of sequences taken at once.
          */
-        public PeptideMapperRunnable() {
-
-        }
+        private final int chunkSize;
 
         /**
          * Constructor.
          *
-         * @param peptide the peptide to map
-         * @param increaseProgressBar boolean indicating whether the progress
-         * bar should be increased after mapping the peptide
+         * @param sequenceGroups the peptides grouped by sequence
+         * @param nextIndex the index of the next sequence to map, shared by
+         * all runnables
+         * @param chunkSize the number of sequences taken at once
          */
-        public PeptideMapperRunnable(Peptide peptide, boolean increaseProgressBar) {
-            this.peptide = peptide;
-            this.increaseProgressBar = increaseProgressBar;
+        public SequencesMapperRunnable(ArrayList<ArrayList<Peptide>> sequenceGroups, AtomicInteger nextIndex, int chunkSize) {
+            this.sequenceGroups = sequenceGroups;
+            this.nextIndex = nextIndex;
+            this.chunkSize = chunkSize;
         }
 
         @Override
         public void run() {
 
             try {
-                if (!canceled && !waitingHandler.isRunCanceled()) {
-                    mapPeptide(peptide, increaseProgressBar);
+                int start;
+                while ((start = nextIndex.getAndAdd(chunkSize)) < sequenceGroups.size()) {
+                    int end = Math.min(start + chunkSize, sequenceGroups.size());
+                    for (int i = start; i < end; i++) {
+                        if (canceled || waitingHandler.isRunCanceled()) {
+                            return;
+                        }
+                        mapSequence(sequenceGroups.get(i));
+                    }
+                    waitingHandler.increaseSecondaryProgressCounter(end - start);
                 }
             } catch (Exception e) {
                 if (!canceled && !waitingHandler.isRunCanceled()) {
@@ -0,0 +1,484 @@
+package eu.isas.peptideshaker.protein_inference;
+
+import com.compomics.util.preferences.IdentificationParameters;
+import eu.isas.peptideshaker.PeptideShaker;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent cache of the mapping of peptide sequences to proteins. The cache
+ * is stored in the user folder in a file named after the checksum of the
+ * FASTA file and of the sequence matching settings, so that projects searched
+ * against the same database with the same settings share the mapping. New
+ * mappings are appended at the end of the file in blocks carrying their length
+ * and checksum, a block truncated by an interrupted write is discarded. Only
+ * the accessions of the proteins are cached, not the indexes of the peptides
+ * on the proteins.
+ *
+ * The file is never compacted. It is loaded entirely in memory when opened
+ * and grows until it reaches MAX_LENGTH. Then no new mappings are appended,
+ * the mappings found in the current run are only kept in memory. Deleting the
+ * file resets the cache, and files of FASTA versions no longer in use can be
+ * deleted from the folder at any time.
+ *
+ * @author Marc Vaudel
+ */
+public class PeptideMappingCache {
+
+    /**
+     * The name of the folder containing the caches in the user folder.
+     */
+    public static final String FOLDER_NAME = "peptide_mapping";
+    /**
+     * The extension of the cache files.
+     */
+    public static final String EXTENSION = ".psmap";
+    /**
+     * The magic number at the beginning of the file.
+     */
+    private static final int MAGIC = 0x50534d50;
+    /**
+     * The version of the format.
+     */
+    private static final int VERSION = 1;
+    /**
+     * The length of the header of the file.
+     */
+    private static final int HEADER_LENGTH = 8;
+    /**
+     * The length of the header of a block: length and checksum of the
+     * records.
+     */
+    private static final int BLOCK_HEADER_LENGTH = 8;
+    /**
+     * The maximal length of a cache file in bytes.
+     */
+    public static final long MAX_LENGTH = 256L * 1024 * 1024;
+    /**
+     * The algorithm used for the checksums.
+     */
+    private static final String DIGEST_ALGORITHM = "MD5";
+    /**
+     * The checksums of the FASTA files already computed indexed by path,
+     * length and last modification.
+     */
+    private static final HashMap<String, String> fastaChecksums = new HashMap<String, String>();
+    /**
+     * The cache file.
+     */
+    private final File cacheFile;
+    /**
+     * The accessions of the proteins mapped to every peptide sequence.
+     */
+    private final ConcurrentHashMap<String, String[]> mapping = new ConcurrentHashMap<String, String[]>();
+    /**
+     * The mappings added since the cache was opened or last saved.
+     */
+    private final ConcurrentHashMap<String, String[]> newMapping = new ConcurrentHashMap<String, String[]>();
+    /**
+     * Indicates whether the file reached its maximal length.
+     */
+    private volatile boolean full = false;
+
+    /**
+     * Constructor.
+     *
+     * @param cacheFile the cache file
+     */
+    private PeptideMappingCache(File cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    /**
+     * Opens the cache corresponding to the given FASTA file and
+     * identification parameters.
+     *
+     * @param fastaFile the FASTA file
+     * @param identificationParameters the identification parameters
+     *
+     * @return the cache
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the FASTA file or the cache
+     */
+    public static PeptideMappingCache open(File fastaFile, IdentificationParameters identificationParameters) throws IOException {
+        return open(getCacheFile(fastaFile, identificationParameters));
+    }
+
+    /**
+     * Opens the given cache file.
+     *
+     * @param cacheFile the cache file
+     *
+     * @return the cache
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the cache
+     */
+    static PeptideMappingCache open(File cacheFile) throws IOException {
+        PeptideMappingCache cache = new PeptideMappingCache(cacheFile);
+        cache.load();
+        return cache;
+    }
+
+    /**
+     * Returns the cache file corresponding to the given FASTA file and
+     * identification parameters.
+     *
+     * @param fastaFile the FASTA file
+     * @param identificationParameters the identification parameters
+     *
+     * @return the cache file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the FASTA file
+     */
+    public static File getCacheFile(File fastaFile, IdentificationParameters identificationParameters) throws IOException {
+        File folder = new File(PeptideShaker.getUserPreferencesFolder(), FOLDER_NAME);
+        String fileName = getFastaChecksum(fastaFile) + "_" + getSettingsChecksum(identificationParameters) + EXTENSION;
+        return new File(folder, fileName);
+    }
+
+    /**
+     * Returns the accessions of the proteins mapped to the given peptide
+     * sequence, null if not in cache.
+     *
+     * @param sequence the peptide sequence
+     *
+     * @return the accessions of the proteins mapped to the given peptide
+     * sequence
+     */
+    public ArrayList<String> getParentProteins(String sequence) {
+        String[] accessions = mapping.get(sequence);
+        if (accessions == null) {
+            return null;
+        }
+        return new ArrayList<String>(Arrays.asList(accessions));
+    }
+
+    /**
+     * Adds the mapping of a peptide sequence to the cache.
+     *
+     * @param sequence the peptide sequence
+     * @param accessions the accessions of the proteins mapped to the peptide
+     */
+    public void addParentProteins(String sequence, ArrayList<String> accessions) {
+        String[] accessionsArray = accessions.toArray(new String[accessions.size()]);
+        if (mapping.putIfAbsent(sequence, accessionsArray) == null && !full) {
+            newMapping.put(sequence, accessionsArray);
+        }
+    }
+
+    /**
+     * Returns the number of peptide sequences in cache.
+     *
+     * @return the number of peptide sequences in cache
+     */
+    public int size() {
+        return mapping.size();
+    }
+
+    /**
+     * Loads the mappings from the cache file. The blocks following a
+     * truncated or corrupted block are ignored, a block is considered
+     * truncated when its length exceeds the end of the file.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private void load() throws IOException {
+        if (!cacheFile.exists()) {
+            return;
+        }
+        long remaining = cacheFile.length() - HEADER_LENGTH;
+        full = cacheFile.length() >= MAX_LENGTH;
+        DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+        try {
+            if (inputStream.readInt() != MAGIC || inputStream.readInt() > VERSION) {
+                throw new IOException("Peptide mapping cache " + cacheFile + " not supported.");
+            }
+            while (true) {
+                int length = inputStream.readInt();
+                int checksum = inputStream.readInt();
+                remaining -= BLOCK_HEADER_LENGTH;
+                if (length < 0 || length > remaining) {
+                    return;
+                }
+                remaining -= length;
+                byte[] block = new byte[length];
+                inputStream.readFully(block);
+                CRC32 crc = new CRC32();
+                crc.update(block);
+                if ((int) crc.getValue() != checksum) {
+                    return;
+                }
+                DataInputStream blockStream = new DataInputStream(new ByteArrayInputStream(block));
+                while (blockStream.available() > 0) {
+                    String sequence = blockStream.readUTF();
+                    String[] accessions = new String[blockStream.readInt()];
+                    for (int i = 0; i < accessions.length; i++) {
+                        accessions[i] = blockStream.readUTF();
+                    }
+                    mapping.put(sequence, accessions);
+                }
+            }
+        } catch (EOFException e) {
+            // End of the file or truncated block
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Appends the mappings added since the cache was opened or last saved to
+     * the cache file. The file is locked while writing so that processes
+     * sharing the cache do not interleave their blocks. Nothing is appended
+     * if the file would exceed MAX_LENGTH.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public synchronized void save() throws IOException {
+
+        if (newMapping.isEmpty()) {
+            return;
+        }
+
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        DataOutputStream outputStream = new DataOutputStream(byteArrayOutputStream);
+        ArrayList<String> savedSequences = new ArrayList<String>(newMapping.keySet());
+        for (String sequence : savedSequences) {
+            String[] accessions = newMapping.get(sequence);
+            outputStream.writeUTF(sequence);
+            outputStream.writeInt(accessions.length);
+            for (String accession : accessions) {
+                outputStream.writeUTF(accession);
+            }
+        }
+        outputStream.close();
+        byte[] records = byteArrayOutputStream.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(records);
+
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_HEADER_LENGTH + records.length);
+        block.putInt(records.length);
+        block.putInt((int) crc.getValue());
+        block.put(records);
+        block.flip();
+
+        File folder = cacheFile.getParentFile();
+        if (!folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Impossible to create folder " + folder + ".");
+        }
+        RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            FileLock lock = channel.lock();
+            try {
+                long position = getValidLength(channel);
+                if (Math.max(position, HEADER_LENGTH) + block.remaining() > MAX_LENGTH) {
+                    full = true;
+                    newMapping.clear();
+                    return;
+                }
+                if (position == 0) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+                    header.putInt(MAGIC);
+                    header.putInt(VERSION);
+                    header.flip();
+                    while (header.hasRemaining()) {
+                        position += channel.write(header, position);
+                    }
+                }
+                channel.truncate(position);
+                while (block.hasRemaining()) {
+                    position += channel.write(block, position);
+                }
+                channel.force(false);
+            } finally {
+                lock.release();
+            }
+        } finally {
+            raf.close();
+        }
+
+        for (String sequence : savedSequences) {
+            newMapping.remove(sequence);
+        }
+    }
+
+    /**
+     * Returns the length of the file up to the end of the last complete
+     * block, 0 if the file has no valid header.
+     *
+     * @param channel the channel of the file
+     *
+     * @return the length of the file up to the end of the last complete block
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private static long getValidLength(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < HEADER_LENGTH) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH);
+        readFully(channel, buffer, 0);
+        if (buffer.getInt() != MAGIC || buffer.getInt() > VERSION) {
+            throw new IOException("Peptide mapping cache not supported.");
+        }
+        long position = HEADER_LENGTH;
+        while (position + BLOCK_HEADER_LENGTH <= size) {
+            buffer.clear();
+            readFully(channel, buffer, position);
+            int length = buffer.getInt();
+            if (length < 0 || position + BLOCK_HEADER_LENGTH + length > size) {
+                break;
+            }
+            position += BLOCK_HEADER_LENGTH + length;
+        }
+        return position;
+    }
+
+    /**
+     * Fills the given buffer from the given position of a channel.
+     *
+     * @param channel the channel
+     * @param buffer the buffer
+     * @param position the position in the channel
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the channel
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Returns the checksum of a FASTA file. Checksums are computed once per
+     * file version.
+     *
+     * @param fastaFile the FASTA file
+     *
+     * @return the checksum of the FASTA file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    public static String getFastaChecksum(File fastaFile) throws IOException {
+        String fileKey = fastaFile.getAbsolutePath() + "_" + fastaFile.length() + "_" + fastaFile.lastModified();
+        synchronized (fastaChecksums) {
+            String checksum = fastaChecksums.get(fileKey);
+            if (checksum == null) {
+                MessageDigest digest = getDigest();
+                FileInputStream inputStream = new FileInputStream(fastaFile);
+                try {
+                    byte[] buffer = new byte[1 << 20];
+                    int read;
+                    while ((read = inputStream.read(buffer)) != -1) {
+                        digest.update(buffer, 0, read);
+                    }
+                } finally {
+                    inputStream.close();
+                }
+                checksum = toHex(digest.digest());
+                fastaChecksums.put(fileKey, checksum);
+            }
+            return checksum;
+        }
+    }
+
+    /**
+     * Returns the checksum of the settings influencing the mapping of peptides
+     * to proteins: the sequence matching preferences and the peptide variants
+     * preferences.
+     *
+     * @param identificationParameters the identification parameters
+     *
+     * @return the checksum of the settings
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * serializing the settings
+     */
+    public static String getSettingsChecksum(IdentificationParameters identificationParameters) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        ObjectOutputStream outputStream = new ObjectOutputStream(byteArrayOutputStream);
+        writeSettings(outputStream, identificationParameters.getSequenceMatchingPreferences());
+        writeSettings(outputStream, identificationParameters.getPeptideVariantsPreferences());
+        outputStream.close();
+        return toHex(getDigest().digest(byteArrayOutputStream.toByteArray()));
+    }
+
+    /**
+     * Writes settings to the given stream.
+     *
+     * @param outputStream the stream
+     * @param settings the settings, can be null
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * serializing the settings
+     */
+    private static void writeSettings(ObjectOutputStream outputStream, Object settings) throws IOException {
+        if (settings == null) {
+            outputStream.writeBoolean(false);
+        } else {
+            outputStream.writeBoolean(true);
+            outputStream.writeObject(settings);
+        }
+    }
+
+    /**
+     * Returns a new digest.
+     *
+     * @return a new digest
+     */
+    private static MessageDigest getDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " not available.", e);
+        }
+    }
+
+    /**
+     * Returns the hexadecimal representation of the given bytes.
+     *
+     * @param bytes the bytes
+     *
+     * @return the hexadecimal representation of the given bytes
+     */
+    private static String toHex(byte[] bytes) {
+        StringBuilder result = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            result.append(String.format("%02x", b & 0xff));
+        }
+        return result.toString();
+    }
+}
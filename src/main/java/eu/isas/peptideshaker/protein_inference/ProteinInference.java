@@ -7,15 +7,20 @@ import com.compomics.util.experiment.identification.matches.PeptideMatch;
 import com.compomics.util.experiment.identification.matches.ProteinMatch;
 import com.compomics.util.experiment.identification.matches_iterators.PeptideMatchesIterator;
 import com.compomics.util.experiment.identification.matches_iterators.ProteinMatchesIterator;
+import com.compomics.util.exceptions.ExceptionHandler;
 import com.compomics.util.experiment.personalization.UrParameter;
 import com.compomics.util.preferences.DigestionPreferences;
 import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.preferences.ProcessingPreferences;
 import com.compomics.util.preferences.ProteinInferencePreferences;
 import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.peptideshaker.PeptideShaker;
 import eu.isas.peptideshaker.parameters.PSParameter;
 import eu.isas.peptideshaker.scoring.maps.ProteinMap;
 import eu.isas.peptideshaker.utils.IdentificationFeaturesGenerator;
 import eu.isas.peptideshaker.utils.Metrics;
+import eu.isas.peptideshaker.utils.ProcessingStage;
+import eu.isas.peptideshaker.utils.ProteinSequenceStore;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
@@ -23,6 +28,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class groups the methods for protein inference.
@@ -34,23 +40,27 @@ public class ProteinInference {
     /**
      * Number of groups deleted because of protein evidence issues.
      */
-    private int evidenceIssue = 0;
+    private final AtomicInteger evidenceIssue = new AtomicInteger(0);
     /**
      * Number of groups deleted because of enzymatic issues.
      */
-    private int enzymaticIssue = 0;
+    private final AtomicInteger enzymaticIssue = new AtomicInteger(0);
     /**
      * Number of groups deleted because of protein characterization issues.
      */
-    private int uncharacterizedIssue = 0;
+    private final AtomicInteger uncharacterizedIssue = new AtomicInteger(0);
     /**
      * Number of groups deleted because explained by a simpler group.
      */
-    private int explainedGroup = 0;
+    private final AtomicInteger explainedGroup = new AtomicInteger(0);
     /**
      * The protein sequence factory.
      */
     private SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+    /**
+     * The protein sequence store.
+     */
+    private ProteinSequenceStore proteinSequenceStore = ProteinSequenceStore.getInstance();
     /**
      * Map of the most complex groups: key | proteins
      */
@@ -63,16 +73,26 @@ public class ProteinInference {
      * The minimal group size to include a protein in the cache
      */
     private int sizeOfProteinsInCache = 10;
+    /**
+     * Indicates whether the protein groups are partitioned in connected
+     * components simplified concurrently. If false, all groups are simplified
+     * by a single task in the order of the protein identification.
+     */
+    private boolean partitionGroups = true;
 
     /**
-     * Reduce artifact groups which can be explained by a simpler group.
+     * Reduce artifact groups which can be explained by a simpler group. The
+     * protein groups are partitioned in connected components which are
+     * simplified concurrently.
      *
      * @param identification the identification class containing all
      * identification matches
      * @param identificationParameters the identification parameters
      * @param identificationFeaturesGenerator the identification feature
      * generator
+     * @param processingPreferences the processing preferences
      * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler handler for exceptions
      *
      * @throws IOException thrown if an IOException occurs
      * @throws InterruptedException thrown if an InterruptedException occurs
@@ -82,10 +102,10 @@ public class ProteinInference {
      * occurs
      */
     public void removeRedundantGroups(Identification identification, IdentificationParameters identificationParameters,
-            IdentificationFeaturesGenerator identificationFeaturesGenerator, WaitingHandler waitingHandler)
+            IdentificationFeaturesGenerator identificationFeaturesGenerator, ProcessingPreferences processingPreferences,
+            WaitingHandler waitingHandler, ExceptionHandler exceptionHandler)
             throws IOException, IllegalArgumentException, SQLException, ClassNotFoundException, InterruptedException {
 
-        ArrayList<String> toRemove = new ArrayList<String>();
         int max = identification.getProteinIdentification().size();
 
         if (waitingHandler != null) {
@@ -94,65 +114,49 @@ public class ProteinInference {
             waitingHandler.setMaxSecondaryProgressCounter(max);
         }
 
-        HashSet<String> toDelete = new HashSet<String>();
-        HashMap<String, String> processedKeys = new HashMap<String, String>();
-
-        ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(null, false, null, false, null, waitingHandler);
-        while (proteinMatchesIterator.hasNext()) {
-            ProteinMatch proteinSharedGroup = proteinMatchesIterator.next();
-            if (proteinSharedGroup.getNProteins() > 1) {
-                String proteinSharedKey = proteinSharedGroup.getKey();
-                if (!processedKeys.containsKey(proteinSharedKey)) {
-                    String uniqueKey = getSubgroup(identification, proteinSharedKey, proteinSharedGroup, processedKeys, toDelete, identificationParameters, identificationFeaturesGenerator);
-                    if (uniqueKey != null) {
-                        mergeProteinGroups(identification, proteinSharedKey, uniqueKey, toDelete);
-                        processedKeys.put(proteinSharedKey, uniqueKey);
-                    } else {
-                        processedKeys.put(proteinSharedKey, proteinSharedKey);
-                    }
-                }
-                if (waitingHandler != null) {
-                    if (waitingHandler.isRunCanceled()) {
-                        return;
-                    }
-                    waitingHandler.increaseSecondaryProgressCounter();
+        // groups sharing proteins are resolved by the same task in the order of the serial processing
+        ArrayList<ArrayList<String>> components = getComponents(identification);
+        ArrayList<GroupSimplificationRunnable> runnables = new ArrayList<GroupSimplificationRunnable>();
+        ProcessingStage stage = PeptideShaker.getProcessingScheduler(processingPreferences).newStage("Protein groups simplification", waitingHandler);
+        for (ArrayList<String> component : components) {
+            if (hasSharedGroups(component)) {
+                GroupSimplificationRunnable runnable = new GroupSimplificationRunnable(identification, component, identificationParameters, identificationFeaturesGenerator, waitingHandler, exceptionHandler);
+                runnables.add(runnable);
+                if (!stage.submit(runnable)) {
+                    return;
                 }
             }
         }
+        if (!stage.awaitCompletion() || waitingHandler != null && waitingHandler.isRunCanceled()) {
+            return;
+        }
 
-        if (enzymaticIssue + evidenceIssue + uncharacterizedIssue + explainedGroup > 0) { // special case to not divide by zero
+        int nToDelete = 0;
+        for (GroupSimplificationRunnable runnable : runnables) {
+            nToDelete += runnable.getnDeleted();
+        }
+
+        if (enzymaticIssue.get() + evidenceIssue.get() + uncharacterizedIssue.get() + explainedGroup.get() > 0) { // special case to not divide by zero
 
             if (waitingHandler != null) {
                 waitingHandler.setWaitingText("Removing Mapping Artifacts. Please Wait...");
-                waitingHandler.appendReport(toDelete.size() + " unlikely protein mappings found:", true, true);
+                waitingHandler.appendReport(nToDelete + " unlikely protein mappings found:", true, true);
 
                 String padding = "    ";
 
-                if (enzymaticIssue > 0) {
-                    waitingHandler.appendReport(padding + "- " + enzymaticIssue + " protein groups supported by non-enzymatic shared peptides.", true, true);
+                if (enzymaticIssue.get() > 0) {
+                    waitingHandler.appendReport(padding + "- " + enzymaticIssue.get() + " protein groups supported by non-enzymatic shared peptides.", true, true);
                 }
-                if (evidenceIssue > 0) {
-                    waitingHandler.appendReport(padding + "- " + evidenceIssue + " protein groups explained by peptides shared to less confident mappings.", true, true);
+                if (evidenceIssue.get() > 0) {
+                    waitingHandler.appendReport(padding + "- " + evidenceIssue.get() + " protein groups explained by peptides shared to less confident mappings.", true, true);
                 }
-                if (uncharacterizedIssue > 0) {
-                    waitingHandler.appendReport(padding + "- " + uncharacterizedIssue + " protein groups supported by peptides shared to uncharacterized proteins.", true, true);
+                if (uncharacterizedIssue.get() > 0) {
+                    waitingHandler.appendReport(padding + "- " + uncharacterizedIssue.get() + " protein groups supported by peptides shared to uncharacterized proteins.", true, true);
                 }
-                if (explainedGroup > 0) {
-                    waitingHandler.appendReport(padding + "- " + explainedGroup + " groups explained by a simpler group.", true, true);
+                if (explainedGroup.get() > 0) {
+                    waitingHandler.appendReport(padding + "- " + explainedGroup.get() + " groups explained by a simpler group.", true, true);
                 }
                 waitingHandler.appendReport(padding + "Note: a group can present combinations of these criteria.", true, true);
-                waitingHandler.setSecondaryProgressCounterIndeterminate(false);
-                waitingHandler.setMaxSecondaryProgressCounter(toRemove.size());
-            }
-
-            for (String proteinKey : toRemove) { // @TODO: nothing is ever added to this map..?
-                identification.removeProteinMatch(proteinKey);
-                if (waitingHandler != null) {
-                    if (waitingHandler.isRunCanceled()) {
-                        return;
-                    }
-                    waitingHandler.increaseSecondaryProgressCounter();
-                }
             }
         }
     }
@@ -190,7 +194,7 @@ public class ProteinInference {
 
         ArrayList<String> sharedAccessions;
         if (sharedProteinMatch == null) {
-            sharedAccessions = proteinGroupCache.get(sharedKey);
+            sharedAccessions = getCachedProteins(sharedKey);
             if (sharedAccessions == null) {
                 sharedProteinMatch = identification.getProteinMatch(sharedKey, false);
             }
@@ -207,7 +211,7 @@ public class ProteinInference {
             HashSet<String> otherGroups = identification.getProteinMap().get(accession);
             for (String uniqueKey : otherGroups) {
                 if (!uniqueKey.equals(sharedKey)) {
-                    ArrayList<String> uniqueAccessions = proteinGroupCache.get(uniqueKey);
+                    ArrayList<String> uniqueAccessions = getCachedProteins(uniqueKey);
                     if (uniqueAccessions == null) {
                         ProteinMatch uniqueProteinMatch = identification.getProteinMatch(uniqueKey, false);
                         if (uniqueProteinMatch != null) {
@@ -310,13 +314,13 @@ public class ProteinInference {
                                 keysToDelete.add(key2);
                                 for (int reason : preferenceReason.values()) {
                                     if (reason == 1) {
-                                        enzymaticIssue++;
+                                        enzymaticIssue.incrementAndGet();
                                     }
                                     if (reason == 2) {
-                                        evidenceIssue++;
+                                        evidenceIssue.incrementAndGet();
                                     }
                                     if (reason == 3) {
-                                        uncharacterizedIssue++;
+                                        uncharacterizedIssue.incrementAndGet();
                                     }
                                 }
                             }
@@ -356,11 +360,12 @@ public class ProteinInference {
         }
 
         keysToDelete.add(sharedGroup);
-        explainedGroup++;
+        explainedGroup.incrementAndGet();
     }
 
     /**
-     * Retains the best scoring of intricate groups.
+     * Retains the best scoring of intricate groups. The protein groups are
+     * partitioned in connected components which are simplified concurrently.
      *
      * @param identification the identification class containing all
      * identification matches
@@ -370,7 +375,9 @@ public class ProteinInference {
      * @param identificationParameters the identification parameters
      * @param identificationFeaturesGenerator the identification feature
      * generator
+     * @param processingPreferences the processing preferences
      * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler handler for exceptions
      *
      * @throws IOException thrown if an IOException occurs
      * @throws InterruptedException thrown if an InterruptedException occurs
@@ -380,7 +387,8 @@ public class ProteinInference {
      * occurs
      */
     public void retainBestScoringGroups(Identification identification, Metrics metrics, ProteinMap proteinMap,
-            IdentificationParameters identificationParameters, IdentificationFeaturesGenerator identificationFeaturesGenerator, WaitingHandler waitingHandler)
+            IdentificationParameters identificationParameters, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            ProcessingPreferences processingPreferences, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler)
             throws IOException, IllegalArgumentException, SQLException, ClassNotFoundException, InterruptedException {
 
         waitingHandler.setWaitingText("Simplifying Redundant Protein Groups. Please Wait...");
@@ -400,69 +408,26 @@ public class ProteinInference {
         ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
         parameters.add(psParameter);
         if (proteinInferencePreferences.getSimplifyGroups() && proteinInferencePreferences.getSimplifyGroupsScore()) {
-            ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(parameters, true, parameters, true, parameters, waitingHandler);
-
-            while (proteinMatchesIterator.hasNext()) {
-
-                ProteinMatch proteinMatch = proteinMatchesIterator.next();
-
-                if (waitingHandler.isRunCanceled()) {
-                    return;
-                }
-
-                String proteinSharedKey = proteinMatch.getKey();
-                ArrayList<String> sharedAccessions = proteinMatch.getTheoreticProteinsAccessions();
-
-                if (sharedAccessions.size() > 1) {
-
-                    HashSet<String> sharedAccessionsAsSet = null;
-                    psParameter = (PSParameter) identification.getProteinMatchParameter(proteinSharedKey, psParameter);
-                    double sharedProteinProbabilityScore = psParameter.getProteinProbabilityScore();
-                    boolean better = false;
 
-                    for (String accession : sharedAccessions) {
-                        HashSet<String> otherGroups = identification.getProteinMap().get(accession);
-                        for (String proteinUniqueKey : otherGroups) {
-                            if (!proteinUniqueKey.equals(proteinSharedKey)) {
-                                ProteinMatch uniqueProteinMatch = identification.getProteinMatch(proteinUniqueKey, false);
-                                ArrayList<String> uniqueAccessions;
-                                if (uniqueProteinMatch != null) {
-                                    uniqueAccessions = uniqueProteinMatch.getTheoreticProteinsAccessions();
-                                } else {
-                                    uniqueAccessions = getProteins(proteinUniqueKey);
-                                }
-                                if (sharedAccessions.size() >= uniqueAccessions.size()) {
-                                    if (sharedAccessionsAsSet == null) {
-                                        sharedAccessionsAsSet = new HashSet<String>(sharedAccessions);
-                                    }
-                                    if (ProteinMatch.contains(sharedAccessionsAsSet, uniqueAccessions)) {
-                                        psParameter = (PSParameter) identification.getProteinMatchParameter(proteinUniqueKey, psParameter);
-                                        double uniqueProteinProbabilityScore = psParameter.getProteinProbabilityScore();
-                                        ProteinMatch proteinUnique = identification.getProteinMatch(proteinUniqueKey);
-                                        ProteinMatch proteinShared = identification.getProteinMatch(proteinSharedKey);
-                                        for (String sharedPeptideKey : proteinShared.getPeptideMatchesKeys()) {
-                                            proteinUnique.addPeptideMatchKey(sharedPeptideKey);
-                                        }
-                                        identification.updateProteinMatch(proteinUnique);
-                                        if (uniqueProteinProbabilityScore <= sharedProteinProbabilityScore) {
-                                            better = true;
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    }
-
-                    if (better) {
-                        toRemove.add(proteinSharedKey);
-                    } else {
-                        waitingHandler.increaseSecondaryProgressCounter();
-                        if (waitingHandler.isRunCanceled()) {
-                            return;
-                        }
+            // groups sharing proteins are resolved by the same task in the order of the serial processing
+            ArrayList<ArrayList<String>> components = getComponents(identification);
+            ArrayList<ScoreSimplificationRunnable> runnables = new ArrayList<ScoreSimplificationRunnable>();
+            ProcessingStage stage = PeptideShaker.getProcessingScheduler(processingPreferences).newStage("Protein groups score simplification", waitingHandler);
+            for (ArrayList<String> component : components) {
+                if (hasSharedGroups(component)) {
+                    ScoreSimplificationRunnable runnable = new ScoreSimplificationRunnable(identification, component, waitingHandler, exceptionHandler);
+                    runnables.add(runnable);
+                    if (!stage.submit(runnable)) {
+                        return;
                     }
                 }
             }
+            if (!stage.awaitCompletion() || waitingHandler.isRunCanceled()) {
+                return;
+            }
+            for (ScoreSimplificationRunnable runnable : runnables) {
+                toRemove.addAll(runnable.getToRemove());
+            }
 
             if (!toRemove.isEmpty()) {
                 for (String proteinKey : toRemove) {
@@ -508,7 +473,7 @@ public class ProteinInference {
                 int nPeptides = -proteinMatch.getPeptideMatchesKeys().size();
                 int nSpectra = 0;
 
-                Protein currentProtein = sequenceFactory.getProtein(proteinMatch.getMainMatch());
+                Protein currentProtein = proteinSequenceStore.getProtein(proteinMatch.getMainMatch());
 
                 if (currentProtein != null) {
                     double mw = sequenceFactory.computeMolecularWeight(proteinMatch.getMainMatch());
@@ -725,6 +690,205 @@ public class ProteinInference {
         waitingHandler.appendReport(report, true, true);
     }
 
+    /**
+     * Merges the peptides of a shared group into the groups it contains and
+     * returns whether one of these groups scores at least as well as the
+     * shared group.
+     *
+     * @param identification the identification class containing all
+     * identification matches
+     * @param proteinMatch the match of the shared group
+     * @param psParameter the PSParameter used to retrieve the scores
+     *
+     * @return a boolean indicating whether the shared group can be removed
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing a file
+     * @throws InterruptedException exception thrown whenever an threading error
+     * occurred
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing an object
+     * @throws SQLException exception thrown whenever an error occurred while
+     * interacting with the back-end database
+     */
+    private boolean simplifyGroupByScore(Identification identification, ProteinMatch proteinMatch, PSParameter psParameter)
+            throws IOException, IllegalArgumentException, SQLException, ClassNotFoundException, InterruptedException {
+
+        String proteinSharedKey = proteinMatch.getKey();
+        ArrayList<String> sharedAccessions = proteinMatch.getTheoreticProteinsAccessions();
+        HashSet<String> sharedAccessionsAsSet = null;
+        psParameter = (PSParameter) identification.getProteinMatchParameter(proteinSharedKey, psParameter);
+        double sharedProteinProbabilityScore = psParameter.getProteinProbabilityScore();
+        boolean better = false;
+
+        for (String accession : sharedAccessions) {
+            HashSet<String> otherGroups = identification.getProteinMap().get(accession);
+            for (String proteinUniqueKey : otherGroups) {
+                if (!proteinUniqueKey.equals(proteinSharedKey)) {
+                    ProteinMatch uniqueProteinMatch = identification.getProteinMatch(proteinUniqueKey, false);
+                    ArrayList<String> uniqueAccessions;
+                    if (uniqueProteinMatch != null) {
+                        uniqueAccessions = uniqueProteinMatch.getTheoreticProteinsAccessions();
+                    } else {
+                        uniqueAccessions = getProteins(proteinUniqueKey);
+                    }
+                    if (sharedAccessions.size() >= uniqueAccessions.size()) {
+                        if (sharedAccessionsAsSet == null) {
+                            sharedAccessionsAsSet = new HashSet<String>(sharedAccessions);
+                        }
+                        if (ProteinMatch.contains(sharedAccessionsAsSet, uniqueAccessions)) {
+                            psParameter = (PSParameter) identification.getProteinMatchParameter(proteinUniqueKey, psParameter);
+                            double uniqueProteinProbabilityScore = psParameter.getProteinProbabilityScore();
+                            ProteinMatch proteinUnique = identification.getProteinMatch(proteinUniqueKey);
+                            ProteinMatch proteinShared = identification.getProteinMatch(proteinSharedKey);
+                            for (String sharedPeptideKey : proteinShared.getPeptideMatchesKeys()) {
+                                proteinUnique.addPeptideMatchKey(sharedPeptideKey);
+                            }
+                            identification.updateProteinMatch(proteinUnique);
+                            if (uniqueProteinProbabilityScore <= sharedProteinProbabilityScore) {
+                                better = true;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        return better;
+    }
+
+    /**
+     * Returns the groups of the protein identification to simplify by the
+     * different tasks. See getConnectedComponents.
+     *
+     * @param identification the identification class containing all
+     * identification matches
+     *
+     * @return the groups to simplify by the different tasks
+     */
+    private ArrayList<ArrayList<String>> getComponents(Identification identification) {
+        ArrayList<String> proteinKeys = new ArrayList<String>(identification.getProteinIdentification());
+        if (!partitionGroups) {
+            ArrayList<ArrayList<String>> components = new ArrayList<ArrayList<String>>(1);
+            components.add(proteinKeys);
+            return components;
+        }
+        return getConnectedComponents(proteinKeys, identification.getProteinMap());
+    }
+
+    /**
+     * Sets whether the protein groups are partitioned in connected components
+     * simplified concurrently. If false, all groups are simplified by a single
+     * task in the order of the protein identification.
+     *
+     * @param partitionGroups a boolean indicating whether the protein groups
+     * are partitioned in connected components
+     */
+    void setPartitionGroups(boolean partitionGroups) {
+        this.partitionGroups = partitionGroups;
+    }
+
+    /**
+     * Partitions protein groups in connected components: groups sharing a
+     * protein, directly or through other groups of the protein map, are in the
+     * same component. Components are returned in the order of their first
+     * group in the given list and the groups of a component keep the order of
+     * the list. Components can hence be processed independently and give the
+     * same results as processing the list in order.
+     *
+     * @param proteinKeys the keys of the protein groups
+     * @param proteinMap the map of the protein groups indexed by protein
+     * accession
+     *
+     * @return the connected components
+     */
+    public static ArrayList<ArrayList<String>> getConnectedComponents(ArrayList<String> proteinKeys, HashMap<String, HashSet<String>> proteinMap) {
+
+        HashMap<String, String> parents = new HashMap<String, String>(proteinMap.size());
+        for (HashSet<String> groupKeys : proteinMap.values()) {
+            for (String groupKey : groupKeys) {
+                joinAccessions(groupKey, parents);
+            }
+        }
+        for (String proteinKey : proteinKeys) {
+            joinAccessions(proteinKey, parents);
+        }
+
+        HashMap<String, ArrayList<String>> componentsMap = new HashMap<String, ArrayList<String>>();
+        ArrayList<ArrayList<String>> components = new ArrayList<ArrayList<String>>();
+        for (String proteinKey : proteinKeys) {
+            String root = getRoot(ProteinMatch.getAccessions(proteinKey)[0], parents);
+            ArrayList<String> component = componentsMap.get(root);
+            if (component == null) {
+                component = new ArrayList<String>(1);
+                componentsMap.put(root, component);
+                components.add(component);
+            }
+            component.add(proteinKey);
+        }
+
+        return components;
+    }
+
+    /**
+     * Joins the accessions of a protein group in the same component.
+     *
+     * @param groupKey the key of the protein group
+     * @param parents the parent of every accession, roots are not in the map
+     */
+    private static void joinAccessions(String groupKey, HashMap<String, String> parents) {
+        String[] accessions = ProteinMatch.getAccessions(groupKey);
+        String root = getRoot(accessions[0], parents);
+        for (int i = 1; i < accessions.length; i++) {
+            String otherRoot = getRoot(accessions[i], parents);
+            if (!otherRoot.equals(root)) {
+                parents.put(otherRoot, root);
+            }
+        }
+    }
+
+    /**
+     * Returns the root of the component of an accession and points the
+     * accessions on the path directly to the root.
+     *
+     * @param accession the accession of interest
+     * @param parents the parent of every accession, roots are not in the map
+     *
+     * @return the root of the component
+     */
+    private static String getRoot(String accession, HashMap<String, String> parents) {
+        String root = accession;
+        String parent = parents.get(root);
+        while (parent != null) {
+            root = parent;
+            parent = parents.get(root);
+        }
+        String current = accession;
+        while (!current.equals(root)) {
+            String next = parents.get(current);
+            parents.put(current, root);
+            current = next;
+        }
+        return root;
+    }
+
+    /**
+     * Indicates whether a component contains groups of more than one protein.
+     *
+     * @param component the keys of the groups of the component
+     *
+     * @return a boolean indicating whether a component contains groups of
+     * more than one protein
+     */
+    private static boolean hasSharedGroups(ArrayList<String> component) {
+        for (String proteinKey : component) {
+            if (ProteinMatch.getNProteins(proteinKey) > 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Parses a protein description retaining only words longer than 3
      * characters.
@@ -935,34 +1099,241 @@ public class ProteinInference {
      * @return the proteins of a group key
      */
     private ArrayList<String> getProteins(String groupKey) {
-        ArrayList<String> result = proteinGroupCache.get(groupKey);
+        ArrayList<String> result = getCachedProteins(groupKey);
         if (result == null) {
             result = new ArrayList<String>(Arrays.asList(ProteinMatch.getAccessions(groupKey)));
-            if (result.size() > sizeOfProteinsInCache) {
-                proteinGroupCache.put(groupKey, result);
-                if (proteinGroupCache.size() > cacheSize) {
-                    int smallestSize = sizeOfProteinsInCache;
-                    String smallestGroup = null;
-                    for (String key : proteinGroupCache.keySet()) {
-                        ArrayList<String> group = proteinGroupCache.get(key);
-                        if (smallestGroup == null || group.size() < smallestSize) {
-                            smallestGroup = key;
-                            smallestSize = group.size();
+            synchronized (proteinGroupCache) {
+                if (result.size() > sizeOfProteinsInCache) {
+                    proteinGroupCache.put(groupKey, result);
+                    if (proteinGroupCache.size() > cacheSize) {
+                        int smallestSize = sizeOfProteinsInCache;
+                        String smallestGroup = null;
+                        for (String key : proteinGroupCache.keySet()) {
+                            ArrayList<String> group = proteinGroupCache.get(key);
+                            if (smallestGroup == null || group.size() < smallestSize) {
+                                smallestGroup = key;
+                                smallestSize = group.size();
+                            }
                         }
+                        proteinGroupCache.remove(smallestGroup);
+                        sizeOfProteinsInCache = smallestSize;
                     }
-                    proteinGroupCache.remove(smallestGroup);
-                    sizeOfProteinsInCache = smallestSize;
                 }
             }
         }
         return result;
     }
 
+    /**
+     * Returns the proteins of a group key if the group is in cache, null
+     * otherwise.
+     *
+     * @param groupKey the group key of interest
+     *
+     * @return the proteins of a group key if in cache
+     */
+    private ArrayList<String> getCachedProteins(String groupKey) {
+        synchronized (proteinGroupCache) {
+            return proteinGroupCache.get(groupKey);
+        }
+    }
+
     /**
      * Clears the cache.
      */
     private void clearCache() {
-        proteinGroupCache.clear();
-        sizeOfProteinsInCache = 10;
+        synchronized (proteinGroupCache) {
+            proteinGroupCache.clear();
+            sizeOfProteinsInCache = 10;
+        }
+    }
+
+    /**
+     * Runnable removing the groups of a connected component which can be
+     * explained by a simpler group.
+     *
+     * @author Marc Vaudel
+     */
+    private class GroupSimplificationRunnable implements Runnable {
+
+        /**
+         * The identification class containing all identification matches.
+         */
+        private Identification identification;
+        /**
+         * The keys of the groups of the component in the processing order.
+         */
+        private ArrayList<String> component;
+        /**
+         * The identification parameters.
+         */
+        private IdentificationParameters identificationParameters;
+        /**
+         * The identification features generator.
+         */
+        private IdentificationFeaturesGenerator identificationFeaturesGenerator;
+        /**
+         * The waiting handler, can be null.
+         */
+        private WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private ExceptionHandler exceptionHandler;
+        /**
+         * The keys of the groups to delete.
+         */
+        private HashSet<String> toDelete = new HashSet<String>();
+
+        /**
+         * Constructor.
+         *
+         * @param identification the identification class containing all
+         * identification matches
+         * @param component the keys of the groups of the component in the
+         * processing order
+         * @param identificationParameters the identification parameters
+         * @param identificationFeaturesGenerator the identification features
+         * generator
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process, can be null
+         * @param exceptionHandler handler for exceptions
+         */
+        public GroupSimplificationRunnable(Identification identification, ArrayList<String> component, IdentificationParameters identificationParameters,
+                IdentificationFeaturesGenerator identificationFeaturesGenerator, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.identification = identification;
+            this.component = component;
+            this.identificationParameters = identificationParameters;
+            this.identificationFeaturesGenerator = identificationFeaturesGenerator;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                HashMap<String, String> processedKeys = new HashMap<String, String>();
+                ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(component, null, false, null, false, null, null);
+                while (proteinMatchesIterator.hasNext()) {
+                    ProteinMatch proteinSharedGroup = proteinMatchesIterator.next();
+                    if (proteinSharedGroup.getNProteins() > 1) {
+                        String proteinSharedKey = proteinSharedGroup.getKey();
+                        if (!processedKeys.containsKey(proteinSharedKey)) {
+                            String uniqueKey = getSubgroup(identification, proteinSharedKey, proteinSharedGroup, processedKeys, toDelete, identificationParameters, identificationFeaturesGenerator);
+                            if (uniqueKey != null) {
+                                mergeProteinGroups(identification, proteinSharedKey, uniqueKey, toDelete);
+                                processedKeys.put(proteinSharedKey, uniqueKey);
+                            } else {
+                                processedKeys.put(proteinSharedKey, proteinSharedKey);
+                            }
+                        }
+                        if (waitingHandler != null) {
+                            if (waitingHandler.isRunCanceled()) {
+                                return;
+                            }
+                            waitingHandler.increaseSecondaryProgressCounter();
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                if (waitingHandler != null) {
+                    waitingHandler.setRunCanceled();
+                }
+            }
+        }
+
+        /**
+         * Returns the number of groups to delete.
+         *
+         * @return the number of groups to delete
+         */
+        public int getnDeleted() {
+            return toDelete.size();
+        }
+    }
+
+    /**
+     * Runnable merging the shared groups of a connected component into the
+     * groups they contain and listing the shared groups to remove.
+     *
+     * @author Marc Vaudel
+     */
+    private class ScoreSimplificationRunnable implements Runnable {
+
+        /**
+         * The identification class containing all identification matches.
+         */
+        private Identification identification;
+        /**
+         * The keys of the groups of the component in the processing order.
+         */
+        private ArrayList<String> component;
+        /**
+         * The waiting handler.
+         */
+        private WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private ExceptionHandler exceptionHandler;
+        /**
+         * The keys of the shared groups to remove in the processing order.
+         */
+        private ArrayList<String> toRemove = new ArrayList<String>();
+        /**
+         * The PSParameter used to retrieve the scores of the groups.
+         */
+        private PSParameter psParameter = new PSParameter();
+
+        /**
+         * Constructor.
+         *
+         * @param identification the identification class containing all
+         * identification matches
+         * @param component the keys of the groups of the component in the
+         * processing order
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public ScoreSimplificationRunnable(Identification identification, ArrayList<String> component, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.identification = identification;
+            this.component = component;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
+                parameters.add(psParameter);
+                ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(component, parameters, false, null, false, null, null);
+                while (proteinMatchesIterator.hasNext() && !waitingHandler.isRunCanceled()) {
+                    ProteinMatch proteinMatch = proteinMatchesIterator.next();
+                    if (proteinMatch.getNProteins() > 1) {
+                        if (simplifyGroupByScore(identification, proteinMatch, psParameter)) {
+                            toRemove.add(proteinMatch.getKey());
+                        } else {
+                            waitingHandler.increaseSecondaryProgressCounter();
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                waitingHandler.setRunCanceled();
+            }
+        }
+
+        /**
+         * Returns the keys of the shared groups to remove in the processing
+         * order.
+         *
+         * @return the keys of the shared groups to remove
+         */
+        public ArrayList<String> getToRemove() {
+            return toRemove;
+        }
     }
 }
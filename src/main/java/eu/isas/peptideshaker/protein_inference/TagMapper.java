@@ -22,16 +22,16 @@ import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
 import com.compomics.util.experiment.massspectrometry.SpectrumFactory;
 import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
 import com.compomics.util.experiment.identification.SpectrumIdentificationAssumption;
-import com.compomics.util.experiment.identification.protein_inference.proteintree.ProteinTreeComponentsFactory;
 import com.compomics.util.experiment.identification.amino_acid_tags.matchers.TagMatcher;
-import com.compomics.util.memory.MemoryConsumptionStatus;
 import com.compomics.util.preferences.IdentificationParameters;
 import com.compomics.util.experiment.identification.identification_parameters.PtmSettings;
 import com.compomics.util.experiment.identification.protein_inference.PeptideMapperType;
 import com.compomics.util.experiment.identification.protein_inference.PeptideProteinMapping;
-import com.compomics.util.experiment.identification.protein_inference.proteintree.ProteinTree;
 import com.compomics.util.preferences.SequenceMatchingPreferences;
 import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.peptideshaker.PeptideShaker;
+import eu.isas.peptideshaker.utils.MemoryGovernor;
+import eu.isas.peptideshaker.utils.ProcessingStage;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.sql.SQLException;
@@ -40,9 +40,6 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 
 /**
@@ -72,6 +69,10 @@ public class TagMapper {
      * The sequence factory.
      */
     private SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+    /**
+     * The memory governor.
+     */
+    private MemoryGovernor memoryGovernor = MemoryGovernor.getInstance();
 
     /**
      * Constructor.
@@ -175,7 +176,7 @@ public class TagMapper {
      */
     private void mapTagsThreadingPerMatch(IdfileReader idfileReader, Identification identification, WaitingHandler waitingHandler, int nThreads) throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException {
 
-        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        ProcessingStage stage = PeptideShaker.getProcessingScheduler(nThreads).newStage("Tag mapping", waitingHandler);
         HashMap<String, LinkedList<SpectrumMatch>> tagMap = idfileReader.getTagsMap();
         if (tagMap != null && !tagMap.isEmpty()) {
             waitingHandler.setMaxSecondaryProgressCounter(tagMap.size());
@@ -188,18 +189,13 @@ public class TagMapper {
                 while (matchIterator.hasNext()) {
                     SpectrumMatch spectrumMatch = matchIterator.next();
                     SpectrumMatchTagMapperRunnable tagMapperRunnable = new SpectrumMatchTagMapperRunnable(identification, spectrumMatch, tagMatcher, key, waitingHandler, !matchIterator.hasNext());
-                    pool.submit(tagMapperRunnable);
-                    if (waitingHandler.isRunCanceled()) {
-                        pool.shutdownNow();
+                    if (!stage.submit(tagMapperRunnable)) {
                         return;
                     }
                 }
             }
         }
-        pool.shutdown();
-        if (!pool.awaitTermination(1, TimeUnit.DAYS)) {
-            waitingHandler.appendReport("Mapping tags timed out. Please contact the developers.", true, true);
-        }
+        stage.awaitCompletion();
     }
 
     /**
@@ -224,7 +220,7 @@ public class TagMapper {
      */
     private void mapTagsThreadingPerKey(IdfileReader idfileReader, Identification identification, WaitingHandler waitingHandler, int nThreads) throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException {
 
-        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        ProcessingStage stage = PeptideShaker.getProcessingScheduler(nThreads).newStage("Tag mapping", waitingHandler);
         HashMap<String, LinkedList<SpectrumMatch>> tagMap = idfileReader.getTagsMap();
         if (tagMap != null && !tagMap.isEmpty()) {
             waitingHandler.setMaxSecondaryProgressCounter(tagMap.size());
@@ -233,17 +229,12 @@ public class TagMapper {
             for (String key : tagMap.keySet()) {
                 LinkedList<SpectrumMatch> spectrumMatches = tagMap.get(key);
                 KeyTagMapperRunnable tagMapperRunnable = new KeyTagMapperRunnable(identification, spectrumMatches, modificationProfile.getFixedModifications(), modificationProfile.getAllNotFixedModifications(), identificationParameters.getSequenceMatchingPreferences(), key, waitingHandler);
-                pool.submit(tagMapperRunnable);
-                if (waitingHandler.isRunCanceled()) {
-                    pool.shutdownNow();
+                if (!stage.submit(tagMapperRunnable)) {
                     return;
                 }
             }
         }
-        pool.shutdown();
-        if (!pool.awaitTermination(1, TimeUnit.DAYS)) {
-            waitingHandler.appendReport("Mapping tags timed out. Please contact the developers.", true, true);
-        }
+        stage.awaitCompletion();
     }
 
     /**
@@ -347,19 +338,11 @@ public class TagMapper {
             tagMatcher.clearCache();
             waitingHandler.increaseSecondaryProgressCounter();
         }
-        // free memory if needed and possible
-        if (MemoryConsumptionStatus.memoryUsed() > 0.9) {
+        // free memory if needed and possible, the protein caches are reduced by the memory governor
+        if (memoryGovernor.getPressureLevel() == MemoryGovernor.PressureLevel.critical) {
             tagMatcher.clearCache();
         }
-        if (sequenceMatchingPreferences.getPeptideMapperType() == PeptideMapperType.tree) {
-            if (MemoryConsumptionStatus.memoryUsed() > 0.8 && !ProteinTreeComponentsFactory.getInstance().getCache().isEmpty()) {
-                ProteinTreeComponentsFactory.getInstance().getCache().reduceMemoryConsumption(0.5, null);
-            }
-            ProteinTree proteinTree = (ProteinTree) sequenceFactory.getDefaultPeptideMapper();
-            if (MemoryConsumptionStatus.memoryUsed() > 0.9 && proteinTree.getNodesInCache() > 0) {
-                proteinTree.reduceNodeCacheSize(0.5);
-            }
-        }
+        memoryGovernor.awaitMemory(waitingHandler);
     }
 
     /**
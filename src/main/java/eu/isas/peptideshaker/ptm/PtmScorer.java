@@ -15,7 +15,6 @@ import com.compomics.util.experiment.identification.matches.PeptideMatch;
 import com.compomics.util.experiment.identification.matches.ProteinMatch;
 import com.compomics.util.experiment.identification.matches.SpectrumMatch;
 import com.compomics.util.experiment.identification.matches_iterators.PeptideMatchesIterator;
-import com.compomics.util.experiment.identification.matches_iterators.ProteinMatchesIterator;
 import com.compomics.util.experiment.identification.matches_iterators.PsmIterator;
 import com.compomics.util.experiment.identification.ptm.PtmScore;
 import com.compomics.util.experiment.identification.ptm.PtmSiteMapping;
@@ -33,6 +32,7 @@ import com.compomics.util.preferences.SequenceMatchingPreferences;
 import com.compomics.util.experiment.identification.spectrum_annotation.SpecificAnnotationSettings;
 import com.compomics.util.preferences.ProcessingPreferences;
 import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.peptideshaker.PeptideShaker;
 import eu.isas.peptideshaker.parameters.PSParameter;
 import eu.isas.peptideshaker.parameters.PSPtmScores;
 import eu.isas.peptideshaker.scoring.MatchValidationLevel;
@@ -42,17 +42,18 @@ import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyMap;
 import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyResults;
 import eu.isas.peptideshaker.utils.IdentificationFeaturesGenerator;
 import eu.isas.peptideshaker.utils.Metrics;
+import eu.isas.peptideshaker.utils.ProcessingStage;
+import eu.isas.peptideshaker.utils.ProteinSequenceStore;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Random;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 import org.apache.commons.math.MathException;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 
@@ -64,6 +65,10 @@ import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
  */
 public class PtmScorer {
 
+    /**
+     * The number of matches processed by a task.
+     */
+    public static final int BATCH_SIZE = 100;
     /**
      * The PTM factory.
      */
@@ -76,10 +81,18 @@ public class PtmScorer {
      * The protein sequence factory.
      */
     private SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+    /**
+     * The protein sequence store.
+     */
+    private ProteinSequenceStore proteinSequenceStore = ProteinSequenceStore.getInstance();
     /**
      * The PSM PTM localization conflict map.
      */
     private PsmPTMMap psmPTMMap;
+    /**
+     * Lock used when changing the key of a peptide match.
+     */
+    private final Object peptideKeyLock = new Object();
 
     /**
      * Constructor.
@@ -430,6 +443,9 @@ public class PtmScorer {
                 }
             }
 
+            // Equally scored sites are picked at random, seeded by the spectrum key so that the pick does not depend on the thread scoring the match
+            Random random = new Random(spectrumMatch.getKey().hashCode());
+
             for (double ptmMass : modificationMasses) {
 
                 int nPtm = peptide.getNVariableModifications(ptmMass);
@@ -493,7 +509,7 @@ public class PtmScorer {
                         dSites.addAll(sites);
                         cpt += sites.size();
                     } else {
-                        Collections.shuffle(sites);
+                        Collections.shuffle(sites, random);
                         for (Integer site : sites) {
                             if (cpt == nPtm) {
                                 break;
@@ -520,7 +536,7 @@ public class PtmScorer {
                         pSites.addAll(sites);
                         cpt += sites.size();
                     } else {
-                        Collections.shuffle(sites);
+                        Collections.shuffle(sites, random);
                         for (Integer site : sites) {
                             if (cpt == nPtm) {
                                 break;
@@ -967,10 +983,12 @@ public class PtmScorer {
 
         String newKey = peptide.getMatchingKey(sequenceMatchingPreferences);
         if (!newKey.equals(originalKey)) {
-            if (identification.getPeptideIdentification().contains(newKey)) {
-                throw new IllegalArgumentException("Attempting to create duplicate peptide key: " + newKey + " from peptide " + originalKey + ".");
+            synchronized (peptideKeyLock) {
+                if (identification.getPeptideIdentification().contains(newKey)) {
+                    throw new IllegalArgumentException("Attempting to create duplicate peptide key: " + newKey + " from peptide " + originalKey + ".");
+                }
+                identification.updatePeptideMatch(originalKey, newKey, peptideMatch);
             }
-            identification.updatePeptideMatch(originalKey, newKey, peptideMatch);
         } else {
             identification.updatePeptideMatch(peptideMatch);
         }
@@ -1285,7 +1303,7 @@ public class PtmScorer {
                 if (peptideScores != null) {
 
                     if (protein == null) {
-                        protein = sequenceFactory.getProtein(proteinMatch.getMainMatch());
+                        protein = proteinSequenceStore.getProtein(proteinMatch.getMainMatch());
                     }
                     ArrayList<Integer> peptideStart = protein.getPeptideStart(peptideSequence,
                             identificationParameters.getSequenceMatchingPreferences());
@@ -1427,127 +1445,113 @@ public class PtmScorer {
         waitingHandler.setSecondaryProgressCounterIndeterminate(false);
         waitingHandler.setMaxSecondaryProgressCounter(identification.getSpectrumIdentificationSize());
 
-        ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+        ProcessingStage stage = PeptideShaker.getProcessingScheduler(processingPreferences).newStage("PSM PTM scoring", waitingHandler);
 
-        HashMap<String, ArrayList<String>> spectrumKeysMap = metrics.getOrderedSpectrumKeys();
         for (String spectrumFileName : identification.getSpectrumFiles()) {
-            ArrayList<String> spectrumKeys = null;
-            if (spectrumKeysMap != null) {
-                spectrumKeys = spectrumKeysMap.get(spectrumFileName);
-            }
+            ArrayList<String> spectrumKeys = metrics.getOrderedSpectrumKeys(spectrumFileName);
             PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, spectrumKeys, null, true, null);
-            for (int i = 1; i <= processingPreferences.getnThreads() && !waitingHandler.isRunCanceled(); i++) {
+            for (int i = 1; i <= processingPreferences.getnThreads(); i++) {
                 PsmPtmScorerRunnable runnable = new PsmPtmScorerRunnable(psmIterator, identification, identificationParameters, waitingHandler, exceptionHandler);
-                pool.submit(runnable);
-            }
-            if (waitingHandler.isRunCanceled()) {
-                pool.shutdownNow();
-                return;
+                if (!stage.submit(runnable)) {
+                    return;
+                }
             }
         }
-        pool.shutdown();
-        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
-            throw new InterruptedException("PSM PTM scoring timed out. Please contact the developers.");
-        }
+        stage.awaitCompletion();
     }
 
     /**
      * Scores the PTMs of all peptide matches contained in an identification
-     * object.
+     * object. The peptides are scored in batches by the processing threads.
      *
      * @param identification identification object containing the identification
      * matches
      * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler handler for exceptions
      * @param identificationParameters the identification parameters
+     * @param processingPreferences the processing preferences
      *
      * @throws Exception exception thrown whenever a problem occurred while
      * deserializing a match
      */
-    public void scorePeptidePtms(Identification identification, WaitingHandler waitingHandler, IdentificationParameters identificationParameters) throws Exception {
+    public void scorePeptidePtms(Identification identification, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler,
+            IdentificationParameters identificationParameters, ProcessingPreferences processingPreferences) throws Exception {
 
         waitingHandler.setWaitingText("Scoring Peptide PTMs. Please Wait...");
 
-        int max = identification.getPeptideIdentification().size();
+        ArrayList<String> peptideKeys = new ArrayList<String>(identification.getPeptideIdentification());
         waitingHandler.setSecondaryProgressCounterIndeterminate(false);
-        waitingHandler.setMaxSecondaryProgressCounter(max);
+        waitingHandler.setMaxSecondaryProgressCounter(peptideKeys.size());
 
-        ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
-        parameters.add(new PSParameter());
-        PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(parameters, false, null, waitingHandler);
-        while (peptideMatchesIterator.hasNext()) {
-            PeptideMatch peptideMatch = peptideMatchesIterator.next();
-            scorePTMs(identification, peptideMatch, identificationParameters, waitingHandler);
-            waitingHandler.increaseSecondaryProgressCounter();
-            if (waitingHandler.isRunCanceled()) {
+        ProcessingStage stage = PeptideShaker.getProcessingScheduler(processingPreferences).newStage("Peptide PTM scoring", waitingHandler);
+        for (int start = 0; start < peptideKeys.size(); start += BATCH_SIZE) {
+            int end = Math.min(start + BATCH_SIZE, peptideKeys.size());
+            if (!stage.submit(new PeptidePtmScorerRunnable(peptideKeys, start, end, identification, identificationParameters, stage, waitingHandler, exceptionHandler))) {
                 return;
             }
         }
+        if (!stage.awaitCompletion()) {
+            return;
+        }
 
         waitingHandler.setSecondaryProgressCounterIndeterminate(true);
     }
 
     /**
      * Scores the PTMs of all protein matches contained in an identification
-     * object.
+     * object. The proteins are scored in batches by the processing threads.
      *
      * @param identification identification object containing the identification
      * matches
      * @param metrics if provided, metrics on proteins will be saved while
      * iterating the matches
      * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler handler for exceptions
      * @param identificationParameters the identification parameters
      * @param identificationFeaturesGenerator identification features generator
      * used to generate metrics which will be stored for later reuse
+     * @param processingPreferences the processing preferences
      *
      * @throws Exception exception thrown whenever a problem occurred while
      * deserializing a match
      */
-    public void scoreProteinPtms(Identification identification, Metrics metrics, WaitingHandler waitingHandler, IdentificationParameters identificationParameters, IdentificationFeaturesGenerator identificationFeaturesGenerator) throws Exception {
+    public void scoreProteinPtms(Identification identification, Metrics metrics, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler,
+            IdentificationParameters identificationParameters, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            ProcessingPreferences processingPreferences) throws Exception {
 
         waitingHandler.setWaitingText("Scoring Protein PTMs. Please Wait...");
 
-        int max = identification.getProteinIdentification().size();
+        ArrayList<String> proteinKeys = new ArrayList<String>(identification.getProteinIdentification());
         waitingHandler.setSecondaryProgressCounterIndeterminate(false);
-        waitingHandler.setMaxSecondaryProgressCounter(max);
-
-        // If needed, while we are iterating proteins, we will take the maximal spectrum counting value and number of validated proteins as well.
-        int nValidatedProteins = 0;
-        int nConfidentProteins = 0;
-        double tempSpectrumCounting, maxSpectrumCounting = 0;
-
-        PSParameter psParameter = new PSParameter();
-        ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
-        parameters.add(psParameter);
-        ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(parameters, true, parameters, true, parameters, waitingHandler);
-
-        while (proteinMatchesIterator.hasNext()) {
-
-            ProteinMatch proteinMatch = proteinMatchesIterator.next();
-            String proteinKey = proteinMatch.getKey();
-
-            scorePTMs(identification, proteinMatch, identificationParameters, false, waitingHandler);
-
-            if (metrics != null) {
-                psParameter = (PSParameter) identification.getProteinMatchParameter(proteinKey, psParameter);
-                if (psParameter.getMatchValidationLevel().isValidated()) {
-                    nValidatedProteins++;
-                    if (psParameter.getMatchValidationLevel() == MatchValidationLevel.confident) {
-                        nConfidentProteins++;
-                    }
-                }
-                if (identificationFeaturesGenerator != null) {
-                    tempSpectrumCounting = identificationFeaturesGenerator.getNormalizedSpectrumCounting(proteinKey);
-                    if (tempSpectrumCounting > maxSpectrumCounting) {
-                        maxSpectrumCounting = tempSpectrumCounting;
-                    }
-                }
-            }
-            waitingHandler.increaseSecondaryProgressCounter();
-            if (waitingHandler.isRunCanceled()) {
+        waitingHandler.setMaxSecondaryProgressCounter(proteinKeys.size());
+
+        ProcessingStage stage = PeptideShaker.getProcessingScheduler(processingPreferences).newStage("Protein PTM scoring", waitingHandler);
+        ArrayList<ProteinPtmScorerRunnable> runnables = new ArrayList<ProteinPtmScorerRunnable>(proteinKeys.size() / BATCH_SIZE + 1);
+        for (int start = 0; start < proteinKeys.size(); start += BATCH_SIZE) {
+            int end = Math.min(start + BATCH_SIZE, proteinKeys.size());
+            ProteinPtmScorerRunnable runnable = new ProteinPtmScorerRunnable(proteinKeys, start, end, identification, identificationParameters,
+                    metrics != null, identificationFeaturesGenerator, stage, waitingHandler, exceptionHandler);
+            runnables.add(runnable);
+            if (!stage.submit(runnable)) {
                 return;
             }
         }
+        if (!stage.awaitCompletion()) {
+            return;
+        }
+
+        // If needed, the maximal spectrum counting value and number of validated proteins gathered by the batches are saved in the metrics.
         if (metrics != null) {
+            int nValidatedProteins = 0;
+            int nConfidentProteins = 0;
+            double maxSpectrumCounting = 0;
+            for (ProteinPtmScorerRunnable runnable : runnables) {
+                nValidatedProteins += runnable.nValidatedProteins;
+                nConfidentProteins += runnable.nConfidentProteins;
+                if (runnable.maxSpectrumCounting > maxSpectrumCounting) {
+                    maxSpectrumCounting = runnable.maxSpectrumCounting;
+                }
+            }
             metrics.setMaxSpectrumCounting(maxSpectrumCounting);
             metrics.setnValidatedProteins(nValidatedProteins);
             metrics.setnConfidentProteins(nConfidentProteins);
@@ -1558,332 +1562,370 @@ public class PtmScorer {
 
     /**
      * Infers the PTM localization and its confidence for the best match of
-     * every spectrum.
+     * every spectrum. The PSMs are first mapped in batches by the processing
+     * threads, the sites of the PSMs with ambiguously localized PTMs are then
+     * inferred in batches based on the peptides with confidently localized
+     * PTMs as mapped in the first step.
      *
      * @param identification identification object containing the identification
      * matches
-     * @param waitingHandler waiting handler displaying progress to the user
      * @param identificationParameters the identification parameters
+     * @param waitingHandler waiting handler displaying progress to the user
+     * @param exceptionHandler handler for exceptions
+     * @param processingPreferences the processing preferences
      *
-     * @throws SQLException exception thrown whenever a problem occurred while
-     * interacting with the database
-     * @throws IOException exception thrown whenever a problem occurred while
-     * writing/reading the database or the FASTA file
-     * @throws ClassNotFoundException exception thrown whenever a problem
-     * occurred while deserializing an object from the database
-     * @throws IllegalArgumentException exception thrown whenever an error
-     * occurred while reading a protein sequence
-     * @throws InterruptedException exception thrown whenever an error occurred
-     * while reading a protein sequence
+     * @throws InterruptedException exception thrown whenever a threading error
+     * occurred while waiting for the batches
      */
-    public void peptideInference(Identification identification, IdentificationParameters identificationParameters, WaitingHandler waitingHandler)
-            throws SQLException, IOException, ClassNotFoundException, IllegalArgumentException, InterruptedException {
+    public void peptideInference(Identification identification, IdentificationParameters identificationParameters, WaitingHandler waitingHandler,
+            ExceptionHandler exceptionHandler, ProcessingPreferences processingPreferences) throws InterruptedException {
 
         waitingHandler.setWaitingText("Peptide Inference. Please Wait...");
 
         waitingHandler.setSecondaryProgressCounterIndeterminate(false);
         waitingHandler.setMaxSecondaryProgressCounter(identification.getSpectrumIdentificationSize());
 
-        SequenceMatchingPreferences ptmSequenceMatchingPreferences = identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences(),
-                sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
-        SearchParameters searchParameters = identificationParameters.getSearchParameters();
-        PtmSettings ptmSettings = searchParameters.getPtmSettings();
+        ProcessingStage stage = PeptideShaker.getProcessingScheduler(processingPreferences).newStage("Peptide inference mapping", waitingHandler);
+        ArrayList<PeptideInferenceMappingRunnable> mappingRunnables = new ArrayList<PeptideInferenceMappingRunnable>();
+        for (String spectrumFileName : identification.getSpectrumFiles()) {
+            ArrayList<String> spectrumKeys = new ArrayList<String>(identification.getSpectrumIdentification(spectrumFileName));
+            for (int start = 0; start < spectrumKeys.size(); start += BATCH_SIZE) {
+                int end = Math.min(start + BATCH_SIZE, spectrumKeys.size());
+                PeptideInferenceMappingRunnable runnable = new PeptideInferenceMappingRunnable(spectrumKeys, start, end, identification, identificationParameters, stage, waitingHandler, exceptionHandler);
+                mappingRunnables.add(runnable);
+                if (!stage.submit(runnable)) {
+                    return;
+                }
+            }
+        }
+        if (!stage.awaitCompletion()) {
+            return;
+        }
 
-        // PSMs with confidently localized PTMs in a map: PTM mass -> peptide sequence -> spectrum keys
+        // Gather the batches in the order of submission: PTM mass -> peptide sequence -> matching keys of the confidently localized PSMs
         HashMap<Double, HashMap<String, ArrayList<String>>> confidentPeptideInference = new HashMap<Double, HashMap<String, ArrayList<String>>>();
-        // PSMs with ambiguously localized PTMs in a map: File -> PTM mass -> spectrum keys
-        HashMap<String, HashMap<Double, ArrayList<String>>> notConfidentPeptideInference = new HashMap<String, HashMap<Double, ArrayList<String>>>();
+        ArrayList<String> notConfidentKeys = new ArrayList<String>();
+        ArrayList<double[]> notConfidentMasses = new ArrayList<double[]>();
+        for (PeptideInferenceMappingRunnable runnable : mappingRunnables) {
+            for (Double ptmMass : runnable.confidentPeptideInference.keySet()) {
+                HashMap<String, ArrayList<String>> batchModMap = runnable.confidentPeptideInference.get(ptmMass);
+                HashMap<String, ArrayList<String>> modMap = confidentPeptideInference.get(ptmMass);
+                if (modMap == null) {
+                    confidentPeptideInference.put(ptmMass, batchModMap);
+                } else {
+                    for (String sequence : batchModMap.keySet()) {
+                        ArrayList<String> batchKeys = batchModMap.get(sequence);
+                        ArrayList<String> matchingKeys = modMap.get(sequence);
+                        if (matchingKeys == null) {
+                            modMap.put(sequence, batchKeys);
+                        } else {
+                            matchingKeys.addAll(batchKeys);
+                        }
+                    }
+                }
+            }
+            notConfidentKeys.addAll(runnable.notConfidentKeys);
+            notConfidentMasses.addAll(runnable.notConfidentMasses);
+        }
+        mappingRunnables = null;
 
-        for (String spectrumFileName : identification.getSpectrumFiles()) {
+        // try to infer the modification site based on any related peptide
+        stage = PeptideShaker.getProcessingScheduler(processingPreferences).newStage("Peptide inference", waitingHandler);
+        for (int start = 0; start < notConfidentKeys.size(); start += BATCH_SIZE) {
+            int end = Math.min(start + BATCH_SIZE, notConfidentKeys.size());
+            if (!stage.submit(new PeptideInferenceRunnable(notConfidentKeys, notConfidentMasses, start, end, confidentPeptideInference,
+                    identification, identificationParameters, stage, waitingHandler, exceptionHandler))) {
+                return;
+            }
+        }
+        stage.awaitCompletion();
+    }
 
-            PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, true, waitingHandler);
+    /**
+     * Maps the variable PTMs of the best peptide of a PSM for the peptide
+     * inference. If the PSM carries confidently localized PTMs, the matching
+     * key of its peptide is added to the given map for every confidently
+     * localized PTM. The masses of the PTMs which are not confidently
+     * localized are returned, null if none.
+     *
+     * @param spectrumMatch the spectrum match
+     * @param identificationParameters the identification parameters
+     * @param confidentPeptideInference the map of the confidently localized
+     * PTMs: PTM mass &gt; peptide sequence &gt; matching keys
+     *
+     * @return the masses of the PTMs which are not confidently localized,
+     * sorted in ascending order, null if none
+     */
+    private double[] mapPeptideInference(SpectrumMatch spectrumMatch, IdentificationParameters identificationParameters,
+            HashMap<Double, HashMap<String, ArrayList<String>>> confidentPeptideInference) {
 
-            while (psmIterator.hasNext()) {
+        SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
+        PtmSettings ptmSettings = identificationParameters.getSearchParameters().getPtmSettings();
 
-                SpectrumMatch spectrumMatch = psmIterator.next();
-                String spectrumKey = spectrumMatch.getKey();
-                if (spectrumMatch.getBestPeptideAssumption() != null) {
-                    boolean variableAA = false;
-                    Peptide peptide = spectrumMatch.getBestPeptideAssumption().getPeptide();
-                    if (peptide.isModified()) {
-                        for (ModificationMatch modificationMatch : peptide.getModificationMatches()) {
-                            if (modificationMatch.isVariable()) {
-                                String modName = modificationMatch.getTheoreticPtm();
-                                PTM ptm = ptmFactory.getPTM(modName);
-                                if (ptm.getType() == PTM.MODAA) {
-                                    variableAA = true;
-                                    break;
-                                } else {
-                                    double ptmMass = ptm.getMass();
-                                    for (String otherPtmName : ptmSettings.getAllNotFixedModifications()) {
-                                        if (!otherPtmName.equals(modName)) {
-                                            PTM ptm2 = ptmFactory.getPTM(otherPtmName);
-                                            if (ptm2.getMass() == ptmMass && ptm.getType() != ptm2.getType()) {
-                                                variableAA = true;
-                                                break;
-                                            }
-                                        }
-                                    }
-                                }
+        Peptide peptide = spectrumMatch.getBestPeptideAssumption().getPeptide();
+        if (!peptide.isModified()) {
+            return null;
+        }
+        boolean variableAA = false;
+        for (ModificationMatch modificationMatch : peptide.getModificationMatches()) {
+            if (modificationMatch.isVariable()) {
+                String modName = modificationMatch.getTheoreticPtm();
+                PTM ptm = ptmFactory.getPTM(modName);
+                if (ptm.getType() == PTM.MODAA) {
+                    variableAA = true;
+                    break;
+                } else {
+                    double ptmMass = ptm.getMass();
+                    for (String otherPtmName : ptmSettings.getAllNotFixedModifications()) {
+                        if (!otherPtmName.equals(modName)) {
+                            PTM ptm2 = ptmFactory.getPTM(otherPtmName);
+                            if (ptm2.getMass() == ptmMass && ptm.getType() != ptm2.getType()) {
+                                variableAA = true;
+                                break;
                             }
                         }
                     }
-                    if (variableAA) {
-                        boolean confident = true;
-                        for (ModificationMatch modMatch : peptide.getModificationMatches()) {
-                            if (modMatch.isVariable()) {
-                                String modName = modMatch.getTheoreticPtm();
-                                PTM ptm = ptmFactory.getPTM(modName);
-                                double ptmMass = ptm.getMass();
-                                boolean maybeNotTerminal = ptm.getType() == PTM.MODAA;
-                                if (!maybeNotTerminal) {
-                                    for (String otherPtmName : ptmSettings.getAllNotFixedModifications()) {
-                                        if (!otherPtmName.equals(modName)) {
-                                            PTM ptm2 = ptmFactory.getPTM(otherPtmName);
-                                            if (ptm2.getMass() == ptmMass && ptm.getType() != ptm2.getType()) {
-                                                maybeNotTerminal = true;
-                                                break;
-                                            }
-                                        }
-                                    }
-                                }
-                                if (maybeNotTerminal) {
-                                    if (!modMatch.isConfident()) {
-                                        HashMap<Double, ArrayList<String>> fileMap = notConfidentPeptideInference.get(spectrumFileName);
-                                        if (fileMap == null) {
-                                            fileMap = new HashMap<Double, ArrayList<String>>(2);
-                                            notConfidentPeptideInference.put(spectrumFileName, fileMap);
-                                        }
-                                        ArrayList<String> spectra = fileMap.get(ptmMass);
-                                        if (spectra == null) {
-                                            spectra = new ArrayList<String>(2);
-                                            fileMap.put(ptmMass, spectra);
-                                        }
-                                        spectra.add(spectrumKey);
-                                        confident = false;
-                                    } else {
-                                        HashMap<String, ArrayList<String>> modMap = confidentPeptideInference.get(ptmMass);
-                                        if (modMap == null) {
-                                            modMap = new HashMap<String, ArrayList<String>>(2);
-                                            confidentPeptideInference.put(ptmMass, modMap);
-                                        }
-                                        String sequence = spectrumMatch.getBestPeptideAssumption().getPeptide().getSequence();
-                                        ArrayList<String> spectra = modMap.get(sequence);
-                                        if (spectra == null) {
-                                            spectra = new ArrayList<String>(2);
-                                            modMap.put(sequence, spectra);
-                                        }
-                                        spectra.add(spectrumKey);
-                                    }
-                                }
+                }
+            }
+        }
+        if (!variableAA) {
+            return null;
+        }
+
+        String matchingKey = peptide.getMatchingKey(sequenceMatchingPreferences);
+        double[] notConfidentMasses = new double[peptide.getNModifications()];
+        int nNotConfident = 0;
+
+        for (ModificationMatch modMatch : peptide.getModificationMatches()) {
+            if (modMatch.isVariable()) {
+                String modName = modMatch.getTheoreticPtm();
+                PTM ptm = ptmFactory.getPTM(modName);
+                double ptmMass = ptm.getMass();
+                boolean maybeNotTerminal = ptm.getType() == PTM.MODAA;
+                if (!maybeNotTerminal) {
+                    for (String otherPtmName : ptmSettings.getAllNotFixedModifications()) {
+                        if (!otherPtmName.equals(modName)) {
+                            PTM ptm2 = ptmFactory.getPTM(otherPtmName);
+                            if (ptm2.getMass() == ptmMass && ptm.getType() != ptm2.getType()) {
+                                maybeNotTerminal = true;
+                                break;
                             }
                         }
-                        identification.updateSpectrumMatch(spectrumMatch);
-                        if (confident) {
-                            waitingHandler.increaseSecondaryProgressCounter();
-                        }
-                        if (waitingHandler.isRunCanceled()) {
-                            return;
-                        }
+                    }
+                }
+                if (maybeNotTerminal) {
+                    if (!modMatch.isConfident()) {
+                        notConfidentMasses[nNotConfident++] = ptmMass;
                     } else {
-                        waitingHandler.increaseSecondaryProgressCounter();
-                        if (waitingHandler.isRunCanceled()) {
-                            return;
+                        HashMap<String, ArrayList<String>> modMap = confidentPeptideInference.get(ptmMass);
+                        if (modMap == null) {
+                            modMap = new HashMap<String, ArrayList<String>>(2);
+                            confidentPeptideInference.put(ptmMass, modMap);
+                        }
+                        String sequence = peptide.getSequence();
+                        ArrayList<String> matchingKeys = modMap.get(sequence);
+                        if (matchingKeys == null) {
+                            matchingKeys = new ArrayList<String>(2);
+                            modMap.put(sequence, matchingKeys);
                         }
+                        matchingKeys.add(matchingKey);
                     }
                 }
             }
         }
 
-        // try to infer the modification site based on any related peptide
-        for (String spectrumFile : notConfidentPeptideInference.keySet()) {
-
-            HashSet<String> progress = new HashSet<String>();
-            HashMap<Double, ArrayList<String>> peptidesOfFile = notConfidentPeptideInference.get(spectrumFile);
+        if (nNotConfident == 0) {
+            return null;
+        }
+        notConfidentMasses = Arrays.copyOf(notConfidentMasses, nNotConfident);
+        Arrays.sort(notConfidentMasses);
+        return notConfidentMasses;
+    }
 
-            for (Double ptmMass : peptidesOfFile.keySet()) {
+    /**
+     * Tries to infer the sites of the PTMs of the given mass which are not
+     * confidently localized in the best peptide of a PSM based on the related
+     * peptides where this PTM is confidently localized.
+     *
+     * @param spectrumMatch the spectrum match
+     * @param ptmMass the mass of the PTM
+     * @param confidentPeptideInference the map of the confidently localized
+     * PTMs: PTM mass &gt; peptide sequence &gt; matching keys
+     * @param identificationParameters the identification parameters
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading a protein sequence
+     * @throws IllegalArgumentException exception thrown whenever an error
+     * occurred while reading a protein sequence
+     * @throws InterruptedException exception thrown whenever an error occurred
+     * while reading a protein sequence
+     * @throws SQLException exception thrown whenever a problem occurred while
+     * interacting with the database
+     * @throws ClassNotFoundException exception thrown whenever a problem
+     * occurred while deserializing an object from the database
+     */
+    private void inferPeptideSites(SpectrumMatch spectrumMatch, double ptmMass, HashMap<Double, HashMap<String, ArrayList<String>>> confidentPeptideInference,
+            IdentificationParameters identificationParameters) throws IOException, IllegalArgumentException, InterruptedException, SQLException, ClassNotFoundException {
 
-                ArrayList<String> spectrumKeys = peptidesOfFile.get(ptmMass);
-                PsmIterator psmIterator = identification.getPsmIterator(spectrumKeys, true, waitingHandler);
+        HashMap<String, ArrayList<String>> ptmConfidentPeptides = confidentPeptideInference.get(ptmMass);
 
-                while (psmIterator.hasNext()) {
+        if (ptmConfidentPeptides == null) {
+            return;
+        }
 
-                    SpectrumMatch spectrumMatch = psmIterator.next();
-                    String spectrumKey = spectrumMatch.getKey();
-
-                    Peptide peptide = spectrumMatch.getBestPeptideAssumption().getPeptide();
-                    String sequence = peptide.getSequence();
-                    String notConfidentKey = peptide.getMatchingKey(sequenceMatchingPreferences);
-                    int nMod = Peptide.getModificationCount(notConfidentKey, ptmMass);
-                    ArrayList<Integer> tempLocalizations, oldLocalizations = Peptide.getNModificationLocalized(notConfidentKey, ptmMass);
-                    ArrayList<Integer> newLocalizationCandidates = new ArrayList<Integer>(oldLocalizations.size());
-
-                    HashMap<String, ArrayList<String>> ptmConfidentPeptides = confidentPeptideInference.get(ptmMass);
-
-                    if (ptmConfidentPeptides != null) {
-
-                        // See if we can explain this peptide by another already identified peptide with the same number of modifications (the two peptides will be merged)
-                        ArrayList<String> keys = ptmConfidentPeptides.get(sequence);
-
-                        if (keys != null) {
-                            for (String tempKey : keys) {
-                                SpectrumMatch secondaryMatch = identification.getSpectrumMatch(tempKey);
-                                String secondaryKey = secondaryMatch.getBestPeptideAssumption().getPeptide().getMatchingKey(sequenceMatchingPreferences);
-                                if (Peptide.getModificationCount(secondaryKey, ptmMass) == nMod) {
-                                    tempLocalizations = Peptide.getNModificationLocalized(secondaryKey, ptmMass);
-                                    for (int localization : tempLocalizations) {
-                                        if (!oldLocalizations.contains(localization) && !newLocalizationCandidates.contains(localization)) {
-                                            newLocalizationCandidates.add(localization);
-                                        }
-                                    }
-                                }
-                            }
-                            if (oldLocalizations.size() + newLocalizationCandidates.size() < nMod) {
-                                // we cannot merge this peptide, see whether we can explain the remaining modifications using peptides with the same sequence but other modification profile
-                                for (String tempKey : keys) {
-                                    SpectrumMatch secondaryMatch = identification.getSpectrumMatch(tempKey);
-                                    String secondaryKey = secondaryMatch.getBestPeptideAssumption().getPeptide().getMatchingKey(sequenceMatchingPreferences);
-                                    tempLocalizations = Peptide.getNModificationLocalized(secondaryKey, ptmMass);
-                                    for (int localization : tempLocalizations) {
-                                        if (!oldLocalizations.contains(localization) && !newLocalizationCandidates.contains(localization)) {
-                                            newLocalizationCandidates.add(localization);
-                                        }
-                                    }
-                                }
-                            }
+        SequenceMatchingPreferences ptmSequenceMatchingPreferences = identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences(),
+                sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
+        SearchParameters searchParameters = identificationParameters.getSearchParameters();
+        String spectrumKey = spectrumMatch.getKey();
+
+        Peptide peptide = spectrumMatch.getBestPeptideAssumption().getPeptide();
+        String sequence = peptide.getSequence();
+        String notConfidentKey = peptide.getMatchingKey(sequenceMatchingPreferences);
+        int nMod = Peptide.getModificationCount(notConfidentKey, ptmMass);
+        ArrayList<Integer> tempLocalizations, oldLocalizations = Peptide.getNModificationLocalized(notConfidentKey, ptmMass);
+        ArrayList<Integer> newLocalizationCandidates = new ArrayList<Integer>(oldLocalizations.size());
+
+        // See if we can explain this peptide by another already identified peptide with the same number of modifications (the two peptides will be merged)
+        ArrayList<String> keys = ptmConfidentPeptides.get(sequence);
+
+        if (keys != null) {
+            for (String secondaryKey : keys) {
+                if (Peptide.getModificationCount(secondaryKey, ptmMass) == nMod) {
+                    tempLocalizations = Peptide.getNModificationLocalized(secondaryKey, ptmMass);
+                    for (int localization : tempLocalizations) {
+                        if (!oldLocalizations.contains(localization) && !newLocalizationCandidates.contains(localization)) {
+                            newLocalizationCandidates.add(localization);
                         }
-                        if (oldLocalizations.size() + newLocalizationCandidates.size() < nMod) {
-                            // There are still unexplained sites, let's see if we find a related peptide which can help.
-                            HashMap<String, ArrayList<String>> confidentAtMass = confidentPeptideInference.get(ptmMass);
-                            for (String otherSequence : confidentAtMass.keySet()) {
-                                if (!sequence.equals(otherSequence) && sequence.contains(otherSequence)) {
-                                    for (String tempKey : confidentAtMass.get(otherSequence)) {
-                                        SpectrumMatch secondaryMatch = identification.getSpectrumMatch(tempKey);
-                                        String secondaryKey = secondaryMatch.getBestPeptideAssumption().getPeptide().getMatchingKey(sequenceMatchingPreferences);
-                                        tempLocalizations = Peptide.getNModificationLocalized(secondaryKey, ptmMass);
-                                        int tempIndex, ref = 0;
-                                        String tempSequence = sequence;
-                                        while ((tempIndex = tempSequence.indexOf(otherSequence)) >= 0) {
-                                            ref += tempIndex;
-                                            for (int localization : tempLocalizations) {
-                                                int shiftedLocalization = ref + localization;
-                                                if (!oldLocalizations.contains(shiftedLocalization) && !newLocalizationCandidates.contains(shiftedLocalization)) {
-                                                    boolean siteOccupied = false;
-                                                    for (ModificationMatch modificationMatch : peptide.getModificationMatches()) {
-                                                        PTM ptm = ptmFactory.getPTM(modificationMatch.getTheoreticPtm());
-                                                        if (ptm.getMass() != ptmMass && modificationMatch.getModificationSite() == shiftedLocalization) { // @TODO: compare against the accuracy
-                                                            siteOccupied = true;
-                                                        }
-                                                    }
-                                                    boolean candidatePtm = false;
-                                                    if (!siteOccupied) {
-                                                        for (String ptmName : searchParameters.getPtmSettings().getAllNotFixedModifications()) {
-                                                            PTM ptm = ptmFactory.getPTM(ptmName);
-                                                            if (ptm.getMass() == ptmMass && peptide.getPotentialModificationSites(ptm, sequenceMatchingPreferences, ptmSequenceMatchingPreferences).contains(shiftedLocalization)) { // @TODO: compare against the accuracy
-                                                                candidatePtm = true;
-                                                                break;
-                                                            }
-                                                        }
-                                                    }
-                                                    if (candidatePtm && !siteOccupied) {
-                                                        newLocalizationCandidates.add(shiftedLocalization);
-                                                    }
-                                                }
-                                            }
-                                            tempSequence = tempSequence.substring(tempIndex + 1);
-                                            ref++;
+                    }
+                }
+            }
+            if (oldLocalizations.size() + newLocalizationCandidates.size() < nMod) {
+                // we cannot merge this peptide, see whether we can explain the remaining modifications using peptides with the same sequence but other modification profile
+                for (String secondaryKey : keys) {
+                    tempLocalizations = Peptide.getNModificationLocalized(secondaryKey, ptmMass);
+                    for (int localization : tempLocalizations) {
+                        if (!oldLocalizations.contains(localization) && !newLocalizationCandidates.contains(localization)) {
+                            newLocalizationCandidates.add(localization);
+                        }
+                    }
+                }
+            }
+        }
+        if (oldLocalizations.size() + newLocalizationCandidates.size() < nMod) {
+            // There are still unexplained sites, let's see if we find a related peptide which can help.
+            for (String otherSequence : ptmConfidentPeptides.keySet()) {
+                if (!sequence.equals(otherSequence) && sequence.contains(otherSequence)) {
+                    for (String secondaryKey : ptmConfidentPeptides.get(otherSequence)) {
+                        tempLocalizations = Peptide.getNModificationLocalized(secondaryKey, ptmMass);
+                        int tempIndex, ref = 0;
+                        String tempSequence = sequence;
+                        while ((tempIndex = tempSequence.indexOf(otherSequence)) >= 0) {
+                            ref += tempIndex;
+                            for (int localization : tempLocalizations) {
+                                int shiftedLocalization = ref + localization;
+                                if (!oldLocalizations.contains(shiftedLocalization) && !newLocalizationCandidates.contains(shiftedLocalization)) {
+                                    boolean siteOccupied = false;
+                                    for (ModificationMatch modificationMatch : peptide.getModificationMatches()) {
+                                        PTM ptm = ptmFactory.getPTM(modificationMatch.getTheoreticPtm());
+                                        if (ptm.getMass() != ptmMass && modificationMatch.getModificationSite() == shiftedLocalization) { // @TODO: compare against the accuracy
+                                            siteOccupied = true;
                                         }
                                     }
-                                } else if (!sequence.equals(otherSequence) && otherSequence.contains(sequence)) {
-                                    for (String tempKey : confidentAtMass.get(otherSequence)) {
-                                        SpectrumMatch secondaryMatch = identification.getSpectrumMatch(tempKey);
-                                        String secondaryKey = secondaryMatch.getBestPeptideAssumption().getPeptide().getMatchingKey(sequenceMatchingPreferences);
-                                        tempLocalizations = Peptide.getNModificationLocalized(secondaryKey, ptmMass);
-                                        int tempIndex, ref = 0;
-                                        String tempSequence = otherSequence;
-                                        while ((tempIndex = tempSequence.indexOf(sequence)) >= 0) {
-                                            ref += tempIndex;
-                                            for (int localization : tempLocalizations) {
-                                                int shiftedLocalization = localization - ref;
-                                                if (shiftedLocalization > 0 && shiftedLocalization <= sequence.length()
-                                                        && !oldLocalizations.contains(shiftedLocalization) && !newLocalizationCandidates.contains(shiftedLocalization)) {
-                                                    boolean siteOccupied = false;
-                                                    for (ModificationMatch modificationMatch : peptide.getModificationMatches()) {
-                                                        PTM ptm = ptmFactory.getPTM(modificationMatch.getTheoreticPtm());
-                                                        if (ptm.getMass() != ptmMass && modificationMatch.getModificationSite() == shiftedLocalization) { // @TODO: compare against the accuracy
-                                                            siteOccupied = true;
-                                                        }
-                                                    }
-                                                    boolean candidatePtm = false;
-                                                    if (!siteOccupied) {
-                                                        for (String ptmName : searchParameters.getPtmSettings().getAllNotFixedModifications()) {
-                                                            PTM ptm = ptmFactory.getPTM(ptmName);
-                                                            if (ptm.getMass() == ptmMass && peptide.getPotentialModificationSites(ptm, sequenceMatchingPreferences, ptmSequenceMatchingPreferences).contains(shiftedLocalization)) { // @TODO: compare against the accuracy
-                                                                candidatePtm = true;
-                                                                break;
-                                                            }
-                                                        }
-                                                    }
-                                                    if (candidatePtm && !siteOccupied) {
-                                                        newLocalizationCandidates.add(shiftedLocalization);
-                                                    }
-                                                }
+                                    boolean candidatePtm = false;
+                                    if (!siteOccupied) {
+                                        for (String ptmName : searchParameters.getPtmSettings().getAllNotFixedModifications()) {
+                                            PTM ptm = ptmFactory.getPTM(ptmName);
+                                            if (ptm.getMass() == ptmMass && peptide.getPotentialModificationSites(ptm, sequenceMatchingPreferences, ptmSequenceMatchingPreferences).contains(shiftedLocalization)) { // @TODO: compare against the accuracy
+                                                candidatePtm = true;
+                                                break;
                                             }
-                                            tempSequence = tempSequence.substring(tempIndex + 1);
-                                            ref++;
                                         }
                                     }
+                                    if (candidatePtm && !siteOccupied) {
+                                        newLocalizationCandidates.add(shiftedLocalization);
+                                    }
                                 }
                             }
+                            tempSequence = tempSequence.substring(tempIndex + 1);
+                            ref++;
                         }
-                        // Map the most likely inferred sites
-                        if (!newLocalizationCandidates.isEmpty()) {
-                            HashMap<Integer, ModificationMatch> nonConfidentMatches = new HashMap<Integer, ModificationMatch>();
-                            for (ModificationMatch modificationMatch : peptide.getModificationMatches()) {
-                                String ptmName = modificationMatch.getTheoreticPtm();
-                                PTM ptm = ptmFactory.getPTM(ptmName);
-                                if (ptm.getMass() == ptmMass && !modificationMatch.isConfident()) { // @TODO: compare against the accuracy
-                                    nonConfidentMatches.put(modificationMatch.getModificationSite(), modificationMatch);
-                                }
-                            }
-                            HashMap<Integer, Integer> mapping = PtmSiteMapping.align(nonConfidentMatches.keySet(), newLocalizationCandidates);
-                            for (Integer oldLocalization : mapping.keySet()) {
-                                ModificationMatch modificationMatch = nonConfidentMatches.get(oldLocalization);
-                                Integer newLocalization = mapping.get(oldLocalization);
-                                if (modificationMatch == null) {
-                                    throw new IllegalArgumentException("No modification match found at site " + oldLocalization + " in spectrum " + spectrumKey + ".");
-                                }
-                                if (newLocalization != null) {
-                                    if (!newLocalization.equals(oldLocalization)) {
-                                        String ptmCandidateName = null;
+                    }
+                } else if (!sequence.equals(otherSequence) && otherSequence.contains(sequence)) {
+                    for (String secondaryKey : ptmConfidentPeptides.get(otherSequence)) {
+                        tempLocalizations = Peptide.getNModificationLocalized(secondaryKey, ptmMass);
+                        int tempIndex, ref = 0;
+                        String tempSequence = otherSequence;
+                        while ((tempIndex = tempSequence.indexOf(sequence)) >= 0) {
+                            ref += tempIndex;
+                            for (int localization : tempLocalizations) {
+                                int shiftedLocalization = localization - ref;
+                                if (shiftedLocalization > 0 && shiftedLocalization <= sequence.length()
+                                        && !oldLocalizations.contains(shiftedLocalization) && !newLocalizationCandidates.contains(shiftedLocalization)) {
+                                    boolean siteOccupied = false;
+                                    for (ModificationMatch modificationMatch : peptide.getModificationMatches()) {
+                                        PTM ptm = ptmFactory.getPTM(modificationMatch.getTheoreticPtm());
+                                        if (ptm.getMass() != ptmMass && modificationMatch.getModificationSite() == shiftedLocalization) { // @TODO: compare against the accuracy
+                                            siteOccupied = true;
+                                        }
+                                    }
+                                    boolean candidatePtm = false;
+                                    if (!siteOccupied) {
                                         for (String ptmName : searchParameters.getPtmSettings().getAllNotFixedModifications()) {
                                             PTM ptm = ptmFactory.getPTM(ptmName);
-                                            if (ptm.getMass() == ptmMass && peptide.getPotentialModificationSites(ptm, sequenceMatchingPreferences, ptmSequenceMatchingPreferences).contains(newLocalization)) { // @TODO: compare against the accuracy
-                                                ptmCandidateName = ptm.getName();
+                                            if (ptm.getMass() == ptmMass && peptide.getPotentialModificationSites(ptm, sequenceMatchingPreferences, ptmSequenceMatchingPreferences).contains(shiftedLocalization)) { // @TODO: compare against the accuracy
+                                                candidatePtm = true;
                                                 break;
                                             }
                                         }
-                                        if (ptmCandidateName == null) {
-                                            throw new IllegalArgumentException("No PTM found for site " + newLocalization + " on  peptide " + peptide.getSequence() + " in spectrum " + spectrumKey + ".");
-                                        }
-                                        modificationMatch.setModificationSite(newLocalization);
-                                        modificationMatch.setTheoreticPtm(ptmCandidateName);
-                                        PSPtmScores psmScores = (PSPtmScores) spectrumMatch.getUrParam(new PSPtmScores());
-                                        psmScores.changeRepresentativeSite(ptmCandidateName, oldLocalization, newLocalization);
                                     }
-                                    modificationMatch.setInferred(true);
+                                    if (candidatePtm && !siteOccupied) {
+                                        newLocalizationCandidates.add(shiftedLocalization);
+                                    }
                                 }
                             }
+                            tempSequence = tempSequence.substring(tempIndex + 1);
+                            ref++;
                         }
-                        identification.updateSpectrumMatch(spectrumMatch);
-                    }
-                    if (waitingHandler.isRunCanceled()) {
-                        return;
                     }
-                    if (!progress.contains(spectrumKey)) {
-                        progress.add(spectrumKey);
-                        waitingHandler.increaseSecondaryProgressCounter();
+                }
+            }
+        }
+        // Map the most likely inferred sites
+        if (!newLocalizationCandidates.isEmpty()) {
+            HashMap<Integer, ModificationMatch> nonConfidentMatches = new HashMap<Integer, ModificationMatch>();
+            for (ModificationMatch modificationMatch : peptide.getModificationMatches()) {
+                String ptmName = modificationMatch.getTheoreticPtm();
+                PTM ptm = ptmFactory.getPTM(ptmName);
+                if (ptm.getMass() == ptmMass && !modificationMatch.isConfident()) { // @TODO: compare against the accuracy
+                    nonConfidentMatches.put(modificationMatch.getModificationSite(), modificationMatch);
+                }
+            }
+            HashMap<Integer, Integer> mapping = PtmSiteMapping.align(nonConfidentMatches.keySet(), newLocalizationCandidates);
+            for (Integer oldLocalization : mapping.keySet()) {
+                ModificationMatch modificationMatch = nonConfidentMatches.get(oldLocalization);
+                Integer newLocalization = mapping.get(oldLocalization);
+                if (modificationMatch == null) {
+                    throw new IllegalArgumentException("No modification match found at site " + oldLocalization + " in spectrum " + spectrumKey + ".");
+                }
+                if (newLocalization != null) {
+                    if (!newLocalization.equals(oldLocalization)) {
+                        String ptmCandidateName = null;
+                        for (String ptmName : searchParameters.getPtmSettings().getAllNotFixedModifications()) {
+                            PTM ptm = ptmFactory.getPTM(ptmName);
+                            if (ptm.getMass() == ptmMass && peptide.getPotentialModificationSites(ptm, sequenceMatchingPreferences, ptmSequenceMatchingPreferences).contains(newLocalization)) { // @TODO: compare against the accuracy
+                                ptmCandidateName = ptm.getName();
+                                break;
+                            }
+                        }
+                        if (ptmCandidateName == null) {
+                            throw new IllegalArgumentException("No PTM found for site " + newLocalization + " on  peptide " + peptide.getSequence() + " in spectrum " + spectrumKey + ".");
+                        }
+                        modificationMatch.setModificationSite(newLocalization);
+                        modificationMatch.setTheoreticPtm(ptmCandidateName);
+                        PSPtmScores psmScores = (PSPtmScores) spectrumMatch.getUrParam(new PSPtmScores());
+                        psmScores.changeRepresentativeSite(ptmCandidateName, oldLocalization, newLocalization);
                     }
+                    modificationMatch.setInferred(true);
                 }
             }
         }
@@ -2369,4 +2411,438 @@ public class PtmScorer {
             }
         }
     }
+
+    /**
+     * Runnable scoring the PTMs of a batch of peptide matches.
+     *
+     * @author Marc Vaudel
+     */
+    private class PeptidePtmScorerRunnable implements Runnable {
+
+        /**
+         * The keys of the peptides to score.
+         */
+        private final ArrayList<String> peptideKeys;
+        /**
+         * The index of the first peptide of the batch.
+         */
+        private final int start;
+        /**
+         * The index after the last peptide of the batch.
+         */
+        private final int end;
+        /**
+         * The identification.
+         */
+        private final Identification identification;
+        /**
+         * The identification parameters.
+         */
+        private final IdentificationParameters identificationParameters;
+        /**
+         * The stage running the task.
+         */
+        private final ProcessingStage stage;
+        /**
+         * The waiting handler.
+         */
+        private final WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private final ExceptionHandler exceptionHandler;
+
+        /**
+         * Constructor.
+         *
+         * @param peptideKeys the keys of the peptides to score
+         * @param start the index of the first peptide of the batch
+         * @param end the index after the last peptide of the batch
+         * @param identification the identification containing the matches
+         * @param identificationParameters the identification parameters
+         * @param stage the stage running the task
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public PeptidePtmScorerRunnable(ArrayList<String> peptideKeys, int start, int end, Identification identification,
+                IdentificationParameters identificationParameters, ProcessingStage stage, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.peptideKeys = peptideKeys;
+            this.start = start;
+            this.end = end;
+            this.identification = identification;
+            this.identificationParameters = identificationParameters;
+            this.stage = stage;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                ArrayList<String> batchKeys = new ArrayList<String>(peptideKeys.subList(start, end));
+                identification.loadPeptideMatches(batchKeys, null, false);
+                for (String peptideKey : batchKeys) {
+                    if (stage.isCanceled()) {
+                        return;
+                    }
+                    PeptideMatch peptideMatch = identification.getPeptideMatch(peptideKey);
+                    scorePTMs(identification, peptideMatch, identificationParameters, null);
+                    waitingHandler.increaseSecondaryProgressCounter();
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                stage.cancel();
+                waitingHandler.setRunCanceled();
+            }
+        }
+    }
+
+    /**
+     * Runnable scoring the PTMs of a batch of protein matches and gathering
+     * the protein metrics of the batch.
+     *
+     * @author Marc Vaudel
+     */
+    private class ProteinPtmScorerRunnable implements Runnable {
+
+        /**
+         * The keys of the proteins to score.
+         */
+        private final ArrayList<String> proteinKeys;
+        /**
+         * The index of the first protein of the batch.
+         */
+        private final int start;
+        /**
+         * The index after the last protein of the batch.
+         */
+        private final int end;
+        /**
+         * The identification.
+         */
+        private final Identification identification;
+        /**
+         * The identification parameters.
+         */
+        private final IdentificationParameters identificationParameters;
+        /**
+         * Boolean indicating whether the protein metrics should be gathered.
+         */
+        private final boolean gatherMetrics;
+        /**
+         * The identification features generator used to estimate the spectrum
+         * counting, can be null.
+         */
+        private final IdentificationFeaturesGenerator identificationFeaturesGenerator;
+        /**
+         * The stage running the task.
+         */
+        private final ProcessingStage stage;
+        /**
+         * The waiting handler.
+         */
+        private final WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private final ExceptionHandler exceptionHandler;
+        /**
+         * The number of validated proteins in the batch.
+         */
+        private int nValidatedProteins = 0;
+        /**
+         * The number of confident proteins in the batch.
+         */
+        private int nConfidentProteins = 0;
+        /**
+         * The maximal spectrum counting value in the batch.
+         */
+        private double maxSpectrumCounting = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param proteinKeys the keys of the proteins to score
+         * @param start the index of the first protein of the batch
+         * @param end the index after the last protein of the batch
+         * @param identification the identification containing the matches
+         * @param identificationParameters the identification parameters
+         * @param gatherMetrics boolean indicating whether the protein metrics
+         * should be gathered
+         * @param identificationFeaturesGenerator the identification features
+         * generator used to estimate the spectrum counting, can be null
+         * @param stage the stage running the task
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public ProteinPtmScorerRunnable(ArrayList<String> proteinKeys, int start, int end, Identification identification,
+                IdentificationParameters identificationParameters, boolean gatherMetrics, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+                ProcessingStage stage, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.proteinKeys = proteinKeys;
+            this.start = start;
+            this.end = end;
+            this.identification = identification;
+            this.identificationParameters = identificationParameters;
+            this.gatherMetrics = gatherMetrics;
+            this.identificationFeaturesGenerator = identificationFeaturesGenerator;
+            this.stage = stage;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                PSParameter psParameter = new PSParameter();
+                ArrayList<String> batchKeys = new ArrayList<String>(proteinKeys.subList(start, end));
+                identification.loadProteinMatches(batchKeys, null, false);
+                identification.loadProteinMatchParameters(batchKeys, psParameter, null, false);
+                for (String proteinKey : batchKeys) {
+                    if (stage.isCanceled()) {
+                        return;
+                    }
+                    ProteinMatch proteinMatch = identification.getProteinMatch(proteinKey);
+                    scorePTMs(identification, proteinMatch, identificationParameters, false, null);
+                    if (gatherMetrics) {
+                        psParameter = (PSParameter) identification.getProteinMatchParameter(proteinKey, psParameter);
+                        if (psParameter.getMatchValidationLevel().isValidated()) {
+                            nValidatedProteins++;
+                            if (psParameter.getMatchValidationLevel() == MatchValidationLevel.confident) {
+                                nConfidentProteins++;
+                            }
+                        }
+                        if (identificationFeaturesGenerator != null) {
+                            double spectrumCounting = identificationFeaturesGenerator.getNormalizedSpectrumCounting(proteinKey);
+                            if (spectrumCounting > maxSpectrumCounting) {
+                                maxSpectrumCounting = spectrumCounting;
+                            }
+                        }
+                    }
+                    waitingHandler.increaseSecondaryProgressCounter();
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                stage.cancel();
+                waitingHandler.setRunCanceled();
+            }
+        }
+    }
+
+    /**
+     * Runnable mapping the PTMs of a batch of PSMs for the peptide inference.
+     *
+     * @author Marc Vaudel
+     */
+    private class PeptideInferenceMappingRunnable implements Runnable {
+
+        /**
+         * The keys of the spectra to map.
+         */
+        private final ArrayList<String> spectrumKeys;
+        /**
+         * The index of the first spectrum of the batch.
+         */
+        private final int start;
+        /**
+         * The index after the last spectrum of the batch.
+         */
+        private final int end;
+        /**
+         * The identification.
+         */
+        private final Identification identification;
+        /**
+         * The identification parameters.
+         */
+        private final IdentificationParameters identificationParameters;
+        /**
+         * The stage running the task.
+         */
+        private final ProcessingStage stage;
+        /**
+         * The waiting handler.
+         */
+        private final WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private final ExceptionHandler exceptionHandler;
+        /**
+         * The confidently localized PTMs of the batch: PTM mass &gt; peptide
+         * sequence &gt; matching keys.
+         */
+        private final HashMap<Double, HashMap<String, ArrayList<String>>> confidentPeptideInference = new HashMap<Double, HashMap<String, ArrayList<String>>>();
+        /**
+         * The keys of the spectra of the batch with PTMs not confidently
+         * localized.
+         */
+        private final ArrayList<String> notConfidentKeys = new ArrayList<String>();
+        /**
+         * The masses of the PTMs not confidently localized, indexed like the
+         * spectrum keys.
+         */
+        private final ArrayList<double[]> notConfidentMasses = new ArrayList<double[]>();
+
+        /**
+         * Constructor.
+         *
+         * @param spectrumKeys the keys of the spectra to map
+         * @param start the index of the first spectrum of the batch
+         * @param end the index after the last spectrum of the batch
+         * @param identification the identification containing the matches
+         * @param identificationParameters the identification parameters
+         * @param stage the stage running the task
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public PeptideInferenceMappingRunnable(ArrayList<String> spectrumKeys, int start, int end, Identification identification,
+                IdentificationParameters identificationParameters, ProcessingStage stage, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.spectrumKeys = spectrumKeys;
+            this.start = start;
+            this.end = end;
+            this.identification = identification;
+            this.identificationParameters = identificationParameters;
+            this.stage = stage;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                ArrayList<String> batchKeys = new ArrayList<String>(spectrumKeys.subList(start, end));
+                identification.loadSpectrumMatches(batchKeys, null, false);
+                for (String spectrumKey : batchKeys) {
+                    if (stage.isCanceled()) {
+                        return;
+                    }
+                    SpectrumMatch spectrumMatch = identification.getSpectrumMatch(spectrumKey);
+                    double[] masses = null;
+                    if (spectrumMatch.getBestPeptideAssumption() != null) {
+                        masses = mapPeptideInference(spectrumMatch, identificationParameters, confidentPeptideInference);
+                    }
+                    if (masses != null) {
+                        notConfidentKeys.add(spectrumKey);
+                        notConfidentMasses.add(masses);
+                    } else {
+                        waitingHandler.increaseSecondaryProgressCounter();
+                    }
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                stage.cancel();
+                waitingHandler.setRunCanceled();
+            }
+        }
+    }
+
+    /**
+     * Runnable inferring the sites of the PTMs not confidently localized for a
+     * batch of PSMs.
+     *
+     * @author Marc Vaudel
+     */
+    private class PeptideInferenceRunnable implements Runnable {
+
+        /**
+         * The keys of the spectra with PTMs not confidently localized.
+         */
+        private final ArrayList<String> spectrumKeys;
+        /**
+         * The masses of the PTMs not confidently localized, indexed like the
+         * spectrum keys.
+         */
+        private final ArrayList<double[]> ptmMasses;
+        /**
+         * The index of the first spectrum of the batch.
+         */
+        private final int start;
+        /**
+         * The index after the last spectrum of the batch.
+         */
+        private final int end;
+        /**
+         * The confidently localized PTMs: PTM mass &gt; peptide sequence &gt;
+         * matching keys.
+         */
+        private final HashMap<Double, HashMap<String, ArrayList<String>>> confidentPeptideInference;
+        /**
+         * The identification.
+         */
+        private final Identification identification;
+        /**
+         * The identification parameters.
+         */
+        private final IdentificationParameters identificationParameters;
+        /**
+         * The stage running the task.
+         */
+        private final ProcessingStage stage;
+        /**
+         * The waiting handler.
+         */
+        private final WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private final ExceptionHandler exceptionHandler;
+
+        /**
+         * Constructor.
+         *
+         * @param spectrumKeys the keys of the spectra with PTMs not confidently
+         * localized
+         * @param ptmMasses the masses of the PTMs not confidently localized,
+         * indexed like the spectrum keys
+         * @param start the index of the first spectrum of the batch
+         * @param end the index after the last spectrum of the batch
+         * @param confidentPeptideInference the confidently localized PTMs
+         * @param identification the identification containing the matches
+         * @param identificationParameters the identification parameters
+         * @param stage the stage running the task
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public PeptideInferenceRunnable(ArrayList<String> spectrumKeys, ArrayList<double[]> ptmMasses, int start, int end,
+                HashMap<Double, HashMap<String, ArrayList<String>>> confidentPeptideInference, Identification identification,
+                IdentificationParameters identificationParameters, ProcessingStage stage, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.spectrumKeys = spectrumKeys;
+            this.ptmMasses = ptmMasses;
+            this.start = start;
+            this.end = end;
+            this.confidentPeptideInference = confidentPeptideInference;
+            this.identification = identification;
+            this.identificationParameters = identificationParameters;
+            this.stage = stage;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                ArrayList<String> batchKeys = new ArrayList<String>(spectrumKeys.subList(start, end));
+                identification.loadSpectrumMatches(batchKeys, null, false);
+                for (int i = start; i < end; i++) {
+                    if (stage.isCanceled()) {
+                        return;
+                    }
+                    SpectrumMatch spectrumMatch = identification.getSpectrumMatch(spectrumKeys.get(i));
+                    for (double ptmMass : ptmMasses.get(i)) {
+                        inferPeptideSites(spectrumMatch, ptmMass, confidentPeptideInference, identificationParameters);
+                    }
+                    identification.updateSpectrumMatch(spectrumMatch);
+                    waitingHandler.increaseSecondaryProgressCounter();
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                stage.cancel();
+                waitingHandler.setRunCanceled();
+            }
+        }
+    }
 }
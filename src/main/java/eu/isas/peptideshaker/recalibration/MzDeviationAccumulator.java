@@ -0,0 +1,301 @@
+package eu.isas.peptideshaker.recalibration;
+
+import java.util.Arrays;
+
+/**
+ * This class accumulates m/z errors as (retention time, m/z, error) triplets
+ * stored in primitive arrays.
+ *
+ * @author Marc Vaudel
+ */
+public class MzDeviationAccumulator {
+
+    /**
+     * The retention times.
+     */
+    private double[] rts;
+    /**
+     * The m/z values.
+     */
+    private double[] mzs;
+    /**
+     * The errors.
+     */
+    private double[] errors;
+    /**
+     * The number of errors accumulated.
+     */
+    private int size = 0;
+
+    /**
+     * Constructor.
+     */
+    public MzDeviationAccumulator() {
+        this(1024);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param initialCapacity the initial capacity
+     */
+    public MzDeviationAccumulator(int initialCapacity) {
+        int capacity = Math.max(initialCapacity, 16);
+        rts = new double[capacity];
+        mzs = new double[capacity];
+        errors = new double[capacity];
+    }
+
+    /**
+     * Adds an error.
+     *
+     * @param rt the retention time
+     * @param mz the m/z
+     * @param error the error
+     */
+    public void add(double rt, double mz, double error) {
+        ensureCapacity(size + 1);
+        rts[size] = rt;
+        mzs[size] = mz;
+        errors[size] = error;
+        size++;
+    }
+
+    /**
+     * Adds the median error of every distinct m/z value of a set of errors
+     * at the given retention time. The first values of the m/z and error
+     * arrays are sorted in the process.
+     *
+     * @param rt the retention time
+     * @param mzs the m/z values
+     * @param errors the errors
+     * @param length the number of errors to consider
+     */
+    public void addMedians(double rt, double[] mzs, double[] errors, int length) {
+        sort(mzs, errors, length);
+        int binStart = 0;
+        for (int i = 0; i < length; i++) {
+            if (i == length - 1 || mzs[i + 1] != mzs[i]) {
+                add(rt, mzs[i], medianOfSorted(errors, binStart, i + 1));
+                binStart = i + 1;
+            }
+        }
+    }
+
+    /**
+     * Adds all the errors of another accumulator.
+     *
+     * @param other the other accumulator
+     */
+    public void addAll(MzDeviationAccumulator other) {
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.rts, 0, rts, size, other.size);
+        System.arraycopy(other.mzs, 0, mzs, size, other.size);
+        System.arraycopy(other.errors, 0, errors, size, other.size);
+        size += other.size;
+    }
+
+    /**
+     * Makes sure that the arrays can contain the given number of errors.
+     *
+     * @param capacity the number of errors to contain
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity > rts.length) {
+            int newCapacity = Math.max(capacity, 2 * rts.length);
+            rts = Arrays.copyOf(rts, newCapacity);
+            mzs = Arrays.copyOf(mzs, newCapacity);
+            errors = Arrays.copyOf(errors, newCapacity);
+        }
+    }
+
+    /**
+     * Returns the number of errors accumulated.
+     *
+     * @return the number of errors accumulated
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the retention times. The array is backing the accumulator and
+     * only the first size() values are set.
+     *
+     * @return the retention times
+     */
+    public double[] getRts() {
+        return rts;
+    }
+
+    /**
+     * Returns the m/z values. The array is backing the accumulator and only
+     * the first size() values are set.
+     *
+     * @return the m/z values
+     */
+    public double[] getMzs() {
+        return mzs;
+    }
+
+    /**
+     * Returns the errors. The array is backing the accumulator and only the
+     * first size() values are set.
+     *
+     * @return the errors
+     */
+    public double[] getErrors() {
+        return errors;
+    }
+
+    /**
+     * Sorts the errors by retention time, then m/z, then error. The order is
+     * hence independent of the order in which the errors were added.
+     */
+    public void sort() {
+        sort(rts, mzs, errors, 0, size);
+    }
+
+    /**
+     * Sorts the first values of two arrays by the values of the first array,
+     * then of the second.
+     *
+     * @param keys the keys
+     * @param values the values
+     * @param length the number of values to sort
+     */
+    public static void sort(double[] keys, double[] values, int length) {
+        sort(keys, values, null, 0, length);
+    }
+
+    /**
+     * Sorts the given range of three arrays by the values of the first array,
+     * then of the second, then of the third if not null.
+     *
+     * @param a the first array
+     * @param b the second array
+     * @param c the third array, can be null
+     * @param from the index of the first value to sort
+     * @param to the index after the last value to sort
+     */
+    private static void sort(double[] a, double[] b, double[] c, int from, int to) {
+        while (to - from > 16) {
+            int middle = (from + to) >>> 1;
+            double pivotA = a[middle];
+            double pivotB = b[middle];
+            double pivotC = c == null ? 0 : c[middle];
+            int i = from;
+            int j = to - 1;
+            while (i <= j) {
+                while (compare(a, b, c, i, pivotA, pivotB, pivotC) < 0) {
+                    i++;
+                }
+                while (compare(a, b, c, j, pivotA, pivotB, pivotC) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(a, b, c, i, j);
+                    i++;
+                    j--;
+                }
+            }
+            // recurse on the smaller part to bound the stack depth
+            if (j + 1 - from < to - i) {
+                sort(a, b, c, from, j + 1);
+                from = i;
+            } else {
+                sort(a, b, c, i, to);
+                to = j + 1;
+            }
+        }
+        for (int i = from + 1; i < to; i++) {
+            for (int j = i; j > from && compare(a, b, c, j, a[j - 1], b[j - 1], c == null ? 0 : c[j - 1]) < 0; j--) {
+                swap(a, b, c, j, j - 1);
+            }
+        }
+    }
+
+    /**
+     * Compares the values at the given index to the given values.
+     *
+     * @param a the first array
+     * @param b the second array
+     * @param c the third array, can be null
+     * @param index the index of the values to compare
+     * @param valueA the value to compare to the first array
+     * @param valueB the value to compare to the second array
+     * @param valueC the value to compare to the third array
+     *
+     * @return the result of the comparison
+     */
+    private static int compare(double[] a, double[] b, double[] c, int index, double valueA, double valueB, double valueC) {
+        int result = Double.compare(a[index], valueA);
+        if (result != 0) {
+            return result;
+        }
+        result = Double.compare(b[index], valueB);
+        if (result != 0 || c == null) {
+            return result;
+        }
+        return Double.compare(c[index], valueC);
+    }
+
+    /**
+     * Swaps the values at two indexes.
+     *
+     * @param a the first array
+     * @param b the second array
+     * @param c the third array, can be null
+     * @param i the first index
+     * @param j the second index
+     */
+    private static void swap(double[] a, double[] b, double[] c, int i, int j) {
+        double temp = a[i];
+        a[i] = a[j];
+        a[j] = temp;
+        temp = b[i];
+        b[i] = b[j];
+        b[j] = temp;
+        if (c != null) {
+            temp = c[i];
+            c[i] = c[j];
+            c[j] = temp;
+        }
+    }
+
+    /**
+     * Returns the median of a sorted range of values.
+     *
+     * @param values the values
+     * @param from the index of the first value
+     * @param to the index after the last value
+     *
+     * @return the median of the values
+     */
+    public static double medianOfSorted(double[] values, int from, int to) {
+        int length = to - from;
+        if (length == 0) {
+            return Double.NaN;
+        }
+        int middle = from + length / 2;
+        if (length % 2 == 1) {
+            return values[middle];
+        }
+        return (values[middle - 1] + values[middle]) / 2;
+    }
+
+    /**
+     * Returns the median of a range of values. The values are not modified.
+     *
+     * @param values the values
+     * @param from the index of the first value
+     * @param to the index after the last value
+     *
+     * @return the median of the values
+     */
+    public static double median(double[] values, int from, int to) {
+        double[] sorted = Arrays.copyOfRange(values, from, to);
+        Arrays.sort(sorted);
+        return medianOfSorted(sorted, 0, sorted.length);
+    }
+}
@@ -1,5 +1,6 @@
 package eu.isas.peptideshaker.recalibration;
 
+import com.compomics.util.exceptions.ExceptionHandler;
 import com.compomics.util.experiment.identification.Identification;
 import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
 import com.compomics.util.experiment.identification.spectrum_assumptions.PeptideAssumption;
@@ -10,15 +11,17 @@ import com.compomics.util.experiment.identification.spectrum_annotation.spectrum
 import com.compomics.util.experiment.massspectrometry.*;
 import com.compomics.util.experiment.personalization.UrParameter;
 import com.compomics.util.waiting.WaitingHandler;
-import com.compomics.util.math.BasicMathFunctions;
+import eu.isas.peptideshaker.PeptideShaker;
 import eu.isas.peptideshaker.parameters.PSParameter;
 import com.compomics.util.experiment.identification.spectrum_annotation.AnnotationSettings;
 import com.compomics.util.preferences.IdentificationParameters;
 import com.compomics.util.experiment.identification.spectrum_annotation.SpecificAnnotationSettings;
+import com.compomics.util.preferences.ProcessingPreferences;
+import eu.isas.peptideshaker.utils.ProcessingStage;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 
@@ -34,22 +37,26 @@ public class RunMzDeviation {
      */
     private SpectrumFactory spectrumFactory = SpectrumFactory.getInstance();
     /**
-     * The precursor slopes.
+     * The precursor retention time bins in ascending order.
      */
-    private HashMap<Double, Double> precursorSlopes = new HashMap<Double, Double>();
+    private double[] precursorRts;
     /**
-     * The precursor offsets.
+     * The precursor slopes of every retention time bin.
      */
-    private HashMap<Double, Double> precursorOffsets = new HashMap<Double, Double>();
+    private double[] precursorSlopes;
     /**
-     * The precursor RT list.
+     * The precursor offsets of every retention time bin.
      */
-    private ArrayList<Double> precursorRTList;
+    private double[] precursorOffsets;
     /**
-     * The fragments errors binned by mz and rt. error = experimental value -
-     * theoretic (identification) value.
+     * The fragment m/z bins in ascending order of every retention time bin.
      */
-    private HashMap<Double, HashMap<Double, Double>> fragmentsRtDeviations = new HashMap<Double, HashMap<Double, Double>>();
+    private double[][] fragmentMzs;
+    /**
+     * The fragments errors of every m/z bin of every retention time bin.
+     * error = experimental value - theoretic (identification) value.
+     */
+    private double[][] fragmentErrors;
     /**
      * The bin size used for ms2 correction.
      */
@@ -69,7 +76,11 @@ public class RunMzDeviation {
      * @return the list of precursor retention time bins
      */
     public ArrayList<Double> getPrecursorRTList() {
-        return precursorRTList;
+        ArrayList<Double> result = new ArrayList<Double>(precursorRts.length);
+        for (double rt : precursorRts) {
+            result.add(rt);
+        }
+        return result;
     }
 
     /**
@@ -81,7 +92,13 @@ public class RunMzDeviation {
      * @return the list for fragment ion m/z bins
      */
     public ArrayList<Double> getFragmentMZList(double precursorRT) {
-        return new ArrayList<Double>(fragmentsRtDeviations.get(precursorRT).keySet());
+        int index = Arrays.binarySearch(precursorRts, precursorRT);
+        double[] mzs = fragmentMzs[index];
+        ArrayList<Double> result = new ArrayList<Double>(mzs.length);
+        for (double mz : mzs) {
+            result.add(mz);
+        }
+        return result;
     }
 
     /**
@@ -93,7 +110,11 @@ public class RunMzDeviation {
      * @return the precursor m/z deviation slope
      */
     public Double getSlope(Double rtBin) {
-        return precursorSlopes.get(rtBin);
+        int index = Arrays.binarySearch(precursorRts, rtBin);
+        if (index < 0) {
+            return null;
+        }
+        return precursorSlopes[index];
     }
 
     /**
@@ -105,7 +126,11 @@ public class RunMzDeviation {
      * @return the precursor m/z deviation offset
      */
     public Double getOffset(Double rtBin) {
-        return precursorOffsets.get(rtBin);
+        int index = Arrays.binarySearch(precursorRts, rtBin);
+        if (index < 0) {
+            return null;
+        }
+        return precursorOffsets[index];
     }
 
     /**
@@ -119,29 +144,11 @@ public class RunMzDeviation {
      */
     public double getPrecursorMzCorrection(Double precursorMz, Double precursorRT) {
 
-        double key1 = precursorRTList.get(0);
-        double key2 = key1;
-
-        if (precursorRT > key1) {
-            key1 = precursorRTList.get(precursorRTList.size() - 1);
-            key2 = key1;
-            if (precursorRT < key1) {
-                for (int i = 0; i < precursorRTList.size() - 1; i++) {
-                    key1 = precursorRTList.get(i);
-                    if (precursorRT == key1) {
-                        key2 = precursorRT;
-                        break;
-                    }
-                    key2 = precursorRTList.get(i + 1);
-                    if (key1 < precursorRT && precursorRT < key2) {
-                        break;
-                    }
-                }
-            }
-        }
+        int index1 = getLowerIndex(precursorRts, precursorRT);
+        int index2 = getUpperIndex(precursorRts, precursorRT, index1);
 
-        double grade = (precursorSlopes.get(key1) + precursorSlopes.get(key2)) / 2;
-        double offset = (precursorOffsets.get(key1) + precursorOffsets.get(key2)) / 2;
+        double grade = (precursorSlopes[index1] + precursorSlopes[index2]) / 2;
+        double offset = (precursorOffsets[index1] + precursorOffsets[index2]) / 2;
         return grade * precursorMz + offset;
     }
 
@@ -155,82 +162,79 @@ public class RunMzDeviation {
      */
     public Double getFragmentMzError(double precursorRT, double fragmentMZ) {
 
-        double rtKey1 = precursorRTList.get(0);
-        double rtKey2 = rtKey1;
-
-        if (precursorRT > rtKey1) {
-            rtKey1 = precursorRTList.get(precursorRTList.size() - 1);
-            rtKey2 = rtKey1;
-            if (precursorRT < rtKey1) {
-                for (int i = 0; i < precursorRTList.size() - 1; i++) {
-                    rtKey1 = precursorRTList.get(i);
-                    if (precursorRT == rtKey1) {
-                        rtKey2 = precursorRT;
-                        break;
-                    }
-                    rtKey2 = precursorRTList.get(i + 1);
-                    if (rtKey1 < precursorRT && precursorRT < rtKey2) {
-                        break;
-                    }
-                }
-            }
-        }
+        int rtIndex1 = getLowerIndex(precursorRts, precursorRT);
+        int rtIndex2 = getUpperIndex(precursorRts, precursorRT, rtIndex1);
+        double rtKey1 = precursorRts[rtIndex1];
+        double rtKey2 = precursorRts[rtIndex2];
 
-        ArrayList<Double> mzList = new ArrayList<Double>(fragmentsRtDeviations.get(rtKey1).keySet());
-        Collections.sort(mzList);
-        double mzKey1 = mzList.get(0);
-        double mzKey2 = mzKey1;
-
-        if (fragmentMZ > mzKey1) {
-            mzKey1 = mzList.get(mzList.size() - 1);
-            mzKey2 = mzKey1;
-            if (fragmentMZ < mzKey1) {
-                for (int i = 0; i < mzList.size() - 1; i++) {
-                    mzKey1 = mzList.get(i);
-                    if (fragmentMZ == mzKey1) {
-                        mzKey2 = fragmentMZ;
-                        break;
-                    }
-                    mzKey2 = mzList.get(i + 1);
-                    if (mzKey1 < fragmentMZ && fragmentMZ < mzKey2) {
-                        break;
-                    }
-                }
-            }
-        }
+        double correction1 = getFragmentMzError(rtIndex1, fragmentMZ);
+        double correction2 = getFragmentMzError(rtIndex2, fragmentMZ);
 
-        double correction11 = fragmentsRtDeviations.get(rtKey1).get(mzKey1);
-        double correction12 = fragmentsRtDeviations.get(rtKey1).get(mzKey2);
-        double correction1 = correction11 * mzKey1 / (mzKey1 + mzKey2) + correction12 * mzKey2 / (mzKey1 + mzKey2);
-
-        mzList = new ArrayList<Double>(fragmentsRtDeviations.get(rtKey2).keySet());
-        Collections.sort(mzList);
-        mzKey1 = mzList.get(0);
-        mzKey2 = mzKey1;
-
-        if (fragmentMZ > mzKey1) {
-            mzKey1 = mzList.get(mzList.size() - 1);
-            mzKey2 = mzKey1;
-            if (fragmentMZ < mzKey1) {
-                for (int i = 0; i < mzList.size() - 1; i++) {
-                    mzKey1 = mzList.get(i);
-                    if (fragmentMZ == mzKey1) {
-                        mzKey2 = fragmentMZ;
-                        break;
-                    }
-                    mzKey2 = mzList.get(i + 1);
-                    if (mzKey1 < fragmentMZ && fragmentMZ < mzKey2) {
-                        break;
-                    }
-                }
-            }
+        return correction1 * rtKey1 / (rtKey1 + rtKey2) + correction2 * rtKey2 / (rtKey1 + rtKey2);
+    }
+
+    /**
+     * Returns the fragment error in the given retention time bin at the given
+     * fragment m/z.
+     *
+     * @param rtIndex the index of the retention time bin
+     * @param fragmentMZ the fragment m/z
+     *
+     * @return the error found, 0 if no fragment was found in this bin
+     */
+    private double getFragmentMzError(int rtIndex, double fragmentMZ) {
+
+        double[] mzs = fragmentMzs[rtIndex];
+        double[] errors = fragmentErrors[rtIndex];
+        if (mzs.length == 0) {
+            return 0;
         }
+        int mzIndex1 = getLowerIndex(mzs, fragmentMZ);
+        int mzIndex2 = getUpperIndex(mzs, fragmentMZ, mzIndex1);
+        double mzKey1 = mzs[mzIndex1];
+        double mzKey2 = mzs[mzIndex2];
 
-        double correction21 = fragmentsRtDeviations.get(rtKey2).get(mzKey1);
-        double correction22 = fragmentsRtDeviations.get(rtKey2).get(mzKey2);
-        double correction2 = correction21 * mzKey1 / (mzKey1 + mzKey2) + correction22 * mzKey2 / (mzKey1 + mzKey2);
+        return errors[mzIndex1] * mzKey1 / (mzKey1 + mzKey2) + errors[mzIndex2] * mzKey2 / (mzKey1 + mzKey2);
+    }
 
-        return correction1 * rtKey1 / (rtKey1 + rtKey2) + correction2 * rtKey2 / (rtKey1 + rtKey2);
+    /**
+     * Returns the index of the largest bin lower than or equal to the given
+     * value, the first bin if the value is lower than all bins.
+     *
+     * @param bins the bins in ascending order
+     * @param value the value of interest
+     *
+     * @return the index of the lower bin
+     */
+    private static int getLowerIndex(double[] bins, double value) {
+        if (value <= bins[0]) {
+            return 0;
+        }
+        if (value >= bins[bins.length - 1]) {
+            return bins.length - 1;
+        }
+        int index = Arrays.binarySearch(bins, value);
+        if (index >= 0) {
+            return index;
+        }
+        return -index - 2;
+    }
+
+    /**
+     * Returns the index of the bin following the lower bin, the lower bin if
+     * the value matches the lower bin or is outside the bins range.
+     *
+     * @param bins the bins in ascending order
+     * @param value the value of interest
+     * @param lowerIndex the index of the lower bin
+     *
+     * @return the index of the upper bin
+     */
+    private static int getUpperIndex(double[] bins, double value, int lowerIndex) {
+        if (bins[lowerIndex] >= value || lowerIndex == bins.length - 1) {
+            return lowerIndex;
+        }
+        return lowerIndex + 1;
     }
 
     /**
@@ -254,13 +258,18 @@ public class RunMzDeviation {
     }
 
     /**
-     * Creates a map of m/z deviations for a given run.
+     * Creates a map of m/z deviations for a given run. The PSMs are annotated
+     * concurrently and the errors accumulated in primitive arrays which are
+     * sorted before binning, the result is hence independent of the number of
+     * threads.
      *
      * @param spectrumFileName the name of the file of the run
      * @param identification the corresponding identification
      * @param identificationParameters the identification parameters
+     * @param processingPreferences the processing preferences
      * @param waitingHandler a waiting handler displaying the progress and
      * allowing the user to cancel the process. Can be null
+     * @param exceptionHandler handler for exceptions
      *
      * @throws IOException exception thrown whenever an IO exception occurred
      * while reading or writing to a file
@@ -273,15 +282,11 @@ public class RunMzDeviation {
      * @throws MzMLUnmarshallerException exception thrown whenever an exception
      * occurred while reading an mzML file
      */
-    public RunMzDeviation(String spectrumFileName, Identification identification, IdentificationParameters identificationParameters, WaitingHandler waitingHandler)
+    public RunMzDeviation(String spectrumFileName, Identification identification, IdentificationParameters identificationParameters,
+            ProcessingPreferences processingPreferences, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler)
             throws IOException, MzMLUnmarshallerException, SQLException, ClassNotFoundException, InterruptedException {
 
-        AnnotationSettings annotationPreferences = identificationParameters.getAnnotationPreferences();
-        PeptideSpectrumAnnotator spectrumAnnotator = new PeptideSpectrumAnnotator();
-        ms2Bin = 100 * annotationPreferences.getFragmentIonAccuracy();
-        HashMap<Double, HashMap<Double, ArrayList<Double>>> precursorRawMap = new HashMap<Double, HashMap<Double, ArrayList<Double>>>();
-        HashMap<Double, HashMap<Double, ArrayList<Double>>> fragmentRawMap = new HashMap<Double, HashMap<Double, ArrayList<Double>>>();
-        HashMap<Double, ArrayList<Double>> spectrumFragmentMap;
+        ms2Bin = 100 * identificationParameters.getAnnotationPreferences().getFragmentIonAccuracy();
 
         PSParameter psParameter = new PSParameter();
         ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
@@ -293,486 +298,415 @@ public class RunMzDeviation {
         }
 
         PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, parameters, false, waitingHandler);
-
-        while (psmIterator.hasNext()) {
-
-            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                break;
+        ProcessingStage stage = PeptideShaker.getProcessingScheduler(processingPreferences).newStage("Mass deviations estimation", waitingHandler);
+        ArrayList<MzErrorsCollectionRunnable> runnables = new ArrayList<MzErrorsCollectionRunnable>(processingPreferences.getnThreads());
+        for (int i = 1; i <= processingPreferences.getnThreads(); i++) {
+            MzErrorsCollectionRunnable runnable = new MzErrorsCollectionRunnable(psmIterator, identification, identificationParameters, waitingHandler, exceptionHandler);
+            runnables.add(runnable);
+            if (!stage.submit(runnable)) {
+                return;
             }
+        }
+        if (!stage.awaitCompletion() || waitingHandler != null && waitingHandler.isRunCanceled()) {
+            return;
+        }
 
-            SpectrumMatch spectrumMatch = psmIterator.next();
-            String spectrumKey = spectrumMatch.getKey();
-
-            psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, psParameter);
-
-            if (psParameter.getMatchValidationLevel().isValidated()) {
-
-                Precursor precursor = spectrumFactory.getPrecursor(spectrumKey);
-                double precursorMz = precursor.getMz();
-                double precursorRT = precursor.getRt();
-
-                if (!precursorRawMap.containsKey(precursorRT)) {
-                    precursorRawMap.put(precursorRT, new HashMap<Double, ArrayList<Double>>());
-                }
-                if (!precursorRawMap.get(precursorRT).containsKey(precursorMz)) {
-                    precursorRawMap.get(precursorRT).put(precursorMz, new ArrayList<Double>());
-                }
-
-                PeptideAssumption bestPeptideAssumption = spectrumMatch.getBestPeptideAssumption();
-
-                if (bestPeptideAssumption != null) {
-
-                    SearchParameters searchParameters = identificationParameters.getSearchParameters();
-                    double error = bestPeptideAssumption.getDeltaMass(precursorMz, false, searchParameters.getMinIsotopicCorrection(), searchParameters.getMaxIsotopicCorrection());
-                    precursorRawMap.get(precursorRT).get(precursorMz).add(error);
-
-                    MSnSpectrum currentSpectrum = (MSnSpectrum) spectrumFactory.getSpectrum(spectrumKey);
-                    SpecificAnnotationSettings specificAnnotationPreferences = annotationPreferences.getSpecificAnnotationPreferences(currentSpectrum.getSpectrumKey(), bestPeptideAssumption, identificationParameters.getSequenceMatchingPreferences(), identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences());
-                    ArrayList<IonMatch> ionMatches = spectrumAnnotator.getSpectrumAnnotation(annotationPreferences, specificAnnotationPreferences,
-                            (MSnSpectrum) currentSpectrum, bestPeptideAssumption.getPeptide());
-                    spectrumFragmentMap = new HashMap<Double, ArrayList<Double>>();
-
-                    for (IonMatch ionMatch : ionMatches) {
-
-                        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                            break;
-                        }
-
-                        double fragmentMz = ionMatch.peak.mz;
-                        int roundedValue = (int) (fragmentMz / ms2Bin);
-                        double fragmentMzKey = (double) roundedValue * ms2Bin;
-
-                        if (!spectrumFragmentMap.containsKey(fragmentMzKey)) {
-                            spectrumFragmentMap.put(fragmentMzKey, new ArrayList<Double>());
-                        }
-
-                        spectrumFragmentMap.get(fragmentMzKey).add(ionMatch.getAbsoluteError());
-                    }
-
-                    if (!fragmentRawMap.containsKey(precursorRT)) {
-                        fragmentRawMap.put(precursorRT, new HashMap<Double, ArrayList<Double>>());
-                    }
-
-                    for (double key : spectrumFragmentMap.keySet()) {
-
-                        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                            break;
-                        }
-
-                        if (!fragmentRawMap.get(precursorRT).containsKey(key)) {
-                            fragmentRawMap.get(precursorRT).put(key, new ArrayList<Double>());
-                        }
-
-                        fragmentRawMap.get(precursorRT).get(key).add(BasicMathFunctions.median(spectrumFragmentMap.get(key)));
-                    }
-                }
-            }
+        MzDeviationAccumulator precursorErrors = new MzDeviationAccumulator();
+        MzDeviationAccumulator fragmentErrorsAccumulator = new MzDeviationAccumulator();
+        for (MzErrorsCollectionRunnable runnable : runnables) {
+            precursorErrors.addAll(runnable.getPrecursorErrors());
+            fragmentErrorsAccumulator.addAll(runnable.getFragmentErrors());
+        }
 
-            if (waitingHandler != null) {
-                waitingHandler.increaseSecondaryProgressCounter();
-            }
+        if (precursorErrors.size() == 0) {
+            throw new IllegalArgumentException("No validated PSM found for file " + spectrumFileName + ".");
         }
 
         if (waitingHandler != null) {
-            if (waitingHandler.isRunCanceled()) {
-                return;
-            }
             waitingHandler.setSecondaryProgressCounterIndeterminate(true);
         }
 
-        ArrayList<Double> keys = new ArrayList<Double>(precursorRawMap.keySet());
-        if (keys.isEmpty()) {
-            throw new IllegalArgumentException("No validated PSM found for file " + spectrumFileName + ".");
-        }
-        Collections.sort(keys);
-        int cpt1 = 0;
-        HashMap<Double, HashMap<Double, ArrayList<Double>>> precursorTempMap = new HashMap<Double, HashMap<Double, ArrayList<Double>>>();
-        HashMap<Double, HashMap<Double, ArrayList<Double>>> fragmentTempMap = new HashMap<Double, HashMap<Double, ArrayList<Double>>>();
+        estimateDeviations(precursorErrors, fragmentErrorsAccumulator);
+    }
 
-        for (double rt : keys) {
+    /**
+     * Creates a map of m/z deviations from the errors collected on a run.
+     *
+     * @param precursorErrors the precursor errors
+     * @param fragmentErrors the median fragment errors of every spectrum in
+     * every m/z bin
+     */
+    RunMzDeviation(MzDeviationAccumulator precursorErrors, MzDeviationAccumulator fragmentErrors) {
+        estimateDeviations(precursorErrors, fragmentErrors);
+    }
 
-            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                break;
+    /**
+     * Estimates the deviations over windows of consecutive retention times
+     * containing more than rtBinSize precursors. If not enough precursors are
+     * available, the deviations are estimated over the entire run. The errors
+     * are sorted by retention time, m/z, and error first.
+     *
+     * @param precursorErrors the precursor errors
+     * @param fragmentErrors the fragment errors
+     */
+    private void estimateDeviations(MzDeviationAccumulator precursorErrors, MzDeviationAccumulator fragmentErrors) {
+
+        precursorErrors.sort();
+        fragmentErrors.sort();
+
+        // index the retention times of the precursors
+        double[] precursorRtValues = precursorErrors.getRts();
+        int nPrecursors = precursorErrors.size();
+        double[] rts = new double[nPrecursors];
+        int[] precursorStarts = new int[nPrecursors + 1];
+        int nRts = 0;
+        for (int i = 0; i < nPrecursors; i++) {
+            if (i == 0 || precursorRtValues[i] != precursorRtValues[i - 1]) {
+                rts[nRts] = precursorRtValues[i];
+                precursorStarts[nRts] = i;
+                nRts++;
             }
-
-            HashMap<Double, ArrayList<Double>> tempValues = precursorRawMap.get(rt);
-            precursorTempMap.put(rt, tempValues);
-            fragmentTempMap.put(rt, fragmentRawMap.get(rt));
-
-            for (ArrayList<Double> errors : tempValues.values()) {
-
-                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                    break;
-                }
-
-                cpt1 += errors.size();
+        }
+        precursorStarts[nRts] = nPrecursors;
+
+        double[] fragmentRtValues = fragmentErrors.getRts();
+        int nFragments = fragmentErrors.size();
+        int[] fragmentStarts = new int[nRts + 1];
+        int fragmentIndex = 0;
+        for (int i = 0; i < nRts; i++) {
+            while (fragmentIndex < nFragments && fragmentRtValues[fragmentIndex] < rts[i]) {
+                fragmentIndex++;
             }
-
-            if (cpt1 > rtBinSize && waitingHandler != null && !waitingHandler.isRunCanceled()) {
-
-                ArrayList<Double> rtList = new ArrayList<Double>(precursorTempMap.keySet());
-                Collections.sort(rtList);
-                double rtRef = BasicMathFunctions.median(rtList);
-                HashMap<Double, ArrayList<Double>> mzToErrorMap = new HashMap<Double, ArrayList<Double>>();
-
-                for (HashMap<Double, ArrayList<Double>> errors : precursorTempMap.values()) {
-
-                    if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                        break;
-                    }
-
-                    for (double mz : errors.keySet()) {
-
-                        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                            break;
-                        }
-
-                        if (!mzToErrorMap.containsKey(mz)) {
-                            mzToErrorMap.put(mz, new ArrayList<Double>());
-                        }
-
-                        mzToErrorMap.get(mz).addAll(errors.get(mz));
-                    }
-                }
-
-                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                    return;
-                }
-
-                ArrayList<Double> mzList = new ArrayList<Double>(mzToErrorMap.keySet());
-                Collections.sort(mzList);
-                ArrayList<Double> mz1 = new ArrayList<Double>();
-                ArrayList<Double> mz2 = new ArrayList<Double>();
-                ArrayList<Double> err1 = new ArrayList<Double>();
-                ArrayList<Double> err2 = new ArrayList<Double>();
-                int cpt2 = 0;
-
-                for (double mz : mzList) {
-
-                    if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                        break;
-                    }
-
-                    for (double err : mzToErrorMap.get(mz)) {
-
-                        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                            break;
-                        }
-
-                        if (cpt2 < cpt1 / 2) {
-                            mz1.add(mz);
-                            err1.add(err);
-                            cpt2++;
-                        } else {
-                            mz2.add(mz);
-                            err2.add(err);
-                        }
-                    }
-                }
-
-                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                    return;
-                }
-
-                double x1 = BasicMathFunctions.median(mz1);
-                double x2 = BasicMathFunctions.median(mz2);
-                double y1 = BasicMathFunctions.median(err1);
-                double y2 = BasicMathFunctions.median(err2);
-                double slope;
-
-                if (x1 == x2) {
-                    slope = 0;
-                } else {
-                    slope = (y2 - y1) / (x2 - x1);
-                }
-
-                double offset = (y2 + y1 - slope * (x1 + x2)) / 2;
-                precursorSlopes.put(rtRef, slope);
-                precursorOffsets.put(rtRef, offset);
-
-                fragmentsRtDeviations.put(rtRef, new HashMap<Double, Double>());
-                mzToErrorMap = new HashMap<Double, ArrayList<Double>>();
-
-                for (HashMap<Double, ArrayList<Double>> errors : fragmentTempMap.values()) {
-                    if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                        break;
-                    }
-
-                    for (double mz : errors.keySet()) {
-
-                        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                            break;
-                        }
-
-                        if (!mzToErrorMap.containsKey(mz)) {
-                            mzToErrorMap.put(mz, new ArrayList<Double>());
-                        }
-
-                        mzToErrorMap.get(mz).addAll(errors.get(mz));
-                    }
-                }
-
-                mzList = new ArrayList<Double>(mzToErrorMap.keySet());
-                Collections.sort(mzList);
-                mz1 = new ArrayList<Double>();
-                mz2 = new ArrayList<Double>();
-                err1 = new ArrayList<Double>();
-                err2 = new ArrayList<Double>();
-                double mzRef = -1;
-
-                for (double mz : mzList) {
-
-                    if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                        break;
-                    }
-
-                    mz1.add(mz);
-                    err1.addAll(mzToErrorMap.get(mz));
-
-                    if (err1.size() >= mzBinSize) {
-                        mzRef = BasicMathFunctions.median(mz1);
-                        double error = BasicMathFunctions.median(err1);
-                        fragmentsRtDeviations.get(rtRef).put(mzRef, error);
-                        mz2.clear();
-                        err2.clear();
-                        mz2.addAll(mz1);
-                        err2.addAll(err1);
-                        mz1.clear();
-                        err1.clear();
-                    }
-                }
-
-                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                    return;
-                }
-
-                if (!mz1.isEmpty()) {
-
-                    if (fragmentsRtDeviations.get(rtRef) != null) {
-                        fragmentsRtDeviations.get(rtRef).remove(mzRef);
-                    }
-
-                    mz1.addAll(mz2);
-                    err1.addAll(err2);
-                    mzRef = BasicMathFunctions.median(mz1);
-                    double error = BasicMathFunctions.median(err1);
-                    fragmentsRtDeviations.get(rtRef).put(mzRef, error);
-                }
-
-                for (double tempRt : rtList) {
-
-                    if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                        break;
-                    }
-
-                    tempValues = precursorTempMap.get(tempRt);
-
-                    for (ArrayList<Double> errors : tempValues.values()) {
-
-                        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                            break;
-                        }
-
-                        cpt1 -= errors.size();
-                    }
-
-                    precursorTempMap.remove(tempRt);
-                    fragmentTempMap.remove(tempRt);
-
-                    if (cpt1 <= rtBinSize) {
+            fragmentStarts[i] = fragmentIndex;
+        }
+        fragmentStarts[nRts] = nFragments;
+
+        ArrayList<double[]> bins = new ArrayList<double[]>();
+        ArrayList<double[][]> fragmentBins = new ArrayList<double[][]>();
+
+        // slide a window over the retention times
+        int start = 0;
+        int count = 0;
+        for (int end = 0; end < nRts; end++) {
+            count += precursorStarts[end + 1] - precursorStarts[end];
+            if (count > rtBinSize) {
+                estimateWindow(precursorErrors, fragmentErrors, rts, precursorStarts, fragmentStarts, start, end + 1, bins, fragmentBins);
+                while (start <= end) {
+                    count -= precursorStarts[start + 1] - precursorStarts[start];
+                    start++;
+                    if (count <= rtBinSize) {
                         break;
                     }
                 }
             }
         }
 
-        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-            return;
+        if (bins.isEmpty()) {
+            estimateWindow(precursorErrors, fragmentErrors, rts, precursorStarts, fragmentStarts, 0, nRts, bins, fragmentBins);
         }
 
-        if (precursorSlopes.isEmpty()) {
-
-            double rtRef = BasicMathFunctions.median(keys);
-            HashMap<Double, ArrayList<Double>> mzToErrorMap = new HashMap<Double, ArrayList<Double>>();
-
-            for (HashMap<Double, ArrayList<Double>> errors : precursorRawMap.values()) {
-
-                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                    break;
-                }
-
-                for (double mz : errors.keySet()) {
-
-                    if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                        break;
-                    }
-
-                    if (!mzToErrorMap.containsKey(mz)) {
-                        mzToErrorMap.put(mz, new ArrayList<Double>());
-                    }
-                    mzToErrorMap.get(mz).addAll(errors.get(mz));
-                }
-            }
-
-            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                return;
-            }
-
-            ArrayList<Double> mzList = new ArrayList<Double>(mzToErrorMap.keySet());
-            Collections.sort(mzList);
-            ArrayList<Double> mz1 = new ArrayList<Double>();
-            ArrayList<Double> mz2 = new ArrayList<Double>();
-            ArrayList<Double> err1 = new ArrayList<Double>();
-            ArrayList<Double> err2 = new ArrayList<Double>();
-            int cpt2 = 0;
-
-            for (double mz : mzList) {
-
-                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                    break;
-                }
-
-                for (double err : mzToErrorMap.get(mz)) {
-
-                    if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                        break;
-                    }
-
-                    if (cpt2 < cpt1 / 2) {
-                        mz1.add(mz);
-                        err1.add(err);
-                        cpt2++;
-                    } else {
-                        mz2.add(mz);
-                        err2.add(err);
-                    }
-                }
-            }
-
-            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                return;
-            }
-
-            double x1 = BasicMathFunctions.median(mz1);
-            double x2 = BasicMathFunctions.median(mz2);
-            double y1 = BasicMathFunctions.median(err1);
-            double y2 = BasicMathFunctions.median(err2);
-            double slope;
+        int nBins = bins.size();
+        precursorRts = new double[nBins];
+        precursorSlopes = new double[nBins];
+        precursorOffsets = new double[nBins];
+        fragmentMzs = new double[nBins][];
+        this.fragmentErrors = new double[nBins][];
+        for (int i = 0; i < nBins; i++) {
+            double[] bin = bins.get(i);
+            precursorRts[i] = bin[0];
+            precursorSlopes[i] = bin[1];
+            precursorOffsets[i] = bin[2];
+            double[][] fragmentBin = fragmentBins.get(i);
+            fragmentMzs[i] = fragmentBin[0];
+            this.fragmentErrors[i] = fragmentBin[1];
+        }
+    }
 
+    /**
+     * Estimates the deviations in a window of retention times. The precursor
+     * deviation is given by a line between the medians of the lower and upper
+     * halves of the precursors sorted by m/z. The fragment errors are binned
+     * by groups of at least mzBinSize errors.
+     *
+     * @param precursorErrors the precursor errors sorted by retention time
+     * @param fragmentErrors the fragment errors sorted by retention time
+     * @param rts the distinct retention times in ascending order
+     * @param precursorStarts the index of the first precursor error of every
+     * retention time
+     * @param fragmentStarts the index of the first fragment error of every
+     * retention time
+     * @param start the index of the first retention time of the window
+     * @param end the index after the last retention time of the window
+     * @param bins list where to add the retention time, slope and offset of
+     * the window
+     * @param fragmentBins list where to add the fragment m/z bins and errors
+     * of the window
+     */
+    private void estimateWindow(MzDeviationAccumulator precursorErrors, MzDeviationAccumulator fragmentErrors, double[] rts,
+            int[] precursorStarts, int[] fragmentStarts, int start, int end, ArrayList<double[]> bins, ArrayList<double[][]> fragmentBins) {
+
+        double rtRef = MzDeviationAccumulator.medianOfSorted(rts, start, end);
+
+        // precursors
+        int from = precursorStarts[start];
+        int to = precursorStarts[end];
+        int length = to - from;
+        double[] mzs = Arrays.copyOfRange(precursorErrors.getMzs(), from, to);
+        double[] errors = Arrays.copyOfRange(precursorErrors.getErrors(), from, to);
+        MzDeviationAccumulator.sort(mzs, errors, length);
+        int half = length / 2;
+        double slope, offset;
+        if (half == 0) {
+            slope = 0;
+            offset = MzDeviationAccumulator.median(errors, 0, length);
+        } else {
+            double x1 = MzDeviationAccumulator.medianOfSorted(mzs, 0, half);
+            double x2 = MzDeviationAccumulator.medianOfSorted(mzs, half, length);
+            double y1 = MzDeviationAccumulator.median(errors, 0, half);
+            double y2 = MzDeviationAccumulator.median(errors, half, length);
             if (x1 == x2) {
                 slope = 0;
             } else {
                 slope = (y2 - y1) / (x2 - x1);
             }
+            offset = (y2 + y1 - slope * (x1 + x2)) / 2;
+        }
 
-            double offset = (y2 + y1 - slope * (x1 + x2)) / 2;
-            precursorSlopes.put(rtRef, slope);
-            precursorOffsets.put(rtRef, offset);
-
-            for (double tempRt : keys) {
-
-                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                    break;
+        // fragments
+        from = fragmentStarts[start];
+        to = fragmentStarts[end];
+        length = to - from;
+        mzs = Arrays.copyOfRange(fragmentErrors.getMzs(), from, to);
+        errors = Arrays.copyOfRange(fragmentErrors.getErrors(), from, to);
+        MzDeviationAccumulator.sort(mzs, errors, length);
+        double[] binMzs = new double[length];
+        double[] binErrors = new double[length];
+        double[] distinctMzs = new double[length];
+        int nBins = 0;
+        int binStart = 0;
+        int previousBinStart = 0;
+        for (int i = 0; i < length; i++) {
+            if (i == length - 1 || mzs[i + 1] != mzs[i]) {
+                if (i + 1 - binStart >= mzBinSize) {
+                    binMzs[nBins] = getMedianOfDistinct(mzs, binStart, i + 1, distinctMzs);
+                    binErrors[nBins] = MzDeviationAccumulator.median(errors, binStart, i + 1);
+                    nBins++;
+                    previousBinStart = binStart;
+                    binStart = i + 1;
                 }
+            }
+        }
+        if (binStart < length) {
+            // merge the remaining errors with the last bin
+            if (nBins > 0) {
+                nBins--;
+            }
+            binMzs[nBins] = getMedianOfDistinct(mzs, previousBinStart, length, distinctMzs);
+            binErrors[nBins] = MzDeviationAccumulator.median(errors, previousBinStart, length);
+            nBins++;
+        }
 
-                HashMap<Double, ArrayList<Double>> tempValues = precursorTempMap.get(tempRt);
+        double[] bin = new double[]{rtRef, slope, offset};
+        double[][] fragmentBin = new double[][]{Arrays.copyOf(binMzs, nBins), Arrays.copyOf(binErrors, nBins)};
+        int lastIndex = bins.size() - 1;
+        if (lastIndex >= 0 && bins.get(lastIndex)[0] == rtRef) {
+            bins.set(lastIndex, bin);
+            fragmentBins.set(lastIndex, fragmentBin);
+        } else {
+            bins.add(bin);
+            fragmentBins.add(fragmentBin);
+        }
+    }
+
+    /**
+     * Returns the median of the distinct values of a sorted range.
+     *
+     * @param values the values
+     * @param from the index of the first value
+     * @param to the index after the last value
+     * @param buffer a buffer at least as long as the range
+     *
+     * @return the median of the distinct values
+     */
+    private static double getMedianOfDistinct(double[] values, int from, int to, double[] buffer) {
+        int nDistinct = 0;
+        for (int i = from; i < to; i++) {
+            if (i == from || values[i] != values[i - 1]) {
+                buffer[nDistinct] = values[i];
+                nDistinct++;
+            }
+        }
+        return MzDeviationAccumulator.medianOfSorted(buffer, 0, nDistinct);
+    }
 
-                for (ArrayList<Double> errors : tempValues.values()) {
+    /**
+     * Runnable annotating the validated PSMs of a file and collecting the m/z
+     * errors.
+     *
+     * @author Marc Vaudel
+     */
+    private class MzErrorsCollectionRunnable implements Runnable {
+
+        /**
+         * An iterator for the PSMs.
+         */
+        private PsmIterator psmIterator;
+        /**
+         * The identification.
+         */
+        private Identification identification;
+        /**
+         * The identification parameters.
+         */
+        private IdentificationParameters identificationParameters;
+        /**
+         * The waiting handler, can be null.
+         */
+        private WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private ExceptionHandler exceptionHandler;
+        /**
+         * The peptide spectrum annotator.
+         */
+        private PeptideSpectrumAnnotator spectrumAnnotator = new PeptideSpectrumAnnotator();
+        /**
+         * The PSParameter used to retrieve the validation level.
+         */
+        private PSParameter psParameter = new PSParameter();
+        /**
+         * The precursor errors.
+         */
+        private MzDeviationAccumulator precursorErrors = new MzDeviationAccumulator();
+        /**
+         * The median fragment errors of every spectrum in every m/z bin.
+         */
+        private MzDeviationAccumulator fragmentErrors = new MzDeviationAccumulator();
+        /**
+         * Buffer for the m/z bins of the fragment ions of a spectrum.
+         */
+        private double[] spectrumBins = new double[256];
+        /**
+         * Buffer for the errors of the fragment ions of a spectrum.
+         */
+        private double[] spectrumErrors = new double[256];
+
+        /**
+         * Constructor.
+         *
+         * @param psmIterator a PSM iterator
+         * @param identification the identification
+         * @param identificationParameters the identification parameters
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process, can be null
+         * @param exceptionHandler handler for exceptions
+         */
+        public MzErrorsCollectionRunnable(PsmIterator psmIterator, Identification identification, IdentificationParameters identificationParameters,
+                WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.psmIterator = psmIterator;
+            this.identification = identification;
+            this.identificationParameters = identificationParameters;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
 
-                    if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                        break;
+        @Override
+        public void run() {
+            try {
+                while (psmIterator.hasNext() && (waitingHandler == null || !waitingHandler.isRunCanceled())) {
+                    SpectrumMatch spectrumMatch = psmIterator.next();
+                    if (spectrumMatch != null) {
+                        collectErrors(spectrumMatch);
+                        if (waitingHandler != null) {
+                            waitingHandler.increaseSecondaryProgressCounter();
+                        }
                     }
-
-                    cpt1 -= errors.size();
                 }
-
-                precursorTempMap.remove(tempRt);
-
-                if (cpt1 <= rtBinSize) {
-                    break;
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                if (waitingHandler != null) {
+                    waitingHandler.setRunCanceled();
                 }
             }
+        }
 
-            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                return;
-            }
-
-            mzToErrorMap = new HashMap<Double, ArrayList<Double>>();
-
-            for (HashMap<Double, ArrayList<Double>> errors : precursorTempMap.values()) {
-
-                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                    break;
-                }
-
-                for (double mz : errors.keySet()) {
+        /**
+         * Collects the errors of a spectrum match if validated.
+         *
+         * @param spectrumMatch the spectrum match
+         *
+         * @throws IOException exception thrown whenever an IO exception
+         * occurred while reading or writing to a file
+         * @throws InterruptedException exception thrown whenever a threading
+         * issue occurred while
+         * @throws SQLException exception thrown whenever an SQL exception
+         * occurred while interacting with the database
+         * @throws ClassNotFoundException exception thrown whenever an
+         * exception occurred while deserializing an object
+         * @throws MzMLUnmarshallerException exception thrown whenever an
+         * exception occurred while reading an mzML file
+         */
+        private void collectErrors(SpectrumMatch spectrumMatch) throws IOException, MzMLUnmarshallerException, SQLException, ClassNotFoundException, InterruptedException {
 
-                    if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                        break;
-                    }
+            String spectrumKey = spectrumMatch.getKey();
+            psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, psParameter);
 
-                    if (!mzToErrorMap.containsKey(mz)) {
-                        mzToErrorMap.put(mz, new ArrayList<Double>());
-                    }
-                    mzToErrorMap.get(mz).addAll(errors.get(mz));
-                }
-            }
+            if (psParameter.getMatchValidationLevel().isValidated()) {
 
-            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                return;
-            }
+                PeptideAssumption bestPeptideAssumption = spectrumMatch.getBestPeptideAssumption();
 
-            fragmentsRtDeviations.put(rtRef, new HashMap<Double, Double>());
-            mzList = new ArrayList<Double>(mzToErrorMap.keySet());
-            Collections.sort(mzList);
-            Collections.sort(mzList);
-            mz1 = new ArrayList<Double>();
-            mz2 = new ArrayList<Double>();
-            err1 = new ArrayList<Double>();
-            err2 = new ArrayList<Double>();
+                if (bestPeptideAssumption != null) {
 
-            for (double mz : mzList) {
+                    Precursor precursor = spectrumFactory.getPrecursor(spectrumKey);
+                    double precursorMz = precursor.getMz();
+                    double precursorRT = precursor.getRt();
 
-                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                    break;
-                }
+                    SearchParameters searchParameters = identificationParameters.getSearchParameters();
+                    double error = bestPeptideAssumption.getDeltaMass(precursorMz, false, searchParameters.getMinIsotopicCorrection(), searchParameters.getMaxIsotopicCorrection());
+                    precursorErrors.add(precursorRT, precursorMz, error);
 
-                mz1.add(mz);
-                err1.addAll(mzToErrorMap.get(mz));
-                if (err1.size() >= mzBinSize) {
-                    double mzRef = BasicMathFunctions.median(mz1);
-                    double error = BasicMathFunctions.median(err1);
-                    fragmentsRtDeviations.get(rtRef).put(mzRef, error);
-                    mz2.addAll(mz1);
-                    err2.addAll(err1);
-                    mz1.clear();
-                    err1.clear();
-                }
-            }
+                    AnnotationSettings annotationPreferences = identificationParameters.getAnnotationPreferences();
+                    MSnSpectrum currentSpectrum = (MSnSpectrum) spectrumFactory.getSpectrum(spectrumKey);
+                    SpecificAnnotationSettings specificAnnotationPreferences = annotationPreferences.getSpecificAnnotationPreferences(currentSpectrum.getSpectrumKey(), bestPeptideAssumption, identificationParameters.getSequenceMatchingPreferences(), identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences());
+                    ArrayList<IonMatch> ionMatches = spectrumAnnotator.getSpectrumAnnotation(annotationPreferences, specificAnnotationPreferences,
+                            currentSpectrum, bestPeptideAssumption.getPeptide());
 
-            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                return;
-            }
+                    int nIons = ionMatches.size();
+                    if (nIons > spectrumBins.length) {
+                        spectrumBins = new double[nIons];
+                        spectrumErrors = new double[nIons];
+                    }
+                    for (int i = 0; i < nIons; i++) {
+                        IonMatch ionMatch = ionMatches.get(i);
+                        int roundedValue = (int) (ionMatch.peak.mz / ms2Bin);
+                        spectrumBins[i] = (double) roundedValue * ms2Bin;
+                        spectrumErrors[i] = ionMatch.getAbsoluteError();
+                    }
 
-            if (!mz1.isEmpty()) {
-                mzList = new ArrayList<Double>(fragmentsRtDeviations.get(rtRef).keySet());
-                Collections.sort(mzList);
-                if (!mzList.isEmpty()) {
-                    fragmentsRtDeviations.remove(mzList.get(mzList.size() - 1));
+                    // the median error of the spectrum in every bin
+                    fragmentErrors.addMedians(precursorRT, spectrumBins, spectrumErrors, nIons);
                 }
-                mz1.addAll(mz2);
-                err1.addAll(err2);
-                double mzRef = BasicMathFunctions.median(mz1);
-                double error = BasicMathFunctions.median(err1);
-                fragmentsRtDeviations.get(rtRef).put(mzRef, error);
             }
         }
 
-        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-            return;
+        /**
+         * Returns the precursor errors collected.
+         *
+         * @return the precursor errors collected
+         */
+        public MzDeviationAccumulator getPrecursorErrors() {
+            return precursorErrors;
         }
 
-        precursorRTList = new ArrayList<Double>(precursorSlopes.keySet());
-        Collections.sort(precursorRTList);
+        /**
+         * Returns the median fragment errors of every spectrum in every m/z
+         * bin.
+         *
+         * @return the fragment errors collected
+         */
+        public MzDeviationAccumulator getFragmentErrors() {
+            return fragmentErrors;
+        }
     }
 }
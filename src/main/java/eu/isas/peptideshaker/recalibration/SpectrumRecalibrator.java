@@ -1,5 +1,6 @@
 package eu.isas.peptideshaker.recalibration;
 
+import com.compomics.util.exceptions.ExceptionHandler;
 import com.compomics.util.experiment.identification.Identification;
 import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
 import com.compomics.util.experiment.massspectrometry.Peak;
@@ -7,9 +8,11 @@ import com.compomics.util.experiment.massspectrometry.Precursor;
 import com.compomics.util.experiment.massspectrometry.SpectrumFactory;
 import com.compomics.util.waiting.WaitingHandler;
 import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.preferences.ProcessingPreferences;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 
 /**
@@ -26,7 +29,7 @@ public class SpectrumRecalibrator {
     /**
      * Map of the runs errors.
      */
-    private HashMap<String, RunMzDeviation> runMzDeviationMap = new HashMap<String, RunMzDeviation>();
+    private ConcurrentHashMap<String, RunMzDeviation> runMzDeviationMap = new ConcurrentHashMap<String, RunMzDeviation>();
 
     /**
      * Constructor.
@@ -65,8 +68,10 @@ public class SpectrumRecalibrator {
      * @param spectrumFileName the name of the file of the run
      * @param identification the corresponding identification
      * @param identificationParameters the identification parameters
+     * @param processingPreferences the processing preferences
      * @param waitingHandler a waiting handler displaying the progress and
      * allowing the user to cancel the process. Can be null
+     * @param exceptionHandler handler for exceptions
      *
      * @throws IOException exception thrown whenever an IO exception occurred
      * while reading or writing to a file
@@ -79,9 +84,10 @@ public class SpectrumRecalibrator {
      * @throws MzMLUnmarshallerException exception thrown whenever an exception
      * occurred while reading an mzML file
      */
-    public void estimateErrors(String spectrumFileName, Identification identification, IdentificationParameters identificationParameters, WaitingHandler waitingHandler)
+    public void estimateErrors(String spectrumFileName, Identification identification, IdentificationParameters identificationParameters,
+            ProcessingPreferences processingPreferences, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler)
             throws IOException, MzMLUnmarshallerException, SQLException, ClassNotFoundException, InterruptedException {
-        RunMzDeviation fileErrors = new RunMzDeviation(spectrumFileName, identification, identificationParameters, waitingHandler);
+        RunMzDeviation fileErrors = new RunMzDeviation(spectrumFileName, identification, identificationParameters, processingPreferences, waitingHandler, exceptionHandler);
         runMzDeviationMap.put(spectrumFileName, fileErrors);
     }
 
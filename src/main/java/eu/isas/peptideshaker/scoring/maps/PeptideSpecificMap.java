@@ -111,7 +111,95 @@ public class PeptideSpecificMap implements Serializable {
         if (!peptideMaps.containsKey(key)) {
             peptideMaps.put(key, new TargetDecoyMap());
         }
-        peptideMaps.get(key).put(probabilityScore, peptideMatch.getTheoreticPeptide().isDecoy(sequenceMatchingPreferences));
+        boolean decoy = peptideMatch.getTheoreticPeptide().isDecoy(sequenceMatchingPreferences);
+        peptideMaps.get(key).put(probabilityScore, decoy);
+        if (groupedMaps.contains(key)) {
+            peptideMaps.get(DUSTBIN).put(probabilityScore, decoy);
+        }
+    }
+
+    /**
+     * Removes a point from the peptide specific map. Note: it is necessary to
+     * run cleanUp() afterwards to clean up the map.
+     *
+     * @param probabilityScore The peptide probabilistic score of the point
+     * @param peptideMatch The corresponding peptide match
+     * @param sequenceMatchingPreferences The sequence matching preferences
+     *
+     * @throws IOException thrown if an IOException occurs
+     * @throws InterruptedException thrown if an InterruptedException occurs
+     * @throws SQLException thrown if an SQLException occurs
+     * @throws ClassNotFoundException thrown if a ClassNotFoundException occurs
+     */
+    public void removePoint(double probabilityScore, PeptideMatch peptideMatch, SequenceMatchingPreferences sequenceMatchingPreferences)
+            throws IOException, InterruptedException, SQLException, ClassNotFoundException {
+        String key = getKey(peptideMatch);
+        boolean decoy = peptideMatch.getTheoreticPeptide().isDecoy(sequenceMatchingPreferences);
+        peptideMaps.get(key).remove(probabilityScore, decoy);
+        if (groupedMaps.contains(key)) {
+            peptideMaps.get(DUSTBIN).remove(probabilityScore, decoy);
+        }
+    }
+
+    /**
+     * Marks the current probabilities of the maps as attached to the matches.
+     */
+    public void setProbabilitiesApplied() {
+        for (String key : peptideMaps.keySet()) {
+            if (!groupedMaps.contains(key)) {
+                peptideMaps.get(key).setProbabilitiesApplied();
+            }
+        }
+    }
+
+    /**
+     * Removes empty points from the maps.
+     */
+    public void cleanUp() {
+        for (TargetDecoyMap targetDecoyMap : peptideMaps.values()) {
+            targetDecoyMap.cleanUp();
+        }
+    }
+
+    /**
+     * Clears the metrics and window sizes of the maps so that they are
+     * estimated anew from the current points.
+     */
+    public void resetMetrics() {
+        for (TargetDecoyMap targetDecoyMap : peptideMaps.values()) {
+            targetDecoyMap.resetMetrics();
+        }
+    }
+
+    /**
+     * Indicates whether the posterior error probability of a peptide match at
+     * the given score might differ from the one attached to the match.
+     *
+     * @param peptideMatchKey the peptide match
+     * @param score the score of the match
+     *
+     * @return a boolean indicating whether the posterior error probability
+     * might differ from the one attached to the match
+     */
+    public boolean isProbabilityChanged(String peptideMatchKey, double score) {
+        peptideMatchKey = getCorrectedKey(peptideMatchKey);
+        return peptideMaps.get(peptideMatchKey).isProbabilityChanged(score);
+    }
+
+    /**
+     * Indicates whether the posterior error probability of a peptide match
+     * might differ from the one attached to the match for any map and score.
+     *
+     * @return a boolean indicating whether the posterior error probability of
+     * a peptide match might differ from the one attached to the match
+     */
+    public boolean hasChangedProbabilities() {
+        for (String key : peptideMaps.keySet()) {
+            if (!groupedMaps.contains(key) && peptideMaps.get(key).hasChangedProbabilities()) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -152,6 +240,26 @@ public class PeptideSpecificMap implements Serializable {
         }
     }
 
+    /**
+     * Indicates whether cleaning the map would group the maps differently
+     * than currently.
+     *
+     * @param initialFDR the minimal FDR requested for a group
+     *
+     * @return a boolean indicating whether cleaning the map would group the
+     * maps differently
+     */
+    public boolean isGroupingChanged(Double initialFDR) {
+        if (peptideMaps.size() > 1) {
+            for (String key : peptideMaps.keySet()) {
+                if (!key.equals(DUSTBIN) && peptideMaps.get(key).suspiciousInput(initialFDR) != groupedMaps.contains(key)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     /**
      * This method returns the indexing key of a peptide match after curation.
      *
@@ -73,6 +73,14 @@ public class ProteinMap implements Serializable {
         proteinMatchMap.cleanUp();
     }
 
+    /**
+     * Clears the metrics and window size of the map so that they are
+     * estimated anew from the current points.
+     */
+    public void resetMetrics() {
+        proteinMatchMap.resetMetrics();
+    }
+
     /**
      * Returns the posterior error probability of a peptide match at the given
      * score.
@@ -84,6 +92,26 @@ public class ProteinMap implements Serializable {
         return proteinMatchMap.getProbability(score);
     }
 
+    /**
+     * Indicates whether the posterior error probability of a protein match at
+     * the given score might differ from the one attached to the match.
+     *
+     * @param score the score of the match
+     *
+     * @return a boolean indicating whether the posterior error probability
+     * might differ from the one attached to the match
+     */
+    public boolean isProbabilityChanged(double score) {
+        return proteinMatchMap.isProbabilityChanged(score);
+    }
+
+    /**
+     * Marks the current probabilities as attached to the matches.
+     */
+    public void setProbabilitiesApplied() {
+        proteinMatchMap.setProbabilitiesApplied();
+    }
+
     /**
      * Returns a boolean indicating if a suspicious input was detected.
      *
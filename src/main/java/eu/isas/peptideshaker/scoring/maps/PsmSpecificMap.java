@@ -126,6 +126,80 @@ public class PsmSpecificMap implements Serializable {
         return targetDecoyMap.getProbability(score);
     }
 
+    /**
+     * Indicates whether the probability of the given spectrum match at the
+     * given score might differ from the one attached to the match.
+     *
+     * @param file the file scored
+     * @param charge the charge scored
+     * @param score the corresponding score
+     *
+     * @return a boolean indicating whether the probability might differ from
+     * the one attached to the match
+     */
+    public boolean isProbabilityChanged(String file, int charge, double score) {
+        TargetDecoyMap targetDecoyMap;
+        boolean groupedFile = false;
+        if (fileSpecificGrouping != null) {
+            ArrayList<String> groupedFiles = fileSpecificGrouping.get(charge);
+            if (groupedFiles != null && groupedFiles.contains(file)) {
+                groupedFile = true;
+            }
+        } else {
+            groupedFile = true;
+        }
+        if (groupedFile) {
+            Integer key = grouping.get(charge);
+            if (key == null) {
+                key = charge;
+            }
+            targetDecoyMap = psmsMaps.get(key);
+        } else {
+            HashMap<String, TargetDecoyMap> specificMap = fileSpecificPsmsMaps.get(charge);
+            targetDecoyMap = specificMap == null ? null : specificMap.get(file);
+        }
+        return targetDecoyMap != null && targetDecoyMap.isProbabilityChanged(score);
+    }
+
+    /**
+     * Indicates whether the probability of a spectrum match of the given file
+     * might differ from the one attached to the match for any charge and
+     * score.
+     *
+     * @param file the file of interest
+     *
+     * @return a boolean indicating whether the probability of a spectrum match
+     * of the given file might differ from the one attached to the match
+     */
+    public boolean hasChangedProbabilities(String file) {
+        for (TargetDecoyMap targetDecoyMap : psmsMaps.values()) {
+            if (targetDecoyMap.hasChangedProbabilities()) {
+                return true;
+            }
+        }
+        for (HashMap<String, TargetDecoyMap> fileMapping : fileSpecificPsmsMaps.values()) {
+            TargetDecoyMap targetDecoyMap = fileMapping.get(file);
+            if (targetDecoyMap != null && targetDecoyMap.hasChangedProbabilities()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Marks the current probabilities of the maps as attached to the matches.
+     */
+    public void setProbabilitiesApplied() {
+        for (TargetDecoyMap targetDecoyMap : psmsMaps.values()) {
+            targetDecoyMap.setProbabilitiesApplied();
+        }
+        for (HashMap<String, TargetDecoyMap> fileMapping : fileSpecificPsmsMaps.values()) {
+            for (TargetDecoyMap targetDecoyMap : fileMapping.values()) {
+                targetDecoyMap.setProbabilitiesApplied();
+            }
+        }
+    }
+
     /**
      * Adds a point representing the corresponding spectrum match at a given
      * score.
@@ -141,7 +215,7 @@ public class PsmSpecificMap implements Serializable {
      * @throws IllegalArgumentException thrown if an IllegalArgumentException
      * occurs
      */
-    public void addPoint(double probabilityScore, SpectrumMatch spectrumMatch, SequenceMatchingPreferences sequenceMatchingPreferences)
+    public synchronized void addPoint(double probabilityScore, SpectrumMatch spectrumMatch, SequenceMatchingPreferences sequenceMatchingPreferences)
             throws IOException, InterruptedException, SQLException, ClassNotFoundException {
 
         int charge = spectrumMatch.getBestPeptideAssumption().getIdentificationCharge().value;
@@ -1,5 +1,6 @@
 package eu.isas.peptideshaker.scoring.psm_scoring;
 
+import com.compomics.util.exceptions.ExceptionHandler;
 import com.compomics.util.experiment.biology.Peptide;
 import com.compomics.util.experiment.identification.Advocate;
 import com.compomics.util.experiment.identification.Identification;
@@ -14,7 +15,6 @@ import com.compomics.util.experiment.identification.matches_iterators.PsmIterato
 import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
 import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
 import com.compomics.util.experiment.massspectrometry.SpectrumFactory;
-import com.compomics.util.memory.MemoryConsumptionStatus;
 import com.compomics.util.experiment.identification.spectrum_annotation.AnnotationSettings;
 import com.compomics.util.experiment.identification.filtering.PeptideAssumptionFilter;
 import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
@@ -22,15 +22,21 @@ import com.compomics.util.preferences.IdentificationParameters;
 import com.compomics.util.preferences.SequenceMatchingPreferences;
 import com.compomics.util.experiment.identification.spectrum_annotation.SpecificAnnotationSettings;
 import com.compomics.util.preferences.IdMatchValidationPreferences;
+import com.compomics.util.preferences.ProcessingPreferences;
 import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.peptideshaker.PeptideShaker;
 import eu.isas.peptideshaker.parameters.PSParameter;
 import eu.isas.peptideshaker.scoring.maps.InputMap;
+import eu.isas.peptideshaker.utils.MemoryGovernor;
 import eu.isas.peptideshaker.utils.Metrics;
+import eu.isas.peptideshaker.utils.ProcessingStage;
 import eu.isas.peptideshaker.validation.MatchesValidator;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
@@ -85,10 +91,12 @@ public class BestMatchSelection {
     }
 
     /**
-     * Fills the PSM specific map.
+     * Fills the PSM specific map. The spectra are processed in parallel.
      *
      * @param inputMap The input map
+     * @param processingPreferences the processing preferences
      * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler handler for exceptions
      * @param identificationParameters the identification parameters
      *
      * @throws java.sql.SQLException exception thrown whenever an error occurred
@@ -102,467 +110,360 @@ public class BestMatchSelection {
      * @throws uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException exception thrown
      * whenever an error occurred while reading an mzML file
      */
-    public void selectBestHitAndFillPsmMap(InputMap inputMap, WaitingHandler waitingHandler,
+    public void selectBestHitAndFillPsmMap(InputMap inputMap, ProcessingPreferences processingPreferences, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler,
             IdentificationParameters identificationParameters) throws SQLException, IOException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
 
         waitingHandler.setSecondaryProgressCounterIndeterminate(false);
         waitingHandler.setMaxSecondaryProgressCounter(identification.getSpectrumIdentificationSize());
 
-        PeptideSpectrumAnnotator spectrumAnnotator = new PeptideSpectrumAnnotator();
-        boolean multiSE = inputMap.isMultipleAlgorithms();
-
-        PeptideAssumptionFilter peptideAssumptionFilter = identificationParameters.getPeptideAssumptionFilter();
-        SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
-        SequenceMatchingPreferences ptmSequenceMatchingPreferences = identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences();
-        SearchParameters searchParameters = identificationParameters.getSearchParameters();
-        AnnotationSettings annotationPreferences = identificationParameters.getAnnotationPreferences();
-        IdMatchValidationPreferences idMatchValidationPreferences = identificationParameters.getIdValidationPreferences();
-
-        PeptideAssumptionFilter idFilter = identificationParameters.getPeptideAssumptionFilter();
-
-        // Keep a map of the spectrum keys grouped by peptide
-        HashMap<String, ArrayList<String>> orderedPsmMap = null;
-        if (MemoryConsumptionStatus.memoryUsed() < 0.8) {
-            orderedPsmMap = new HashMap<String, ArrayList<String>>(identification.getSpectrumIdentificationMap().size());
-        }
-
-        PSParameter psParameter = new PSParameter();
+        // Keep the spectrum keys grouped by peptide in the metrics
+        metrics.clearSpectrumKeys();
+        MemoryGovernor memoryGovernor = MemoryGovernor.getInstance();
+        boolean orderSpectrumKeys = memoryGovernor.getPressureLevel() == MemoryGovernor.PressureLevel.normal;
 
         for (String spectrumFileName : identification.getSpectrumFiles()) {
 
             HashMap<String, ArrayList<String>> keysMap = null;
-            if (orderedPsmMap != null) {
+            if (orderSpectrumKeys) {
                 keysMap = new HashMap<String, ArrayList<String>>();
             }
 
             PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, null, true, waitingHandler);
+            ProcessingStage stage = PeptideShaker.getProcessingScheduler(processingPreferences).newStage("Best match selection", waitingHandler);
+            for (int i = 1; i <= processingPreferences.getnThreads(); i++) {
+                BestMatchSelectionRunnable runnable = new BestMatchSelectionRunnable(psmIterator, inputMap.isMultipleAlgorithms(), keysMap, identificationParameters, waitingHandler, exceptionHandler);
+                if (!stage.submit(runnable)) {
+                    return;
+                }
+            }
+            if (!stage.awaitCompletion() || waitingHandler.isRunCanceled()) {
+                return;
+            }
 
-            while (psmIterator.hasNext()) {
+            if (orderSpectrumKeys) {
+                ArrayList<String> orderedKeys = new ArrayList<String>(identification.getSpectrumIdentification(spectrumFileName).size());
+                for (ArrayList<String> keys : keysMap.values()) {
+                    orderedKeys.addAll(keys);
+                }
+                keysMap = null;
+                metrics.setOrderedSpectrumKeys(spectrumFileName, orderedKeys);
 
-                SpectrumMatch advocateMatch = psmIterator.next();
-                String spectrumKey = advocateMatch.getKey();
+                if (memoryGovernor.getPressureLevel() == MemoryGovernor.PressureLevel.critical) {
+                    metrics.clearSpectrumKeys();
+                    orderSpectrumKeys = false;
+                }
+            }
+        }
 
-                // map of the peptide first hits for this spectrum: score -> max protein count -> max search engine votes -> amino acids annotated -> min mass deviation -> peptide sequence
-                HashMap<Double, HashMap<Integer, HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>>>> peptideAssumptions
-                        = new HashMap<Double, HashMap<Integer, HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>>>>();
+        // the protein count map is no longer needed
+        proteinCount.clear();
 
-                // map of the tag first hits: score -> assumptions
-                HashMap<Double, ArrayList<TagAssumption>> tagAssumptions = new HashMap<Double, ArrayList<TagAssumption>>();
+        waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+    }
 
-                HashSet<String> identifications = new HashSet<String>();
+    /**
+     * Selects the best hit of a spectrum and adds it to the PSM specific map.
+     *
+     * @param spectrumKey the key of the spectrum
+     * @param multiSE boolean indicating whether multiple search engines were
+     * used
+     * @param keysMap map of the spectrum keys grouped by peptide, ignored if
+     * null
+     * @param hitRanking the ranking of the candidate hits of the calling thread
+     * @param spectrumAnnotator the spectrum annotator of the calling thread
+     * @param psParameter a PSParameter used to retrieve the scores of the
+     * assumptions
+     * @param identificationParameters the identification parameters
+     *
+     * @throws java.sql.SQLException exception thrown whenever an error occurred
+     * while interacting with the back-end database
+     * @throws java.io.IOException exception thrown whenever an error occurred
+     * while reading an external file
+     * @throws java.lang.ClassNotFoundException exception thrown whenever an
+     * error occurred while deserializing an object
+     * @throws java.lang.InterruptedException exception thrown whenever a
+     * threading error occurred
+     * @throws uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException exception thrown
+     * whenever an error occurred while reading an mzML file
+     */
+    private void selectBestHit(String spectrumKey, boolean multiSE, HashMap<String, ArrayList<String>> keysMap, HitRanking hitRanking,
+            PeptideSpectrumAnnotator spectrumAnnotator, PSParameter psParameter, IdentificationParameters identificationParameters)
+            throws SQLException, IOException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
 
-                HashMap<Integer, HashMap<Double, ArrayList<SpectrumIdentificationAssumption>>> assumptions = identification.getAssumptions(spectrumKey);
+        PeptideAssumptionFilter peptideAssumptionFilter = identificationParameters.getPeptideAssumptionFilter();
+        SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
+        SequenceMatchingPreferences ptmSequenceMatchingPreferences = identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences();
+        SearchParameters searchParameters = identificationParameters.getSearchParameters();
+        IdMatchValidationPreferences idMatchValidationPreferences = identificationParameters.getIdValidationPreferences();
 
-                for (int searchEngine1 : assumptions.keySet()) {
+        // the peptide first hits for this spectrum, ranked by score, max protein count, max search engine votes, amino acids annotated, min mass deviation and peptide sequence
+        hitRanking.clear();
 
-                    HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> advocate1Map = assumptions.get(searchEngine1);
+        // map of the tag first hits: score -> assumptions
+        HashMap<Double, ArrayList<TagAssumption>> tagAssumptions = new HashMap<Double, ArrayList<TagAssumption>>();
 
-                    ArrayList<Double> eValues1 = new ArrayList<Double>(advocate1Map.keySet());
-                    Collections.sort(eValues1);
+        HashSet<String> identifications = new HashSet<String>();
 
-                    for (Double eValue1 : eValues1) {
+        HashMap<Integer, HashMap<Double, ArrayList<SpectrumIdentificationAssumption>>> assumptions = identification.getAssumptions(spectrumKey);
 
-                        boolean bestPeptideFound = false;
+        for (int searchEngine1 : assumptions.keySet()) {
 
-                        for (SpectrumIdentificationAssumption assumption1 : advocate1Map.get(eValue1)) {
+            HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> advocate1Map = assumptions.get(searchEngine1);
 
-                            if (assumption1 instanceof PeptideAssumption) {
+            ArrayList<Double> eValues1 = new ArrayList<Double>(advocate1Map.keySet());
+            Collections.sort(eValues1);
 
-                                PeptideAssumption peptideAssumption1 = (PeptideAssumption) assumption1;
-                                Peptide peptide1 = peptideAssumption1.getPeptide();
-                                String id = peptide1.getKey();
+            for (Double eValue1 : eValues1) {
 
-                                if (!identifications.contains(id)) {
+                boolean bestPeptideFound = false;
 
-                                    boolean filterPassed1 = true;
-                                    if (!peptideAssumptionFilter.validatePeptide(peptide1, sequenceMatchingPreferences, searchParameters.getDigestionPreferences())
-                                            || !peptideAssumptionFilter.validateModifications(peptide1, sequenceMatchingPreferences, ptmSequenceMatchingPreferences, searchParameters.getPtmSettings())
-                                            || !peptideAssumptionFilter.validatePrecursor(peptideAssumption1, spectrumKey, spectrumFactory, searchParameters)
-                                            || !peptideAssumptionFilter.validateProteins(peptide1, sequenceMatchingPreferences)) {
-                                        filterPassed1 = false;
-                                    } else {
-                                        ArrayList<String> accessions = peptide1.getParentProteins(sequenceMatchingPreferences);
-                                        if (accessions == null || accessions.isEmpty()) {
-                                            filterPassed1 = false;
-                                        }
-                                    }
+                for (SpectrumIdentificationAssumption assumption1 : advocate1Map.get(eValue1)) {
 
-                                    if (filterPassed1) {
+                    if (assumption1 instanceof PeptideAssumption) {
 
-                                        bestPeptideFound = true;
+                        PeptideAssumption peptideAssumption1 = (PeptideAssumption) assumption1;
+                        Peptide peptide1 = peptideAssumption1.getPeptide();
+                        String id = peptide1.getKey();
 
-                                        psParameter = (PSParameter) peptideAssumption1.getUrParam(psParameter);
-                                        double p;
+                        if (!identifications.contains(id)) {
 
-                                        if (multiSE && sequenceFactory.concatenatedTargetDecoy()) {
-                                            p = psParameter.getSearchEngineProbability();
-                                        } else {
-                                            p = peptideAssumption1.getScore();
-                                        }
+                            boolean filterPassed1 = true;
+                            if (!peptideAssumptionFilter.validatePeptide(peptide1, sequenceMatchingPreferences, searchParameters.getDigestionPreferences())
+                                    || !peptideAssumptionFilter.validateModifications(peptide1, sequenceMatchingPreferences, ptmSequenceMatchingPreferences, searchParameters.getPtmSettings())
+                                    || !peptideAssumptionFilter.validatePrecursor(peptideAssumption1, spectrumKey, spectrumFactory, searchParameters)
+                                    || !peptideAssumptionFilter.validateProteins(peptide1, sequenceMatchingPreferences)) {
+                                filterPassed1 = false;
+                            } else {
+                                ArrayList<String> accessions = peptide1.getParentProteins(sequenceMatchingPreferences);
+                                if (accessions == null || accessions.isEmpty()) {
+                                    filterPassed1 = false;
+                                }
+                            }
 
-                                        int nSE = 1;
-                                        int proteinMax = 1;
-                                        for (String protein : peptideAssumption1.getPeptide().getParentProteins(sequenceMatchingPreferences)) {
-                                            Integer tempCount = proteinCount.get(protein);
-                                            if (tempCount != null && tempCount > proteinMax) {
-                                                proteinMax = tempCount;
-                                            }
-                                        }
+                            if (filterPassed1) {
 
-                                        for (int searchEngine2 : assumptions.keySet()) {
+                                bestPeptideFound = true;
 
-                                            if (searchEngine1 != searchEngine2) {
+                                psParameter = (PSParameter) peptideAssumption1.getUrParam(psParameter);
+                                double p;
 
-                                                HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> advocate2Map = assumptions.get(searchEngine2);
+                                if (multiSE && sequenceFactory.concatenatedTargetDecoy()) {
+                                    p = psParameter.getSearchEngineProbability();
+                                } else {
+                                    p = peptideAssumption1.getScore();
+                                }
 
-                                                boolean found = false;
-                                                ArrayList<Double> eValues2 = new ArrayList<Double>(advocate2Map.keySet());
-                                                Collections.sort(eValues2);
+                                int nSE = 1;
+                                int proteinMax = 1;
+                                for (String protein : peptideAssumption1.getPeptide().getParentProteins(sequenceMatchingPreferences)) {
+                                    Integer tempCount = proteinCount.get(protein);
+                                    if (tempCount != null && tempCount > proteinMax) {
+                                        proteinMax = tempCount;
+                                    }
+                                }
 
-                                                for (double eValue2 : eValues2) {
+                                for (int searchEngine2 : assumptions.keySet()) {
 
-                                                    for (SpectrumIdentificationAssumption assumption2 : advocate2Map.get(eValue2)) {
+                                    if (searchEngine1 != searchEngine2) {
 
-                                                        if (assumption2 instanceof PeptideAssumption) {
+                                        HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> advocate2Map = assumptions.get(searchEngine2);
 
-                                                            PeptideAssumption peptideAssumption2 = (PeptideAssumption) assumption2;
+                                        boolean found = false;
+                                        ArrayList<Double> eValues2 = new ArrayList<Double>(advocate2Map.keySet());
+                                        Collections.sort(eValues2);
 
-                                                            if (peptideAssumption1.getPeptide().isSameSequenceAndModificationStatus(peptideAssumption2.getPeptide(),
-                                                                    sequenceMatchingPreferences)) {
-                                                                PSParameter psParameter2 = (PSParameter) peptideAssumption2.getUrParam(psParameter);
-                                                                p = p * psParameter2.getSearchEngineProbability();
-                                                                nSE++;
-                                                                found = true;
-                                                                break;
-                                                            }
-                                                        }
-                                                    }
-                                                    if (found) {
-                                                        break;
-                                                    }
-                                                }
-                                            }
-                                        }
+                                        for (double eValue2 : eValues2) {
 
-                                        identifications.add(id);
+                                            for (SpectrumIdentificationAssumption assumption2 : advocate2Map.get(eValue2)) {
 
-                                        HashMap<Integer, HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>>> pMap = peptideAssumptions.get(p);
-                                        if (pMap == null) {
-                                            pMap = new HashMap<Integer, HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>>>(advocate1Map.size());
-                                            peptideAssumptions.put(p, pMap);
-                                        }
-
-                                        HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>> proteinMaxMap = pMap.get(proteinMax);
-                                        if (proteinMaxMap == null) {
-                                            proteinMaxMap = new HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>>(1);
-                                            pMap.put(proteinMax, proteinMaxMap);
-                                        }
+                                                if (assumption2 instanceof PeptideAssumption) {
 
-                                        HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>> nSeMap = proteinMaxMap.get(nSE);
-                                        if (nSeMap == null) {
-                                            nSeMap = new HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>(1);
-                                            proteinMaxMap.put(nSE, nSeMap);
-                                            HashMap<Double, HashMap<String, PeptideAssumption>> coverageMap = new HashMap<Double, HashMap<String, PeptideAssumption>>(1);
-                                            nSeMap.put(-1, coverageMap);
-                                            HashMap<String, PeptideAssumption> assumptionMap = new HashMap<String, PeptideAssumption>(1);
-                                            coverageMap.put(-1.0, assumptionMap);
-                                            assumptionMap.put(peptideAssumption1.getPeptide().getSequenceWithLowerCasePtms(), peptideAssumption1);
-                                        } else {
-                                            MSnSpectrum spectrum = (MSnSpectrum) spectrumFactory.getSpectrum(spectrumKey);
-
-                                            HashMap<Double, HashMap<String, PeptideAssumption>> coverageMap = nSeMap.get(-1);
-                                            if (coverageMap != null) {
-                                                HashMap<String, PeptideAssumption> assumptionMap = coverageMap.get(-1.0);
-                                                for (PeptideAssumption tempAssumption : assumptionMap.values()) { // There should be only one
-                                                    Peptide peptide = tempAssumption.getPeptide();
-                                                    SpecificAnnotationSettings specificAnnotationPreferences = annotationPreferences.getSpecificAnnotationPreferences(spectrum.getSpectrumKey(), tempAssumption, identificationParameters.getSequenceMatchingPreferences(), identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences());
-                                                    HashMap<Integer, ArrayList<IonMatch>> coveredAminoAcids = spectrumAnnotator.getCoveredAminoAcids(annotationPreferences, specificAnnotationPreferences, (MSnSpectrum) spectrum, peptide);
-                                                    int nIons = coveredAminoAcids.size();
-                                                    nSeMap.put(nIons, coverageMap);
-                                                }
-                                                nSeMap.remove(-1);
-                                            }
+                                                    PeptideAssumption peptideAssumption2 = (PeptideAssumption) assumption2;
 
-                                            Peptide peptide = peptideAssumption1.getPeptide();
-                                            SpecificAnnotationSettings specificAnnotationPreferences = annotationPreferences.getSpecificAnnotationPreferences(spectrum.getSpectrumKey(), peptideAssumption1, identificationParameters.getSequenceMatchingPreferences(), identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences());
-                                            HashMap<Integer, ArrayList<IonMatch>> coveredAminoAcids = spectrumAnnotator.getCoveredAminoAcids(annotationPreferences, specificAnnotationPreferences, (MSnSpectrum) spectrum, peptide);
-                                            int nIons = coveredAminoAcids.size();
-
-                                            coverageMap = nSeMap.get(nIons);
-                                            if (coverageMap == null) {
-                                                coverageMap = new HashMap<Double, HashMap<String, PeptideAssumption>>(1);
-                                                HashMap<String, PeptideAssumption> assumptionMap = new HashMap<String, PeptideAssumption>(1);
-                                                assumptionMap.put(peptideAssumption1.getPeptide().getSequenceWithLowerCasePtms(), peptideAssumption1);
-                                                coverageMap.put(-1.0, assumptionMap);
-                                                nSeMap.put(nIons, coverageMap);
-                                            } else {
-                                                HashMap<String, PeptideAssumption> assumptionMap = coverageMap.get(-1.0);
-                                                if (assumptionMap != null) {
-                                                    for (PeptideAssumption tempAssumption : assumptionMap.values()) { // There should be only one
-                                                        double massError = Math.abs(tempAssumption.getDeltaMass(spectrum.getPrecursor().getMz(), searchParameters.isPrecursorAccuracyTypePpm(), searchParameters.getMinIsotopicCorrection(), searchParameters.getMaxIsotopicCorrection()));
-                                                        coverageMap.put(massError, assumptionMap);
+                                                    if (peptideAssumption1.getPeptide().isSameSequenceAndModificationStatus(peptideAssumption2.getPeptide(),
+                                                            sequenceMatchingPreferences)) {
+                                                        PSParameter psParameter2 = (PSParameter) peptideAssumption2.getUrParam(psParameter);
+                                                        p = p * psParameter2.getSearchEngineProbability();
+                                                        nSE++;
+                                                        found = true;
+                                                        break;
                                                     }
-                                                    coverageMap.remove(-1.0);
                                                 }
-
-                                                double massError = Math.abs(peptideAssumption1.getDeltaMass(spectrum.getPrecursor().getMz(), searchParameters.isPrecursorAccuracyTypePpm(), searchParameters.getMinIsotopicCorrection(), searchParameters.getMaxIsotopicCorrection()));
-                                                assumptionMap = coverageMap.get(massError);
-                                                if (assumptionMap == null) {
-                                                    assumptionMap = new HashMap<String, PeptideAssumption>(1);
-                                                    coverageMap.put(massError, assumptionMap);
-                                                }
-                                                assumptionMap.put(peptideAssumption1.getPeptide().getSequenceWithLowerCasePtms(), peptideAssumption1);
+                                            }
+                                            if (found) {
+                                                break;
                                             }
                                         }
                                     }
                                 }
-                            } else if (assumption1 instanceof TagAssumption) {
-                                TagAssumption tagAssumption = (TagAssumption) assumption1;
-                                ArrayList<TagAssumption> assumptionList = tagAssumptions.get(eValue1);
-                                if (assumptionList == null) {
-                                    assumptionList = new ArrayList<TagAssumption>();
-                                    tagAssumptions.put(eValue1, assumptionList);
-                                }
-                                assumptionList.add(tagAssumption);
+
+                                identifications.add(id);
+
+                                hitRanking.add(p, proteinMax, nSE, peptideAssumption1);
                             }
                         }
-                        if (bestPeptideFound) {
-                            break;
+                    } else if (assumption1 instanceof TagAssumption) {
+                        TagAssumption tagAssumption = (TagAssumption) assumption1;
+                        ArrayList<TagAssumption> assumptionList = tagAssumptions.get(eValue1);
+                        if (assumptionList == null) {
+                            assumptionList = new ArrayList<TagAssumption>();
+                            tagAssumptions.put(eValue1, assumptionList);
                         }
+                        assumptionList.add(tagAssumption);
                     }
                 }
+                if (bestPeptideFound) {
+                    break;
+                }
+            }
+        }
 
-                SpectrumMatch spectrumMatch = new SpectrumMatch(spectrumKey);
-                if (!peptideAssumptions.isEmpty()) {
+        SpectrumMatch spectrumMatch = new SpectrumMatch(spectrumKey);
+        if (!hitRanking.isEmpty()) {
 
-                    PeptideAssumption bestPeptideAssumption = null;
-                    ArrayList<Double> ps = new ArrayList<Double>(peptideAssumptions.keySet());
-                    Collections.sort(ps);
-                    double retainedP = 0;
+            PeptideAssumption bestPeptideAssumption = hitRanking.getBestHit(spectrumKey, spectrumAnnotator, identificationParameters);
+            double retainedP = hitRanking.getBestHitP();
 
-                    for (double p : ps) {
+            if (bestPeptideAssumption != null) {
 
-                        retainedP = p;
-                        HashMap<Integer, HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>>> pMap = peptideAssumptions.get(p);
-                        ArrayList<Integer> proteinMaxs = new ArrayList<Integer>(pMap.keySet());
-                        Collections.sort(proteinMaxs, Collections.reverseOrder());
+                if (multiSE) {
 
-                        for (int proteinMax : proteinMaxs) {
+                    // try to find the most likely modification localization based on the search engine results
+                    HashMap<PeptideAssumption, ArrayList<Double>> assumptionPEPs = new HashMap<PeptideAssumption, ArrayList<Double>>();
+                    String bestAssumptionKey = bestPeptideAssumption.getPeptide().getMatchingKey(sequenceMatchingPreferences);
 
-                            HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>> proteinMaxMap = pMap.get(proteinMax);
-                            ArrayList<Integer> nSEs = new ArrayList<Integer>(proteinMaxMap.keySet());
-                            Collections.sort(nSEs, Collections.reverseOrder());
+                    for (int searchEngine : assumptions.keySet()) {
 
-                            for (int nSE : nSEs) {
+                        boolean found = false;
+                        HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> advocateMap = assumptions.get(searchEngine);
+                        ArrayList<Double> eValues = new ArrayList<Double>(advocateMap.keySet());
+                        Collections.sort(eValues);
 
-                                HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>> nSeMap = proteinMaxMap.get(nSE);
-                                ArrayList<Integer> coverages = new ArrayList<Integer>(nSeMap.keySet());
-                                Collections.sort(coverages, Collections.reverseOrder());
+                        for (double eValue : eValues) {
+                            for (SpectrumIdentificationAssumption assumption : advocateMap.get(eValue)) {
 
-                                for (Integer coverage : coverages) {
+                                if (assumption instanceof PeptideAssumption) {
 
-                                    HashMap<Double, HashMap<String, PeptideAssumption>> coverageMap = nSeMap.get(coverage);
-                                    ArrayList<Double> minErrors = new ArrayList<Double>(coverageMap.keySet());
-                                    Collections.sort(minErrors);
+                                    PeptideAssumption peptideAssumption = (PeptideAssumption) assumption;
 
-                                    for (double minError : minErrors) {
+                                    if (peptideAssumption.getPeptide().getMatchingKey(sequenceMatchingPreferences).equals(bestAssumptionKey)) {
 
-                                        HashMap<String, PeptideAssumption> bestPeptideAssumptions = coverageMap.get(minError);
-                                        ArrayList<String> sequences = new ArrayList<String>(bestPeptideAssumptions.keySet());
-                                        Collections.sort(sequences);
+                                        found = true;
+                                        boolean found2 = false;
 
-                                        for (String sequence : sequences) {
-                                            PeptideAssumption peptideAssumption = bestPeptideAssumptions.get(sequence);
-                                            if (idFilter.validateProteins(peptideAssumption.getPeptide(), sequenceMatchingPreferences)) {
-                                                bestPeptideAssumption = peptideAssumption;
+                                        for (PeptideAssumption assumption1 : assumptionPEPs.keySet()) {
+                                            if (assumption1.getPeptide().sameModificationsAs(peptideAssumption.getPeptide())) {
+                                                found2 = true;
+                                                psParameter = (PSParameter) assumption.getUrParam(psParameter);
+                                                ArrayList<Double> peps = assumptionPEPs.get(assumption1);
+                                                peps.add(psParameter.getSearchEngineProbability());
                                                 break;
                                             }
                                         }
-                                        if (bestPeptideAssumption != null) {
-                                            break;
+
+                                        if (!found2) {
+                                            ArrayList<Double> peps = new ArrayList<Double>(1);
+                                            assumptionPEPs.put(peptideAssumption, peps);
+                                            psParameter = (PSParameter) assumption.getUrParam(psParameter);
+                                            peps.add(psParameter.getSearchEngineProbability());
                                         }
                                     }
-                                    if (bestPeptideAssumption != null) {
-                                        break;
-                                    }
-                                }
-                                if (bestPeptideAssumption != null) {
-                                    break;
                                 }
                             }
-                            if (bestPeptideAssumption != null) {
+
+                            if (found) {
                                 break;
                             }
                         }
-                        if (bestPeptideAssumption != null) {
-                            break;
-                        }
                     }
-                    if (bestPeptideAssumption != null) {
-
-                        if (multiSE) {
-
-                            // try to find the most likely modification localization based on the search engine results
-                            HashMap<PeptideAssumption, ArrayList<Double>> assumptionPEPs = new HashMap<PeptideAssumption, ArrayList<Double>>();
-                            String bestAssumptionKey = bestPeptideAssumption.getPeptide().getMatchingKey(sequenceMatchingPreferences);
-
-                            for (int searchEngine : assumptions.keySet()) {
-
-                                boolean found = false;
-                                HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> advocateMap = assumptions.get(searchEngine);
-                                ArrayList<Double> eValues = new ArrayList<Double>(advocateMap.keySet());
-                                Collections.sort(eValues);
-
-                                for (double eValue : eValues) {
-                                    for (SpectrumIdentificationAssumption assumption : advocateMap.get(eValue)) {
-
-                                        if (assumption instanceof PeptideAssumption) {
-
-                                            PeptideAssumption peptideAssumption = (PeptideAssumption) assumption;
-
-                                            if (peptideAssumption.getPeptide().getMatchingKey(sequenceMatchingPreferences).equals(bestAssumptionKey)) {
-
-                                                found = true;
-                                                boolean found2 = false;
-
-                                                for (PeptideAssumption assumption1 : assumptionPEPs.keySet()) {
-                                                    if (assumption1.getPeptide().sameModificationsAs(peptideAssumption.getPeptide())) {
-                                                        found2 = true;
-                                                        psParameter = (PSParameter) assumption.getUrParam(psParameter);
-                                                        ArrayList<Double> peps = assumptionPEPs.get(assumption1);
-                                                        peps.add(psParameter.getSearchEngineProbability());
-                                                        break;
-                                                    }
-                                                }
-
-                                                if (!found2) {
-                                                    ArrayList<Double> peps = new ArrayList<Double>(1);
-                                                    assumptionPEPs.put(peptideAssumption, peps);
-                                                    psParameter = (PSParameter) assumption.getUrParam(psParameter);
-                                                    peps.add(psParameter.getSearchEngineProbability());
-                                                }
-                                            }
-                                        }
-                                    }
-
-                                    if (found) {
-                                        break;
-                                    }
-                                }
-                            }
 
-                            Double bestSeP = null;
-                            int nSe = -1;
+                    Double bestSeP = null;
+                    int nSe = -1;
 
-                            for (PeptideAssumption peptideAssumption : assumptionPEPs.keySet()) {
+                    for (PeptideAssumption peptideAssumption : assumptionPEPs.keySet()) {
 
-                                ArrayList<Double> peps = assumptionPEPs.get(peptideAssumption);
-                                Double sep = Collections.min(peps);
+                        ArrayList<Double> peps = assumptionPEPs.get(peptideAssumption);
+                        Double sep = Collections.min(peps);
 
-                                if (bestSeP == null || bestSeP > sep) {
-                                    bestSeP = sep;
-                                    nSe = peps.size();
-                                    bestPeptideAssumption = peptideAssumption;
-                                } else if (peps.size() > nSe) {
-                                    if (sep != null && (Math.abs(sep - bestSeP) <= 1e-10)) {
-                                        nSe = peps.size();
-                                        bestPeptideAssumption = peptideAssumption;
-                                    }
-                                }
-                            }
-                        }
-
-                        // create a PeptideShaker match based on the best search engine match
-                        Peptide sePeptide = bestPeptideAssumption.getPeptide();
-                        ArrayList<String> psProteins = new ArrayList<String>(sePeptide.getParentProteins(sequenceMatchingPreferences));
-                        ArrayList<ModificationMatch> psModificationMatches = null;
-                        if (sePeptide.isModified()) {
-                            psModificationMatches = new ArrayList<ModificationMatch>(sePeptide.getNModifications());
-                            for (ModificationMatch seModMatch : sePeptide.getModificationMatches()) {
-                                psModificationMatches.add(new ModificationMatch(seModMatch.getTheoreticPtm(), seModMatch.isVariable(), seModMatch.getModificationSite()));
+                        if (bestSeP == null || bestSeP > sep) {
+                            bestSeP = sep;
+                            nSe = peps.size();
+                            bestPeptideAssumption = peptideAssumption;
+                        } else if (peps.size() > nSe) {
+                            if (sep != null && (Math.abs(sep - bestSeP) <= 1e-10)) {
+                                nSe = peps.size();
+                                bestPeptideAssumption = peptideAssumption;
                             }
                         }
+                    }
+                }
 
-                        Peptide psPeptide = new Peptide(sePeptide.getSequence(), psModificationMatches);
-                        psPeptide.setParentProteins(psProteins);
-                        PeptideAssumption psAssumption = new PeptideAssumption(psPeptide, 1, Advocate.peptideShaker.getIndex(), bestPeptideAssumption.getIdentificationCharge(), retainedP);
-
-                        spectrumMatch.setBestPeptideAssumption(psAssumption);
-
-                        if (orderedPsmMap != null) {
-                            String peptideKey = psPeptide.getMatchingKey(sequenceMatchingPreferences);
-                            ArrayList<String> spectrumKeys = keysMap.get(peptideKey);
-                            if (spectrumKeys == null) {
-                                spectrumKeys = new ArrayList<String>();
-                                keysMap.put(peptideKey, spectrumKeys);
-                            }
-                            spectrumKeys.add(spectrumKey);
-                        }
+                // create a PeptideShaker match based on the best search engine match
+                Peptide sePeptide = bestPeptideAssumption.getPeptide();
+                ArrayList<String> psProteins = new ArrayList<String>(sePeptide.getParentProteins(sequenceMatchingPreferences));
+                ArrayList<ModificationMatch> psModificationMatches = null;
+                if (sePeptide.isModified()) {
+                    psModificationMatches = new ArrayList<ModificationMatch>(sePeptide.getNModifications());
+                    for (ModificationMatch seModMatch : sePeptide.getModificationMatches()) {
+                        psModificationMatches.add(new ModificationMatch(seModMatch.getTheoreticPtm(), seModMatch.isVariable(), seModMatch.getModificationSite()));
+                    }
+                }
 
-                        psParameter = new PSParameter();
-                        psParameter.setSpectrumProbabilityScore(retainedP);
+                Peptide psPeptide = new Peptide(sePeptide.getSequence(), psModificationMatches);
+                psPeptide.setParentProteins(psProteins);
+                PeptideAssumption psAssumption = new PeptideAssumption(psPeptide, 1, Advocate.peptideShaker.getIndex(), bestPeptideAssumption.getIdentificationCharge(), retainedP);
 
-                        PSParameter matchParameter = (PSParameter) bestPeptideAssumption.getUrParam(psParameter);
-                        psParameter.setSearchEngineProbability(matchParameter.getSearchEngineProbability());
-                        psParameter.setAlgorithmDeltaPEP(matchParameter.getAlgorithmDeltaPEP());
-                        psParameter.setDeltaPEP(matchParameter.getDeltaPEP());
+                spectrumMatch.setBestPeptideAssumption(psAssumption);
 
-                        matchesValidator.getPsmMap().addPoint(psParameter.getPsmProbabilityScore(), spectrumMatch, sequenceMatchingPreferences);
-                        String validationMapKey = "";
-                        if (idMatchValidationPreferences.getSeparatePsms()) {
-                            validationMapKey += psAssumption.getIdentificationCharge().value;
-                        }
-                        psParameter.setSpecificMapKey(validationMapKey);
-                        identification.addSpectrumMatchParameter(spectrumKey, psParameter);
-                        identification.updateSpectrumMatch(spectrumMatch);
-                    }
-                }
-                if (!tagAssumptions.isEmpty()) {
-                    ArrayList<Double> evalues = new ArrayList<Double>(tagAssumptions.keySet());
-                    Double bestEvalue = Collections.min(evalues);
-                    TagAssumption bestAssumption = tagAssumptions.get(bestEvalue).get(0);
-                    spectrumMatch.setBestTagAssumption(bestAssumption);
-                    identification.updateSpectrumMatch(spectrumMatch);
-                    if (spectrumMatch.getBestPeptideAssumption() == null) {
-                        psParameter = new PSParameter();
-                        if (!multiSE) {
-                            psParameter.setSpectrumProbabilityScore(bestEvalue);
+                if (keysMap != null) {
+                    String peptideKey = psPeptide.getMatchingKey(sequenceMatchingPreferences);
+                    synchronized (keysMap) {
+                        ArrayList<String> spectrumKeys = keysMap.get(peptideKey);
+                        if (spectrumKeys == null) {
+                            spectrumKeys = new ArrayList<String>();
+                            keysMap.put(peptideKey, spectrumKeys);
                         }
-                        PSParameter matchParameter = (PSParameter) bestAssumption.getUrParam(psParameter);
-                        psParameter.setSearchEngineProbability(matchParameter.getSearchEngineProbability());
-                        psParameter.setAlgorithmDeltaPEP(matchParameter.getAlgorithmDeltaPEP());
-                        psParameter.setDeltaPEP(matchParameter.getDeltaPEP());
-                        psParameter.setSpecificMapKey(spectrumMatch.getBestTagAssumption().getIdentificationCharge().value + "");
-                        identification.addSpectrumMatchParameter(spectrumKey, psParameter);
+                        spectrumKeys.add(spectrumKey);
                     }
                 }
-                waitingHandler.increaseSecondaryProgressCounter();
-                if (waitingHandler.isRunCanceled()) {
-                    return;
-                }
-            }
 
-            if (orderedPsmMap != null) {
-                ArrayList<String> orderedKeys = new ArrayList<String>(identification.getSpectrumIdentification(spectrumFileName).size());
-                for (ArrayList<String> keys : keysMap.values()) {
-                    orderedKeys.addAll(keys);
-                }
-                orderedPsmMap.put(spectrumFileName, orderedKeys);
+                psParameter = new PSParameter();
+                psParameter.setSpectrumProbabilityScore(retainedP);
+
+                PSParameter matchParameter = (PSParameter) bestPeptideAssumption.getUrParam(psParameter);
+                psParameter.setSearchEngineProbability(matchParameter.getSearchEngineProbability());
+                psParameter.setAlgorithmDeltaPEP(matchParameter.getAlgorithmDeltaPEP());
+                psParameter.setDeltaPEP(matchParameter.getDeltaPEP());
 
-                if (MemoryConsumptionStatus.memoryUsed() > 0.9) {
-                    orderedPsmMap = null;
+                matchesValidator.getPsmMap().addPoint(psParameter.getPsmProbabilityScore(), spectrumMatch, sequenceMatchingPreferences);
+                String validationMapKey = "";
+                if (idMatchValidationPreferences.getSeparatePsms()) {
+                    validationMapKey += psAssumption.getIdentificationCharge().value;
                 }
+                psParameter.setSpecificMapKey(validationMapKey);
+                identification.addSpectrumMatchParameter(spectrumKey, psParameter);
+                identification.updateSpectrumMatch(spectrumMatch);
             }
         }
-
-        if (orderedPsmMap != null) {
-            metrics.setOrderedSpectrumKeys(orderedPsmMap);
+        if (!tagAssumptions.isEmpty()) {
+            ArrayList<Double> evalues = new ArrayList<Double>(tagAssumptions.keySet());
+            Double bestEvalue = Collections.min(evalues);
+            TagAssumption bestAssumption = tagAssumptions.get(bestEvalue).get(0);
+            spectrumMatch.setBestTagAssumption(bestAssumption);
+            identification.updateSpectrumMatch(spectrumMatch);
+            if (spectrumMatch.getBestPeptideAssumption() == null) {
+                psParameter = new PSParameter();
+                if (!multiSE) {
+                    psParameter.setSpectrumProbabilityScore(bestEvalue);
+                }
+                PSParameter matchParameter = (PSParameter) bestAssumption.getUrParam(psParameter);
+                psParameter.setSearchEngineProbability(matchParameter.getSearchEngineProbability());
+                psParameter.setAlgorithmDeltaPEP(matchParameter.getAlgorithmDeltaPEP());
+                psParameter.setDeltaPEP(matchParameter.getDeltaPEP());
+                psParameter.setSpecificMapKey(spectrumMatch.getBestTagAssumption().getIdentificationCharge().value + "");
+                identification.addSpectrumMatchParameter(spectrumKey, psParameter);
+            }
         }
-
-        // the protein count map is no longer needed
-        proteinCount.clear();
-
-        waitingHandler.setSecondaryProgressCounterIndeterminate(true);
     }
 
     /**
@@ -687,4 +588,366 @@ public class BestMatchSelection {
         Collections.sort(sequences);
         return sequenceToPeptideAssumptionsMap.get(sequences.get(0));
     }
+
+    /**
+     * Ranking of the candidate first hits of a spectrum. The candidates are
+     * stored in a flat array of records which is reused from one spectrum to
+     * the other. The number of annotated amino acids and the mass error are
+     * only computed for candidates which cannot be distinguished by the
+     * preceding criteria.
+     *
+     * @author Marc Vaudel
+     */
+    private class HitRanking {
+
+        /**
+         * The candidates, only the first size records are in use.
+         */
+        private Candidate[] candidates = new Candidate[8];
+        /**
+         * The number of candidates.
+         */
+        private int size = 0;
+        /**
+         * The score of the best hit found during the last selection.
+         */
+        private double bestHitP = 0;
+
+        /**
+         * Clears the candidates.
+         */
+        public void clear() {
+            for (int i = 0; i < size; i++) {
+                candidates[i].peptideAssumption = null;
+                candidates[i].sequence = null;
+            }
+            size = 0;
+        }
+
+        /**
+         * Indicates whether the ranking contains candidates.
+         *
+         * @return a boolean indicating whether the ranking contains candidates
+         */
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * Adds a candidate.
+         *
+         * @param p the score of the candidate
+         * @param proteinMax the maximal number of first hits of the proteins
+         * of the candidate
+         * @param nSE the number of search engines supporting the candidate
+         * @param peptideAssumption the peptide assumption
+         */
+        public void add(double p, int proteinMax, int nSE, PeptideAssumption peptideAssumption) {
+            if (size == candidates.length) {
+                candidates = Arrays.copyOf(candidates, 2 * size);
+            }
+            Candidate candidate = candidates[size];
+            if (candidate == null) {
+                candidate = new Candidate();
+                candidates[size] = candidate;
+            }
+            candidate.p = p;
+            candidate.proteinMax = proteinMax;
+            candidate.nSE = nSE;
+            candidate.coverage = -1;
+            candidate.massError = -1;
+            candidate.sequence = null;
+            candidate.index = size;
+            candidate.peptideAssumption = peptideAssumption;
+            size++;
+        }
+
+        /**
+         * Returns the best candidate passing the protein filter, null if none.
+         * The candidates are ranked by score, maximal protein count, number of
+         * search engines, number of annotated amino acids, mass error and
+         * sequence. When two candidates have the same sequence, the last added
+         * is retained.
+         *
+         * @param spectrumKey the key of the spectrum
+         * @param spectrumAnnotator the spectrum annotator to use
+         * @param identificationParameters the identification parameters
+         *
+         * @return the best candidate
+         *
+         * @throws java.io.IOException exception thrown whenever an error
+         * occurred while reading an external file
+         * @throws java.lang.InterruptedException exception thrown whenever a
+         * threading error occurred
+         * @throws uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException exception
+         * thrown whenever an error occurred while reading an mzML file
+         * @throws java.lang.ClassNotFoundException exception thrown whenever an
+         * error occurred while deserializing an object
+         * @throws java.sql.SQLException exception thrown whenever an error
+         * occurred while interacting with the back-end database
+         */
+        public PeptideAssumption getBestHit(String spectrumKey, PeptideSpectrumAnnotator spectrumAnnotator, IdentificationParameters identificationParameters)
+                throws IOException, InterruptedException, MzMLUnmarshallerException, ClassNotFoundException, SQLException {
+
+            SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
+            PeptideAssumptionFilter idFilter = identificationParameters.getPeptideAssumptionFilter();
+            SearchParameters searchParameters = identificationParameters.getSearchParameters();
+            AnnotationSettings annotationPreferences = identificationParameters.getAnnotationPreferences();
+
+            Arrays.sort(candidates, 0, size, Candidate.SCORE_COMPARATOR);
+
+            MSnSpectrum spectrum = null;
+            int groupStart = 0;
+
+            while (groupStart < size) {
+
+                int groupEnd = groupStart + 1;
+                while (groupEnd < size && Candidate.SCORE_COMPARATOR.compare(candidates[groupStart], candidates[groupEnd]) == 0) {
+                    groupEnd++;
+                }
+
+                if (groupEnd - groupStart > 1) {
+
+                    if (spectrum == null) {
+                        spectrum = (MSnSpectrum) spectrumFactory.getSpectrum(spectrumKey);
+                    }
+
+                    for (int i = groupStart; i < groupEnd; i++) {
+                        Candidate candidate = candidates[i];
+                        SpecificAnnotationSettings specificAnnotationPreferences = annotationPreferences.getSpecificAnnotationPreferences(spectrum.getSpectrumKey(), candidate.peptideAssumption, identificationParameters.getSequenceMatchingPreferences(), identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences());
+                        HashMap<Integer, ArrayList<IonMatch>> coveredAminoAcids = spectrumAnnotator.getCoveredAminoAcids(annotationPreferences, specificAnnotationPreferences, spectrum, candidate.peptideAssumption.getPeptide());
+                        candidate.coverage = coveredAminoAcids.size();
+                    }
+                    Arrays.sort(candidates, groupStart, groupEnd, Candidate.COVERAGE_COMPARATOR);
+
+                    int subGroupStart = groupStart;
+                    while (subGroupStart < groupEnd) {
+                        int subGroupEnd = subGroupStart + 1;
+                        while (subGroupEnd < groupEnd && candidates[subGroupEnd].coverage == candidates[subGroupStart].coverage) {
+                            subGroupEnd++;
+                        }
+                        if (subGroupEnd - subGroupStart > 1) {
+                            for (int i = subGroupStart; i < subGroupEnd; i++) {
+                                Candidate candidate = candidates[i];
+                                candidate.massError = Math.abs(candidate.peptideAssumption.getDeltaMass(spectrum.getPrecursor().getMz(), searchParameters.isPrecursorAccuracyTypePpm(), searchParameters.getMinIsotopicCorrection(), searchParameters.getMaxIsotopicCorrection()));
+                                candidate.sequence = candidate.peptideAssumption.getPeptide().getSequenceWithLowerCasePtms();
+                            }
+                            Arrays.sort(candidates, subGroupStart, subGroupEnd, Candidate.MASS_ERROR_COMPARATOR);
+                        }
+                        subGroupStart = subGroupEnd;
+                    }
+                }
+
+                for (int i = groupStart; i < groupEnd; i++) {
+                    Candidate candidate = candidates[i];
+                    if (i > groupStart && candidate.isShadowedBy(candidates[i - 1])) {
+                        continue;
+                    }
+                    if (idFilter.validateProteins(candidate.peptideAssumption.getPeptide(), sequenceMatchingPreferences)) {
+                        bestHitP = candidate.p;
+                        return candidate.peptideAssumption;
+                    }
+                }
+
+                groupStart = groupEnd;
+            }
+
+            return null;
+        }
+
+        /**
+         * Returns the score of the best hit found during the last selection.
+         *
+         * @return the score of the best hit found during the last selection
+         */
+        public double getBestHitP() {
+            return bestHitP;
+        }
+    }
+
+    /**
+     * A candidate first hit.
+     *
+     * @author Marc Vaudel
+     */
+    private static class Candidate {
+
+        /**
+         * Comparator sorting the candidates by ascending score, descending
+         * maximal protein count and descending number of search engines.
+         */
+        private static final Comparator<Candidate> SCORE_COMPARATOR = new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate o1, Candidate o2) {
+                int result = Double.compare(o1.p, o2.p);
+                if (result != 0) {
+                    return result;
+                }
+                if (o1.proteinMax != o2.proteinMax) {
+                    return o2.proteinMax - o1.proteinMax;
+                }
+                return o2.nSE - o1.nSE;
+            }
+        };
+        /**
+         * Comparator sorting the candidates by descending number of annotated
+         * amino acids.
+         */
+        private static final Comparator<Candidate> COVERAGE_COMPARATOR = new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate o1, Candidate o2) {
+                return o2.coverage - o1.coverage;
+            }
+        };
+        /**
+         * Comparator sorting the candidates by ascending mass error, sequence
+         * and descending order of addition.
+         */
+        private static final Comparator<Candidate> MASS_ERROR_COMPARATOR = new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate o1, Candidate o2) {
+                int result = Double.compare(o1.massError, o2.massError);
+                if (result != 0) {
+                    return result;
+                }
+                result = o1.sequence.compareTo(o2.sequence);
+                if (result != 0) {
+                    return result;
+                }
+                return o2.index - o1.index;
+            }
+        };
+        /**
+         * The score.
+         */
+        private double p;
+        /**
+         * The maximal number of first hits of the proteins.
+         */
+        private int proteinMax;
+        /**
+         * The number of search engines supporting the candidate.
+         */
+        private int nSE;
+        /**
+         * The number of annotated amino acids, -1 if not computed.
+         */
+        private int coverage;
+        /**
+         * The absolute precursor mass error, -1 if not computed.
+         */
+        private double massError;
+        /**
+         * The sequence with modifications in lower case, null if not computed.
+         */
+        private String sequence;
+        /**
+         * The order of addition of the candidate.
+         */
+        private int index;
+        /**
+         * The peptide assumption.
+         */
+        private PeptideAssumption peptideAssumption;
+
+        /**
+         * Indicates whether this candidate is hidden by the given candidate,
+         * i.e. has the same ranking criteria and sequence.
+         *
+         * @param candidate the candidate ranked before this candidate
+         *
+         * @return a boolean indicating whether this candidate is hidden by the
+         * given candidate
+         */
+        public boolean isShadowedBy(Candidate candidate) {
+            return sequence != null && SCORE_COMPARATOR.compare(this, candidate) == 0
+                    && coverage == candidate.coverage
+                    && Double.compare(massError, candidate.massError) == 0
+                    && sequence.equals(candidate.sequence);
+        }
+    }
+
+    /**
+     * Runnable selecting the best hit of the spectra.
+     *
+     * @author Marc Vaudel
+     */
+    private class BestMatchSelectionRunnable implements Runnable {
+
+        /**
+         * An iterator for the PSMs.
+         */
+        private PsmIterator psmIterator;
+        /**
+         * Boolean indicating whether multiple search engines were used.
+         */
+        private boolean multiSE;
+        /**
+         * Map of the spectrum keys grouped by peptide, null if not needed.
+         */
+        private HashMap<String, ArrayList<String>> keysMap;
+        /**
+         * The identification parameters.
+         */
+        private IdentificationParameters identificationParameters;
+        /**
+         * The waiting handler.
+         */
+        private WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private ExceptionHandler exceptionHandler;
+        /**
+         * The ranking of the candidate hits.
+         */
+        private HitRanking hitRanking = new HitRanking();
+        /**
+         * The peptide spectrum annotator.
+         */
+        private PeptideSpectrumAnnotator spectrumAnnotator = new PeptideSpectrumAnnotator();
+        /**
+         * The PSParameter used to retrieve the scores of the assumptions.
+         */
+        private PSParameter psParameter = new PSParameter();
+
+        /**
+         * Constructor.
+         *
+         * @param psmIterator a PSM iterator
+         * @param multiSE boolean indicating whether multiple search engines
+         * were used
+         * @param keysMap map of the spectrum keys grouped by peptide, null if
+         * not needed
+         * @param identificationParameters the identification parameters
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public BestMatchSelectionRunnable(PsmIterator psmIterator, boolean multiSE, HashMap<String, ArrayList<String>> keysMap,
+                IdentificationParameters identificationParameters, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.psmIterator = psmIterator;
+            this.multiSE = multiSE;
+            this.keysMap = keysMap;
+            this.identificationParameters = identificationParameters;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (psmIterator.hasNext() && !waitingHandler.isRunCanceled()) {
+                    SpectrumMatch advocateMatch = psmIterator.next();
+                    if (advocateMatch != null) {
+                        selectBestHit(advocateMatch.getKey(), multiSE, keysMap, hitRanking, spectrumAnnotator, psParameter, identificationParameters);
+                        waitingHandler.increaseSecondaryProgressCounter();
+                    }
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                waitingHandler.setRunCanceled();
+            }
+        }
+    }
 }
@@ -24,18 +24,17 @@ import com.compomics.util.experiment.massspectrometry.Spectrum;
 import com.compomics.util.math.HistogramUtils;
 import com.compomics.util.preferences.ProcessingPreferences;
 import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.peptideshaker.PeptideShaker;
 import eu.isas.peptideshaker.parameters.PSParameter;
 import eu.isas.peptideshaker.scoring.maps.InputMap;
 import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyMap;
 import eu.isas.peptideshaker.utils.Metrics;
+import eu.isas.peptideshaker.utils.ProcessingStage;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 import org.apache.commons.math.util.FastMath;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 
@@ -93,22 +92,19 @@ public class PsmScorer {
         waitingHandler.setMaxSecondaryProgressCounter(identification.getSpectrumIdentificationSize());
 
         for (String spectrumFileName : identification.getSpectrumFiles()) {
-            ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+            ProcessingStage stage = PeptideShaker.getProcessingScheduler(processingPreferences).newStage("PSM scoring", waitingHandler);
             PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, null, true, null);
             ArrayList<PsmScorerRunnable> psmScorerRunnables = new ArrayList<PsmScorerRunnable>(processingPreferences.getnThreads());
-            for (int i = 1; i <= processingPreferences.getnThreads() && !waitingHandler.isRunCanceled(); i++) {
+            for (int i = 1; i <= processingPreferences.getnThreads(); i++) {
                 PsmScorerRunnable runnable = new PsmScorerRunnable(psmIterator, identification, inputMap, identificationParameters, waitingHandler, exceptionHandler);
                 psmScorerRunnables.add(runnable);
-                pool.submit(runnable);
+                if (!stage.submit(runnable)) {
+                    break;
+                }
             }
-            if (waitingHandler.isRunCanceled()) {
-                pool.shutdownNow();
+            if (!stage.awaitCompletion()) {
                 return;
             }
-            pool.shutdown();
-            if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
-                throw new InterruptedException("PSM scoring timed out. Please contact the developers.");
-            }
 
             ArrayList<HashMap<Double, Integer>> aHistograms = new ArrayList<HashMap<Double, Integer>>(processingPreferences.getnThreads());
             ArrayList<HashMap<Double, Integer>> bHistograms = new ArrayList<HashMap<Double, Integer>>(processingPreferences.getnThreads());
@@ -133,19 +129,16 @@ public class PsmScorer {
                 }
                 ArrayList<String> spectrumKeys = new ArrayList<String>(missingValuesMap.keySet());
                 psmIterator = identification.getPsmIterator(spectrumKeys, null, true, null);
-                pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
-                for (int i = 1; i <= processingPreferences.getnThreads() && !waitingHandler.isRunCanceled(); i++) {
+                stage = PeptideShaker.getProcessingScheduler(processingPreferences).newStage("Missing e-values estimation", waitingHandler);
+                for (int i = 1; i <= processingPreferences.getnThreads(); i++) {
                     MissingEValueEstimatorRunnable runnable = new MissingEValueEstimatorRunnable(missingValuesMap, defaultA, defaultB, psmIterator, identification, inputMap, identificationParameters, waitingHandler, exceptionHandler);
-                    pool.submit(runnable);
+                    if (!stage.submit(runnable)) {
+                        break;
+                    }
                 }
-                if (waitingHandler.isRunCanceled()) {
-                    pool.shutdownNow();
+                if (!stage.awaitCompletion()) {
                     return;
                 }
-                pool.shutdown();
-                if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
-                    throw new InterruptedException("PSM scoring timed out. Please contact the developers.");
-                }
             }
         }
         
@@ -1,8 +1,11 @@
 package eu.isas.peptideshaker.scoring.targetdecoy;
 
 import com.compomics.util.waiting.WaitingHandler;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -66,6 +69,27 @@ public class TargetDecoyMap implements Serializable {
      * The results computed on this map.
      */
     private TargetDecoyResults targetDecoyResults = new TargetDecoyResults();
+    /**
+     * Primitive copy of the sorted scores and probabilities of the map used
+     * for fast probability lookups. Null if the map was modified since the
+     * last copy.
+     */
+    private transient volatile FrozenProbabilities frozenProbabilities = null;
+    /**
+     * The scores and probabilities which were last attached to the matches.
+     * Null if not set since the map was loaded.
+     */
+    private transient volatile FrozenProbabilities appliedProbabilities = null;
+    /**
+     * The number of stripes of the pending counts. Must be a power of two.
+     */
+    private static final int N_STRIPES = 16;
+    /**
+     * Counts added and removed since the last merge in the hit map, striped
+     * by score so that threads filling the map concurrently rarely wait for
+     * each other. Null if not created since the map was loaded.
+     */
+    private transient volatile PendingCounts[] pendingCounts = null;
 
     /**
      * Constructor.
@@ -90,25 +114,165 @@ public class TargetDecoyMap implements Serializable {
      * @return the estimated posterior error probability
      */
     public Double getProbability(double score) {
-        TargetDecoyPoint point = hitMap.get(score);
-        if (point != null) {
-            return point.p;
-        } else if (score >= scores.get(scores.size() - 1)) {
-            return hitMap.get(scores.get(scores.size() - 1)).p;
-        } else {
-            int indexDown = 0;
-            int indexUp = scores.size() - 1;
-            int indexTemp;
-            while (indexUp - indexDown > 1) {
-                indexTemp = (indexUp - indexDown) / 2 + indexDown;
-                if (scores.get(indexTemp) > score) {
-                    indexUp = indexTemp;
-                } else {
-                    indexDown = indexTemp;
+        FrozenProbabilities frozen = frozenProbabilities;
+        if (frozen == null) {
+            frozen = freeze();
+        }
+        return frozen.getProbability(score);
+    }
+
+    /**
+     * Marks the current probabilities as attached to the matches. The
+     * probabilities estimated afterwards are compared to these in
+     * isProbabilityChanged.
+     */
+    public void setProbabilitiesApplied() {
+        FrozenProbabilities frozen = freeze();
+        frozen.changedScoreRange = new double[0];
+        appliedProbabilities = frozen;
+    }
+
+    /**
+     * Indicates whether the probability at the given score might differ from
+     * the one attached to the matches, i.e. whether the score is in the range
+     * of scores affected by the modifications of the map since the last call
+     * to setProbabilitiesApplied. Returns true if no probability was marked as
+     * applied.
+     *
+     * @param score the given score
+     *
+     * @return a boolean indicating whether the probability at the given score
+     * might differ from the one attached to the matches
+     */
+    public boolean isProbabilityChanged(double score) {
+        double[] range = getChangedScoreRange();
+        return range.length == 2 && score >= range[0] && score <= range[1];
+    }
+
+    /**
+     * Indicates whether the probability might differ from the one attached to
+     * the matches for any score.
+     *
+     * @return a boolean indicating whether the probability might differ from
+     * the one attached to the matches for any score
+     */
+    public boolean hasChangedProbabilities() {
+        return getChangedScoreRange().length == 2;
+    }
+
+    /**
+     * Returns the range of scores where the probability might differ from the
+     * one attached to the matches. See isProbabilityChanged.
+     *
+     * @return the range of scores where the probability might differ: {min,
+     * max}, empty if no probability changed
+     */
+    public double[] getChangedScoreRange() {
+        FrozenProbabilities frozen = frozenProbabilities;
+        if (frozen == null) {
+            frozen = freeze();
+        }
+        double[] range = frozen.changedScoreRange;
+        if (range == null) {
+            range = getChangedScoreRange(appliedProbabilities, frozen);
+            frozen.changedScoreRange = range;
+        }
+        return range;
+    }
+
+    /**
+     * Returns the range of scores where the probabilities of two estimations
+     * differ. A point is considered changed when its probability changed or
+     * when it is found in only one of the estimations. The range is extended
+     * to the neighboring points to account for the interpolation of the
+     * probabilities between points.
+     *
+     * @param previous the previous estimation, can be null
+     * @param current the current estimation
+     *
+     * @return the range of scores where the probabilities changed: {min, max},
+     * empty if no probability changed
+     */
+    private static double[] getChangedScoreRange(FrozenProbabilities previous, FrozenProbabilities current) {
+
+        if (previous == null) {
+            return new double[]{Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY};
+        }
+
+        double[] previousScores = previous.scores;
+        double[] currentScores = current.scores;
+        int nUnion = 0;
+        int firstChanged = -1;
+        int lastChanged = -1;
+        double beforeFirstChanged = Double.NEGATIVE_INFINITY;
+        double afterLastChanged = Double.POSITIVE_INFINITY;
+        double lastScore = Double.NEGATIVE_INFINITY;
+        int i = 0, j = 0;
+
+        while (i < previousScores.length || j < currentScores.length) {
+
+            double score;
+            boolean changed;
+            if (j >= currentScores.length || i < previousScores.length && previousScores[i] < currentScores[j]) {
+                score = previousScores[i++];
+                changed = true;
+            } else if (i >= previousScores.length || currentScores[j] < previousScores[i]) {
+                score = currentScores[j++];
+                changed = true;
+            } else {
+                score = currentScores[j];
+                changed = previous.probabilities[i++] != current.probabilities[j++];
+            }
+
+            if (changed) {
+                if (firstChanged == -1) {
+                    firstChanged = nUnion;
+                    beforeFirstChanged = lastScore;
                 }
+                lastChanged = nUnion;
+                afterLastChanged = Double.POSITIVE_INFINITY;
+            } else if (lastChanged >= 0 && lastChanged == nUnion - 1) {
+                afterLastChanged = score;
             }
-            return (hitMap.get(scores.get(indexUp)).p + hitMap.get(scores.get(indexDown)).p) / 2;
+
+            lastScore = score;
+            nUnion++;
+        }
+
+        if (firstChanged == -1) {
+            return new double[0];
         }
+
+        // scores below the first point are estimated from the first two points
+        double min = firstChanged <= 1 ? Double.NEGATIVE_INFINITY : beforeFirstChanged;
+
+        return new double[]{min, afterLastChanged};
+    }
+
+    /**
+     * Copies the scores and probabilities of the map in primitive arrays for
+     * the probability lookups.
+     *
+     * @return the primitive copy of the scores and probabilities
+     */
+    private synchronized FrozenProbabilities freeze() {
+        mergePendingCounts();
+        FrozenProbabilities frozen = frozenProbabilities;
+        if (frozen == null) {
+            if (scores == null) {
+                estimateScores();
+            }
+            double[] sortedScores = new double[scores.size()];
+            double[] probabilities = new double[scores.size()];
+            for (int i = 0; i < sortedScores.length; i++) {
+                double score = scores.get(i);
+                sortedScores[i] = score;
+                probabilities[i] = hitMap.get(score).p;
+            }
+            frozen = new FrozenProbabilities(sortedScores, probabilities);
+            frozenProbabilities = frozen;
+        }
+        return frozen;
     }
 
     /**
@@ -117,7 +281,8 @@ public class TargetDecoyMap implements Serializable {
      * @param score the given score
      * @return the number of target hits found at the given score
      */
-    public int getNTarget(double score) {
+    public synchronized int getNTarget(double score) {
+        mergePendingCounts();
         return hitMap.get(score).nTarget;
     }
 
@@ -127,26 +292,22 @@ public class TargetDecoyMap implements Serializable {
      * @param score the given score
      * @return the number of decoy hits found at the given score
      */
-    public int getNDecoy(double score) {
+    public synchronized int getNDecoy(double score) {
+        mergePendingCounts();
         return hitMap.get(score).nDecoy;
     }
 
     /**
-     * Puts a new point in the target/decoy map at the given score.
+     * Puts a new point in the target/decoy map at the given score. This
+     * method can be called concurrently by multiple threads. The hit is
+     * counted in the stripe of the score and merged in the map when the map
+     * is read.
      *
      * @param score The given score
      * @param isDecoy boolean indicating whether the hit is decoy
      */
     public void put(Double score, boolean isDecoy) {
-        TargetDecoyPoint targetDecoyPoint = hitMap.get(score);
-        if (targetDecoyPoint == null) {
-            targetDecoyPoint = createTargetDecoyPoint(score);
-        }
-        if (isDecoy) {
-            targetDecoyPoint.increaseDecoy();
-        } else {
-            targetDecoyPoint.increaseTarget();
-        }
+        count(score, isDecoy, 1);
     }
 
     /**
@@ -162,6 +323,8 @@ public class TargetDecoyMap implements Serializable {
         if (targetDecoyPoint == null) {
             targetDecoyPoint = new TargetDecoyPoint();
             hitMap.put(score, targetDecoyPoint);
+            scores = null;
+            frozenProbabilities = null;
         }
         return targetDecoyPoint;
     }
@@ -174,11 +337,76 @@ public class TargetDecoyMap implements Serializable {
      * @param isDecoy boolean indicating whether the hit is decoy
      */
     public void remove(Double score, boolean isDecoy) {
-        TargetDecoyPoint targetDecoyPoint = hitMap.get(score);
-        if (!isDecoy) {
-            targetDecoyPoint.decreaseTarget();
-        } else {
-            targetDecoyPoint.decreaseDecoy();
+        count(score, isDecoy, -1);
+    }
+
+    /**
+     * Adds the given number of hits at the given score to the pending counts.
+     *
+     * @param score the score
+     * @param isDecoy boolean indicating whether the hits are decoy
+     * @param nHits the number of hits, negative to remove hits
+     */
+    private void count(double score, boolean isDecoy, int nHits) {
+        long scoreBits = Double.doubleToLongBits(score);
+        PendingCounts stripe = getPendingCounts()[PendingCounts.hash(scoreBits) & (N_STRIPES - 1)];
+        synchronized (stripe) {
+            stripe.add(scoreBits, isDecoy, nHits);
+        }
+    }
+
+    /**
+     * Returns the stripes of the pending counts, creates them if needed.
+     *
+     * @return the stripes of the pending counts
+     */
+    private PendingCounts[] getPendingCounts() {
+        PendingCounts[] stripes = pendingCounts;
+        if (stripes == null) {
+            synchronized (this) {
+                stripes = pendingCounts;
+                if (stripes == null) {
+                    stripes = new PendingCounts[N_STRIPES];
+                    for (int i = 0; i < N_STRIPES; i++) {
+                        stripes[i] = new PendingCounts();
+                    }
+                    pendingCounts = stripes;
+                }
+            }
+        }
+        return stripes;
+    }
+
+    /**
+     * Merges the pending counts in the hit map. Counts added while merging
+     * stay pending for the next merge.
+     */
+    private synchronized void mergePendingCounts() {
+        PendingCounts[] stripes = pendingCounts;
+        if (stripes == null) {
+            return;
+        }
+        for (PendingCounts stripe : stripes) {
+            synchronized (stripe) {
+                if (stripe.size == 0) {
+                    continue;
+                }
+                for (int i = 0; i < stripe.keys.length; i++) {
+                    if (stripe.used[i]) {
+                        Double score = Double.longBitsToDouble(stripe.keys[i]);
+                        TargetDecoyPoint targetDecoyPoint = hitMap.get(score);
+                        if (targetDecoyPoint == null) {
+                            targetDecoyPoint = new TargetDecoyPoint();
+                            hitMap.put(score, targetDecoyPoint);
+                            scores = null;
+                            frozenProbabilities = null;
+                        }
+                        targetDecoyPoint.nTarget += stripe.nTarget[i];
+                        targetDecoyPoint.nDecoy += stripe.nDecoy[i];
+                    }
+                }
+                stripe.clear();
+            }
         }
     }
 
@@ -186,6 +414,7 @@ public class TargetDecoyMap implements Serializable {
      * Removes empty points and clears dependent metrics if needed.
      */
     public synchronized void cleanUp() {
+        mergePendingCounts();
         boolean removed = false;
         HashSet<Double> currentScores = new HashSet<Double>(hitMap.keySet());
         for (Double score : currentScores) {
@@ -200,17 +429,32 @@ public class TargetDecoyMap implements Serializable {
             scores = null;
             nmax = null;
             windowSize = null;
+            frozenProbabilities = null;
         }
     }
 
+    /**
+     * Clears the metrics and the window size of the map so that they are
+     * estimated anew from the current points, as for a map filled from
+     * scratch. Adding and removing points does not update the metrics, this
+     * method needs to be called when the points of a map already estimated
+     * are moved.
+     */
+    public synchronized void resetMetrics() {
+        scores = null;
+        nmax = null;
+        nTargetOnly = null;
+        windowSize = null;
+        minFDR = 1.0;
+        frozenProbabilities = null;
+    }
+
     /**
      * Estimates the metrics of the map: Nmax, NtargetOnly, minFDR. Scores of 1
      * and above will be skipped for Nmax.
      */
     private void estimateNs() {
-        if (scores == null) {
-            estimateScores();
-        }
+        TargetDecoyPoint[] points = getSortedPoints();
         boolean onlyTarget = true;
         nmax = 0;
         int targetCpt = 0;
@@ -218,8 +462,9 @@ public class TargetDecoyMap implements Serializable {
         nTargetOnly = 0;
         int targetCount = 0, decoyCount = 0;
 
-        for (double score : scores) {
-            TargetDecoyPoint point = hitMap.get(score);
+        for (int i = 0; i < points.length; i++) {
+            double score = scores.get(i);
+            TargetDecoyPoint point = points[i];
             if (onlyTarget) {
                 if (point.nDecoy > 0) {
                     nTargetOnly += point.nTarget / 2 + point.nTarget % 2;
@@ -261,6 +506,7 @@ public class TargetDecoyMap implements Serializable {
      */
     public void estimateProbabilities(WaitingHandler waitingHandler) {
 
+        mergePendingCounts();
         if (scores == null) {
             estimateScores();
         }
@@ -271,30 +517,41 @@ public class TargetDecoyMap implements Serializable {
             windowSize = nmax;
         }
 
+        frozenProbabilities = null;
+
+        TargetDecoyPoint[] points = getSortedPoints();
+        int nPoints = points.length;
+        int[] nTargets = new int[nPoints];
+        int[] nDecoys = new int[nPoints];
+        double[] sortedScores = new double[nPoints];
+        double[] probabilities = new double[nPoints];
+        for (int i = 0; i < nPoints; i++) {
+            nTargets[i] = points[i].nTarget;
+            nDecoys[i] = points[i].nDecoy;
+            sortedScores[i] = scores.get(i);
+        }
+
         // estimate p
-        Double currentScore = scores.get(0);
-        TargetDecoyPoint tempPoint, previousPoint = hitMap.get(currentScore);
         double nLimit = 0.5 * windowSize;
-        double nTargetUp = 1.5 * previousPoint.nTarget;
-        double nTargetDown = -0.5 * previousPoint.nTarget;
-        double nDecoy = previousPoint.nDecoy;
+        double nTargetUp = 1.5 * nTargets[0];
+        double nTargetDown = -0.5 * nTargets[0];
+        double nDecoy = nDecoys[0];
+        int previousNTarget = nTargets[0];
         int iDown = 0;
         int iUp = 1;
         boolean oneReached = false;
 
-        for (int i = 0; i < scores.size(); i++) {
-            currentScore = scores.get(i);
-            TargetDecoyPoint point = hitMap.get(currentScore);
+        for (int i = 0; i < nPoints; i++) {
+            double p;
             if (!oneReached) {
-                double change = 0.5 * (previousPoint.nTarget + point.nTarget);
+                double change = 0.5 * (previousNTarget + nTargets[i]);
                 nTargetDown += change;
                 nTargetUp -= change;
                 while (nTargetDown > nLimit) {
                     if (iDown < i) {
-                        tempPoint = hitMap.get(scores.get(iDown));
-                        double nTargetDownTemp = nTargetDown - tempPoint.nTarget;
+                        double nTargetDownTemp = nTargetDown - nTargets[iDown];
                         if (nTargetDownTemp >= nLimit) {
-                            nDecoy -= tempPoint.nDecoy;
+                            nDecoy -= nDecoys[iDown];
                             nTargetDown = nTargetDownTemp;
                             iDown++;
                         } else {
@@ -304,27 +561,30 @@ public class TargetDecoyMap implements Serializable {
                         break;
                     }
                 }
-                while (nTargetUp < nLimit && iUp < scores.size()) {
-                    tempPoint = hitMap.get(scores.get(iUp));
-                    nTargetUp += tempPoint.nTarget;
-                    nDecoy += tempPoint.nDecoy;
+                while (nTargetUp < nLimit && iUp < nPoints) {
+                    nTargetUp += nTargets[iUp];
+                    nDecoy += nDecoys[iUp];
                     iUp++;
                 }
                 double nTarget = nTargetDown + nTargetUp;
-                point.p = Math.max(Math.min(nDecoy / nTarget, 1), 0);
-                if (point.p >= 0.98) {
+                p = Math.max(Math.min(nDecoy / nTarget, 1), 0);
+                if (p >= 0.98) {
                     oneReached = true;
                 }
             } else {
-                point.p = 1;
+                p = 1;
             }
-            previousPoint = point;
+            probabilities[i] = p;
+            points[i].p = p;
+            previousNTarget = nTargets[i];
 
             waitingHandler.increaseSecondaryProgressCounter();
             if (waitingHandler.isRunCanceled()) {
                 return;
             }
         }
+
+        frozenProbabilities = new FrozenProbabilities(sortedScores, probabilities);
     }
 
     /**
@@ -333,6 +593,7 @@ public class TargetDecoyMap implements Serializable {
      * @return the Nmax metric
      */
     public int getnMax() {
+        mergePendingCounts();
         if (nmax == null) {
             estimateNs();
         }
@@ -379,12 +640,30 @@ public class TargetDecoyMap implements Serializable {
         Collections.sort(scores);
     }
 
+    /**
+     * Returns the target/decoy points of the map sorted by score.
+     *
+     * @return the target/decoy points of the map sorted by score
+     */
+    private TargetDecoyPoint[] getSortedPoints() {
+        mergePendingCounts();
+        if (scores == null) {
+            estimateScores();
+        }
+        TargetDecoyPoint[] points = new TargetDecoyPoint[scores.size()];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = hitMap.get(scores.get(i));
+        }
+        return points;
+    }
+
     /**
      * Returns the sorted scores implemented in this map.
      *
      * @return the sorted scores implemented in this map.
      */
     public ArrayList<Double> getScores() {
+        mergePendingCounts();
         if (scores == null) {
             estimateScores();
         }
@@ -408,6 +687,7 @@ public class TargetDecoyMap implements Serializable {
         scores = null;
         nmax = null;
         windowSize = null;
+        frozenProbabilities = null;
     }
 
     /**
@@ -418,6 +698,7 @@ public class TargetDecoyMap implements Serializable {
      * @return a boolean indicating if a suspicious input was detected
      */
     public boolean suspiciousInput(Double initialFDR) {
+        mergePendingCounts();
         if (nmax == null) {
             estimateNs();
         }
@@ -442,6 +723,7 @@ public class TargetDecoyMap implements Serializable {
      * @return the target decoy series
      */
     public TargetDecoySeries getTargetDecoySeries() {
+        mergePendingCounts();
         return new TargetDecoySeries(hitMap);
     }
 
@@ -472,6 +754,204 @@ public class TargetDecoyMap implements Serializable {
      * @return the size of the map
      */
     public int getMapSize() {
+        mergePendingCounts();
         return hitMap.size();
     }
+
+    /**
+     * Merges the pending counts before writing the map.
+     *
+     * @param outputStream the stream to write to
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the map
+     */
+    private synchronized void writeObject(ObjectOutputStream outputStream) throws IOException {
+        mergePendingCounts();
+        outputStream.defaultWriteObject();
+    }
+
+    /**
+     * Target and decoy counts indexed by score in primitive arrays. The
+     * scores are stored as the bits of the double value, the arrays are
+     * indexed by open addressing.
+     */
+    private static class PendingCounts {
+
+        /**
+         * The initial capacity of the arrays.
+         */
+        private static final int INITIAL_CAPACITY = 64;
+        /**
+         * The bits of the scores.
+         */
+        private long[] keys = new long[INITIAL_CAPACITY];
+        /**
+         * Indicates whether a slot is used.
+         */
+        private boolean[] used = new boolean[INITIAL_CAPACITY];
+        /**
+         * The number of target hits added at every score.
+         */
+        private int[] nTarget = new int[INITIAL_CAPACITY];
+        /**
+         * The number of decoy hits added at every score.
+         */
+        private int[] nDecoy = new int[INITIAL_CAPACITY];
+        /**
+         * The number of scores in the arrays.
+         */
+        private int size = 0;
+
+        /**
+         * Returns the hash of the bits of a score.
+         *
+         * @param scoreBits the bits of the score
+         *
+         * @return the hash of the bits
+         */
+        private static int hash(long scoreBits) {
+            int hash = (int) (scoreBits ^ (scoreBits >>> 32));
+            hash *= 0x9E3779B9;
+            return hash ^ (hash >>> 16);
+        }
+
+        /**
+         * Adds hits at the given score.
+         *
+         * @param scoreBits the bits of the score
+         * @param isDecoy boolean indicating whether the hits are decoy
+         * @param nHits the number of hits, negative to remove hits
+         */
+        private void add(long scoreBits, boolean isDecoy, int nHits) {
+            if (2 * (size + 1) > keys.length) {
+                resize(2 * keys.length);
+            }
+            int slot = getSlot(keys, used, scoreBits);
+            if (!used[slot]) {
+                used[slot] = true;
+                keys[slot] = scoreBits;
+                size++;
+            }
+            if (isDecoy) {
+                nDecoy[slot] += nHits;
+            } else {
+                nTarget[slot] += nHits;
+            }
+        }
+
+        /**
+         * Returns the slot of a score, the first free slot if the score is
+         * not in the arrays.
+         *
+         * @param keys the bits of the scores
+         * @param used the used slots
+         * @param scoreBits the bits of the score
+         *
+         * @return the slot of the score
+         */
+        private static int getSlot(long[] keys, boolean[] used, long scoreBits) {
+            int mask = keys.length - 1;
+            int slot = hash(scoreBits) >>> 4 & mask;
+            while (used[slot] && keys[slot] != scoreBits) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        /**
+         * Moves the counts to arrays of the given capacity.
+         *
+         * @param capacity the new capacity, a power of two
+         */
+        private void resize(int capacity) {
+            long[] newKeys = new long[capacity];
+            boolean[] newUsed = new boolean[capacity];
+            int[] newNTarget = new int[capacity];
+            int[] newNDecoy = new int[capacity];
+            for (int i = 0; i < keys.length; i++) {
+                if (used[i]) {
+                    int slot = getSlot(newKeys, newUsed, keys[i]);
+                    newUsed[slot] = true;
+                    newKeys[slot] = keys[i];
+                    newNTarget[slot] = nTarget[i];
+                    newNDecoy[slot] = nDecoy[i];
+                }
+            }
+            keys = newKeys;
+            used = newUsed;
+            nTarget = newNTarget;
+            nDecoy = newNDecoy;
+        }
+
+        /**
+         * Removes all counts. The arrays are shrunk back to the initial
+         * capacity.
+         */
+        private void clear() {
+            keys = new long[INITIAL_CAPACITY];
+            used = new boolean[INITIAL_CAPACITY];
+            nTarget = new int[INITIAL_CAPACITY];
+            nDecoy = new int[INITIAL_CAPACITY];
+            size = 0;
+        }
+    }
+
+    /**
+     * Sorted scores and corresponding probabilities of a map stored in
+     * primitive arrays.
+     */
+    private static class FrozenProbabilities {
+
+        /**
+         * The sorted scores.
+         */
+        private final double[] scores;
+        /**
+         * The probabilities corresponding to the sorted scores.
+         */
+        private final double[] probabilities;
+        /**
+         * The range of scores where the probabilities differ from the applied
+         * probabilities, null if not computed yet.
+         */
+        private volatile double[] changedScoreRange = null;
+
+        /**
+         * Constructor.
+         *
+         * @param scores the sorted scores
+         * @param probabilities the probabilities corresponding to the sorted
+         * scores
+         */
+        public FrozenProbabilities(double[] scores, double[] probabilities) {
+            this.scores = scores;
+            this.probabilities = probabilities;
+        }
+
+        /**
+         * Returns the probability at the given score, interpolated between the
+         * closest scores when not found.
+         *
+         * @param score the given score
+         *
+         * @return the probability at the given score
+         */
+        public double getProbability(double score) {
+            int index = Arrays.binarySearch(scores, score);
+            if (index >= 0) {
+                return probabilities[index];
+            }
+            int indexUp = -(index + 1);
+            if (indexUp >= scores.length) {
+                return probabilities[scores.length - 1];
+            }
+            int indexDown = indexUp - 1;
+            if (indexDown < 0) {
+                indexDown = 0;
+                indexUp = Math.min(1, scores.length - 1);
+            }
+            return (probabilities[indexUp] + probabilities[indexDown]) / 2;
+        }
+    }
 }
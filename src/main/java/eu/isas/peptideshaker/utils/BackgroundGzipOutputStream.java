@@ -0,0 +1,221 @@
+package eu.isas.peptideshaker.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Output stream writing a gzipped file where the compression is done by a
+ * dedicated thread. Written bytes are gathered in chunks which are handed over
+ * to the compression thread through a bounded queue.
+ *
+ * @author Marc Vaudel
+ */
+public class BackgroundGzipOutputStream extends OutputStream {
+
+    /**
+     * The size of the chunks handed over to the compression thread.
+     */
+    public static final int CHUNK_SIZE = 1 << 18;
+    /**
+     * The maximal number of chunks waiting for compression.
+     */
+    public static final int QUEUE_SIZE = 8;
+    /**
+     * Empty chunk indicating the end of the stream.
+     */
+    private static final byte[] END_OF_STREAM = new byte[0];
+    /**
+     * The chunks waiting for compression.
+     */
+    private final ArrayBlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(QUEUE_SIZE);
+    /**
+     * The thread compressing the chunks.
+     */
+    private final Thread compressionThread;
+    /**
+     * The chunk currently filled.
+     */
+    private byte[] chunk = new byte[CHUNK_SIZE];
+    /**
+     * The number of bytes in the current chunk.
+     */
+    private int chunkLength = 0;
+    /**
+     * The error encountered by the compression thread, null if none.
+     */
+    private volatile IOException failure = null;
+    /**
+     * Boolean indicating whether the stream is closed.
+     */
+    private boolean closed = false;
+
+    /**
+     * Constructor.
+     *
+     * @param destinationFile the file where to write the compressed data
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * opening the file
+     */
+    public BackgroundGzipOutputStream(File destinationFile) throws IOException {
+        this(new FileOutputStream(destinationFile), destinationFile.getName());
+    }
+
+    /**
+     * Constructor. The given stream is closed when this stream is closed or
+     * when the compression fails.
+     *
+     * @param outputStream the stream where to write the compressed data
+     * @param name the name of the destination used in the name of the
+     * compression thread and in the error messages
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the gzip header
+     */
+    public BackgroundGzipOutputStream(final OutputStream outputStream, final String name) throws IOException {
+        final GZIPOutputStream gzipOutputStream;
+        try {
+            gzipOutputStream = new GZIPOutputStream(outputStream, CHUNK_SIZE);
+        } catch (IOException e) {
+            outputStream.close();
+            throw e;
+        }
+        compressionThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    try {
+                        while (true) {
+                            byte[] bytes = queue.take();
+                            if (bytes == END_OF_STREAM) {
+                                break;
+                            }
+                            gzipOutputStream.write(bytes);
+                        }
+                        gzipOutputStream.close();
+                    } finally {
+                        // the gzip stream does not close the underlying stream if finishing fails
+                        outputStream.close();
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                    queue.clear();
+                } catch (InterruptedException e) {
+                    failure = new IOException("Compression of " + name + " interrupted.");
+                    queue.clear();
+                }
+            }
+        }, "PeptideShaker-gzip-" + name);
+        compressionThread.setDaemon(true);
+        compressionThread.start();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (chunkLength == chunk.length) {
+            handOver();
+        }
+        chunk[chunkLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (chunkLength == chunk.length) {
+                handOver();
+            }
+            int n = Math.min(length, chunk.length - chunkLength);
+            System.arraycopy(bytes, offset, chunk, chunkLength, n);
+            chunkLength += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Hands the current chunk over to the compression thread.
+     *
+     * @throws IOException exception thrown whenever the compression failed
+     */
+    private void handOver() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed.");
+        }
+        if (chunkLength > 0) {
+            byte[] bytes = chunkLength == chunk.length ? chunk : Arrays.copyOf(chunk, chunkLength);
+            put(bytes);
+            chunk = new byte[CHUNK_SIZE];
+            chunkLength = 0;
+        }
+    }
+
+    /**
+     * Puts bytes in the queue, checking that the compression thread did not
+     * fail while waiting.
+     *
+     * @param bytes the bytes to compress
+     *
+     * @throws IOException exception thrown whenever the compression failed
+     */
+    private void put(byte[] bytes) throws IOException {
+        try {
+            while (!queue.offer(bytes, ProcessingScheduler.CANCELLATION_POLLING_INTERVAL, TimeUnit.MILLISECONDS)) {
+                checkFailure();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for compression.");
+        }
+        checkFailure();
+    }
+
+    /**
+     * Throws the error encountered by the compression thread if any.
+     *
+     * @throws IOException the error encountered by the compression thread
+     */
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Hands the bytes written over to the compression thread. Note that the
+     * compressed data is only guaranteed to be written to the file upon
+     * closing.
+     *
+     * @throws IOException exception thrown whenever the compression failed
+     */
+    @Override
+    public void flush() throws IOException {
+        handOver();
+    }
+
+    /**
+     * Closes the stream and waits for the compression thread to write the
+     * remaining data.
+     *
+     * @throws IOException exception thrown whenever the compression failed
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        handOver();
+        closed = true;
+        put(END_OF_STREAM);
+        try {
+            compressionThread.join();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for compression.");
+        }
+        checkFailure();
+    }
+}
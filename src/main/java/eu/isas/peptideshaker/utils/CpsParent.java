@@ -12,6 +12,7 @@ import com.compomics.util.experiment.identification.Identification;
 import com.compomics.util.experiment.identification.IdentificationMethod;
 import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
 import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
+import com.compomics.util.experiment.io.ExperimentIO;
 import com.compomics.util.experiment.massspectrometry.SpectrumFactory;
 import com.compomics.util.gui.filehandling.TempFilesManager;
 import com.compomics.util.io.compression.ZipUtils;
@@ -19,6 +20,7 @@ import com.compomics.util.preferences.FractionSettings;
 import com.compomics.util.waiting.WaitingHandler;
 import com.compomics.util.preferences.IdentificationParameters;
 import com.compomics.util.preferences.PSProcessingPreferences;
+import com.compomics.util.preferences.ProcessingPreferences;
 import com.compomics.util.preferences.ProteinInferencePreferences;
 import eu.isas.peptideshaker.export.CpsExporter;
 import eu.isas.peptideshaker.fileimport.CpsFileImporter;
@@ -38,6 +40,9 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import org.apache.commons.compress.archivers.ArchiveException;
 
 /**
@@ -112,14 +117,33 @@ public class CpsParent extends UserPreferencesParent {
      * The folder where the database is stored.
      */
     protected File dbFolder;
+    /**
+     * The processing preferences used to save and load the project.
+     */
+    protected ProcessingPreferences processingPreferences = new ProcessingPreferences();
     /**
      * The currently loaded cps file.
      */
     protected File cpsFile = null;
+    /**
+     * The background loading of the database of a project opened in lazy
+     * mode, null if none.
+     */
+    private FutureTask<Object> projectLoading = null;
+    /**
+     * The waiting handler of the background loading, used to cancel it, null
+     * if none.
+     */
+    private WaitingHandler projectLoadingHandler = null;
     /**
      * The name of the table to use to store PeptideShaker experiment settings.
      */
     public static final String settingsTableName = "PeptideShaker_experiment_settings";
+    /**
+     * The name of the project archive entry containing a copy of the
+     * PeptideShaker experiment settings.
+     */
+    public static final String settingsArchiveEntry = ProjectArchive.METADATA_PREFIX + "PeptideShaker_experiment_settings";
 
     /**
      * Empty constructor for instantiation purposes.
@@ -157,6 +181,31 @@ public class CpsParent extends UserPreferencesParent {
      * thrown whenever an error occurs while untaring the file
      */
     public void loadCpsFromZipFile(File zipFile, File dbFolder, WaitingHandler waitingHandler) throws IOException, ClassNotFoundException, SQLException, InterruptedException, ArchiveException {
+        loadCpsFromZipFile(zipFile, dbFolder, waitingHandler, false);
+    }
+
+    /**
+     * Loads the information from a cps file contained in a zip file. See
+     * loadCpsFile for the lazy mode.
+     *
+     * @param zipFile the zip file containing the cps file
+     * @param dbFolder the folder where to untar the project
+     * @param waitingHandler a waiting handler displaying feedback to the user.
+     * Ignored if null
+     * @param lazy if true the database is loaded in the background
+     *
+     * @throws IOException thrown of IOException occurs exception thrown
+     * whenever an error occurred while reading or writing a file
+     * @throws SQLException thrown of SQLException occurs exception thrown
+     * whenever an error occurred while interacting with the database
+     * @throws java.lang.ClassNotFoundException exception thrown whenever an
+     * error occurred while deserializing an object
+     * @throws java.lang.InterruptedException exception thrown whenever a
+     * threading error occurred while saving the project
+     * @throws org.apache.commons.compress.archivers.ArchiveException exception
+     * thrown whenever an error occurs while untaring the file
+     */
+    public void loadCpsFromZipFile(File zipFile, File dbFolder, WaitingHandler waitingHandler, boolean lazy) throws IOException, ClassNotFoundException, SQLException, InterruptedException, ArchiveException {
 
         String newName = PsZipUtils.getTempFolderName(zipFile.getName());
         String parentFolder = PsZipUtils.getUnzipParentFolder();
@@ -175,7 +224,7 @@ public class CpsParent extends UserPreferencesParent {
             for (File file : destinationFolder.listFiles()) {
                 if (file.getName().toLowerCase().endsWith(".cpsx")) {
                     cpsFile = file;
-                    loadCpsFile(dbFolder, waitingHandler);
+                    loadCpsFile(dbFolder, waitingHandler, lazy);
                     return;
                 }
             }
@@ -201,49 +250,80 @@ public class CpsParent extends UserPreferencesParent {
      * thrown whenever an error occurs while untaring the file
      */
     public void loadCpsFile(File dbFolder, WaitingHandler waitingHandler) throws IOException, ClassNotFoundException, SQLException, InterruptedException, ArchiveException {
+        loadCpsFile(dbFolder, waitingHandler, false);
+    }
 
-        CpsFileImporter cpsFileImporter = new CpsFileImporter(cpsFile, dbFolder, waitingHandler);
-
-        // close any open connection to an identification database
-        if (identification != null) {
-            identification.close();
-        }
+    /**
+     * Loads the information from a cps file. In lazy mode, if the project was
+     * saved as a ProjectArchive, only the experiment and the settings are read
+     * before returning, the database is extracted and connected in the
+     * background. The project settings can then be used right away while the
+     * matches can be accessed after awaitProjectLoading() returned.
+     *
+     * @param dbFolder the folder where to untar the project
+     * @param waitingHandler a waiting handler displaying feedback to the user.
+     * Ignored if null
+     * @param lazy if true the database is loaded in the background
+     *
+     * @throws IOException thrown of IOException occurs exception thrown
+     * whenever an error occurred while reading or writing a file
+     * @throws SQLException thrown of SQLException occurs exception thrown
+     * whenever an error occurred while interacting with the database
+     * @throws java.lang.ClassNotFoundException exception thrown whenever an
+     * error occurred while deserializing an object
+     * @throws java.lang.InterruptedException exception thrown whenever a
+     * threading error occurred while saving the project
+     * @throws org.apache.commons.compress.archivers.ArchiveException exception
+     * thrown whenever an error occurs while untaring the file
+     */
+    public void loadCpsFile(File dbFolder, WaitingHandler waitingHandler, boolean lazy) throws IOException, ClassNotFoundException, SQLException, InterruptedException, ArchiveException {
 
-        // Get the experiment data
-        experiment = cpsFileImporter.getExperiment();
-        ArrayList<Sample> samples = cpsFileImporter.getSamples();
-        if (samples == null || samples.isEmpty()) {
-            throw new IllegalArgumentException("No sample found for the experiment " + experiment.getReference());
-        }
-        sample = samples.get(0);
-        if (samples.size() > 1) {
-            String message = samples.size() + " samples found in experiment " + experiment.getReference() + ", sample " + sample.getReference() + " selected by default.";
-            if (waitingHandler != null) {
-                waitingHandler.appendReport(message, true, true);
-            }
-        }
-        ArrayList<Integer> replicates = cpsFileImporter.getReplicates(sample);
-        if (replicates == null || replicates.isEmpty()) {
-            throw new IllegalArgumentException("No replicate found for the sample " + sample.getReference() + " of experiment " + experiment.getReference());
-        }
-        replicateNumber = replicates.get(0);
-        if (replicates.size() > 1) {
-            if (waitingHandler != null) {
-                waitingHandler.appendReport(replicates.size() + " replicates found in sample " + sample.getReference()
-                        + " of experiment " + experiment.getReference() + ", replicate " + sample.getReference() + " selected by default.", true, true);
+        ProjectArchive projectArchive = null;
+        PeptideShakerSettings experimentSettings = null;
+        if (lazy && ProjectArchive.isProjectArchive(cpsFile)) {
+            projectArchive = new ProjectArchive(cpsFile);
+            if (projectArchive.hasEntry(MsExperiment.experimentObjectName)) {
+                experimentSettings = CpsFileImporter.getPeptideShakerSettings(projectArchive);
             }
         }
-        proteomicAnalysis = experiment.getAnalysisSet(sample).getProteomicAnalysis(replicateNumber);
 
-        // Get identification and restore connection
-        identification = proteomicAnalysis.getIdentification(IdentificationMethod.MS2_IDENTIFICATION);
-        objectsCache = new ObjectsCache();
-        objectsCache.setAutomatedMemoryManagement(true);
-        objectsCache.setReadOnly(false);
-        identification.restoreConnection(dbFolder.getAbsolutePath(), false, objectsCache);
+        if (experimentSettings == null) {
+
+            CpsFileImporter cpsFileImporter = new CpsFileImporter(cpsFile, dbFolder, processingPreferences, waitingHandler);
+
+            // close any open connection to an identification database
+            closeIdentification();
+
+            // Get the experiment data
+            setExperiment(cpsFileImporter.getExperiment(), waitingHandler);
+
+            // Get identification and restore connection
+            objectsCache = new ObjectsCache();
+            objectsCache.setAutomatedMemoryManagement(true);
+            objectsCache.setReadOnly(false);
+            MemoryGovernor.getInstance().registerObjectsCache(objectsCache);
+            identification.restoreConnection(dbFolder.getAbsolutePath(), false, objectsCache);
+
+            // Get PeptideShaker settings
+            experimentSettings = cpsFileImporter.getPeptideShakerSettings(identification.getIdentificationDB().getObjectsDB());
+
+        } else {
+
+            // close any open connection to an identification database
+            closeIdentification();
+
+            // Get the experiment data without extracting the database
+            projectArchive.extractEntry(MsExperiment.experimentObjectName, dbFolder);
+            setExperiment(ExperimentIO.loadExperiment(new File(dbFolder, MsExperiment.experimentObjectName)), waitingHandler);
+
+            // Extract the database and restore the connection in the background
+            objectsCache = new ObjectsCache();
+            objectsCache.setAutomatedMemoryManagement(true);
+            objectsCache.setReadOnly(false);
+            MemoryGovernor.getInstance().registerObjectsCache(objectsCache);
+            startProjectLoading(projectArchive, dbFolder, waitingHandler);
+        }
 
-        // Get PeptideShaker settings
-        PeptideShakerSettings experimentSettings = cpsFileImporter.getPeptideShakerSettings(identification.getIdentificationDB().getObjectsDB());
         identificationParameters = experimentSettings.getIdentificationParameters();
         spectrumCountingPreferences = experimentSettings.getSpectrumCountingPreferences();
         projectDetails = experimentSettings.getProjectDetails();
@@ -271,12 +351,21 @@ public class CpsParent extends UserPreferencesParent {
         }
 
         // Set up caches
-        identificationFeaturesGenerator = new IdentificationFeaturesGenerator(identification, identificationParameters, metrics, spectrumCountingPreferences);
+        setIdentificationFeaturesGenerator(new IdentificationFeaturesGenerator(identification, identificationParameters, metrics, spectrumCountingPreferences));
         IdentificationFeaturesCache identificationFeaturesCache = experimentSettings.getIdentificationFeaturesCache();
         if (identificationFeaturesCache != null) {
             identificationFeaturesGenerator.setIdentificationFeaturesCache(experimentSettings.getIdentificationFeaturesCache());
             identificationFeaturesCache.setReadOnly(false);
         }
+        if (projectArchive == null && ProjectArchive.isProjectArchive(cpsFile)) {
+            projectArchive = new ProjectArchive(cpsFile);
+        }
+        if (projectArchive != null) {
+            byte[] proteinFeatures = projectArchive.readEntry(ProteinFeaturesTable.ARCHIVE_ENTRY);
+            if (proteinFeatures != null) {
+                identificationFeaturesGenerator.setProteinFeaturesTable(ProteinFeaturesTable.fromBytes(proteinFeatures));
+            }
+        }
 
         if (waitingHandler != null && waitingHandler.isRunCanceled()) {
             waitingHandler.setRunFinished();
@@ -288,6 +377,158 @@ public class CpsParent extends UserPreferencesParent {
         saveUserPreferences();
     }
 
+    /**
+     * Closes the connection to the identification database if any.
+     *
+     * @throws IOException thrown of IOException occurs exception thrown
+     * whenever an error occurred while reading or writing a file
+     * @throws SQLException thrown of SQLException occurs exception thrown
+     * whenever an error occurred while interacting with the database
+     * @throws java.lang.ClassNotFoundException exception thrown whenever an
+     * error occurred while deserializing an object
+     * @throws java.lang.InterruptedException exception thrown whenever a
+     * threading error occurred while closing the database
+     */
+    private void closeIdentification() throws IOException, SQLException, ClassNotFoundException, InterruptedException {
+        awaitProjectLoading();
+        if (identification != null) {
+            identification.close();
+        }
+    }
+
+    /**
+     * Sets the experiment and selects the first sample and replicate.
+     *
+     * @param experiment the experiment
+     * @param waitingHandler a waiting handler displaying feedback to the user.
+     * Ignored if null
+     */
+    private void setExperiment(MsExperiment experiment, WaitingHandler waitingHandler) {
+
+        this.experiment = experiment;
+        ArrayList<Sample> samples = new ArrayList<Sample>(experiment.getSamples().values());
+        if (samples.isEmpty()) {
+            throw new IllegalArgumentException("No sample found for the experiment " + experiment.getReference());
+        }
+        sample = samples.get(0);
+        if (samples.size() > 1) {
+            String message = samples.size() + " samples found in experiment " + experiment.getReference() + ", sample " + sample.getReference() + " selected by default.";
+            if (waitingHandler != null) {
+                waitingHandler.appendReport(message, true, true);
+            }
+        }
+        ArrayList<Integer> replicates = new ArrayList<Integer>(experiment.getAnalysisSet(sample).getReplicateNumberList());
+        if (replicates.isEmpty()) {
+            throw new IllegalArgumentException("No replicate found for the sample " + sample.getReference() + " of experiment " + experiment.getReference());
+        }
+        replicateNumber = replicates.get(0);
+        if (replicates.size() > 1) {
+            if (waitingHandler != null) {
+                waitingHandler.appendReport(replicates.size() + " replicates found in sample " + sample.getReference()
+                        + " of experiment " + experiment.getReference() + ", replicate " + sample.getReference() + " selected by default.", true, true);
+            }
+        }
+        proteomicAnalysis = experiment.getAnalysisSet(sample).getProteomicAnalysis(replicateNumber);
+        identification = proteomicAnalysis.getIdentification(IdentificationMethod.MS2_IDENTIFICATION);
+    }
+
+    /**
+     * Starts extracting the database of a project and connecting the
+     * identification to it in the background.
+     *
+     * @param projectArchive the archive of the project
+     * @param dbFolder the folder where to extract the database
+     * @param waitingHandler the waiting handler used to display the progress
+     * and cancel the extraction, can be null
+     */
+    private void startProjectLoading(final ProjectArchive projectArchive, final File dbFolder, final WaitingHandler waitingHandler) {
+        final Identification projectIdentification = identification;
+        final ObjectsCache projectObjectsCache = objectsCache;
+        final ProcessingPreferences loadingPreferences = processingPreferences;
+        projectLoadingHandler = waitingHandler;
+        projectLoading = new FutureTask<Object>(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                projectArchive.extract(dbFolder, loadingPreferences, waitingHandler);
+                if (waitingHandler == null || !waitingHandler.isRunCanceled()) {
+                    projectIdentification.restoreConnection(dbFolder.getAbsolutePath(), false, projectObjectsCache);
+                }
+                return null;
+            }
+        });
+        Thread thread = new Thread(projectLoading, "PeptideShaker-project-loading");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Waits for the database of a project opened in lazy mode to be loaded.
+     * Returns immediately if the project was not opened in lazy mode or if the
+     * database is already loaded.
+     *
+     * @throws IOException thrown of IOException occurs exception thrown
+     * whenever an error occurred while reading or writing a file
+     * @throws SQLException thrown of SQLException occurs exception thrown
+     * whenever an error occurred while interacting with the database
+     * @throws java.lang.ClassNotFoundException exception thrown whenever an
+     * error occurred while deserializing an object
+     * @throws java.lang.InterruptedException exception thrown whenever a
+     * threading error occurred while waiting for the database
+     */
+    public void awaitProjectLoading() throws IOException, SQLException, ClassNotFoundException, InterruptedException {
+        FutureTask<Object> loading = projectLoading;
+        if (loading != null) {
+            try {
+                loading.get();
+                projectLoading = null;
+                projectLoadingHandler = null;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof SQLException) {
+                    throw (SQLException) cause;
+                } else if (cause instanceof ClassNotFoundException) {
+                    throw (ClassNotFoundException) cause;
+                } else if (cause instanceof InterruptedException) {
+                    throw (InterruptedException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException("An error occurred while loading the project.", cause);
+            }
+        }
+    }
+
+    /**
+     * Cancels the background loading of the database of a project opened in
+     * lazy mode and waits for the loading thread to stop. The extraction is
+     * canceled through the waiting handler given when loading the project, if
+     * none the extraction is completed before returning. Errors encountered
+     * while loading are ignored. Returns immediately if the project was not
+     * opened in lazy mode or if the database is already loaded.
+     *
+     * @throws java.lang.InterruptedException exception thrown whenever a
+     * threading error occurred while waiting for the loading thread
+     */
+    public void cancelProjectLoading() throws InterruptedException {
+        FutureTask<Object> loading = projectLoading;
+        if (loading != null) {
+            if (projectLoadingHandler != null) {
+                projectLoadingHandler.setRunCanceled();
+            }
+            try {
+                loading.get();
+            } catch (ExecutionException e) {
+                // the project is not used anymore
+            }
+            projectLoading = null;
+            projectLoadingHandler = null;
+        }
+    }
+
     /**
      * Saves the project in the cps file.
      *
@@ -307,10 +548,11 @@ public class CpsParent extends UserPreferencesParent {
      * threading error occurred while saving the project
      */
     public void saveProject(WaitingHandler waitingHandler, boolean emptyCache) throws IOException, SQLException, ArchiveException, ClassNotFoundException, InterruptedException {
+        awaitProjectLoading();
         CpsExporter.saveAs(cpsFile, waitingHandler, experiment, identification, shotgunProtocol, identificationParameters,
                 spectrumCountingPreferences, projectDetails, filterPreferences, metrics, geneMaps,
-                identificationFeaturesGenerator.getIdentificationFeaturesCache(),
-                objectsCache, emptyCache, displayPreferences, dbFolder);
+                identificationFeaturesGenerator.getIdentificationFeaturesCache(), identificationFeaturesGenerator.getProteinFeaturesTable(),
+                objectsCache, emptyCache, displayPreferences, processingPreferences, dbFolder);
 
         loadUserPreferences();
         userPreferences.addRecentProject(cpsFile);
@@ -612,12 +854,16 @@ public class CpsParent extends UserPreferencesParent {
     }
 
     /**
-     * Sets the identification feature generator.
+     * Sets the identification feature generator. The generator replaced is
+     * closed.
      *
      * @param identificationFeaturesGenerator the identification feature
      * generator
      */
     public void setIdentificationFeaturesGenerator(IdentificationFeaturesGenerator identificationFeaturesGenerator) {
+        if (this.identificationFeaturesGenerator != null && this.identificationFeaturesGenerator != identificationFeaturesGenerator) {
+            this.identificationFeaturesGenerator.close();
+        }
         this.identificationFeaturesGenerator = identificationFeaturesGenerator;
     }
 
@@ -744,7 +990,7 @@ public class CpsParent extends UserPreferencesParent {
      * Resets the feature generator.
      */
     public void resetIdentificationFeaturesGenerator() {
-        identificationFeaturesGenerator = new IdentificationFeaturesGenerator(identification, identificationParameters, metrics, spectrumCountingPreferences);
+        setIdentificationFeaturesGenerator(new IdentificationFeaturesGenerator(identification, identificationParameters, metrics, spectrumCountingPreferences));
     }
 
     /**
@@ -783,6 +1029,24 @@ public class CpsParent extends UserPreferencesParent {
         this.shotgunProtocol = shotgunProtocol;
     }
 
+    /**
+     * Returns the processing preferences used to save and load the project.
+     *
+     * @return the processing preferences
+     */
+    public ProcessingPreferences getProcessingPreferences() {
+        return processingPreferences;
+    }
+
+    /**
+     * Sets the processing preferences used to save and load the project.
+     *
+     * @param processingPreferences the processing preferences
+     */
+    public void setProcessingPreferences(ProcessingPreferences processingPreferences) {
+        this.processingPreferences = processingPreferences;
+    }
+
     /**
      * Returns the folder where the database is stored.
      *
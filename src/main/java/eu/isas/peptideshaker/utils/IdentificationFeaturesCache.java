@@ -1,8 +1,15 @@
 package eu.isas.peptideshaker.utils;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * This class caches the identification features calculated by the
@@ -109,33 +116,40 @@ public class IdentificationFeaturesCache implements Serializable {
         containsEnzymaticPeptides;
     }
     /**
-     * The number of values kept in memory for small objects.
+     * The number of segments of the cache. Every segment has its own lock and
+     * its own share of the memory budget.
      */
-    private final int smallObjectsCacheSize = 1000000;
+    public static final int N_SEGMENTS = 16;
     /**
-     * The number of values kept in memory for big objects.
+     * The default memory budget in bytes: an eighth of the memory available
+     * to the virtual machine, at most 128 MB.
      */
-    private final int bigObjectsCacheSize = 1000;
+    public static final long DEFAULT_MEMORY_BUDGET = Math.min(1L << 27, Runtime.getRuntime().maxMemory() / 8);
     /**
-     * Separator used to concatenate strings.
+     * The estimated memory used by a cache entry in addition to its key and
+     * value.
      */
-    private static final String cacheSeparator = "_ccs_";
+    private static final int ENTRY_OVERHEAD = 64;
     /**
-     * The cached protein matches for small objects.
+     * The estimated memory used by an object header.
      */
-    private ArrayList<String> smallObjectsInCache = new ArrayList<String>();
+    private static final int OBJECT_OVERHEAD = 16;
     /**
-     * The cached protein matches for big objects.
+     * The memory budget of the cached objects in bytes.
      */
-    private ArrayList<String> bigObjectsInCache = new ArrayList<String>();
+    private volatile long memoryBudget = DEFAULT_MEMORY_BUDGET;
     /**
-     * Mapping of the stored big objects.
+     * The segments of the cache.
      */
-    private HashMap<ObjectType, HashMap<String, Object>> bigObjectsCache = new HashMap<ObjectType, HashMap<String, Object>>();
+    private Segment[] segments = createSegments();
     /**
-     * Mapping of the stored small objects.
+     * The number of cache hits per object type.
      */
-    private HashMap<ObjectType, HashMap<String, Object>> smallObjectsCache = new HashMap<ObjectType, HashMap<String, Object>>();
+    private transient AtomicLongArray hits = new AtomicLongArray(ObjectType.values().length);
+    /**
+     * The number of cache misses per object type.
+     */
+    private transient AtomicLongArray misses = new AtomicLongArray(ObjectType.values().length);
     /**
      * The protein list.
      */
@@ -181,132 +195,35 @@ public class IdentificationFeaturesCache implements Serializable {
     /**
      * Indicates whether the cache is read only.
      */
-    private boolean readOnly = false;
+    private volatile boolean readOnly = false;
 
     /**
      * Clears all objects of the given type.
      *
      * @param type the object type
      */
-    public synchronized void removeObjects(ObjectType type) {
+    public void removeObjects(ObjectType type) {
         if (!readOnly) {
-            String typeKey = getTypeAsString(type);
-            ArrayList<String> toRemove = new ArrayList<String>();
-
-            switch (type) {
-                case coverable_AA_p:
-                case AA_coverage:
-                case tryptic_protein:
-                    bigObjectsCache.remove(type);
-                    for (String key : bigObjectsInCache) {
-                        if (key.contains(typeKey)) {
-                            toRemove.add(key);
-                        }
-                    }
-                    for (String key : toRemove) {
-                        bigObjectsInCache.remove(key);
-                    }
-                    break;
-                case sequence_coverage:
-                case sequence_validation_coverage:
-                case expected_coverage:
-                case spectrum_counting:
-                case number_of_spectra:
-                case number_of_validated_spectra:
-                case number_of_validated_peptides:
-                case number_of_confident_spectra:
-                case number_of_confident_peptides:
-                case max_psm_mz_for_peptides:
-                case unique_peptides:
-                case containsEnzymaticPeptides:
-                    smallObjectsCache.remove(type);
-                    for (String key : smallObjectsInCache) {
-                        if (key.contains(typeKey)) {
-                            toRemove.add(key);
-                        }
-                    }
-                    for (String key : toRemove) {
-                        smallObjectsInCache.remove(key);
-                    }
-                    break;
+            for (Segment segment : segments) {
+                segment.removeObjects(type);
             }
         }
     }
 
     /**
-     * Adds an object in the cache.
+     * Adds an object in the cache. If the memory used by the segment of the
+     * object exceeds its share of the memory budget, the least recently used
+     * objects of the segment are evicted.
      *
      * @param type the type of the object
      * @param objectKey the object key
      * @param object the object to store
      */
-    public synchronized void addObject(ObjectType type, String objectKey, Object object) {
+    public void addObject(ObjectType type, String objectKey, Object object) {
         if (!readOnly) {
-            switch (type) {
-                case coverable_AA_p:
-                case AA_coverage:
-                case tryptic_protein:
-                    if (!bigObjectsCache.containsKey(type)) {
-                        bigObjectsCache.put(type, new HashMap<String, Object>());
-                    }
-
-                    Object oldValue = bigObjectsCache.get(type).put(objectKey, object);
-
-                    if (oldValue == null) { // don't add if the object was already in the cache
-                        bigObjectsInCache.add(getCacheKey(type, objectKey));
-                    }
-
-                    while (bigObjectsInCache.size() >= bigObjectsCacheSize && !bigObjectsInCache.isEmpty()) {
-                        String firstObjectKey = bigObjectsInCache.get(0);
-                        ObjectType oldType = getType(firstObjectKey);
-                        String oldKey = getObjectKey(firstObjectKey);
-                        HashMap<String, Object> cacheForType = bigObjectsCache.get(oldType);
-                        if (cacheForType != null) {
-                            cacheForType.remove(oldKey);
-                            if (cacheForType.isEmpty()) {
-                                bigObjectsCache.remove(oldType);
-                            }
-                        }
-                        bigObjectsInCache.remove(0);
-                    }
-                    break;
-                case sequence_coverage:
-                case sequence_validation_coverage:
-                case expected_coverage:
-                case spectrum_counting:
-                case number_of_spectra:
-                case number_of_validated_spectra:
-                case number_of_validated_peptides:
-                case number_of_confident_spectra:
-                case number_of_confident_peptides:
-                case max_psm_mz_for_peptides:
-                case unique_peptides:
-                case containsEnzymaticPeptides:
-                    if (!smallObjectsCache.containsKey(type)) {
-                        smallObjectsCache.put(type, new HashMap<String, Object>());
-                    }
-
-                    oldValue = smallObjectsCache.get(type).put(objectKey, object);
-
-                    if (oldValue == null) {
-                        smallObjectsInCache.add(getCacheKey(type, objectKey));
-                    }
-
-                    while (smallObjectsInCache.size() >= smallObjectsCacheSize && !smallObjectsInCache.isEmpty()) {
-                        String firstObjectKey = smallObjectsInCache.get(0);
-                        ObjectType oldType = getType(firstObjectKey);
-                        String oldKey = getObjectKey(firstObjectKey);
-                        HashMap<String, Object> cacheForType = smallObjectsCache.get(oldType);
-                        if (cacheForType != null) {
-                            cacheForType.remove(oldKey);
-                            if (cacheForType.isEmpty()) {
-                                smallObjectsCache.remove(oldType);
-                            }
-                        }
-                        smallObjectsInCache.remove(0);
-                    }
-                    break;
-            }
+            CacheKey cacheKey = new CacheKey(type, objectKey);
+            long objectSize = ENTRY_OVERHEAD + estimateSize(objectKey) + estimateSize(object);
+            getSegment(cacheKey).put(cacheKey, object, objectSize, memoryBudget / N_SEGMENTS);
         }
     }
 
@@ -318,34 +235,84 @@ public class IdentificationFeaturesCache implements Serializable {
      * @return the desired object
      */
     public Object getObject(ObjectType type, String objectKey) {
-        switch (type) {
-            case coverable_AA_p:
-            case AA_coverage:
-            case tryptic_protein:
-                HashMap<String, Object> cacheForType = bigObjectsCache.get(type);
-                if (cacheForType != null) {
-                    return cacheForType.get(objectKey);
-                }
-                return null;
-            case sequence_coverage:
-            case sequence_validation_coverage:
-            case expected_coverage:
-            case spectrum_counting:
-            case number_of_spectra:
-            case number_of_validated_spectra:
-            case number_of_validated_peptides:
-            case number_of_confident_spectra:
-            case number_of_confident_peptides:
-            case max_psm_mz_for_peptides:
-            case unique_peptides:
-            case containsEnzymaticPeptides:
-                cacheForType = smallObjectsCache.get(type);
-                if (cacheForType != null) {
-                    return cacheForType.get(objectKey);
-                }
-                return null;
-            default:
-                return null;
+        CacheKey cacheKey = new CacheKey(type, objectKey);
+        Object object = getSegment(cacheKey).get(cacheKey);
+        if (object != null) {
+            hits.incrementAndGet(type.ordinal());
+        } else {
+            misses.incrementAndGet(type.ordinal());
+        }
+        return object;
+    }
+
+    /**
+     * Returns the number of times an object of the given type was found in
+     * the cache since the cache was created or loaded.
+     *
+     * @param type the type of the object
+     *
+     * @return the number of cache hits
+     */
+    public long getHits(ObjectType type) {
+        return hits.get(type.ordinal());
+    }
+
+    /**
+     * Returns the number of times an object of the given type was not found
+     * in the cache since the cache was created or loaded.
+     *
+     * @param type the type of the object
+     *
+     * @return the number of cache misses
+     */
+    public long getMisses(ObjectType type) {
+        return misses.get(type.ordinal());
+    }
+
+    /**
+     * Returns the estimated memory used by the cached objects in bytes.
+     *
+     * @return the estimated memory used by the cached objects
+     */
+    public long getMemoryUsage() {
+        long memoryUsage = 0;
+        for (Segment segment : segments) {
+            memoryUsage += segment.getSize();
+        }
+        return memoryUsage;
+    }
+
+    /**
+     * Returns the memory budget of the cached objects in bytes.
+     *
+     * @return the memory budget of the cached objects
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Sets the memory budget of the cached objects in bytes. If the budget is
+     * reduced, the least recently used objects are evicted.
+     *
+     * @param memoryBudget the memory budget of the cached objects
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        for (Segment segment : segments) {
+            segment.evict(memoryBudget / N_SEGMENTS);
+        }
+    }
+
+    /**
+     * Reduces the memory used by the cached objects by evicting the least
+     * recently used objects. The budget is left unchanged.
+     *
+     * @param share the share of memory to release, between 0 and 1
+     */
+    public void reduceMemoryConsumption(double share) {
+        for (Segment segment : segments) {
+            segment.evict((long) (segment.getSize() * (1 - share)));
         }
     }
 
@@ -535,118 +502,104 @@ public class IdentificationFeaturesCache implements Serializable {
     }
 
     /**
-     * Convenience method returning a string as key for the object of the given
-     * type identified by the given key.
+     * Returns the segment of the given key.
      *
-     * @param type the type of object
+     * @param cacheKey the key of the object
+     *
+     * @return the segment of the given key
+     */
+    private Segment getSegment(CacheKey cacheKey) {
+        return segments[getSegmentIndex(cacheKey.hashCode())];
+    }
+
+    /**
+     * Returns the index of the segment of an object, used to test the
+     * eviction within a segment.
+     *
+     * @param type the type of the object
      * @param objectKey the key of the object
-     * @return the key to be used in cache
-     */
-    private String getCacheKey(ObjectType type, String objectKey) {
-        return getTypeAsString(type) + cacheSeparator + objectKey;
-    }
-
-    /**
-     * Returns the object type as string.
-     *
-     * @param type the type of object
-     * @return the corresponding key
-     */
-    private String getTypeAsString(ObjectType type) {
-        switch (type) {
-            case coverable_AA_p:
-                return "coverable_AA_p";
-            case AA_coverage:
-                return "AA_coverage";
-            case sequence_coverage:
-                return "sequence_coverage";
-            case sequence_validation_coverage:
-                return "sequence_validation_coverage";
-            case expected_coverage:
-                return "expected_coverage";
-            case spectrum_counting:
-                return "spectrum_counting";
-            case number_of_spectra:
-                return "#spectra";
-            case number_of_validated_spectra:
-                return "#validated_spectra";
-            case number_of_validated_peptides:
-                return "#validated_peptides";
-            case number_of_confident_spectra:
-                return "#confident_spectra";
-            case number_of_confident_peptides:
-                return "#confident_peptides";
-            case max_psm_mz_for_peptides:
-                return "max_psm_mz_for_peptides";
-            case tryptic_protein:
-                return "tryptic_protein";
-            case unique_peptides:
-                return "unique_peptides";
-            case containsEnzymaticPeptides:
-                return "contains_enzymatic_peptides";
-            default:
-                return "default";
+     *
+     * @return the index of the segment of the object
+     */
+    static int getSegmentIndex(ObjectType type, String objectKey) {
+        return getSegmentIndex(new CacheKey(type, objectKey).hashCode());
+    }
+
+    /**
+     * Returns the index of the segment of the given hash code.
+     *
+     * @param hash the hash code of the key of the object
+     *
+     * @return the index of the segment
+     */
+    private static int getSegmentIndex(int hash) {
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % N_SEGMENTS;
+    }
+
+    /**
+     * Creates empty segments.
+     *
+     * @return empty segments
+     */
+    private static Segment[] createSegments() {
+        Segment[] segments = new Segment[N_SEGMENTS];
+        for (int i = 0; i < N_SEGMENTS; i++) {
+            segments[i] = new Segment();
         }
+        return segments;
     }
 
     /**
-     * Convenience method returning the type of object base on the objects cache
-     * key.
-     *
-     * @param cacheKey the object cache key
-     * @return the type of object
-     */
-    private ObjectType getType(String cacheKey) {
-        String objectTypeAsString = cacheKey.split(cacheSeparator)[0];
-        if (objectTypeAsString.equals("coverable_AA_p")) {
-            return ObjectType.coverable_AA_p;
-        } else if (objectTypeAsString.equals("AA_coverage")) {
-            return ObjectType.AA_coverage;
-        } else if (objectTypeAsString.equals("sequence_coverage")) {
-            return ObjectType.sequence_coverage;
-        } else if (objectTypeAsString.equals("sequence_validation_coverage")) {
-            return ObjectType.sequence_validation_coverage;
-        } else if (objectTypeAsString.equals("expected_coverage")) {
-            return ObjectType.expected_coverage;
-        } else if (objectTypeAsString.equals("spectrum_counting")) {
-            return ObjectType.spectrum_counting;
-        } else if (objectTypeAsString.equals("#spectra")) {
-            return ObjectType.number_of_spectra;
-        } else if (objectTypeAsString.equals("#validated_spectra")) {
-            return ObjectType.number_of_validated_spectra;
-        } else if (objectTypeAsString.equals("#validated_peptides")) {
-            return ObjectType.number_of_validated_peptides;
-        } else if (objectTypeAsString.equals("#confident_spectra")) {
-            return ObjectType.number_of_confident_spectra;
-        } else if (objectTypeAsString.equals("#confident_peptides")) {
-            return ObjectType.number_of_confident_peptides;
-        } else if (objectTypeAsString.equals("max_psm_mz_for_peptides")) {
-            return ObjectType.max_psm_mz_for_peptides;
-        } else if (objectTypeAsString.equals("tryptic_protein")) {
-            return ObjectType.tryptic_protein;
-        } else if (objectTypeAsString.equals("unique_peptides")) {
-            return ObjectType.unique_peptides;
-        } else if (objectTypeAsString.equals("contains_enzymatic_peptides")) { 
-            return ObjectType.containsEnzymaticPeptides;
+     * Returns an estimate of the memory used by the given object in bytes.
+     *
+     * @param object the object
+     *
+     * @return an estimate of the memory used by the object
+     */
+    private static long estimateSize(Object object) {
+        if (object == null) {
+            return 0;
+        } else if (object instanceof String) {
+            return OBJECT_OVERHEAD + 24 + 2L * ((String) object).length();
+        } else if (object instanceof int[]) {
+            return OBJECT_OVERHEAD + 4L * ((int[]) object).length;
+        } else if (object instanceof double[]) {
+            return OBJECT_OVERHEAD + 8L * ((double[]) object).length;
+        } else if (object instanceof boolean[]) {
+            return OBJECT_OVERHEAD + ((boolean[]) object).length;
+        } else if (object instanceof Collection) {
+            long size = 3 * OBJECT_OVERHEAD;
+            for (Object element : (Collection<?>) object) {
+                size += 8 + estimateSize(element);
+            }
+            return size;
         } else {
-            return null;
+            return OBJECT_OVERHEAD + 8;
         }
     }
 
     /**
-     * Convenience method returning the object key based on the cache key.
+     * Initializes the cache after deserialization. The objects cached by
+     * previous versions are not restored and will be recomputed on demand.
      *
-     * @param cacheKey the cache key
-     * @return the object key
-     */
-    private String getObjectKey(String cacheKey) {
-        StringBuilder buf = new StringBuilder();
-        String escapedString = java.util.regex.Pattern.quote(cacheKey);
-        String[] splittedKey = cacheKey.split(escapedString);
-        for (int i = 1; i < splittedKey.length; i++) {
-            buf.append(splittedKey[i]);
+     * @param inputStream the stream to read the cache from
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the stream
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing the cache
+     */
+    private void readObject(ObjectInputStream inputStream) throws IOException, ClassNotFoundException {
+        inputStream.defaultReadObject();
+        if (segments == null || segments.length != N_SEGMENTS) {
+            segments = createSegments();
+        }
+        if (memoryBudget <= 0) {
+            memoryBudget = DEFAULT_MEMORY_BUDGET;
         }
-        return buf.toString();
+        hits = new AtomicLongArray(ObjectType.values().length);
+        misses = new AtomicLongArray(ObjectType.values().length);
     }
 
     /**
@@ -658,4 +611,166 @@ public class IdentificationFeaturesCache implements Serializable {
     public void setReadOnly(boolean readOnly) {
         this.readOnly = readOnly;
     }
+
+    /**
+     * Key of an object in the cache.
+     *
+     * @author Marc Vaudel
+     */
+    private static class CacheKey implements Serializable {
+
+        /**
+         * Serial number for backward compatibility.
+         */
+        static final long serialVersionUID = 5364238812371063215L;
+        /**
+         * The type of the object.
+         */
+        private final ObjectType type;
+        /**
+         * The key of the object.
+         */
+        private final String objectKey;
+        /**
+         * The hash code of the key, based on the ordinal of the type to remain
+         * stable after serialization.
+         */
+        private final int hash;
+
+        /**
+         * Constructor.
+         *
+         * @param type the type of the object
+         * @param objectKey the key of the object
+         */
+        public CacheKey(ObjectType type, String objectKey) {
+            this.type = type;
+            this.objectKey = objectKey;
+            this.hash = 31 * objectKey.hashCode() + type.ordinal();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey otherKey = (CacheKey) other;
+            return type == otherKey.type && objectKey.equals(otherKey.objectKey);
+        }
+    }
+
+    /**
+     * Segment of the cache where the objects are stored in access order and
+     * evicted when the memory used exceeds the budget of the segment.
+     *
+     * @author Marc Vaudel
+     */
+    private static class Segment implements Serializable {
+
+        /**
+         * Serial number for backward compatibility.
+         */
+        static final long serialVersionUID = -2418529076133540177L;
+        /**
+         * The objects of the segment in access order.
+         */
+        private final LinkedHashMap<CacheKey, Object> objects = new LinkedHashMap<CacheKey, Object>(16, 0.75f, true);
+        /**
+         * The estimated memory used by the objects of the segment.
+         */
+        private long size = 0;
+
+        /**
+         * Returns the object of the given key, null if not found.
+         *
+         * @param cacheKey the key of the object
+         *
+         * @return the object of the given key
+         */
+        public synchronized Object get(CacheKey cacheKey) {
+            return objects.get(cacheKey);
+        }
+
+        /**
+         * Stores an object and evicts the least recently used objects if the
+         * budget is exceeded. The object stored is never evicted.
+         *
+         * @param cacheKey the key of the object
+         * @param object the object
+         * @param objectSize the estimated memory used by the object
+         * @param budget the memory budget of the segment
+         */
+        public synchronized void put(CacheKey cacheKey, Object object, long objectSize, long budget) {
+            Object oldObject = objects.put(cacheKey, object);
+            if (oldObject != null) {
+                size -= ENTRY_OVERHEAD + estimateSize(cacheKey.objectKey) + estimateSize(oldObject);
+            }
+            size += objectSize;
+            if (size > budget) {
+                Iterator<Map.Entry<CacheKey, Object>> iterator = objects.entrySet().iterator();
+                while (size > budget && objects.size() > 1) {
+                    Map.Entry<CacheKey, Object> entry = iterator.next();
+                    size -= ENTRY_OVERHEAD + estimateSize(entry.getKey().objectKey) + estimateSize(entry.getValue());
+                    iterator.remove();
+                }
+            }
+        }
+
+        /**
+         * Evicts the least recently used objects until the memory used fits
+         * in the given budget.
+         *
+         * @param budget the memory budget of the segment
+         */
+        public synchronized void evict(long budget) {
+            Iterator<Map.Entry<CacheKey, Object>> iterator = objects.entrySet().iterator();
+            while (size > budget && iterator.hasNext()) {
+                Map.Entry<CacheKey, Object> entry = iterator.next();
+                size -= ENTRY_OVERHEAD + estimateSize(entry.getKey().objectKey) + estimateSize(entry.getValue());
+                iterator.remove();
+            }
+        }
+
+        /**
+         * Removes the objects of the given type.
+         *
+         * @param type the type of object
+         */
+        public synchronized void removeObjects(ObjectType type) {
+            Iterator<Map.Entry<CacheKey, Object>> iterator = objects.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<CacheKey, Object> entry = iterator.next();
+                if (entry.getKey().type == type) {
+                    size -= ENTRY_OVERHEAD + estimateSize(entry.getKey().objectKey) + estimateSize(entry.getValue());
+                    iterator.remove();
+                }
+            }
+        }
+
+        /**
+         * Returns the estimated memory used by the objects of the segment.
+         *
+         * @return the estimated memory used by the objects of the segment
+         */
+        public synchronized long getSize() {
+            return size;
+        }
+
+        /**
+         * Writes the segment while preventing concurrent modifications.
+         *
+         * @param outputStream the stream to write the segment to
+         *
+         * @throws IOException exception thrown whenever an error occurred
+         * while writing the stream
+         */
+        private synchronized void writeObject(ObjectOutputStream outputStream) throws IOException {
+            outputStream.defaultWriteObject();
+        }
+    }
 }
@@ -58,6 +58,10 @@ public class IdentificationFeaturesGenerator {
      * The sequence factory.
      */
     private SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+    /**
+     * The protein sequence store.
+     */
+    private ProteinSequenceStore proteinSequenceStore = ProteinSequenceStore.getInstance();
     /**
      * The compomics PTM factory.
      */
@@ -71,6 +75,10 @@ public class IdentificationFeaturesGenerator {
      * identification features are stored
      */
     private IdentificationFeaturesCache identificationFeaturesCache = new IdentificationFeaturesCache();
+    /**
+     * The protein features computed after processing, null if not available.
+     */
+    private volatile ProteinFeaturesTable proteinFeaturesTable = null;
     /**
      * The metrics picked-up wile loading the data.
      */
@@ -91,6 +99,14 @@ public class IdentificationFeaturesGenerator {
      * Map of the distributions of precursor mass errors.
      */
     private HashMap<String, NonSymmetricalNormalDistribution> massErrorDistribution = null;
+    /**
+     * The name under which the cache is registered to the memory governor.
+     */
+    private static final String MEMORY_RECLAIMER_NAME = "Identification features";
+    /**
+     * The reclaimer reducing the cache when the memory is short.
+     */
+    private final MemoryGovernor.MemoryReclaimer memoryReclaimer;
 
     /**
      * Constructor.
@@ -106,6 +122,26 @@ public class IdentificationFeaturesGenerator {
         this.identificationParameters = identificationParameters;
         this.identification = identification;
         this.spectrumCountingPreferences = spectrumCountingPreferences;
+        memoryReclaimer = new MemoryGovernor.MemoryReclaimer() {
+            @Override
+            public boolean reclaim(MemoryGovernor.PressureLevel pressureLevel) {
+                if (identificationFeaturesCache.getMemoryUsage() == 0) {
+                    return false;
+                }
+                identificationFeaturesCache.reduceMemoryConsumption(pressureLevel == MemoryGovernor.PressureLevel.critical ? 1 : 0.5);
+                return true;
+            }
+        };
+        MemoryGovernor.getInstance().register(MEMORY_RECLAIMER_NAME, MemoryGovernor.IDENTIFICATION_FEATURES_PRIORITY, memoryReclaimer);
+    }
+
+    /**
+     * Unregisters the cache from the memory governor so that this generator
+     * and its project can be garbage collected. To be called when the project
+     * is closed or when the generator is replaced.
+     */
+    public void close() {
+        MemoryGovernor.getInstance().unregister(MEMORY_RECLAIMER_NAME, memoryReclaimer);
     }
 
     /**
@@ -114,7 +150,7 @@ public class IdentificationFeaturesGenerator {
      * @param spectrumFile the spectrum file of interest
      * @param precursorMzDeviations list of precursor mass errors
      */
-    public void setMassErrorDistribution(String spectrumFile, ArrayList<Double> precursorMzDeviations) {
+    public synchronized void setMassErrorDistribution(String spectrumFile, ArrayList<Double> precursorMzDeviations) {
         if (massErrorDistribution == null) {
             massErrorDistribution = new HashMap<String, NonSymmetricalNormalDistribution>(1);
         }
@@ -142,7 +178,7 @@ public class IdentificationFeaturesGenerator {
      * @throws MzMLUnmarshallerException Exception thrown whenever an error
      * occurred while reading an mzML file
      */
-    public NonSymmetricalNormalDistribution getMassErrorDistribution(String spectrumFile) throws SQLException, IOException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
+    public synchronized NonSymmetricalNormalDistribution getMassErrorDistribution(String spectrumFile) throws SQLException, IOException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException {
         if (massErrorDistribution == null || massErrorDistribution.get(spectrumFile) == null) {
             estimateMassErrorDistribution(spectrumFile);
         }
@@ -329,7 +365,7 @@ public class IdentificationFeaturesGenerator {
             result.put(validationLevel, result.get(validationLevel) + 1);
         }
         ProteinMatch proteinMatch = identification.getProteinMatch(proteinMatchKey);
-        String sequence = sequenceFactory.getProtein(proteinMatch.getMainMatch()).getSequence();
+        String sequence = proteinSequenceStore.getSequence(proteinMatch.getMainMatch());
         for (int validationLevel : MatchValidationLevel.getValidationLevelIndexes()) {
             result.put(validationLevel, result.get(validationLevel) / sequence.length());
         }
@@ -368,7 +404,7 @@ public class IdentificationFeaturesGenerator {
             }
         }
         ProteinMatch proteinMatch = identification.getProteinMatch(proteinMatchKey);
-        String sequence = sequenceFactory.getProtein(proteinMatch.getMainMatch()).getSequence();
+        String sequence = proteinSequenceStore.getSequence(proteinMatch.getMainMatch());
         double result = nAAValidated / sequence.length();
         return result;
     }
@@ -431,7 +467,7 @@ public class IdentificationFeaturesGenerator {
             throws SQLException, IOException, ClassNotFoundException, InterruptedException {
 
         ProteinMatch proteinMatch = identification.getProteinMatch(proteinMatchKey);
-        Protein currentProtein = sequenceFactory.getProtein(proteinMatch.getMainMatch());
+        Protein currentProtein = proteinSequenceStore.getProtein(proteinMatch.getMainMatch());
         String sequence = currentProtein.getSequence();
 
         HashMap<Integer, ArrayList<Integer>> aminoAcids = new HashMap<Integer, ArrayList<Integer>>();
@@ -553,7 +589,7 @@ public class IdentificationFeaturesGenerator {
     private double[] estimateCoverableAA(String proteinMatchKey) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
 
         ProteinMatch proteinMatch = identification.getProteinMatch(proteinMatchKey);
-        String sequence = sequenceFactory.getProtein(proteinMatch.getMainMatch()).getSequence();
+        String sequence = proteinSequenceStore.getSequence(proteinMatch.getMainMatch());
         double[] result = new double[sequence.length()];
         Distribution peptideLengthDistribution = metrics.getPeptideLengthDistribution();
         DigestionPreferences digestionPreferences = identificationParameters.getSearchParameters().getDigestionPreferences();
@@ -638,7 +674,10 @@ public class IdentificationFeaturesGenerator {
         Double result = (Double) identificationFeaturesCache.getObject(IdentificationFeaturesCache.ObjectType.sequence_coverage, proteinMatchKey);
 
         if (result == null) {
-            result = estimateValidatedSequenceCoverage(proteinMatchKey);
+            result = getProteinFeature(ProteinFeaturesTable.Feature.validated_coverage, proteinMatchKey);
+            if (result == null) {
+                result = estimateValidatedSequenceCoverage(proteinMatchKey);
+            }
             identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.sequence_coverage, proteinMatchKey, result);
         }
         return result;
@@ -803,6 +842,7 @@ public class IdentificationFeaturesGenerator {
             throws SQLException, IOException, ClassNotFoundException, InterruptedException {
         HashMap<Integer, Double> result = estimateSequenceCoverage(proteinMatchKey);
         identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.sequence_validation_coverage, proteinMatchKey, result);
+        removeProteinFeatures(proteinMatchKey);
     }
 
     /**
@@ -1005,7 +1045,10 @@ public class IdentificationFeaturesGenerator {
             Double result = (Double) identificationFeaturesCache.getObject(IdentificationFeaturesCache.ObjectType.spectrum_counting, proteinMatchKey);
 
             if (result == null) {
-                result = estimateSpectrumCounting(proteinMatchKey);
+                result = getProteinFeature(ProteinFeaturesTable.Feature.spectrum_counting, proteinMatchKey);
+                if (result == null) {
+                    result = estimateSpectrumCounting(proteinMatchKey);
+                }
                 identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.spectrum_counting, proteinMatchKey, result);
             }
             return result;
@@ -1217,7 +1260,10 @@ public class IdentificationFeaturesGenerator {
 
         Double result = (Double) identificationFeaturesCache.getObject(IdentificationFeaturesCache.ObjectType.expected_coverage, proteinMatchKey);
         if (result == null) {
-            result = estimateObservableCoverage(proteinMatchKey);
+            result = getProteinFeature(ProteinFeaturesTable.Feature.observable_coverage, proteinMatchKey);
+            if (result == null) {
+                result = estimateObservableCoverage(proteinMatchKey);
+            }
             identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.expected_coverage, proteinMatchKey, result);
         }
 
@@ -1259,6 +1305,7 @@ public class IdentificationFeaturesGenerator {
     public void updateObservableCoverage(String proteinMatchKey) throws SQLException, IOException, ClassNotFoundException, InterruptedException, MathException {
         Double result = estimateObservableCoverage(proteinMatchKey);
         identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.expected_coverage, proteinMatchKey, result);
+        removeProteinFeatures(proteinMatchKey);
     }
 
     /**
@@ -1298,7 +1345,7 @@ public class IdentificationFeaturesGenerator {
             ProteinMatch proteinMatch = identification.getProteinMatch(proteinMatchKey);
             mainMatch = proteinMatch.getMainMatch();
         }
-        Protein currentProtein = sequenceFactory.getProtein(mainMatch);
+        Protein currentProtein = proteinSequenceStore.getProtein(mainMatch);
         double lengthMax = identificationParameters.getPeptideAssumptionFilter().getMaxPepLength();
         if (metrics.getPeptideLengthDistribution() != null) {
             lengthMax = Math.min(lengthMax, metrics.getPeptideLengthDistribution().getValueAtCumulativeProbability(0.99));
@@ -1324,7 +1371,7 @@ public class IdentificationFeaturesGenerator {
      * threading error occurred while interacting with a database (from the
      * protein tree or identification)
      */
-    public int getNValidatedProteins() throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+    public synchronized int getNValidatedProteins() throws SQLException, IOException, ClassNotFoundException, InterruptedException {
         if (metrics.getnValidatedProteins() == -1) {
             estimateNValidatedProteins();
         }
@@ -1383,7 +1430,7 @@ public class IdentificationFeaturesGenerator {
      * threading error occurred while interacting with a database (from the
      * protein tree or identification)
      */
-    public int getNConfidentProteins() throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+    public synchronized int getNConfidentProteins() throws SQLException, IOException, ClassNotFoundException, InterruptedException {
         if (metrics.getnConfidentProteins() == -1) {
             estimateNConfidentProteins();
         }
@@ -1525,7 +1572,10 @@ public class IdentificationFeaturesGenerator {
         Integer result = (Integer) identificationFeaturesCache.getObject(IdentificationFeaturesCache.ObjectType.unique_peptides, proteinMatchKey);
 
         if (result == null) {
-            result = estimateNUniquePeptides(proteinMatchKey);
+            result = getIntProteinFeature(ProteinFeaturesTable.Feature.number_of_unique_peptides, proteinMatchKey);
+            if (result == null) {
+                result = estimateNUniquePeptides(proteinMatchKey);
+            }
             identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.unique_peptides, proteinMatchKey, result);
         }
         return result;
@@ -1852,7 +1902,10 @@ public class IdentificationFeaturesGenerator {
         Integer result = (Integer) identificationFeaturesCache.getObject(IdentificationFeaturesCache.ObjectType.number_of_validated_peptides, proteinMatchKey);
 
         if (result == null) {
-            result = estimateNValidatedPeptides(proteinMatchKey);
+            result = getIntProteinFeature(ProteinFeaturesTable.Feature.number_of_validated_peptides, proteinMatchKey);
+            if (result == null) {
+                result = estimateNValidatedPeptides(proteinMatchKey);
+            }
             identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.number_of_validated_peptides, proteinMatchKey, result);
         }
 
@@ -1882,7 +1935,10 @@ public class IdentificationFeaturesGenerator {
         Integer result = (Integer) identificationFeaturesCache.getObject(IdentificationFeaturesCache.ObjectType.number_of_confident_peptides, proteinMatchKey);
 
         if (result == null) {
-            result = estimateNConfidentPeptides(proteinMatchKey);
+            result = getIntProteinFeature(ProteinFeaturesTable.Feature.number_of_confident_peptides, proteinMatchKey);
+            if (result == null) {
+                result = estimateNConfidentPeptides(proteinMatchKey);
+            }
             identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.number_of_confident_peptides, proteinMatchKey, result);
         }
 
@@ -1909,6 +1965,7 @@ public class IdentificationFeaturesGenerator {
     public void updateNConfidentPeptides(String proteinMatchKey) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
         Integer result = estimateNConfidentPeptides(proteinMatchKey);
         identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.number_of_confident_peptides, proteinMatchKey, result);
+        removeProteinFeatures(proteinMatchKey);
     }
 
     /**
@@ -1931,6 +1988,7 @@ public class IdentificationFeaturesGenerator {
     public void updateNConfidentSpectra(String proteinMatchKey) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
         Integer result = estimateNConfidentSpectra(proteinMatchKey);
         identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.number_of_confident_spectra, proteinMatchKey, result);
+        removeProteinFeatures(proteinMatchKey);
     }
 
     /**
@@ -1967,7 +2025,10 @@ public class IdentificationFeaturesGenerator {
     public Integer getNSpectra(String proteinMatchKey) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
         Integer result = (Integer) identificationFeaturesCache.getObject(IdentificationFeaturesCache.ObjectType.number_of_spectra, proteinMatchKey);
         if (result == null) {
-            result = estimateNSpectra(proteinMatchKey);
+            result = getIntProteinFeature(ProteinFeaturesTable.Feature.number_of_spectra, proteinMatchKey);
+            if (result == null) {
+                result = estimateNSpectra(proteinMatchKey);
+            }
             identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.number_of_spectra, proteinMatchKey, result);
         }
         return result;
@@ -2065,7 +2126,10 @@ public class IdentificationFeaturesGenerator {
         Integer result = (Integer) identificationFeaturesCache.getObject(IdentificationFeaturesCache.ObjectType.number_of_validated_spectra, proteinMatchKey);
 
         if (result == null) {
-            result = estimateNValidatedSpectra(proteinMatchKey);
+            result = getIntProteinFeature(ProteinFeaturesTable.Feature.number_of_validated_spectra, proteinMatchKey);
+            if (result == null) {
+                result = estimateNValidatedSpectra(proteinMatchKey);
+            }
             identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.number_of_validated_spectra, proteinMatchKey, result);
         }
 
@@ -2095,7 +2159,10 @@ public class IdentificationFeaturesGenerator {
         Integer result = (Integer) identificationFeaturesCache.getObject(IdentificationFeaturesCache.ObjectType.number_of_confident_spectra, proteinMatchKey);
 
         if (result == null) {
-            result = estimateNConfidentSpectra(proteinMatchKey);
+            result = getIntProteinFeature(ProteinFeaturesTable.Feature.number_of_confident_spectra, proteinMatchKey);
+            if (result == null) {
+                result = estimateNConfidentSpectra(proteinMatchKey);
+            }
             identificationFeaturesCache.addObject(IdentificationFeaturesCache.ObjectType.number_of_confident_spectra, proteinMatchKey, result);
         }
 
@@ -2372,6 +2439,10 @@ public class IdentificationFeaturesGenerator {
      */
     public void clearSpectrumCounting() {
         identificationFeaturesCache.removeObjects(IdentificationFeaturesCache.ObjectType.spectrum_counting);
+        ProteinFeaturesTable table = proteinFeaturesTable;
+        if (table != null) {
+            table.clear(ProteinFeaturesTable.Feature.spectrum_counting);
+        }
     }
 
     /**
@@ -3314,6 +3385,73 @@ public class IdentificationFeaturesGenerator {
         this.identificationFeaturesCache = identificationFeaturesCache;
     }
 
+    /**
+     * Returns the table of the protein features computed after processing,
+     * null if not set.
+     *
+     * @return the table of the protein features
+     */
+    public ProteinFeaturesTable getProteinFeaturesTable() {
+        return proteinFeaturesTable;
+    }
+
+    /**
+     * Sets the table of the protein features computed after processing. The
+     * features found in the table are used instead of computing them.
+     *
+     * @param proteinFeaturesTable the table of the protein features
+     */
+    public void setProteinFeaturesTable(ProteinFeaturesTable proteinFeaturesTable) {
+        this.proteinFeaturesTable = proteinFeaturesTable;
+    }
+
+    /**
+     * Returns the value of a protein feature from the table of precomputed
+     * features, null if not available.
+     *
+     * @param feature the feature
+     * @param proteinMatchKey the key of the protein match
+     *
+     * @return the value of the feature
+     */
+    private Double getProteinFeature(ProteinFeaturesTable.Feature feature, String proteinMatchKey) {
+        ProteinFeaturesTable table = proteinFeaturesTable;
+        if (table == null) {
+            return null;
+        }
+        return table.getValue(feature, proteinMatchKey);
+    }
+
+    /**
+     * Returns the value of an integer protein feature from the table of
+     * precomputed features, null if not available.
+     *
+     * @param feature the feature
+     * @param proteinMatchKey the key of the protein match
+     *
+     * @return the value of the feature
+     */
+    private Integer getIntProteinFeature(ProteinFeaturesTable.Feature feature, String proteinMatchKey) {
+        ProteinFeaturesTable table = proteinFeaturesTable;
+        if (table == null) {
+            return null;
+        }
+        return table.getIntValue(feature, proteinMatchKey);
+    }
+
+    /**
+     * Removes the precomputed features of the given protein, they will be
+     * computed on demand.
+     *
+     * @param proteinMatchKey the key of the protein match
+     */
+    private void removeProteinFeatures(String proteinMatchKey) {
+        ProteinFeaturesTable table = proteinFeaturesTable;
+        if (table != null) {
+            table.remove(proteinMatchKey);
+        }
+    }
+
     /**
      * Returns the metrics.
      *
@@ -0,0 +1,567 @@
+package eu.isas.peptideshaker.utils;
+
+import com.compomics.util.db.ObjectsCache;
+import com.compomics.util.experiment.identification.protein_inference.PeptideMapper;
+import com.compomics.util.experiment.identification.protein_inference.proteintree.ProteinTree;
+import com.compomics.util.experiment.identification.protein_inference.proteintree.ProteinTreeComponentsFactory;
+import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
+import com.compomics.util.memory.MemoryConsumptionStatus;
+import com.compomics.util.waiting.WaitingHandler;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Central component monitoring the memory. The heap is sampled on a
+ * background thread and, when the memory pressure rises, the registered
+ * caches are reduced by order of priority. Producers can wait for the memory
+ * pressure to decrease instead of freeing memory themselves. The reduction of
+ * the caches which cannot be emptied while being read by other threads is
+ * only requested by the governor, and applied by the producers when they
+ * wait for memory.
+ *
+ * @author Marc Vaudel
+ */
+public class MemoryGovernor {
+
+    /**
+     * The levels of memory pressure.
+     */
+    public enum PressureLevel {
+
+        /**
+         * Memory is available.
+         */
+        normal,
+        /**
+         * Memory is getting short, caches should be reduced.
+         */
+        high,
+        /**
+         * Memory is almost full, caches should be emptied and producers
+         * should wait.
+         */
+        critical;
+    }
+
+    /**
+     * Interface for the components able to release memory on demand.
+     */
+    public interface MemoryReclaimer {
+
+        /**
+         * Releases memory according to the given pressure level.
+         *
+         * @param pressureLevel the current pressure level
+         *
+         * @return a boolean indicating whether memory was released
+         *
+         * @throws Exception exception thrown whenever an error occurred while
+         * releasing memory
+         */
+        public boolean reclaim(PressureLevel pressureLevel) throws Exception;
+    }
+
+    /**
+     * The share of the memory used above which the pressure is high.
+     */
+    public static final double HIGH_PRESSURE = 0.8;
+    /**
+     * The share of the memory used above which the pressure is critical.
+     */
+    public static final double CRITICAL_PRESSURE = 0.9;
+    /**
+     * The interval in milliseconds between two samplings of the heap.
+     */
+    public static final long SAMPLING_INTERVAL = 250;
+    /**
+     * The minimal interval in milliseconds between two reductions of the
+     * caches, leaving time to the garbage collector to collect the objects
+     * released.
+     */
+    public static final long RECLAIM_INTERVAL = 1000;
+    /**
+     * The minimal interval in milliseconds between two garbage collections
+     * requested by the governor.
+     */
+    public static final long GC_INTERVAL = 5000;
+    /**
+     * The maximal time in milliseconds a producer waits for the memory
+     * pressure to decrease.
+     */
+    public static final long MAX_WAIT = 10000;
+    /**
+     * The priority of the identification features cache.
+     */
+    public static final int IDENTIFICATION_FEATURES_PRIORITY = 0;
+    /**
+     * The priority of the protein sequences cache.
+     */
+    public static final int SEQUENCES_PRIORITY = 1;
+    /**
+     * The priority of the protein tree components cache.
+     */
+    public static final int PROTEIN_TREE_COMPONENTS_PRIORITY = 2;
+    /**
+     * The priority of the protein tree nodes cache.
+     */
+    public static final int PROTEIN_TREE_NODES_PRIORITY = 3;
+    /**
+     * The priority of the objects cache of the identification.
+     */
+    public static final int OBJECTS_CACHE_PRIORITY = 4;
+    /**
+     * The instance of the governor.
+     */
+    private static MemoryGovernor instance = null;
+    /**
+     * The registered reclaimers sorted by priority.
+     */
+    private final ArrayList<Registration> reclaimers = new ArrayList<Registration>();
+    /**
+     * The current pressure level.
+     */
+    private volatile PressureLevel pressureLevel = PressureLevel.normal;
+    /**
+     * Indicates whether the reduction of a deferred reclaimer was requested.
+     */
+    private volatile boolean reductionRequested = false;
+    /**
+     * The time of the last reduction of the caches.
+     */
+    private long lastReclaim = 0;
+    /**
+     * The time of the last garbage collection requested.
+     */
+    private long lastGc = 0;
+
+    /**
+     * Constructor.
+     */
+    private MemoryGovernor() {
+        this(true);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param sampleHeap if true the heap is sampled on a background thread,
+     * otherwise the pressure level is only changed by setPressureLevel
+     */
+    MemoryGovernor(boolean sampleHeap) {
+        // The protein cache of the sequence factory is not meant to be emptied in the middle of a read, the reduction is therefore applied by the producers between two matches
+        registerDeferred("Protein sequences", SEQUENCES_PRIORITY, new MemoryReclaimer() {
+            @Override
+            public boolean reclaim(PressureLevel pressureLevel) {
+                if (pressureLevel == PressureLevel.critical) {
+                    SequenceFactory.getInstance().emptyCache();
+                    return true;
+                }
+                return false;
+            }
+        });
+        if (!sampleHeap) {
+            return;
+        }
+        Thread samplingThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(SAMPLING_INTERVAL);
+                        sample();
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }, "PeptideShaker-memory-governor");
+        samplingThread.setDaemon(true);
+        samplingThread.start();
+    }
+
+    /**
+     * Returns the instance of the governor and starts the sampling of the
+     * heap at the first call.
+     *
+     * @return the instance of the governor
+     */
+    public static synchronized MemoryGovernor getInstance() {
+        if (instance == null) {
+            instance = new MemoryGovernor();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the current pressure level.
+     *
+     * @return the current pressure level
+     */
+    public PressureLevel getPressureLevel() {
+        return pressureLevel;
+    }
+
+    /**
+     * Registers a reclaimer. A reclaimer registered under the same name is
+     * replaced. Reclaimers of low priority value are solicited first.
+     *
+     * @param name the name of the reclaimer
+     * @param priority the priority of the reclaimer
+     * @param reclaimer the reclaimer
+     */
+    public void register(String name, int priority, MemoryReclaimer reclaimer) {
+        register(new Registration(name, priority, reclaimer, false));
+    }
+
+    /**
+     * Registers a reclaimer which is not run by the governor. When the
+     * pressure rises, the governor requests the reduction and the reclaimer
+     * is run by the next producer calling awaitMemory, with the highest
+     * pressure level requested in the meantime. A reclaimer registered under
+     * the same name is replaced.
+     *
+     * @param name the name of the reclaimer
+     * @param priority the priority of the reclaimer
+     * @param reclaimer the reclaimer
+     */
+    public void registerDeferred(String name, int priority, MemoryReclaimer reclaimer) {
+        register(new Registration(name, priority, reclaimer, true));
+    }
+
+    /**
+     * Registers a reclaimer.
+     *
+     * @param registration the registration of the reclaimer
+     */
+    private void register(Registration registration) {
+        synchronized (reclaimers) {
+            unregister(registration.name);
+            reclaimers.add(registration);
+            Collections.sort(reclaimers, new Comparator<Registration>() {
+                @Override
+                public int compare(Registration o1, Registration o2) {
+                    return o1.priority - o2.priority;
+                }
+            });
+        }
+    }
+
+    /**
+     * Unregisters the reclaimer of the given name.
+     *
+     * @param name the name of the reclaimer
+     */
+    public void unregister(String name) {
+        synchronized (reclaimers) {
+            for (int i = reclaimers.size() - 1; i >= 0; i--) {
+                if (reclaimers.get(i).name.equals(name)) {
+                    reclaimers.remove(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Unregisters the given reclaimer if it is still registered under the
+     * given name. A reclaimer registered since under the same name is kept.
+     *
+     * @param name the name of the reclaimer
+     * @param reclaimer the reclaimer
+     */
+    public void unregister(String name, MemoryReclaimer reclaimer) {
+        synchronized (reclaimers) {
+            for (int i = reclaimers.size() - 1; i >= 0; i--) {
+                Registration registration = reclaimers.get(i);
+                if (registration.name.equals(name) && registration.reclaimer == reclaimer) {
+                    reclaimers.remove(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers the given objects cache. It is reduced by half when the
+     * pressure is high and emptied when critical.
+     *
+     * @param objectsCache the objects cache
+     */
+    public void registerObjectsCache(final ObjectsCache objectsCache) {
+        register("Objects cache", OBJECTS_CACHE_PRIORITY, new MemoryReclaimer() {
+            @Override
+            public boolean reclaim(PressureLevel pressureLevel) throws Exception {
+                if (objectsCache.isEmpty()) {
+                    return false;
+                }
+                objectsCache.reduceMemoryConsumption(pressureLevel == PressureLevel.critical ? 1 : 0.5, null);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Registers the caches of the protein tree. The components cache is
+     * reduced by half when the pressure is high and the nodes cache when
+     * critical. Does nothing if the peptide mapper is not a protein tree.
+     *
+     * @param peptideMapper the peptide mapper in use
+     */
+    public void registerProteinTree(PeptideMapper peptideMapper) {
+        if (!(peptideMapper instanceof ProteinTree)) {
+            unregister("Protein tree components");
+            unregister("Protein tree nodes");
+            return;
+        }
+        final ProteinTree proteinTree = (ProteinTree) peptideMapper;
+        register("Protein tree components", PROTEIN_TREE_COMPONENTS_PRIORITY, new MemoryReclaimer() {
+            @Override
+            public boolean reclaim(PressureLevel pressureLevel) throws Exception {
+                ObjectsCache componentsCache = ProteinTreeComponentsFactory.getInstance().getCache();
+                if (componentsCache.isEmpty()) {
+                    return false;
+                }
+                componentsCache.reduceMemoryConsumption(0.5, null);
+                return true;
+            }
+        });
+        register("Protein tree nodes", PROTEIN_TREE_NODES_PRIORITY, new MemoryReclaimer() {
+            @Override
+            public boolean reclaim(PressureLevel pressureLevel) throws Exception {
+                if (pressureLevel != PressureLevel.critical || proteinTree.getNodesInCache() == 0) {
+                    return false;
+                }
+                proteinTree.reduceNodeCacheSize(0.5);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Waits until the memory pressure is not critical. Producers call this
+     * method before creating new objects so that the caches can be reduced
+     * in the meantime. The reductions requested to the deferred reclaimers
+     * are applied by the calling thread.
+     *
+     * @param waitingHandler a waiting handler allowing the cancellation of
+     * the waiting, can be null
+     *
+     * @return a boolean indicating whether the pressure is below critical,
+     * false if it remained critical for MAX_WAIT milliseconds or if the
+     * process was canceled
+     *
+     * @throws InterruptedException exception thrown whenever the thread was
+     * interrupted while waiting
+     */
+    public boolean awaitMemory(WaitingHandler waitingHandler) throws InterruptedException {
+        return awaitMemory(waitingHandler, MAX_WAIT);
+    }
+
+    /**
+     * Waits until the memory pressure is not critical for at most the given
+     * time.
+     *
+     * @param waitingHandler a waiting handler allowing the cancellation of
+     * the waiting, can be null
+     * @param maxWait the maximal time to wait in milliseconds
+     *
+     * @return a boolean indicating whether the pressure is below critical
+     *
+     * @throws InterruptedException exception thrown whenever the thread was
+     * interrupted while waiting
+     */
+    boolean awaitMemory(WaitingHandler waitingHandler, long maxWait) throws InterruptedException {
+        applyRequestedReductions();
+        if (pressureLevel != PressureLevel.critical) {
+            return true;
+        }
+        long end = System.currentTimeMillis() + maxWait;
+        while (pressureLevel == PressureLevel.critical) {
+            long remaining = end - System.currentTimeMillis();
+            if (remaining <= 0 || waitingHandler != null && waitingHandler.isRunCanceled()) {
+                return false;
+            }
+            synchronized (this) {
+                if (pressureLevel == PressureLevel.critical) {
+                    wait(Math.min(remaining, SAMPLING_INTERVAL));
+                }
+            }
+            applyRequestedReductions();
+        }
+        return true;
+    }
+
+    /**
+     * Runs the deferred reclaimers whose reduction was requested.
+     */
+    private void applyRequestedReductions() {
+        if (!reductionRequested) {
+            return;
+        }
+        reductionRequested = false;
+        ArrayList<Registration> currentReclaimers;
+        synchronized (reclaimers) {
+            currentReclaimers = new ArrayList<Registration>(reclaimers);
+        }
+        for (Registration registration : currentReclaimers) {
+            PressureLevel requestedLevel = registration.takeRequest();
+            if (requestedLevel != null) {
+                try {
+                    registration.reclaimer.reclaim(requestedLevel);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reduces the registered caches according to the given pressure level:
+     * the reclaimers are solicited by order of priority until one releases
+     * memory when the pressure is high, all reclaimers are solicited when
+     * critical. The deferred reclaimers solicited are only requested to
+     * reduce their cache.
+     *
+     * @param pressureLevel the pressure level
+     */
+    public void reclaim(PressureLevel pressureLevel) {
+        if (pressureLevel == PressureLevel.normal) {
+            return;
+        }
+        ArrayList<Registration> currentReclaimers;
+        synchronized (reclaimers) {
+            currentReclaimers = new ArrayList<Registration>(reclaimers);
+        }
+        for (Registration registration : currentReclaimers) {
+            if (registration.deferred) {
+                registration.request(pressureLevel);
+                reductionRequested = true;
+                continue;
+            }
+            try {
+                if (registration.reclaimer.reclaim(pressureLevel) && pressureLevel == PressureLevel.high) {
+                    return;
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Samples the heap, updates the pressure level and reduces the caches if
+     * needed.
+     */
+    private void sample() {
+        PressureLevel newLevel = getPressureLevel(MemoryConsumptionStatus.memoryUsed());
+        long now = System.currentTimeMillis();
+        if (newLevel != PressureLevel.normal && now - lastReclaim >= RECLAIM_INTERVAL) {
+            reclaim(newLevel);
+            lastReclaim = now;
+            if (newLevel == PressureLevel.critical && now - lastGc >= GC_INTERVAL) {
+                System.gc();
+                lastGc = System.currentTimeMillis();
+                newLevel = getPressureLevel(MemoryConsumptionStatus.memoryUsed());
+            }
+        }
+        if (newLevel != pressureLevel) {
+            setPressureLevel(newLevel);
+        }
+    }
+
+    /**
+     * Sets the pressure level and wakes up the producers waiting for memory.
+     *
+     * @param pressureLevel the pressure level
+     */
+    synchronized void setPressureLevel(PressureLevel pressureLevel) {
+        this.pressureLevel = pressureLevel;
+        notifyAll();
+    }
+
+    /**
+     * Returns the pressure level corresponding to the given share of memory
+     * used.
+     *
+     * @param memoryUsed the share of memory used
+     *
+     * @return the pressure level
+     */
+    private static PressureLevel getPressureLevel(double memoryUsed) {
+        if (memoryUsed >= CRITICAL_PRESSURE) {
+            return PressureLevel.critical;
+        } else if (memoryUsed >= HIGH_PRESSURE) {
+            return PressureLevel.high;
+        }
+        return PressureLevel.normal;
+    }
+
+    /**
+     * A registered reclaimer.
+     *
+     * @author Marc Vaudel
+     */
+    private static class Registration {
+
+        /**
+         * The name of the reclaimer.
+         */
+        private final String name;
+        /**
+         * The priority of the reclaimer.
+         */
+        private final int priority;
+        /**
+         * The reclaimer.
+         */
+        private final MemoryReclaimer reclaimer;
+        /**
+         * Indicates whether the reclaimer is run by the producers.
+         */
+        private final boolean deferred;
+        /**
+         * The highest pressure level requested and not applied yet, null if
+         * none.
+         */
+        private PressureLevel requestedLevel = null;
+
+        /**
+         * Constructor.
+         *
+         * @param name the name of the reclaimer
+         * @param priority the priority of the reclaimer
+         * @param reclaimer the reclaimer
+         * @param deferred indicates whether the reclaimer is run by the
+         * producers
+         */
+        public Registration(String name, int priority, MemoryReclaimer reclaimer, boolean deferred) {
+            this.name = name;
+            this.priority = priority;
+            this.reclaimer = reclaimer;
+            this.deferred = deferred;
+        }
+
+        /**
+         * Requests a reduction at the given pressure level.
+         *
+         * @param pressureLevel the pressure level
+         */
+        public synchronized void request(PressureLevel pressureLevel) {
+            if (requestedLevel == null || requestedLevel.compareTo(pressureLevel) < 0) {
+                requestedLevel = pressureLevel;
+            }
+        }
+
+        /**
+         * Returns the pressure level requested and clears the request.
+         *
+         * @return the pressure level requested, null if none
+         */
+        public synchronized PressureLevel takeRequest() {
+            PressureLevel result = requestedLevel;
+            requestedLevel = null;
+            return result;
+        }
+    }
+}
@@ -114,9 +114,9 @@ public class Metrics implements Serializable {
     private NonSymmetricalNormalDistribution peptideLengthDistribution = null;
     /**
      * Map of the spectrum keys grouped per peptide. Spectrum file name &gt;
-     * list of keys.
+     * list of keys. Only needed during the processing, not saved.
      */
-    private HashMap<String, ArrayList<String>> orderedSpectrumKeys;
+    private transient HashMap<String, ArrayList<String>> orderedSpectrumKeys = null;
     /**
      * The sum of all spectrum counting indexes.
      */
@@ -571,30 +571,37 @@ public class Metrics implements Serializable {
     }
 
     /**
-     * Returns the spectrum keys grouped per peptide. 
+     * Returns the spectrum keys of the given file grouped per peptide, null
+     * if not available.
+     *
+     * @param spectrumFileName the name of the spectrum file
      *
      * @return the grouped spectrum keys
      */
-    public HashMap<String, ArrayList<String>> getOrderedSpectrumKeys() {
-        return orderedSpectrumKeys;
+    public synchronized ArrayList<String> getOrderedSpectrumKeys(String spectrumFileName) {
+        if (orderedSpectrumKeys == null) {
+            return null;
+        }
+        return orderedSpectrumKeys.get(spectrumFileName);
     }
 
     /**
-     * Sets the grouped spectrum keys.
+     * Sets the spectrum keys of the given file grouped per peptide.
      *
+     * @param spectrumFileName the name of the spectrum file
      * @param orderedSpectrumKeys the grouped spectrum keys
      */
-    public void setOrderedSpectrumKeys(HashMap<String, ArrayList<String>> orderedSpectrumKeys) {
-        this.orderedSpectrumKeys = orderedSpectrumKeys;
+    public synchronized void setOrderedSpectrumKeys(String spectrumFileName, ArrayList<String> orderedSpectrumKeys) {
+        if (this.orderedSpectrumKeys == null) {
+            this.orderedSpectrumKeys = new HashMap<String, ArrayList<String>>();
+        }
+        this.orderedSpectrumKeys.put(spectrumFileName, orderedSpectrumKeys);
     }
 
     /**
      * Removes the grouped spectrum keys from the Metrics.
      */
-    public void clearSpectrumKeys() {
-        if (orderedSpectrumKeys != null) {
-            orderedSpectrumKeys.clear();
-        }
+    public synchronized void clearSpectrumKeys() {
         orderedSpectrumKeys = null;
     }
 
@@ -0,0 +1,92 @@
+package eu.isas.peptideshaker.utils;
+
+import java.util.HashMap;
+
+/**
+ * Buffer gathering the results of tasks run in parallel and returning them in
+ * the order of submission. Tasks add their result with the index they were
+ * given, the thread writing the results takes them in the order of the
+ * indexes.
+ *
+ * @param <T> the type of result
+ *
+ * @author Marc Vaudel
+ */
+public class OrderedResults<T> {
+
+    /**
+     * The results not taken yet indexed by task index.
+     */
+    private final HashMap<Long, T> results = new HashMap<Long, T>();
+    /**
+     * The index of the next result to return.
+     */
+    private long nextIndex = 0;
+
+    /**
+     * Constructor.
+     */
+    public OrderedResults() {
+    }
+
+    /**
+     * Adds the result of a task.
+     *
+     * @param index the index of the task
+     * @param result the result of the task
+     */
+    public synchronized void add(long index, T result) {
+        results.put(index, result);
+        if (index == nextIndex) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns the next result if available, null otherwise.
+     *
+     * @return the next result
+     */
+    public synchronized T poll() {
+        T result = results.remove(nextIndex);
+        if (result != null) {
+            nextIndex++;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the next result, waiting for it to be added if needed. Returns
+     * null if the given stage was canceled or failed while waiting.
+     *
+     * @param stage the stage running the tasks
+     *
+     * @return the next result
+     *
+     * @throws InterruptedException exception thrown whenever the thread was
+     * interrupted while waiting
+     */
+    public synchronized T take(ProcessingStage stage) throws InterruptedException {
+        while (true) {
+            T result = results.remove(nextIndex);
+            if (result != null) {
+                nextIndex++;
+                return result;
+            }
+            if (stage.isCanceled() || stage.hasFailed()) {
+                return null;
+            }
+            wait(ProcessingScheduler.CANCELLATION_POLLING_INTERVAL);
+        }
+    }
+
+    /**
+     * Returns the index of the next result to return, i.e., the number of
+     * results already returned.
+     *
+     * @return the index of the next result to return
+     */
+    public synchronized long getNextIndex() {
+        return nextIndex;
+    }
+}
@@ -0,0 +1,401 @@
+package eu.isas.peptideshaker.utils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * This class records the wall time, CPU time, memory and throughput of the
+ * different phases of the processing of a project.
+ *
+ * @author Marc Vaudel
+ */
+public class ProcessingMetrics {
+
+    /**
+     * The metrics of the completed phases in the order of processing.
+     */
+    private final ArrayList<PhaseMetrics> phases = new ArrayList<PhaseMetrics>();
+    /**
+     * The phase currently processed, null if none.
+     */
+    private PhaseMetrics currentPhase = null;
+
+    /**
+     * Constructor.
+     */
+    public ProcessingMetrics() {
+    }
+
+    /**
+     * Starts recording a phase. An unfinished phase is closed without items.
+     *
+     * @param name the name of the phase
+     */
+    public synchronized void startPhase(String name) {
+        if (currentPhase != null) {
+            endPhase(0);
+        }
+        currentPhase = new PhaseMetrics(name);
+        currentPhase.start();
+    }
+
+    /**
+     * Ends the recording of the current phase.
+     *
+     * @param nItems the number of items processed during the phase
+     */
+    public synchronized void endPhase(long nItems) {
+        if (currentPhase != null) {
+            currentPhase.end(nItems);
+            phases.add(currentPhase);
+            currentPhase = null;
+        }
+    }
+
+    /**
+     * Returns the metrics of the completed phases in the order of processing.
+     *
+     * @return the metrics of the completed phases
+     */
+    public synchronized ArrayList<PhaseMetrics> getPhases() {
+        return new ArrayList<PhaseMetrics>(phases);
+    }
+
+    /**
+     * Returns the metrics of the last completed phase with the given name,
+     * null if not found.
+     *
+     * @param name the name of the phase
+     *
+     * @return the metrics of the phase
+     */
+    public synchronized PhaseMetrics getPhase(String name) {
+        for (int i = phases.size() - 1; i >= 0; i--) {
+            PhaseMetrics phaseMetrics = phases.get(i);
+            if (phaseMetrics.getName().equals(name)) {
+                return phaseMetrics;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Clears the recorded phases.
+     */
+    public synchronized void clear() {
+        phases.clear();
+        currentPhase = null;
+    }
+
+    /**
+     * Returns the total wall time of the completed phases in milliseconds.
+     *
+     * @return the total wall time of the completed phases
+     */
+    public synchronized long getTotalWallTime() {
+        long total = 0;
+        for (PhaseMetrics phaseMetrics : phases) {
+            total += phaseMetrics.getWallTime();
+        }
+        return total;
+    }
+
+    /**
+     * Returns a summary of the metrics as a table with one line per phase.
+     *
+     * @return a summary of the metrics
+     */
+    public synchronized String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format(Locale.US, "%-45s %12s %12s %14s %12s %14s", "Phase", "Wall (s)", "CPU (s)", "Allocated (MB)", "Items", "Items/s"));
+        summary.append(System.getProperty("line.separator"));
+        for (PhaseMetrics phaseMetrics : phases) {
+            summary.append(String.format(Locale.US, "%-45s %12.1f %12.1f %14.1f %12d %14.1f",
+                    phaseMetrics.getName(),
+                    phaseMetrics.getWallTime() / 1000.0,
+                    phaseMetrics.getCpuTime() / 1000.0,
+                    phaseMetrics.getAllocatedBytes() / 1048576.0,
+                    phaseMetrics.getnItems(),
+                    phaseMetrics.getThroughput()));
+            summary.append(System.getProperty("line.separator"));
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Returns the metrics in the JSON format.
+     *
+     * @return the metrics in the JSON format
+     */
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"totalWallTimeMs\": ").append(getTotalWallTime()).append(",\n");
+        json.append("  \"phases\": [");
+        for (int i = 0; i < phases.size(); i++) {
+            if (i > 0) {
+                json.append(",");
+            }
+            PhaseMetrics phaseMetrics = phases.get(i);
+            json.append("\n    {");
+            json.append("\"name\": \"").append(escape(phaseMetrics.getName())).append("\", ");
+            json.append("\"wallTimeMs\": ").append(phaseMetrics.getWallTime()).append(", ");
+            json.append("\"cpuTimeMs\": ").append(phaseMetrics.getCpuTime()).append(", ");
+            json.append("\"allocatedBytes\": ").append(phaseMetrics.getAllocatedBytes()).append(", ");
+            json.append("\"usedMemoryBytes\": ").append(phaseMetrics.getUsedMemory()).append(", ");
+            json.append("\"items\": ").append(phaseMetrics.getnItems()).append(", ");
+            json.append("\"itemsPerSecond\": ").append(String.format(Locale.US, "%.3f", phaseMetrics.getThroughput()));
+            json.append("}");
+        }
+        json.append("\n  ]\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    /**
+     * Writes the metrics in the JSON format to the given file.
+     *
+     * @param destinationFile the file where to write the metrics
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public void writeJson(File destinationFile) throws IOException {
+        BufferedWriter bw = new BufferedWriter(new FileWriter(destinationFile));
+        try {
+            bw.write(toJson());
+        } finally {
+            bw.close();
+        }
+    }
+
+    /**
+     * Escapes a string for JSON.
+     *
+     * @param string the string to escape
+     *
+     * @return the escaped string
+     */
+    private static String escape(String string) {
+        StringBuilder escaped = new StringBuilder(string.length());
+        for (char character : string.toCharArray()) {
+            switch (character) {
+                case '"':
+                    escaped.append("\\\"");
+                    break;
+                case '\\':
+                    escaped.append("\\\\");
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                case '\t':
+                    escaped.append("\\t");
+                    break;
+                default:
+                    if (character < 0x20) {
+                        escaped.append(String.format("\\u%04x", (int) character));
+                    } else {
+                        escaped.append(character);
+                    }
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Returns the CPU time used by the process in nanoseconds, -1 if not
+     * supported by the JVM.
+     *
+     * @return the CPU time used by the process
+     */
+    private static long getProcessCpuTime() {
+        OperatingSystemMXBean operatingSystemMXBean = ManagementFactory.getOperatingSystemMXBean();
+        if (operatingSystemMXBean instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) operatingSystemMXBean).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the number of bytes allocated by the threads currently alive, -1
+     * if not supported by the JVM.
+     *
+     * @return the number of bytes allocated by the threads currently alive
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunThreadMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+            if (sunThreadMXBean.isThreadAllocatedMemorySupported() && sunThreadMXBean.isThreadAllocatedMemoryEnabled()) {
+                long total = 0;
+                for (long allocated : sunThreadMXBean.getThreadAllocatedBytes(sunThreadMXBean.getAllThreadIds())) {
+                    if (allocated > 0) {
+                        total += allocated;
+                    }
+                }
+                return total;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The metrics of a processing phase.
+     *
+     * @author Marc Vaudel
+     */
+    public static class PhaseMetrics {
+
+        /**
+         * The name of the phase.
+         */
+        private final String name;
+        /**
+         * The start time in nanoseconds.
+         */
+        private long startTime;
+        /**
+         * The process CPU time at start in nanoseconds.
+         */
+        private long startCpuTime;
+        /**
+         * The bytes allocated by the live threads at start.
+         */
+        private long startAllocatedBytes;
+        /**
+         * The wall time in milliseconds.
+         */
+        private long wallTime;
+        /**
+         * The CPU time in milliseconds, -1 if not available.
+         */
+        private long cpuTime = -1;
+        /**
+         * The bytes allocated during the phase, -1 if not available.
+         */
+        private long allocatedBytes = -1;
+        /**
+         * The heap used at the end of the phase in bytes.
+         */
+        private long usedMemory;
+        /**
+         * The number of items processed.
+         */
+        private long nItems;
+
+        /**
+         * Constructor.
+         *
+         * @param name the name of the phase
+         */
+        public PhaseMetrics(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Records the start of the phase.
+         */
+        private void start() {
+            startAllocatedBytes = getAllocatedBytes();
+            startCpuTime = getProcessCpuTime();
+            startTime = System.nanoTime();
+        }
+
+        /**
+         * Records the end of the phase.
+         *
+         * @param nItems the number of items processed
+         */
+        private void end(long nItems) {
+            wallTime = (System.nanoTime() - startTime) / 1000000;
+            long endCpuTime = getProcessCpuTime();
+            if (startCpuTime >= 0 && endCpuTime >= 0) {
+                cpuTime = (endCpuTime - startCpuTime) / 1000000;
+            }
+            long endAllocatedBytes = getAllocatedBytes();
+            if (startAllocatedBytes >= 0 && endAllocatedBytes >= 0) {
+                // threads terminated during the phase are not accounted for
+                allocatedBytes = Math.max(endAllocatedBytes - startAllocatedBytes, 0);
+            }
+            Runtime runtime = Runtime.getRuntime();
+            usedMemory = runtime.totalMemory() - runtime.freeMemory();
+            this.nItems = nItems;
+        }
+
+        /**
+         * Returns the name of the phase.
+         *
+         * @return the name of the phase
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the wall time in milliseconds.
+         *
+         * @return the wall time in milliseconds
+         */
+        public long getWallTime() {
+            return wallTime;
+        }
+
+        /**
+         * Returns the CPU time used by all threads of the process in
+         * milliseconds, -1 if not available.
+         *
+         * @return the CPU time in milliseconds
+         */
+        public long getCpuTime() {
+            return cpuTime;
+        }
+
+        /**
+         * Returns the bytes allocated during the phase by the threads alive at
+         * the end of the phase, -1 if not available.
+         *
+         * @return the bytes allocated during the phase
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        /**
+         * Returns the heap used at the end of the phase in bytes.
+         *
+         * @return the heap used at the end of the phase
+         */
+        public long getUsedMemory() {
+            return usedMemory;
+        }
+
+        /**
+         * Returns the number of items processed.
+         *
+         * @return the number of items processed
+         */
+        public long getnItems() {
+            return nItems;
+        }
+
+        /**
+         * Returns the number of items processed per second.
+         *
+         * @return the number of items processed per second
+         */
+        public double getThroughput() {
+            if (wallTime == 0) {
+                return 0;
+            }
+            return 1000.0 * nItems / wallTime;
+        }
+    }
+}
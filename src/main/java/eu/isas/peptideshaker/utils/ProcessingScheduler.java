@@ -0,0 +1,216 @@
+package eu.isas.peptideshaker.utils;
+
+import com.compomics.util.waiting.WaitingHandler;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scheduler running the processing tasks of the different stages of the
+ * pipeline on a fixed set of long lived threads. Every stage has a bounded
+ * number of pending tasks so that producers submitting one task per item
+ * cannot flood the memory. Tasks submitted by a task, for instance by the
+ * producer of a producer/consumer stage, are run on a separate pool so that
+ * they never wait for the thread of the task which submitted them.
+ *
+ * @author Marc Vaudel
+ */
+public class ProcessingScheduler {
+
+    /**
+     * The default number of tasks which can be pending per thread in a stage.
+     */
+    public static final int TASKS_PER_THREAD = 4;
+    /**
+     * The interval in milliseconds at which waiting stages check for
+     * cancellation.
+     */
+    public static final long CANCELLATION_POLLING_INTERVAL = 100;
+    /**
+     * The interval in seconds after which idle threads of the nested tasks
+     * pool are stopped.
+     */
+    public static final long NESTED_THREADS_KEEP_ALIVE = 60;
+    /**
+     * The number of threads of the scheduler.
+     */
+    private volatile int nThreads;
+    /**
+     * The executor running the tasks.
+     */
+    private final ThreadPoolExecutor executor;
+    /**
+     * The executor running the tasks submitted from the threads of the
+     * scheduler.
+     */
+    private final ThreadPoolExecutor nestedExecutor;
+    /**
+     * Indicates whether the current thread is a worker of this scheduler.
+     */
+    private final ThreadLocal<Boolean> workerThread = new ThreadLocal<Boolean>();
+    /**
+     * The last stage run for every stage name in the order of creation.
+     */
+    private final LinkedHashMap<String, ProcessingStage> stages = new LinkedHashMap<String, ProcessingStage>();
+
+    /**
+     * Constructor.
+     *
+     * @param nThreads the number of threads to use
+     */
+    public ProcessingScheduler(int nThreads) {
+        this.nThreads = Math.max(nThreads, 1);
+        executor = new ThreadPoolExecutor(this.nThreads, this.nThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), getThreadFactory("PeptideShaker-processing-"));
+        nestedExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, NESTED_THREADS_KEEP_ALIVE, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), getThreadFactory("PeptideShaker-nested-processing-"));
+    }
+
+    /**
+     * Returns a factory creating daemon threads flagged as workers of this
+     * scheduler.
+     *
+     * @param prefix the prefix of the name of the threads
+     *
+     * @return a thread factory
+     */
+    private ThreadFactory getThreadFactory(final String prefix) {
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        workerThread.set(Boolean.TRUE);
+                        runnable.run();
+                    }
+                }, prefix + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Returns the number of threads of the scheduler.
+     *
+     * @return the number of threads of the scheduler
+     */
+    public int getnThreads() {
+        return nThreads;
+    }
+
+    /**
+     * Sets the number of threads of the scheduler. Threads are added
+     * immediately. When the number of threads is reduced, running tasks are
+     * completed and the threads in excess stop when idle, stages in progress
+     * are thus not affected.
+     *
+     * @param nThreads the number of threads to use
+     */
+    public synchronized void setnThreads(int nThreads) {
+        int newThreads = Math.max(nThreads, 1);
+        if (newThreads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(newThreads);
+            executor.setCorePoolSize(newThreads);
+        } else if (newThreads < executor.getMaximumPoolSize()) {
+            executor.setCorePoolSize(newThreads);
+            executor.setMaximumPoolSize(newThreads);
+        }
+        this.nThreads = newThreads;
+    }
+
+    /**
+     * Creates a new stage allowing TASKS_PER_THREAD pending tasks per thread.
+     *
+     * @param name the name of the stage
+     * @param waitingHandler the waiting handler used to cancel the stage, can
+     * be null
+     *
+     * @return a new stage
+     */
+    public ProcessingStage newStage(String name, WaitingHandler waitingHandler) {
+        return newStage(name, waitingHandler, TASKS_PER_THREAD * nThreads);
+    }
+
+    /**
+     * Creates a new stage.
+     *
+     * @param name the name of the stage
+     * @param waitingHandler the waiting handler used to cancel the stage, can
+     * be null
+     * @param capacity the maximal number of tasks pending in the stage
+     *
+     * @return a new stage
+     */
+    public ProcessingStage newStage(String name, WaitingHandler waitingHandler, int capacity) {
+        ProcessingStage stage = new ProcessingStage(name, this, waitingHandler, capacity);
+        synchronized (stages) {
+            stages.remove(name);
+            stages.put(name, stage);
+        }
+        return stage;
+    }
+
+    /**
+     * Returns the last stage run for every stage name in the order of
+     * creation.
+     *
+     * @return the last stage run for every stage name
+     */
+    public ArrayList<ProcessingStage> getStages() {
+        synchronized (stages) {
+            return new ArrayList<ProcessingStage>(stages.values());
+        }
+    }
+
+    /**
+     * Returns a summary of the throughput of the stages with one line per
+     * stage.
+     *
+     * @return a summary of the throughput of the stages
+     */
+    public String getThroughputSummary() {
+        StringBuilder summary = new StringBuilder();
+        for (ProcessingStage stage : getStages()) {
+            summary.append(stage.toString()).append(System.getProperty("line.separator"));
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Indicates whether the current thread is a worker of this scheduler.
+     *
+     * @return a boolean indicating whether the current thread is a worker of
+     * this scheduler
+     */
+    public boolean isWorkerThread() {
+        return workerThread.get() != null;
+    }
+
+    /**
+     * Executes a task. Tasks submitted from a thread of the scheduler are run
+     * on the nested tasks pool.
+     *
+     * @param task the task to execute
+     */
+    void execute(Runnable task) {
+        if (isWorkerThread()) {
+            nestedExecutor.execute(task);
+        } else {
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * Shuts the scheduler down. Tasks already submitted are completed.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        nestedExecutor.shutdown();
+    }
+}
@@ -0,0 +1,333 @@
+package eu.isas.peptideshaker.utils;
+
+import com.compomics.util.waiting.WaitingHandler;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stage of the processing pipeline. Tasks submitted to the stage are run by
+ * the threads of the processing scheduler. Submission blocks when the maximal
+ * number of pending tasks is reached. The stage is canceled as soon as the
+ * waiting handler is canceled. The slot of a task is released only when the
+ * thread running it is done with it, also when the task was canceled.
+ *
+ * @author Marc Vaudel
+ */
+public class ProcessingStage {
+
+    /**
+     * The name of the stage.
+     */
+    private final String name;
+    /**
+     * The scheduler running the tasks.
+     */
+    private final ProcessingScheduler scheduler;
+    /**
+     * The waiting handler used to cancel the stage, can be null.
+     */
+    private final WaitingHandler waitingHandler;
+    /**
+     * The maximal number of pending tasks.
+     */
+    private final int capacity;
+    /**
+     * Semaphore counting the free slots for pending tasks.
+     */
+    private final Semaphore slots;
+    /**
+     * The tasks submitted and not completed yet.
+     */
+    private final HashSet<Future<?>> pendingTasks = new HashSet<Future<?>>();
+    /**
+     * The number of tasks submitted.
+     */
+    private final AtomicLong nSubmitted = new AtomicLong(0);
+    /**
+     * The number of tasks completed.
+     */
+    private final AtomicLong nCompleted = new AtomicLong(0);
+    /**
+     * The number of items processed as reported by the tasks.
+     */
+    private final AtomicLong nProcessed = new AtomicLong(0);
+    /**
+     * The first error thrown by a task.
+     */
+    private volatile Throwable failure = null;
+    /**
+     * Boolean indicating whether the stage was canceled.
+     */
+    private volatile boolean canceled = false;
+    /**
+     * The creation time of the stage in milliseconds.
+     */
+    private final long startTime;
+    /**
+     * The completion time of the stage in milliseconds, -1 while running.
+     */
+    private volatile long endTime = -1;
+
+    /**
+     * Constructor.
+     *
+     * @param name the name of the stage
+     * @param scheduler the scheduler running the tasks
+     * @param waitingHandler the waiting handler used to cancel the stage, can
+     * be null
+     * @param capacity the maximal number of pending tasks
+     */
+    ProcessingStage(String name, ProcessingScheduler scheduler, WaitingHandler waitingHandler, int capacity) {
+        this.name = name;
+        this.scheduler = scheduler;
+        this.waitingHandler = waitingHandler;
+        this.capacity = Math.max(capacity, 1);
+        this.slots = new Semaphore(this.capacity);
+        this.startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Submits a task, waiting for a free slot if the maximal number of pending
+     * tasks is reached. If called from a thread of the scheduler, the task is
+     * run on the nested tasks pool of the scheduler.
+     *
+     * @param runnable the task to run
+     *
+     * @return a boolean indicating whether the task was submitted, false if
+     * the stage was canceled
+     *
+     * @throws InterruptedException exception thrown whenever the thread was
+     * interrupted while waiting for a free slot
+     */
+    public boolean submit(Runnable runnable) throws InterruptedException {
+        if (isCanceled()) {
+            cancel();
+            return false;
+        }
+        while (!slots.tryAcquire(ProcessingScheduler.CANCELLATION_POLLING_INTERVAL, TimeUnit.MILLISECONDS)) {
+            if (isCanceled()) {
+                cancel();
+                return false;
+            }
+        }
+        StageTask task = new StageTask(runnable);
+        synchronized (pendingTasks) {
+            pendingTasks.add(task);
+        }
+        nSubmitted.incrementAndGet();
+        scheduler.execute(task);
+        return true;
+    }
+
+    /**
+     * Waits for all submitted tasks to be completed. If the waiting handler is
+     * canceled while waiting, the pending tasks are canceled and the method
+     * returns immediately. The first error thrown by a task is thrown, also
+     * when the stage was canceled.
+     *
+     * @return a boolean indicating whether all tasks were completed, false if
+     * the stage was canceled
+     *
+     * @throws InterruptedException exception thrown whenever the thread was
+     * interrupted while waiting
+     */
+    public boolean awaitCompletion() throws InterruptedException {
+        while (!slots.tryAcquire(capacity, ProcessingScheduler.CANCELLATION_POLLING_INTERVAL, TimeUnit.MILLISECONDS)) {
+            if (isCanceled()) {
+                cancel();
+                endTime = System.currentTimeMillis();
+                throwFailure();
+                return false;
+            }
+        }
+        slots.release(capacity);
+        endTime = System.currentTimeMillis();
+        throwFailure();
+        return !isCanceled();
+    }
+
+    /**
+     * Throws the first error thrown by a task, if any.
+     */
+    private void throwFailure() {
+        Throwable error = failure;
+        if (error != null) {
+            if (error instanceof Error) {
+                throw (Error) error;
+            } else if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            }
+            throw new RuntimeException(error);
+        }
+    }
+
+    /**
+     * Cancels the stage and the pending tasks.
+     */
+    public void cancel() {
+        canceled = true;
+        ArrayList<Future<?>> tasks;
+        synchronized (pendingTasks) {
+            tasks = new ArrayList<Future<?>>(pendingTasks);
+        }
+        for (Future<?> task : tasks) {
+            task.cancel(true);
+        }
+    }
+
+    /**
+     * Indicates whether the stage was canceled.
+     *
+     * @return a boolean indicating whether the stage was canceled
+     */
+    public boolean isCanceled() {
+        return canceled || waitingHandler != null && waitingHandler.isRunCanceled();
+    }
+
+    /**
+     * Indicates whether a task of the stage threw an error. The error is
+     * thrown by awaitCompletion().
+     *
+     * @return a boolean indicating whether a task of the stage threw an error
+     */
+    public boolean hasFailed() {
+        return failure != null;
+    }
+
+    /**
+     * Increases the number of items processed in this stage.
+     *
+     * @param nItems the number of items processed
+     */
+    public void increaseProcessedCount(long nItems) {
+        nProcessed.addAndGet(nItems);
+    }
+
+    /**
+     * Returns the name of the stage.
+     *
+     * @return the name of the stage
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of tasks submitted.
+     *
+     * @return the number of tasks submitted
+     */
+    public long getnSubmitted() {
+        return nSubmitted.get();
+    }
+
+    /**
+     * Returns the number of tasks completed.
+     *
+     * @return the number of tasks completed
+     */
+    public long getnCompleted() {
+        return nCompleted.get();
+    }
+
+    /**
+     * Returns the number of items processed as reported by the tasks. If no
+     * item was reported, the number of completed tasks is returned.
+     *
+     * @return the number of items processed
+     */
+    public long getnProcessed() {
+        long processed = nProcessed.get();
+        if (processed == 0) {
+            return nCompleted.get();
+        }
+        return processed;
+    }
+
+    /**
+     * Returns the duration of the stage in milliseconds.
+     *
+     * @return the duration of the stage
+     */
+    public long getDuration() {
+        long end = endTime;
+        if (end == -1) {
+            end = System.currentTimeMillis();
+        }
+        return end - startTime;
+    }
+
+    /**
+     * Returns the number of items processed per second.
+     *
+     * @return the number of items processed per second
+     */
+    public double getThroughput() {
+        long duration = getDuration();
+        if (duration == 0) {
+            return 0;
+        }
+        return 1000.0 * getnProcessed() / duration;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s: %d/%d tasks, %d items in %.1f s (%.1f items/s)%s",
+                name, getnCompleted(), getnSubmitted(), getnProcessed(), getDuration() / 1000.0, getThroughput(), canceled ? ", canceled" : "");
+    }
+
+    /**
+     * Task wrapper releasing the slot of the task when the thread running it
+     * is done with it. A task canceled while running releases its slot when
+     * it returns, a task canceled before it started releases its slot when
+     * the executor discards it.
+     *
+     * @author Marc Vaudel
+     */
+    private class StageTask extends FutureTask<Object> {
+
+        /**
+         * Constructor.
+         *
+         * @param runnable the task to run
+         */
+        public StageTask(Runnable runnable) {
+            super(runnable, null);
+        }
+
+        @Override
+        public void run() {
+            try {
+                super.run();
+            } finally {
+                synchronized (pendingTasks) {
+                    pendingTasks.remove(this);
+                }
+                slots.release();
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (!isCancelled()) {
+                try {
+                    get();
+                    nCompleted.incrementAndGet();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                } catch (InterruptedException e) {
+                    // The task is done, get does not wait
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,1385 @@
+package eu.isas.peptideshaker.utils;
+
+import com.compomics.util.preferences.ProcessingPreferences;
+import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.peptideshaker.PeptideShaker;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Archive containing the files of a project. The files are split in blocks
+ * which are compressed and decompressed in parallel. An index at the end of the
+ * archive gives the position of every block so that single entries can be read
+ * without extracting the archive.
+ *
+ * When saving to an existing archive, only the blocks which changed since the
+ * last save are compressed and appended to the archive, the other blocks are
+ * referenced from the previous version. The archive is rewritten entirely when
+ * the space used by previous versions becomes too large.
+ *
+ * Previous versions are never overwritten in place: the index of a new version
+ * is written after its blocks, and if an append is interrupted the archive is
+ * read at the last complete version. When the archive is rewritten, the
+ * previous file is kept as backup until the new one replaces it.
+ *
+ * @author Marc Vaudel
+ */
+public class ProjectArchive {
+
+    /**
+     * The magic number at the beginning and end of the archive.
+     */
+    public static final byte[] MAGIC = "PSARCHIV".getBytes(Charset.forName("US-ASCII"));
+    /**
+     * The version of the format.
+     */
+    public static final int VERSION = 1;
+    /**
+     * The size of the blocks.
+     */
+    public static final int BLOCK_SIZE = 1 << 20;
+    /**
+     * The prefix of the entries which do not correspond to a file of the
+     * project folder. These entries are not extracted.
+     */
+    public static final String METADATA_PREFIX = "metadata/";
+    /**
+     * The maximal share of the archive which can be used by previous versions
+     * before the archive is rewritten entirely.
+     */
+    public static final double MAX_UNUSED_SHARE = 0.5;
+    /**
+     * The algorithm used to detect changed blocks.
+     */
+    private static final String DIGEST_ALGORITHM = "MD5";
+    /**
+     * The length of the header.
+     */
+    private static final int HEADER_LENGTH = MAGIC.length + 4;
+    /**
+     * The length of the trailer.
+     */
+    private static final int TRAILER_LENGTH = 8 + MAGIC.length;
+    /**
+     * The length of the windows used to look for the trailer of the previous
+     * version after an interrupted save.
+     */
+    private static final int SCAN_WINDOW_LENGTH = 1 << 16;
+    /**
+     * The size of the index entry of a block.
+     */
+    private static final int BLOCK_INDEX_LENGTH = 8 + 4 + 4 + 16;
+    /**
+     * The suffix of the temporary file used when rewriting an archive.
+     */
+    public static final String TEMP_SUFFIX = ".tmp";
+    /**
+     * The suffix of the backup of the previous version kept while replacing
+     * an archive.
+     */
+    public static final String BACKUP_SUFFIX = ".bak";
+    /**
+     * The archive file.
+     */
+    private final File file;
+    /**
+     * The length of the last complete version of the archive. Data written
+     * after by an interrupted save is ignored.
+     */
+    private final long fileLength;
+    /**
+     * The entries of the archive indexed by name.
+     */
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * Constructor. Reads the index of the archive.
+     *
+     * @param file the archive file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    public ProjectArchive(File file) throws IOException {
+
+        this.file = file;
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            if (channel.size() < HEADER_LENGTH + TRAILER_LENGTH) {
+                throw new IOException(file.getName() + " is not a project archive.");
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            readFully(channel, header, 0);
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(file.getName() + " is not a project archive.");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Version " + version + " of project archives not supported.");
+            }
+
+            long length = channel.size();
+            LinkedHashMap<String, Entry> index = readIndex(channel, length);
+            if (index == null) {
+                // the last save was interrupted, use the previous version
+                length = findPreviousVersion(channel, length);
+                if (length == -1) {
+                    throw new IOException(file.getName() + " is incomplete or corrupted.");
+                }
+                index = readIndex(channel, length);
+            }
+            fileLength = length;
+            entries = index;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Reads the index of the version of the archive ending at the given
+     * position.
+     *
+     * @param channel the channel to the archive
+     * @param end the end of the version, i.e. the end of its trailer
+     *
+     * @return the entries of the version indexed by name, null if no
+     * complete version ends at the given position
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private static LinkedHashMap<String, Entry> readIndex(FileChannel channel, long end) throws IOException {
+
+        if (end < HEADER_LENGTH + TRAILER_LENGTH + 4) {
+            return null;
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_LENGTH);
+        readFully(channel, trailer, end - TRAILER_LENGTH);
+        long indexOffset = trailer.getLong();
+        byte[] magic = new byte[MAGIC.length];
+        trailer.get(magic);
+        long indexLength = end - TRAILER_LENGTH - indexOffset;
+        if (!Arrays.equals(magic, MAGIC) || indexOffset < HEADER_LENGTH || indexLength < 4 || indexLength > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        ByteBuffer index = ByteBuffer.allocate((int) indexLength);
+        readFully(channel, index, indexOffset);
+        DataInputStream indexStream = new DataInputStream(new ByteArrayInputStream(index.array()));
+        LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+        try {
+            int nEntries = indexStream.readInt();
+            if (nEntries < 0) {
+                return null;
+            }
+            for (int i = 0; i < nEntries; i++) {
+                Entry entry = Entry.read(indexStream);
+                if (entry == null) {
+                    return null;
+                }
+                for (Block block : entry.blocks) {
+                    if (block.offset < HEADER_LENGTH || block.offset + block.compressedLength > indexOffset) {
+                        return null;
+                    }
+                }
+                entries.put(entry.name, entry);
+            }
+        } catch (IOException e) {
+            // incomplete index
+            return null;
+        }
+        if (indexStream.available() != 0) {
+            return null;
+        }
+        return entries;
+    }
+
+    /**
+     * Looks for the end of the last complete version of the archive before
+     * the given position. The trailers are looked for from the end of the
+     * archive backwards.
+     *
+     * @param channel the channel to the archive
+     * @param end the position before which to look for a version
+     *
+     * @return the end of the last complete version, -1 if none
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private static long findPreviousVersion(FileChannel channel, long end) throws IOException {
+
+        // exclude the trailer ending at the given position
+        long windowEnd = end - 1;
+
+        while (windowEnd - HEADER_LENGTH >= MAGIC.length) {
+            long windowStart = Math.max(HEADER_LENGTH, windowEnd - SCAN_WINDOW_LENGTH);
+            ByteBuffer window = ByteBuffer.allocate((int) (windowEnd - windowStart));
+            readFully(channel, window, windowStart);
+            byte[] bytes = window.array();
+            for (int i = bytes.length - MAGIC.length; i >= 0; i--) {
+                if (bytes[i] == MAGIC[0] && bytes[i + MAGIC.length - 1] == MAGIC[MAGIC.length - 1]
+                        && Arrays.equals(Arrays.copyOfRange(bytes, i, i + MAGIC.length), MAGIC)) {
+                    long versionEnd = windowStart + i + MAGIC.length;
+                    if (readIndex(channel, versionEnd) != null) {
+                        return versionEnd;
+                    }
+                }
+            }
+            // overlap the windows to find trailers across windows
+            windowEnd = windowStart + MAGIC.length - 1;
+            if (windowStart == HEADER_LENGTH) {
+                break;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Indicates whether the given file is a project archive. Returns false
+     * for projects saved as tar files by previous versions.
+     *
+     * @param file the file
+     *
+     * @return a boolean indicating whether the given file is a project archive
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    public static boolean isProjectArchive(File file) throws IOException {
+        if (!file.isFile() || file.length() < HEADER_LENGTH + TRAILER_LENGTH) {
+            return false;
+        }
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            int length = 0;
+            while (length < magic.length) {
+                int n = inputStream.read(magic, length, magic.length - length);
+                if (n < 0) {
+                    return false;
+                }
+                length += n;
+            }
+            return Arrays.equals(magic, MAGIC);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Returns the archive file.
+     *
+     * @return the archive file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the names of the entries in the order of the archive. Folders
+     * end with a slash.
+     *
+     * @return the names of the entries
+     */
+    public ArrayList<String> getEntryNames() {
+        return new ArrayList<String>(entries.keySet());
+    }
+
+    /**
+     * Indicates whether the archive contains the given entry.
+     *
+     * @param name the name of the entry
+     *
+     * @return a boolean indicating whether the archive contains the given
+     * entry
+     */
+    public boolean hasEntry(String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * Returns the uncompressed length of the given entry, -1 if not found.
+     *
+     * @param name the name of the entry
+     *
+     * @return the uncompressed length of the given entry
+     */
+    public long getEntryLength(String name) {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            return -1;
+        }
+        return entry.length;
+    }
+
+    /**
+     * Returns the number of bytes of the archive used by the current version
+     * of the entries.
+     *
+     * @return the number of bytes used by the current version of the entries
+     */
+    private long getUsedLength() {
+        long usedLength = 0;
+        for (Entry entry : entries.values()) {
+            for (Block block : entry.blocks) {
+                usedLength += block.compressedLength;
+            }
+        }
+        return usedLength;
+    }
+
+    /**
+     * Reads the content of an entry without extracting the archive.
+     *
+     * @param name the name of the entry
+     *
+     * @return the content of the entry, null if not found
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    public byte[] readEntry(String name) throws IOException {
+
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.length > Integer.MAX_VALUE) {
+            throw new IOException("Entry " + name + " is too large to be read in memory.");
+        }
+
+        byte[] content = new byte[(int) entry.length];
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            int offset = 0;
+            for (Block block : entry.blocks) {
+                byte[] blockContent = readBlock(channel, block);
+                System.arraycopy(blockContent, 0, content, offset, block.length);
+                offset += block.length;
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+        return content;
+    }
+
+    /**
+     * Extracts a single entry in the given folder.
+     *
+     * @param name the name of the entry
+     * @param destinationFolder the folder where to extract the entry
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing a file, or if the entry was not found
+     */
+    public void extractEntry(String name, File destinationFolder) throws IOException {
+
+        byte[] content = readEntry(name);
+        if (content == null) {
+            throw new IOException("Entry " + name + " not found in " + file.getName() + ".");
+        }
+
+        File destinationFile = new File(destinationFolder, name);
+        File parentFolder = destinationFile.getParentFile();
+        if (!parentFolder.exists() && !parentFolder.mkdirs()) {
+            throw new IOException("Impossible to create folder " + parentFolder.getAbsolutePath() + ".");
+        }
+        FileOutputStream outputStream = new FileOutputStream(destinationFile);
+        try {
+            outputStream.write(content);
+        } finally {
+            outputStream.close();
+        }
+        long lastModified = entries.get(name).lastModified;
+        if (lastModified != 0) {
+            destinationFile.setLastModified(lastModified);
+        }
+    }
+
+    /**
+     * Extracts the archive in the given folder. The blocks are decompressed
+     * and written in parallel. Metadata entries are not extracted.
+     *
+     * @param destinationFolder the folder where to extract the archive
+     * @param processingPreferences the processing preferences
+     * @param waitingHandler the waiting handler, can be null
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing a file
+     * @throws InterruptedException exception thrown whenever a threading error
+     * occurred while extracting the archive
+     */
+    public void extract(File destinationFolder, ProcessingPreferences processingPreferences, WaitingHandler waitingHandler) throws IOException, InterruptedException {
+
+        if (waitingHandler != null) {
+            int nBlocks = 0;
+            for (Entry entry : entries.values()) {
+                nBlocks += entry.blocks.length;
+            }
+            waitingHandler.resetSecondaryProgressCounter();
+            waitingHandler.setMaxSecondaryProgressCounter(nBlocks);
+        }
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        FileChannel channel = randomAccessFile.getChannel();
+        ProcessingStage stage = PeptideShaker.getProcessingScheduler(processingPreferences).newStage("Project extraction", waitingHandler);
+        ArrayList<EntryOutput> outputs = new ArrayList<EntryOutput>();
+        ArchiveFailure failure = new ArchiveFailure(stage);
+
+        try {
+            for (Entry entry : entries.values()) {
+
+                if (entry.name.startsWith(METADATA_PREFIX)) {
+                    continue;
+                }
+
+                File destination = new File(destinationFolder, entry.name);
+                if (entry.isFolder()) {
+                    destination.mkdirs();
+                    continue;
+                }
+                File parent = destination.getParentFile();
+                if (!parent.exists()) {
+                    parent.mkdirs();
+                }
+
+                EntryOutput output = new EntryOutput(entry, destination);
+                outputs.add(output);
+                if (entry.blocks.length == 0) {
+                    output.close();
+                }
+                for (int i = 0; i < entry.blocks.length; i++) {
+                    if (!stage.submit(new ExtractionRunnable(channel, output, i, waitingHandler, failure))) {
+                        break;
+                    }
+                }
+                if (stage.isCanceled()) {
+                    break;
+                }
+            }
+
+            if (!stage.awaitCompletion() && waitingHandler != null && waitingHandler.isRunCanceled()) {
+                return;
+            }
+            failure.check();
+
+        } finally {
+            for (EntryOutput output : outputs) {
+                output.close();
+            }
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Saves the content of a folder in an archive. If the destination is an
+     * archive, only the blocks which changed are compressed and appended, the
+     * archive is otherwise written to a temporary file which then replaces the
+     * destination.
+     *
+     * @param sourceFolder the folder to save
+     * @param exceptions the absolute paths of the files not to save
+     * @param metadata content to save as metadata entries indexed by name,
+     * names must start with METADATA_PREFIX, can be null
+     * @param destinationFile the archive file
+     * @param processingPreferences the processing preferences
+     * @param waitingHandler the waiting handler, can be null
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing a file
+     * @throws InterruptedException exception thrown whenever a threading error
+     * occurred while saving the archive
+     */
+    public static void save(File sourceFolder, HashSet<String> exceptions, HashMap<String, byte[]> metadata, File destinationFile,
+            ProcessingPreferences processingPreferences, WaitingHandler waitingHandler) throws IOException, InterruptedException {
+
+        ArrayList<Entry> newEntries = new ArrayList<Entry>();
+        ArrayList<File> sources = new ArrayList<File>();
+        listEntries(sourceFolder, "", exceptions, newEntries, sources);
+        if (metadata != null) {
+            for (String name : metadata.keySet()) {
+                if (!name.startsWith(METADATA_PREFIX)) {
+                    throw new IllegalArgumentException("Metadata entry " + name + " does not start with " + METADATA_PREFIX + ".");
+                }
+                byte[] content = metadata.get(name);
+                newEntries.add(new Entry(name, content.length, 0, getnBlocks(content.length)));
+                sources.add(null);
+            }
+        }
+
+        ProjectArchive previous = null;
+        try {
+            if (isProjectArchive(destinationFile)) {
+                previous = new ProjectArchive(destinationFile);
+            }
+        } catch (IOException e) {
+            // corrupted archive, rewrite everything
+            previous = null;
+        }
+        boolean append = previous != null && previous.getUsedLength() >= (1 - MAX_UNUSED_SHARE) * previous.fileLength;
+
+        File outputFile = append ? destinationFile : new File(destinationFile.getParentFile(), destinationFile.getName() + TEMP_SUFFIX);
+        RandomAccessFile output = new RandomAccessFile(outputFile, "rw");
+        RandomAccessFile previousInput = previous != null && !append ? new RandomAccessFile(destinationFile, "r") : null;
+        long originalLength = append ? previous.fileLength : 0;
+        boolean completed = false;
+
+        try {
+            FileChannel outputChannel = output.getChannel();
+            FileChannel previousChannel = previousInput != null ? previousInput.getChannel() : null;
+            ArchiveOutput archiveOutput;
+            if (append) {
+                archiveOutput = new ArchiveOutput(outputChannel, originalLength);
+            } else {
+                output.setLength(0);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+                header.put(MAGIC);
+                header.putInt(VERSION);
+                header.flip();
+                writeFully(outputChannel, header, 0);
+                archiveOutput = new ArchiveOutput(outputChannel, HEADER_LENGTH);
+            }
+
+            if (waitingHandler != null) {
+                long nBlocks = 0;
+                for (Entry entry : newEntries) {
+                    nBlocks += entry.blocks.length;
+                }
+                waitingHandler.resetSecondaryProgressCounter();
+                waitingHandler.setMaxSecondaryProgressCounter((int) Math.min(nBlocks, Integer.MAX_VALUE));
+            }
+
+            ProcessingStage stage = PeptideShaker.getProcessingScheduler(processingPreferences).newStage("Project archiving", waitingHandler);
+            ArchiveFailure failure = new ArchiveFailure(stage);
+
+            for (int i = 0; i < newEntries.size() && !stage.isCanceled(); i++) {
+
+                Entry entry = newEntries.get(i);
+                if (entry.isFolder()) {
+                    continue;
+                }
+                Entry previousEntry = previous != null ? previous.entries.get(entry.name) : null;
+                if (previousEntry != null && previousEntry.blocks.length != getnBlocks(previousEntry.length)) {
+                    previousEntry = null;
+                }
+                File source = sources.get(i);
+
+                if (source != null && previousEntry != null && entry.lastModified != 0
+                        && previousEntry.length == entry.length && previousEntry.lastModified == entry.lastModified) {
+
+                    // unchanged file, reuse the blocks of the previous version
+                    for (int j = 0; j < entry.blocks.length; j++) {
+                        if (append) {
+                            entry.blocks[j] = previousEntry.blocks[j];
+                            if (waitingHandler != null) {
+                                waitingHandler.increaseSecondaryProgressCounter();
+                            }
+                        } else if (!stage.submit(new CompressionRunnable(entry, j, null, previousEntry, previousChannel, archiveOutput, waitingHandler, failure))) {
+                            break;
+                        }
+                    }
+
+                } else if (source != null) {
+
+                    FileInputStream inputStream = new FileInputStream(source);
+                    try {
+                        for (int j = 0; j < entry.blocks.length; j++) {
+                            int blockLength = (int) Math.min(BLOCK_SIZE, entry.length - ((long) j) * BLOCK_SIZE);
+                            byte[] content = new byte[blockLength];
+                            int length = 0;
+                            while (length < blockLength) {
+                                int n = inputStream.read(content, length, blockLength - length);
+                                if (n < 0) {
+                                    throw new EOFException(source.getAbsolutePath() + " changed while saving.");
+                                }
+                                length += n;
+                            }
+                            if (!stage.submit(new CompressionRunnable(entry, j, content, previousEntry, previousChannel, archiveOutput, waitingHandler, failure))) {
+                                break;
+                            }
+                        }
+                    } finally {
+                        inputStream.close();
+                    }
+
+                } else {
+
+                    byte[] entryContent = metadata.get(entry.name);
+                    for (int j = 0; j < entry.blocks.length; j++) {
+                        int from = j * BLOCK_SIZE;
+                        byte[] content = Arrays.copyOfRange(entryContent, from, Math.min(from + BLOCK_SIZE, entryContent.length));
+                        if (!stage.submit(new CompressionRunnable(entry, j, content, previousEntry, previousChannel, archiveOutput, waitingHandler, failure))) {
+                            break;
+                        }
+                    }
+                }
+            }
+
+            if (!stage.awaitCompletion() && waitingHandler != null && waitingHandler.isRunCanceled()) {
+                return;
+            }
+            failure.check();
+
+            // write the index and the trailer once the blocks are on disk, the previous version is used until the trailer is complete
+            ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+            DataOutputStream indexStream = new DataOutputStream(indexBytes);
+            indexStream.writeInt(newEntries.size());
+            for (Entry entry : newEntries) {
+                entry.write(indexStream);
+            }
+            indexStream.close();
+            long indexOffset = archiveOutput.allocate(indexBytes.size());
+            writeFully(outputChannel, ByteBuffer.wrap(indexBytes.toByteArray()), indexOffset);
+            outputChannel.force(true);
+
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_LENGTH);
+            trailer.putLong(indexOffset);
+            trailer.put(MAGIC);
+            trailer.flip();
+            long trailerOffset = archiveOutput.allocate(TRAILER_LENGTH);
+            writeFully(outputChannel, trailer, trailerOffset);
+            output.setLength(trailerOffset + TRAILER_LENGTH);
+            outputChannel.force(true);
+
+            completed = true;
+
+        } finally {
+            output.close();
+            if (previousInput != null) {
+                previousInput.close();
+            }
+            if (!completed) {
+                if (append) {
+                    // remove the incomplete version, the output might have been closed by an interruption
+                    RandomAccessFile restore = new RandomAccessFile(outputFile, "rw");
+                    try {
+                        restore.setLength(originalLength);
+                    } finally {
+                        restore.close();
+                    }
+                } else {
+                    outputFile.delete();
+                }
+            }
+        }
+
+        if (!append) {
+            replace(outputFile, destinationFile);
+        }
+    }
+
+    /**
+     * Replaces a file by another one. The destination is kept as backup until
+     * the replacement was renamed, and restored if the renaming failed.
+     *
+     * @param source the new file
+     * @param destination the file to replace
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * renaming the files
+     */
+    private static void replace(File source, File destination) throws IOException {
+
+        File backup = new File(destination.getParentFile(), destination.getName() + BACKUP_SUFFIX);
+        if (destination.exists()) {
+            if (backup.exists() && !backup.delete()) {
+                throw new IOException("Impossible to delete " + backup.getAbsolutePath() + ".");
+            }
+            if (!destination.renameTo(backup)) {
+                throw new IOException("Impossible to replace " + destination.getAbsolutePath() + ".");
+            }
+        }
+        if (!source.renameTo(destination)) {
+            if (backup.exists() && !destination.exists()) {
+                backup.renameTo(destination);
+            }
+            throw new IOException("Impossible to rename " + source.getAbsolutePath() + " to " + destination.getName() + ".");
+        }
+        backup.delete();
+    }
+
+    /**
+     * Lists the entries corresponding to the content of a folder.
+     *
+     * @param folder the folder
+     * @param prefix the prefix of the names of the entries
+     * @param exceptions the absolute paths of the files not to list
+     * @param entries the list where to add the entries
+     * @param sources the list where to add the files of the entries
+     */
+    private static void listEntries(File folder, String prefix, HashSet<String> exceptions, ArrayList<Entry> entries, ArrayList<File> sources) {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (exceptions != null && exceptions.contains(file.getAbsolutePath())) {
+                continue;
+            }
+            String name = prefix + file.getName();
+            if (file.isDirectory()) {
+                entries.add(new Entry(name + "/", 0, 0, 0));
+                sources.add(null);
+                listEntries(file, name + "/", exceptions, entries, sources);
+            } else {
+                long length = file.length();
+                entries.add(new Entry(name, length, file.lastModified(), getnBlocks(length)));
+                sources.add(file);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of blocks needed for the given length.
+     *
+     * @param length the length
+     *
+     * @return the number of blocks needed
+     */
+    private static int getnBlocks(long length) {
+        return (int) ((length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    }
+
+    /**
+     * Reads and decompresses a block.
+     *
+     * @param channel the channel to the archive
+     * @param block the block
+     *
+     * @return the content of the block
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private static byte[] readBlock(FileChannel channel, Block block) throws IOException {
+
+        ByteBuffer compressed = ByteBuffer.allocate(block.compressedLength);
+        readFully(channel, compressed, block.offset);
+
+        byte[] content = new byte[block.length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.array());
+            int length = 0;
+            while (length < content.length && !inflater.finished()) {
+                int n = inflater.inflate(content, length, content.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += n;
+            }
+            if (length != content.length) {
+                throw new IOException("Corrupted block at " + block.offset + ".");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted block at " + block.offset + ": " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return content;
+    }
+
+    /**
+     * Fills the given buffer with the content of a channel at the given
+     * position and rewinds it.
+     *
+     * @param channel the channel
+     * @param buffer the buffer to fill
+     * @param position the position in the channel
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new EOFException("Unexpected end of file.");
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Writes the remaining content of a buffer at the given position of a
+     * channel.
+     *
+     * @param channel the channel
+     * @param buffer the buffer to write
+     * @param position the position in the channel
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long offset = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+    }
+
+    /**
+     * An entry of the archive.
+     *
+     * @author Marc Vaudel
+     */
+    private static class Entry {
+
+        /**
+         * The name of the entry, ends with a slash for folders.
+         */
+        private final String name;
+        /**
+         * The uncompressed length.
+         */
+        private final long length;
+        /**
+         * The last modification time of the file, 0 if not applicable.
+         */
+        private final long lastModified;
+        /**
+         * The blocks of the entry.
+         */
+        private final Block[] blocks;
+
+        /**
+         * Constructor.
+         *
+         * @param name the name of the entry
+         * @param length the uncompressed length
+         * @param lastModified the last modification time of the file
+         * @param nBlocks the number of blocks
+         */
+        public Entry(String name, long length, long lastModified, int nBlocks) {
+            this.name = name;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.blocks = new Block[nBlocks];
+        }
+
+        /**
+         * Indicates whether the entry is a folder.
+         *
+         * @return a boolean indicating whether the entry is a folder
+         */
+        public boolean isFolder() {
+            return name.endsWith("/");
+        }
+
+        /**
+         * Writes the entry in the index.
+         *
+         * @param outputStream the stream where to write
+         *
+         * @throws IOException exception thrown whenever an error occurred
+         * while writing
+         */
+        public void write(DataOutputStream outputStream) throws IOException {
+            outputStream.writeUTF(name);
+            outputStream.writeLong(length);
+            outputStream.writeLong(lastModified);
+            outputStream.writeInt(blocks.length);
+            for (Block block : blocks) {
+                outputStream.writeLong(block.offset);
+                outputStream.writeInt(block.compressedLength);
+                outputStream.writeInt(block.length);
+                outputStream.write(block.digest);
+            }
+        }
+
+        /**
+         * Reads an entry from the index.
+         *
+         * @param inputStream the stream where to read
+         *
+         * @return the entry, null if the number of blocks does not fit in the
+         * index
+         *
+         * @throws IOException exception thrown whenever an error occurred
+         * while reading
+         */
+        public static Entry read(DataInputStream inputStream) throws IOException {
+            String name = inputStream.readUTF();
+            long length = inputStream.readLong();
+            long lastModified = inputStream.readLong();
+            int nBlocks = inputStream.readInt();
+            if (nBlocks < 0 || nBlocks > inputStream.available() / BLOCK_INDEX_LENGTH) {
+                return null;
+            }
+            Entry entry = new Entry(name, length, lastModified, nBlocks);
+            for (int i = 0; i < entry.blocks.length; i++) {
+                long offset = inputStream.readLong();
+                int compressedLength = inputStream.readInt();
+                int blockLength = inputStream.readInt();
+                byte[] digest = new byte[16];
+                inputStream.readFully(digest);
+                entry.blocks[i] = new Block(offset, compressedLength, blockLength, digest);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * A compressed block of an entry.
+     *
+     * @author Marc Vaudel
+     */
+    private static class Block {
+
+        /**
+         * The position of the compressed block in the archive.
+         */
+        private final long offset;
+        /**
+         * The compressed length.
+         */
+        private final int compressedLength;
+        /**
+         * The uncompressed length.
+         */
+        private final int length;
+        /**
+         * The digest of the uncompressed content.
+         */
+        private final byte[] digest;
+
+        /**
+         * Constructor.
+         *
+         * @param offset the position of the compressed block in the archive
+         * @param compressedLength the compressed length
+         * @param length the uncompressed length
+         * @param digest the digest of the uncompressed content
+         */
+        public Block(long offset, int compressedLength, int length, byte[] digest) {
+            this.offset = offset;
+            this.compressedLength = compressedLength;
+            this.length = length;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * The archive being written. Space is allocated at the end of the archive
+     * so that blocks can be written by multiple threads.
+     *
+     * @author Marc Vaudel
+     */
+    private static class ArchiveOutput {
+
+        /**
+         * The channel to the archive.
+         */
+        private final FileChannel channel;
+        /**
+         * The end of the allocated space.
+         */
+        private long position;
+
+        /**
+         * Constructor.
+         *
+         * @param channel the channel to the archive
+         * @param position the position where to start writing
+         */
+        public ArchiveOutput(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        /**
+         * Allocates space at the end of the archive.
+         *
+         * @param length the length to allocate
+         *
+         * @return the position of the allocated space
+         */
+        public synchronized long allocate(int length) {
+            long offset = position;
+            position += length;
+            return offset;
+        }
+
+        /**
+         * Writes the given bytes at the end of the archive.
+         *
+         * @param bytes the bytes to write
+         * @param length the number of bytes to write
+         *
+         * @return the position where the bytes were written
+         *
+         * @throws IOException exception thrown whenever an error occurred
+         * while writing the file
+         */
+        public long write(byte[] bytes, int length) throws IOException {
+            long offset = allocate(length);
+            writeFully(channel, ByteBuffer.wrap(bytes, 0, length), offset);
+            return offset;
+        }
+    }
+
+    /**
+     * A file being extracted. The file is closed when all its blocks are
+     * written.
+     *
+     * @author Marc Vaudel
+     */
+    private static class EntryOutput {
+
+        /**
+         * The entry.
+         */
+        private final Entry entry;
+        /**
+         * The destination file.
+         */
+        private final File destination;
+        /**
+         * The random access file.
+         */
+        private final RandomAccessFile randomAccessFile;
+        /**
+         * The number of blocks not written yet.
+         */
+        private int remaining;
+        /**
+         * Boolean indicating whether the file is closed.
+         */
+        private boolean closed = false;
+
+        /**
+         * Constructor.
+         *
+         * @param entry the entry
+         * @param destination the destination file
+         *
+         * @throws IOException exception thrown whenever an error occurred
+         * while opening the file
+         */
+        public EntryOutput(Entry entry, File destination) throws IOException {
+            this.entry = entry;
+            this.destination = destination;
+            randomAccessFile = new RandomAccessFile(destination, "rw");
+            randomAccessFile.setLength(entry.length);
+            remaining = entry.blocks.length;
+        }
+
+        /**
+         * Writes the content of a block.
+         *
+         * @param blockIndex the index of the block
+         * @param content the content of the block
+         *
+         * @throws IOException exception thrown whenever an error occurred
+         * while writing the file
+         */
+        public void write(int blockIndex, byte[] content) throws IOException {
+            writeFully(randomAccessFile.getChannel(), ByteBuffer.wrap(content), ((long) blockIndex) * BLOCK_SIZE);
+            synchronized (this) {
+                remaining--;
+                if (remaining == 0) {
+                    close();
+                }
+            }
+        }
+
+        /**
+         * Closes the file. If all blocks were written, the modification time
+         * of the file is set to the one in the archive so that unchanged files
+         * are detected when saving.
+         *
+         * @throws IOException exception thrown whenever an error occurred
+         * while closing the file
+         */
+        public synchronized void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                randomAccessFile.close();
+                if (remaining == 0 && entry.lastModified != 0) {
+                    destination.setLastModified(entry.lastModified);
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps the first error encountered by the tasks of a stage and cancels
+     * the stage.
+     *
+     * @author Marc Vaudel
+     */
+    private static class ArchiveFailure {
+
+        /**
+         * The stage.
+         */
+        private final ProcessingStage stage;
+        /**
+         * The first error encountered, null if none.
+         */
+        private volatile IOException failure = null;
+
+        /**
+         * Constructor.
+         *
+         * @param stage the stage
+         */
+        public ArchiveFailure(ProcessingStage stage) {
+            this.stage = stage;
+        }
+
+        /**
+         * Sets the error and cancels the stage.
+         *
+         * @param e the error
+         */
+        public synchronized void set(IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+            stage.cancel();
+        }
+
+        /**
+         * Throws the error encountered if any.
+         *
+         * @throws IOException the error encountered
+         */
+        public void check() throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Runnable compressing and writing a block. If the block did not change
+     * since the previous version, the compressed block of the previous version
+     * is used.
+     *
+     * @author Marc Vaudel
+     */
+    private static class CompressionRunnable implements Runnable {
+
+        /**
+         * The entry.
+         */
+        private final Entry entry;
+        /**
+         * The index of the block.
+         */
+        private final int blockIndex;
+        /**
+         * The content of the block, null to copy the block of the previous
+         * version.
+         */
+        private final byte[] content;
+        /**
+         * The entry in the previous version, null if none.
+         */
+        private final Entry previousEntry;
+        /**
+         * The channel to the previous version, null if blocks are reused in
+         * place.
+         */
+        private final FileChannel previousChannel;
+        /**
+         * The archive being written.
+         */
+        private final ArchiveOutput archiveOutput;
+        /**
+         * The waiting handler, can be null.
+         */
+        private final WaitingHandler waitingHandler;
+        /**
+         * The error handler of the stage.
+         */
+        private final ArchiveFailure failure;
+
+        /**
+         * Constructor.
+         *
+         * @param entry the entry
+         * @param blockIndex the index of the block
+         * @param content the content of the block, null to copy the block of
+         * the previous version
+         * @param previousEntry the entry in the previous version, null if none
+         * @param previousChannel the channel to the previous version, null if
+         * blocks are reused in place
+         * @param archiveOutput the archive being written
+         * @param waitingHandler the waiting handler, can be null
+         * @param failure the error handler of the stage
+         */
+        public CompressionRunnable(Entry entry, int blockIndex, byte[] content, Entry previousEntry, FileChannel previousChannel,
+                ArchiveOutput archiveOutput, WaitingHandler waitingHandler, ArchiveFailure failure) {
+            this.entry = entry;
+            this.blockIndex = blockIndex;
+            this.content = content;
+            this.previousEntry = previousEntry;
+            this.previousChannel = previousChannel;
+            this.archiveOutput = archiveOutput;
+            this.waitingHandler = waitingHandler;
+            this.failure = failure;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Block previousBlock = previousEntry != null && blockIndex < previousEntry.blocks.length ? previousEntry.blocks[blockIndex] : null;
+                if (content == null) {
+                    entry.blocks[blockIndex] = copy(previousBlock);
+                } else {
+                    byte[] digest = MessageDigest.getInstance(DIGEST_ALGORITHM).digest(content);
+                    if (previousBlock != null && previousBlock.length == content.length && Arrays.equals(previousBlock.digest, digest)) {
+                        entry.blocks[blockIndex] = previousChannel == null ? previousBlock : copy(previousBlock);
+                    } else {
+                        entry.blocks[blockIndex] = compress(digest);
+                    }
+                }
+                if (waitingHandler != null) {
+                    waitingHandler.increaseSecondaryProgressCounter();
+                }
+            } catch (IOException e) {
+                failure.set(e);
+            } catch (NoSuchAlgorithmException e) {
+                failure.set(new IOException(DIGEST_ALGORITHM + " not available: " + e.getMessage()));
+            }
+        }
+
+        /**
+         * Copies a block of the previous version without decompressing it.
+         *
+         * @param previousBlock the block of the previous version
+         *
+         * @return the copied block
+         *
+         * @throws IOException exception thrown whenever an error occurred
+         * while reading or writing the file
+         */
+        private Block copy(Block previousBlock) throws IOException {
+            ByteBuffer compressed = ByteBuffer.allocate(previousBlock.compressedLength);
+            readFully(previousChannel, compressed, previousBlock.offset);
+            long offset = archiveOutput.write(compressed.array(), previousBlock.compressedLength);
+            return new Block(offset, previousBlock.compressedLength, previousBlock.length, previousBlock.digest);
+        }
+
+        /**
+         * Compresses and writes the content of the block.
+         *
+         * @param digest the digest of the content
+         *
+         * @return the written block
+         *
+         * @throws IOException exception thrown whenever an error occurred
+         * while writing the file
+         */
+        private Block compress(byte[] digest) throws IOException {
+            Deflater deflater = new Deflater();
+            try {
+                deflater.setInput(content);
+                deflater.finish();
+                byte[] compressed = new byte[content.length + content.length / 100 + 64];
+                int length = 0;
+                while (!deflater.finished()) {
+                    if (length == compressed.length) {
+                        compressed = Arrays.copyOf(compressed, 2 * compressed.length);
+                    }
+                    length += deflater.deflate(compressed, length, compressed.length - length);
+                }
+                long offset = archiveOutput.write(compressed, length);
+                return new Block(offset, length, content.length, digest);
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Runnable decompressing a block and writing it to the destination file.
+     *
+     * @author Marc Vaudel
+     */
+    private static class ExtractionRunnable implements Runnable {
+
+        /**
+         * The channel to the archive.
+         */
+        private final FileChannel channel;
+        /**
+         * The file being extracted.
+         */
+        private final EntryOutput output;
+        /**
+         * The index of the block.
+         */
+        private final int blockIndex;
+        /**
+         * The waiting handler, can be null.
+         */
+        private final WaitingHandler waitingHandler;
+        /**
+         * The error handler of the stage.
+         */
+        private final ArchiveFailure failure;
+
+        /**
+         * Constructor.
+         *
+         * @param channel the channel to the archive
+         * @param output the file being extracted
+         * @param blockIndex the index of the block
+         * @param waitingHandler the waiting handler, can be null
+         * @param failure the error handler of the stage
+         */
+        public ExtractionRunnable(FileChannel channel, EntryOutput output, int blockIndex, WaitingHandler waitingHandler, ArchiveFailure failure) {
+            this.channel = channel;
+            this.output = output;
+            this.blockIndex = blockIndex;
+            this.waitingHandler = waitingHandler;
+            this.failure = failure;
+        }
+
+        @Override
+        public void run() {
+            try {
+                byte[] content = readBlock(channel, output.entry.blocks[blockIndex]);
+                output.write(blockIndex, content);
+                if (waitingHandler != null) {
+                    waitingHandler.increaseSecondaryProgressCounter();
+                }
+            } catch (IOException e) {
+                failure.set(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package eu.isas.peptideshaker.utils;
+
+import com.compomics.util.exceptions.ExceptionHandler;
+import com.compomics.util.preferences.ProcessingPreferences;
+import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.peptideshaker.PeptideShaker;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Table of the features of the protein matches computed once after the
+ * processing of the identifications and stored with the project. The features
+ * are stored in one primitive column per feature, missing values are NaN.
+ *
+ * @author Marc Vaudel
+ */
+public class ProteinFeaturesTable {
+
+    /**
+     * The name of the project archive entry where the table is stored.
+     */
+    public static final String ARCHIVE_ENTRY = ProjectArchive.METADATA_PREFIX + "protein_features";
+    /**
+     * The version of the serialization format.
+     */
+    public static final int VERSION = 1;
+    /**
+     * The number of proteins processed by a task.
+     */
+    public static final int BATCH_SIZE = 100;
+    /**
+     * The charset used to encode the protein keys.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The features stored in the table.
+     */
+    public enum Feature {
+
+        /**
+         * The sequence coverage using validated peptides.
+         */
+        validated_coverage,
+        /**
+         * The expected sequence coverage.
+         */
+        observable_coverage,
+        /**
+         * The spectrum counting index using the spectrum counting preferences
+         * of the project.
+         */
+        spectrum_counting,
+        /**
+         * The number of spectra.
+         */
+        number_of_spectra,
+        /**
+         * The number of validated spectra.
+         */
+        number_of_validated_spectra,
+        /**
+         * The number of confident spectra.
+         */
+        number_of_confident_spectra,
+        /**
+         * The number of validated peptides.
+         */
+        number_of_validated_peptides,
+        /**
+         * The number of confident peptides.
+         */
+        number_of_confident_peptides,
+        /**
+         * The number of unique peptides.
+         */
+        number_of_unique_peptides;
+    }
+    /**
+     * The keys of the proteins.
+     */
+    private final String[] proteinKeys;
+    /**
+     * Protein key to protein index.
+     */
+    private final HashMap<String, Integer> proteinIndexes;
+    /**
+     * The values of every feature indexed by feature ordinal and protein
+     * index.
+     */
+    private final double[][] columns;
+
+    /**
+     * Constructor. All values are missing.
+     *
+     * @param proteinKeys the keys of the proteins
+     */
+    public ProteinFeaturesTable(String[] proteinKeys) {
+        this.proteinKeys = proteinKeys;
+        proteinIndexes = new HashMap<String, Integer>(proteinKeys.length);
+        for (int i = 0; i < proteinKeys.length; i++) {
+            proteinIndexes.put(proteinKeys[i], i);
+        }
+        columns = new double[Feature.values().length][proteinKeys.length];
+        for (double[] column : columns) {
+            Arrays.fill(column, Double.NaN);
+        }
+    }
+
+    /**
+     * Returns the number of proteins in the table.
+     *
+     * @return the number of proteins in the table
+     */
+    public int getnProteins() {
+        return proteinKeys.length;
+    }
+
+    /**
+     * Returns the value of a feature for the given protein, null if not
+     * available.
+     *
+     * @param feature the feature
+     * @param proteinKey the key of the protein match
+     *
+     * @return the value of the feature
+     */
+    public synchronized Double getValue(Feature feature, String proteinKey) {
+        Integer proteinIndex = proteinIndexes.get(proteinKey);
+        if (proteinIndex == null) {
+            return null;
+        }
+        double value = columns[feature.ordinal()][proteinIndex];
+        if (Double.isNaN(value)) {
+            return null;
+        }
+        return value;
+    }
+
+    /**
+     * Returns the value of an integer feature for the given protein, null if
+     * not available.
+     *
+     * @param feature the feature
+     * @param proteinKey the key of the protein match
+     *
+     * @return the value of the feature
+     */
+    public Integer getIntValue(Feature feature, String proteinKey) {
+        Double value = getValue(feature, proteinKey);
+        if (value == null) {
+            return null;
+        }
+        return value.intValue();
+    }
+
+    /**
+     * Sets the value of a feature for the protein at the given index.
+     *
+     * @param feature the feature
+     * @param proteinIndex the index of the protein
+     * @param value the value
+     */
+    private synchronized void setValue(Feature feature, int proteinIndex, double value) {
+        columns[feature.ordinal()][proteinIndex] = value;
+    }
+
+    /**
+     * Removes the features of the given protein, for instance when its
+     * validation status changed. The features will be computed on demand.
+     *
+     * @param proteinKey the key of the protein match
+     */
+    public synchronized void remove(String proteinKey) {
+        Integer proteinIndex = proteinIndexes.get(proteinKey);
+        if (proteinIndex != null) {
+            for (double[] column : columns) {
+                column[proteinIndex] = Double.NaN;
+            }
+        }
+    }
+
+    /**
+     * Removes the given feature of all proteins. The feature will be computed
+     * on demand.
+     *
+     * @param feature the feature
+     */
+    public synchronized void clear(Feature feature) {
+        Arrays.fill(columns[feature.ordinal()], Double.NaN);
+    }
+
+    /**
+     * Computes the features of all protein matches in parallel.
+     *
+     * @param proteinKeys the keys of the protein matches
+     * @param identificationFeaturesGenerator the identification features
+     * generator used to compute the features
+     * @param processingPreferences the processing preferences
+     * @param waitingHandler the waiting handler, can be null
+     * @param exceptionHandler handler for the exceptions
+     *
+     * @return the table, null if the process was canceled
+     *
+     * @throws InterruptedException exception thrown whenever a threading
+     * error occurred while computing the features
+     */
+    public static ProteinFeaturesTable compute(ArrayList<String> proteinKeys, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            ProcessingPreferences processingPreferences, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws InterruptedException {
+
+        ProteinFeaturesTable table = new ProteinFeaturesTable(proteinKeys.toArray(new String[proteinKeys.size()]));
+
+        if (waitingHandler != null) {
+            waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+            waitingHandler.resetSecondaryProgressCounter();
+            waitingHandler.setMaxSecondaryProgressCounter(proteinKeys.size());
+        }
+
+        ProcessingStage stage = PeptideShaker.getProcessingScheduler(processingPreferences).newStage("Protein features", waitingHandler);
+        for (int start = 0; start < proteinKeys.size(); start += BATCH_SIZE) {
+            int end = Math.min(start + BATCH_SIZE, proteinKeys.size());
+            if (!stage.submit(new FeaturesRunnable(table, start, end, identificationFeaturesGenerator, stage, waitingHandler, exceptionHandler))) {
+                return null;
+            }
+        }
+        if (!stage.awaitCompletion()) {
+            return null;
+        }
+
+        if (waitingHandler != null) {
+            waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+        }
+
+        return table;
+    }
+
+    /**
+     * Returns the table as bytes to be stored in the project.
+     *
+     * @return the table as bytes
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the table
+     */
+    public synchronized byte[] toBytes() throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        DataOutputStream outputStream = new DataOutputStream(byteArrayOutputStream);
+        outputStream.writeInt(VERSION);
+        outputStream.writeInt(proteinKeys.length);
+        for (String proteinKey : proteinKeys) {
+            byte[] keyBytes = proteinKey.getBytes(UTF8);
+            outputStream.writeInt(keyBytes.length);
+            outputStream.write(keyBytes);
+        }
+        Feature[] features = Feature.values();
+        outputStream.writeInt(features.length);
+        for (Feature feature : features) {
+            outputStream.writeUTF(feature.name());
+            for (double value : columns[feature.ordinal()]) {
+                outputStream.writeDouble(value);
+            }
+        }
+        outputStream.close();
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    /**
+     * Reads a table from the bytes stored in the project. Features unknown to
+     * this version are skipped.
+     *
+     * @param bytes the table as bytes
+     *
+     * @return the table
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the table
+     */
+    public static ProteinFeaturesTable fromBytes(byte[] bytes) throws IOException {
+        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(bytes));
+        int version = inputStream.readInt();
+        if (version > VERSION) {
+            throw new IOException("Protein features table version " + version + " not supported.");
+        }
+        String[] proteinKeys = new String[inputStream.readInt()];
+        for (int i = 0; i < proteinKeys.length; i++) {
+            byte[] keyBytes = new byte[inputStream.readInt()];
+            inputStream.readFully(keyBytes);
+            proteinKeys[i] = new String(keyBytes, UTF8);
+        }
+        ProteinFeaturesTable table = new ProteinFeaturesTable(proteinKeys);
+        int nFeatures = inputStream.readInt();
+        for (int i = 0; i < nFeatures; i++) {
+            String featureName = inputStream.readUTF();
+            double[] column = null;
+            for (Feature feature : Feature.values()) {
+                if (feature.name().equals(featureName)) {
+                    column = table.columns[feature.ordinal()];
+                }
+            }
+            for (int j = 0; j < proteinKeys.length; j++) {
+                double value = inputStream.readDouble();
+                if (column != null) {
+                    column[j] = value;
+                }
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Runnable computing the features of a batch of proteins.
+     *
+     * @author Marc Vaudel
+     */
+    private static class FeaturesRunnable implements Runnable {
+
+        /**
+         * The table to fill.
+         */
+        private final ProteinFeaturesTable table;
+        /**
+         * The index of the first protein of the batch.
+         */
+        private final int start;
+        /**
+         * The index after the last protein of the batch.
+         */
+        private final int end;
+        /**
+         * The identification features generator.
+         */
+        private final IdentificationFeaturesGenerator identificationFeaturesGenerator;
+        /**
+         * The stage running the task.
+         */
+        private final ProcessingStage stage;
+        /**
+         * The waiting handler, can be null.
+         */
+        private final WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private final ExceptionHandler exceptionHandler;
+
+        /**
+         * Constructor.
+         *
+         * @param table the table to fill
+         * @param start the index of the first protein of the batch
+         * @param end the index after the last protein of the batch
+         * @param identificationFeaturesGenerator the identification features
+         * generator
+         * @param stage the stage running the task
+         * @param waitingHandler the waiting handler, can be null
+         * @param exceptionHandler handler for the exceptions
+         */
+        public FeaturesRunnable(ProteinFeaturesTable table, int start, int end, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+                ProcessingStage stage, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.table = table;
+            this.start = start;
+            this.end = end;
+            this.identificationFeaturesGenerator = identificationFeaturesGenerator;
+            this.stage = stage;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = start; i < end; i++) {
+                    if (stage.isCanceled()) {
+                        return;
+                    }
+                    String proteinKey = table.proteinKeys[i];
+                    table.setValue(Feature.validated_coverage, i, identificationFeaturesGenerator.getValidatedSequenceCoverage(proteinKey));
+                    table.setValue(Feature.observable_coverage, i, identificationFeaturesGenerator.getObservableCoverage(proteinKey));
+                    table.setValue(Feature.spectrum_counting, i, identificationFeaturesGenerator.getSpectrumCounting(proteinKey));
+                    table.setValue(Feature.number_of_spectra, i, identificationFeaturesGenerator.getNSpectra(proteinKey));
+                    table.setValue(Feature.number_of_validated_spectra, i, identificationFeaturesGenerator.getNValidatedSpectra(proteinKey));
+                    table.setValue(Feature.number_of_confident_spectra, i, identificationFeaturesGenerator.getNConfidentSpectra(proteinKey));
+                    table.setValue(Feature.number_of_validated_peptides, i, identificationFeaturesGenerator.getNValidatedPeptides(proteinKey));
+                    table.setValue(Feature.number_of_confident_peptides, i, identificationFeaturesGenerator.getNConfidentPeptides(proteinKey));
+                    table.setValue(Feature.number_of_unique_peptides, i, identificationFeaturesGenerator.getNUniquePeptides(proteinKey));
+                    if (waitingHandler != null) {
+                        waitingHandler.increaseSecondaryProgressCounter();
+                    }
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                stage.cancel();
+                if (waitingHandler != null) {
+                    waitingHandler.setRunCanceled();
+                }
+            }
+        }
+    }
+}
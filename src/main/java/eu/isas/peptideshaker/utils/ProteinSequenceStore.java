@@ -0,0 +1,716 @@
+package eu.isas.peptideshaker.utils;
+
+import com.compomics.util.experiment.biology.Protein;
+import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
+import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory.ProteinIterator;
+import com.compomics.util.waiting.WaitingHandler;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Store of the protein sequences of a FASTA file in a compact binary file
+ * which is memory mapped. The file is built once next to the FASTA file and
+ * contains the concatenated residues of the proteins, an index of the
+ * proteins and their accessions sorted for binary search. Decoy sequences
+ * which are the reversed sequence of a target protein are not stored but
+ * derived from the target residues.
+ *
+ * The sequences are read from the mapped file and hence do not occupy the
+ * heap, the pages of the file are shared by the processes mapping it.
+ * Accessions not found in the store are retrieved from the sequence factory.
+ * The store is built under a lock on a file next to it so that a single
+ * process builds it when several open the same FASTA file.
+ *
+ * @author Marc Vaudel
+ */
+public class ProteinSequenceStore {
+
+    /**
+     * The extension of the store files.
+     */
+    public static final String EXTENSION = ".pss";
+    /**
+     * The extension of the file locked while building a store.
+     */
+    public static final String LOCK_EXTENSION = ".lock";
+    /**
+     * The magic number at the beginning of the file.
+     */
+    private static final int MAGIC = 0x50535351;
+    /**
+     * The version of the format.
+     */
+    private static final int VERSION = 1;
+    /**
+     * The length of the header: magic, version, FASTA length, FASTA last
+     * modification, number of proteins, total length of the sequences, start
+     * of the accessions and start of the residues.
+     */
+    private static final int HEADER_LENGTH = 4 + 4 + 8 + 8 + 4 + 8 + 8 + 8;
+    /**
+     * The length of an entry of the protein index: residues offset, length,
+     * flags and accession offset.
+     */
+    private static final int ENTRY_LENGTH = 8 + 4 + 4 + 8;
+    /**
+     * Flag indicating a decoy protein.
+     */
+    private static final int DECOY = 1;
+    /**
+     * Flag indicating that the residues are to be read in reverse order.
+     */
+    private static final int REVERSED = 2;
+    /**
+     * The maximal size of a mapped region.
+     */
+    private static final int REGION_SIZE = 1 << 30;
+    /**
+     * The charset of the accessions.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    /**
+     * The charset of the residues.
+     */
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    /**
+     * The instance of the store.
+     */
+    private static ProteinSequenceStore instance = null;
+    /**
+     * The sequence factory.
+     */
+    private final SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+    /**
+     * The size of the mapped regions.
+     */
+    private final int regionSize;
+    /**
+     * The FASTA file of the store currently loaded, null if none.
+     */
+    private volatile File fastaFile = null;
+    /**
+     * The mapped regions of the store file.
+     */
+    private volatile MappedByteBuffer[] regions = null;
+    /**
+     * The number of proteins in the store.
+     */
+    private int nProteins;
+    /**
+     * The start of the accessions in the store file.
+     */
+    private long accessionsStart;
+    /**
+     * The start of the residues in the store file.
+     */
+    private long residuesStart;
+    /**
+     * The total length of the sequences, including the derived sequences.
+     */
+    private long sequencesLength;
+
+    /**
+     * Constructor.
+     */
+    private ProteinSequenceStore() {
+        this(REGION_SIZE);
+    }
+
+    /**
+     * Constructor setting the size of the mapped regions, used to test the
+     * values overlapping two regions.
+     *
+     * @param regionSize the size of the mapped regions
+     */
+    ProteinSequenceStore(int regionSize) {
+        this.regionSize = regionSize;
+    }
+
+    /**
+     * Returns the instance of the store.
+     *
+     * @return the instance of the store
+     */
+    public static synchronized ProteinSequenceStore getInstance() {
+        if (instance == null) {
+            instance = new ProteinSequenceStore();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the store file of the given FASTA file.
+     *
+     * @param fastaFile the FASTA file
+     *
+     * @return the store file
+     */
+    public static File getStoreFile(File fastaFile) {
+        return new File(fastaFile.getParentFile(), fastaFile.getName() + EXTENSION);
+    }
+
+    /**
+     * Loads the store of the FASTA file currently loaded in the sequence
+     * factory. The store file is built if it does not exist or if it does not
+     * correspond to the FASTA file anymore. Returns false if the store could
+     * not be loaded, the sequences are then retrieved from the sequence
+     * factory.
+     *
+     * @param waitingHandler the waiting handler, can be null
+     *
+     * @return a boolean indicating whether the store could be loaded
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * building or mapping the store
+     * @throws InterruptedException exception thrown whenever a threading error
+     * occurred while reading the FASTA file
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while reading a protein from the FASTA file
+     */
+    public synchronized boolean load(WaitingHandler waitingHandler) throws IOException, InterruptedException, ClassNotFoundException {
+
+        close();
+
+        File newFastaFile = sequenceFactory.getCurrentFastaFile();
+        if (newFastaFile == null) {
+            return false;
+        }
+        File storeFile = getStoreFile(newFastaFile);
+
+        if (!isValid(storeFile, newFastaFile)) {
+            File folder = storeFile.getParentFile();
+            if (folder == null || !folder.canWrite()) {
+                return false;
+            }
+            synchronized (ProteinSequenceStore.class) {
+                RandomAccessFile lockFile = new RandomAccessFile(new File(folder, storeFile.getName() + LOCK_EXTENSION), "rw");
+                try {
+                    FileLock lock = lockFile.getChannel().lock();
+                    try {
+                        // another process might have built the store while waiting for the lock
+                        if (!isValid(storeFile, newFastaFile)) {
+                            build(newFastaFile, storeFile, waitingHandler);
+                        }
+                    } finally {
+                        lock.release();
+                    }
+                } finally {
+                    lockFile.close();
+                }
+            }
+            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                return false;
+            }
+        }
+
+        map(storeFile);
+        fastaFile = newFastaFile;
+        return true;
+    }
+
+    /**
+     * Indicates whether the given store file exists and corresponds to the
+     * given FASTA file.
+     *
+     * @param storeFile the store file
+     * @param fastaFile the FASTA file
+     *
+     * @return a boolean indicating whether the store file can be used
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the store file
+     */
+    private static boolean isValid(File storeFile, File fastaFile) throws IOException {
+        if (!storeFile.exists() || storeFile.length() < HEADER_LENGTH) {
+            return false;
+        }
+        RandomAccessFile raf = new RandomAccessFile(storeFile, "r");
+        try {
+            return raf.readInt() == MAGIC
+                    && raf.readInt() == VERSION
+                    && raf.readLong() == fastaFile.length()
+                    && raf.readLong() == fastaFile.lastModified();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Builds the store file of a FASTA file from the proteins of the sequence
+     * factory. The file is written to a temporary file next to the destination
+     * and renamed when complete so that other processes never map an
+     * incomplete file. The caller must hold the lock of the store.
+     *
+     * @param fastaFile the FASTA file
+     * @param storeFile the store file
+     * @param waitingHandler the waiting handler, can be null
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the store
+     * @throws InterruptedException exception thrown whenever a threading error
+     * occurred while reading the FASTA file
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while reading a protein from the FASTA file
+     */
+    private void build(File fastaFile, File storeFile, WaitingHandler waitingHandler) throws IOException, InterruptedException, ClassNotFoundException {
+
+        if (waitingHandler != null) {
+            waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+            waitingHandler.resetSecondaryProgressCounter();
+            waitingHandler.setMaxSecondaryProgressCounter(sequenceFactory.getNSequences());
+        }
+
+        File residuesFile = File.createTempFile(storeFile.getName() + ".", ".residues", storeFile.getParentFile());
+        File tempFile = File.createTempFile(storeFile.getName() + ".", ".tmp", storeFile.getParentFile());
+
+        int capacity = Math.max(sequenceFactory.getNSequences(), 16);
+        long[] residueOffsets = new long[capacity];
+        int[] lengths = new int[capacity];
+        int[] flags = new int[capacity];
+        ArrayList<String> accessions = new ArrayList<String>(capacity);
+        HashMap<String, Integer> targetIndexes = new HashMap<String, Integer>(capacity);
+        int n = 0;
+        long residuesLength = 0;
+        long totalLength = 0;
+
+        try {
+            FileOutputStream residuesStream = new FileOutputStream(residuesFile);
+            BufferedOutputStream residuesOutput = new BufferedOutputStream(residuesStream);
+            RandomAccessFile residuesInput = new RandomAccessFile(residuesFile, "r");
+            try {
+                ProteinIterator iterator = sequenceFactory.getProteinIterator(false);
+                while (iterator.hasNext()) {
+
+                    Protein protein = iterator.getNextProtein();
+                    String accession = protein.getAccession();
+                    byte[] residues = protein.getSequence().getBytes(ASCII);
+
+                    if (n == residueOffsets.length) {
+                        capacity = 2 * capacity;
+                        residueOffsets = Arrays.copyOf(residueOffsets, capacity);
+                        lengths = Arrays.copyOf(lengths, capacity);
+                        flags = Arrays.copyOf(flags, capacity);
+                    }
+
+                    int proteinFlags = 0;
+                    long offset = -1;
+                    if (sequenceFactory.isDecoyAccession(accession)) {
+                        proteinFlags |= DECOY;
+                        int separator = accession.lastIndexOf('_');
+                        Integer targetIndex = separator > 0 ? targetIndexes.get(accession.substring(0, separator)) : null;
+                        if (targetIndex != null && lengths[targetIndex] == residues.length) {
+                            residuesOutput.flush();
+                            byte[] targetResidues = new byte[residues.length];
+                            residuesInput.seek(residueOffsets[targetIndex]);
+                            residuesInput.readFully(targetResidues);
+                            if (isReversed(targetResidues, residues)) {
+                                proteinFlags |= REVERSED;
+                                offset = residueOffsets[targetIndex];
+                            }
+                        }
+                    }
+                    if (offset == -1) {
+                        offset = residuesLength;
+                        residuesOutput.write(residues);
+                        residuesLength += residues.length;
+                        if ((proteinFlags & DECOY) == 0) {
+                            targetIndexes.put(accession, n);
+                        }
+                    }
+
+                    residueOffsets[n] = offset;
+                    lengths[n] = residues.length;
+                    flags[n] = proteinFlags;
+                    accessions.add(accession);
+                    totalLength += residues.length;
+                    n++;
+
+                    if (waitingHandler != null) {
+                        waitingHandler.increaseSecondaryProgressCounter();
+                        if (waitingHandler.isRunCanceled()) {
+                            return;
+                        }
+                    }
+                }
+            } finally {
+                residuesOutput.close();
+                residuesInput.close();
+            }
+            targetIndexes = null;
+
+            final ArrayList<String> sortedAccessions = accessions;
+            Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    return sortedAccessions.get(o1).compareTo(sortedAccessions.get(o2));
+                }
+            });
+
+            long[] accessionOffsets = new long[n];
+            long accessionsLength = 0;
+            for (int i = 0; i < n; i++) {
+                accessionOffsets[i] = accessionsLength;
+                accessionsLength += 4 + accessions.get(i).getBytes(UTF8).length;
+            }
+            long newAccessionsStart = HEADER_LENGTH + ((long) ENTRY_LENGTH) * n + 4l * n;
+            long newResiduesStart = newAccessionsStart + accessionsLength;
+
+            FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
+            try {
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeLong(fastaFile.length());
+                output.writeLong(fastaFile.lastModified());
+                output.writeInt(n);
+                output.writeLong(totalLength);
+                output.writeLong(newAccessionsStart);
+                output.writeLong(newResiduesStart);
+                for (int i = 0; i < n; i++) {
+                    output.writeLong(residueOffsets[i]);
+                    output.writeInt(lengths[i]);
+                    output.writeInt(flags[i]);
+                    output.writeLong(accessionOffsets[i]);
+                }
+                for (Integer index : order) {
+                    output.writeInt(index);
+                }
+                for (String accession : accessions) {
+                    byte[] accessionBytes = accession.getBytes(UTF8);
+                    output.writeInt(accessionBytes.length);
+                    output.write(accessionBytes);
+                }
+                output.flush();
+                FileInputStream residuesStreamIn = new FileInputStream(residuesFile);
+                try {
+                    FileChannel source = residuesStreamIn.getChannel();
+                    FileChannel destination = fileOutputStream.getChannel();
+                    long transferred = 0;
+                    while (transferred < residuesLength) {
+                        transferred += source.transferTo(transferred, residuesLength - transferred, destination);
+                    }
+                } finally {
+                    residuesStreamIn.close();
+                }
+            } finally {
+                fileOutputStream.close();
+            }
+
+            if (!tempFile.renameTo(storeFile)) {
+                // the rename does not replace existing files on all systems
+                if (storeFile.exists() && !storeFile.delete()) {
+                    throw new IOException("Impossible to replace " + storeFile + ".");
+                }
+                if (!tempFile.renameTo(storeFile)) {
+                    throw new IOException("Impossible to rename " + tempFile + " to " + storeFile + ".");
+                }
+            }
+
+        } finally {
+            residuesFile.delete();
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Indicates whether a sequence is the reverse of another.
+     *
+     * @param residues the residues of the first sequence
+     * @param reversedResidues the residues of the second sequence
+     *
+     * @return a boolean indicating whether a sequence is the reverse of the
+     * other
+     */
+    private static boolean isReversed(byte[] residues, byte[] reversedResidues) {
+        if (residues.length != reversedResidues.length) {
+            return false;
+        }
+        for (int i = 0, j = residues.length - 1; i < residues.length; i++, j--) {
+            if (residues[i] != reversedResidues[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Maps the given store file.
+     *
+     * @param storeFile the store file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * mapping the file
+     */
+    private void map(File storeFile) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(storeFile, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            int nRegions = (int) ((size + regionSize - 1) / regionSize);
+            MappedByteBuffer[] newRegions = new MappedByteBuffer[nRegions];
+            for (int i = 0; i < nRegions; i++) {
+                long start = ((long) i) * regionSize;
+                newRegions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(regionSize, size - start));
+            }
+            nProteins = getInt(newRegions, 4 + 4 + 8 + 8);
+            sequencesLength = getLong(newRegions, 4 + 4 + 8 + 8 + 4);
+            accessionsStart = getLong(newRegions, 4 + 4 + 8 + 8 + 4 + 8);
+            residuesStart = getLong(newRegions, 4 + 4 + 8 + 8 + 4 + 8 + 8);
+            regions = newRegions;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Closes the store. The mapped regions are released by the garbage
+     * collector.
+     */
+    public synchronized void close() {
+        fastaFile = null;
+        regions = null;
+    }
+
+    /**
+     * Indicates whether a store is loaded for the given FASTA file.
+     *
+     * @param fastaFile the FASTA file
+     *
+     * @return a boolean indicating whether a store is loaded for the given
+     * FASTA file
+     */
+    public boolean isLoaded(File fastaFile) {
+        File currentFastaFile = this.fastaFile;
+        return currentFastaFile != null && currentFastaFile.equals(fastaFile);
+    }
+
+    /**
+     * Returns the number of proteins in the store, 0 if not loaded.
+     *
+     * @return the number of proteins in the store
+     */
+    public int getNProteins() {
+        return fastaFile == null ? 0 : nProteins;
+    }
+
+    /**
+     * Returns the total length of the sequences in the store, including the
+     * derived sequences, 0 if not loaded.
+     *
+     * @return the total length of the sequences in the store
+     */
+    public long getSequencesLength() {
+        return fastaFile == null ? 0 : sequencesLength;
+    }
+
+    /**
+     * Returns the sequence of the protein of the given accession. If the store
+     * is not loaded for the FASTA file of the sequence factory or if the
+     * accession is not found, the sequence is retrieved from the sequence
+     * factory.
+     *
+     * @param accession the accession of the protein
+     *
+     * @return the sequence of the protein
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the protein
+     * @throws InterruptedException exception thrown whenever a threading error
+     * occurred while reading the protein
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing the protein
+     * @throws IllegalArgumentException exception thrown whenever the protein
+     * is not found
+     */
+    public String getSequence(String accession) throws IOException, InterruptedException, ClassNotFoundException, IllegalArgumentException {
+        String sequence = null;
+        MappedByteBuffer[] currentRegions = getRegions();
+        if (currentRegions != null) {
+            int index = getIndex(currentRegions, accession);
+            if (index >= 0) {
+                sequence = getSequence(currentRegions, index);
+            }
+        }
+        if (sequence == null) {
+            sequence = sequenceFactory.getProtein(accession).getSequence();
+        }
+        return sequence;
+    }
+
+    /**
+     * Returns the protein of the given accession. If the store is not loaded
+     * for the FASTA file of the sequence factory or if the accession is not
+     * found, the protein is retrieved from the sequence factory.
+     *
+     * @param accession the accession of the protein
+     *
+     * @return the protein
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the protein
+     * @throws InterruptedException exception thrown whenever a threading error
+     * occurred while reading the protein
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing the protein
+     * @throws IllegalArgumentException exception thrown whenever the protein
+     * is not found
+     */
+    public Protein getProtein(String accession) throws IOException, InterruptedException, ClassNotFoundException, IllegalArgumentException {
+        MappedByteBuffer[] currentRegions = getRegions();
+        if (currentRegions != null) {
+            int index = getIndex(currentRegions, accession);
+            if (index >= 0) {
+                long entryPosition = HEADER_LENGTH + ((long) ENTRY_LENGTH) * index;
+                boolean decoy = (getInt(currentRegions, entryPosition + 12) & DECOY) != 0;
+                return new Protein(accession, getSequence(currentRegions, index), decoy);
+            }
+        }
+        return sequenceFactory.getProtein(accession);
+    }
+
+    /**
+     * Returns the mapped regions if the store corresponds to the FASTA file
+     * of the sequence factory, null otherwise.
+     *
+     * @return the mapped regions
+     */
+    private MappedByteBuffer[] getRegions() {
+        File currentFastaFile = fastaFile;
+        MappedByteBuffer[] currentRegions = regions;
+        if (currentRegions == null || currentFastaFile == null || !currentFastaFile.equals(sequenceFactory.getCurrentFastaFile())) {
+            return null;
+        }
+        return currentRegions;
+    }
+
+    /**
+     * Returns the index of the protein of the given accession, -1 if not
+     * found.
+     *
+     * @param currentRegions the mapped regions
+     * @param accession the accession of the protein
+     *
+     * @return the index of the protein
+     */
+    private int getIndex(MappedByteBuffer[] currentRegions, String accession) {
+        long orderStart = HEADER_LENGTH + ((long) ENTRY_LENGTH) * nProteins;
+        int low = 0;
+        int high = nProteins - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int index = getInt(currentRegions, orderStart + 4l * middle);
+            long accessionOffset = getLong(currentRegions, HEADER_LENGTH + ((long) ENTRY_LENGTH) * index + 16);
+            long accessionPosition = accessionsStart + accessionOffset;
+            byte[] accessionBytes = new byte[getInt(currentRegions, accessionPosition)];
+            read(currentRegions, accessionPosition + 4, accessionBytes);
+            int comparison = new String(accessionBytes, UTF8).compareTo(accession);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the sequence of the protein at the given index.
+     *
+     * @param currentRegions the mapped regions
+     * @param index the index of the protein
+     *
+     * @return the sequence of the protein
+     */
+    private String getSequence(MappedByteBuffer[] currentRegions, int index) {
+        long entryPosition = HEADER_LENGTH + ((long) ENTRY_LENGTH) * index;
+        long residuesOffset = getLong(currentRegions, entryPosition);
+        int length = getInt(currentRegions, entryPosition + 8);
+        int proteinFlags = getInt(currentRegions, entryPosition + 12);
+        byte[] residues = new byte[length];
+        read(currentRegions, residuesStart + residuesOffset, residues);
+        if ((proteinFlags & REVERSED) != 0) {
+            for (int i = 0, j = length - 1; i < j; i++, j--) {
+                byte temp = residues[i];
+                residues[i] = residues[j];
+                residues[j] = temp;
+            }
+        }
+        return new String(residues, ASCII);
+    }
+
+    /**
+     * Returns the int at the given position of the given mapping.
+     *
+     * @param currentRegions the mapped regions
+     * @param position the position in the file
+     *
+     * @return the int at the given position
+     */
+    private int getInt(MappedByteBuffer[] currentRegions, long position) {
+        int offset = (int) (position % regionSize);
+        if (offset <= regionSize - 4) {
+            return currentRegions[(int) (position / regionSize)].getInt(offset);
+        }
+        byte[] bytes = new byte[4];
+        read(currentRegions, position, bytes);
+        return ByteBuffer.wrap(bytes).getInt();
+    }
+
+    /**
+     * Returns the long at the given position of the given mapping.
+     *
+     * @param currentRegions the mapped regions
+     * @param position the position in the file
+     *
+     * @return the long at the given position
+     */
+    private long getLong(MappedByteBuffer[] currentRegions, long position) {
+        int offset = (int) (position % regionSize);
+        if (offset <= regionSize - 8) {
+            return currentRegions[(int) (position / regionSize)].getLong(offset);
+        }
+        byte[] bytes = new byte[8];
+        read(currentRegions, position, bytes);
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+
+    /**
+     * Reads bytes from the given mapping. The buffers are duplicated so that
+     * the mapping can be read by multiple threads.
+     *
+     * @param currentRegions the mapped regions
+     * @param position the position in the file
+     * @param destination the array to fill
+     */
+    private void read(MappedByteBuffer[] currentRegions, long position, byte[] destination) {
+        int read = 0;
+        while (read < destination.length) {
+            long currentPosition = position + read;
+            ByteBuffer buffer = currentRegions[(int) (currentPosition / regionSize)].duplicate();
+            buffer.position((int) (currentPosition % regionSize));
+            int length = Math.min(destination.length - read, buffer.remaining());
+            buffer.get(destination, read, length);
+            read += length;
+        }
+    }
+}
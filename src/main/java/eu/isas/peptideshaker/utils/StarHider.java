@@ -11,6 +11,7 @@ import com.compomics.util.experiment.personalization.UrParameter;
 import com.compomics.util.gui.waiting.waitinghandlers.ProgressDialogX;
 import com.compomics.util.waiting.WaitingHandler;
 import eu.isas.peptideshaker.filtering.MatchFilter;
+import eu.isas.peptideshaker.filtering.MatchFilterBatch;
 import eu.isas.peptideshaker.filtering.PeptideFilter;
 import eu.isas.peptideshaker.filtering.ProteinFilter;
 import eu.isas.peptideshaker.filtering.PsmFilter;
@@ -21,7 +22,9 @@ import java.awt.Toolkit;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -48,6 +51,36 @@ public class StarHider {
      * The progress dialog.
      */
     private ProgressDialogX progressDialog;
+    /**
+     * The keys of the proteins to hide, evaluated for all proteins before
+     * updating the matches.
+     */
+    private HashSet<String> hiddenProteins;
+    /**
+     * The keys of the proteins to star, evaluated for all proteins before
+     * updating the matches.
+     */
+    private HashSet<String> starredProteins;
+    /**
+     * The keys of the peptides to hide, evaluated for all peptides before
+     * updating the matches.
+     */
+    private HashSet<String> hiddenPeptides;
+    /**
+     * The keys of the peptides to star, evaluated for all peptides before
+     * updating the matches.
+     */
+    private HashSet<String> starredPeptides;
+    /**
+     * The keys of the PSMs to hide, evaluated for all PSMs before updating the
+     * matches.
+     */
+    private HashSet<String> hiddenPsms;
+    /**
+     * The keys of the PSMs to star, evaluated for all PSMs before updating the
+     * matches.
+     */
+    private HashSet<String> starredPsms;
 
     /**
      * Constructor.
@@ -90,6 +123,26 @@ public class StarHider {
                     ExecutorService pool = Executors.newFixedThreadPool(nThreads);
 
                     Identification identification = peptideShakerGUI.getIdentification();
+
+                    // evaluate the filters on all matches at once
+                    FilterPreferences filterPreferences = peptideShakerGUI.getFilterPreferences();
+                    ArrayList<String> proteinKeys = new ArrayList<String>(identification.getProteinIdentification());
+                    hiddenProteins = getValidatedMatches(filterPreferences.getProteinHideFilters().values(), proteinKeys);
+                    starredProteins = getValidatedMatches(filterPreferences.getProteinStarFilters().values(), proteinKeys);
+                    ArrayList<String> peptideKeys = new ArrayList<String>(identification.getPeptideIdentification());
+                    hiddenPeptides = getValidatedMatches(filterPreferences.getPeptideHideFilters().values(), peptideKeys);
+                    starredPeptides = getValidatedMatches(filterPreferences.getPeptideStarFilters().values(), peptideKeys);
+                    ArrayList<String> spectrumKeys = new ArrayList<String>(identification.getSpectrumIdentificationSize());
+                    for (String spectrumFileName : identification.getSpectrumFiles()) {
+                        spectrumKeys.addAll(identification.getSpectrumIdentification(spectrumFileName));
+                    }
+                    hiddenPsms = getValidatedMatches(filterPreferences.getPsmHideFilters().values(), spectrumKeys);
+                    starredPsms = getValidatedMatches(filterPreferences.getPsmStarFilters().values(), spectrumKeys);
+                    if (hiddenProteins == null || starredProteins == null || hiddenPeptides == null || starredPeptides == null
+                            || hiddenPsms == null || starredPsms == null) {
+                        return;
+                    }
+
                     progressDialog.setPrimaryProgressCounterIndeterminate(false);
                     progressDialog.setMaxPrimaryProgressCounter(identification.getProteinIdentification().size());
 
@@ -133,11 +186,36 @@ public class StarHider {
                     peptideShakerGUI.updateTabbedPanes();
                 } catch (Exception e) {
                     peptideShakerGUI.catchException(e);
+                } finally {
+                    hiddenProteins = null;
+                    starredProteins = null;
+                    hiddenPeptides = null;
+                    starredPeptides = null;
+                    hiddenPsms = null;
+                    starredPsms = null;
                 }
             }
         }.start();
     }
 
+    /**
+     * Returns the keys of the matches passing at least one of the given
+     * active filters, null if the process was canceled.
+     *
+     * @param matchFilters the filters
+     * @param matchKeys the keys of the matches
+     *
+     * @return the keys of the matches passing at least one filter
+     *
+     * @throws InterruptedException thrown whenever a threading error occurs
+     * while evaluating the filters.
+     */
+    private HashSet<String> getValidatedMatches(Collection<? extends MatchFilter> matchFilters, ArrayList<String> matchKeys) throws InterruptedException {
+        return MatchFilterBatch.getValidatedMatches(matchFilters, matchKeys, peptideShakerGUI.getIdentification(), peptideShakerGUI.getGeneMaps(),
+                peptideShakerGUI.getIdentificationFeaturesGenerator(), peptideShakerGUI.getIdentificationParameters(),
+                peptideShakerGUI.getProcessingPreferences(), progressDialog, peptideShakerGUI.getExceptionHandler());
+    }
+
     /**
      * Stars a protein match.
      *
@@ -164,7 +242,7 @@ public class StarHider {
         boolean validated = false;
 
         for (ProteinFilter matchFilter : filterPreferences.getProteinStarFilters().values()) {
-            if (matchFilter.getExceptions().contains(matchKey)) {
+            if (matchFilter.isException(matchKey)) {
                 matchFilter.removeException(matchKey);
             }
             if (matchFilter.isValidated(matchKey, identification, peptideShakerGUI.getGeneMaps(), peptideShakerGUI.getIdentificationFeaturesGenerator(), peptideShakerGUI.getIdentificationParameters(), null)) {
@@ -215,7 +293,7 @@ public class StarHider {
         psParameter = (PSParameter) identification.getProteinMatchParameter(matchKey, psParameter);
 
         for (ProteinFilter matchFilter : filterPreferences.getProteinStarFilters().values()) {
-            if (matchFilter.getManualValidation().contains(matchKey)) {
+            if (matchFilter.isManuallyValidated(matchKey)) {
                 matchFilter.removeManualValidation(matchKey);
             }
             if (matchFilter.isValidated(matchKey, identification, peptideShakerGUI.getGeneMaps(), peptideShakerGUI.getIdentificationFeaturesGenerator(), peptideShakerGUI.getIdentificationParameters(), null)) {
@@ -255,7 +333,7 @@ public class StarHider {
         boolean validated = false;
 
         for (ProteinFilter matchFilter : filterPreferences.getProteinHideFilters().values()) {
-            if (matchFilter.getExceptions().contains(matchKey)) {
+            if (matchFilter.isException(matchKey)) {
                 matchFilter.removeException(matchKey);
             }
             if (matchFilter.isValidated(matchKey, identification, peptideShakerGUI.getGeneMaps(), peptideShakerGUI.getIdentificationFeaturesGenerator(), peptideShakerGUI.getIdentificationParameters(), null)) {
@@ -305,7 +383,7 @@ public class StarHider {
         PSParameter psParameter = new PSParameter();
         psParameter = (PSParameter) identification.getProteinMatchParameter(matchKey, psParameter);
         for (ProteinFilter matchFilter : filterPreferences.getProteinHideFilters().values()) {
-            if (matchFilter.getManualValidation().contains(matchKey)) {
+            if (matchFilter.isManuallyValidated(matchKey)) {
                 matchFilter.removeManualValidation(matchKey);
             }
             if (matchFilter.isValidated(matchKey, identification, peptideShakerGUI.getGeneMaps(), peptideShakerGUI.getIdentificationFeaturesGenerator(), peptideShakerGUI.getIdentificationParameters(), null)) {
@@ -345,7 +423,7 @@ public class StarHider {
         boolean validated = false;
 
         for (PeptideFilter matchFilter : filterPreferences.getPeptideStarFilters().values()) {
-            if (matchFilter.getExceptions().contains(matchKey)) {
+            if (matchFilter.isException(matchKey)) {
                 matchFilter.removeException(matchKey);
             }
             if (matchFilter.isValidated(matchKey, identification, peptideShakerGUI.getGeneMaps(), peptideShakerGUI.getIdentificationFeaturesGenerator(), peptideShakerGUI.getIdentificationParameters(), null)) {
@@ -396,7 +474,7 @@ public class StarHider {
         psParameter = (PSParameter) identification.getPeptideMatchParameter(matchKey, psParameter);
 
         for (PeptideFilter matchFilter : filterPreferences.getPeptideStarFilters().values()) {
-            if (matchFilter.getManualValidation().contains(matchKey)) {
+            if (matchFilter.isManuallyValidated(matchKey)) {
                 matchFilter.removeManualValidation(matchKey);
             }
             if (matchFilter.isValidated(matchKey, identification, peptideShakerGUI.getGeneMaps(), peptideShakerGUI.getIdentificationFeaturesGenerator(), peptideShakerGUI.getIdentificationParameters(), null)) {
@@ -436,7 +514,7 @@ public class StarHider {
         boolean validated = false;
 
         for (PeptideFilter matchFilter : filterPreferences.getPeptideHideFilters().values()) {
-            if (matchFilter.getExceptions().contains(matchKey)) {
+            if (matchFilter.isException(matchKey)) {
                 matchFilter.removeException(matchKey);
             }
             if (matchFilter.isValidated(matchKey, identification, peptideShakerGUI.getGeneMaps(), peptideShakerGUI.getIdentificationFeaturesGenerator(), peptideShakerGUI.getIdentificationParameters(), null)) {
@@ -487,7 +565,7 @@ public class StarHider {
         psParameter = (PSParameter) identification.getPeptideMatchParameter(matchKey, psParameter);
 
         for (PeptideFilter matchFilter : filterPreferences.getPeptideHideFilters().values()) {
-            if (matchFilter.getManualValidation().contains(matchKey)) {
+            if (matchFilter.isManuallyValidated(matchKey)) {
                 matchFilter.removeManualValidation(matchKey);
             }
             if (matchFilter.isValidated(matchKey, identification, peptideShakerGUI.getGeneMaps(), peptideShakerGUI.getIdentificationFeaturesGenerator(), peptideShakerGUI.getIdentificationParameters(), null)) {
@@ -529,7 +607,7 @@ public class StarHider {
 
         if (!validated) {
             for (PsmFilter matchFilter : filterPreferences.getPsmStarFilters().values()) {
-                if (matchFilter.getExceptions().contains(matchKey)) {
+                if (matchFilter.isException(matchKey)) {
                     matchFilter.removeException(matchKey);
                 }
                 if (matchFilter.isValidated(matchKey, identification, peptideShakerGUI.getGeneMaps(), peptideShakerGUI.getIdentificationFeaturesGenerator(), peptideShakerGUI.getIdentificationParameters(), peptideSpectrumAnnotator)) {
@@ -579,7 +657,7 @@ public class StarHider {
         psParameter = (PSParameter) identification.getSpectrumMatchParameter(matchKey, psParameter);
 
         for (PsmFilter matchFilter : filterPreferences.getPsmStarFilters().values()) {
-            if (matchFilter.getManualValidation().contains(matchKey)) {
+            if (matchFilter.isManuallyValidated(matchKey)) {
                 matchFilter.removeManualValidation(matchKey);
             }
             if (matchFilter.isValidated(matchKey, identification, peptideShakerGUI.getGeneMaps(), peptideShakerGUI.getIdentificationFeaturesGenerator(), peptideShakerGUI.getIdentificationParameters(), peptideSpectrumAnnotator)) {
@@ -621,7 +699,7 @@ public class StarHider {
 
         if (!validated) {
             for (PsmFilter matchFilter : filterPreferences.getPsmHideFilters().values()) {
-                if (matchFilter.getExceptions().contains(matchKey)) {
+                if (matchFilter.isException(matchKey)) {
                     matchFilter.removeException(matchKey);
                 }
                 if (matchFilter.isValidated(matchKey, identification, peptideShakerGUI.getGeneMaps(), peptideShakerGUI.getIdentificationFeaturesGenerator(), peptideShakerGUI.getIdentificationParameters(), peptideSpectrumAnnotator)) {
@@ -671,7 +749,7 @@ public class StarHider {
         psParameter = (PSParameter) identification.getSpectrumMatchParameter(matchKey, psParameter);
 
         for (PsmFilter matchFilter : filterPreferences.getPsmHideFilters().values()) {
-            if (matchFilter.getManualValidation().contains(matchKey)) {
+            if (matchFilter.isManuallyValidated(matchKey)) {
                 matchFilter.removeManualValidation(matchKey);
             }
             if (matchFilter.isValidated(matchKey, identification, peptideShakerGUI.getGeneMaps(), peptideShakerGUI.getIdentificationFeaturesGenerator(), peptideShakerGUI.getIdentificationParameters(), peptideSpectrumAnnotator)) {
@@ -910,10 +988,6 @@ public class StarHider {
          * An iterator for the protein matches
          */
         private ProteinMatchesIterator proteinMatchesIterator;
-        /**
-         * The spectrum annotator to use for this thread
-         */
-        private PeptideSpectrumAnnotator peptideSpectrumAnnotator = new PeptideSpectrumAnnotator();
 
         /**
          * Constructor.
@@ -969,14 +1043,14 @@ public class StarHider {
 
                                 psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, psParameter);
 
-                                if (isPsmHidden(spectrumKey, peptideSpectrumAnnotator)) {
+                                if (hiddenPsms.contains(spectrumKey)) {
                                     psParameter.setHidden(true);
                                 } else {
                                     psParameter.setHidden(false);
                                     psmpassed = true;
                                 }
 
-                                psParameter.setStarred(isPsmStarred(spectrumKey, peptideSpectrumAnnotator));
+                                psParameter.setStarred(starredPsms.contains(spectrumKey));
                                 identification.updateSpectrumMatchParameter(spectrumKey, psParameter);
                             }
 
@@ -984,14 +1058,14 @@ public class StarHider {
 
                             if (!psmpassed) {
                                 psParameter.setHidden(true);
-                            } else if (isPeptideHidden(peptideKey)) {
+                            } else if (hiddenPeptides.contains(peptideKey)) {
                                 psParameter.setHidden(true);
                             } else {
                                 psParameter.setHidden(false);
                                 peptidePassed = true;
                             }
 
-                            psParameter.setStarred(isPeptideStarred(peptideKey));
+                            psParameter.setStarred(starredPeptides.contains(peptideKey));
 
                             identification.updatePeptideMatchParameter(peptideKey, psParameter);
                         }
@@ -1001,10 +1075,10 @@ public class StarHider {
                         if (!peptidePassed) {
                             psParameter.setHidden(true);
                         } else {
-                            psParameter.setHidden(isProteinHidden(proteinKey));
+                            psParameter.setHidden(hiddenProteins.contains(proteinKey));
                         }
 
-                        psParameter.setStarred(isProteinStarred(proteinKey));
+                        psParameter.setStarred(starredProteins.contains(proteinKey));
 
                         identification.updateProteinMatchParameter(proteinKey, psParameter);
 
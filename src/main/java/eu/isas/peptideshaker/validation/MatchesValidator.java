@@ -24,9 +24,12 @@ import com.compomics.util.experiment.personalization.UrParameter;
 import com.compomics.util.math.statistics.distributions.NonSymmetricalNormalDistribution;
 import com.compomics.util.preferences.IdMatchValidationPreferences;
 import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.preferences.SequenceMatchingPreferences;
 import com.compomics.util.preferences.ValidationQCPreferences;
 import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.peptideshaker.PeptideShaker;
 import eu.isas.peptideshaker.filtering.AssumptionFilter;
+import eu.isas.peptideshaker.filtering.MatchFilterBatch;
 import com.compomics.util.experiment.filtering.FilterItemComparator;
 import com.compomics.util.experiment.identification.spectrum_annotation.AnnotationSettings;
 import com.compomics.util.preferences.FractionSettings;
@@ -48,6 +51,7 @@ import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyMap;
 import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyResults;
 import eu.isas.peptideshaker.utils.IdentificationFeaturesGenerator;
 import eu.isas.peptideshaker.utils.Metrics;
+import eu.isas.peptideshaker.utils.ProcessingStage;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
@@ -55,9 +59,6 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 import org.apache.commons.math.MathException;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 
@@ -250,6 +251,9 @@ public class MatchesValidator {
         parameters.add(psParameter);
         ValidationQCPreferences validationQCPreferences = identificationParameters.getIdValidationPreferences().getValidationQCPreferences();
 
+        // the precomputed protein features depend on the validation
+        identificationFeaturesGenerator.setProteinFeaturesTable(null);
+
         if (waitingHandler != null) {
             waitingHandler.setWaitingText("Match Validation and Quality Control. Please Wait...");
             waitingHandler.setSecondaryProgressCounterIndeterminate(false);
@@ -259,8 +263,6 @@ public class MatchesValidator {
                     + 2 * identification.getSpectrumIdentificationSize());
         }
 
-        HashMap<String, ArrayList<String>> spectrumKeysMap = metrics.getOrderedSpectrumKeys();
-
         // validate the spectrum matches
         if (inputMap != null) {
             inputMap.resetAdvocateContributions();
@@ -271,35 +273,28 @@ public class MatchesValidator {
             Double intensityLimit = annotationPreferences.getAnnotationIntensityLimit();
             annotationPreferences.setIntensityLimit(0);
 
-            ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+            ProcessingStage stage = PeptideShaker.getProcessingScheduler(processingPreferences).newStage("PSM validation", waitingHandler);
 
-            ArrayList<String> spectrumKeys = null;
-            if (spectrumKeysMap != null) {
-                spectrumKeys = spectrumKeysMap.get(spectrumFileName);
-            }
+            ArrayList<String> spectrumKeys = metrics.getOrderedSpectrumKeys(spectrumFileName);
             PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, spectrumKeys, parameters, false, waitingHandler);
 
             ArrayList<PsmValidatorRunnable> psmRunnables = new ArrayList<PsmValidatorRunnable>(processingPreferences.getnThreads());
             for (int i = 1; i <= processingPreferences.getnThreads(); i++) {
-                PsmValidatorRunnable runnable = new PsmValidatorRunnable(psmIterator, identification, identificationFeaturesGenerator, geneMaps, identificationParameters, waitingHandler, exceptionHandler, inputMap, false, true);
-                pool.submit(runnable);
+                PsmValidatorRunnable runnable = new PsmValidatorRunnable(psmIterator, identification, identificationFeaturesGenerator, geneMaps, identificationParameters, waitingHandler, exceptionHandler, inputMap, false, true, null);
                 psmRunnables.add(runnable);
-                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                if (!stage.submit(runnable)) {
                     break;
                 }
             }
-            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                pool.shutdownNow();
+            if (!stage.awaitCompletion()) {
                 return;
             }
-            pool.shutdown();
-            if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
-                throw new InterruptedException("PSM validation timed out. Please contact the developers.");
-            }
 
             ArrayList<Double> precursorMzDeviations = new ArrayList<Double>();
+            ArrayList<String> validatedKeys = new ArrayList<String>();
             for (PsmValidatorRunnable runnable : psmRunnables) {
                 precursorMzDeviations.addAll(runnable.getThreadPrecursorMzDeviations());
+                validatedKeys.addAll(runnable.getThreadValidatedKeys());
             }
 
             if (precursorMzDeviations.size() >= 100) {
@@ -331,55 +326,52 @@ public class MatchesValidator {
                 }
             }
 
-            pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
-
-            spectrumKeys = null;
-            if (spectrumKeysMap != null) {
-                spectrumKeys = spectrumKeysMap.get(spectrumFileName);
+            // the quality control filters only apply to the matches passing the score threshold
+            HashMap<String, HashSet<String>> psmQcResults = MatchFilterBatch.getValidatedMatchesPerFilter(validationQCPreferences.getPsmFilters(), validatedKeys,
+                    identification, geneMaps, identificationFeaturesGenerator, identificationParameters, processingPreferences, waitingHandler, exceptionHandler);
+            if (psmQcResults == null) {
+                return;
             }
+
+            stage = PeptideShaker.getProcessingScheduler(processingPreferences).newStage("PSM quality control", waitingHandler);
+
             psmIterator = identification.getPsmIterator(spectrumFileName, spectrumKeys, parameters, false, waitingHandler);
 
             for (int i = 1; i <= processingPreferences.getnThreads(); i++) {
-                PsmValidatorRunnable runnable = new PsmValidatorRunnable(psmIterator, identification, identificationFeaturesGenerator, geneMaps, identificationParameters, waitingHandler, exceptionHandler, inputMap, true, false);
-                pool.submit(runnable);
-                if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                PsmValidatorRunnable runnable = new PsmValidatorRunnable(psmIterator, identification, identificationFeaturesGenerator, geneMaps, identificationParameters, waitingHandler, exceptionHandler, inputMap, true, false, psmQcResults);
+                if (!stage.submit(runnable)) {
                     break;
                 }
             }
-            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-                pool.shutdownNow();
+            if (!stage.awaitCompletion()) {
                 return;
             }
-            pool.shutdown();
-            if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
-                throw new InterruptedException("PSM validation timed out. Please contact the developers.");
-            }
 
             annotationPreferences.setIntensityLimit(intensityLimit);
         }
 
         // validate the peptides
-        ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+        HashMap<String, HashSet<String>> peptideQcResults = MatchFilterBatch.getValidatedMatchesPerFilter(validationQCPreferences.getPeptideFilters(),
+                new ArrayList<String>(identification.getPeptideIdentification()), identification, geneMaps, identificationFeaturesGenerator, identificationParameters,
+                processingPreferences, waitingHandler, exceptionHandler);
+        if (peptideQcResults == null) {
+            return;
+        }
+        ProcessingStage stage = PeptideShaker.getProcessingScheduler(processingPreferences).newStage("Peptide validation", waitingHandler);
         ArrayList<PeptideValidatorRunnable> peptideRunnables = new ArrayList<PeptideValidatorRunnable>(processingPreferences.getnThreads());
 
         PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(parameters, false, parameters, waitingHandler);
 
         for (int i = 1; i <= processingPreferences.getnThreads(); i++) {
-            PeptideValidatorRunnable runnable = new PeptideValidatorRunnable(peptideMatchesIterator, identification, identificationFeaturesGenerator, geneMaps, identificationParameters, waitingHandler, exceptionHandler, metrics);
-            pool.submit(runnable);
+            PeptideValidatorRunnable runnable = new PeptideValidatorRunnable(peptideMatchesIterator, identification, identificationFeaturesGenerator, geneMaps, identificationParameters, waitingHandler, exceptionHandler, metrics, peptideQcResults);
             peptideRunnables.add(runnable);
-            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+            if (!stage.submit(runnable)) {
                 break;
             }
         }
-        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-            pool.shutdownNow();
+        if (!stage.awaitCompletion()) {
             return;
         }
-        pool.shutdown();
-        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
-            throw new InterruptedException("PSM validation timed out. Please contact the developers.");
-        }
 
         HashMap<String, Integer> validatedTotalPeptidesPerFraction = new HashMap<String, Integer>();
         ArrayList<Double> validatedPeptideLengths = new ArrayList<Double>();
@@ -402,26 +394,26 @@ public class MatchesValidator {
         metrics.setTotalPeptidesPerFraction(validatedTotalPeptidesPerFraction);
 
         // validate the proteins
-        pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+        HashMap<String, HashSet<String>> proteinQcResults = MatchFilterBatch.getValidatedMatchesPerFilter(validationQCPreferences.getProteinFilters(),
+                new ArrayList<String>(identification.getProteinIdentification()), identification, geneMaps, identificationFeaturesGenerator, identificationParameters,
+                processingPreferences, waitingHandler, exceptionHandler);
+        if (proteinQcResults == null) {
+            return;
+        }
+        stage = PeptideShaker.getProcessingScheduler(processingPreferences).newStage("Protein validation", waitingHandler);
 
         ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(parameters, true, parameters, false, null, waitingHandler);
         ArrayList<ProteinValidatorRunnable> proteinRunnables = new ArrayList<ProteinValidatorRunnable>(processingPreferences.getnThreads());
         for (int i = 1; i <= processingPreferences.getnThreads(); i++) {
-            ProteinValidatorRunnable runnable = new ProteinValidatorRunnable(proteinMatchesIterator, identification, identificationFeaturesGenerator, geneMaps, metrics, identificationParameters, spectrumCountingPreferences, waitingHandler, exceptionHandler);
-            pool.submit(runnable);
+            ProteinValidatorRunnable runnable = new ProteinValidatorRunnable(proteinMatchesIterator, identification, identificationFeaturesGenerator, geneMaps, metrics, identificationParameters, spectrumCountingPreferences, waitingHandler, exceptionHandler, proteinQcResults);
             proteinRunnables.add(runnable);
-            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+            if (!stage.submit(runnable)) {
                 break;
             }
         }
-        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
-            pool.shutdownNow();
+        if (!stage.awaitCompletion()) {
             return;
         }
-        pool.shutdown();
-        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
-            throw new InterruptedException("PSM validation timed out. Please contact the developers.");
-        }
 
         double totalSpectrumCounting = 0;
         for (ProteinValidatorRunnable runnable : proteinRunnables) {
@@ -519,6 +511,49 @@ public class MatchesValidator {
             IdentificationParameters identificationParameters, TargetDecoyMap targetDecoyMap, double scoreThreshold, double nTargetLimit,
             double confidenceThreshold, boolean noValidated,
             String proteinKey) throws SQLException, IOException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
+        updateProteinMatchValidationLevel(identification, identificationFeaturesGenerator, geneMaps, identificationParameters,
+                targetDecoyMap, scoreThreshold, nTargetLimit, confidenceThreshold, noValidated, proteinKey, null);
+    }
+
+    /**
+     * Updates the validation status of a protein match using the given
+     * results of the quality control filters. If the match was manually
+     * validated nothing will be changed.
+     *
+     * @param identification the identification object
+     * @param targetDecoyMap the protein level target/decoy map
+     * @param geneMaps the gene maps
+     * @param scoreThreshold the validation score doubtfulThreshold
+     * @param confidenceThreshold the confidence doubtfulThreshold after which a
+     * match should be considered as confident
+     * @param noValidated boolean indicating whether no validation was actually
+     * conducted
+     * @param nTargetLimit the limit in number of target hits before the first
+     * decoy hit
+     * @param identificationFeaturesGenerator the identification features
+     * generator
+     * @param proteinKey the key of the protein match of interest
+     * @param identificationParameters the identification parameters
+     * @param qcResults the keys of the matches passing each quality control
+     * filter indexed by filter name, null to evaluate the filters on the match
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing a file.
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while mapping the peptides to the proteins.
+     * @throws SQLException exception thrown whenever an error occurred while
+     * interacting with the database.
+     * @throws uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException exception thrown
+     * whenever an error occurred while reading an mzML file.
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing an object from the database.
+     * @throws org.apache.commons.math.MathException Exception thrown whenever
+     * an error occurred while doing statistics on a distribution
+     */
+    public static void updateProteinMatchValidationLevel(Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps,
+            IdentificationParameters identificationParameters, TargetDecoyMap targetDecoyMap, double scoreThreshold, double nTargetLimit,
+            double confidenceThreshold, boolean noValidated, String proteinKey, HashMap<String, HashSet<String>> qcResults)
+            throws SQLException, IOException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
 
         SequenceFactory sequenceFactory = SequenceFactory.getInstance();
         PSParameter psParameter = new PSParameter();
@@ -533,8 +568,13 @@ public class MatchesValidator {
                 if (!noValidated && psParameter.getProteinProbabilityScore() <= scoreThreshold) {
                     boolean filtersPassed = true;
                     for (Filter filter : validationQCPreferences.getProteinFilters()) {
-                        ProteinFilter proteinFilter = (ProteinFilter) filter;
-                        boolean validation = proteinFilter.isValidated(proteinKey, identification, geneMaps, identificationFeaturesGenerator, identificationParameters, null);
+                        boolean validation;
+                        if (qcResults != null) {
+                            validation = qcResults.get(filter.getName()).contains(proteinKey);
+                        } else {
+                            ProteinFilter proteinFilter = (ProteinFilter) filter;
+                            validation = proteinFilter.isValidated(proteinKey, identification, geneMaps, identificationFeaturesGenerator, identificationParameters, null);
+                        }
                         psParameter.setQcResult(filter.getName(), validation);
                         if (!validation) {
                             filtersPassed = false;
@@ -590,6 +630,40 @@ public class MatchesValidator {
     public static void updatePeptideMatchValidationLevel(Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps,
             IdentificationParameters identificationParameters, PeptideSpecificMap peptideMap, String peptideKey)
             throws SQLException, IOException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
+        updatePeptideMatchValidationLevel(identification, identificationFeaturesGenerator, geneMaps, identificationParameters, peptideMap, peptideKey, null);
+    }
+
+    /**
+     * Updates the validation status of a peptide match using the given
+     * results of the quality control filters. If the match was manually
+     * validated nothing will be changed.
+     *
+     * @param identification the identification object
+     * @param peptideMap the peptide level target/decoy scoring map
+     * @param identificationFeaturesGenerator the identification features
+     * generator
+     * @param geneMaps the gene maps
+     * @param identificationParameters the identification parameters
+     * @param peptideKey the key of the peptide match of interest
+     * @param qcResults the keys of the matches passing each quality control
+     * filter indexed by filter name, null to evaluate the filters on the match
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing a file.
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while mapping the peptides to the proteins.
+     * @throws SQLException exception thrown whenever an error occurred while
+     * interacting with the database.
+     * @throws uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException exception thrown
+     * whenever an error occurred while reading an mzML file.
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing an object from the database.
+     * @throws org.apache.commons.math.MathException Exception thrown whenever
+     * an error occurred while doing statistics on a distribution
+     */
+    public static void updatePeptideMatchValidationLevel(Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps,
+            IdentificationParameters identificationParameters, PeptideSpecificMap peptideMap, String peptideKey, HashMap<String, HashSet<String>> qcResults)
+            throws SQLException, IOException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
 
         SequenceFactory sequenceFactory = SequenceFactory.getInstance();
         PSParameter psParameter = new PSParameter();
@@ -612,8 +686,13 @@ public class MatchesValidator {
             if (!noValidated && psParameter.getPeptideProbabilityScore() <= peptideThreshold) {
                 boolean filtersPassed = true;
                 for (Filter filter : validationQCPreferences.getPeptideFilters()) {
-                    PeptideFilter peptideFilter = (PeptideFilter) filter;
-                    boolean validation = peptideFilter.isValidated(peptideKey, identification, geneMaps, identificationFeaturesGenerator, identificationParameters, null);
+                    boolean validation;
+                    if (qcResults != null) {
+                        validation = qcResults.get(filter.getName()).contains(peptideKey);
+                    } else {
+                        PeptideFilter peptideFilter = (PeptideFilter) filter;
+                        validation = peptideFilter.isValidated(peptideKey, identification, geneMaps, identificationFeaturesGenerator, identificationParameters, null);
+                    }
                     psParameter.setQcResult(filter.getName(), validation);
                     if (!validation) {
                         filtersPassed = false;
@@ -670,6 +749,43 @@ public class MatchesValidator {
     public static void updateSpectrumMatchValidationLevel(Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps,
             IdentificationParameters identificationParameters, PeptideSpectrumAnnotator peptideSpectrumAnnotator,
             PsmSpecificMap psmMap, String spectrumKey, boolean applyQCFilters) throws SQLException, IOException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
+        updateSpectrumMatchValidationLevel(identification, identificationFeaturesGenerator, geneMaps, identificationParameters, peptideSpectrumAnnotator,
+                psmMap, spectrumKey, applyQCFilters, null);
+    }
+
+    /**
+     * Updates the validation status of a spectrum match using the given
+     * results of the quality control filters. If the match was manually
+     * validated nothing will be changed.
+     *
+     * @param identification the identification object
+     * @param geneMaps the gene maps
+     * @param psmMap the PSM level target/decoy scoring map
+     * @param identificationParameters the identification parameters
+     * @param identificationFeaturesGenerator the identification features
+     * generator
+     * @param spectrumKey the key of the spectrum match of interest
+     * @param peptideSpectrumAnnotator a spectrum annotator, can be null
+     * @param applyQCFilters if true quality control filters will be used
+     * @param qcResults the keys of the matches passing each quality control
+     * filter indexed by filter name, null to evaluate the filters on the match
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing a file.
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while mapping the peptides to the proteins.
+     * @throws SQLException exception thrown whenever an error occurred while
+     * interacting with the database.
+     * @throws uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException exception thrown
+     * whenever an error occurred while reading an mzML file.
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing an object from the database.
+     * @throws org.apache.commons.math.MathException Exception thrown whenever
+     * an error occurred while doing statistics on a distribution
+     */
+    public static void updateSpectrumMatchValidationLevel(Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps,
+            IdentificationParameters identificationParameters, PeptideSpectrumAnnotator peptideSpectrumAnnotator, PsmSpecificMap psmMap, String spectrumKey,
+            boolean applyQCFilters, HashMap<String, HashSet<String>> qcResults) throws SQLException, IOException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
 
         SequenceFactory sequenceFactory = SequenceFactory.getInstance();
         PSParameter psParameter = new PSParameter();
@@ -708,9 +824,14 @@ public class MatchesValidator {
                 if (applyQCFilters) {
 
                     for (Filter filter : validationQCPreferences.getPsmFilters()) {
-                        PsmFilter psmFilter = (PsmFilter) filter;
-                        boolean validated = psmFilter.isValidated(spectrumKey, identification, geneMaps, identificationFeaturesGenerator, identificationParameters, peptideSpectrumAnnotator);
-                        psParameter.setQcResult(psmFilter.getName(), validated);
+                        boolean validated;
+                        if (qcResults != null) {
+                            validated = qcResults.get(filter.getName()).contains(spectrumKey);
+                        } else {
+                            PsmFilter psmFilter = (PsmFilter) filter;
+                            validated = psmFilter.isValidated(spectrumKey, identification, geneMaps, identificationFeaturesGenerator, identificationParameters, peptideSpectrumAnnotator);
+                        }
+                        psParameter.setQcResult(filter.getName(), validated);
                         if (!validated) {
                             filtersPassed = false;
                         }
@@ -1108,6 +1229,8 @@ public class MatchesValidator {
             }
         }
 
+        peptideMap.setProbabilitiesApplied();
+
         waitingHandler.setSecondaryProgressCounterIndeterminate(true);
     }
 
@@ -1276,6 +1399,8 @@ public class MatchesValidator {
             }
         }
 
+        proteinMap.setProbabilitiesApplied();
+
         if (metrics != null) {
             // set the observed fractional molecular weights per fraction
             metrics.setObservedFractionalMassesAll(fractionMW);
@@ -1284,6 +1409,318 @@ public class MatchesValidator {
         waitingHandler.setSecondaryProgressCounterIndeterminate(true);
     }
 
+    /**
+     * Updates the scores of the given peptides and their points in the peptide
+     * map. The peptide map needs to be cleaned up and its probabilities
+     * estimated afterwards.
+     *
+     * @param identification the identification class containing the matches to
+     * validate
+     * @param peptideKeys the keys of the peptides to update
+     * @param identificationParameters the identification parameters
+     * @param waitingHandler the handler displaying feedback to the user
+     *
+     * @return the keys of the peptides whose score or fraction scores changed
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing a file.
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while mapping the peptides to the proteins.
+     * @throws SQLException exception thrown whenever an error occurred while
+     * interacting with the database.
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing an object from the database.
+     */
+    public HashSet<String> updatePeptideScores(Identification identification, Set<String> peptideKeys, IdentificationParameters identificationParameters,
+            WaitingHandler waitingHandler) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+
+        waitingHandler.setWaitingText("Updating Peptide Scores. Please Wait...");
+
+        waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+        waitingHandler.setMaxSecondaryProgressCounter(peptideKeys.size());
+
+        HashSet<String> rescoredPeptides = new HashSet<String>();
+        SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
+        int nFractions = identification.getSpectrumFiles().size();
+        PSParameter psParameter = new PSParameter();
+        PSParameter psmParameter = new PSParameter();
+
+        for (String peptideKey : peptideKeys) {
+
+            PeptideMatch peptideMatch = identification.getPeptideMatch(peptideKey);
+
+            if (peptideMatch != null) {
+
+                double probaScore = 1;
+                HashMap<String, Double> fractionScores = new HashMap<String, Double>(nFractions);
+
+                for (String spectrumKey : peptideMatch.getSpectrumMatchesKeys()) {
+
+                    psmParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, psmParameter);
+                    double psmProbability = psmParameter.getPsmProbability();
+                    probaScore = probaScore * psmProbability;
+
+                    if (nFractions > 1) {
+                        String fraction = Spectrum.getSpectrumFile(spectrumKey);
+                        Double fractionScore = fractionScores.get(fraction);
+                        if (fractionScore == null) {
+                            fractionScore = 1.0;
+                        }
+                        fractionScores.put(fraction, fractionScore * psmProbability);
+                    }
+                }
+                if (nFractions == 1) {
+                    fractionScores.put(identification.getSpectrumFiles().get(0), probaScore);
+                }
+
+                psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideKey, psParameter);
+                boolean changed = false;
+
+                for (String fraction : fractionScores.keySet()) {
+                    Double fractionScore = fractionScores.get(fraction);
+                    if (!fractionScore.equals(psParameter.getFractionScore(fraction))) {
+                        psParameter.setFractionScore(fraction, fractionScore);
+                        changed = true;
+                    }
+                }
+
+                double previousScore = psParameter.getPeptideProbabilityScore();
+                if (probaScore != previousScore) {
+                    peptideMap.removePoint(previousScore, peptideMatch, sequenceMatchingPreferences);
+                    peptideMap.addPoint(probaScore, peptideMatch, sequenceMatchingPreferences);
+                    psParameter.setPeptideProbabilityScore(probaScore);
+                    changed = true;
+                }
+
+                if (changed) {
+                    identification.updatePeptideMatchParameter(peptideKey, psParameter);
+                    rescoredPeptides.add(peptideKey);
+                }
+            }
+
+            waitingHandler.increaseSecondaryProgressCounter();
+
+            if (waitingHandler.isRunCanceled()) {
+                return rescoredPeptides;
+            }
+        }
+
+        waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+
+        return rescoredPeptides;
+    }
+
+    /**
+     * Updates the peptide posterior error probabilities which changed since
+     * they were last attached to the peptide matches. Only the peptides
+     * rescored or whose score is in the range of scores affected by the
+     * changes in the peptide map are inspected.
+     *
+     * @param identification the identification class containing the matches to
+     * validate
+     * @param rescoredPeptides the keys of the peptides whose score changed
+     * @param waitingHandler the handler displaying feedback to the user
+     *
+     * @return the keys of the peptides whose probabilities changed
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing a file.
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while mapping the peptides to the proteins.
+     * @throws SQLException exception thrown whenever an error occurred while
+     * interacting with the database.
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing an object from the database.
+     */
+    public HashSet<String> updatePeptideProbabilities(Identification identification, Set<String> rescoredPeptides, WaitingHandler waitingHandler)
+            throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+
+        waitingHandler.setWaitingText("Updating Peptide Probabilities. Please Wait...");
+
+        waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+        waitingHandler.setMaxSecondaryProgressCounter(identification.getPeptideIdentification().size());
+
+        HashSet<String> changedPeptides = new HashSet<String>();
+
+        if (sequenceFactory.concatenatedTargetDecoy() && (!rescoredPeptides.isEmpty() || peptideMap.hasChangedProbabilities())) {
+
+            // only the parameters are needed, the peptide matches are not loaded
+            PSParameter psParameter = new PSParameter();
+            ArrayList<String> peptideKeys = new ArrayList<String>(identification.getPeptideIdentification());
+            identification.loadPeptideMatchParameters(peptideKeys, psParameter, waitingHandler, false);
+
+            for (String peptideKey : peptideKeys) {
+
+                psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideKey, psParameter);
+                String specificMapKey = psParameter.getSpecificMapKey();
+
+                boolean inspect = rescoredPeptides.contains(peptideKey) || peptideMap.isProbabilityChanged(specificMapKey, psParameter.getPeptideProbabilityScore());
+                if (!inspect) {
+                    for (String fraction : psParameter.getFractions()) {
+                        if (peptideMap.isProbabilityChanged(specificMapKey, psParameter.getFractionScore(fraction))) {
+                            inspect = true;
+                            break;
+                        }
+                    }
+                }
+
+                if (inspect) {
+
+                    boolean changed = false;
+
+                    double peptideProbability = peptideMap.getProbability(specificMapKey, psParameter.getPeptideProbabilityScore());
+                    if (peptideProbability != psParameter.getPeptideProbability()) {
+                        psParameter.setPeptideProbability(peptideProbability);
+                        changed = true;
+                    }
+                    for (String fraction : psParameter.getFractions()) {
+                        Double fractionProbability = peptideMap.getProbability(specificMapKey, psParameter.getFractionScore(fraction));
+                        if (!fractionProbability.equals(psParameter.getFractionPEP(fraction))) {
+                            psParameter.setFractionPEP(fraction, fractionProbability);
+                            changed = true;
+                        }
+                    }
+
+                    if (changed) {
+                        identification.updatePeptideMatchParameter(peptideKey, psParameter);
+                        changedPeptides.add(peptideKey);
+                    }
+                }
+
+                waitingHandler.increaseSecondaryProgressCounter();
+
+                if (waitingHandler.isRunCanceled()) {
+                    return changedPeptides;
+                }
+            }
+        }
+
+        peptideMap.setProbabilitiesApplied();
+
+        waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+
+        return changedPeptides;
+    }
+
+    /**
+     * Updates the scores of the protein groups containing the given peptides
+     * and their points in the protein map. The probabilities of the protein
+     * map need to be estimated afterwards.
+     *
+     * @param identification the identification class containing the matches to
+     * validate
+     * @param peptideKeys the keys of the peptides whose probabilities changed
+     * @param identificationParameters the identification parameters
+     * @param waitingHandler the handler displaying feedback to the user
+     *
+     * @return a boolean indicating whether the score or fraction scores of a
+     * protein group changed
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing a file.
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while mapping the peptides to the proteins.
+     * @throws SQLException exception thrown whenever an error occurred while
+     * interacting with the database.
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing an object from the database.
+     */
+    public boolean updateProteinScores(Identification identification, Set<String> peptideKeys, IdentificationParameters identificationParameters,
+            WaitingHandler waitingHandler) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+
+        waitingHandler.setWaitingText("Updating Protein Scores. Please Wait...");
+
+        SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
+
+        // get the protein groups containing the peptides
+        HashSet<String> proteinKeys = new HashSet<String>();
+        for (String peptideKey : peptideKeys) {
+            PeptideMatch peptideMatch = identification.getPeptideMatch(peptideKey);
+            if (peptideMatch != null) {
+                for (String accession : peptideMatch.getTheoreticPeptide().getParentProteins(sequenceMatchingPreferences)) {
+                    HashSet<String> groups = identification.getProteinMap().get(accession);
+                    if (groups != null) {
+                        proteinKeys.addAll(groups);
+                    }
+                }
+            }
+        }
+
+        waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+        waitingHandler.setMaxSecondaryProgressCounter(proteinKeys.size());
+
+        boolean rescored = false;
+        int nFractions = identification.getSpectrumFiles().size();
+        PSParameter psParameter = new PSParameter();
+        PSParameter peptideParameter = new PSParameter();
+
+        for (String proteinKey : proteinKeys) {
+
+            ProteinMatch proteinMatch = identification.getProteinMatch(proteinKey);
+
+            if (proteinMatch != null) {
+
+                HashMap<String, Double> fractionScores = new HashMap<String, Double>(nFractions);
+                double probaScore = 1;
+
+                for (String peptideKey : proteinMatch.getPeptideMatchesKeys()) {
+
+                    peptideParameter = (PSParameter) identification.getPeptideMatchParameter(peptideKey, peptideParameter);
+                    probaScore = probaScore * peptideParameter.getPeptideProbability();
+
+                    if (nFractions > 1) {
+                        for (String fraction : peptideParameter.getFractions()) {
+                            Double fractionScore = fractionScores.get(fraction);
+                            if (fractionScore == null) {
+                                fractionScore = 1.0;
+                            }
+                            fractionScores.put(fraction, fractionScore * peptideParameter.getFractionPEP(fraction));
+                        }
+                    }
+                }
+                if (nFractions == 1) {
+                    fractionScores.put(identification.getSpectrumFiles().get(0), probaScore);
+                }
+
+                psParameter = (PSParameter) identification.getProteinMatchParameter(proteinKey, psParameter);
+                boolean changed = false;
+
+                for (String fraction : fractionScores.keySet()) {
+                    Double fractionScore = fractionScores.get(fraction);
+                    if (!fractionScore.equals(psParameter.getFractionScore(fraction))) {
+                        psParameter.setFractionScore(fraction, fractionScore);
+                        changed = true;
+                    }
+                }
+
+                double previousScore = psParameter.getProteinProbabilityScore();
+                if (probaScore != previousScore) {
+                    proteinMap.removePoint(previousScore, proteinMatch.isDecoy());
+                    proteinMap.addPoint(probaScore, proteinMatch.isDecoy());
+                    psParameter.setProteinProbabilityScore(probaScore);
+                    changed = true;
+                }
+
+                if (changed) {
+                    identification.updateProteinMatchParameter(proteinKey, psParameter);
+                    rescored = true;
+                }
+            }
+
+            waitingHandler.increaseSecondaryProgressCounter();
+
+            if (waitingHandler.isRunCanceled()) {
+                return rescored;
+            }
+        }
+
+        proteinMap.cleanUp();
+
+        waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+
+        return rescored;
+    }
+
     /**
      * Returns the PSM scoring specific map.
      *
@@ -1423,6 +1860,11 @@ public class MatchesValidator {
          * validated.
          */
         private ArrayList<Double> threadPrecursorMzDeviations = new ArrayList<Double>(128);
+        /**
+         * List used to store the keys of the matches passing the score
+         * threshold.
+         */
+        private ArrayList<String> threadValidatedKeys = new ArrayList<String>();
         /**
          * If not null, information on search engine agreement will be stored in
          * the input map.
@@ -1432,6 +1874,11 @@ public class MatchesValidator {
          * If true, quality control filters will be applied to the matches.
          */
         private boolean applyQCFilters;
+        /**
+         * The keys of the matches passing each quality control filter indexed
+         * by filter name, null to evaluate the filters on every match.
+         */
+        private HashMap<String, HashSet<String>> qcResults;
         /**
          * If true, advocate contributions will be stored in the input map.
          */
@@ -1456,9 +1903,13 @@ public class MatchesValidator {
          * filters should be used
          * @param storeContributions boolean indicating whether advocate
          * contributions should be stored.
+         * @param qcResults the keys of the matches passing each quality
+         * control filter indexed by filter name, null to evaluate the filters
+         * on every match
          */
         public PsmValidatorRunnable(PsmIterator psmIterator, Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps,
-                IdentificationParameters identificationParameters, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler, InputMap inputMap, boolean applyQCFilters, boolean storeContributions) {
+                IdentificationParameters identificationParameters, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler, InputMap inputMap, boolean applyQCFilters, boolean storeContributions,
+                HashMap<String, HashSet<String>> qcResults) {
             this.psmIterator = psmIterator;
             this.identification = identification;
             this.identificationFeaturesGenerator = identificationFeaturesGenerator;
@@ -1469,6 +1920,7 @@ public class MatchesValidator {
             this.inputMap = inputMap;
             this.applyQCFilters = applyQCFilters;
             this.storeContributions = storeContributions;
+            this.qcResults = qcResults;
         }
 
         @Override
@@ -1480,7 +1932,7 @@ public class MatchesValidator {
 
                         String spectrumKey = spectrumMatch.getKey();
 
-                        updateSpectrumMatchValidationLevel(identification, identificationFeaturesGenerator, geneMaps, identificationParameters, peptideSpectrumAnnotator, psmMap, spectrumKey, applyQCFilters);
+                        updateSpectrumMatchValidationLevel(identification, identificationFeaturesGenerator, geneMaps, identificationParameters, peptideSpectrumAnnotator, psmMap, spectrumKey, applyQCFilters, qcResults);
 
                         // update assumption validation level
                         HashMap<Integer, HashMap<Double, ArrayList<SpectrumIdentificationAssumption>>> assumptions = identification.getAssumptions(spectrumKey);
@@ -1502,6 +1954,10 @@ public class MatchesValidator {
                         PSParameter psParameter = new PSParameter();
                         psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, psParameter);
 
+                        if (!applyQCFilters && psParameter.getMatchValidationLevel().isValidated()) {
+                            threadValidatedKeys.add(spectrumKey);
+                        }
+
                         PeptideAssumption peptideAssumption = spectrumMatch.getBestPeptideAssumption();
 
                         if (peptideAssumption != null) {
@@ -1565,6 +2021,16 @@ public class MatchesValidator {
         public ArrayList<Double> getThreadPrecursorMzDeviations() {
             return threadPrecursorMzDeviations;
         }
+
+        /**
+         * Returns the keys of the matches passing the score threshold when
+         * validated without quality control filters.
+         *
+         * @return the keys of the matches passing the score threshold
+         */
+        public ArrayList<String> getThreadValidatedKeys() {
+            return threadValidatedKeys;
+        }
     }
 
     /**
@@ -1615,6 +2081,11 @@ public class MatchesValidator {
          * The object used to store metrics on the project.
          */
         private Metrics metrics;
+        /**
+         * The keys of the matches passing each quality control filter indexed
+         * by filter name.
+         */
+        private HashMap<String, HashSet<String>> qcResults;
 
         /**
          * Constructor.
@@ -1634,9 +2105,12 @@ public class MatchesValidator {
          * @param validatedTotalPeptidesPerFraction map used to store the number
          * of validated peptides per fraction
          * @param metrics the object used to store metrics on the project
+         * @param qcResults the keys of the matches passing each quality
+         * control filter indexed by filter name
          */
         public PeptideValidatorRunnable(PeptideMatchesIterator peptideMatchesIterator, Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps,
-                IdentificationParameters identificationParameters, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler, Metrics metrics) {
+                IdentificationParameters identificationParameters, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler, Metrics metrics,
+                HashMap<String, HashSet<String>> qcResults) {
             this.peptideMatchesIterator = peptideMatchesIterator;
             this.identification = identification;
             this.identificationFeaturesGenerator = identificationFeaturesGenerator;
@@ -1645,6 +2119,7 @@ public class MatchesValidator {
             this.waitingHandler = waitingHandler;
             this.exceptionHandler = exceptionHandler;
             this.metrics = metrics;
+            this.qcResults = qcResults;
         }
 
         @Override
@@ -1658,7 +2133,7 @@ public class MatchesValidator {
 
                         String peptideKey = peptideMatch.getKey();
 
-                        updatePeptideMatchValidationLevel(identification, identificationFeaturesGenerator, geneMaps, identificationParameters, peptideMap, peptideKey);
+                        updatePeptideMatchValidationLevel(identification, identificationFeaturesGenerator, geneMaps, identificationParameters, peptideMap, peptideKey, qcResults);
 
                         // set the fraction details
                         PSParameter psParameter = new PSParameter();
@@ -1808,6 +2283,11 @@ public class MatchesValidator {
          * The validation QC preferences.
          */
         private ValidationQCPreferences validationQCPreferences;
+        /**
+         * The keys of the matches passing each quality control filter indexed
+         * by filter name.
+         */
+        private HashMap<String, HashSet<String>> qcResults;
         /**
          * The total spectrum counting mass contribution of the proteins
          * according to the validation level specified in the preferences.
@@ -1838,9 +2318,12 @@ public class MatchesValidator {
          * @param waitingHandler a waiting handler to display progress and allow
          * canceling the process
          * @param exceptionHandler handler for exceptions
+         * @param qcResults the keys of the matches passing each quality
+         * control filter indexed by filter name
          */
         public ProteinValidatorRunnable(ProteinMatchesIterator proteinMatchesIterator, Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps, Metrics metrics,
-                IdentificationParameters identificationParameters, SpectrumCountingPreferences spectrumCountingPreferences, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+                IdentificationParameters identificationParameters, SpectrumCountingPreferences spectrumCountingPreferences, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler,
+                HashMap<String, HashSet<String>> qcResults) {
             this.proteinMatchesIterator = proteinMatchesIterator;
             this.identification = identification;
             this.identificationFeaturesGenerator = identificationFeaturesGenerator;
@@ -1851,6 +2334,7 @@ public class MatchesValidator {
             this.exceptionHandler = exceptionHandler;
             this.validationQCPreferences = identificationParameters.getIdValidationPreferences().getValidationQCPreferences();
             this.spectrumCountingPreferences = spectrumCountingPreferences;
+            this.qcResults = qcResults;
         }
 
         @Override
@@ -1878,7 +2362,7 @@ public class MatchesValidator {
 
                         String proteinKey = proteinMatch.getKey();
                         updateProteinMatchValidationLevel(identification, identificationFeaturesGenerator, geneMaps, identificationParameters,
-                                targetDecoyMap, proteinThreshold, nTargetLimit, proteinConfidentThreshold, noValidated, proteinKey);
+                                targetDecoyMap, proteinThreshold, nTargetLimit, proteinConfidentThreshold, noValidated, proteinKey, qcResults);
 
                         // set the fraction details
                         PSParameter psParameter = new PSParameter();
@@ -0,0 +1,316 @@
+package eu.isas.peptideshaker.export.columnar;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Tests that the values written in a columnar report are read back
+ * identically for every column type, including missing values.
+ *
+ * @author Marc Vaudel
+ */
+public class ColumnarReportTest extends TestCase {
+
+    /**
+     * The seed of the random data.
+     */
+    private static final long SEED = 20170301;
+    /**
+     * The number of rows of the single row group tables.
+     */
+    private static final int N_ROWS = 1000;
+    /**
+     * The header of the typed table.
+     */
+    private static final String[] HEADER = {"Long", "Double", "Text", "Empty", "Short"};
+    /**
+     * The report file.
+     */
+    private File file;
+
+    @Override
+    protected void setUp() throws IOException {
+        file = File.createTempFile("columnar_report", ".psc");
+    }
+
+    @Override
+    protected void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * Tests that the values of every type, missing values, and text looking
+     * like numbers are read back as written.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing or reading the report
+     */
+    public void testTypes() throws IOException {
+
+        String[][] rows = getTypedRows(N_ROWS, new Random(SEED));
+
+        ColumnarWriter writer = new ColumnarWriter(file);
+        writer.writeMainTitle("Columnar report test");
+        writer.startNewSection("Typed");
+        writeLine(writer, HEADER, true);
+        for (String[] row : rows) {
+            writeLine(writer, row, false);
+        }
+        writer.close();
+
+        ColumnarReader reader = new ColumnarReader(file);
+        try {
+            Assert.assertEquals("Columnar report test", reader.getMainTitle());
+            Assert.assertEquals(1, reader.getTables().size());
+            ColumnarTable table = reader.getTable("Typed", 0);
+            Assert.assertNotNull(table);
+            Assert.assertEquals(N_ROWS, table.getnRows());
+            Assert.assertEquals(1, table.getnRowGroups());
+            for (int j = 0; j < HEADER.length; j++) {
+                Assert.assertEquals(j, table.getColumnIndex(HEADER[j]));
+            }
+
+            ColumnType[] expectedTypes = {ColumnType.LONG, ColumnType.DOUBLE, ColumnType.STRING, ColumnType.STRING, ColumnType.LONG};
+            for (int j = 0; j < HEADER.length; j++) {
+                ColumnValues values = reader.readColumn(table, j);
+                Assert.assertEquals(HEADER[j], expectedTypes[j], values.getType());
+                Assert.assertEquals(N_ROWS, values.size());
+                int nMissing = 0;
+                for (int i = 0; i < N_ROWS; i++) {
+                    String expected = j < rows[i].length && rows[i][j] != null ? rows[i][j] : "";
+                    Assert.assertEquals(HEADER[j] + " " + i, expected, values.getString(i));
+                    Assert.assertEquals(HEADER[j] + " " + i, expected.length() == 0, values.isMissing(i));
+                    if (expected.length() == 0) {
+                        nMissing++;
+                    } else if (values.getType() == ColumnType.LONG) {
+                        Assert.assertEquals(Long.parseLong(expected), values.getLong(i));
+                    } else if (values.getType() == ColumnType.DOUBLE) {
+                        Assert.assertEquals(Double.doubleToLongBits(Double.parseDouble(expected)), Double.doubleToLongBits(values.getDouble(i)));
+                    }
+                }
+                Assert.assertEquals(nMissing, values.getnMissing());
+                Assert.assertEquals(nMissing, table.getChunk(0, j).getnMissing());
+            }
+
+            // statistics of the numeric columns
+            long minLong = Long.MAX_VALUE;
+            long maxLong = Long.MIN_VALUE;
+            for (String[] row : rows) {
+                if (row[0].length() > 0) {
+                    minLong = Math.min(minLong, Long.parseLong(row[0]));
+                    maxLong = Math.max(maxLong, Long.parseLong(row[0]));
+                }
+            }
+            ColumnStatistics.LongStatistics statistics = (ColumnStatistics.LongStatistics) table.getChunk(0, 0).getStatistics();
+            Assert.assertEquals(minLong, statistics.getMin());
+            Assert.assertEquals(maxLong, statistics.getMax());
+            Assert.assertNull(table.getChunk(0, 3).getStatistics());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Tests that the values of tables spanning several row groups, where the
+     * inferred type changes between row groups, are read back as written.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing or reading the report
+     */
+    public void testRowGroups() throws IOException {
+
+        int nRows = ColumnarWriter.ROW_GROUP_SIZE + 10;
+        String[][] rows = new String[nRows][];
+        for (int i = 0; i < nRows; i++) {
+            boolean firstGroup = i < ColumnarWriter.ROW_GROUP_SIZE;
+            String number = firstGroup ? Long.toString(i) : Double.toString(i + 0.5);
+            String text = firstGroup ? Long.toString(-i) : "row " + i;
+            rows[i] = new String[]{number, text, i % 7 == 0 ? "" : Long.toString(i)};
+        }
+
+        ColumnarWriter writer = new ColumnarWriter(file);
+        writer.startNewSection("Row groups");
+        writeLine(writer, new String[]{"Number", "Text", "Sparse"}, true);
+        for (String[] row : rows) {
+            writeLine(writer, row, false);
+        }
+        writer.close();
+
+        ColumnarReader reader = new ColumnarReader(file);
+        try {
+            ColumnarTable table = reader.getTable("Row groups", 0);
+            Assert.assertEquals(2, table.getnRowGroups());
+            Assert.assertEquals(nRows, table.getnRows());
+            Assert.assertEquals(ColumnType.LONG, table.getChunk(0, 0).getType());
+            Assert.assertEquals(ColumnType.DOUBLE, table.getChunk(1, 0).getType());
+
+            ColumnValues numbers = reader.readColumn(table, 0);
+            Assert.assertEquals(ColumnType.DOUBLE, numbers.getType());
+            ColumnValues texts = reader.readColumn(table, 1);
+            Assert.assertEquals(ColumnType.STRING, texts.getType());
+            ColumnValues sparse = reader.readColumn(table, 2);
+            Assert.assertEquals(ColumnType.LONG, sparse.getType());
+            for (int i = 0; i < nRows; i++) {
+                Assert.assertEquals(Double.parseDouble(rows[i][0]), numbers.getDouble(i), 0);
+                Assert.assertEquals(rows[i][1], texts.getString(i));
+                Assert.assertEquals(rows[i][2], sparse.getString(i));
+                Assert.assertEquals(rows[i][2].length() == 0, sparse.isMissing(i));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Tests that sections and nested tables are stored as separate tables,
+     * and that tables without header or without rows are read back.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing or reading the report
+     */
+    public void testSections() throws IOException {
+
+        ColumnarWriter writer = new ColumnarWriter(file);
+        writer.startNewSection("Proteins");
+        writeLine(writer, new String[]{"Accession", "Score"}, true);
+        writeLine(writer, new String[]{"P00001", "0.5"}, false);
+        writer.increaseDepth();
+        writeLine(writer, new String[]{"PEPTIDE", "1"}, false);
+        writeLine(writer, new String[]{"PEPTIDEK", "2"}, false);
+        writer.decreseDepth();
+        writeLine(writer, new String[]{"P00002", "0.25"}, false);
+        writer.startNewSection("Header only");
+        writeLine(writer, new String[]{"Column"}, true);
+        writer.close();
+
+        ColumnarReader reader = new ColumnarReader(file);
+        try {
+            Assert.assertEquals(3, reader.getTables().size());
+
+            ColumnarTable proteins = reader.getTable("Proteins", 0);
+            Assert.assertEquals(2, proteins.getnRows());
+            ColumnValues accessions = reader.readColumn(proteins, 0);
+            Assert.assertEquals("P00001", accessions.getString(0));
+            Assert.assertEquals("P00002", accessions.getString(1));
+            ColumnValues scores = reader.readColumn(proteins, 1);
+            Assert.assertEquals(ColumnType.DOUBLE, scores.getType());
+            Assert.assertEquals(0.25, scores.getDouble(1), 0);
+
+            ColumnarTable peptides = reader.getTable("Proteins", 1);
+            Assert.assertEquals(2, peptides.getnRows());
+            Assert.assertEquals(ColumnarWriter.DEFAULT_COLUMN_NAME + 1, peptides.getColumnNames().get(1));
+            ColumnValues counts = reader.readColumn(peptides, 1);
+            Assert.assertEquals(ColumnType.LONG, counts.getType());
+            Assert.assertEquals(2, counts.getLong(1));
+
+            ColumnarTable headerOnly = reader.getTable("Header only", 0);
+            Assert.assertEquals(0, headerOnly.getnRows());
+            Assert.assertEquals(0, reader.readColumn(headerOnly, 0).size());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Tests that null and empty values are encoded as missing for every type.
+     */
+    public void testMissingValues() {
+
+        String[][] values = {
+            {"1", null, "", "-3"},
+            {"1.5", null, "", "NaN"},
+            {"text", null, "", "é"}
+        };
+        ColumnType[] types = {ColumnType.LONG, ColumnType.DOUBLE, ColumnType.STRING};
+        for (int t = 0; t < types.length; t++) {
+            ColumnType type = types[t];
+            Assert.assertEquals(type, ColumnType.inferType(values[t], values[t].length));
+            byte[] bytes = ColumnValues.encode(type, values[t], values[t].length);
+            ColumnValues columnValues = ColumnValues.decode(type, values[t].length, ByteBuffer.wrap(bytes));
+            Assert.assertEquals(2, columnValues.getnMissing());
+            for (int i = 0; i < values[t].length; i++) {
+                String expected = values[t][i] == null ? "" : values[t][i];
+                Assert.assertEquals(type + " " + i, expected.length() == 0, columnValues.isMissing(i));
+                Assert.assertEquals(type + " " + i, expected, columnValues.getString(i));
+            }
+        }
+
+        // a column with missing values only is text
+        String[] missing = {null, "", null};
+        Assert.assertEquals(ColumnType.STRING, ColumnType.inferType(missing, missing.length));
+        ColumnValues columnValues = ColumnValues.decode(ColumnType.STRING, missing.length, ByteBuffer.wrap(ColumnValues.encode(ColumnType.STRING, missing, missing.length)));
+        Assert.assertEquals(missing.length, columnValues.getnMissing());
+        Assert.assertTrue(Double.isNaN(columnValues.getDouble(0)));
+        Assert.assertEquals(0, columnValues.getLong(0));
+    }
+
+    /**
+     * Writes a line of cells.
+     *
+     * @param writer the writer
+     * @param cells the cells, null cells are written as empty
+     * @param header a boolean indicating whether the line is a header
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing
+     */
+    private static void writeLine(ColumnarWriter writer, String[] cells, boolean header) throws IOException {
+        for (int i = 0; i < cells.length; i++) {
+            if (i > 0) {
+                writer.addSeparator();
+            }
+            if (header) {
+                writer.writeHeaderText(cells[i]);
+            } else {
+                writer.write(cells[i]);
+            }
+        }
+        writer.newLine();
+    }
+
+    /**
+     * Returns random rows for the typed table. The last row cells are omitted
+     * for some rows.
+     *
+     * @param nRows the number of rows
+     * @param random the random number generator
+     *
+     * @return random rows
+     */
+    private static String[][] getTypedRows(int nRows, Random random) {
+        String[] specialDoubles = {"NaN", "Infinity", "-Infinity", "-0.0", "1.0E-10", "1.7976931348623157E308"};
+        String[] specialTexts = {"007", "1e5", "-", "α-β, γ\tδ", " ", "\"quoted\"", "1.50"};
+        String[][] rows = new String[nRows][];
+        for (int i = 0; i < nRows; i++) {
+            String longValue = random.nextInt(10) == 0 ? "" : Long.toString(random.nextLong() / 100);
+            String doubleValue;
+            int draw = random.nextInt(20);
+            if (draw == 0) {
+                doubleValue = "";
+            } else if (draw == 1) {
+                doubleValue = specialDoubles[random.nextInt(specialDoubles.length)];
+            } else {
+                doubleValue = Double.toString(random.nextGaussian() * 1000);
+            }
+            String text;
+            draw = random.nextInt(10);
+            if (draw == 0) {
+                text = null;
+            } else if (draw == 1) {
+                text = specialTexts[random.nextInt(specialTexts.length)];
+            } else {
+                text = "Text " + random.nextInt();
+            }
+            if (random.nextInt(5) == 0) {
+                rows[i] = new String[]{longValue, doubleValue, text, null};
+            } else {
+                rows[i] = new String[]{longValue, doubleValue, text, "", Integer.toString(random.nextInt(100))};
+            }
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,271 @@
+package eu.isas.peptideshaker.export.sections;
+
+import com.compomics.util.Util;
+import com.compomics.util.exceptions.exception_handlers.CommandLineExceptionHandler;
+import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
+import com.compomics.util.gui.waiting.waitinghandlers.WaitingHandlerCLIImpl;
+import com.compomics.util.io.export.ExportFormat;
+import com.compomics.util.io.export.ExportWriter;
+import com.compomics.util.preferences.ProcessingPreferences;
+import com.compomics.util.waiting.WaitingHandler;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Tests that the rows of a report section computed in parallel are written in
+ * the order of the matches, with the same line indexes and sub-sections as
+ * when the rows are written one after the other by a single thread.
+ *
+ * @author Marc Vaudel
+ */
+public class SectionRowsWriterTest extends TestCase {
+
+    /**
+     * The seed of the random data.
+     */
+    private static final long SEED = 20170301;
+    /**
+     * The number of matches, spanning several batches and ending with an
+     * incomplete batch.
+     */
+    private static final int N_MATCHES = 25 * SectionRowsWriter.BATCH_SIZE + 37;
+    /**
+     * The separator of the report.
+     */
+    private static final String SEPARATOR = "\t";
+    /**
+     * The line prefix of the section.
+     */
+    private static final String LINE_PREFIX = "1.";
+    /**
+     * The temporary folder containing the reports.
+     */
+    private File tempFolder;
+    /**
+     * The values of the rows, null for matches not exported.
+     */
+    private String[] values;
+    /**
+     * The time spent computing every row in milliseconds, to make the
+     * batches complete out of order.
+     */
+    private int[] delays;
+    /**
+     * A waiting handler, not displaying anything.
+     */
+    private WaitingHandler waitingHandler;
+
+    @Override
+    protected void setUp() throws Exception {
+        waitingHandler = new WaitingHandlerCLIImpl();
+        waitingHandler.setDisplayProgress(false);
+        tempFolder = File.createTempFile("section_rows_writer", "");
+        tempFolder.delete();
+        tempFolder.mkdir();
+        Random random = new Random(SEED);
+        values = new String[N_MATCHES];
+        delays = new int[N_MATCHES];
+        for (int i = 0; i < N_MATCHES; i++) {
+            if (random.nextInt(7) != 0) {
+                values[i] = Double.toString(random.nextDouble());
+            }
+            if (random.nextInt(200) == 0) {
+                delays[i] = 1 + random.nextInt(20);
+            }
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Util.deleteDir(tempFolder);
+    }
+
+    /**
+     * Tests that a report written with several threads is identical to the
+     * report written sequentially.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * writing or reading the reports
+     */
+    public void testOrder() throws Exception {
+
+        ArrayList<String> expected = writeSequentially(new File(tempFolder, "sequential.txt"));
+        int nExported = 0;
+        for (String value : values) {
+            if (value != null) {
+                nExported++;
+            }
+        }
+        Assert.assertTrue(expected.size() > nExported);
+
+        int nThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        ArrayList<String> parallel = writeParallel(new File(tempFolder, "parallel.txt"), nThreads);
+        Assert.assertEquals(expected.size(), parallel.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertEquals("Line " + i, expected.get(i), parallel.get(i));
+        }
+
+        ArrayList<String> singleThread = writeParallel(new File(tempFolder, "single_thread.txt"), 1);
+        Assert.assertEquals(expected, singleThread);
+    }
+
+    /**
+     * Tests that a section smaller than a batch is written as well.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * writing or reading the reports
+     */
+    public void testSingleBatch() throws Exception {
+
+        String[] allValues = values;
+        values = new String[SectionRowsWriter.BATCH_SIZE / 2];
+        System.arraycopy(allValues, 0, values, 0, values.length);
+
+        ArrayList<String> expected = writeSequentially(new File(tempFolder, "sequential.txt"));
+        ArrayList<String> parallel = writeParallel(new File(tempFolder, "parallel.txt"), 4);
+        Assert.assertEquals(expected, parallel);
+    }
+
+    /**
+     * Writes the rows one after the other and returns the lines of the
+     * report.
+     *
+     * @param file the report file
+     *
+     * @return the lines of the report
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing or reading the report
+     */
+    private ArrayList<String> writeSequentially(File file) throws IOException {
+
+        ExportWriter writer = ExportWriter.getExportWriter(ExportFormat.text, file, SEPARATOR, 0);
+        int line = 1;
+        for (int i = 0; i < values.length; i++) {
+            ArrayList<String> row = getRow(i);
+            if (row != null) {
+                writer.write(LINE_PREFIX);
+                writer.write(line + "");
+                for (String feature : row) {
+                    writer.addSeparator();
+                    writer.write(feature);
+                }
+                writer.newLine();
+                writeSubSection(writer, i, LINE_PREFIX + line + ".");
+                line++;
+            }
+        }
+        writer.close();
+        return readLines(file);
+    }
+
+    /**
+     * Writes the rows using a section rows writer and returns the lines of the
+     * report.
+     *
+     * @param file the report file
+     * @param nThreads the number of threads to use
+     *
+     * @return the lines of the report
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * writing or reading the report
+     */
+    private ArrayList<String> writeParallel(File file, int nThreads) throws Exception {
+
+        ProcessingPreferences processingPreferences = new ProcessingPreferences();
+        processingPreferences.setnThreads(nThreads);
+
+        final ExportWriter writer = ExportWriter.getExportWriter(ExportFormat.text, file, SEPARATOR, 0);
+        SectionRowsWriter<Integer> rowsWriter = new SectionRowsWriter<Integer>(writer, true, LINE_PREFIX, "Section rows writer test",
+                processingPreferences, waitingHandler, new CommandLineExceptionHandler()) {
+
+            @Override
+            protected ArrayList<String> getRow(Integer match, PeptideSpectrumAnnotator peptideSpectrumAnnotator) throws Exception {
+                if (delays[match] > 0) {
+                    Thread.sleep(delays[match]);
+                }
+                return SectionRowsWriterTest.this.getRow(match);
+            }
+
+            @Override
+            protected void writeSubSection(Integer match, String subSectionPrefix) throws IOException {
+                SectionRowsWriterTest.this.writeSubSection(writer, match, subSectionPrefix);
+            }
+        };
+        for (int i = 0; i < values.length; i++) {
+            Assert.assertTrue(rowsWriter.add(i));
+        }
+        Assert.assertTrue(rowsWriter.finish());
+        writer.close();
+        return readLines(file);
+    }
+
+    /**
+     * Returns the row of a match, null if the match is not exported.
+     *
+     * @param match the index of the match
+     *
+     * @return the row of the match
+     */
+    private ArrayList<String> getRow(int match) {
+        if (values[match] == null) {
+            return null;
+        }
+        ArrayList<String> row = new ArrayList<String>(2);
+        row.add("match_" + match);
+        row.add(values[match]);
+        return row;
+    }
+
+    /**
+     * Writes the sub-section of every fifth match.
+     *
+     * @param writer the writer
+     * @param match the index of the match
+     * @param subSectionPrefix the line prefix of the sub-section
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the report
+     */
+    private void writeSubSection(ExportWriter writer, int match, String subSectionPrefix) throws IOException {
+        if (match % 5 == 0) {
+            for (int i = 1; i <= 2; i++) {
+                writer.write(subSectionPrefix + i);
+                writer.addSeparator();
+                writer.write("sub_" + match);
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Returns the lines of a file.
+     *
+     * @param file the file
+     *
+     * @return the lines of the file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private static ArrayList<String> readLines(File file) throws IOException {
+        ArrayList<String> lines = new ArrayList<String>();
+        BufferedReader br = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            br.close();
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,447 @@
+package eu.isas.peptideshaker.filtering;
+
+import com.compomics.util.Util;
+import com.compomics.util.db.ObjectsCache;
+import com.compomics.util.exceptions.exception_handlers.CommandLineExceptionHandler;
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.filtering.Filter;
+import com.compomics.util.experiment.filtering.FilterItemComparator;
+import com.compomics.util.experiment.identification.Advocate;
+import com.compomics.util.experiment.identification.Identification;
+import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
+import com.compomics.util.experiment.identification.identifications.Ms2Identification;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import com.compomics.util.experiment.identification.matches.SpectrumMatch;
+import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
+import com.compomics.util.experiment.identification.spectrum_assumptions.PeptideAssumption;
+import com.compomics.util.experiment.massspectrometry.Charge;
+import com.compomics.util.gui.waiting.waitinghandlers.WaitingHandlerCLIImpl;
+import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.preferences.ProcessingPreferences;
+import com.compomics.util.preferences.ValidationQCPreferences;
+import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.peptideshaker.filtering.items.AssumptionFilterItem;
+import eu.isas.peptideshaker.filtering.items.PeptideFilterItem;
+import eu.isas.peptideshaker.filtering.items.ProteinFilterItem;
+import eu.isas.peptideshaker.filtering.items.PsmFilterItem;
+import eu.isas.peptideshaker.parameters.PSParameter;
+import eu.isas.peptideshaker.scoring.MatchValidationLevel;
+import eu.isas.peptideshaker.utils.IdentificationFeaturesGenerator;
+import eu.isas.peptideshaker.utils.Metrics;
+import eu.isas.peptideshaker.validation.MatchesValidator;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Tests that the evaluation of a filter on blocks of matches by
+ * MatchFilterBatch gives the same result as the evaluation of the filter on
+ * every match by MatchFilter.isValidated, for every comparator, for the
+ * exceptions and manually validated matches, and for the default quality
+ * control filters.
+ *
+ * @author Marc Vaudel
+ */
+public class MatchFilterBatchTest extends TestCase {
+
+    /**
+     * The seed of the random data.
+     */
+    private static final long SEED = 20170301;
+    /**
+     * The number of proteins.
+     */
+    private static final int N_PROTEINS = 300;
+    /**
+     * The number of peptides.
+     */
+    private static final int N_PEPTIDES = 1200;
+    /**
+     * The number of spectra, more than a block of matches.
+     */
+    private static final int N_SPECTRA = 2500;
+    /**
+     * The probabilities of the matches, few so that the values of the
+     * matches are shared.
+     */
+    private static final double[] PROBABILITIES = {0.0, 0.01, 0.05, 0.2, 1.0};
+    /**
+     * The comparators supported by the batch.
+     */
+    private static final FilterItemComparator[] COMPARATORS = {FilterItemComparator.higherOrEqual, FilterItemComparator.lowerOrEqual, FilterItemComparator.equal};
+    /**
+     * The amino acids used to build sequences.
+     */
+    private static final String AMINO_ACIDS = "ACDEFGHIKLMNPQRSTVWY";
+    /**
+     * The FASTA file of the proteins.
+     */
+    private File fastaFile;
+    /**
+     * The folder of the identification database.
+     */
+    private File dbFolder;
+    /**
+     * The identification.
+     */
+    private Identification identification;
+    /**
+     * The identification parameters.
+     */
+    private IdentificationParameters identificationParameters;
+    /**
+     * The identification features generator.
+     */
+    private IdentificationFeaturesGenerator identificationFeaturesGenerator;
+    /**
+     * The processing preferences.
+     */
+    private ProcessingPreferences processingPreferences;
+    /**
+     * A waiting handler, not displaying anything.
+     */
+    private WaitingHandler waitingHandler;
+    /**
+     * The keys of the spectrum matches.
+     */
+    private ArrayList<String> spectrumKeys;
+    /**
+     * The keys of the peptide matches.
+     */
+    private ArrayList<String> peptideKeys;
+    /**
+     * The keys of the protein matches.
+     */
+    private ArrayList<String> proteinKeys;
+
+    @Override
+    protected void setUp() throws Exception {
+
+        waitingHandler = new WaitingHandlerCLIImpl();
+        waitingHandler.setDisplayProgress(false);
+        Random random = new Random(SEED);
+
+        fastaFile = File.createTempFile("match_filter_batch", ".fasta");
+        BufferedWriter bw = new BufferedWriter(new FileWriter(fastaFile));
+        try {
+            for (int i = 0; i < N_PROTEINS; i++) {
+                bw.write(">sp|" + getAccession(i) + "|PROT" + i + "_HUMAN Protein " + i + " OS=Homo sapiens GN=GENE" + i + " PE=1 SV=1");
+                bw.newLine();
+                bw.write(getSequence(200, random));
+                bw.newLine();
+            }
+        } finally {
+            bw.close();
+        }
+        SequenceFactory.getInstance().loadFastaFile(fastaFile, waitingHandler);
+
+        dbFolder = File.createTempFile("match_filter_batch", "");
+        dbFolder.delete();
+        dbFolder.mkdir();
+        identification = new Ms2Identification("match_filter_batch");
+        identification.establishConnection(dbFolder.getAbsolutePath(), true, new ObjectsCache());
+        identificationParameters = new IdentificationParameters(new SearchParameters());
+
+        String[] sequences = new String[N_PEPTIDES];
+        ArrayList<ArrayList<String>> parentProteins = new ArrayList<ArrayList<String>>(N_PEPTIDES);
+        for (int i = 0; i < N_PEPTIDES; i++) {
+            sequences[i] = getSequence(8 + random.nextInt(10), random);
+            int first = random.nextInt(N_PROTEINS - 1);
+            ArrayList<String> accessions = new ArrayList<String>(2);
+            accessions.add(getAccession(first));
+            if (random.nextInt(4) == 0) {
+                accessions.add(getAccession(first + 1));
+            }
+            parentProteins.add(accessions);
+        }
+
+        spectrumKeys = new ArrayList<String>(N_SPECTRA);
+        for (int i = 0; i < N_SPECTRA; i++) {
+            String spectrumKey = "test.mgf_cus_" + i;
+            int peptideIndex = random.nextInt(N_PEPTIDES);
+            Peptide peptide = new Peptide(sequences[peptideIndex], new ArrayList<ModificationMatch>());
+            peptide.setParentProteins(parentProteins.get(peptideIndex));
+            Charge charge = new Charge(Charge.PLUS, 2 + random.nextInt(2));
+            PeptideAssumption peptideAssumption = new PeptideAssumption(peptide, 1, Advocate.peptideShaker.getIndex(), charge, PROBABILITIES[random.nextInt(PROBABILITIES.length)]);
+            SpectrumMatch spectrumMatch = new SpectrumMatch(spectrumKey);
+            spectrumMatch.setBestPeptideAssumption(peptideAssumption);
+            identification.addSpectrumMatch(spectrumMatch);
+            identification.buildPeptidesAndProteins(spectrumKey, identificationParameters.getSequenceMatchingPreferences());
+            PSParameter psParameter = new PSParameter();
+            psParameter.setPsmProbability(PROBABILITIES[random.nextInt(PROBABILITIES.length)]);
+            psParameter.setMatchValidationLevel(getValidationLevel(random));
+            identification.addSpectrumMatchParameter(spectrumKey, psParameter);
+            spectrumKeys.add(spectrumKey);
+        }
+
+        peptideKeys = new ArrayList<String>(identification.getPeptideIdentification());
+        Collections.sort(peptideKeys);
+        for (String peptideKey : peptideKeys) {
+            identification.addPeptideMatchParameter(peptideKey, getParameter(random));
+        }
+        proteinKeys = new ArrayList<String>(identification.getProteinIdentification());
+        Collections.sort(proteinKeys);
+        for (String proteinKey : proteinKeys) {
+            identification.addProteinMatchParameter(proteinKey, getParameter(random));
+        }
+
+        identificationFeaturesGenerator = new IdentificationFeaturesGenerator(identification, identificationParameters, new Metrics(), null);
+        processingPreferences = new ProcessingPreferences();
+        processingPreferences.setnThreads(4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        identification.close();
+        Util.deleteDir(dbFolder);
+        SequenceFactory.getInstance().clearFactory();
+        fastaFile.delete();
+    }
+
+    /**
+     * Tests every numeric PSM item with every comparator.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * evaluating the filters
+     */
+    public void testPsmFilter() throws Exception {
+        String[] itemNames = {PsmFilterItem.confidence.name, PsmFilterItem.validationStatus.name,
+            AssumptionFilterItem.algorithmScore.name, AssumptionFilterItem.precrusorCharge.name};
+        for (String itemName : itemNames) {
+            for (FilterItemComparator comparator : COMPARATORS) {
+                PsmFilter psmFilter = new PsmFilter(itemName);
+                psmFilter.setFilterItem(itemName, comparator, getThreshold(psmFilter, itemName, spectrumKeys));
+                assertSameValidation(psmFilter, spectrumKeys);
+            }
+        }
+    }
+
+    /**
+     * Tests every numeric peptide item with every comparator.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * evaluating the filters
+     */
+    public void testPeptideFilter() throws Exception {
+        String[] itemNames = {PeptideFilterItem.nPSMs.name, PeptideFilterItem.confidence.name,
+            PeptideFilterItem.proteinInference.name, PeptideFilterItem.validationStatus.name};
+        for (String itemName : itemNames) {
+            for (FilterItemComparator comparator : COMPARATORS) {
+                PeptideFilter peptideFilter = new PeptideFilter(itemName);
+                peptideFilter.setFilterItem(itemName, comparator, getThreshold(peptideFilter, itemName, peptideKeys));
+                assertSameValidation(peptideFilter, peptideKeys);
+            }
+        }
+    }
+
+    /**
+     * Tests every numeric protein item read from the matches with every
+     * comparator.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * evaluating the filters
+     */
+    public void testProteinFilter() throws Exception {
+        String[] itemNames = {ProteinFilterItem.nPeptides.name, ProteinFilterItem.confidence.name,
+            ProteinFilterItem.proteinInference.name, ProteinFilterItem.validationStatus.name};
+        for (String itemName : itemNames) {
+            for (FilterItemComparator comparator : COMPARATORS) {
+                ProteinFilter proteinFilter = new ProteinFilter(itemName);
+                proteinFilter.setFilterItem(itemName, comparator, getThreshold(proteinFilter, itemName, proteinKeys));
+                assertSameValidation(proteinFilter, proteinKeys);
+            }
+        }
+    }
+
+    /**
+     * Tests filters combining numeric items and an item evaluated by the
+     * filter, with exceptions and manually validated matches, including a
+     * match being both.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * evaluating the filters
+     */
+    public void testExceptionsAndManualValidation() throws Exception {
+
+        PsmFilter psmFilter = new PsmFilter("psm");
+        psmFilter.setFilterItem(PsmFilterItem.confidence.name, FilterItemComparator.higherOrEqual, getThreshold(psmFilter, PsmFilterItem.confidence.name, spectrumKeys));
+        psmFilter.setFilterItem(AssumptionFilterItem.precrusorCharge.name, FilterItemComparator.equal, 2.0);
+        psmFilter.setFilterItem(PsmFilterItem.stared.name, FilterItemComparator.equal, FilterItemComparator.trueFalse[1]);
+        setExceptionsAndManualValidation(psmFilter, spectrumKeys);
+        assertSameValidation(psmFilter, spectrumKeys);
+
+        PeptideFilter peptideFilter = new PeptideFilter("peptide");
+        peptideFilter.setFilterItem(PeptideFilterItem.nPSMs.name, FilterItemComparator.higherOrEqual, 2.0);
+        peptideFilter.setFilterItem(PeptideFilterItem.validationStatus.name, FilterItemComparator.lowerOrEqual, (double) MatchValidationLevel.doubtful.getIndex());
+        peptideFilter.setFilterItem(PeptideFilterItem.stared.name, FilterItemComparator.equal, FilterItemComparator.trueFalse[1]);
+        setExceptionsAndManualValidation(peptideFilter, peptideKeys);
+        assertSameValidation(peptideFilter, peptideKeys);
+
+        ProteinFilter proteinFilter = new ProteinFilter("protein");
+        proteinFilter.setFilterItem(ProteinFilterItem.confidence.name, FilterItemComparator.lowerOrEqual, getThreshold(proteinFilter, ProteinFilterItem.confidence.name, proteinKeys));
+        proteinFilter.setFilterItem(ProteinFilterItem.stared.name, FilterItemComparator.equal, FilterItemComparator.trueFalse[1]);
+        setExceptionsAndManualValidation(proteinFilter, proteinKeys);
+        assertSameValidation(proteinFilter, proteinKeys);
+    }
+
+    /**
+     * Tests the default peptide and protein quality control filters, and that
+     * the results per filter match the results of every filter.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * evaluating the filters
+     */
+    public void testDefaultQcFilters() throws Exception {
+
+        ValidationQCPreferences validationQCPreferences = new ValidationQCPreferences();
+        MatchesValidator.setDefaultMatchesQCFilters(validationQCPreferences);
+
+        assertSameQcResults(validationQCPreferences.getPeptideFilters(), peptideKeys);
+        assertSameQcResults(validationQCPreferences.getProteinFilters(), proteinKeys);
+    }
+
+    /**
+     * Asserts that the quality control results obtained for all filters at
+     * once are the results of every filter evaluated on every match.
+     *
+     * @param filters the quality control filters
+     * @param matchKeys the keys of the matches
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * evaluating the filters
+     */
+    private void assertSameQcResults(ArrayList<Filter> filters, ArrayList<String> matchKeys) throws Exception {
+        HashMap<String, HashSet<String>> qcResults = MatchFilterBatch.getValidatedMatchesPerFilter(filters, matchKeys, identification, null,
+                identificationFeaturesGenerator, identificationParameters, processingPreferences, waitingHandler, new CommandLineExceptionHandler());
+        Assert.assertNotNull(qcResults);
+        Assert.assertEquals(filters.size(), qcResults.size());
+        for (Filter filter : filters) {
+            MatchFilter matchFilter = (MatchFilter) filter;
+            assertSameValidation(matchFilter, matchKeys);
+            HashSet<String> validatedKeys = qcResults.get(filter.getName());
+            for (String matchKey : matchKeys) {
+                boolean expected = matchFilter.isValidated(matchKey, identification, null, identificationFeaturesGenerator, identificationParameters, null);
+                Assert.assertEquals(filter.getName() + " " + matchKey, expected, validatedKeys.contains(matchKey));
+            }
+        }
+    }
+
+    /**
+     * Asserts that the batch evaluation of the filter gives the same result as
+     * the evaluation of the filter on every match.
+     *
+     * @param matchFilter the filter
+     * @param matchKeys the keys of the matches
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * evaluating the filter
+     */
+    private void assertSameValidation(MatchFilter matchFilter, ArrayList<String> matchKeys) throws Exception {
+        MatchFilterBatch matchFilterBatch = new MatchFilterBatch(matchFilter);
+        boolean[] validated = matchFilterBatch.isValidated(matchKeys, identification, null, identificationFeaturesGenerator, identificationParameters,
+                processingPreferences, waitingHandler, new CommandLineExceptionHandler());
+        Assert.assertNotNull(validated);
+        Assert.assertEquals(matchKeys.size(), validated.length);
+        for (int i = 0; i < validated.length; i++) {
+            String matchKey = matchKeys.get(i);
+            boolean expected = matchFilter.isValidated(matchKey, identification, null, identificationFeaturesGenerator, identificationParameters, null);
+            Assert.assertEquals(matchFilter.getName() + " " + matchKey, expected, validated[i]);
+        }
+    }
+
+    /**
+     * Returns the value of the given item for the match in the middle of the
+     * given list, so that the filter passes and fails matches.
+     *
+     * @param matchFilter the filter
+     * @param itemName the name of the item
+     * @param matchKeys the keys of the matches
+     *
+     * @return the threshold to use
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * reading the match
+     */
+    private Double getThreshold(MatchFilter matchFilter, String itemName, ArrayList<String> matchKeys) throws Exception {
+        return matchFilter.getNumericValue(itemName, matchKeys.get(matchKeys.size() / 2), identification, identificationFeaturesGenerator, identificationParameters);
+    }
+
+    /**
+     * Adds exceptions and manually validated matches to the filter, one match
+     * being both.
+     *
+     * @param matchFilter the filter
+     * @param matchKeys the keys of the matches
+     */
+    private static void setExceptionsAndManualValidation(MatchFilter matchFilter, ArrayList<String> matchKeys) {
+        for (int i = 0; i < matchKeys.size(); i += 7) {
+            matchFilter.addException(matchKeys.get(i));
+        }
+        for (int i = 0; i < matchKeys.size(); i += 5) {
+            matchFilter.addManualValidation(matchKeys.get(i));
+        }
+    }
+
+    /**
+     * Returns the parameters of a peptide or protein match.
+     *
+     * @param random the random number generator
+     *
+     * @return the parameters of a match
+     */
+    private static PSParameter getParameter(Random random) {
+        PSParameter psParameter = new PSParameter();
+        psParameter.setPeptideProbability(PROBABILITIES[random.nextInt(PROBABILITIES.length)]);
+        psParameter.setProteinProbability(PROBABILITIES[random.nextInt(PROBABILITIES.length)]);
+        psParameter.setProteinInferenceClass(random.nextInt(4));
+        psParameter.setMatchValidationLevel(getValidationLevel(random));
+        psParameter.setStarred(random.nextInt(10) == 0);
+        return psParameter;
+    }
+
+    /**
+     * Returns a random validation level.
+     *
+     * @param random the random number generator
+     *
+     * @return a random validation level
+     */
+    private static MatchValidationLevel getValidationLevel(Random random) {
+        MatchValidationLevel[] levels = MatchValidationLevel.values();
+        return levels[random.nextInt(levels.length)];
+    }
+
+    /**
+     * Returns the accession of a synthetic protein.
+     *
+     * @param index the index of the protein
+     *
+     * @return the accession of the protein
+     */
+    private static String getAccession(int index) {
+        return "P" + (10000 + index);
+    }
+
+    /**
+     * Returns a random amino acid sequence.
+     *
+     * @param length the length of the sequence
+     * @param random the random number generator
+     *
+     * @return a random amino acid sequence
+     */
+    private static String getSequence(int length, Random random) {
+        StringBuilder sequence = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sequence.append(AMINO_ACIDS.charAt(random.nextInt(AMINO_ACIDS.length())));
+        }
+        return sequence.toString();
+    }
+}
@@ -0,0 +1,291 @@
+package eu.isas.peptideshaker.protein_inference;
+
+import com.compomics.util.Util;
+import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
+import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.preferences.SequenceMatchingPreferences;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Tests that the peptide mapping cache is keyed by the content of the FASTA
+ * file and by the sequence matching settings, and that the mappings are
+ * restored after saving, including when the file ends with a truncated block.
+ *
+ * @author Marc Vaudel
+ */
+public class PeptideMappingCacheTest extends TestCase {
+
+    /**
+     * The seed of the random data.
+     */
+    private static final long SEED = 20170301;
+    /**
+     * The number of proteins in the FASTA file.
+     */
+    private static final int N_PROTEINS = 50;
+    /**
+     * The number of peptides in the cache.
+     */
+    private static final int N_PEPTIDES = 1000;
+    /**
+     * The amino acids used to build sequences.
+     */
+    private static final String AMINO_ACIDS = "ACDEFGHIKLMNPQRSTVWY";
+    /**
+     * The temporary folder containing the test files.
+     */
+    private File tempFolder;
+    /**
+     * The random number generator.
+     */
+    private Random random;
+
+    @Override
+    protected void setUp() throws Exception {
+        tempFolder = File.createTempFile("peptide_mapping_cache", "");
+        tempFolder.delete();
+        tempFolder.mkdir();
+        random = new Random(SEED);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Util.deleteDir(tempFolder);
+    }
+
+    /**
+     * Tests that the FASTA checksum depends on the content of the file only.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * writing or reading the FASTA files
+     */
+    public void testFastaChecksum() throws Exception {
+
+        File fastaFile = new File(tempFolder, "proteins.fasta");
+        String content = getFastaContent();
+        writeFile(fastaFile, content);
+        String checksum = PeptideMappingCache.getFastaChecksum(fastaFile);
+        Assert.assertEquals(32, checksum.length());
+        Assert.assertEquals(checksum, PeptideMappingCache.getFastaChecksum(fastaFile));
+
+        // the same database at another location shares the cache
+        File copyFile = new File(tempFolder, "copy.fasta");
+        writeFile(copyFile, content);
+        Assert.assertEquals(checksum, PeptideMappingCache.getFastaChecksum(copyFile));
+
+        // a new version of the database gets a new cache
+        long lastModified = fastaFile.lastModified();
+        writeFile(fastaFile, content + ">sp|Q00000|NEW_HUMAN New protein OS=Homo sapiens GN=NEW PE=1 SV=1\nPEPTIDEK\n");
+        fastaFile.setLastModified(lastModified + 10000);
+        String newChecksum = PeptideMappingCache.getFastaChecksum(fastaFile);
+        Assert.assertFalse(checksum.equals(newChecksum));
+
+        IdentificationParameters identificationParameters = getIdentificationParameters();
+        Assert.assertFalse(PeptideMappingCache.getCacheFile(copyFile, identificationParameters).equals(PeptideMappingCache.getCacheFile(fastaFile, identificationParameters)));
+    }
+
+    /**
+     * Tests that the settings checksum changes with the sequence matching
+     * preferences.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * serializing the settings
+     */
+    public void testSettingsChecksum() throws Exception {
+
+        File fastaFile = new File(tempFolder, "proteins.fasta");
+        writeFile(fastaFile, getFastaContent());
+
+        IdentificationParameters identificationParameters = getIdentificationParameters();
+        String checksum = PeptideMappingCache.getSettingsChecksum(identificationParameters);
+        Assert.assertEquals(checksum, PeptideMappingCache.getSettingsChecksum(getIdentificationParameters()));
+        File cacheFile = PeptideMappingCache.getCacheFile(fastaFile, identificationParameters);
+        Assert.assertEquals(cacheFile, PeptideMappingCache.getCacheFile(fastaFile, getIdentificationParameters()));
+
+        IdentificationParameters otherType = getIdentificationParameters();
+        SequenceMatchingPreferences sequenceMatchingPreferences = otherType.getSequenceMatchingPreferences();
+        SequenceMatchingPreferences.MatchingType matchingType = sequenceMatchingPreferences.getSequenceMatchingType() == SequenceMatchingPreferences.MatchingType.string
+                ? SequenceMatchingPreferences.MatchingType.aminoAcid : SequenceMatchingPreferences.MatchingType.string;
+        sequenceMatchingPreferences.setSequenceMatchingType(matchingType);
+        Assert.assertFalse(checksum.equals(PeptideMappingCache.getSettingsChecksum(otherType)));
+        Assert.assertFalse(cacheFile.equals(PeptideMappingCache.getCacheFile(fastaFile, otherType)));
+
+        IdentificationParameters otherLimitX = getIdentificationParameters();
+        sequenceMatchingPreferences = otherLimitX.getSequenceMatchingPreferences();
+        Double limitX = sequenceMatchingPreferences.getLimitX();
+        sequenceMatchingPreferences.setLimitX(limitX == null ? 0.5 : limitX / 2);
+        Assert.assertFalse(checksum.equals(PeptideMappingCache.getSettingsChecksum(otherLimitX)));
+        Assert.assertFalse(cacheFile.equals(PeptideMappingCache.getCacheFile(fastaFile, otherLimitX)));
+    }
+
+    /**
+     * Tests that the saved mappings are restored when opening the cache, that
+     * a truncated block at the end of the file is ignored, and that mappings
+     * saved after the truncated block are restored.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * writing or reading the cache
+     */
+    public void testSaveLoad() throws Exception {
+
+        File cacheFile = new File(new File(tempFolder, PeptideMappingCache.FOLDER_NAME), "test" + PeptideMappingCache.EXTENSION);
+        String[] sequences = new String[N_PEPTIDES];
+        ArrayList<ArrayList<String>> accessions = new ArrayList<ArrayList<String>>(N_PEPTIDES);
+        for (int i = 0; i < N_PEPTIDES; i++) {
+            sequences[i] = getSequence(6 + random.nextInt(20));
+            ArrayList<String> peptideAccessions = new ArrayList<String>();
+            int nProteins = 1 + random.nextInt(4);
+            for (int j = 0; j < nProteins; j++) {
+                peptideAccessions.add(getAccession(random.nextInt(N_PROTEINS)));
+            }
+            accessions.add(peptideAccessions);
+        }
+
+        PeptideMappingCache cache = PeptideMappingCache.open(cacheFile);
+        Assert.assertEquals(0, cache.size());
+        int half = N_PEPTIDES / 2;
+        for (int i = 0; i < half; i++) {
+            cache.addParentProteins(sequences[i], accessions.get(i));
+        }
+        cache.save();
+        long firstBlockEnd = cacheFile.length();
+
+        PeptideMappingCache reopenedCache = PeptideMappingCache.open(cacheFile);
+        Assert.assertEquals(half, reopenedCache.size());
+        for (int i = 0; i < half; i++) {
+            Assert.assertEquals(accessions.get(i), reopenedCache.getParentProteins(sequences[i]));
+        }
+        Assert.assertNull(reopenedCache.getParentProteins(sequences[half] + "X"));
+
+        // a block interrupted while writing
+        FileOutputStream outputStream = new FileOutputStream(cacheFile, true);
+        try {
+            outputStream.write(new byte[]{0, 0, 1, 0, 1, 2, 3, 4, 5});
+        } finally {
+            outputStream.close();
+        }
+        reopenedCache = PeptideMappingCache.open(cacheFile);
+        Assert.assertEquals(half, reopenedCache.size());
+
+        for (int i = half; i < N_PEPTIDES; i++) {
+            reopenedCache.addParentProteins(sequences[i], accessions.get(i));
+        }
+        reopenedCache.save();
+        Assert.assertTrue(cacheFile.length() > firstBlockEnd);
+
+        PeptideMappingCache completeCache = PeptideMappingCache.open(cacheFile);
+        for (int i = 0; i < N_PEPTIDES; i++) {
+            Assert.assertEquals(Arrays.toString(accessions.get(i).toArray()), accessions.get(i), completeCache.getParentProteins(sequences[i]));
+        }
+    }
+
+    /**
+     * Tests that a block header announcing more data than the file contains
+     * ends the read without allocating the announced length.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * writing or reading the cache
+     */
+    public void testCorruptBlockLength() throws Exception {
+
+        File cacheFile = new File(tempFolder, "corrupt" + PeptideMappingCache.EXTENSION);
+        PeptideMappingCache cache = PeptideMappingCache.open(cacheFile);
+        ArrayList<String> accessions = new ArrayList<String>(Arrays.asList(getAccession(0), getAccession(1)));
+        cache.addParentProteins("PEPTIDEK", accessions);
+        cache.save();
+
+        FileOutputStream outputStream = new FileOutputStream(cacheFile, true);
+        try {
+            outputStream.write(new byte[]{0x7f, -1, -1, -1, 0, 0, 0, 0, 1, 2, 3});
+        } finally {
+            outputStream.close();
+        }
+
+        PeptideMappingCache reopenedCache = PeptideMappingCache.open(cacheFile);
+        Assert.assertEquals(1, reopenedCache.size());
+        Assert.assertEquals(accessions, reopenedCache.getParentProteins("PEPTIDEK"));
+
+        reopenedCache.addParentProteins("PROTEINR", accessions);
+        reopenedCache.save();
+        PeptideMappingCache completeCache = PeptideMappingCache.open(cacheFile);
+        Assert.assertEquals(2, completeCache.size());
+        Assert.assertEquals(accessions, completeCache.getParentProteins("PROTEINR"));
+    }
+
+    /**
+     * Returns default identification parameters.
+     *
+     * @return default identification parameters
+     */
+    private static IdentificationParameters getIdentificationParameters() {
+        return new IdentificationParameters(new SearchParameters());
+    }
+
+    /**
+     * Returns the content of a FASTA file with random sequences.
+     *
+     * @return the content of a FASTA file
+     */
+    private String getFastaContent() {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < N_PROTEINS; i++) {
+            content.append(">sp|").append(getAccession(i)).append("|PROT").append(i).append("_HUMAN Protein ").append(i)
+                    .append(" OS=Homo sapiens GN=GENE").append(i).append(" PE=1 SV=1\n");
+            content.append(getSequence(50 + random.nextInt(500))).append("\n");
+        }
+        return content.toString();
+    }
+
+    /**
+     * Writes the given content to a file.
+     *
+     * @param file the file
+     * @param content the content
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    private static void writeFile(File file, String content) throws IOException {
+        BufferedWriter bw = new BufferedWriter(new FileWriter(file));
+        try {
+            bw.write(content);
+        } finally {
+            bw.close();
+        }
+    }
+
+    /**
+     * Returns the accession of a protein.
+     *
+     * @param index the index of the protein
+     *
+     * @return the accession of the protein
+     */
+    private static String getAccession(int index) {
+        return String.format("P%05d", index);
+    }
+
+    /**
+     * Returns a random sequence.
+     *
+     * @param length the length of the sequence
+     *
+     * @return a random sequence
+     */
+    private String getSequence(int length) {
+        StringBuilder sequence = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sequence.append(AMINO_ACIDS.charAt(random.nextInt(AMINO_ACIDS.length())));
+        }
+        return sequence.toString();
+    }
+}
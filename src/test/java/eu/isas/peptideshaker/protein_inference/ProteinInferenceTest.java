@@ -0,0 +1,424 @@
+package eu.isas.peptideshaker.protein_inference;
+
+import com.compomics.util.Util;
+import com.compomics.util.db.ObjectsCache;
+import com.compomics.util.exceptions.ExceptionHandler;
+import com.compomics.util.exceptions.exception_handlers.CommandLineExceptionHandler;
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.identification.Advocate;
+import com.compomics.util.experiment.identification.Identification;
+import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
+import com.compomics.util.experiment.identification.identifications.Ms2Identification;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import com.compomics.util.experiment.identification.matches.ProteinMatch;
+import com.compomics.util.experiment.identification.matches.SpectrumMatch;
+import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
+import com.compomics.util.experiment.identification.spectrum_assumptions.PeptideAssumption;
+import com.compomics.util.experiment.massspectrometry.Charge;
+import com.compomics.util.gui.waiting.waitinghandlers.WaitingHandlerCLIImpl;
+import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.preferences.ProcessingPreferences;
+import com.compomics.util.preferences.ProteinInferencePreferences;
+import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.peptideshaker.parameters.PSParameter;
+import eu.isas.peptideshaker.scoring.maps.ProteinMap;
+import eu.isas.peptideshaker.utils.IdentificationFeaturesGenerator;
+import eu.isas.peptideshaker.utils.Metrics;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Tests the partitioning of the protein groups used to run the protein
+ * inference concurrently, and compares the concurrent simplification of the
+ * groups to the simplification of all groups by a single task.
+ *
+ * @author Marc Vaudel
+ */
+public class ProteinInferenceTest extends TestCase {
+
+    /**
+     * The seed of the random data.
+     */
+    private static final long SEED = 20170301;
+    /**
+     * The number of proteins.
+     */
+    private static final int N_PROTEINS = 300;
+    /**
+     * The number of peptides shared between proteins.
+     */
+    private static final int N_SHARED_PEPTIDES = 400;
+    /**
+     * The amino acids used to build sequences.
+     */
+    private static final String AMINO_ACIDS = "ACDEFGHIKLMNPQRSTVWY";
+    /**
+     * The FASTA file of the proteins.
+     */
+    private File fastaFile;
+    /**
+     * The folders of the identification databases.
+     */
+    private ArrayList<File> dbFolders = new ArrayList<File>();
+    /**
+     * The identifications to close.
+     */
+    private ArrayList<Identification> identifications = new ArrayList<Identification>();
+    /**
+     * A waiting handler, not displaying anything.
+     */
+    private WaitingHandler waitingHandler;
+
+    @Override
+    protected void setUp() throws Exception {
+        waitingHandler = new WaitingHandlerCLIImpl();
+        waitingHandler.setDisplayProgress(false);
+        fastaFile = File.createTempFile("protein_inference", ".fasta");
+        Random random = new Random(SEED);
+        BufferedWriter bw = new BufferedWriter(new FileWriter(fastaFile));
+        try {
+            for (int i = 0; i < N_PROTEINS; i++) {
+                String description = random.nextInt(5) == 0 ? "Uncharacterized protein " + i : "Protein " + i;
+                int evidence = 1 + random.nextInt(4);
+                bw.write(">sp|" + getAccession(i) + "|PROT" + i + "_HUMAN " + description + " OS=Homo sapiens GN=GENE" + i + " PE=" + evidence + " SV=1");
+                bw.newLine();
+                bw.write(getSequence(200, random));
+                bw.newLine();
+            }
+        } finally {
+            bw.close();
+        }
+        SequenceFactory.getInstance().loadFastaFile(fastaFile, waitingHandler);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (Identification identification : identifications) {
+            identification.close();
+        }
+        for (File dbFolder : dbFolders) {
+            Util.deleteDir(dbFolder);
+        }
+        SequenceFactory.getInstance().clearFactory();
+        fastaFile.delete();
+    }
+
+    /**
+     * Tests that the concurrent removal of the redundant groups merges the
+     * same peptides in the same groups as the simplification of all groups by
+     * a single task.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * building or simplifying the groups
+     */
+    public void testRemoveRedundantGroups() throws Exception {
+
+        IdentificationParameters identificationParameters = getIdentificationParameters();
+
+        Identification serialIdentification = getIdentification(new ProteinMap());
+        ProteinInference serialInference = new ProteinInference();
+        serialInference.setPartitionGroups(false);
+        serialInference.removeRedundantGroups(serialIdentification, identificationParameters, getFeaturesGenerator(serialIdentification, identificationParameters),
+                new ProcessingPreferences(), waitingHandler, new CommandLineExceptionHandler());
+
+        Identification parallelIdentification = getIdentification(new ProteinMap());
+        ProteinInference parallelInference = new ProteinInference();
+        parallelInference.removeRedundantGroups(parallelIdentification, identificationParameters, getFeaturesGenerator(parallelIdentification, identificationParameters),
+                new ProcessingPreferences(), waitingHandler, new CommandLineExceptionHandler());
+
+        Assert.assertFalse(waitingHandler.isRunCanceled());
+        assertSameGroups(serialIdentification, parallelIdentification);
+    }
+
+    /**
+     * Tests that the concurrent retention of the best scoring groups retains
+     * the same groups as the simplification of all groups by a single task.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * building or simplifying the groups
+     */
+    public void testRetainBestScoringGroups() throws Exception {
+
+        IdentificationParameters identificationParameters = getIdentificationParameters();
+        ExceptionHandler exceptionHandler = new CommandLineExceptionHandler();
+
+        ProteinMap serialProteinMap = new ProteinMap();
+        Identification serialIdentification = getIdentification(serialProteinMap);
+        int nGroups = serialIdentification.getProteinIdentification().size();
+        ProteinInference serialInference = new ProteinInference();
+        serialInference.setPartitionGroups(false);
+        serialInference.retainBestScoringGroups(serialIdentification, new Metrics(), serialProteinMap, identificationParameters,
+                getFeaturesGenerator(serialIdentification, identificationParameters), new ProcessingPreferences(), waitingHandler, exceptionHandler);
+
+        ProteinMap parallelProteinMap = new ProteinMap();
+        Identification parallelIdentification = getIdentification(parallelProteinMap);
+        ProteinInference parallelInference = new ProteinInference();
+        parallelInference.retainBestScoringGroups(parallelIdentification, new Metrics(), parallelProteinMap, identificationParameters,
+                getFeaturesGenerator(parallelIdentification, identificationParameters), new ProcessingPreferences(), waitingHandler, exceptionHandler);
+
+        Assert.assertFalse(waitingHandler.isRunCanceled());
+        Assert.assertTrue(serialIdentification.getProteinIdentification().size() < nGroups);
+        assertSameGroups(serialIdentification, parallelIdentification);
+    }
+
+    /**
+     * Tests that the connected components contain the groups sharing proteins
+     * and keep the processing order of the groups.
+     */
+    public void testConnectedComponents() {
+
+        ArrayList<String> proteinKeys = new ArrayList<String>();
+        proteinKeys.add("P1");
+        proteinKeys.add(getKey("P1", "P2"));
+        proteinKeys.add("P3");
+        proteinKeys.add(getKey("P5", "P6"));
+        proteinKeys.add(getKey("P2", "P4"));
+        proteinKeys.add("P7");
+        proteinKeys.add("P6");
+
+        ArrayList<ArrayList<String>> components = ProteinInference.getConnectedComponents(proteinKeys, getProteinMap(proteinKeys));
+
+        Assert.assertEquals(4, components.size());
+        Assert.assertEquals(Arrays.asList("P1", getKey("P1", "P2"), getKey("P2", "P4")), components.get(0));
+        Assert.assertEquals(Arrays.asList("P3"), components.get(1));
+        Assert.assertEquals(Arrays.asList(getKey("P5", "P6"), "P6"), components.get(2));
+        Assert.assertEquals(Arrays.asList("P7"), components.get(3));
+    }
+
+    /**
+     * Tests that groups are joined through groups of the protein map which are
+     * not processed.
+     */
+    public void testConnectedComponentsThroughProteinMap() {
+
+        ArrayList<String> proteinKeys = new ArrayList<String>();
+        proteinKeys.add("P3");
+        proteinKeys.add("P1");
+        proteinKeys.add("P7");
+
+        ArrayList<String> mappedKeys = new ArrayList<String>(proteinKeys);
+        mappedKeys.add(getKey("P3", "P7"));
+
+        ArrayList<ArrayList<String>> components = ProteinInference.getConnectedComponents(proteinKeys, getProteinMap(mappedKeys));
+
+        Assert.assertEquals(2, components.size());
+        Assert.assertEquals(Arrays.asList("P3", "P7"), components.get(0));
+        Assert.assertEquals(Arrays.asList("P1"), components.get(1));
+    }
+
+    /**
+     * Returns the key of a protein group.
+     *
+     * @param accessions the accessions of the proteins of the group
+     *
+     * @return the key of the protein group
+     */
+    private static String getKey(String... accessions) {
+        StringBuilder key = new StringBuilder();
+        for (String accession : accessions) {
+            if (key.length() > 0) {
+                key.append(ProteinMatch.PROTEIN_KEY_SPLITTER);
+            }
+            key.append(accession);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns the map of the groups indexed by protein accession.
+     *
+     * @param proteinKeys the keys of the protein groups
+     *
+     * @return the map of the groups indexed by protein accession
+     */
+    private static HashMap<String, HashSet<String>> getProteinMap(ArrayList<String> proteinKeys) {
+        HashMap<String, HashSet<String>> proteinMap = new HashMap<String, HashSet<String>>();
+        for (String proteinKey : proteinKeys) {
+            for (String accession : ProteinMatch.getAccessions(proteinKey)) {
+                HashSet<String> groups = proteinMap.get(accession);
+                if (groups == null) {
+                    groups = new HashSet<String>();
+                    proteinMap.put(accession, groups);
+                }
+                groups.add(proteinKey);
+            }
+        }
+        return proteinMap;
+    }
+
+    /**
+     * Asserts that two identifications contain the same protein groups with
+     * the same peptides and main protein.
+     *
+     * @param expected the expected identification
+     * @param actual the identification to test
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * reading the matches
+     */
+    private static void assertSameGroups(Identification expected, Identification actual) throws Exception {
+        Assert.assertEquals(new HashSet<String>(expected.getProteinIdentification()), new HashSet<String>(actual.getProteinIdentification()));
+        for (String proteinKey : expected.getProteinIdentification()) {
+            ProteinMatch expectedMatch = expected.getProteinMatch(proteinKey);
+            ProteinMatch actualMatch = actual.getProteinMatch(proteinKey);
+            Assert.assertEquals(proteinKey, new HashSet<String>(expectedMatch.getPeptideMatchesKeys()), new HashSet<String>(actualMatch.getPeptideMatchesKeys()));
+            Assert.assertEquals(proteinKey, expectedMatch.getMainMatch(), actualMatch.getMainMatch());
+        }
+    }
+
+    /**
+     * Returns the identification parameters used to simplify the groups. The
+     * groups are compared on the protein evidence and characterization, the
+     * enzymaticity is not used as the synthetic peptides are not in the
+     * protein sequences.
+     *
+     * @return the identification parameters
+     */
+    private static IdentificationParameters getIdentificationParameters() {
+        IdentificationParameters identificationParameters = new IdentificationParameters(new SearchParameters());
+        ProteinInferencePreferences proteinInferencePreferences = identificationParameters.getProteinInferencePreferences();
+        proteinInferencePreferences.setSimplifyGroups(true);
+        proteinInferencePreferences.setSimplifyGroupsScore(true);
+        proteinInferencePreferences.setSimplifyGroupsEnzymaticity(false);
+        proteinInferencePreferences.setSimplifyGroupsEvidence(true);
+        proteinInferencePreferences.setSimplifyGroupsUncharacterized(true);
+        return identificationParameters;
+    }
+
+    /**
+     * Returns an identification features generator for the given
+     * identification.
+     *
+     * @param identification the identification
+     * @param identificationParameters the identification parameters
+     *
+     * @return an identification features generator
+     */
+    private static IdentificationFeaturesGenerator getFeaturesGenerator(Identification identification, IdentificationParameters identificationParameters) {
+        return new IdentificationFeaturesGenerator(identification, identificationParameters, new Metrics(), null);
+    }
+
+    /**
+     * Returns a new identification in a temporary database containing the
+     * synthetic groups. Every protein has a unique peptide, other peptides
+     * are shared between neighboring proteins so that groups overlap in
+     * chains. The data only depend on the seed, calling this method twice
+     * returns identical identifications.
+     *
+     * @param proteinMap the protein map where to add the scores of the groups
+     *
+     * @return a new identification
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * creating the database
+     */
+    private Identification getIdentification(ProteinMap proteinMap) throws Exception {
+
+        File dbFolder = File.createTempFile("protein_inference", "");
+        dbFolder.delete();
+        dbFolder.mkdir();
+        dbFolders.add(dbFolder);
+        Identification identification = new Ms2Identification("protein_inference_" + identifications.size());
+        identification.establishConnection(dbFolder.getAbsolutePath(), true, new ObjectsCache());
+        identifications.add(identification);
+
+        Random random = new Random(SEED + 1);
+        IdentificationParameters identificationParameters = getIdentificationParameters();
+        int spectrumIndex = 0;
+        for (int i = 0; i < N_PROTEINS; i++) {
+            ArrayList<String> accessions = new ArrayList<String>(1);
+            accessions.add(getAccession(i));
+            addPeptide(identification, "test.mgf_cus_" + spectrumIndex++, accessions, random, identificationParameters);
+        }
+        for (int i = 0; i < N_SHARED_PEPTIDES; i++) {
+            int first = random.nextInt(N_PROTEINS);
+            int nProteins = 2 + random.nextInt(2);
+            HashSet<String> accessionsSet = new HashSet<String>(nProteins);
+            accessionsSet.add(getAccession(first));
+            while (accessionsSet.size() < nProteins) {
+                accessionsSet.add(getAccession((first + 1 + random.nextInt(3)) % N_PROTEINS));
+            }
+            ArrayList<String> accessions = new ArrayList<String>(accessionsSet);
+            Collections.sort(accessions);
+            addPeptide(identification, "test.mgf_cus_" + spectrumIndex++, accessions, random, identificationParameters);
+        }
+
+        PSParameter psParameter;
+        for (String peptideKey : identification.getPeptideIdentification()) {
+            psParameter = new PSParameter();
+            psParameter.setPeptideProbabilityScore(random.nextDouble());
+            identification.addPeptideMatchParameter(peptideKey, psParameter);
+        }
+        ArrayList<String> proteinKeys = new ArrayList<String>(identification.getProteinIdentification());
+        Collections.sort(proteinKeys);
+        for (String proteinKey : proteinKeys) {
+            psParameter = new PSParameter();
+            double score = random.nextDouble();
+            psParameter.setProteinProbabilityScore(score);
+            identification.addProteinMatchParameter(proteinKey, psParameter);
+            proteinMap.addPoint(score, ProteinMatch.isDecoy(proteinKey));
+        }
+
+        return identification;
+    }
+
+    /**
+     * Adds a spectrum match of a peptide mapping to the given proteins and
+     * builds the corresponding peptide and protein matches.
+     *
+     * @param identification the identification
+     * @param spectrumKey the key of the spectrum
+     * @param accessions the accessions of the parent proteins
+     * @param random the random number generator
+     * @param identificationParameters the identification parameters
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * storing the matches
+     */
+    private static void addPeptide(Identification identification, String spectrumKey, ArrayList<String> accessions, Random random,
+            IdentificationParameters identificationParameters) throws Exception {
+        Peptide peptide = new Peptide(getSequence(8 + random.nextInt(10), random), new ArrayList<ModificationMatch>());
+        peptide.setParentProteins(accessions);
+        PeptideAssumption peptideAssumption = new PeptideAssumption(peptide, 1, Advocate.peptideShaker.getIndex(), new Charge(Charge.PLUS, 2), random.nextDouble());
+        SpectrumMatch spectrumMatch = new SpectrumMatch(spectrumKey);
+        spectrumMatch.setBestPeptideAssumption(peptideAssumption);
+        identification.addSpectrumMatch(spectrumMatch);
+        identification.buildPeptidesAndProteins(spectrumKey, identificationParameters.getSequenceMatchingPreferences());
+    }
+
+    /**
+     * Returns the accession of a synthetic protein.
+     *
+     * @param index the index of the protein
+     *
+     * @return the accession of the protein
+     */
+    private static String getAccession(int index) {
+        return String.format("P%05d", index);
+    }
+
+    /**
+     * Returns a random sequence.
+     *
+     * @param length the length of the sequence
+     * @param random the random number generator
+     *
+     * @return a random sequence
+     */
+    private static String getSequence(int length, Random random) {
+        StringBuilder sequence = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sequence.append(AMINO_ACIDS.charAt(random.nextInt(AMINO_ACIDS.length())));
+        }
+        return sequence.toString();
+    }
+}
@@ -0,0 +1,436 @@
+package eu.isas.peptideshaker.ptm;
+
+import com.compomics.util.Util;
+import com.compomics.util.db.ObjectsCache;
+import com.compomics.util.exceptions.exception_handlers.CommandLineExceptionHandler;
+import com.compomics.util.experiment.biology.PTMFactory;
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.identification.Advocate;
+import com.compomics.util.experiment.identification.Identification;
+import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
+import com.compomics.util.experiment.identification.identifications.Ms2Identification;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import com.compomics.util.experiment.identification.matches.PeptideMatch;
+import com.compomics.util.experiment.identification.matches.SpectrumMatch;
+import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
+import com.compomics.util.experiment.identification.spectrum_assumptions.PeptideAssumption;
+import com.compomics.util.experiment.massspectrometry.Charge;
+import com.compomics.util.experiment.massspectrometry.Spectrum;
+import com.compomics.util.gui.waiting.waitinghandlers.WaitingHandlerCLIImpl;
+import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.preferences.ProcessingPreferences;
+import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.peptideshaker.parameters.PSParameter;
+import eu.isas.peptideshaker.parameters.PSPtmScores;
+import eu.isas.peptideshaker.preferences.SpectrumCountingPreferences;
+import eu.isas.peptideshaker.scoring.MatchValidationLevel;
+import eu.isas.peptideshaker.scoring.PtmScoring;
+import eu.isas.peptideshaker.scoring.maps.PsmPTMMap;
+import eu.isas.peptideshaker.utils.IdentificationFeaturesGenerator;
+import eu.isas.peptideshaker.utils.Metrics;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.TreeMap;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Tests that the peptide inference and the scoring of the peptide and protein
+ * PTMs give the same results when run by one and by several threads.
+ *
+ * @author Marc Vaudel
+ */
+public class PtmScorerThreadsTest extends TestCase {
+
+    /**
+     * The seed of the random data.
+     */
+    private static final long SEED = 20170301;
+    /**
+     * The number of threads of the parallel run.
+     */
+    private static final int N_THREADS = 4;
+    /**
+     * The number of proteins.
+     */
+    private static final int N_PROTEINS = 100;
+    /**
+     * The length of the proteins.
+     */
+    private static final int PROTEIN_LENGTH = 300;
+    /**
+     * The number of peptide sequences, less than the number of spectra so
+     * that PSMs share their sequence with confidently localized PSMs.
+     */
+    private static final int N_SEQUENCES = 150;
+    /**
+     * The number of spectra, several batches of the PTM scorer.
+     */
+    private static final int N_SPECTRA = 10 * PtmScorer.BATCH_SIZE;
+    /**
+     * The name of the spectrum file.
+     */
+    private static final String SPECTRUM_FILE_NAME = "ptm_scorer.mgf";
+    /**
+     * The name of the PTM.
+     */
+    private static final String PTM_NAME = "Phosphorylation of S";
+    /**
+     * The scores given to the sites, few so that sites are equally scored.
+     */
+    private static final double[] SITE_SCORES = {0.0, 50.0, 100.0};
+    /**
+     * The FASTA file of the proteins.
+     */
+    private File fastaFile;
+    /**
+     * The identification parameters.
+     */
+    private IdentificationParameters identificationParameters;
+    /**
+     * A waiting handler, not displaying anything.
+     */
+    private WaitingHandler waitingHandler;
+    /**
+     * The peptide sequences.
+     */
+    private String[] sequences;
+    /**
+     * The accessions of the protein of every peptide sequence.
+     */
+    private String[] accessions;
+
+    @Override
+    protected void setUp() throws Exception {
+
+        waitingHandler = new WaitingHandlerCLIImpl();
+        waitingHandler.setDisplayProgress(false);
+        Random random = new Random(SEED);
+
+        String[] proteinSequences = new String[N_PROTEINS];
+        fastaFile = File.createTempFile("ptm_scorer", ".fasta");
+        BufferedWriter bw = new BufferedWriter(new FileWriter(fastaFile));
+        try {
+            for (int i = 0; i < N_PROTEINS; i++) {
+                proteinSequences[i] = getSequence(PROTEIN_LENGTH, random);
+                bw.write(">sp|" + getAccession(i) + "|PROT" + i + "_HUMAN Protein " + i + " OS=Homo sapiens GN=GENE" + i + " PE=1 SV=1");
+                bw.newLine();
+                bw.write(proteinSequences[i]);
+                bw.newLine();
+            }
+        } finally {
+            bw.close();
+        }
+        SequenceFactory.getInstance().loadFastaFile(fastaFile, waitingHandler);
+
+        sequences = new String[N_SEQUENCES];
+        accessions = new String[N_SEQUENCES];
+        for (int i = 0; i < N_SEQUENCES; i++) {
+            String sequence;
+            int proteinIndex;
+            do {
+                proteinIndex = random.nextInt(N_PROTEINS);
+                int length = 8 + random.nextInt(10);
+                int start = random.nextInt(PROTEIN_LENGTH - length);
+                sequence = proteinSequences[proteinIndex].substring(start, start + length);
+            } while (getSites(sequence).size() < 3);
+            sequences[i] = sequence;
+            accessions[i] = getAccession(proteinIndex);
+        }
+
+        SearchParameters searchParameters = new SearchParameters();
+        searchParameters.getPtmSettings().addVariableModification(PTMFactory.getInstance().getPTM(PTM_NAME));
+        identificationParameters = new IdentificationParameters(searchParameters);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SequenceFactory.getInstance().clearFactory();
+        fastaFile.delete();
+    }
+
+    /**
+     * Tests that the peptide inference and the peptide and protein PTM
+     * scoring give the same PTM sites, scores and metrics with one and with
+     * several threads.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * processing the matches
+     */
+    public void testThreads() throws Exception {
+
+        ArrayList<String> expected = process(1);
+        ArrayList<String> actual = process(N_THREADS);
+
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+    /**
+     * Creates the project in a new identification database, runs the peptide
+     * inference and the peptide and protein PTM scoring with the given number
+     * of threads, and returns a description of the PTMs of every match.
+     *
+     * @param nThreads the number of threads
+     *
+     * @return a description of the PTMs of every match
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * processing the matches
+     */
+    private ArrayList<String> process(int nThreads) throws Exception {
+
+        File dbFolder = File.createTempFile("ptm_scorer", "");
+        dbFolder.delete();
+        dbFolder.mkdir();
+        Identification identification = new Ms2Identification("ptm_scorer");
+        identification.establishConnection(dbFolder.getAbsolutePath(), true, new ObjectsCache());
+
+        try {
+            fillProject(identification);
+
+            ProcessingPreferences processingPreferences = new ProcessingPreferences();
+            processingPreferences.setnThreads(nThreads);
+            Metrics metrics = new Metrics();
+            IdentificationFeaturesGenerator identificationFeaturesGenerator = new IdentificationFeaturesGenerator(identification, identificationParameters,
+                    metrics, new SpectrumCountingPreferences());
+            CommandLineExceptionHandler exceptionHandler = new CommandLineExceptionHandler();
+            PtmScorer ptmScorer = new PtmScorer(new PsmPTMMap());
+
+            ptmScorer.peptideInference(identification, identificationParameters, waitingHandler, exceptionHandler, processingPreferences);
+            ptmScorer.scorePeptidePtms(identification, waitingHandler, exceptionHandler, identificationParameters, processingPreferences);
+            ptmScorer.scoreProteinPtms(identification, metrics, waitingHandler, exceptionHandler, identificationParameters, identificationFeaturesGenerator,
+                    processingPreferences);
+            Assert.assertFalse(waitingHandler.isRunCanceled());
+
+            ArrayList<String> result = new ArrayList<String>();
+            ArrayList<String> spectrumKeys = new ArrayList<String>(identification.getSpectrumIdentification(SPECTRUM_FILE_NAME));
+            Collections.sort(spectrumKeys);
+            for (String spectrumKey : spectrumKeys) {
+                SpectrumMatch spectrumMatch = identification.getSpectrumMatch(spectrumKey);
+                result.add(spectrumKey + " " + getDescription(spectrumMatch.getBestPeptideAssumption().getPeptide())
+                        + " " + getDescription((PSPtmScores) spectrumMatch.getUrParam(new PSPtmScores())));
+            }
+            ArrayList<String> peptideKeys = new ArrayList<String>(identification.getPeptideIdentification());
+            Collections.sort(peptideKeys);
+            for (String peptideKey : peptideKeys) {
+                PeptideMatch peptideMatch = identification.getPeptideMatch(peptideKey);
+                result.add(peptideKey + " " + getDescription(peptideMatch.getTheoreticPeptide())
+                        + " " + getDescription((PSPtmScores) peptideMatch.getUrParam(new PSPtmScores())));
+            }
+            ArrayList<String> proteinKeys = new ArrayList<String>(identification.getProteinIdentification());
+            Collections.sort(proteinKeys);
+            for (String proteinKey : proteinKeys) {
+                result.add(proteinKey + " " + getDescription((PSPtmScores) identification.getProteinMatch(proteinKey).getUrParam(new PSPtmScores())));
+            }
+            result.add("validated proteins: " + metrics.getnValidatedProteins());
+            result.add("confident proteins: " + metrics.getnConfidentProteins());
+            result.add("max spectrum counting: " + metrics.getMaxSpectrumCounting());
+            return result;
+
+        } finally {
+            identification.close();
+            Util.deleteDir(dbFolder);
+        }
+    }
+
+    /**
+     * Stores the spectrum matches, their PTM scores and parameters, and the
+     * peptide and protein matches in the given identification. The matches
+     * only depend on the seed, all runs process the same project.
+     *
+     * @param identification the identification
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * storing the matches
+     */
+    private void fillProject(Identification identification) throws Exception {
+
+        Random random = new Random(SEED + 1);
+
+        for (int i = 0; i < N_SPECTRA; i++) {
+
+            String spectrumKey = Spectrum.getSpectrumKey(SPECTRUM_FILE_NAME, "spectrum_" + i);
+            int sequenceIndex = random.nextInt(N_SEQUENCES);
+            String sequence = sequences[sequenceIndex];
+            ArrayList<Integer> sites = getSites(sequence);
+            Collections.shuffle(sites, random);
+            int nPtms = 1 + random.nextInt(2);
+
+            PtmScoring ptmScoring = new PtmScoring(PTM_NAME);
+            for (int site : sites) {
+                ptmScoring.setDeltaScore(site, SITE_SCORES[random.nextInt(SITE_SCORES.length)]);
+                ptmScoring.setProbabilisticScore(site, SITE_SCORES[random.nextInt(SITE_SCORES.length)]);
+            }
+            PSPtmScores ptmScores = new PSPtmScores();
+            ptmScores.addPtmScoring(PTM_NAME, ptmScoring);
+
+            ArrayList<ModificationMatch> modificationMatches = new ArrayList<ModificationMatch>(nPtms);
+            for (int j = 0; j < nPtms; j++) {
+                int site = sites.get(j);
+                ModificationMatch modificationMatch = new ModificationMatch(PTM_NAME, true, site);
+                if (random.nextBoolean()) {
+                    modificationMatch.setConfident(true);
+                    ptmScoring.setSiteConfidence(site, PtmScoring.VERY_CONFIDENT);
+                    ptmScores.addConfidentModificationSite(PTM_NAME, site);
+                } else {
+                    ptmScoring.setSiteConfidence(site, PtmScoring.DOUBTFUL);
+                    HashMap<Integer, ArrayList<String>> ambiguousSites = new HashMap<Integer, ArrayList<String>>(2);
+                    for (int k = j; k < sites.size() && k <= j + 1 + nPtms; k++) {
+                        ArrayList<String> ptms = new ArrayList<String>(1);
+                        ptms.add(PTM_NAME);
+                        ambiguousSites.put(sites.get(k), ptms);
+                    }
+                    ptmScores.addAmbiguousModificationSites(site, ambiguousSites);
+                }
+                modificationMatches.add(modificationMatch);
+            }
+
+            Peptide peptide = new Peptide(sequence, modificationMatches);
+            ArrayList<String> parentProteins = new ArrayList<String>(1);
+            parentProteins.add(accessions[sequenceIndex]);
+            peptide.setParentProteins(parentProteins);
+            PeptideAssumption peptideAssumption = new PeptideAssumption(peptide, 1, Advocate.peptideShaker.getIndex(), new Charge(Charge.PLUS, 2), random.nextDouble());
+            SpectrumMatch spectrumMatch = new SpectrumMatch(spectrumKey);
+            spectrumMatch.setBestPeptideAssumption(peptideAssumption);
+            spectrumMatch.addUrParam(ptmScores);
+            identification.addSpectrumMatch(spectrumMatch);
+            identification.buildPeptidesAndProteins(spectrumKey, identificationParameters.getSequenceMatchingPreferences());
+
+            PSParameter psParameter = new PSParameter();
+            psParameter.setPsmProbability(random.nextDouble() / 10);
+            psParameter.setMatchValidationLevel(getValidationLevel(random));
+            identification.addSpectrumMatchParameter(spectrumKey, psParameter);
+        }
+
+        ArrayList<String> peptideKeys = new ArrayList<String>(identification.getPeptideIdentification());
+        Collections.sort(peptideKeys);
+        for (String peptideKey : peptideKeys) {
+            PSParameter psParameter = new PSParameter();
+            psParameter.setPeptideProbability(random.nextDouble() / 10);
+            psParameter.setMatchValidationLevel(getValidationLevel(random));
+            identification.addPeptideMatchParameter(peptideKey, psParameter);
+        }
+        ArrayList<String> proteinKeys = new ArrayList<String>(identification.getProteinIdentification());
+        Collections.sort(proteinKeys);
+        for (String proteinKey : proteinKeys) {
+            PSParameter psParameter = new PSParameter();
+            psParameter.setProteinProbability(random.nextDouble() / 10);
+            psParameter.setMatchValidationLevel(getValidationLevel(random));
+            identification.addProteinMatchParameter(proteinKey, psParameter);
+        }
+    }
+
+    /**
+     * Returns a description of the modifications of a peptide which does not
+     * depend on the order of the modification matches.
+     *
+     * @param peptide the peptide
+     *
+     * @return a description of the modifications of the peptide
+     */
+    private static String getDescription(Peptide peptide) {
+        ArrayList<String> modifications = new ArrayList<String>();
+        if (peptide.getModificationMatches() != null) {
+            for (ModificationMatch modificationMatch : peptide.getModificationMatches()) {
+                modifications.add(modificationMatch.getTheoreticPtm() + "@" + modificationMatch.getModificationSite()
+                        + (modificationMatch.isConfident() ? " confident" : "") + (modificationMatch.isInferred() ? " inferred" : ""));
+            }
+        }
+        Collections.sort(modifications);
+        return modifications.toString();
+    }
+
+    /**
+     * Returns a description of the confident and ambiguous sites of PTM
+     * scores which does not depend on the order of the maps.
+     *
+     * @param ptmScores the PTM scores, can be null
+     *
+     * @return a description of the sites
+     */
+    private static String getDescription(PSPtmScores ptmScores) {
+        if (ptmScores == null) {
+            return "no PTM scores";
+        }
+        TreeMap<Integer, String> confidentSites = new TreeMap<Integer, String>();
+        for (int site : ptmScores.getConfidentSites()) {
+            ArrayList<String> ptms = new ArrayList<String>(ptmScores.getConfidentModificationsAt(site));
+            Collections.sort(ptms);
+            confidentSites.put(site, ptms.toString());
+        }
+        TreeMap<Integer, String> ambiguousSites = new TreeMap<Integer, String>();
+        for (int representativeSite : ptmScores.getRepresentativeSites()) {
+            TreeMap<Integer, ArrayList<String>> secondarySites = new TreeMap<Integer, ArrayList<String>>(ptmScores.getAmbiguousPtmsAtRepresentativeSite(representativeSite));
+            for (ArrayList<String> ptms : secondarySites.values()) {
+                Collections.sort(ptms);
+            }
+            ambiguousSites.put(representativeSite, secondarySites.toString());
+        }
+        return "confident " + confidentSites + " ambiguous " + ambiguousSites;
+    }
+
+    /**
+     * Returns the sites which can carry the PTM on a sequence, one-based.
+     *
+     * @param sequence the amino acid sequence
+     *
+     * @return the sites which can carry the PTM
+     */
+    private static ArrayList<Integer> getSites(String sequence) {
+        ArrayList<Integer> sites = new ArrayList<Integer>();
+        for (int i = 0; i < sequence.length(); i++) {
+            if (sequence.charAt(i) == 'S') {
+                sites.add(i + 1);
+            }
+        }
+        return sites;
+    }
+
+    /**
+     * Returns a random validation level.
+     *
+     * @param random the random number generator
+     *
+     * @return a random validation level
+     */
+    private static MatchValidationLevel getValidationLevel(Random random) {
+        MatchValidationLevel[] levels = MatchValidationLevel.values();
+        return levels[random.nextInt(levels.length)];
+    }
+
+    /**
+     * Returns the accession of a synthetic protein.
+     *
+     * @param index the index of the protein
+     *
+     * @return the accession of the protein
+     */
+    private static String getAccession(int index) {
+        return "P" + (10000 + index);
+    }
+
+    /**
+     * Returns a random amino acid sequence, rich in serines.
+     *
+     * @param length the length of the sequence
+     * @param random the random number generator
+     *
+     * @return a random amino acid sequence
+     */
+    private static String getSequence(int length, Random random) {
+        String aminoAcids = "ACDEFGHIKLMNPQRSSSSTVWY";
+        StringBuilder sequence = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sequence.append(aminoAcids.charAt(random.nextInt(aminoAcids.length())));
+        }
+        return sequence.toString();
+    }
+}
@@ -0,0 +1,374 @@
+package eu.isas.peptideshaker.recalibration;
+
+import com.compomics.util.math.BasicMathFunctions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Compares the m/z deviations estimated from the primitive error
+ * accumulators to the estimation on maps of error lists done previously.
+ *
+ * @author Marc Vaudel
+ */
+public class RunMzDeviationTest extends TestCase {
+
+    /**
+     * The seed of the random data.
+     */
+    private static final long SEED = 20170301;
+    /**
+     * The number of validated PSMs.
+     */
+    private static final int N_PSMS = 1000;
+    /**
+     * The number of fragment ions annotated per spectrum.
+     */
+    private static final int N_IONS = 20;
+    /**
+     * The bin size used for the fragment ions.
+     */
+    private static final double MS2_BIN = 2.0;
+    /**
+     * The tolerance used to compare the deviations.
+     */
+    private static final double TOLERANCE = 1e-12;
+    /**
+     * The retention time of every PSM.
+     */
+    private double[] precursorRts;
+    /**
+     * The precursor m/z of every PSM.
+     */
+    private double[] precursorMzs;
+    /**
+     * The precursor error of every PSM.
+     */
+    private double[] precursorErrors;
+    /**
+     * The fragment m/z of every PSM.
+     */
+    private double[][] fragmentMzs;
+    /**
+     * The fragment errors of every PSM.
+     */
+    private double[][] fragmentErrors;
+
+    @Override
+    protected void setUp() {
+        Random random = new Random(SEED);
+        precursorRts = new double[N_PSMS];
+        precursorMzs = new double[N_PSMS];
+        precursorErrors = new double[N_PSMS];
+        fragmentMzs = new double[N_PSMS][N_IONS];
+        fragmentErrors = new double[N_PSMS][N_IONS];
+        for (int i = 0; i < N_PSMS; i++) {
+            // retention times are rounded so that some spectra share a retention time
+            precursorRts[i] = Math.round(36000 * random.nextDouble()) / 10.0;
+            precursorMzs[i] = 400 + 1200 * random.nextDouble();
+            precursorErrors[i] = 1e-6 * precursorMzs[i] + precursorRts[i] * 1e-6 + 1e-3 * random.nextGaussian();
+            for (int j = 0; j < N_IONS; j++) {
+                fragmentMzs[i][j] = 100 + 1900 * random.nextDouble();
+                fragmentErrors[i][j] = 2e-6 * fragmentMzs[i][j] + 5e-3 * random.nextGaussian();
+            }
+        }
+    }
+
+    /**
+     * Tests that the retention time bins, the precursor slopes and offsets,
+     * and the fragment m/z bins and median errors are the same as the ones of
+     * the previous estimation.
+     */
+    public void testDeviations() {
+
+        Baseline baseline = new Baseline();
+        RunMzDeviation runMzDeviation = getRunMzDeviation(1);
+
+        ArrayList<Double> rts = runMzDeviation.getPrecursorRTList();
+        Assert.assertTrue(rts.size() > 1);
+        Assert.assertEquals(baseline.precursorRTList, rts);
+        for (double rt : rts) {
+            Assert.assertEquals(baseline.precursorSlopes.get(rt), runMzDeviation.getSlope(rt), TOLERANCE);
+            Assert.assertEquals(baseline.precursorOffsets.get(rt), runMzDeviation.getOffset(rt), TOLERANCE);
+            HashMap<Double, Double> baselineFragments = baseline.fragmentsRtDeviations.get(rt);
+            ArrayList<Double> baselineMzs = new ArrayList<Double>(baselineFragments.keySet());
+            Collections.sort(baselineMzs);
+            ArrayList<Double> mzs = runMzDeviation.getFragmentMZList(rt);
+            Assert.assertTrue(mzs.size() > 1);
+            Assert.assertEquals(baselineMzs, mzs);
+            for (double mz : mzs) {
+                Assert.assertEquals(baselineFragments.get(mz), runMzDeviation.getFragmentMzError(rt, mz), TOLERANCE);
+            }
+        }
+    }
+
+    /**
+     * Tests that the deviations do not depend on how the PSMs are distributed
+     * among the accumulators of the different threads.
+     */
+    public void testThreadIndependence() {
+
+        RunMzDeviation reference = getRunMzDeviation(1);
+        RunMzDeviation split = getRunMzDeviation(7);
+
+        ArrayList<Double> rts = reference.getPrecursorRTList();
+        Assert.assertEquals(rts, split.getPrecursorRTList());
+        for (double rt : rts) {
+            Assert.assertEquals(reference.getSlope(rt), split.getSlope(rt));
+            Assert.assertEquals(reference.getOffset(rt), split.getOffset(rt));
+            ArrayList<Double> mzs = reference.getFragmentMZList(rt);
+            Assert.assertEquals(mzs, split.getFragmentMZList(rt));
+            for (double mz : mzs) {
+                Assert.assertEquals(reference.getFragmentMzError(rt, mz), split.getFragmentMzError(rt, mz));
+            }
+        }
+    }
+
+    /**
+     * Accumulates the errors of the PSMs as done by the threads collecting
+     * the errors, the PSMs being distributed in a round robin fashion among
+     * the given number of accumulators, and returns the estimated deviations.
+     *
+     * @param nAccumulators the number of accumulators
+     *
+     * @return the deviations estimated
+     */
+    private RunMzDeviation getRunMzDeviation(int nAccumulators) {
+
+        ArrayList<MzDeviationAccumulator> precursorAccumulators = new ArrayList<MzDeviationAccumulator>(nAccumulators);
+        ArrayList<MzDeviationAccumulator> fragmentAccumulators = new ArrayList<MzDeviationAccumulator>(nAccumulators);
+        for (int i = 0; i < nAccumulators; i++) {
+            precursorAccumulators.add(new MzDeviationAccumulator());
+            fragmentAccumulators.add(new MzDeviationAccumulator());
+        }
+        double[] spectrumBins = new double[N_IONS];
+        double[] spectrumErrors = new double[N_IONS];
+        for (int i = N_PSMS - 1; i >= 0; i--) {
+            int accumulator = i % nAccumulators;
+            precursorAccumulators.get(accumulator).add(precursorRts[i], precursorMzs[i], precursorErrors[i]);
+            for (int j = 0; j < N_IONS; j++) {
+                spectrumBins[j] = getBin(fragmentMzs[i][j]);
+                spectrumErrors[j] = fragmentErrors[i][j];
+            }
+            fragmentAccumulators.get(accumulator).addMedians(precursorRts[i], spectrumBins, spectrumErrors, N_IONS);
+        }
+
+        MzDeviationAccumulator precursorAccumulator = new MzDeviationAccumulator();
+        MzDeviationAccumulator fragmentAccumulator = new MzDeviationAccumulator();
+        for (int i = 0; i < nAccumulators; i++) {
+            precursorAccumulator.addAll(precursorAccumulators.get(i));
+            fragmentAccumulator.addAll(fragmentAccumulators.get(i));
+        }
+        return new RunMzDeviation(precursorAccumulator, fragmentAccumulator);
+    }
+
+    /**
+     * Returns the bin of a fragment m/z.
+     *
+     * @param mz the fragment m/z
+     *
+     * @return the bin of the fragment m/z
+     */
+    private static double getBin(double mz) {
+        int roundedValue = (int) (mz / MS2_BIN);
+        return (double) roundedValue * MS2_BIN;
+    }
+
+    /**
+     * The deviations estimated on maps of error lists as done before the
+     * errors were accumulated in primitive arrays.
+     */
+    private class Baseline {
+
+        /**
+         * The precursor slopes.
+         */
+        private HashMap<Double, Double> precursorSlopes = new HashMap<Double, Double>();
+        /**
+         * The precursor offsets.
+         */
+        private HashMap<Double, Double> precursorOffsets = new HashMap<Double, Double>();
+        /**
+         * The precursor RT list.
+         */
+        private ArrayList<Double> precursorRTList;
+        /**
+         * The fragments errors binned by mz and rt.
+         */
+        private HashMap<Double, HashMap<Double, Double>> fragmentsRtDeviations = new HashMap<Double, HashMap<Double, Double>>();
+
+        /**
+         * Constructor, estimates the deviations of the PSMs of the test.
+         */
+        public Baseline() {
+
+            HashMap<Double, HashMap<Double, ArrayList<Double>>> precursorRawMap = new HashMap<Double, HashMap<Double, ArrayList<Double>>>();
+            HashMap<Double, HashMap<Double, ArrayList<Double>>> fragmentRawMap = new HashMap<Double, HashMap<Double, ArrayList<Double>>>();
+
+            for (int i = 0; i < N_PSMS; i++) {
+
+                double precursorRT = precursorRts[i];
+                double precursorMz = precursorMzs[i];
+
+                if (!precursorRawMap.containsKey(precursorRT)) {
+                    precursorRawMap.put(precursorRT, new HashMap<Double, ArrayList<Double>>());
+                }
+                if (!precursorRawMap.get(precursorRT).containsKey(precursorMz)) {
+                    precursorRawMap.get(precursorRT).put(precursorMz, new ArrayList<Double>());
+                }
+                precursorRawMap.get(precursorRT).get(precursorMz).add(precursorErrors[i]);
+
+                HashMap<Double, ArrayList<Double>> spectrumFragmentMap = new HashMap<Double, ArrayList<Double>>();
+                for (int j = 0; j < N_IONS; j++) {
+                    double fragmentMzKey = getBin(fragmentMzs[i][j]);
+                    if (!spectrumFragmentMap.containsKey(fragmentMzKey)) {
+                        spectrumFragmentMap.put(fragmentMzKey, new ArrayList<Double>());
+                    }
+                    spectrumFragmentMap.get(fragmentMzKey).add(fragmentErrors[i][j]);
+                }
+                if (!fragmentRawMap.containsKey(precursorRT)) {
+                    fragmentRawMap.put(precursorRT, new HashMap<Double, ArrayList<Double>>());
+                }
+                for (double key : spectrumFragmentMap.keySet()) {
+                    if (!fragmentRawMap.get(precursorRT).containsKey(key)) {
+                        fragmentRawMap.get(precursorRT).put(key, new ArrayList<Double>());
+                    }
+                    fragmentRawMap.get(precursorRT).get(key).add(BasicMathFunctions.median(spectrumFragmentMap.get(key)));
+                }
+            }
+
+            ArrayList<Double> keys = new ArrayList<Double>(precursorRawMap.keySet());
+            Collections.sort(keys);
+            int cpt1 = 0;
+            HashMap<Double, HashMap<Double, ArrayList<Double>>> precursorTempMap = new HashMap<Double, HashMap<Double, ArrayList<Double>>>();
+            HashMap<Double, HashMap<Double, ArrayList<Double>>> fragmentTempMap = new HashMap<Double, HashMap<Double, ArrayList<Double>>>();
+
+            for (double rt : keys) {
+
+                HashMap<Double, ArrayList<Double>> tempValues = precursorRawMap.get(rt);
+                precursorTempMap.put(rt, tempValues);
+                fragmentTempMap.put(rt, fragmentRawMap.get(rt));
+
+                for (ArrayList<Double> errors : tempValues.values()) {
+                    cpt1 += errors.size();
+                }
+
+                if (cpt1 > RunMzDeviation.rtBinSize) {
+
+                    ArrayList<Double> rtList = new ArrayList<Double>(precursorTempMap.keySet());
+                    Collections.sort(rtList);
+                    double rtRef = BasicMathFunctions.median(rtList);
+
+                    HashMap<Double, ArrayList<Double>> mzToErrorMap = getMzToErrorMap(precursorTempMap);
+                    ArrayList<Double> mzList = new ArrayList<Double>(mzToErrorMap.keySet());
+                    Collections.sort(mzList);
+                    ArrayList<Double> mz1 = new ArrayList<Double>();
+                    ArrayList<Double> mz2 = new ArrayList<Double>();
+                    ArrayList<Double> err1 = new ArrayList<Double>();
+                    ArrayList<Double> err2 = new ArrayList<Double>();
+                    int cpt2 = 0;
+
+                    for (double mz : mzList) {
+                        for (double err : mzToErrorMap.get(mz)) {
+                            if (cpt2 < cpt1 / 2) {
+                                mz1.add(mz);
+                                err1.add(err);
+                                cpt2++;
+                            } else {
+                                mz2.add(mz);
+                                err2.add(err);
+                            }
+                        }
+                    }
+
+                    double x1 = BasicMathFunctions.median(mz1);
+                    double x2 = BasicMathFunctions.median(mz2);
+                    double y1 = BasicMathFunctions.median(err1);
+                    double y2 = BasicMathFunctions.median(err2);
+                    double slope;
+                    if (x1 == x2) {
+                        slope = 0;
+                    } else {
+                        slope = (y2 - y1) / (x2 - x1);
+                    }
+                    double offset = (y2 + y1 - slope * (x1 + x2)) / 2;
+                    precursorSlopes.put(rtRef, slope);
+                    precursorOffsets.put(rtRef, offset);
+
+                    fragmentsRtDeviations.put(rtRef, new HashMap<Double, Double>());
+                    mzToErrorMap = getMzToErrorMap(fragmentTempMap);
+                    mzList = new ArrayList<Double>(mzToErrorMap.keySet());
+                    Collections.sort(mzList);
+                    mz1 = new ArrayList<Double>();
+                    mz2 = new ArrayList<Double>();
+                    err1 = new ArrayList<Double>();
+                    err2 = new ArrayList<Double>();
+                    double mzRef = -1;
+
+                    for (double mz : mzList) {
+                        mz1.add(mz);
+                        err1.addAll(mzToErrorMap.get(mz));
+                        if (err1.size() >= RunMzDeviation.mzBinSize) {
+                            mzRef = BasicMathFunctions.median(mz1);
+                            double error = BasicMathFunctions.median(err1);
+                            fragmentsRtDeviations.get(rtRef).put(mzRef, error);
+                            mz2.clear();
+                            err2.clear();
+                            mz2.addAll(mz1);
+                            err2.addAll(err1);
+                            mz1.clear();
+                            err1.clear();
+                        }
+                    }
+
+                    if (!mz1.isEmpty()) {
+                        fragmentsRtDeviations.get(rtRef).remove(mzRef);
+                        mz1.addAll(mz2);
+                        err1.addAll(err2);
+                        mzRef = BasicMathFunctions.median(mz1);
+                        double error = BasicMathFunctions.median(err1);
+                        fragmentsRtDeviations.get(rtRef).put(mzRef, error);
+                    }
+
+                    for (double tempRt : rtList) {
+                        tempValues = precursorTempMap.get(tempRt);
+                        for (ArrayList<Double> errors : tempValues.values()) {
+                            cpt1 -= errors.size();
+                        }
+                        precursorTempMap.remove(tempRt);
+                        fragmentTempMap.remove(tempRt);
+                        if (cpt1 <= RunMzDeviation.rtBinSize) {
+                            break;
+                        }
+                    }
+                }
+            }
+
+            precursorRTList = new ArrayList<Double>(precursorSlopes.keySet());
+            Collections.sort(precursorRTList);
+        }
+
+        /**
+         * Pools the errors of the given retention times by m/z.
+         *
+         * @param rtMap the errors indexed by retention time and m/z
+         *
+         * @return the errors indexed by m/z
+         */
+        private HashMap<Double, ArrayList<Double>> getMzToErrorMap(HashMap<Double, HashMap<Double, ArrayList<Double>>> rtMap) {
+            HashMap<Double, ArrayList<Double>> mzToErrorMap = new HashMap<Double, ArrayList<Double>>();
+            for (HashMap<Double, ArrayList<Double>> errors : rtMap.values()) {
+                for (double mz : errors.keySet()) {
+                    if (!mzToErrorMap.containsKey(mz)) {
+                        mzToErrorMap.put(mz, new ArrayList<Double>());
+                    }
+                    mzToErrorMap.get(mz).addAll(errors.get(mz));
+                }
+            }
+            return mzToErrorMap;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package eu.isas.peptideshaker.scoring.targetdecoy;
+
+import com.compomics.util.gui.waiting.waitinghandlers.WaitingHandlerCLIImpl;
+import com.compomics.util.waiting.WaitingHandler;
+import java.util.Random;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Tests that updating the probabilities only for the scores in the changed
+ * range of the target/decoy maps, as done when the PSM map is changed in the
+ * validation panel, gives the same PSM and peptide probabilities as a full
+ * run on fresh maps.
+ *
+ * @author Marc Vaudel
+ */
+public class IncrementalValidationTest extends TestCase {
+
+    /**
+     * The seed of the random data.
+     */
+    private static final long SEED = 20170301;
+    /**
+     * The number of PSMs.
+     */
+    private static final int N_PSMS = 5000;
+    /**
+     * The number of peptides.
+     */
+    private static final int N_PEPTIDES = 1500;
+    /**
+     * The share of decoy peptides.
+     */
+    private static final double DECOY_SHARE = 0.3;
+    /**
+     * The scores of the PSMs.
+     */
+    private double[] psmScores;
+    /**
+     * The peptide of every PSM.
+     */
+    private int[] psmPeptides;
+    /**
+     * Indicates whether a peptide is decoy.
+     */
+    private boolean[] decoyPeptides;
+    /**
+     * A waiting handler, not displaying anything.
+     */
+    private WaitingHandler waitingHandler;
+
+    @Override
+    protected void setUp() {
+        Random random = new Random(SEED);
+        decoyPeptides = new boolean[N_PEPTIDES];
+        for (int i = 0; i < N_PEPTIDES; i++) {
+            decoyPeptides[i] = random.nextDouble() < DECOY_SHARE;
+        }
+        psmScores = new double[N_PSMS];
+        psmPeptides = new int[N_PSMS];
+        for (int i = 0; i < N_PSMS; i++) {
+            int peptide = i < N_PEPTIDES ? i : random.nextInt(N_PEPTIDES);
+            psmPeptides[i] = peptide;
+            if (!decoyPeptides[peptide] && random.nextBoolean()) {
+                psmScores[i] = Math.pow(10, -2 - 8 * random.nextDouble());
+            } else {
+                psmScores[i] = random.nextDouble();
+            }
+        }
+        waitingHandler = new WaitingHandlerCLIImpl();
+        waitingHandler.setDisplayProgress(false);
+    }
+
+    /**
+     * Tests the incremental update after reducing the window of the PSM map.
+     */
+    public void testReducedPsmWindow() {
+        testPsmWindowChange(0.5);
+    }
+
+    /**
+     * Tests the incremental update after increasing the window of the PSM
+     * map.
+     */
+    public void testIncreasedPsmWindow() {
+        testPsmWindowChange(2);
+    }
+
+    /**
+     * Tests that the probabilities outside the changed score range are not
+     * affected by the addition of a point, including the probabilities
+     * interpolated between points, and that the range is restricted to the
+     * neighborhood of the changes.
+     */
+    public void testChangedScoreRange() {
+
+        TargetDecoyMap targetDecoyMap = new TargetDecoyMap();
+        for (int i = 0; i < N_PSMS; i++) {
+            targetDecoyMap.put(psmScores[i], decoyPeptides[psmPeptides[i]]);
+        }
+        targetDecoyMap.estimateProbabilities(waitingHandler);
+        targetDecoyMap.setProbabilitiesApplied();
+        Assert.assertFalse(targetDecoyMap.hasChangedProbabilities());
+
+        Random random = new Random(SEED);
+        double[] queries = new double[10 * N_PSMS];
+        double[] probabilities = new double[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = i < N_PSMS ? psmScores[i] : random.nextDouble();
+            probabilities[i] = targetDecoyMap.getProbability(queries[i]);
+        }
+
+        // add decoys in a narrow score band, the window size is kept
+        for (int i = 0; i < 5; i++) {
+            targetDecoyMap.put(0.5 + i * 1e-4, true);
+        }
+        targetDecoyMap.estimateProbabilities(waitingHandler);
+
+        Assert.assertTrue(targetDecoyMap.hasChangedProbabilities());
+        int nInRange = 0;
+        for (int i = 0; i < queries.length; i++) {
+            double probability = targetDecoyMap.getProbability(queries[i]);
+            if (targetDecoyMap.isProbabilityChanged(queries[i])) {
+                nInRange++;
+            } else {
+                Assert.assertEquals(probabilities[i], probability, 0);
+            }
+        }
+        Assert.assertTrue(nInRange < queries.length);
+    }
+
+    /**
+     * Changes the window of the PSM map and compares the probabilities
+     * updated in the changed score ranges to the probabilities of a full run
+     * on fresh maps.
+     *
+     * @param windowFactor the factor to apply to the window size of the PSM
+     * map
+     */
+    private void testPsmWindowChange(double windowFactor) {
+
+        // initial run
+        TargetDecoyMap psmMap = getPsmMap();
+        psmMap.estimateProbabilities(waitingHandler);
+        double[] psmProbabilities = getPsmProbabilities(psmMap);
+        psmMap.setProbabilitiesApplied();
+        double[] peptideScores = getPeptideScores(psmProbabilities);
+        TargetDecoyMap peptideMap = getPeptideMap(peptideScores);
+        peptideMap.estimateProbabilities(waitingHandler);
+        double[] peptideProbabilities = getPeptideProbabilities(peptideMap, peptideScores);
+        peptideMap.setProbabilitiesApplied();
+
+        // change the PSM map as done in the validation panel
+        int newWindow = (int) (windowFactor * psmMap.getWindowSize());
+        psmMap.setWindowSize(newWindow);
+        psmMap.estimateProbabilities(waitingHandler);
+
+        // update the PSMs in the changed range and rescore their peptides
+        boolean[] rescored = new boolean[N_PEPTIDES];
+        for (int i = 0; i < N_PSMS; i++) {
+            if (psmMap.isProbabilityChanged(psmScores[i])) {
+                double probability = psmMap.getProbability(psmScores[i]);
+                if (probability != psmProbabilities[i]) {
+                    psmProbabilities[i] = probability;
+                    rescored[psmPeptides[i]] = true;
+                }
+            }
+        }
+        double[] newPeptideScores = getPeptideScores(psmProbabilities);
+        boolean[] moved = new boolean[N_PEPTIDES];
+        for (int i = 0; i < N_PEPTIDES; i++) {
+            if (rescored[i] && newPeptideScores[i] != peptideScores[i]) {
+                peptideMap.remove(peptideScores[i], decoyPeptides[i]);
+                peptideMap.put(newPeptideScores[i], decoyPeptides[i]);
+                peptideScores[i] = newPeptideScores[i];
+                moved[i] = true;
+            }
+        }
+        peptideMap.cleanUp();
+        peptideMap.resetMetrics();
+        peptideMap.estimateProbabilities(waitingHandler);
+        for (int i = 0; i < N_PEPTIDES; i++) {
+            if (moved[i] || peptideMap.isProbabilityChanged(peptideScores[i])) {
+                peptideProbabilities[i] = peptideMap.getProbability(peptideScores[i]);
+            }
+        }
+
+        // full run on fresh maps
+        TargetDecoyMap fullPsmMap = getPsmMap();
+        fullPsmMap.setWindowSize(newWindow);
+        fullPsmMap.estimateProbabilities(waitingHandler);
+        double[] fullPsmProbabilities = getPsmProbabilities(fullPsmMap);
+        double[] fullPeptideScores = getPeptideScores(fullPsmProbabilities);
+        TargetDecoyMap fullPeptideMap = getPeptideMap(fullPeptideScores);
+        fullPeptideMap.estimateProbabilities(waitingHandler);
+        double[] fullPeptideProbabilities = getPeptideProbabilities(fullPeptideMap, fullPeptideScores);
+
+        for (int i = 0; i < N_PSMS; i++) {
+            Assert.assertEquals("PSM " + i, fullPsmProbabilities[i], psmProbabilities[i], 0);
+        }
+        for (int i = 0; i < N_PEPTIDES; i++) {
+            Assert.assertEquals("Peptide score " + i, fullPeptideScores[i], peptideScores[i], 0);
+            Assert.assertEquals("Peptide " + i, fullPeptideProbabilities[i], peptideProbabilities[i], 0);
+        }
+    }
+
+    /**
+     * Returns a new PSM map filled with the PSMs.
+     *
+     * @return a new PSM map
+     */
+    private TargetDecoyMap getPsmMap() {
+        TargetDecoyMap psmMap = new TargetDecoyMap();
+        for (int i = 0; i < N_PSMS; i++) {
+            psmMap.put(psmScores[i], decoyPeptides[psmPeptides[i]]);
+        }
+        return psmMap;
+    }
+
+    /**
+     * Returns the probabilities of the PSMs.
+     *
+     * @param psmMap the PSM map
+     *
+     * @return the probabilities of the PSMs
+     */
+    private double[] getPsmProbabilities(TargetDecoyMap psmMap) {
+        double[] probabilities = new double[N_PSMS];
+        for (int i = 0; i < N_PSMS; i++) {
+            probabilities[i] = psmMap.getProbability(psmScores[i]);
+        }
+        return probabilities;
+    }
+
+    /**
+     * Returns the scores of the peptides, the product of the probabilities of
+     * their PSMs.
+     *
+     * @param psmProbabilities the probabilities of the PSMs
+     *
+     * @return the scores of the peptides
+     */
+    private double[] getPeptideScores(double[] psmProbabilities) {
+        double[] scores = new double[N_PEPTIDES];
+        for (int i = 0; i < N_PEPTIDES; i++) {
+            scores[i] = 1;
+        }
+        for (int i = 0; i < N_PSMS; i++) {
+            scores[psmPeptides[i]] *= psmProbabilities[i];
+        }
+        return scores;
+    }
+
+    /**
+     * Returns a new peptide map filled with the peptides.
+     *
+     * @param peptideScores the scores of the peptides
+     *
+     * @return a new peptide map
+     */
+    private TargetDecoyMap getPeptideMap(double[] peptideScores) {
+        TargetDecoyMap peptideMap = new TargetDecoyMap();
+        for (int i = 0; i < N_PEPTIDES; i++) {
+            peptideMap.put(peptideScores[i], decoyPeptides[i]);
+        }
+        return peptideMap;
+    }
+
+    /**
+     * Returns the probabilities of the peptides.
+     *
+     * @param peptideMap the peptide map
+     * @param peptideScores the scores of the peptides
+     *
+     * @return the probabilities of the peptides
+     */
+    private double[] getPeptideProbabilities(TargetDecoyMap peptideMap, double[] peptideScores) {
+        double[] probabilities = new double[N_PEPTIDES];
+        for (int i = 0; i < N_PEPTIDES; i++) {
+            probabilities[i] = peptideMap.getProbability(peptideScores[i]);
+        }
+        return probabilities;
+    }
+}
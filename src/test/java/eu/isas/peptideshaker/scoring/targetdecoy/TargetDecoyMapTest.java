@@ -0,0 +1,227 @@
+package eu.isas.peptideshaker.scoring.targetdecoy;
+
+import com.compomics.util.gui.waiting.waitinghandlers.WaitingHandlerCLIImpl;
+import com.compomics.util.waiting.WaitingHandler;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Tests that the hits put in and removed from a target/decoy map by
+ * concurrent threads are counted as when put by a single thread, and that
+ * hits not yet merged in the map are kept when the map is serialized.
+ *
+ * @author Marc Vaudel
+ */
+public class TargetDecoyMapTest extends TestCase {
+
+    /**
+     * The seed of the random data.
+     */
+    private static final long SEED = 20170301;
+    /**
+     * The number of hits.
+     */
+    private static final int N_HITS = 200000;
+    /**
+     * The number of distinct scores, less than the number of hits so that
+     * scores are shared by several hits.
+     */
+    private static final int N_SCORES = 20000;
+    /**
+     * The number of threads filling the map concurrently.
+     */
+    private static final int N_THREADS = 8;
+    /**
+     * The scores of the hits.
+     */
+    private double[] scores;
+    /**
+     * Indicates whether a hit is decoy.
+     */
+    private boolean[] decoys;
+    /**
+     * Indicates whether a hit is removed after being put.
+     */
+    private boolean[] removed;
+    /**
+     * A waiting handler, not displaying anything.
+     */
+    private WaitingHandler waitingHandler;
+
+    @Override
+    protected void setUp() {
+        Random random = new Random(SEED);
+        double[] distinctScores = new double[N_SCORES];
+        for (int i = 0; i < N_SCORES; i++) {
+            distinctScores[i] = random.nextBoolean() ? Math.pow(10, -2 - 8 * random.nextDouble()) : random.nextDouble();
+        }
+        scores = new double[N_HITS];
+        decoys = new boolean[N_HITS];
+        removed = new boolean[N_HITS];
+        for (int i = 0; i < N_HITS; i++) {
+            scores[i] = distinctScores[random.nextInt(N_SCORES)];
+            decoys[i] = random.nextDouble() < 0.3;
+            removed[i] = random.nextInt(10) == 0;
+        }
+        waitingHandler = new WaitingHandlerCLIImpl();
+        waitingHandler.setDisplayProgress(false);
+    }
+
+    /**
+     * Tests that a map filled by concurrent threads has the same points and
+     * probabilities as a map filled by a single thread.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * filling the map
+     */
+    public void testConcurrentFill() throws Exception {
+
+        TargetDecoyMap expected = new TargetDecoyMap();
+        for (int i = 0; i < N_HITS; i++) {
+            expected.put(scores[i], decoys[i]);
+        }
+        for (int i = 0; i < N_HITS; i++) {
+            if (removed[i]) {
+                expected.remove(scores[i], decoys[i]);
+            }
+        }
+        expected.cleanUp();
+
+        final TargetDecoyMap actual = new TargetDecoyMap();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(N_THREADS);
+        try {
+            ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>(N_THREADS);
+            for (int i = 0; i < N_THREADS; i++) {
+                final int thread = i;
+                futures.add(pool.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        start.await();
+                        for (int j = thread; j < N_HITS; j += N_THREADS) {
+                            actual.put(scores[j], decoys[j]);
+                            if (removed[j]) {
+                                actual.remove(scores[j], decoys[j]);
+                            }
+                            if (j % 10007 == 0) {
+                                // reads merge the pending counts while the other threads are filling
+                                actual.getMapSize();
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<Object> future : futures) {
+                future.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        actual.cleanUp();
+
+        assertSameCounts(expected, actual);
+
+        expected.estimateProbabilities(waitingHandler);
+        actual.estimateProbabilities(waitingHandler);
+        for (double score : expected.getScores()) {
+            Assert.assertEquals(expected.getProbability(score), actual.getProbability(score), 0);
+        }
+    }
+
+    /**
+     * Tests that hits put after the estimation of the probabilities are
+     * found by the following estimation.
+     */
+    public void testPutAfterEstimation() {
+
+        TargetDecoyMap targetDecoyMap = new TargetDecoyMap();
+        for (int i = 0; i < N_HITS / 2; i++) {
+            targetDecoyMap.put(scores[i], decoys[i]);
+        }
+        targetDecoyMap.estimateProbabilities(waitingHandler);
+        int mapSize = targetDecoyMap.getMapSize();
+
+        double newScore = 2.5;
+        targetDecoyMap.put(newScore, false);
+        targetDecoyMap.put(newScore, true);
+        targetDecoyMap.put(newScore, true);
+        Assert.assertEquals(mapSize + 1, targetDecoyMap.getMapSize());
+        Assert.assertEquals(1, targetDecoyMap.getNTarget(newScore));
+        Assert.assertEquals(2, targetDecoyMap.getNDecoy(newScore));
+        Assert.assertEquals(newScore, targetDecoyMap.getScores().get(targetDecoyMap.getScores().size() - 1), 0);
+
+        targetDecoyMap.remove(newScore, false);
+        targetDecoyMap.remove(newScore, true);
+        targetDecoyMap.remove(newScore, true);
+        targetDecoyMap.cleanUp();
+        Assert.assertEquals(mapSize, targetDecoyMap.getMapSize());
+    }
+
+    /**
+     * Tests that the hits not yet merged in the map are serialized, and that
+     * hits can be put in the deserialized map.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * serializing the map
+     */
+    public void testSerialization() throws Exception {
+
+        TargetDecoyMap expected = new TargetDecoyMap();
+        TargetDecoyMap targetDecoyMap = new TargetDecoyMap();
+        int half = N_HITS / 2;
+        for (int i = 0; i < half; i++) {
+            expected.put(scores[i], decoys[i]);
+            targetDecoyMap.put(scores[i], decoys[i]);
+        }
+
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        ObjectOutputStream outputStream = new ObjectOutputStream(byteArrayOutputStream);
+        try {
+            outputStream.writeObject(targetDecoyMap);
+        } finally {
+            outputStream.close();
+        }
+        ObjectInputStream inputStream = new ObjectInputStream(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+        TargetDecoyMap readMap;
+        try {
+            readMap = (TargetDecoyMap) inputStream.readObject();
+        } finally {
+            inputStream.close();
+        }
+        assertSameCounts(expected, readMap);
+
+        for (int i = half; i < N_HITS; i++) {
+            expected.put(scores[i], decoys[i]);
+            readMap.put(scores[i], decoys[i]);
+        }
+        assertSameCounts(expected, readMap);
+    }
+
+    /**
+     * Asserts that two maps have the same scores with the same numbers of
+     * target and decoy hits.
+     *
+     * @param expected the expected map
+     * @param actual the map to test
+     */
+    private static void assertSameCounts(TargetDecoyMap expected, TargetDecoyMap actual) {
+        Assert.assertEquals(expected.getScores(), actual.getScores());
+        for (double score : expected.getScores()) {
+            Assert.assertEquals(expected.getNTarget(score), actual.getNTarget(score));
+            Assert.assertEquals(expected.getNDecoy(score), actual.getNDecoy(score));
+        }
+    }
+}
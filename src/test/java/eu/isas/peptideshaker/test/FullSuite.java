@@ -1,6 +1,21 @@
 package eu.isas.peptideshaker.test;
 
+import eu.isas.peptideshaker.export.columnar.ColumnarReportTest;
+import eu.isas.peptideshaker.export.sections.SectionRowsWriterTest;
+import eu.isas.peptideshaker.filtering.MatchFilterBatchTest;
 import eu.isas.peptideshaker.pride.PrideWebServiceTest;
+import eu.isas.peptideshaker.protein_inference.PeptideMappingCacheTest;
+import eu.isas.peptideshaker.protein_inference.ProteinInferenceTest;
+import eu.isas.peptideshaker.ptm.PtmScorerThreadsTest;
+import eu.isas.peptideshaker.recalibration.RunMzDeviationTest;
+import eu.isas.peptideshaker.scoring.targetdecoy.IncrementalValidationTest;
+import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyMapTest;
+import eu.isas.peptideshaker.utils.BackgroundGzipOutputStreamTest;
+import eu.isas.peptideshaker.utils.IdentificationFeaturesCacheTest;
+import eu.isas.peptideshaker.utils.MemoryGovernorTest;
+import eu.isas.peptideshaker.utils.OrderedResultsTest;
+import eu.isas.peptideshaker.utils.ProjectArchiveTest;
+import eu.isas.peptideshaker.utils.ProteinSequenceStoreTest;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -19,6 +34,21 @@ public class FullSuite extends TestCase {
     public static Test suite() {
         TestSuite ts = new TestSuite("Test suite for the PeptideShaker project.");
         ts.addTest(new TestSuite(PrideWebServiceTest.class));
+        ts.addTest(new TestSuite(ProteinInferenceTest.class));
+        ts.addTest(new TestSuite(IncrementalValidationTest.class));
+        ts.addTest(new TestSuite(RunMzDeviationTest.class));
+        ts.addTest(new TestSuite(OrderedResultsTest.class));
+        ts.addTest(new TestSuite(BackgroundGzipOutputStreamTest.class));
+        ts.addTest(new TestSuite(SectionRowsWriterTest.class));
+        ts.addTest(new TestSuite(ColumnarReportTest.class));
+        ts.addTest(new TestSuite(ProjectArchiveTest.class));
+        ts.addTest(new TestSuite(ProteinSequenceStoreTest.class));
+        ts.addTest(new TestSuite(PeptideMappingCacheTest.class));
+        ts.addTest(new TestSuite(IdentificationFeaturesCacheTest.class));
+        ts.addTest(new TestSuite(TargetDecoyMapTest.class));
+        ts.addTest(new TestSuite(MatchFilterBatchTest.class));
+        ts.addTest(new TestSuite(PtmScorerThreadsTest.class));
+        ts.addTest(new TestSuite(MemoryGovernorTest.class));
         return ts;
     }
 }
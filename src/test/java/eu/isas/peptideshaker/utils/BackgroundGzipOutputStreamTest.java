@@ -0,0 +1,196 @@
+package eu.isas.peptideshaker.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Tests that the background gzip output stream writes valid gzip data and
+ * reports the errors of the compression thread.
+ *
+ * @author Marc Vaudel
+ */
+public class BackgroundGzipOutputStreamTest extends TestCase {
+
+    /**
+     * The seed of the random data.
+     */
+    private static final long SEED = 20170301;
+
+    /**
+     * Tests that a file written through single bytes and arrays of various
+     * lengths spanning several chunks is complete and valid after closing.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing or reading the file
+     */
+    public void testRoundTrip() throws IOException {
+
+        byte[] data = getData(3 * BackgroundGzipOutputStream.CHUNK_SIZE + 12345);
+        File file = File.createTempFile("background_gzip", ".gz");
+        try {
+            BackgroundGzipOutputStream outputStream = new BackgroundGzipOutputStream(file);
+            Random random = new Random(SEED);
+            int offset = 0;
+            while (offset < data.length) {
+                if (random.nextInt(10) == 0) {
+                    outputStream.write(data[offset]);
+                    offset++;
+                } else {
+                    int length = Math.min(data.length - offset, random.nextInt(BackgroundGzipOutputStream.CHUNK_SIZE / 2));
+                    outputStream.write(data, offset, length);
+                    offset += length;
+                }
+                if (random.nextInt(20) == 0) {
+                    outputStream.flush();
+                }
+            }
+            outputStream.close();
+            // closing twice has no effect
+            outputStream.close();
+
+            Assert.assertTrue(Arrays.equals(data, readGzip(new FileInputStream(file))));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Tests that an empty stream gives a valid empty gzip file.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing or reading the data
+     */
+    public void testEmpty() throws IOException {
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+        new BackgroundGzipOutputStream(destination, "empty").close();
+        Assert.assertEquals(0, readGzip(new ByteArrayInputStream(destination.toByteArray())).length);
+    }
+
+    /**
+     * Tests that a failure of the destination while compressing is thrown to
+     * the writer, that the destination is closed, and that closing does not
+     * block.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * creating the stream
+     */
+    public void testFailure() throws IOException {
+
+        FailingOutputStream destination = new FailingOutputStream(BackgroundGzipOutputStream.CHUNK_SIZE);
+        BackgroundGzipOutputStream outputStream = new BackgroundGzipOutputStream(destination, "failing");
+        byte[] data = getData(BackgroundGzipOutputStream.CHUNK_SIZE);
+        IOException failure = null;
+        try {
+            // random data does not compress, the destination fails after a few chunks
+            for (int i = 0; i < 4 * BackgroundGzipOutputStream.QUEUE_SIZE; i++) {
+                outputStream.write(data);
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        try {
+            outputStream.close();
+        } catch (IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+        Assert.assertNotNull(failure);
+        Assert.assertEquals(FailingOutputStream.MESSAGE, failure.getMessage());
+        Assert.assertTrue(destination.closed);
+    }
+
+    /**
+     * Returns random bytes.
+     *
+     * @param length the number of bytes
+     *
+     * @return random bytes
+     */
+    private static byte[] getData(int length) {
+        byte[] data = new byte[length];
+        new Random(SEED).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Reads and closes a gzipped stream.
+     *
+     * @param inputStream the gzipped stream
+     *
+     * @return the decompressed bytes
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the stream
+     */
+    private static byte[] readGzip(InputStream inputStream) throws IOException {
+        GZIPInputStream gzipInputStream = new GZIPInputStream(inputStream);
+        try {
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = gzipInputStream.read(buffer)) != -1) {
+                result.write(buffer, 0, n);
+            }
+            return result.toByteArray();
+        } finally {
+            gzipInputStream.close();
+        }
+    }
+
+    /**
+     * Output stream failing after a given number of bytes.
+     */
+    private static class FailingOutputStream extends OutputStream {
+
+        /**
+         * The message of the exception thrown.
+         */
+        public static final String MESSAGE = "Destination full.";
+        /**
+         * The number of bytes accepted.
+         */
+        private long capacity;
+        /**
+         * Boolean indicating whether the stream was closed.
+         */
+        private volatile boolean closed = false;
+
+        /**
+         * Constructor.
+         *
+         * @param capacity the number of bytes accepted
+         */
+        public FailingOutputStream(long capacity) {
+            this.capacity = capacity;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (length > capacity) {
+                throw new IOException(MESSAGE);
+            }
+            capacity -= length;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package eu.isas.peptideshaker.utils;
+
+import eu.isas.peptideshaker.utils.IdentificationFeaturesCache.ObjectType;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Tests the eviction of the least recently used objects of the identification
+ * features cache, the memory budget, the removal of objects by type and the
+ * hit and miss counters.
+ *
+ * @author Marc Vaudel
+ */
+public class IdentificationFeaturesCacheTest extends TestCase {
+
+    /**
+     * The seed of the random data.
+     */
+    private static final long SEED = 20170301;
+    /**
+     * The number of objects cached.
+     */
+    private static final int N_OBJECTS = 2000;
+    /**
+     * The number of threads querying the cache concurrently.
+     */
+    private static final int N_THREADS = 8;
+    /**
+     * The number of queries per thread.
+     */
+    private static final int N_QUERIES = 20000;
+
+    /**
+     * Tests that the least recently used objects of a segment are evicted
+     * first, where reading an object counts as using it.
+     */
+    public void testEvictionOrder() {
+
+        ArrayList<String> keys = getKeysOfSegment(ObjectType.sequence_coverage, 0, 5);
+
+        IdentificationFeaturesCache cache = new IdentificationFeaturesCache();
+        cache.addObject(ObjectType.sequence_coverage, keys.get(0), getValue(0));
+        long entrySize = cache.getMemoryUsage();
+        Assert.assertTrue(entrySize > 0);
+
+        // room for three objects per segment
+        cache.setMemoryBudget(IdentificationFeaturesCache.N_SEGMENTS * (3 * entrySize + entrySize / 2));
+        cache.addObject(ObjectType.sequence_coverage, keys.get(1), getValue(1));
+        cache.addObject(ObjectType.sequence_coverage, keys.get(2), getValue(2));
+        Assert.assertEquals(3 * entrySize, cache.getMemoryUsage());
+
+        // the first object becomes the most recently used
+        Assert.assertEquals(getValue(0), cache.getObject(ObjectType.sequence_coverage, keys.get(0)));
+        cache.addObject(ObjectType.sequence_coverage, keys.get(3), getValue(3));
+
+        Assert.assertEquals(3 * entrySize, cache.getMemoryUsage());
+        Assert.assertNull(cache.getObject(ObjectType.sequence_coverage, keys.get(1)));
+        Assert.assertEquals(getValue(0), cache.getObject(ObjectType.sequence_coverage, keys.get(0)));
+        Assert.assertEquals(getValue(2), cache.getObject(ObjectType.sequence_coverage, keys.get(2)));
+        Assert.assertEquals(getValue(3), cache.getObject(ObjectType.sequence_coverage, keys.get(3)));
+
+        // the reads above leave the order 0, 2, 3: 0 goes next
+        cache.addObject(ObjectType.sequence_coverage, keys.get(4), getValue(4));
+        Assert.assertNull(cache.getObject(ObjectType.sequence_coverage, keys.get(0)));
+        Assert.assertNotNull(cache.getObject(ObjectType.sequence_coverage, keys.get(2)));
+        Assert.assertNotNull(cache.getObject(ObjectType.sequence_coverage, keys.get(3)));
+        Assert.assertNotNull(cache.getObject(ObjectType.sequence_coverage, keys.get(4)));
+
+        // replacing an object does not count it twice
+        cache.addObject(ObjectType.sequence_coverage, keys.get(4), getValue(5));
+        Assert.assertEquals(3 * entrySize, cache.getMemoryUsage());
+        Assert.assertEquals(getValue(5), cache.getObject(ObjectType.sequence_coverage, keys.get(4)));
+    }
+
+    /**
+     * Tests that the memory used stays within the budget, that reducing the
+     * budget or the memory consumption evicts objects, and that an object
+     * larger than the budget of its segment is still stored.
+     */
+    public void testBudget() {
+
+        IdentificationFeaturesCache cache = new IdentificationFeaturesCache();
+        long budget = 64 * 1024;
+        cache.setMemoryBudget(budget);
+        Assert.assertEquals(budget, cache.getMemoryBudget());
+
+        Random random = new Random(SEED);
+        for (int i = 0; i < N_OBJECTS; i++) {
+            int[] value = new int[random.nextInt(50)];
+            cache.addObject(ObjectType.AA_coverage, "protein_" + i, value);
+            Assert.assertTrue(cache.getMemoryUsage() <= budget);
+        }
+        Assert.assertTrue(cache.getMemoryUsage() > budget / 2);
+
+        cache.setMemoryBudget(budget / 4);
+        Assert.assertTrue(cache.getMemoryUsage() <= budget / 4);
+
+        long memoryUsage = cache.getMemoryUsage();
+        cache.reduceMemoryConsumption(0.5);
+        Assert.assertTrue(cache.getMemoryUsage() <= memoryUsage / 2);
+        Assert.assertTrue(cache.getMemoryUsage() > 0);
+
+        cache.reduceMemoryConsumption(1);
+        Assert.assertEquals(0, cache.getMemoryUsage());
+
+        // an object larger than the budget of its segment
+        double[] largeObject = new double[(int) budget];
+        cache.addObject(ObjectType.coverable_AA_p, "large", largeObject);
+        Assert.assertSame(largeObject, cache.getObject(ObjectType.coverable_AA_p, "large"));
+        Assert.assertTrue(cache.getMemoryUsage() > budget);
+    }
+
+    /**
+     * Tests that the objects of a type can be removed without affecting the
+     * other types, and that a read only cache is not modified.
+     */
+    public void testRemoveObjects() {
+
+        IdentificationFeaturesCache cache = new IdentificationFeaturesCache();
+        for (int i = 0; i < N_OBJECTS; i++) {
+            cache.addObject(ObjectType.unique_peptides, "protein_" + i, i);
+        }
+        long uniquePeptidesUsage = cache.getMemoryUsage();
+        for (int i = 0; i < N_OBJECTS; i++) {
+            cache.addObject(ObjectType.number_of_spectra, "protein_" + i, i);
+        }
+        Assert.assertTrue(cache.getMemoryUsage() > uniquePeptidesUsage);
+
+        cache.removeObjects(ObjectType.number_of_spectra);
+        Assert.assertEquals(uniquePeptidesUsage, cache.getMemoryUsage());
+        for (int i = 0; i < N_OBJECTS; i++) {
+            Assert.assertNull(cache.getObject(ObjectType.number_of_spectra, "protein_" + i));
+            Assert.assertEquals(i, cache.getObject(ObjectType.unique_peptides, "protein_" + i));
+        }
+
+        cache.setReadOnly(true);
+        cache.removeObjects(ObjectType.unique_peptides);
+        cache.addObject(ObjectType.number_of_spectra, "protein_0", 0);
+        Assert.assertEquals(uniquePeptidesUsage, cache.getMemoryUsage());
+        Assert.assertNull(cache.getObject(ObjectType.number_of_spectra, "protein_0"));
+
+        cache.setReadOnly(false);
+        cache.removeObjects(ObjectType.unique_peptides);
+        Assert.assertEquals(0, cache.getMemoryUsage());
+    }
+
+    /**
+     * Tests that the hits and misses are counted per type when the cache is
+     * queried from several threads.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * querying the cache
+     */
+    public void testConcurrentCounters() throws Exception {
+
+        final IdentificationFeaturesCache cache = new IdentificationFeaturesCache();
+        for (int i = 0; i < N_OBJECTS; i += 2) {
+            cache.addObject(ObjectType.number_of_validated_spectra, "peptide_" + i, i);
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(N_THREADS);
+        try {
+            ArrayList<Future<long[]>> futures = new ArrayList<Future<long[]>>(N_THREADS);
+            for (int i = 0; i < N_THREADS; i++) {
+                final Random random = new Random(SEED + i);
+                futures.add(pool.submit(new Callable<long[]>() {
+                    @Override
+                    public long[] call() throws Exception {
+                        long[] counts = new long[3];
+                        start.await();
+                        for (int j = 0; j < N_QUERIES; j++) {
+                            int index = random.nextInt(N_OBJECTS);
+                            if (random.nextBoolean()) {
+                                Object value = cache.getObject(ObjectType.number_of_validated_spectra, "peptide_" + index);
+                                counts[value == null ? 1 : 0]++;
+                            } else {
+                                cache.getObject(ObjectType.number_of_confident_spectra, "peptide_" + index);
+                                counts[2]++;
+                            }
+                        }
+                        return counts;
+                    }
+                }));
+            }
+            start.countDown();
+
+            long hits = 0;
+            long misses = 0;
+            long otherMisses = 0;
+            for (Future<long[]> future : futures) {
+                long[] counts = future.get();
+                hits += counts[0];
+                misses += counts[1];
+                otherMisses += counts[2];
+            }
+            Assert.assertEquals((long) N_THREADS * N_QUERIES, hits + misses + otherMisses);
+            Assert.assertEquals(hits, cache.getHits(ObjectType.number_of_validated_spectra));
+            Assert.assertEquals(misses, cache.getMisses(ObjectType.number_of_validated_spectra));
+            Assert.assertEquals(0, cache.getHits(ObjectType.number_of_confident_spectra));
+            Assert.assertEquals(otherMisses, cache.getMisses(ObjectType.number_of_confident_spectra));
+            Assert.assertEquals(0, cache.getHits(ObjectType.AA_coverage));
+            Assert.assertEquals(0, cache.getMisses(ObjectType.AA_coverage));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns keys of objects of the given type stored in the given segment.
+     * All keys have the same length.
+     *
+     * @param type the type of the objects
+     * @param segmentIndex the index of the segment
+     * @param nKeys the number of keys
+     *
+     * @return keys of objects stored in the given segment
+     */
+    private static ArrayList<String> getKeysOfSegment(ObjectType type, int segmentIndex, int nKeys) {
+        ArrayList<String> keys = new ArrayList<String>(nKeys);
+        for (int i = 10000; keys.size() < nKeys; i++) {
+            String key = "protein_" + i;
+            if (IdentificationFeaturesCache.getSegmentIndex(type, key) == segmentIndex) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Returns a value of constant size.
+     *
+     * @param index the index of the value
+     *
+     * @return a value
+     */
+    private static String getValue(int index) {
+        return String.format("value_%04d", index);
+    }
+}
@@ -0,0 +1,204 @@
+package eu.isas.peptideshaker.utils;
+
+import com.compomics.util.gui.waiting.waitinghandlers.WaitingHandlerCLIImpl;
+import com.compomics.util.waiting.WaitingHandler;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Tests the order in which the memory governor solicits the reclaimers at
+ * every pressure level, the deferred reclaimers, and the waiting of the
+ * producers for memory. The governor tested does not sample the heap, the
+ * pressure level is set by the tests.
+ *
+ * @author Marc Vaudel
+ */
+public class MemoryGovernorTest extends TestCase {
+
+    /**
+     * The maximal time in milliseconds waited for memory in the tests.
+     */
+    private static final long MAX_WAIT = 300;
+    /**
+     * The governor tested.
+     */
+    private MemoryGovernor memoryGovernor;
+    /**
+     * The calls to the reclaimers: name and pressure level.
+     */
+    private List<String> calls;
+
+    @Override
+    protected void setUp() {
+        memoryGovernor = new MemoryGovernor(false);
+        memoryGovernor.unregister("Protein sequences");
+        calls = Collections.synchronizedList(new ArrayList<String>());
+    }
+
+    /**
+     * Tests that the reclaimers are solicited by order of priority until one
+     * releases memory when the pressure is high.
+     */
+    public void testHighPressure() {
+        memoryGovernor.register("c", 2, new RecordingReclaimer("c", true));
+        memoryGovernor.register("b", 1, new RecordingReclaimer("b", true));
+        memoryGovernor.register("a", 0, new RecordingReclaimer("a", false));
+
+        memoryGovernor.reclaim(MemoryGovernor.PressureLevel.high);
+
+        assertCalls("a high", "b high");
+    }
+
+    /**
+     * Tests that all reclaimers are solicited by order of priority when the
+     * pressure is critical, and none when it is normal.
+     */
+    public void testCriticalPressure() {
+        memoryGovernor.register("c", 2, new RecordingReclaimer("c", true));
+        memoryGovernor.register("a", 0, new RecordingReclaimer("a", true));
+        memoryGovernor.register("b", 1, new RecordingReclaimer("b", false));
+
+        memoryGovernor.reclaim(MemoryGovernor.PressureLevel.normal);
+        assertCalls();
+
+        memoryGovernor.reclaim(MemoryGovernor.PressureLevel.critical);
+        assertCalls("a critical", "b critical", "c critical");
+    }
+
+    /**
+     * Tests that a reclaimer registered under the name of another one
+     * replaces it, and that unregistering the replaced reclaimer keeps the
+     * new one.
+     */
+    public void testReplacement() {
+        RecordingReclaimer replaced = new RecordingReclaimer("replaced", true);
+        memoryGovernor.register("cache", 0, replaced);
+        memoryGovernor.register("cache", 0, new RecordingReclaimer("new", true));
+        memoryGovernor.unregister("cache", replaced);
+
+        memoryGovernor.reclaim(MemoryGovernor.PressureLevel.critical);
+
+        assertCalls("new critical");
+    }
+
+    /**
+     * Tests that the deferred reclaimers are not run by the governor but by
+     * the next producer waiting for memory, once, at the highest pressure
+     * level requested.
+     *
+     * @throws Exception exception thrown whenever the thread was interrupted
+     */
+    public void testDeferred() throws Exception {
+        memoryGovernor.registerDeferred("deferred", 0, new RecordingReclaimer("deferred", true));
+        memoryGovernor.register("direct", 1, new RecordingReclaimer("direct", true));
+
+        memoryGovernor.reclaim(MemoryGovernor.PressureLevel.high);
+        assertCalls("direct high");
+        memoryGovernor.reclaim(MemoryGovernor.PressureLevel.critical);
+        assertCalls("direct high", "direct critical");
+
+        Assert.assertTrue(memoryGovernor.awaitMemory(null, MAX_WAIT));
+        assertCalls("direct high", "direct critical", "deferred critical");
+
+        Assert.assertTrue(memoryGovernor.awaitMemory(null, MAX_WAIT));
+        assertCalls("direct high", "direct critical", "deferred critical");
+    }
+
+    /**
+     * Tests that a producer does not wait when the pressure is not critical,
+     * and waits at most the given time otherwise.
+     *
+     * @throws Exception exception thrown whenever the thread was interrupted
+     */
+    public void testAwaitMemoryTimeout() throws Exception {
+        memoryGovernor.setPressureLevel(MemoryGovernor.PressureLevel.high);
+        long start = System.currentTimeMillis();
+        Assert.assertTrue(memoryGovernor.awaitMemory(null, MAX_WAIT));
+        Assert.assertTrue(System.currentTimeMillis() - start < MAX_WAIT);
+
+        memoryGovernor.setPressureLevel(MemoryGovernor.PressureLevel.critical);
+        start = System.currentTimeMillis();
+        Assert.assertFalse(memoryGovernor.awaitMemory(null, MAX_WAIT));
+        Assert.assertTrue(System.currentTimeMillis() - start >= MAX_WAIT);
+    }
+
+    /**
+     * Tests that a waiting producer resumes when the pressure decreases, and
+     * stops waiting when the process is canceled.
+     *
+     * @throws Exception exception thrown whenever the thread was interrupted
+     */
+    public void testAwaitMemoryRelease() throws Exception {
+        memoryGovernor.setPressureLevel(MemoryGovernor.PressureLevel.critical);
+        Thread releaseThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(MAX_WAIT / 3);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                memoryGovernor.setPressureLevel(MemoryGovernor.PressureLevel.high);
+            }
+        });
+        releaseThread.start();
+        long start = System.currentTimeMillis();
+        Assert.assertTrue(memoryGovernor.awaitMemory(null, 100 * MAX_WAIT));
+        Assert.assertTrue(System.currentTimeMillis() - start < 100 * MAX_WAIT);
+        releaseThread.join();
+
+        memoryGovernor.setPressureLevel(MemoryGovernor.PressureLevel.critical);
+        WaitingHandler waitingHandler = new WaitingHandlerCLIImpl();
+        waitingHandler.setDisplayProgress(false);
+        waitingHandler.setRunCanceled();
+        start = System.currentTimeMillis();
+        Assert.assertFalse(memoryGovernor.awaitMemory(waitingHandler, 100 * MAX_WAIT));
+        Assert.assertTrue(System.currentTimeMillis() - start < 100 * MAX_WAIT);
+    }
+
+    /**
+     * Asserts that the reclaimers were called in the given order.
+     *
+     * @param expected the expected calls: name and pressure level
+     */
+    private void assertCalls(String... expected) {
+        ArrayList<String> expectedCalls = new ArrayList<String>(expected.length);
+        Collections.addAll(expectedCalls, expected);
+        Assert.assertEquals(expectedCalls, new ArrayList<String>(calls));
+    }
+
+    /**
+     * Reclaimer recording its calls.
+     */
+    private class RecordingReclaimer implements MemoryGovernor.MemoryReclaimer {
+
+        /**
+         * The name of the reclaimer.
+         */
+        private final String name;
+        /**
+         * The value returned by the reclaimer.
+         */
+        private final boolean released;
+
+        /**
+         * Constructor.
+         *
+         * @param name the name of the reclaimer
+         * @param released the value returned by the reclaimer
+         */
+        public RecordingReclaimer(String name, boolean released) {
+            this.name = name;
+            this.released = released;
+        }
+
+        @Override
+        public boolean reclaim(MemoryGovernor.PressureLevel pressureLevel) {
+            calls.add(name + " " + pressureLevel);
+            return released;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package eu.isas.peptideshaker.utils;
+
+import com.compomics.util.gui.waiting.waitinghandlers.WaitingHandlerCLIImpl;
+import com.compomics.util.waiting.WaitingHandler;
+import java.util.Random;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Tests that the results added out of order by concurrent tasks are returned
+ * in the order of the task indexes.
+ *
+ * @author Marc Vaudel
+ */
+public class OrderedResultsTest extends TestCase {
+
+    /**
+     * The seed of the random delays.
+     */
+    private static final long SEED = 20170301;
+    /**
+     * The number of tasks.
+     */
+    private static final int N_TASKS = 2000;
+    /**
+     * The number of threads.
+     */
+    private static final int N_THREADS = 8;
+    /**
+     * The scheduler running the tasks.
+     */
+    private ProcessingScheduler processingScheduler;
+    /**
+     * A waiting handler, not displaying anything.
+     */
+    private WaitingHandler waitingHandler;
+
+    @Override
+    protected void setUp() {
+        processingScheduler = new ProcessingScheduler(N_THREADS);
+        waitingHandler = new WaitingHandlerCLIImpl();
+        waitingHandler.setDisplayProgress(false);
+    }
+
+    @Override
+    protected void tearDown() {
+        processingScheduler.shutdown();
+    }
+
+    /**
+     * Tests that the results are taken in the order of the indexes while the
+     * tasks complete in random order.
+     *
+     * @throws InterruptedException exception thrown whenever the test was
+     * interrupted
+     */
+    public void testOrder() throws InterruptedException {
+
+        final OrderedResults<Integer> orderedResults = new OrderedResults<Integer>();
+        final ProcessingStage stage = processingScheduler.newStage("Ordered results test", waitingHandler);
+        Random random = new Random(SEED);
+
+        // the tasks are submitted from another thread so that the results are taken while tasks complete
+        final int[] delays = new int[N_TASKS];
+        for (int i = 0; i < N_TASKS; i++) {
+            delays[i] = random.nextInt(3);
+        }
+        Thread submitter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < N_TASKS; i++) {
+                        final int index = i;
+                        stage.submit(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    Thread.sleep(delays[index]);
+                                } catch (InterruptedException e) {
+                                    throw new IllegalStateException(e);
+                                }
+                                orderedResults.add(index, index);
+                            }
+                        });
+                    }
+                } catch (InterruptedException e) {
+                    stage.cancel();
+                }
+            }
+        });
+        submitter.start();
+
+        for (int i = 0; i < N_TASKS; i++) {
+            Integer result = orderedResults.take(stage);
+            Assert.assertNotNull(result);
+            Assert.assertEquals(i, result.intValue());
+            Assert.assertEquals(i + 1, orderedResults.getNextIndex());
+        }
+        submitter.join();
+        Assert.assertTrue(stage.awaitCompletion());
+        Assert.assertNull(orderedResults.poll());
+    }
+
+    /**
+     * Tests that a result is only polled once all results of lower index were
+     * returned.
+     */
+    public void testPoll() {
+
+        OrderedResults<String> orderedResults = new OrderedResults<String>();
+        orderedResults.add(2, "c");
+        orderedResults.add(1, "b");
+        Assert.assertNull(orderedResults.poll());
+        orderedResults.add(0, "a");
+        Assert.assertEquals("a", orderedResults.poll());
+        Assert.assertEquals("b", orderedResults.poll());
+        Assert.assertEquals("c", orderedResults.poll());
+        Assert.assertNull(orderedResults.poll());
+        Assert.assertEquals(3, orderedResults.getNextIndex());
+    }
+
+    /**
+     * Tests that taking a result which will never be added returns null once
+     * the stage is canceled.
+     *
+     * @throws InterruptedException exception thrown whenever the test was
+     * interrupted
+     */
+    public void testCanceledStage() throws InterruptedException {
+
+        OrderedResults<String> orderedResults = new OrderedResults<String>();
+        ProcessingStage stage = processingScheduler.newStage("Canceled ordered results test", waitingHandler);
+        orderedResults.add(1, "b");
+        stage.cancel();
+        Assert.assertNull(orderedResults.take(stage));
+        Assert.assertEquals(0, orderedResults.getNextIndex());
+    }
+}
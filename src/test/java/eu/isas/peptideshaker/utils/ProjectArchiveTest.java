@@ -0,0 +1,413 @@
+package eu.isas.peptideshaker.utils;
+
+import com.compomics.util.Util;
+import com.compomics.util.preferences.ProcessingPreferences;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Tests that the project archives restore the content of the project folder
+ * after saving, incremental saving, rewriting, and interrupted saving.
+ *
+ * @author Marc Vaudel
+ */
+public class ProjectArchiveTest extends TestCase {
+
+    /**
+     * The seed of the random data.
+     */
+    private static final long SEED = 20170301;
+    /**
+     * The name of the large file of the project.
+     */
+    private static final String LARGE_FILE = "identification/derby.dat";
+    /**
+     * The number of blocks of the large file.
+     */
+    private static final int N_BLOCKS = 4;
+    /**
+     * The name of the metadata entry.
+     */
+    private static final String METADATA_ENTRY = ProjectArchive.METADATA_PREFIX + "settings";
+    /**
+     * The temporary folder containing the test files.
+     */
+    private File tempFolder;
+    /**
+     * The project folder.
+     */
+    private File projectFolder;
+    /**
+     * The archive file.
+     */
+    private File archiveFile;
+    /**
+     * The random number generator.
+     */
+    private Random random;
+
+    @Override
+    protected void setUp() throws IOException {
+        tempFolder = File.createTempFile("project_archive", "");
+        tempFolder.delete();
+        tempFolder.mkdir();
+        projectFolder = new File(tempFolder, "project");
+        archiveFile = new File(tempFolder, "project.cpsx");
+        random = new Random(SEED);
+
+        writeFile(LARGE_FILE, getContent(N_BLOCKS * ProjectArchive.BLOCK_SIZE - 1234));
+        writeFile("identification/log/derby.log", "Booting Derby".getBytes("UTF-8"));
+        writeFile("identification/empty.dat", new byte[0]);
+        writeFile("readme.txt", getContent(100));
+        new File(projectFolder, "empty_folder").mkdirs();
+    }
+
+    @Override
+    protected void tearDown() {
+        Util.deleteDir(tempFolder);
+    }
+
+    /**
+     * Tests that saving and extracting an archive restores the project folder
+     * and that the metadata can be read without extraction.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * saving or extracting the archive
+     */
+    public void testSaveExtract() throws Exception {
+
+        byte[] metadata = getContent(3 * 1024);
+        save(metadata);
+
+        Assert.assertTrue(ProjectArchive.isProjectArchive(archiveFile));
+        Assert.assertFalse(new File(tempFolder, archiveFile.getName() + ProjectArchive.TEMP_SUFFIX).exists());
+
+        ProjectArchive projectArchive = new ProjectArchive(archiveFile);
+        Assert.assertTrue(projectArchive.hasEntry("empty_folder/"));
+        Assert.assertEquals(N_BLOCKS * ProjectArchive.BLOCK_SIZE - 1234, projectArchive.getEntryLength(LARGE_FILE));
+        Assert.assertTrue(Arrays.equals(metadata, projectArchive.readEntry(METADATA_ENTRY)));
+        Assert.assertTrue(Arrays.equals(readFile(new File(projectFolder, "readme.txt")), projectArchive.readEntry("readme.txt")));
+        Assert.assertNull(projectArchive.readEntry("missing.txt"));
+
+        File extractionFolder = extract();
+        assertSameContent(projectFolder, extractionFolder);
+        Assert.assertFalse(new File(extractionFolder, METADATA_ENTRY).exists());
+        Assert.assertTrue(new File(extractionFolder, "empty_folder").isDirectory());
+    }
+
+    /**
+     * Tests that saving to an existing archive appends only the changed
+     * blocks, leaves the previous version untouched, and restores the new
+     * content.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * saving or extracting the archive
+     */
+    public void testIncrementalSave() throws Exception {
+
+        save(getContent(100));
+        long originalLength = archiveFile.length();
+        byte[] original = readFile(archiveFile);
+
+        // save unchanged content
+        save(getContent(100));
+        long unchangedLength = archiveFile.length();
+        Assert.assertTrue(unchangedLength - originalLength < ProjectArchive.BLOCK_SIZE / 100);
+
+        // change a single block of the large file
+        File largeFile = new File(projectFolder, LARGE_FILE);
+        long lastModified = largeFile.lastModified();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(largeFile, "rw");
+        try {
+            randomAccessFile.seek(ProjectArchive.BLOCK_SIZE + 10);
+            randomAccessFile.write(getContent(100));
+        } finally {
+            randomAccessFile.close();
+        }
+        largeFile.setLastModified(lastModified + 10000);
+        save(getContent(100));
+
+        long newLength = archiveFile.length();
+        Assert.assertTrue(newLength - unchangedLength > ProjectArchive.BLOCK_SIZE);
+        Assert.assertTrue(newLength - unchangedLength < 2 * ProjectArchive.BLOCK_SIZE);
+        byte[] updated = readFile(archiveFile);
+        Assert.assertTrue(Arrays.equals(original, Arrays.copyOf(updated, original.length)));
+
+        assertSameContent(projectFolder, extract());
+    }
+
+    /**
+     * Tests that the archive is rewritten when the previous versions use more
+     * than half of it, and appended otherwise.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * saving or extracting the archive
+     */
+    public void testRewriteThreshold() throws Exception {
+
+        save(null);
+        long firstLength = archiveFile.length();
+
+        // all blocks change, the new version is appended
+        writeFile(LARGE_FILE, getContent(N_BLOCKS * ProjectArchive.BLOCK_SIZE - 1234));
+        save(null);
+        long appendedLength = archiveFile.length();
+        Assert.assertTrue(appendedLength > 2 * firstLength - ProjectArchive.BLOCK_SIZE);
+        assertSameContent(projectFolder, extract());
+
+        // the previous version uses more than half of the archive, the archive is rewritten
+        writeFile("readme.txt", getContent(200));
+        save(null);
+        long rewrittenLength = archiveFile.length();
+        Assert.assertTrue(rewrittenLength < firstLength + ProjectArchive.BLOCK_SIZE / 100);
+        Assert.assertFalse(new File(tempFolder, archiveFile.getName() + ProjectArchive.TEMP_SUFFIX).exists());
+        Assert.assertFalse(new File(tempFolder, archiveFile.getName() + ProjectArchive.BACKUP_SUFFIX).exists());
+        assertSameContent(projectFolder, extract());
+
+        // the rewritten archive is appended again
+        writeFile("readme.txt", getContent(300));
+        save(null);
+        Assert.assertTrue(archiveFile.length() > rewrittenLength);
+        assertSameContent(projectFolder, extract());
+    }
+
+    /**
+     * Tests that the last complete version is read when an append was
+     * interrupted, and that the next save discards the incomplete version.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * saving or extracting the archive
+     */
+    public void testInterruptedSave() throws Exception {
+
+        save(null);
+        long completeLength = archiveFile.length();
+        File completeFolder = extract();
+
+        // simulate a save interrupted while writing the blocks and the trailer
+        byte[] trailerStart = Arrays.copyOf(ProjectArchive.MAGIC, 3);
+        FileOutputStream outputStream = new FileOutputStream(archiveFile, true);
+        try {
+            outputStream.write(getContent(ProjectArchive.BLOCK_SIZE / 2));
+            outputStream.write(ProjectArchive.MAGIC);
+            outputStream.write(getContent(100));
+            outputStream.write(trailerStart);
+        } finally {
+            outputStream.close();
+        }
+
+        ProjectArchive projectArchive = new ProjectArchive(archiveFile);
+        Assert.assertEquals(N_BLOCKS * ProjectArchive.BLOCK_SIZE - 1234, projectArchive.getEntryLength(LARGE_FILE));
+        File extractionFolder = new File(tempFolder, "recovered");
+        projectArchive.extract(extractionFolder, new ProcessingPreferences(), null);
+        assertSameContent(completeFolder, extractionFolder);
+
+        // the next save is appended to the complete version
+        writeFile("readme.txt", getContent(200));
+        save(null);
+        long newLength = archiveFile.length();
+        Assert.assertTrue(newLength > completeLength);
+        Assert.assertTrue(newLength - completeLength < ProjectArchive.BLOCK_SIZE / 2);
+        assertSameContent(projectFolder, extract());
+    }
+
+    /**
+     * Tests that the archive format is distinguished from legacy tar files,
+     * missing files and truncated archives.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * writing or reading a file
+     */
+    public void testArchiveDetection() throws Exception {
+
+        Assert.assertFalse(ProjectArchive.isProjectArchive(archiveFile));
+        Assert.assertFalse(ProjectArchive.isProjectArchive(projectFolder));
+
+        // legacy project saved as tar
+        File tarFile = new File(tempFolder, "legacy.cpsx");
+        byte[] tar = new byte[10240];
+        byte[] name = "PeptideShaker_experiment_settings".getBytes("US-ASCII");
+        System.arraycopy(name, 0, tar, 0, name.length);
+        byte[] ustar = "ustar".getBytes("US-ASCII");
+        System.arraycopy(ustar, 0, tar, 257, ustar.length);
+        FileOutputStream outputStream = new FileOutputStream(tarFile);
+        try {
+            outputStream.write(tar);
+        } finally {
+            outputStream.close();
+        }
+        Assert.assertFalse(ProjectArchive.isProjectArchive(tarFile));
+        try {
+            new ProjectArchive(tarFile);
+            Assert.fail("Tar file read as project archive.");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // truncated archive
+        save(null);
+        Assert.assertTrue(ProjectArchive.isProjectArchive(archiveFile));
+        RandomAccessFile randomAccessFile = new RandomAccessFile(archiveFile, "rw");
+        try {
+            randomAccessFile.setLength(randomAccessFile.length() - 1);
+        } finally {
+            randomAccessFile.close();
+        }
+        Assert.assertTrue(ProjectArchive.isProjectArchive(archiveFile));
+        try {
+            new ProjectArchive(archiveFile);
+            Assert.fail("Truncated archive read.");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // a truncated archive is rewritten
+        save(null);
+        assertSameContent(projectFolder, extract());
+    }
+
+    /**
+     * Saves the project folder to the archive file.
+     *
+     * @param metadata the content of the metadata entry, can be null
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * saving the archive
+     */
+    private void save(byte[] metadata) throws Exception {
+        HashMap<String, byte[]> metadataEntries = null;
+        if (metadata != null) {
+            metadataEntries = new HashMap<String, byte[]>(1);
+            metadataEntries.put(METADATA_ENTRY, metadata);
+        }
+        HashSet<String> exceptions = new HashSet<String>(1);
+        exceptions.add(new File(projectFolder, "identification/log").getAbsolutePath());
+        ProjectArchive.save(projectFolder, exceptions, metadataEntries, archiveFile, new ProcessingPreferences(), null);
+    }
+
+    /**
+     * Extracts the archive file in a new folder.
+     *
+     * @return the folder where the archive was extracted
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * extracting the archive
+     */
+    private File extract() throws Exception {
+        File extractionFolder = File.createTempFile("extraction", "", tempFolder);
+        extractionFolder.delete();
+        new ProjectArchive(archiveFile).extract(extractionFolder, new ProcessingPreferences(), null);
+        return extractionFolder;
+    }
+
+    /**
+     * Verifies that two folders have the same content, excluding the log
+     * folder which is not saved.
+     *
+     * @param expected the expected folder
+     * @param actual the actual folder
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading a file
+     */
+    private static void assertSameContent(File expected, File actual) throws IOException {
+        ArrayList<String> expectedNames = new ArrayList<String>(Arrays.asList(expected.list()));
+        if (expected.getName().equals("identification")) {
+            expectedNames.remove("log");
+        }
+        Collections.sort(expectedNames);
+        Assert.assertTrue(actual.getAbsolutePath(), actual.isDirectory());
+        ArrayList<String> actualNames = new ArrayList<String>(Arrays.asList(actual.list()));
+        Collections.sort(actualNames);
+        Assert.assertEquals(expectedNames, actualNames);
+        for (String name : expectedNames) {
+            File expectedFile = new File(expected, name);
+            File actualFile = new File(actual, name);
+            if (expectedFile.isDirectory()) {
+                Assert.assertTrue(actualFile.isDirectory());
+                assertSameContent(expectedFile, actualFile);
+            } else {
+                Assert.assertTrue(name, Arrays.equals(readFile(expectedFile), readFile(actualFile)));
+                Assert.assertEquals(name, expectedFile.lastModified(), actualFile.lastModified());
+            }
+        }
+    }
+
+    /**
+     * Writes a file of the project folder.
+     *
+     * @param name the name of the file relative to the project folder
+     * @param content the content of the file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    private void writeFile(String name, byte[] content) throws IOException {
+        File file = new File(projectFolder, name);
+        file.getParentFile().mkdirs();
+        long lastModified = file.exists() ? file.lastModified() : 0;
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(content);
+        } finally {
+            outputStream.close();
+        }
+        if (lastModified != 0) {
+            // make sure that the change is detected on file systems with coarse time stamps
+            file.setLastModified(lastModified + 10000);
+        }
+    }
+
+    /**
+     * Reads a file.
+     *
+     * @param file the file
+     *
+     * @return the content of the file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private static byte[] readFile(File file) throws IOException {
+        byte[] content = new byte[(int) file.length()];
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            int length = 0;
+            while (length < content.length) {
+                int n = inputStream.read(content, length, content.length - length);
+                if (n < 0) {
+                    break;
+                }
+                length += n;
+            }
+        } finally {
+            inputStream.close();
+        }
+        return content;
+    }
+
+    /**
+     * Returns random content, incompressible so that the size of the archive
+     * reflects the number of blocks written.
+     *
+     * @param length the length of the content
+     *
+     * @return random content
+     */
+    private byte[] getContent(int length) {
+        byte[] content = new byte[length];
+        random.nextBytes(content);
+        return content;
+    }
+}
@@ -0,0 +1,354 @@
+package eu.isas.peptideshaker.utils;
+
+import com.compomics.util.Util;
+import com.compomics.util.experiment.biology.Protein;
+import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
+import com.compomics.util.gui.waiting.waitinghandlers.WaitingHandlerCLIImpl;
+import com.compomics.util.waiting.WaitingHandler;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Tests that the protein sequence store returns the sequences of the FASTA
+ * file after building, reopening, and rebuilding when the FASTA file changed,
+ * including when the values of the store overlap mapped regions.
+ *
+ * @author Marc Vaudel
+ */
+public class ProteinSequenceStoreTest extends TestCase {
+
+    /**
+     * The seed of the random data.
+     */
+    private static final long SEED = 20170301;
+    /**
+     * The number of target proteins.
+     */
+    private static final int N_PROTEINS = 200;
+    /**
+     * The amino acids used to build sequences.
+     */
+    private static final String AMINO_ACIDS = "ACDEFGHIKLMNPQRSTVWY";
+    /**
+     * A region size smaller than most sequences and not a multiple of the
+     * size of the numbers so that sequences and numbers overlap regions.
+     */
+    private static final int SMALL_REGION_SIZE = 1021;
+    /**
+     * The number of stores loaded concurrently.
+     */
+    private static final int N_THREADS = 6;
+    /**
+     * The temporary folder containing the FASTA file.
+     */
+    private File tempFolder;
+    /**
+     * The FASTA file.
+     */
+    private File fastaFile;
+    /**
+     * The target sequences.
+     */
+    private String[] targetSequences;
+    /**
+     * The decoy sequences, reversed targets except for every tenth protein.
+     */
+    private String[] decoySequences;
+    /**
+     * The random number generator.
+     */
+    private Random random;
+    /**
+     * A waiting handler, not displaying anything.
+     */
+    private WaitingHandler waitingHandler;
+
+    @Override
+    protected void setUp() throws Exception {
+        waitingHandler = new WaitingHandlerCLIImpl();
+        waitingHandler.setDisplayProgress(false);
+        tempFolder = File.createTempFile("protein_sequence_store", "");
+        tempFolder.delete();
+        tempFolder.mkdir();
+        fastaFile = new File(tempFolder, "proteins.fasta");
+        random = new Random(SEED);
+        writeFasta();
+        SequenceFactory.getInstance().loadFastaFile(fastaFile, waitingHandler);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SequenceFactory.getInstance().clearFactory();
+        Util.deleteDir(tempFolder);
+    }
+
+    /**
+     * Tests that the store is built next to the FASTA file, that it returns
+     * the sequences of all proteins, and that reversed decoys are not stored.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * building or reading the store
+     */
+    public void testBuild() throws Exception {
+
+        ProteinSequenceStore proteinSequenceStore = new ProteinSequenceStore(1 << 20);
+        Assert.assertTrue(proteinSequenceStore.load(waitingHandler));
+
+        File storeFile = ProteinSequenceStore.getStoreFile(fastaFile);
+        Assert.assertTrue(storeFile.exists());
+        assertNoTemporaryFile();
+        Assert.assertTrue(proteinSequenceStore.isLoaded(fastaFile));
+
+        assertSequences(proteinSequenceStore);
+
+        // the reversed decoys are derived from the targets
+        Assert.assertTrue(storeFile.length() < 0.75 * proteinSequenceStore.getSequencesLength());
+
+        proteinSequenceStore.close();
+        Assert.assertFalse(proteinSequenceStore.isLoaded(fastaFile));
+        Assert.assertEquals(0, proteinSequenceStore.getNProteins());
+    }
+
+    /**
+     * Tests that the values overlapping two mapped regions are read
+     * correctly.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * building or reading the store
+     */
+    public void testRegionBoundaries() throws Exception {
+
+        ProteinSequenceStore proteinSequenceStore = new ProteinSequenceStore(SMALL_REGION_SIZE);
+        Assert.assertTrue(proteinSequenceStore.load(waitingHandler));
+        Assert.assertTrue(ProteinSequenceStore.getStoreFile(fastaFile).length() > 100 * SMALL_REGION_SIZE);
+        assertSequences(proteinSequenceStore);
+    }
+
+    /**
+     * Tests that an existing store is mapped without being rebuilt.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * building or reading the store
+     */
+    public void testReopen() throws Exception {
+
+        ProteinSequenceStore proteinSequenceStore = new ProteinSequenceStore(SMALL_REGION_SIZE);
+        Assert.assertTrue(proteinSequenceStore.load(waitingHandler));
+        proteinSequenceStore.close();
+
+        File storeFile = ProteinSequenceStore.getStoreFile(fastaFile);
+        long storeLastModified = storeFile.lastModified() - 100000;
+        storeFile.setLastModified(storeLastModified);
+
+        ProteinSequenceStore reopenedStore = new ProteinSequenceStore(SMALL_REGION_SIZE);
+        Assert.assertTrue(reopenedStore.load(waitingHandler));
+        Assert.assertEquals(storeLastModified, storeFile.lastModified());
+        assertSequences(reopenedStore);
+    }
+
+    /**
+     * Tests that the store is rebuilt when the FASTA file changed, and that
+     * the store is not used when another FASTA file is loaded in the sequence
+     * factory.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * building or reading the store
+     */
+    public void testStaleFasta() throws Exception {
+
+        ProteinSequenceStore proteinSequenceStore = new ProteinSequenceStore(SMALL_REGION_SIZE);
+        Assert.assertTrue(proteinSequenceStore.load(waitingHandler));
+
+        // new sequences in the FASTA file
+        long lastModified = fastaFile.lastModified();
+        SequenceFactory.getInstance().clearFactory();
+        writeFasta();
+        fastaFile.setLastModified(lastModified + 10000);
+        SequenceFactory.getInstance().loadFastaFile(fastaFile, waitingHandler);
+
+        Assert.assertTrue(proteinSequenceStore.load(waitingHandler));
+        assertSequences(proteinSequenceStore);
+
+        // another FASTA file without store, the sequences come from the sequence factory
+        File otherFastaFile = new File(tempFolder, "other.fasta");
+        BufferedWriter bw = new BufferedWriter(new FileWriter(otherFastaFile));
+        try {
+            bw.write(">sp|" + getAccession(0) + "|OTHER_HUMAN Other protein OS=Homo sapiens GN=OTHER PE=1 SV=1");
+            bw.newLine();
+            bw.write("PEPTIDEK");
+            bw.newLine();
+        } finally {
+            bw.close();
+        }
+        SequenceFactory.getInstance().clearFactory();
+        SequenceFactory.getInstance().loadFastaFile(otherFastaFile, waitingHandler);
+        Assert.assertFalse(proteinSequenceStore.isLoaded(otherFastaFile));
+        Assert.assertEquals("PEPTIDEK", proteinSequenceStore.getSequence(getAccession(0)));
+    }
+
+    /**
+     * Tests that stores loading the same new FASTA file concurrently all
+     * return the sequences of the FASTA file and leave no temporary file.
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * building or reading the store
+     */
+    public void testConcurrentBuild() throws Exception {
+
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(N_THREADS);
+        try {
+            ArrayList<Future<ProteinSequenceStore>> futures = new ArrayList<Future<ProteinSequenceStore>>(N_THREADS);
+            for (int i = 0; i < N_THREADS; i++) {
+                futures.add(pool.submit(new Callable<ProteinSequenceStore>() {
+                    @Override
+                    public ProteinSequenceStore call() throws Exception {
+                        ProteinSequenceStore proteinSequenceStore = new ProteinSequenceStore(SMALL_REGION_SIZE);
+                        start.await();
+                        if (!proteinSequenceStore.load(waitingHandler)) {
+                            throw new IllegalStateException("Store not loaded.");
+                        }
+                        return proteinSequenceStore;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<ProteinSequenceStore> future : futures) {
+                ProteinSequenceStore proteinSequenceStore = future.get();
+                assertSequences(proteinSequenceStore);
+                proteinSequenceStore.close();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertNoTemporaryFile();
+    }
+
+    /**
+     * Verifies that the folder of the FASTA file only contains the FASTA
+     * file, the store and its lock file.
+     */
+    private void assertNoTemporaryFile() {
+        String storeName = ProteinSequenceStore.getStoreFile(fastaFile).getName();
+        for (String fileName : tempFolder.list()) {
+            Assert.assertTrue(Arrays.toString(tempFolder.list()), fileName.equals(fastaFile.getName())
+                    || fileName.equals(storeName) || fileName.equals(storeName + ProteinSequenceStore.LOCK_EXTENSION));
+        }
+    }
+
+    /**
+     * Verifies that the store returns the sequences of the FASTA file.
+     *
+     * @param proteinSequenceStore the store
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * reading the store
+     */
+    private void assertSequences(ProteinSequenceStore proteinSequenceStore) throws Exception {
+
+        Assert.assertEquals(2 * N_PROTEINS, proteinSequenceStore.getNProteins());
+        long sequencesLength = 0;
+        for (int i = 0; i < N_PROTEINS; i++) {
+            String accession = getAccession(i);
+            Assert.assertEquals(accession, targetSequences[i], proteinSequenceStore.getSequence(accession));
+            Protein protein = proteinSequenceStore.getProtein(accession);
+            Assert.assertEquals(accession, protein.getAccession());
+            Assert.assertFalse(protein.isDecoy());
+
+            String decoyAccession = getDecoyAccession(i);
+            Assert.assertEquals(decoyAccession, decoySequences[i], proteinSequenceStore.getSequence(decoyAccession));
+            Protein decoyProtein = proteinSequenceStore.getProtein(decoyAccession);
+            Assert.assertEquals(decoySequences[i], decoyProtein.getSequence());
+            Assert.assertTrue(decoyProtein.isDecoy());
+
+            sequencesLength += targetSequences[i].length() + decoySequences[i].length();
+        }
+        Assert.assertEquals(sequencesLength, proteinSequenceStore.getSequencesLength());
+    }
+
+    /**
+     * Writes a FASTA file with random target sequences followed by their
+     * decoys.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    private void writeFasta() throws IOException {
+        targetSequences = new String[N_PROTEINS];
+        decoySequences = new String[N_PROTEINS];
+        for (int i = 0; i < N_PROTEINS; i++) {
+            targetSequences[i] = getSequence(50 + random.nextInt(2000));
+            if (i % 10 == 0) {
+                decoySequences[i] = getSequence(targetSequences[i].length());
+            } else {
+                decoySequences[i] = new StringBuilder(targetSequences[i]).reverse().toString();
+            }
+        }
+        BufferedWriter bw = new BufferedWriter(new FileWriter(fastaFile));
+        try {
+            for (int i = 0; i < N_PROTEINS; i++) {
+                bw.write(">sp|" + getAccession(i) + "|PROT" + i + "_HUMAN Protein " + i + " OS=Homo sapiens GN=GENE" + i + " PE=1 SV=1");
+                bw.newLine();
+                bw.write(targetSequences[i]);
+                bw.newLine();
+            }
+            for (int i = 0; i < N_PROTEINS; i++) {
+                bw.write(">sp|" + getDecoyAccession(i) + "|PROT" + i + "_HUMAN-REVERSED Protein " + i + "-REVERSED OS=Homo sapiens GN=GENE" + i + " PE=1 SV=1");
+                bw.newLine();
+                bw.write(decoySequences[i]);
+                bw.newLine();
+            }
+        } finally {
+            bw.close();
+        }
+    }
+
+    /**
+     * Returns the accession of a target protein.
+     *
+     * @param index the index of the protein
+     *
+     * @return the accession of the protein
+     */
+    private static String getAccession(int index) {
+        return String.format("P%05d", index);
+    }
+
+    /**
+     * Returns the accession of a decoy protein.
+     *
+     * @param index the index of the target protein
+     *
+     * @return the accession of the decoy protein
+     */
+    private static String getDecoyAccession(int index) {
+        return getAccession(index) + SequenceFactory.getDefaultDecoyAccessionSuffix();
+    }
+
+    /**
+     * Returns a random sequence.
+     *
+     * @param length the length of the sequence
+     *
+     * @return a random sequence
+     */
+    private String getSequence(int length) {
+        StringBuilder sequence = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sequence.append(AMINO_ACIDS.charAt(random.nextInt(AMINO_ACIDS.length())));
+        }
+        return sequence.toString();
+    }
+}